@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PB.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import edu.stanford.slac.archiverappliance.PB.data.PackedVectorCodec.ElementType;
+import edu.stanford.slac.archiverappliance.PB.utils.EscapedPBEventHeader;
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Encodes a waveform sample as the difference from the previous sample.
+ * <p>
+ * A delta frame is a regular VectorDouble/VectorFloat/VectorInt/VectorShort/VectorEnum message with the val field replaced by two fields that are not in EPICSEvent.proto.
+ * <ol>
+ * <li>Field 20 has the elements of this sample as the difference from the previous sample; the XOR of the bits for floating point values and the zigzag encoded difference for integer values.
+ * The elements are encoded as a varint count followed by alternating runs; the number of unchanged elements followed by a changed element.</li>
+ * <li>Field 21 has the number of bytes from the start of the keyframe line to the start of this line.
+ * A keyframe is a regular line with the val field; the samples between a keyframe and this line are all delta frames.</li>
+ * </ol>
+ * The timestamp, severity, status and field values are left as is and in the same order; so the binary search, the scan predicates and the partial decoders work on delta frames without change.
+ * We write the delta fields after all the other fields; so we can reconstruct the full line by inserting the val field back in front of the severity.
+ * This is exactly the same line that we started with.
+ * <p>
+ * Delta frames cannot be unmarshalled on their own; the PlainPB iterators use a decoder to replace these with the full line.
+ * The elements of the val field are read and written using PackedVectorCodec.
+ * @author mshankar
+ *
+ */
+public class DeltaVectorCodec {
+	private static final int FIELD_VAL = 3;
+	private static final int FIELD_DELTA_VAL = 20;
+	private static final int FIELD_KEYFRAME_DISTANCE = 21;
+
+	private final ElementType elementType;
+
+	public DeltaVectorCodec(ArchDBRTypes type) {
+		if(!isSupported(type)) throw new IllegalArgumentException("Delta encoding is not supported for " + type);
+		elementType = ElementType.forDBRType(type);
+	}
+
+	/**
+	 * We support the waveforms whose val field is a packed array of numbers.
+	 * @param type
+	 * @return
+	 */
+	public static boolean isSupported(ArchDBRTypes type) {
+		switch(type) {
+		case DBR_WAVEFORM_DOUBLE:
+		case DBR_WAVEFORM_FLOAT:
+		case DBR_WAVEFORM_INT:
+		case DBR_WAVEFORM_SHORT:
+		case DBR_WAVEFORM_ENUM:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Check if this escaped line is a delta frame.
+	 * We walk the tags till we come to the val field (so this is cheap even for large waveforms) or to the delta field.
+	 * If we cannot make sense of the line, we let the unmarshalling code complain about it.
+	 * @param line
+	 * @return
+	 */
+	public static boolean isDeltaFrame(ByteArray line) {
+		int fieldNumber = new EscapedPBEventHeader().findFirstField(line, FIELD_VAL, FIELD_DELTA_VAL, FIELD_KEYFRAME_DISTANCE);
+		return fieldNumber == FIELD_DELTA_VAL || fieldNumber == FIELD_KEYFRAME_DISTANCE;
+	}
+
+	/**
+	 * A full line split into the fields before the val field, the val field and the fields after the val field.
+	 */
+	public static class FullFrame {
+		private byte[] unescaped;
+		private int valStart;
+		private int valEnd;
+		private long[] values;
+
+		/**
+		 * The elements as bits; see PackedVectorCodec.readPackedBits for the representation.
+		 * @return
+		 */
+		public long[] getValues() {
+			return values;
+		}
+	}
+
+	/**
+	 * A parsed delta frame.
+	 */
+	public static class DeltaFrame {
+		private byte[] unescaped;
+		private int valInsertPosition;
+		private int fieldsEnd;
+		private int deltaStart;
+		private int deltaLength;
+		private long keyframeDistance;
+
+		/**
+		 * @return The number of bytes from the start of the keyframe line to the start of this line.
+		 */
+		public long getKeyframeDistance() {
+			return keyframeDistance;
+		}
+	}
+
+	/**
+	 * Parse a full (non delta) line.
+	 * @param line - The escaped line
+	 * @return null if the line does not have a single packed val field; such lines cannot be used as the reference for a delta frame.
+	 */
+	public FullFrame parseFullFrame(ByteArray line) {
+		try {
+			FullFrame frame = new FullFrame();
+			frame.unescaped = unescape(line);
+			CodedInputStream is = CodedInputStream.newInstance(frame.unescaped);
+			frame.valStart = -1;
+			int position = 0;
+			while(true) {
+				int tag = is.readTag();
+				if(tag == 0) break;
+				int fieldNumber = WireFormat.getTagFieldNumber(tag);
+				if(fieldNumber == FIELD_VAL) {
+					if(frame.valStart != -1 || (tag & 0x7) != WireFormat.WIRETYPE_LENGTH_DELIMITED) return null;
+					frame.valStart = position;
+					int length = is.readRawVarint32();
+					int oldLimit = is.pushLimit(length);
+					frame.values = PackedVectorCodec.readPackedBits(is, elementType, length);
+					is.popLimit(oldLimit);
+					frame.valEnd = is.getTotalBytesRead();
+				} else if(fieldNumber == FIELD_DELTA_VAL || fieldNumber == FIELD_KEYFRAME_DISTANCE) {
+					return null;
+				} else {
+					// We put the val field back in front of the first field after it; so the fields have to be in field number order.
+					if((frame.valStart == -1) != (fieldNumber < FIELD_VAL)) return null;
+					is.skipField(tag);
+				}
+				position = is.getTotalBytesRead();
+			}
+			if(frame.valStart == -1) {
+				// An empty waveform
+				return null;
+			}
+			return frame;
+		} catch(IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Encode the current sample as a delta frame against the previous sample.
+	 * @param current - The full frame for the current sample
+	 * @param previous - The values of the previous sample
+	 * @param keyframeDistance - The number of bytes from the start of the keyframe line to the start of the line for the current sample.
+	 * @return The escaped delta frame or null if the delta frame is not smaller than the full frame.
+	 */
+	public ByteArray encodeDeltaFrame(FullFrame current, long[] previous, long keyframeDistance) {
+		long[] values = current.values;
+		if(previous == null || previous.length != values.length) return null;
+		try {
+			ByteArrayOutputStream deltaBytes = new ByteArrayOutputStream(64);
+			CodedOutputStream deltaos = CodedOutputStream.newInstance(deltaBytes);
+			deltaos.writeRawVarint32(values.length);
+			int i = 0;
+			while(i < values.length) {
+				int run = 0;
+				while(i < values.length && values[i] == previous[i]) { run++; i++; }
+				deltaos.writeRawVarint32(run);
+				if(i < values.length) {
+					deltaos.writeRawVarint64(diff(values[i], previous[i]));
+					i++;
+				}
+			}
+			deltaos.flush();
+			ByteString delta = ByteString.copyFrom(deltaBytes.toByteArray());
+			int valFieldLength = current.valEnd - current.valStart;
+			int deltaFieldsLength = CodedOutputStream.computeBytesSize(FIELD_DELTA_VAL, delta) + CodedOutputStream.computeUInt64Size(FIELD_KEYFRAME_DISTANCE, keyframeDistance);
+			if(deltaFieldsLength >= valFieldLength) return null;
+
+			int frameLength = current.unescaped.length - valFieldLength + deltaFieldsLength;
+			byte[] frame = new byte[frameLength];
+			System.arraycopy(current.unescaped, 0, frame, 0, current.valStart);
+			System.arraycopy(current.unescaped, current.valEnd, frame, current.valStart, current.unescaped.length - current.valEnd);
+			CodedOutputStream os = CodedOutputStream.newInstance(frame, current.unescaped.length - valFieldLength, deltaFieldsLength);
+			os.writeBytes(FIELD_DELTA_VAL, delta);
+			os.writeUInt64(FIELD_KEYFRAME_DISTANCE, keyframeDistance);
+			os.checkNoSpaceLeft();
+			return new ByteArray(LineEscaper.escapeNewLines(frame));
+		} catch(IOException ex) {
+			throw new RuntimeException("Exception encoding delta frame", ex);
+		}
+	}
+
+	/**
+	 * Parse a delta frame.
+	 * @param line - The escaped line
+	 * @return
+	 */
+	public DeltaFrame parseDeltaFrame(ByteArray line) {
+		try {
+			DeltaFrame frame = new DeltaFrame();
+			frame.unescaped = unescape(line);
+			CodedInputStream is = CodedInputStream.newInstance(frame.unescaped);
+			frame.valInsertPosition = -1;
+			frame.fieldsEnd = -1;
+			frame.deltaStart = -1;
+			frame.keyframeDistance = -1;
+			int position = 0;
+			while(true) {
+				int tag = is.readTag();
+				if(tag == 0) break;
+				int fieldNumber = WireFormat.getTagFieldNumber(tag);
+				if(fieldNumber == FIELD_DELTA_VAL || fieldNumber == FIELD_KEYFRAME_DISTANCE) {
+					if(frame.fieldsEnd == -1) frame.fieldsEnd = position;
+					if(fieldNumber == FIELD_DELTA_VAL) {
+						frame.deltaLength = is.readRawVarint32();
+						frame.deltaStart = is.getTotalBytesRead();
+						is.skipRawBytes(frame.deltaLength);
+					} else {
+						frame.keyframeDistance = is.readUInt64();
+					}
+				} else {
+					if(frame.fieldsEnd != -1 || fieldNumber == FIELD_VAL) throw new PBParseException(line.toBytes(), new IOException("Unexpected field " + fieldNumber + " in delta frame"));
+					if(frame.valInsertPosition == -1 && fieldNumber > FIELD_VAL) frame.valInsertPosition = position;
+					is.skipField(tag);
+				}
+				position = is.getTotalBytesRead();
+			}
+			if(frame.deltaStart == -1 || frame.keyframeDistance <= 0) throw new PBParseException(line.toBytes(), new IOException("Incomplete delta frame"));
+			if(frame.valInsertPosition == -1) frame.valInsertPosition = frame.fieldsEnd;
+			return frame;
+		} catch(IOException ex) {
+			throw new PBParseException(line.toBytes(), ex);
+		}
+	}
+
+	/**
+	 * Apply the delta frame to the values of the previous sample.
+	 * @param frame
+	 * @param previous
+	 * @return The values of this sample
+	 */
+	public long[] applyDeltaFrame(DeltaFrame frame, long[] previous) {
+		try {
+			CodedInputStream is = CodedInputStream.newInstance(frame.unescaped, frame.deltaStart, frame.deltaLength);
+			int count = is.readRawVarint32();
+			if(previous == null || previous.length != count) throw new IOException("Delta frame has " + count + " elements; the previous sample has " + (previous == null ? "none" : previous.length));
+			long[] values = new long[count];
+			int i = 0;
+			while(i < count) {
+				int run = is.readRawVarint32();
+				if(run > count - i) throw new IOException("Run of " + run + " past the end of the waveform");
+				System.arraycopy(previous, i, values, i, run);
+				i += run;
+				if(i < count) {
+					values[i] = undiff(is.readRawVarint64(), previous[i]);
+					i++;
+				}
+			}
+			return values;
+		} catch(IOException ex) {
+			throw new PBParseException(frame.unescaped, ex);
+		}
+	}
+
+	/**
+	 * Reconstruct the full line for a delta frame.
+	 * @param frame
+	 * @param values
+	 * @return The escaped full line
+	 */
+	public ByteArray toFullLine(DeltaFrame frame, long[] values) {
+		try {
+			int valBytes = PackedVectorCodec.packedBitsSize(elementType, values);
+			int valFieldLength = values.length == 0 ? 0 : CodedOutputStream.computeTagSize(FIELD_VAL) + CodedOutputStream.computeRawVarint32Size(valBytes) + valBytes;
+			byte[] line = new byte[frame.fieldsEnd + valFieldLength];
+			System.arraycopy(frame.unescaped, 0, line, 0, frame.valInsertPosition);
+			CodedOutputStream os = CodedOutputStream.newInstance(line, frame.valInsertPosition, valFieldLength);
+			if(values.length > 0) {
+				os.writeTag(FIELD_VAL, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+				os.writeRawVarint32(valBytes);
+				PackedVectorCodec.writePackedBits(os, elementType, values);
+			}
+			os.checkNoSpaceLeft();
+			System.arraycopy(frame.unescaped, frame.valInsertPosition, line, frame.valInsertPosition + valFieldLength, frame.fieldsEnd - frame.valInsertPosition);
+			return new ByteArray(LineEscaper.escapeNewLines(line));
+		} catch(IOException ex) {
+			throw new RuntimeException("Exception reconstructing line from delta frame", ex);
+		}
+	}
+
+	/**
+	 * XOR for floating point values; small changes in the value leave the high order bits (sign, exponent and the leading bits of the mantissa) unchanged.
+	 * The zigzag encoded difference for integers.
+	 */
+	private long diff(long value, long previous) {
+		switch(elementType) {
+		case DOUBLE: case FLOAT: return value ^ previous;
+		default: return CodedOutputStream.encodeZigZag64(value - previous);
+		}
+	}
+
+	private long undiff(long diff, long previous) {
+		switch(elementType) {
+		case DOUBLE: case FLOAT: return diff ^ previous;
+		default: return previous + CodedInputStream.decodeZigZag64(diff);
+		}
+	}
+
+	private static byte[] unescape(ByteArray line) {
+		byte[] ret = new byte[line.len];
+		int len = 0;
+		int end = line.off + line.len;
+		for(int i = line.off; i < end; i++) {
+			byte b = line.data[i];
+			if(b == LineEscaper.ESCAPE_CHAR && i + 1 < end) {
+				i++;
+				b = line.data[i];
+				switch(b) {
+				case LineEscaper.ESCAPE_ESCAPE_CHAR: b = LineEscaper.ESCAPE_CHAR; break;
+				case LineEscaper.NEWLINE_ESCAPE_CHAR: b = LineEscaper.NEWLINE_CHAR; break;
+				case LineEscaper.CARRIAGERETURN_ESCAPE_CHAR: b = LineEscaper.CARRIAGERETURN_CHAR; break;
+				default: break;
+				}
+			}
+			ret[len++] = b;
+		}
+		if(len == ret.length) return ret;
+		byte[] trimmed = new byte[len];
+		System.arraycopy(ret, 0, trimmed, 0, len);
+		return trimmed;
+	}
+}
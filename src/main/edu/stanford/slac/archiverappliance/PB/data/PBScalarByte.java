@@ -40,14 +40,16 @@ public class PBScalarByte implements DBRTimeEvent, PartionedTime {
 	ByteArray bar = null;
 	short year = 0;
 	EPICSEvent.ScalarByte dbevent = null;
+	PartialPBEventDecoder partialDecoder = null;
 
 	public PBScalarByte(short year, ByteArray bar) {
 		this.bar = bar;
 		this.year = year;
+		this.partialDecoder = new PartialPBEventDecoder(bar);
 	}
 	
 	public PBScalarByte(DBRTimeEvent ev) {
-		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(ev.getEventTimeStamp());
+		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(ev.getEpochSeconds(), ev.getNanos());
 		year = yst.getYear();
 		Builder builder = EPICSEvent.ScalarByte.newBuilder()
 				.setSecondsintoyear(yst.getSecondsintoyear())
@@ -85,8 +87,7 @@ public class PBScalarByte implements DBRTimeEvent, PartionedTime {
         PVStructure timeStampPVStructure = v4Data.getStructureField("timeStamp");
         long secondsPastEpoch = timeStampPVStructure.getLongField("secondsPastEpoch").get();
         int nanoSeconds = timeStampPVStructure.getIntField("nanoseconds").get();
-        Timestamp timestamp = TimeUtils.convertFromEpochSeconds(secondsPastEpoch, nanoSeconds);
-        YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(timestamp);
+        YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(secondsPastEpoch, nanoSeconds);
 
         PVStructure alarmPVStructure = v4Data.getStructureField("alarm");
         int severity = alarmPVStructure.getIntField("severity").get();
@@ -112,6 +113,7 @@ public class PBScalarByte implements DBRTimeEvent, PartionedTime {
 	
 	@Override
 	public Timestamp getEventTimeStamp() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.convertFromYearSecondTimestamp(new YearSecondTimestamp(year, partialDecoder.getSecondsintoyear(), partialDecoder.getNano()));
 		unmarshallEventIfNull();
 		return TimeUtils.convertFromYearSecondTimestamp(new YearSecondTimestamp(year, dbevent.getSecondsintoyear(), dbevent.getNano()));
 	}
@@ -123,16 +125,32 @@ public class PBScalarByte implements DBRTimeEvent, PartionedTime {
 	
 	@Override
 	public int getSecondsIntoYear() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return partialDecoder.getSecondsintoyear();
 		unmarshallEventIfNull();
 		return dbevent.getSecondsintoyear();
 	}
 
 	@Override
 	public long getEpochSeconds() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.getStartOfYearInSeconds(year) + partialDecoder.getSecondsintoyear();
 		unmarshallEventIfNull();
 		return TimeUtils.getStartOfYearInSeconds(year) + dbevent.getSecondsintoyear();
 	}
 
+	@Override
+	public int getNanos() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return partialDecoder.getNano();
+		unmarshallEventIfNull();
+		return dbevent.getNano();
+	}
+
+	@Override
+	public long getEpochNanos() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.convertToEpochNanos(TimeUtils.getStartOfYearInSeconds(year) + partialDecoder.getSecondsintoyear(), partialDecoder.getNano());
+		unmarshallEventIfNull();
+		return TimeUtils.convertToEpochNanos(TimeUtils.getStartOfYearInSeconds(year) + dbevent.getSecondsintoyear(), dbevent.getNano());
+	}
+
 	@Override
 	public ByteArray getRawForm() {
 		return bar;
@@ -146,12 +164,14 @@ public class PBScalarByte implements DBRTimeEvent, PartionedTime {
 
 	@Override
 	public int getStatus() {
+		if(partialDecoder != null && partialDecoder.readAlarm()) return partialDecoder.getStatus();
 		unmarshallEventIfNull();
 		return dbevent.getStatus();
 	}
 
 	@Override
 	public int getSeverity() {
+		if(partialDecoder != null && partialDecoder.readAlarm()) return partialDecoder.getSeverity();
 		unmarshallEventIfNull();
 		return dbevent.getSeverity();
 	}
@@ -200,6 +220,7 @@ public class PBScalarByte implements DBRTimeEvent, PartionedTime {
 		try {
 			if(dbevent == null) {
 				dbevent = EPICSEvent.ScalarByte.newBuilder().mergeFrom(bar.inPlaceUnescape().unescapedData, bar.off, bar.unescapedLen).build();
+				partialDecoder = null;
 			}
 		} catch(Exception ex) {
 			throw new PBParseException(bar.toBytes(), ex);
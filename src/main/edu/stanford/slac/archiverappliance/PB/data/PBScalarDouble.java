@@ -38,14 +38,16 @@ public class PBScalarDouble implements DBRTimeEvent, PartionedTime {
 	ByteArray bar = null;
 	short year = 0;
 	EPICSEvent.ScalarDouble dbevent = null;
+	PartialPBEventDecoder partialDecoder = null;
 
 	public PBScalarDouble(short year, ByteArray bar) {
 		this.year = year;
 		this.bar = bar;
+		this.partialDecoder = new PartialPBEventDecoder(bar, ArchDBRTypes.DBR_SCALAR_DOUBLE);
 	}
 
 	public PBScalarDouble(DBRTimeEvent ev) {
-		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(ev.getEventTimeStamp());
+		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(ev.getEpochSeconds(), ev.getNanos());
 		year = yst.getYear();
 		Builder builder = EPICSEvent.ScalarDouble.newBuilder()
 				.setSecondsintoyear(yst.getSecondsintoyear())
@@ -83,8 +85,7 @@ public class PBScalarDouble implements DBRTimeEvent, PartionedTime {
         PVStructure timeStampPVStructure = v4Data.getStructureField("timeStamp");
         long secondsPastEpoch = timeStampPVStructure.getLongField("secondsPastEpoch").get();
         int nanoSeconds = timeStampPVStructure.getIntField("nanoseconds").get();
-        Timestamp timestamp = TimeUtils.convertFromEpochSeconds(secondsPastEpoch, nanoSeconds);
-        YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(timestamp);
+        YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(secondsPastEpoch, nanoSeconds);
 
         PVStructure alarmPVStructure = v4Data.getStructureField("alarm");
         int severity = alarmPVStructure.getIntField("severity").get();
@@ -112,6 +113,7 @@ public class PBScalarDouble implements DBRTimeEvent, PartionedTime {
 	
 	@Override
 	public Timestamp getEventTimeStamp() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.convertFromYearSecondTimestamp(new YearSecondTimestamp(year, partialDecoder.getSecondsintoyear(), partialDecoder.getNano()));
 		unmarshallEventIfNull();
 		return TimeUtils.convertFromYearSecondTimestamp(new YearSecondTimestamp(year, dbevent.getSecondsintoyear(), dbevent.getNano()));
 	}
@@ -123,16 +125,32 @@ public class PBScalarDouble implements DBRTimeEvent, PartionedTime {
 	
 	@Override
 	public int getSecondsIntoYear() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return partialDecoder.getSecondsintoyear();
 		unmarshallEventIfNull();
 		return dbevent.getSecondsintoyear();
 	}
 
 	@Override
 	public long getEpochSeconds() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.getStartOfYearInSeconds(year) + partialDecoder.getSecondsintoyear();
 		unmarshallEventIfNull();
 		return TimeUtils.getStartOfYearInSeconds(year) + dbevent.getSecondsintoyear();
 	}
 
+	@Override
+	public int getNanos() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return partialDecoder.getNano();
+		unmarshallEventIfNull();
+		return dbevent.getNano();
+	}
+
+	@Override
+	public long getEpochNanos() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.convertToEpochNanos(TimeUtils.getStartOfYearInSeconds(year) + partialDecoder.getSecondsintoyear(), partialDecoder.getNano());
+		unmarshallEventIfNull();
+		return TimeUtils.convertToEpochNanos(TimeUtils.getStartOfYearInSeconds(year) + dbevent.getSecondsintoyear(), dbevent.getNano());
+	}
+
 	@Override
 	public ByteArray getRawForm() {
 		return bar;
@@ -140,18 +158,21 @@ public class PBScalarDouble implements DBRTimeEvent, PartionedTime {
 
 	@Override
 	public SampleValue getSampleValue() {
+		if(partialDecoder != null && partialDecoder.readValue()) return new ScalarValue<Double>(partialDecoder.getValue());
 		unmarshallEventIfNull();
 		return new ScalarValue<Double>(dbevent.getVal());
 	}
 
 	@Override
 	public int getStatus() {
+		if(partialDecoder != null && partialDecoder.readAlarm()) return partialDecoder.getStatus();
 		unmarshallEventIfNull();
 		return dbevent.getStatus();
 	}
 
 	@Override
 	public int getSeverity() {
+		if(partialDecoder != null && partialDecoder.readAlarm()) return partialDecoder.getSeverity();
 		unmarshallEventIfNull();
 		return dbevent.getSeverity();
 	}
@@ -198,6 +219,7 @@ public class PBScalarDouble implements DBRTimeEvent, PartionedTime {
 		try {
 			if(dbevent == null) {
 				dbevent = EPICSEvent.ScalarDouble.newBuilder().mergeFrom(bar.inPlaceUnescape().unescapedData, bar.off, bar.unescapedLen).build();
+				partialDecoder = null;
 			}
 		} catch(Exception ex) {
 			throw new PBParseException(bar.toBytes(), ex);
@@ -8,7 +8,6 @@
 package edu.stanford.slac.archiverappliance.PB.data;
 
 import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -19,8 +18,8 @@ import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.common.YearSecondTimestamp;
 import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.PrimitiveVectorValue;
 import org.epics.archiverappliance.data.SampleValue;
-import org.epics.archiverappliance.data.VectorValue;
 import org.epics.pvdata.pv.ByteArrayData;
 import org.epics.pvdata.pv.PVByteArray;
 import org.epics.pvdata.pv.PVStructure;
@@ -44,22 +43,18 @@ public class PBVectorByte implements DBRTimeEvent, PartionedTime {
 	ByteArray bar = null;
 	short year = 0;
 	EPICSEvent.VectorChar dbevent = null;
+	PartialPBEventDecoder partialDecoder = null;
 
 	
 	public PBVectorByte(short year, ByteArray bar) {
 		this.bar = bar;
 		this.year = year;
+		this.partialDecoder = new PartialPBEventDecoder(bar);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public PBVectorByte(DBRTimeEvent ev) {
-		List<Byte> bytes = ev.getSampleValue().getValues();
-		byte[] vals = new byte[bytes.size()];
-		int i = 0;
-		for(Byte b : bytes) {
-			vals[i++] = b;
-		}
-		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(ev.getEventTimeStamp());
+		byte[] vals = PackedVectorCodec.toBytes(ev.getSampleValue());
+		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(ev.getEpochSeconds(), ev.getNanos());
 		year = yst.getYear();
 		Builder builder = EPICSEvent.VectorChar.newBuilder()
 				.setSecondsintoyear(yst.getSecondsintoyear())
@@ -102,8 +97,7 @@ public class PBVectorByte implements DBRTimeEvent, PartionedTime {
 		PVStructure timeStampPVStructure = v4Data.getStructureField("timeStamp");
 		long secondsPastEpoch = timeStampPVStructure.getLongField("secondsPastEpoch").get();
 		int nanoSeconds = timeStampPVStructure.getIntField("nanoseconds").get();
-		Timestamp timestamp = TimeUtils.convertFromEpochSeconds(secondsPastEpoch, nanoSeconds);
-		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(timestamp);
+		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(secondsPastEpoch, nanoSeconds);
 
 		PVStructure alarmPVStructure = v4Data.getStructureField("alarm");
 		int severity = alarmPVStructure.getIntField("severity").get();
@@ -133,6 +127,7 @@ public class PBVectorByte implements DBRTimeEvent, PartionedTime {
 	
 	@Override
 	public Timestamp getEventTimeStamp() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.convertFromYearSecondTimestamp(new YearSecondTimestamp(year, partialDecoder.getSecondsintoyear(), partialDecoder.getNano()));
 		unmarshallEventIfNull();
 		return TimeUtils.convertFromYearSecondTimestamp(new YearSecondTimestamp(year, dbevent.getSecondsintoyear(), dbevent.getNano()));
 	}
@@ -144,16 +139,32 @@ public class PBVectorByte implements DBRTimeEvent, PartionedTime {
 	
 	@Override
 	public int getSecondsIntoYear() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return partialDecoder.getSecondsintoyear();
 		unmarshallEventIfNull();
 		return dbevent.getSecondsintoyear();
 	}
 
 	@Override
 	public long getEpochSeconds() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.getStartOfYearInSeconds(year) + partialDecoder.getSecondsintoyear();
 		unmarshallEventIfNull();
 		return TimeUtils.getStartOfYearInSeconds(year) + dbevent.getSecondsintoyear();
 	}
 
+	@Override
+	public int getNanos() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return partialDecoder.getNano();
+		unmarshallEventIfNull();
+		return dbevent.getNano();
+	}
+
+	@Override
+	public long getEpochNanos() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.convertToEpochNanos(TimeUtils.getStartOfYearInSeconds(year) + partialDecoder.getSecondsintoyear(), partialDecoder.getNano());
+		unmarshallEventIfNull();
+		return TimeUtils.convertToEpochNanos(TimeUtils.getStartOfYearInSeconds(year) + dbevent.getSecondsintoyear(), dbevent.getNano());
+	}
+
 	@Override
 	public ByteArray getRawForm() {
 		return bar;
@@ -162,22 +173,19 @@ public class PBVectorByte implements DBRTimeEvent, PartionedTime {
 	@Override
 	public SampleValue getSampleValue() {
 		unmarshallEventIfNull();
-		byte[] bytes = dbevent.getVal().toByteArray();
-		ArrayList<Byte> ret = new ArrayList<Byte>(bytes.length);
-		for(byte b : bytes) {
-			ret.add(new Byte(b));
-		}
-		return new VectorValue<Byte>(ret);
+		return new PrimitiveVectorValue.OfByte(dbevent.getVal().toByteArray());
 	}
 
 	@Override
 	public int getStatus() {
+		if(partialDecoder != null && partialDecoder.readAlarm()) return partialDecoder.getStatus();
 		unmarshallEventIfNull();
 		return dbevent.getStatus();
 	}
 
 	@Override
 	public int getSeverity() {
+		if(partialDecoder != null && partialDecoder.readAlarm()) return partialDecoder.getSeverity();
 		unmarshallEventIfNull();
 		return dbevent.getSeverity();
 	}
@@ -224,6 +232,7 @@ public class PBVectorByte implements DBRTimeEvent, PartionedTime {
 		try {
 			if(dbevent == null) {
 				dbevent = EPICSEvent.VectorChar.newBuilder().mergeFrom(bar.inPlaceUnescape().unescapedData, bar.off, bar.unescapedLen).build();
+				partialDecoder = null;
 			}
 		} catch(Exception ex) {
 			throw new PBParseException(bar.toBytes(), ex);
@@ -8,7 +8,6 @@
 package edu.stanford.slac.archiverappliance.PB.data;
 
 import java.sql.Timestamp;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -19,8 +18,8 @@ import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.common.YearSecondTimestamp;
 import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.PrimitiveVectorValue;
 import org.epics.archiverappliance.data.SampleValue;
-import org.epics.archiverappliance.data.VectorValue;
 import org.epics.pvdata.pv.IntArrayData;
 import org.epics.pvdata.pv.PVIntArray;
 import org.epics.pvdata.pv.PVStructure;
@@ -28,7 +27,6 @@ import org.epics.pvdata.pv.ScalarType;
 
 import edu.stanford.slac.archiverappliance.PB.EPICSEvent;
 import edu.stanford.slac.archiverappliance.PB.EPICSEvent.FieldValue;
-import edu.stanford.slac.archiverappliance.PB.EPICSEvent.VectorInt.Builder;
 import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
 import gov.aps.jca.dbr.DBR;
 import gov.aps.jca.dbr.DBR_TIME_Int;
@@ -42,56 +40,34 @@ public class PBVectorInt implements DBRTimeEvent, PartionedTime {
 	ByteArray bar = null;
 	short year = 0;
 	EPICSEvent.VectorInt dbevent = null;
+	PartialPBEventDecoder partialDecoder = null;
 
 	public PBVectorInt(short year, ByteArray bar) {
 		this.bar = bar;
 		this.year = year;
+		this.partialDecoder = new PartialPBEventDecoder(bar);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public PBVectorInt(DBRTimeEvent ev) {
-		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(ev.getEventTimeStamp());
+		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(ev.getEpochSeconds(), ev.getNanos());
 		year = yst.getYear();
-		Builder builder = EPICSEvent.VectorInt.newBuilder()
-		.setSecondsintoyear(yst.getSecondsintoyear())
-		.setNano(yst.getNanos())
-		.addAllVal(ev.getSampleValue().getValues());
-		if(ev.getSeverity() != 0) builder.setSeverity(ev.getSeverity());
-		if(ev.getStatus() != 0) builder.setStatus(ev.getStatus());
-		if(ev.hasFieldValues()) {
-			HashMap<String, String> fields = ev.getFields();
-			for(String fieldName : fields.keySet()) {
-				FieldValue fv = EPICSEvent.FieldValue.newBuilder().setName(fieldName).setVal(fields.get(fieldName)).build();
-				builder.addFieldvalues(fv);
-			}
-			builder.setFieldactualchange(ev.isActualChange());
-		}
-		dbevent = builder.build();
-		bar = new ByteArray(LineEscaper.escapeNewLines(dbevent.toByteArray()));
+		bar = PackedVectorCodec.encode(yst, ev.getSeverity(), ev.getStatus(), PackedVectorCodec.toInts(ev.getSampleValue()), ev);
+		partialDecoder = new PartialPBEventDecoder(bar);
 	}
 
 	public PBVectorInt(DBR dbr) {
 		DBR_TIME_Int realtype = (DBR_TIME_Int) dbr;
 		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(realtype.getTimeStamp());
 		year = yst.getYear();
-		ArrayList<Integer> vals = new ArrayList<Integer>(realtype.getCount());
-		for(int val : realtype.getIntValue()) vals.add(val);
-		Builder builder = EPICSEvent.VectorInt.newBuilder()
-		.setSecondsintoyear(yst.getSecondsintoyear())
-		.setNano(yst.getNanos())
-		.addAllVal(vals);
-		if(realtype.getSeverity().getValue() != 0) builder.setSeverity(realtype.getSeverity().getValue());
-		if(realtype.getStatus().getValue() != 0) builder.setStatus(realtype.getStatus().getValue());
-		dbevent = builder.build();
-		bar = new ByteArray(LineEscaper.escapeNewLines(dbevent.toByteArray()));;
+		bar = PackedVectorCodec.encode(yst, realtype.getSeverity().getValue(), realtype.getStatus().getValue(), realtype.getIntValue(), null);
+		partialDecoder = new PartialPBEventDecoder(bar);
 	}
 	
 	public PBVectorInt(PVStructure v4Data) {
 		PVStructure timeStampPVStructure = v4Data.getStructureField("timeStamp");
 		long secondsPastEpoch = timeStampPVStructure.getLongField("secondsPastEpoch").get();
 		int nanoSeconds = timeStampPVStructure.getIntField("nanoseconds").get();
-		Timestamp timestamp = TimeUtils.convertFromEpochSeconds(secondsPastEpoch, nanoSeconds);
-		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(timestamp);
+		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(secondsPastEpoch, nanoSeconds);
 
 		PVStructure alarmPVStructure = v4Data.getStructureField("alarm");
 		int severity = alarmPVStructure.getIntField("severity").get();
@@ -100,21 +76,9 @@ public class PBVectorInt implements DBRTimeEvent, PartionedTime {
 		PVIntArray pvArray = (PVIntArray) v4Data.getScalarArrayField("value", ScalarType.pvInt);
 		IntArrayData arrayData = new IntArrayData();
 		pvArray.get(0, pvArray.getLength(), arrayData);
-		ArrayList<Integer> vals = new ArrayList<Integer>();
-		int[] data = arrayData.data;
-		for(int dataitem : data) { 
-			vals.add(dataitem);
-		}
-
 		year = yst.getYear();
-		Builder builder = EPICSEvent.VectorInt.newBuilder()
-				.setSecondsintoyear(yst.getSecondsintoyear())
-				.setNano(yst.getNanos())
-				.addAllVal(vals);
-		if(severity != 0) builder.setSeverity(severity);
-		if(status != 0) builder.setStatus(status);
-		dbevent = builder.build();
-		bar = new ByteArray(LineEscaper.escapeNewLines(dbevent.toByteArray()));
+		bar = PackedVectorCodec.encode(yst, severity, status, arrayData.data, null);
+		partialDecoder = new PartialPBEventDecoder(bar);
 	}
 
 	@Override
@@ -124,6 +88,7 @@ public class PBVectorInt implements DBRTimeEvent, PartionedTime {
 	
 	@Override
 	public Timestamp getEventTimeStamp() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.convertFromYearSecondTimestamp(new YearSecondTimestamp(year, partialDecoder.getSecondsintoyear(), partialDecoder.getNano()));
 		unmarshallEventIfNull();
 		return TimeUtils.convertFromYearSecondTimestamp(new YearSecondTimestamp(year, dbevent.getSecondsintoyear(), dbevent.getNano()));
 	}
@@ -135,16 +100,32 @@ public class PBVectorInt implements DBRTimeEvent, PartionedTime {
 	
 	@Override
 	public int getSecondsIntoYear() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return partialDecoder.getSecondsintoyear();
 		unmarshallEventIfNull();
 		return dbevent.getSecondsintoyear();
 	}
 
 	@Override
 	public long getEpochSeconds() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.getStartOfYearInSeconds(year) + partialDecoder.getSecondsintoyear();
 		unmarshallEventIfNull();
 		return TimeUtils.getStartOfYearInSeconds(year) + dbevent.getSecondsintoyear();
 	}
 
+	@Override
+	public int getNanos() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return partialDecoder.getNano();
+		unmarshallEventIfNull();
+		return dbevent.getNano();
+	}
+
+	@Override
+	public long getEpochNanos() {
+		if(partialDecoder != null && partialDecoder.readTimestamp()) return TimeUtils.convertToEpochNanos(TimeUtils.getStartOfYearInSeconds(year) + partialDecoder.getSecondsintoyear(), partialDecoder.getNano());
+		unmarshallEventIfNull();
+		return TimeUtils.convertToEpochNanos(TimeUtils.getStartOfYearInSeconds(year) + dbevent.getSecondsintoyear(), dbevent.getNano());
+	}
+
 	@Override
 	public ByteArray getRawForm() {
 		return bar;
@@ -152,18 +133,33 @@ public class PBVectorInt implements DBRTimeEvent, PartionedTime {
 
 	@Override
 	public SampleValue getSampleValue() {
-		unmarshallEventIfNull();
-		return new VectorValue<Integer>(dbevent.getValList());
+		if(dbevent != null) {
+			List<Integer> vals = dbevent.getValList();
+			int[] ret = new int[vals.size()];
+			int i = 0;
+			for(int val : vals) ret[i++] = val;
+			return new PrimitiveVectorValue.OfInt(ret);
+		}
+		// Read the packed values straight into an array rather than have the generated code box them.
+		try {
+			return new PrimitiveVectorValue.OfInt(PackedVectorCodec.decodeInts(bar));
+		} catch(PBParseException ex) {
+			// Let the generated code generate the exception
+			unmarshallEventIfNull();
+			return getSampleValue();
+		}
 	}
 
 	@Override
 	public int getStatus() {
+		if(partialDecoder != null && partialDecoder.readAlarm()) return partialDecoder.getStatus();
 		unmarshallEventIfNull();
 		return dbevent.getStatus();
 	}
 
 	@Override
 	public int getSeverity() {
+		if(partialDecoder != null && partialDecoder.readAlarm()) return partialDecoder.getSeverity();
 		unmarshallEventIfNull();
 		return dbevent.getSeverity();
 	}
@@ -210,6 +206,7 @@ public class PBVectorInt implements DBRTimeEvent, PartionedTime {
 		try {
 			if(dbevent == null) {
 				dbevent = EPICSEvent.VectorInt.newBuilder().mergeFrom(bar.inPlaceUnescape().unescapedData, bar.off, bar.unescapedLen).build();
+				partialDecoder = null;
 			}
 		} catch(Exception ex) {
 			throw new PBParseException(bar.toBytes(), ex);
@@ -0,0 +1,419 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PB.data;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.common.YearSecondTimestamp;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.PrimitiveVectorValue;
+import org.epics.archiverappliance.data.SampleValue;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Reads and writes the packed val field of the VectorDouble/VectorFloat/VectorInt/VectorShort/VectorEnum messages directly from/to primitive arrays.
+ * The generated protobuf code holds repeated fields as Lists of boxed numbers; so a waveform gets boxed once when we build the message and again when we parse it.
+ * The bytes we write are the same as what the generated code writes (fields in field number order, val packed, severity/status only if non-zero); so the two can be mixed freely.
+ * This is the only place that knows how the elements of the val field are encoded; the engine's VectorSampleBlock and the DeltaVectorCodec use this as well.
+ * @author mshankar
+ *
+ */
+public class PackedVectorCodec {
+	private static final int FIELD_SECONDSINTOYEAR = 1;
+	private static final int FIELD_NANO = 2;
+	private static final int FIELD_VAL = 3;
+	private static final int FIELD_SEVERITY = 4;
+	private static final int FIELD_STATUS = 5;
+	private static final int FIELD_REPEATCOUNT = 6;
+	private static final int FIELD_FIELDVALUES = 7;
+	private static final int FIELD_FIELDACTUALCHANGE = 8;
+	private static final int FIELD_FIELDVALUE_NAME = 1;
+	private static final int FIELD_FIELDVALUE_VAL = 2;
+
+	/**
+	 * The element types of the val field.
+	 * Doubles and floats are packed doubles and floats, ints are packed sfixed32's, shorts and enums are packed sint32's and bytes are a bytes field.
+	 */
+	public enum ElementType {
+		DOUBLE, FLOAT, SFIXED32, SINT32, BYTES;
+
+		public static ElementType forDBRType(ArchDBRTypes type) {
+			switch(type) {
+			case DBR_WAVEFORM_DOUBLE: return DOUBLE;
+			case DBR_WAVEFORM_FLOAT: return FLOAT;
+			case DBR_WAVEFORM_INT: return SFIXED32;
+			case DBR_WAVEFORM_SHORT: case DBR_WAVEFORM_ENUM: return SINT32;
+			case DBR_WAVEFORM_BYTE: return BYTES;
+			default: throw new IllegalArgumentException("There is no packed val field for " + type);
+			}
+		}
+	}
+
+	public static ByteArray encode(YearSecondTimestamp yst, int severity, int status, double[] vals, DBRTimeEvent fieldValuesFrom) {
+		return encode(yst, severity, status, ElementType.DOUBLE, vals, vals.length, fieldValuesFrom);
+	}
+
+	public static ByteArray encode(YearSecondTimestamp yst, int severity, int status, float[] vals, DBRTimeEvent fieldValuesFrom) {
+		return encode(yst, severity, status, ElementType.FLOAT, vals, vals.length, fieldValuesFrom);
+	}
+
+	public static ByteArray encode(YearSecondTimestamp yst, int severity, int status, int[] vals, DBRTimeEvent fieldValuesFrom) {
+		return encode(yst, severity, status, ElementType.SFIXED32, vals, vals.length, fieldValuesFrom);
+	}
+
+	/**
+	 * Shorts (and enums) are stored as sint32.
+	 */
+	public static ByteArray encode(YearSecondTimestamp yst, int severity, int status, short[] vals, DBRTimeEvent fieldValuesFrom) {
+		return encode(yst, severity, status, ElementType.SINT32, vals, vals.length, fieldValuesFrom);
+	}
+
+	private static ByteArray encode(YearSecondTimestamp yst, int severity, int status, ElementType elementType, Object vals, int count, DBRTimeEvent fieldValuesFrom) {
+		boolean hasFieldValues = fieldValuesFrom != null && fieldValuesFrom.hasFieldValues();
+		return encode(yst, severity, status, 0, elementType, vals, 0, count, hasFieldValues ? fieldValuesFrom.getFields() : null, hasFieldValues && fieldValuesFrom.isActualChange());
+	}
+
+	/**
+	 * Encode a sample whose elements are <code>count</code> elements of <code>vals</code> starting at <code>offset</code>.
+	 * @param yst
+	 * @param severity
+	 * @param status
+	 * @param repeatCount - Written only if non-zero
+	 * @param elementType
+	 * @param vals - A double[], float[], int[], short[] or byte[] depending on the element type.
+	 * @param offset
+	 * @param count
+	 * @param fields - The field values, if any; null otherwise.
+	 * @param actualChange - This is written only if we have field values.
+	 * @return The escaped line
+	 */
+	public static ByteArray encode(YearSecondTimestamp yst, int severity, int status, int repeatCount, ElementType elementType, Object vals, int offset, int count, Map<String, String> fields, boolean actualChange) {
+		try {
+			// The bytes field of a VectorChar is written even if it is empty; this is what the generated code does.
+			boolean writeVal = count > 0 || elementType == ElementType.BYTES;
+			int valuesSize = valuesSize(elementType, vals, offset, count);
+			int messageSize = CodedOutputStream.computeUInt32Size(FIELD_SECONDSINTOYEAR, yst.getSecondsintoyear()) + CodedOutputStream.computeUInt32Size(FIELD_NANO, yst.getNanos());
+			if(writeVal) messageSize += CodedOutputStream.computeTagSize(FIELD_VAL) + CodedOutputStream.computeRawVarint32Size(valuesSize) + valuesSize;
+			if(severity != 0) messageSize += CodedOutputStream.computeInt32Size(FIELD_SEVERITY, severity);
+			if(status != 0) messageSize += CodedOutputStream.computeInt32Size(FIELD_STATUS, status);
+			if(repeatCount != 0) messageSize += CodedOutputStream.computeUInt32Size(FIELD_REPEATCOUNT, repeatCount);
+			if(fields != null) {
+				for(Map.Entry<String, String> field : fields.entrySet()) {
+					int fieldValueSize = fieldValueSize(field);
+					messageSize += CodedOutputStream.computeTagSize(FIELD_FIELDVALUES) + CodedOutputStream.computeRawVarint32Size(fieldValueSize) + fieldValueSize;
+				}
+				messageSize += CodedOutputStream.computeBoolSize(FIELD_FIELDACTUALCHANGE, actualChange);
+			}
+
+			// The fields are written in field number order, which is what the generated code does.
+			byte[] message = new byte[messageSize];
+			CodedOutputStream os = CodedOutputStream.newInstance(message);
+			os.writeUInt32(FIELD_SECONDSINTOYEAR, yst.getSecondsintoyear());
+			os.writeUInt32(FIELD_NANO, yst.getNanos());
+			if(writeVal) {
+				os.writeTag(FIELD_VAL, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+				os.writeRawVarint32(valuesSize);
+				writeValues(os, elementType, vals, offset, count);
+			}
+			if(severity != 0) os.writeInt32(FIELD_SEVERITY, severity);
+			if(status != 0) os.writeInt32(FIELD_STATUS, status);
+			if(repeatCount != 0) os.writeUInt32(FIELD_REPEATCOUNT, repeatCount);
+			if(fields != null) {
+				for(Map.Entry<String, String> field : fields.entrySet()) {
+					os.writeTag(FIELD_FIELDVALUES, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+					os.writeRawVarint32(fieldValueSize(field));
+					os.writeString(FIELD_FIELDVALUE_NAME, field.getKey());
+					os.writeString(FIELD_FIELDVALUE_VAL, field.getValue());
+				}
+				os.writeBool(FIELD_FIELDACTUALCHANGE, actualChange);
+			}
+			os.checkNoSpaceLeft();
+			return new ByteArray(LineEscaper.escapeNewLines(message));
+		} catch(IOException ex) {
+			throw new RuntimeException("Exception encoding vector", ex);
+		}
+	}
+
+	private static int fieldValueSize(Map.Entry<String, String> field) {
+		return CodedOutputStream.computeStringSize(FIELD_FIELDVALUE_NAME, field.getKey()) + CodedOutputStream.computeStringSize(FIELD_FIELDVALUE_VAL, field.getValue());
+	}
+
+	private static int valuesSize(ElementType elementType, Object vals, int offset, int count) {
+		switch(elementType) {
+		case DOUBLE: return 8*count;
+		case FLOAT: case SFIXED32: return 4*count;
+		case SINT32: {
+			short[] shorts = (short[]) vals;
+			int valuesSize = 0;
+			for(int i = 0; i < count; i++) valuesSize += CodedOutputStream.computeSInt32SizeNoTag(shorts[offset + i]);
+			return valuesSize;
+		}
+		case BYTES: return count;
+		}
+		throw new IllegalStateException();
+	}
+
+	private static void writeValues(CodedOutputStream os, ElementType elementType, Object vals, int offset, int count) throws IOException {
+		switch(elementType) {
+		case DOUBLE: { double[] doubles = (double[]) vals; for(int i = 0; i < count; i++) os.writeDoubleNoTag(doubles[offset + i]); break; }
+		case FLOAT: { float[] floats = (float[]) vals; for(int i = 0; i < count; i++) os.writeFloatNoTag(floats[offset + i]); break; }
+		case SFIXED32: { int[] ints = (int[]) vals; for(int i = 0; i < count; i++) os.writeSFixed32NoTag(ints[offset + i]); break; }
+		case SINT32: { short[] shorts = (short[]) vals; for(int i = 0; i < count; i++) os.writeSInt32NoTag(shorts[offset + i]); break; }
+		case BYTES: os.writeRawBytes((byte[]) vals, offset, count); break;
+		}
+	}
+
+	/**
+	 * Read the elements of a packed val field as the bits of each element in a long.
+	 * Doubles are the raw long bits, floats are the raw int bits (as an unsigned number) and ints and shorts are the value itself.
+	 * The stream should be positioned at the start of the packed elements and <code>length</code> is the length of the field.
+	 */
+	public static long[] readPackedBits(CodedInputStream is, ElementType elementType, int length) throws IOException {
+		long[] bits;
+		switch(elementType) {
+		case DOUBLE:
+			bits = new long[length/8];
+			for(int i = 0; i < bits.length; i++) bits[i] = is.readRawLittleEndian64();
+			return bits;
+		case FLOAT:
+			bits = new long[length/4];
+			for(int i = 0; i < bits.length; i++) bits[i] = is.readRawLittleEndian32() & 0xFFFFFFFFL;
+			return bits;
+		case SFIXED32:
+			bits = new long[length/4];
+			for(int i = 0; i < bits.length; i++) bits[i] = is.readRawLittleEndian32();
+			return bits;
+		case SINT32:
+			bits = new long[length];
+			int count = 0;
+			while(is.getBytesUntilLimit() > 0) bits[count++] = is.readSInt32();
+			return Arrays.copyOf(bits, count);
+		default:
+			throw new IllegalArgumentException("Cannot read the elements of " + elementType + " as bits");
+		}
+	}
+
+	/**
+	 * The size of the packed elements written by writePackedBits.
+	 */
+	public static int packedBitsSize(ElementType elementType, long[] bits) {
+		switch(elementType) {
+		case DOUBLE: return bits.length*8;
+		case FLOAT: case SFIXED32: return bits.length*4;
+		case SINT32: {
+			int size = 0;
+			for(long value : bits) size += CodedOutputStream.computeSInt32SizeNoTag((int) value);
+			return size;
+		}
+		default:
+			throw new IllegalArgumentException("Cannot write the elements of " + elementType + " as bits");
+		}
+	}
+
+	/**
+	 * Write the elements read by readPackedBits back; this writes only the elements and not the tag or the length.
+	 */
+	public static void writePackedBits(CodedOutputStream os, ElementType elementType, long[] bits) throws IOException {
+		for(long value : bits) {
+			switch(elementType) {
+			case DOUBLE: os.writeRawLittleEndian64(value); break;
+			case FLOAT: case SFIXED32: os.writeRawLittleEndian32((int) value); break;
+			case SINT32: os.writeSInt32NoTag((int) value); break;
+			default: throw new IllegalArgumentException("Cannot write the elements of " + elementType + " as bits");
+			}
+		}
+	}
+
+	public static double[] decodeDoubles(ByteArray bar) {
+		return (double[]) decode(bar, ElementType.DOUBLE);
+	}
+
+	public static float[] decodeFloats(ByteArray bar) {
+		return (float[]) decode(bar, ElementType.FLOAT);
+	}
+
+	public static int[] decodeInts(ByteArray bar) {
+		return (int[]) decode(bar, ElementType.SFIXED32);
+	}
+
+	public static short[] decodeShorts(ByteArray bar) {
+		return (short[]) decode(bar, ElementType.SINT32);
+	}
+
+	/**
+	 * Read only the val field; we skip the other fields.
+	 * We accept both the packed and the unpacked forms of the field like the generated code does.
+	 */
+	private static Object decode(ByteArray bar, ElementType elementType) {
+		try {
+			CodedInputStream is = CodedInputStream.newInstance(bar.inPlaceUnescape().unescapedData, bar.off, bar.unescapedLen);
+			ElementReader reader = new ElementReader(elementType);
+			while(true) {
+				int tag = is.readTag();
+				if(tag == 0) break;
+				if(WireFormat.getTagFieldNumber(tag) != FIELD_VAL) {
+					is.skipField(tag);
+					continue;
+				}
+				if((tag & 0x7) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+					int length = is.readRawVarint32();
+					int oldLimit = is.pushLimit(length);
+					reader.ensureCapacity(elementType == ElementType.DOUBLE ? length/8 : (elementType == ElementType.SINT32 ? length/2 : length/4));
+					while(is.getBytesUntilLimit() > 0) {
+						reader.read(is);
+					}
+					is.popLimit(oldLimit);
+				} else {
+					reader.read(is);
+				}
+			}
+			return reader.toArray();
+		} catch(Exception ex) {
+			throw new PBParseException(bar.toBytes(), ex);
+		}
+	}
+
+	/**
+	 * Accumulates the elements into a growing primitive array.
+	 */
+	private static class ElementReader {
+		private final ElementType elementType;
+		private double[] doubles;
+		private float[] floats;
+		private int[] ints;
+		private short[] shorts;
+		private int count = 0;
+
+		ElementReader(ElementType elementType) {
+			this.elementType = elementType;
+			ensureCapacity(16);
+		}
+
+		void ensureCapacity(int capacity) {
+			switch(elementType) {
+			case DOUBLE: doubles = grow(doubles, count + capacity); break;
+			case FLOAT: floats = grow(floats, count + capacity); break;
+			case SFIXED32: ints = grow(ints, count + capacity); break;
+			case SINT32: shorts = grow(shorts, count + capacity); break;
+			default: throw new IllegalArgumentException("Cannot decode " + elementType + " into a primitive array");
+			}
+		}
+
+		void read(CodedInputStream is) throws IOException {
+			switch(elementType) {
+			case DOUBLE:
+				if(count == doubles.length) ensureCapacity(count);
+				doubles[count++] = is.readDouble();
+				break;
+			case FLOAT:
+				if(count == floats.length) ensureCapacity(count);
+				floats[count++] = is.readFloat();
+				break;
+			case SFIXED32:
+				if(count == ints.length) ensureCapacity(count);
+				ints[count++] = is.readSFixed32();
+				break;
+			case SINT32:
+				if(count == shorts.length) ensureCapacity(count);
+				shorts[count++] = (short) is.readSInt32();
+				break;
+			default:
+				throw new IllegalArgumentException("Cannot decode " + elementType + " into a primitive array");
+			}
+		}
+
+		Object toArray() {
+			switch(elementType) {
+			case DOUBLE: return doubles.length == count ? doubles : Arrays.copyOf(doubles, count);
+			case FLOAT: return floats.length == count ? floats : Arrays.copyOf(floats, count);
+			case SFIXED32: return ints.length == count ? ints : Arrays.copyOf(ints, count);
+			case SINT32: return shorts.length == count ? shorts : Arrays.copyOf(shorts, count);
+			default: throw new IllegalArgumentException("Cannot decode " + elementType + " into a primitive array");
+			}
+		}
+
+		private static double[] grow(double[] arr, int capacity) {
+			if(arr != null && arr.length >= capacity) return arr;
+			return arr == null ? new double[capacity] : Arrays.copyOf(arr, capacity);
+		}
+
+		private static float[] grow(float[] arr, int capacity) {
+			if(arr != null && arr.length >= capacity) return arr;
+			return arr == null ? new float[capacity] : Arrays.copyOf(arr, capacity);
+		}
+
+		private static int[] grow(int[] arr, int capacity) {
+			if(arr != null && arr.length >= capacity) return arr;
+			return arr == null ? new int[capacity] : Arrays.copyOf(arr, capacity);
+		}
+
+		private static short[] grow(short[] arr, int capacity) {
+			if(arr != null && arr.length >= capacity) return arr;
+			return arr == null ? new short[capacity] : Arrays.copyOf(arr, capacity);
+		}
+	}
+
+	/**
+	 * Get the values of a SampleValue as a primitive array; if this is a PrimitiveVectorValue, we use the array as is.
+	 * Otherwise, we unbox the elements once.
+	 */
+	public static double[] toDoubles(SampleValue sampleValue) {
+		if(sampleValue instanceof PrimitiveVectorValue.OfDouble) return ((PrimitiveVectorValue.OfDouble) sampleValue).getDoubles();
+		List<?> values = sampleValue.getValues();
+		double[] ret = new double[values.size()];
+		int i = 0;
+		for(Object value : values) ret[i++] = ((Number) value).doubleValue();
+		return ret;
+	}
+
+	public static float[] toFloats(SampleValue sampleValue) {
+		if(sampleValue instanceof PrimitiveVectorValue.OfFloat) return ((PrimitiveVectorValue.OfFloat) sampleValue).getFloats();
+		List<?> values = sampleValue.getValues();
+		float[] ret = new float[values.size()];
+		int i = 0;
+		for(Object value : values) ret[i++] = ((Number) value).floatValue();
+		return ret;
+	}
+
+	public static int[] toInts(SampleValue sampleValue) {
+		if(sampleValue instanceof PrimitiveVectorValue.OfInt) return ((PrimitiveVectorValue.OfInt) sampleValue).getInts();
+		List<?> values = sampleValue.getValues();
+		int[] ret = new int[values.size()];
+		int i = 0;
+		for(Object value : values) ret[i++] = ((Number) value).intValue();
+		return ret;
+	}
+
+	public static short[] toShorts(SampleValue sampleValue) {
+		if(sampleValue instanceof PrimitiveVectorValue.OfShort) return ((PrimitiveVectorValue.OfShort) sampleValue).getShorts();
+		List<?> values = sampleValue.getValues();
+		short[] ret = new short[values.size()];
+		int i = 0;
+		for(Object value : values) ret[i++] = ((Number) value).shortValue();
+		return ret;
+	}
+
+	public static byte[] toBytes(SampleValue sampleValue) {
+		if(sampleValue instanceof PrimitiveVectorValue.OfByte) return ((PrimitiveVectorValue.OfByte) sampleValue).getBytes();
+		List<?> values = sampleValue.getValues();
+		byte[] ret = new byte[values.size()];
+		int i = 0;
+		for(Object value : values) ret[i++] = ((Number) value).byteValue();
+		return ret;
+	}
+}
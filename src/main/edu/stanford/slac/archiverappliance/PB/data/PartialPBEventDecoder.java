@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PB.data;
+
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+
+import edu.stanford.slac.archiverappliance.PB.utils.EscapedPBEventHeader;
+
+/**
+ * Decodes the timestamp and alarm fields (and the value of the numeric scalars) of a PB event on demand without parsing the whole message.
+ * The PB* classes create one of these when they have the bytes but have not parsed the message and use it until someone asks for something else (for example, the field values) or wants to change the event.
+ * At that point, they parse the whole message as before and drop the decoder; so the decoder is never out of date with the bytes.
+ * The timestamp is in the first two tags; the severity and status come after the value, so reading these means skipping over the value.
+ * Each field is read at most once for an event; the results are kept in the header.
+ * If we cannot make sense of the bytes, the read methods return false and the caller parses the whole message (which generates the PBParseException).
+ * @author mshankar
+ *
+ */
+public class PartialPBEventDecoder extends EscapedPBEventHeader {
+	private final ByteArray bar;
+	private boolean timestampRead = false;
+	private boolean alarmRead = false;
+	private boolean failed = false;
+
+	public PartialPBEventDecoder(ByteArray bar) {
+		this.bar = bar;
+	}
+
+	/**
+	 * Use this for the numeric scalars; we read the value along with the alarm fields.
+	 * @param bar
+	 * @param type
+	 */
+	public PartialPBEventDecoder(ByteArray bar, ArchDBRTypes type) {
+		super(type);
+		this.bar = bar;
+	}
+
+	/**
+	 * @return true if the secondsintoyear and nano are available.
+	 */
+	public boolean readTimestamp() {
+		if(timestampRead || alarmRead) return true;
+		if(failed) return false;
+		timestampRead = readTimestamp(bar);
+		failed = !timestampRead;
+		return timestampRead;
+	}
+
+	/**
+	 * @return true if the timestamp, severity and status are available.
+	 */
+	public boolean readAlarm() {
+		if(alarmRead) return true;
+		if(failed) return false;
+		alarmRead = read(bar);
+		failed = !alarmRead;
+		return alarmRead;
+	}
+
+	/**
+	 * @return true if the value is available; this is only the case for the numeric scalars.
+	 */
+	public boolean readValue() {
+		return readAlarm() && hasValue();
+	}
+}
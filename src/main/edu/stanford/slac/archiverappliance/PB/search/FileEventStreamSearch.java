@@ -8,11 +8,11 @@
 package edu.stanford.slac.archiverappliance.PB.search;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
 
 import edu.stanford.slac.archiverappliance.PB.utils.LineByteStream;
 import edu.stanford.slac.archiverappliance.PlainPB.ComparePBEvent;
@@ -68,6 +68,11 @@ public class FileEventStreamSearch {
 	 */
 	private long startPosition = 0;
 	
+	/**
+	 * If we know the event is before this position, we can restrict the search; -1 searches till the end of the file.
+	 */
+	private long endPosition = -1;
+	
 	
 	/**
 	 * @param fchannel
@@ -78,6 +83,18 @@ public class FileEventStreamSearch {
 		this.path = path;
 		this.startPosition = startPosn;
 	}
+	
+	/**
+	 * Restrict the search to the lines that start between startPosn and endPosn.
+	 * For example, block compressed files use the first timestamps of their blocks to determine these.
+	 * @param path
+	 * @param startPosn
+	 * @param endPosn
+	 */
+	public FileEventStreamSearch(Path path, long startPosn, long endPosn) {
+		this(path, startPosn);
+		this.endPosition = endPosn;
+	}
 
 	public long getFoundPosition() {
 		return foundPosition;
@@ -159,7 +176,7 @@ public class FileEventStreamSearch {
 		try {
 			// Set up binary search.
 			min = this.startPosition;
-			max = Files.size(path)-1;
+			max = (endPosition != -1 ? Math.min(endPosition, ArchPaths.size(path)) : ArchPaths.size(path))-1;
 			do {
 				mid = min + ((max - min)/2);
 				// System.out.println("Min: " + min + " Mid: " + mid + " Max: " + max);
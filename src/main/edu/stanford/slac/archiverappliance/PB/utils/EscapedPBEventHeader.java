@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PB.utils;
+
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+
+/**
+ * Reads the leading fields of a PB event (secondsintoyear, nano, val, severity and status) directly from the escaped bytes of a line.
+ * All the messages in EPICSEvent.proto use the same field numbers for these; so we can read these without building the protobuf object.
+ * We unescape as we go (see LineEscaper) and stop at the first field after status; protobuf writes the fields in field number order.
+ * The value is read only for the scalar numeric types; for the other types (strings, bytes and waveforms), hasValue returns false and the caller has to decode the event.
+ * This object is meant to be reused across lines; each call to read overwrites the fields.
+ * This is the only code that reads tags from the escaped bytes; use findFirstField to look for other fields without unescaping the line.
+ * @author mshankar
+ *
+ */
+public class EscapedPBEventHeader {
+	private static final int WIRETYPE_VARINT = 0;
+	private static final int WIRETYPE_FIXED64 = 1;
+	private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+	private static final int WIRETYPE_FIXED32 = 5;
+
+	private static final int FIELD_SECONDSINTOYEAR = 1;
+	private static final int FIELD_NANO = 2;
+	private static final int FIELD_VAL = 3;
+	private static final int FIELD_SEVERITY = 4;
+	private static final int FIELD_STATUS = 5;
+
+	private final boolean numericScalar;
+	private final boolean floatValue;
+
+	private byte[] data;
+	private int pos;
+	private int end;
+
+	private int secondsintoyear;
+	private int nano;
+	private int severity;
+	private int status;
+	private boolean hasValue;
+	private double value;
+
+	/**
+	 * Use this if we do not need the value.
+	 */
+	public EscapedPBEventHeader() {
+		this.numericScalar = false;
+		this.floatValue = false;
+	}
+
+	public EscapedPBEventHeader(ArchDBRTypes type) {
+		this.numericScalar = !type.isWaveForm() && type != ArchDBRTypes.DBR_SCALAR_STRING && type != ArchDBRTypes.DBR_SCALAR_BYTE;
+		this.floatValue = type == ArchDBRTypes.DBR_SCALAR_FLOAT;
+	}
+
+	/**
+	 * Read the fields from the escaped bytes in this ByteArray.
+	 * @param bar
+	 * @return false if we could not make sense of the bytes; the caller should decode the event in this case.
+	 */
+	public boolean read(ByteArray bar) {
+		return read(bar.data, bar.off, bar.off + bar.len);
+	}
+
+	public boolean read(byte[] data, int start, int end) {
+		return read(data, start, end, FIELD_STATUS);
+	}
+
+	/**
+	 * Read only the secondsintoyear and nano; these are the first two fields in the line.
+	 * The severity and status are left at 0 and there is no value.
+	 * @param bar
+	 * @return false if we could not make sense of the bytes.
+	 */
+	public boolean readTimestamp(ByteArray bar) {
+		return read(bar.data, bar.off, bar.off + bar.len, FIELD_NANO);
+	}
+
+	private boolean read(byte[] data, int start, int end, int lastField) {
+		this.data = data;
+		this.pos = start;
+		this.end = end;
+		this.secondsintoyear = -1;
+		this.nano = -1;
+		this.severity = 0;
+		this.status = 0;
+		this.hasValue = false;
+		this.value = Double.NaN;
+		try {
+			while(pos < end) {
+				long tag = readRawVarint();
+				int fieldNumber = (int) (tag >>> 3);
+				int wireType = (int) (tag & 0x7);
+				if(fieldNumber > lastField) break;
+				switch(fieldNumber) {
+				case FIELD_SECONDSINTOYEAR:
+					if(wireType != WIRETYPE_VARINT) return false;
+					secondsintoyear = (int) readRawVarint();
+					break;
+				case FIELD_NANO:
+					if(wireType != WIRETYPE_VARINT) return false;
+					nano = (int) readRawVarint();
+					if(lastField == FIELD_NANO) return secondsintoyear >= 0;
+					break;
+				case FIELD_VAL:
+					readValue(wireType);
+					break;
+				case FIELD_SEVERITY:
+					if(wireType != WIRETYPE_VARINT) return false;
+					severity = (int) readRawVarint();
+					break;
+				case FIELD_STATUS:
+					if(wireType != WIRETYPE_VARINT) return false;
+					status = (int) readRawVarint();
+					break;
+				default:
+					skipField(wireType);
+					break;
+				}
+			}
+			return secondsintoyear >= 0 && nano >= 0;
+		} catch(ArrayIndexOutOfBoundsException|IllegalStateException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Walk the tags of the escaped line till we come to one of these fields; the fields before it are skipped without being read.
+	 * @param bar
+	 * @param fieldNumbers
+	 * @return The field number of the first of these fields in the line; -1 if the line has none of these fields or if we could not make sense of the bytes.
+	 */
+	public int findFirstField(ByteArray bar, int... fieldNumbers) {
+		this.data = bar.data;
+		this.pos = bar.off;
+		this.end = bar.off + bar.len;
+		try {
+			while(pos < end) {
+				long tag = readRawVarint();
+				int fieldNumber = (int) (tag >>> 3);
+				for(int wanted : fieldNumbers) {
+					if(fieldNumber == wanted) return fieldNumber;
+				}
+				skipField((int) (tag & 0x7));
+			}
+		} catch(ArrayIndexOutOfBoundsException|IllegalStateException ex) {
+			// Fall thru
+		}
+		return -1;
+	}
+
+	private void readValue(int wireType) {
+		if(!numericScalar) {
+			skipField(wireType);
+			return;
+		}
+		switch(wireType) {
+		case WIRETYPE_FIXED64:
+			value = Double.longBitsToDouble(readRawLittleEndian64());
+			hasValue = true;
+			break;
+		case WIRETYPE_FIXED32:
+			int bits = readRawLittleEndian32();
+			value = floatValue ? Float.intBitsToFloat(bits) : bits;
+			hasValue = true;
+			break;
+		case WIRETYPE_VARINT:
+			// sint32 is zigzag encoded.
+			int n = (int) readRawVarint();
+			value = (n >>> 1) ^ -(n & 1);
+			hasValue = true;
+			break;
+		default:
+			skipField(wireType);
+			break;
+		}
+	}
+
+	private void skipField(int wireType) {
+		switch(wireType) {
+		case WIRETYPE_VARINT:
+			readRawVarint();
+			break;
+		case WIRETYPE_FIXED64:
+			skipRawBytes(8);
+			break;
+		case WIRETYPE_LENGTH_DELIMITED:
+			skipRawBytes((int) readRawVarint());
+			break;
+		case WIRETYPE_FIXED32:
+			skipRawBytes(4);
+			break;
+		default:
+			throw new IllegalStateException("Unsupported wire type " + wireType);
+		}
+	}
+
+	private int readRawByte() {
+		if(pos >= end) throw new IllegalStateException("Reading past the end of the line");
+		byte b = data[pos++];
+		if(b == LineEscaper.ESCAPE_CHAR) {
+			if(pos >= end) throw new IllegalStateException("Escape char at the end of the line");
+			b = data[pos++];
+			switch(b) {
+			case LineEscaper.ESCAPE_ESCAPE_CHAR: b = LineEscaper.ESCAPE_CHAR; break;
+			case LineEscaper.NEWLINE_ESCAPE_CHAR: b = LineEscaper.NEWLINE_CHAR; break;
+			case LineEscaper.CARRIAGERETURN_ESCAPE_CHAR: b = LineEscaper.CARRIAGERETURN_CHAR; break;
+			default: break;
+			}
+		}
+		return b & 0xFF;
+	}
+
+	private long readRawVarint() {
+		long result = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			int b = readRawByte();
+			result |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0) return result;
+		}
+		throw new IllegalStateException("Malformed varint");
+	}
+
+	private int readRawLittleEndian32() {
+		return readRawByte() | (readRawByte() << 8) | (readRawByte() << 16) | (readRawByte() << 24);
+	}
+
+	private long readRawLittleEndian64() {
+		return (readRawLittleEndian32() & 0xFFFFFFFFL) | ((long) readRawLittleEndian32() << 32);
+	}
+
+	private void skipRawBytes(int count) {
+		for(int i = 0; i < count; i++) {
+			readRawByte();
+		}
+	}
+
+	public int getSecondsintoyear() {
+		return secondsintoyear;
+	}
+
+	public int getNano() {
+		return nano;
+	}
+
+	public int getSeverity() {
+		return severity;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if the value was read; this is only the case for the scalar numeric types.
+	 */
+	public boolean hasValue() {
+		return hasValue;
+	}
+
+	public double getValue() {
+		return value;
+	}
+}
@@ -217,8 +217,9 @@ public class LineByteStream implements Closeable {
 		while(loopcount < MAX_ITERATIONS_TO_DETERMINE_LINE) {
 			if(seekPos < 0) seekPos = 0L;
 			this.byteChannel.position(seekPos);
-			lastReadPointer = seekPos;
 			readNextBatch();
+			// readNextBatch advances lastReadPointer by the size of the previous batch; so we set this after the read (like seekToBeforePreviousLine).
+			lastReadPointer = seekPos;
 			// We are shaving off 2 bytes from the end to skip the last newline if indeed the last line is terminated by a newline.
 			for(int i = bytesRead-2; i >= 0; i--) {
 				if(buf[i] == LineEscaper.NEWLINE_CHAR) {
@@ -293,6 +294,10 @@ public class LineByteStream implements Closeable {
 		return this.path.toAbsolutePath().toString();
 	}
 
+	public Path getPath() {
+		return this.path;
+	}
+
 	@Override
 	public void close() throws IOException {
 		if(this.byteChannel != null) this.byteChannel.close();
@@ -48,15 +48,26 @@ public class LineEscaper {
 	
 	public static byte[] escapeNewLines(byte[] input) {
 		if(input == null) return null;
-		try {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length*2);
-			escapeNewLines(input, bos);
-			bos.close();
-			return bos.toByteArray();
-		} catch(IOException ex) {
-			logger.error("Exception escaping newlines in buffer", ex);
-			return null;
+		// Count the bytes that need escaping first; most lines have none and we can return a copy of the input.
+		int escapeCount = 0;
+		for(byte b : input) {
+			if(b == ESCAPE_CHAR || b == NEWLINE_CHAR || b == CARRIAGERETURN_CHAR) escapeCount++;
+		}
+		byte[] ret = new byte[input.length + escapeCount];
+		if(escapeCount == 0) {
+			System.arraycopy(input, 0, ret, 0, input.length);
+			return ret;
+		}
+		int i = 0;
+		for(byte b : input) {
+			switch(b) {
+			case ESCAPE_CHAR: ret[i++] = ESCAPE_CHAR; ret[i++] = ESCAPE_ESCAPE_CHAR; break;
+			case NEWLINE_CHAR: ret[i++] = ESCAPE_CHAR; ret[i++] = NEWLINE_ESCAPE_CHAR; break;
+			case CARRIAGERETURN_CHAR: ret[i++] = ESCAPE_CHAR; ret[i++] = CARRIAGERETURN_ESCAPE_CHAR; break;
+			default: ret[i++] = b; break;
+			}
 		}
+		return ret;
 	}
 
 	public static byte[] unescapeNewLines(byte[] input) {
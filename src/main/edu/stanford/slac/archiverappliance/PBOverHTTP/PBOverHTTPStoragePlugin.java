@@ -46,6 +46,10 @@ public class PBOverHTTPStoragePlugin implements StoragePlugin {
 	private String desc = "A event stream backed by a .raw response from a remote server.";
 	private String name;
 	private boolean skipExternalServers = false;
+	/**
+	 * Do we ask the server to run the post processor? If not, we get the raw data and run the post processor here.
+	 */
+	private boolean forwardPostProcessor = true;
 
 	@Override
 	public List<Callable<EventStream>> getDataForPV(BasicContext context, String pvName, Timestamp startTime, 
@@ -53,7 +57,7 @@ public class PBOverHTTPStoragePlugin implements StoragePlugin {
 		String getURL = accessURL + "?pv=" + pvName 
 				+ "&from=" + TimeUtils.convertToISO8601String(startTime) 
 				+ "&to=" + TimeUtils.convertToISO8601String(endTime) 
-				+ (postProcessor != null ? "&pp="+postProcessor.getExtension() : "")
+				+ ((postProcessor != null && forwardPostProcessor) ? "&pp="+postProcessor.getExtension() : "")
 				+ (skipExternalServers ? "skipExternalServers=true" : "");
 		logger.info("URL to fetch data is " + getURL);
 		return getDataBehindURL(getURL, startTime, postProcessor);
@@ -146,6 +150,10 @@ public class PBOverHTTPStoragePlugin implements StoragePlugin {
 				logger.debug("Telling the remote server to skip all data from external (potentially ChannelArchiver) servers");
 				this.skipExternalServers = Boolean.parseBoolean(queryNVPairs.get("skipExternalServers"));
 			}
+
+			if(queryNVPairs.containsKey("forwardPostProcessor")) {
+				this.forwardPostProcessor = Boolean.parseBoolean(queryNVPairs.get("forwardPostProcessor"));
+			}
 		} catch(URISyntaxException ex) {
 			throw new IOException(ex);
 		}
@@ -4,7 +4,6 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.ByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -18,11 +17,15 @@ import org.epics.archiverappliance.EventStream;
 import org.epics.archiverappliance.common.BasicContext;
 import org.epics.archiverappliance.common.PartitionGranularity;
 import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.config.PVNameToKeyMapping;
 import org.epics.archiverappliance.etl.ETLBulkStream;
 import org.epics.archiverappliance.etl.ETLContext;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile;
 
 import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.data.DeltaVectorCodec;
 import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
 import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin.CompressionMode;
 
@@ -52,6 +55,22 @@ public class AppendDataStateData {
 	private String desc;
 	private CompressionMode compressionMode = CompressionMode.NONE;
 	private PVNameToKeyMapping pv2key;
+	private PVStorageLedger storageLedger = null;
+	private PVTimelineCatalog timelineCatalog = null;
+	/**
+	 * The file that os is writing into and its size when we opened it (-1 for a new file); we tell the storage ledger about these when we close the os.
+	 */
+	private String ledgerPVName = null;
+	private Path ledgerPath = null;
+	private long ledgerPathSizeBefore = -1;
+	/**
+	 * If deltaWaveforms is set, we write waveforms as keyframes and delta frames.
+	 * The delta frames point back to the keyframe using the position in the file; so we track the position that we are writing into.
+	 */
+	private boolean deltaWaveforms = false;
+	private int keyframeInterval = PlainPBStoragePlugin.DEFAULT_KEYFRAME_INTERVAL;
+	private DeltaVectorEncoder deltaEncoder = null;
+	private long currentFilePosition = 0;
 
 	/**
 	 * @param partitionGranularity - partitionGranularity of the PB plugin.
@@ -73,6 +92,32 @@ public class AppendDataStateData {
 		}
 	}
 	
+	/**
+	 * If set, we keep this ledger updated as we write into files.
+	 * @param storageLedger
+	 */
+	public void setStorageLedger(PVStorageLedger storageLedger) {
+		this.storageLedger = storageLedger;
+	}
+
+	/**
+	 * If set, we tell this catalog when we create new partitions.
+	 * @param timelineCatalog
+	 */
+	public void setTimelineCatalog(PVTimelineCatalog timelineCatalog) {
+		this.timelineCatalog = timelineCatalog;
+	}
+
+	/**
+	 * If set, we write waveforms (of the types supported by DeltaVectorCodec) as a keyframe every keyframeInterval samples followed by delta frames.
+	 * @param deltaWaveforms
+	 * @param keyframeInterval
+	 */
+	public void setDeltaWaveforms(boolean deltaWaveforms, int keyframeInterval) {
+		this.deltaWaveforms = deltaWaveforms;
+		this.keyframeInterval = keyframeInterval;
+	}
+
 	/**
 	 * Append data into PB files honoring partition boundaries switching into new partitions as we cross the boundary.
 	 * <ol>
@@ -106,8 +151,10 @@ public class AppendDataStateData {
 				// The raw form is already escaped for new lines
 				// We can simply write it as is.
 				ByteArray val = event.getRawForm();
+				if(this.deltaEncoder != null) val = this.deltaEncoder.encode(val, this.currentFilePosition);
 				this.os.write(val.data, val.off, val.len);
 				this.os.write(LineEscaper.NEWLINE_CHAR);
+				this.currentFilePosition += val.len + 1;
 				
 				this.previousEpochSeconds = epochSeconds;
 				this.previousYear = this.currentEventsYear;
@@ -120,7 +167,7 @@ public class AppendDataStateData {
 			logger.error("Exception appending data for PV " + pvName, t);
 			throw new IOException(t);
 		} finally {
-			if(this.os != null) { try { this.os.close(); this.os = null; } catch(Throwable t) { logger.error("Exception closing os", t); } }
+			if(this.os != null) { try { closeOutputStream(); } catch(Throwable t) { logger.error("Exception closing os", t); } }
 			try { stream.close(); } catch (Throwable t) {} 
 		}
 	}
@@ -142,6 +189,9 @@ public class AppendDataStateData {
 			Path nextPath = PlainPBPathNameUtility.getFileName(this.rootFolder, pvName, epochSeconds, extension, this.partitionGranularity, true, context.getPaths(), compressionMode, this.pv2key);
 			pvPath = nextPath;
 		}
+
+		ArchDBRTypes dbrType = stream.getDescription().getArchDBRType();
+		this.deltaEncoder = (deltaWaveforms && DeltaVectorCodec.isSupported(dbrType)) ? new DeltaVectorEncoder(dbrType, keyframeInterval) : null;
 		
 		if(!Files.exists(pvPath)) {
 			if(extensionToCopyFrom != null && !extensionToCopyFrom.contentEquals("")) {
@@ -155,6 +205,8 @@ public class AppendDataStateData {
 				if(Files.exists(pathToCopyFrom)) {
 					logger.debug("Making a backup from " + pathToCopyFrom.toAbsolutePath().toString() + " to file " + pvPath.toAbsolutePath().toString() + " when appending data for pv " + pvName);
 					Files.copy(pathToCopyFrom, pvPath);
+					if(storageLedger != null) storageLedger.fileWritten(pvName, -1, Files.size(pvPath));
+					if(timelineCatalog != null) timelineCatalog.partitionsChanged(pvName);
 					// We still have to create an os so that the logic can continue.
 					updateStateBasedOnExistingFile(pvName, pvPath);
 					
@@ -200,9 +252,8 @@ public class AppendDataStateData {
 				}
 			}
 			// Simply closing the current stream should be good enough for the roll over to work.
-			if(this.os != null) try { this.os.close(); } catch(Throwable t) {}
-			// Set this to null outside the try/catch so that we are using a new file even if the close fails.
-			this.os = null;
+			// closeOutputStream sets the os to null even if the close fails so that we are using a new file.
+			if(this.os != null) try { closeOutputStream(); } catch(Throwable t) {}
 			return nextPath;
 		}
 		return currentPath;
@@ -256,8 +307,11 @@ public class AppendDataStateData {
 		this.previousYear = info.getDataYear();
 		this.previousEpochSeconds = info.getLastEventEpochSeconds();
 		if(info.getLastEvent() != null) this.lastKnownTimeStamp = info.getLastEvent().getEventTimeStamp();
-		this.os = new BufferedOutputStream(Files.newOutputStream(pvPath, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+		this.os = newOutputStream(pvPath, true);
 		this.previousFileName = pvPath.getFileName().toString();
+		this.currentFilePosition = ArchPaths.size(pvPath);
+		if(this.deltaEncoder != null) this.deltaEncoder.reset();
+		trackForStorageLedger(pvName, pvPath, Files.size(pvPath));
 	}
 	
 	/**
@@ -275,7 +329,9 @@ public class AppendDataStateData {
 				+ " for year " + this.currentEventsYear 
 				+ " of type " + stream.getDescription().getArchDBRType() 
 				+ " of PBPayload " + stream.getDescription().getArchDBRType().getPBPayloadType());
-		this.os = new BufferedOutputStream(Files.newOutputStream(pvPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+		this.os = newOutputStream(pvPath, false);
+		trackForStorageLedger(pvName, pvPath, -1);
+		if(timelineCatalog != null) timelineCatalog.partitionsChanged(pvName);
 		byte[] headerBytes = LineEscaper.escapeNewLines(PayloadInfo.newBuilder()
 				.setPvname(pvName)
 				.setType(stream.getDescription().getArchDBRType().getPBPayloadType())
@@ -284,6 +340,8 @@ public class AppendDataStateData {
 		this.os.write(headerBytes);
 		this.os.write(LineEscaper.NEWLINE_CHAR);
 		this.previousFileName = pvPath.getFileName().toString();
+		this.currentFilePosition = headerBytes.length + 1;
+		if(this.deltaEncoder != null) this.deltaEncoder.reset();
 	}
 	
 	
@@ -294,6 +352,10 @@ public class AppendDataStateData {
 	 * @throws IOException
 	 */
 	public boolean bulkAppend(String pvName, ETLContext context, ETLBulkStream bulkStream, String extension, String extensionToCopyFrom) throws IOException {
+		if(deltaWaveforms && DeltaVectorCodec.isSupported(bulkStream.getDescription().getArchDBRType())) {
+			logger.debug("We encode waveforms as deltas in this store; so we append these event by event.");
+			return false;
+		}
 		Event firstEvent = bulkStream.getFirstEvent(context);
 		if(this.shouldISkipEventBasedOnTimeStamps(firstEvent)) {
 			logger.debug("The bulk append functionality works only if we the first event fits cleanly in the current stream.");
@@ -306,20 +368,21 @@ public class AppendDataStateData {
 		}
 
 		// Close the current stream first and set it to null.
-		if(this.os != null) try { this.os.close(); } catch(Throwable t) {}
-		this.os = null;
+		if(this.os != null) try { closeOutputStream(); } catch(Throwable t) {}
 		
 		// The preparePartition should have created the needed file; so we only append
-		try(ByteChannel destChannel = Files.newByteChannel(pvPath, StandardOpenOption.APPEND); ReadableByteChannel srcChannel = bulkStream.getByteChannel(context)) {
+		long sizeBeforeBulkAppend = Files.size(pvPath);
+		try(OutputStream destStream = newOutputStream(pvPath, true); ReadableByteChannel srcChannel = bulkStream.getByteChannel(context)) {
 			logger.debug("ETL bulk appends for pv " + pvName);
 			ByteBuffer buf = ByteBuffer.allocate(1024*1024);
 			int bytesRead = srcChannel.read(buf);
 			while(bytesRead > 0) {
-				buf.flip();
-				destChannel.write(buf);
+				destStream.write(buf.array(), 0, bytesRead);
 				buf.clear();
 				bytesRead = srcChannel.read(buf);
 			}
+		} finally {
+			if(storageLedger != null) storageLedger.fileWritten(pvName, sizeBeforeBulkAppend, Files.size(pvPath));
 		}
 
 		try { 
@@ -327,9 +390,51 @@ public class AppendDataStateData {
 			updateStateBasedOnExistingFile(pvName, pvPath);
 		} finally { 
 			// Close the current stream first and set it to null.
-			if(this.os != null) try { this.os.close(); } catch(Throwable t) {}
-			this.os = null;
+			if(this.os != null) try { closeOutputStream(); } catch(Throwable t) {}
 		}
 		return true;
+	}
+
+	/**
+	 * Open an output stream into this partition.
+	 * When appending, we go by the format of the existing file so that changing the compression mode of a store does not mix formats within a file.
+	 * @param pvPath
+	 * @param append
+	 * @return
+	 * @throws IOException
+	 */
+	private OutputStream newOutputStream(Path pvPath, boolean append) throws IOException {
+		boolean blockCompressed = compressionMode == CompressionMode.BLOCK_DEFLATE;
+		if(append && Files.exists(pvPath) && Files.size(pvPath) > 0) {
+			blockCompressed = BlockCompressedFile.getIndex(pvPath) != null;
+		}
+		if(blockCompressed) {
+			return new BlockCompressedPBOutputStream(pvPath, append, BlockCompressedFile.DEFAULT_BLOCK_SIZE);
+		}
+		return new BufferedOutputStream(Files.newOutputStream(pvPath, StandardOpenOption.CREATE, append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING));
+	}
+
+	private void trackForStorageLedger(String pvName, Path pvPath, long sizeBefore) {
+		if(storageLedger == null) return;
+		this.ledgerPVName = pvName;
+		this.ledgerPath = pvPath;
+		this.ledgerPathSizeBefore = sizeBefore;
+	}
+
+	/**
+	 * Close the current output stream and set it to null (even if the close fails); we also update the storage ledger if we have one.
+	 * @throws IOException
+	 */
+	private void closeOutputStream() throws IOException {
+		try {
+			this.os.close();
+		} finally {
+			this.os = null;
+			if(storageLedger != null && ledgerPath != null) {
+				Path path = ledgerPath;
+				ledgerPath = null;
+				storageLedger.fileWritten(ledgerPVName, ledgerPathSizeBefore, Files.size(path));
+			}
+		}
 	}	
 }
\ No newline at end of file
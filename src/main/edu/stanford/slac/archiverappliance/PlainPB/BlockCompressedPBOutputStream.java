@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile.Block;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile.BlockIndex;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
+import edu.stanford.slac.archiverappliance.PB.utils.EscapedPBEventHeader;
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Used by AppendDataStateData to write PB files as independently compressed blocks (see BlockCompressedFile).
+ * We are given the same bytes as we'd write into an uncompressed file; we cut a block at the first line boundary after blockSize bytes.
+ * The first line is the PayloadInfo header; we use the year from this to record the epoch seconds of the first event in each block.
+ * The index and trailer are written when the stream is closed.
+ * <p>
+ * When appending to an existing file, we write the new blocks after the existing trailer and write a new index and trailer when the stream is closed.
+ * If the last block is small, we also decompress it and write it out again as part of the next block; so, ETL appends always write out whole blocks.
+ * We never overwrite the existing blocks or index; if we crash before the stream is closed, readers rebuild the index from the blocks and still see all the samples from the previous appends.
+ * Readers that open the file while we are appending do the same.
+ * </p>
+ * <p>
+ * The old index and the old copy of a rewritten block are unused space in the file.
+ * If the unused space is more than a quarter of the space used by the blocks that we are keeping, we copy these blocks into a new file, append to that and replace the existing file with it when the stream is closed.
+ * </p>
+ * @author mshankar
+ *
+ */
+class BlockCompressedPBOutputStream extends OutputStream {
+	static final String COMPACTION_SUFFIX = ".compacting";
+	private final Path path;
+	private final int blockSize;
+	private FileChannel channel;
+	/**
+	 * If we are compacting, the file that we are writing into; this replaces the existing file when the stream is closed.
+	 */
+	private Path compactedPath = null;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final List<Block> blocks = new ArrayList<Block>();
+	private final EscapedPBEventHeader eventHeader = new EscapedPBEventHeader();
+	private final byte[] singleByte = new byte[1];
+	private byte[] buffer;
+	private int bufferLen = 0;
+	/**
+	 * The logical position of the first byte in the buffer
+	 */
+	private long bufferLogicalOffset = 0;
+	/**
+	 * The start of the line we have not seen the end of yet.
+	 */
+	private int lineStart = 0;
+	private long firstEpochSecondsInBuffer = -1;
+	private long startOfYearEpochSeconds = -1;
+
+	BlockCompressedPBOutputStream(Path path, boolean append, int blockSize) throws IOException {
+		this.path = path;
+		this.blockSize = blockSize;
+		this.buffer = new byte[blockSize + blockSize/4];
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if(append && channel.size() > 0) {
+				openForAppend();
+			} else {
+				channel.truncate(0);
+				channel.position(0);
+				BlockCompressedFile.writeFileHeader(channel);
+			}
+		} catch(IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	private void openForAppend() throws IOException {
+		if(!BlockCompressedFile.isBlockCompressed(channel)) {
+			throw new IOException("Cannot append blocks to " + path.toAbsolutePath().toString() + " as it is not a block compressed file");
+		}
+		BlockIndex index = BlockCompressedFile.readIndex(path, channel);
+		blocks.addAll(index.getBlocks());
+		if(!blocks.isEmpty()) {
+			byte[] firstBlock = BlockCompressedFile.decompressBlock(path, channel, blocks.get(0));
+			for(int i = 0; i < firstBlock.length; i++) {
+				if(firstBlock[i] == LineEscaper.NEWLINE_CHAR) {
+					processHeader(firstBlock, 0, i);
+					break;
+				}
+			}
+		}
+
+		long unusedBytes = index.getUnusedBytes();
+		bufferLogicalOffset = index.getLogicalSize();
+		Block lastBlock = blocks.isEmpty() ? null : blocks.get(blocks.size()-1);
+		if(lastBlock != null && lastBlock.getLogicalLength() < blockSize/2) {
+			// Rewrite the small last block along with the new data so that we do not end up with lots of small blocks.
+			// The existing copy stays in the index till we write the new index when the stream is closed.
+			byte[] lastBlockData = BlockCompressedFile.decompressBlock(path, channel, lastBlock);
+			blocks.remove(blocks.size()-1);
+			unusedBytes += lastBlock.getPhysicalEnd() - lastBlock.getPhysicalOffset();
+			bufferLogicalOffset = lastBlock.getLogicalOffset();
+			System.arraycopy(lastBlockData, 0, buffer, 0, lastBlockData.length);
+			bufferLen = lastBlockData.length;
+			firstEpochSecondsInBuffer = lastBlock.getFirstEpochSeconds();
+			for(int i = bufferLen - 1; i >= 0; i--) {
+				if(buffer[i] == LineEscaper.NEWLINE_CHAR) {
+					lineStart = i + 1;
+					break;
+				}
+			}
+		}
+		if(unusedBytes*4 > index.getPhysicalEnd() - unusedBytes) {
+			compact();
+		} else {
+			// Anything after the end of the content in the index is an incomplete block from an append that did not complete.
+			if(channel.size() > index.getPhysicalEnd()) {
+				channel.truncate(index.getPhysicalEnd());
+			}
+			channel.position(index.getPhysicalEnd());
+		}
+	}
+
+	/**
+	 * Copy the blocks that we are keeping into a new file in the same folder; we then append to this file instead.
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		Path tempPath = path.resolveSibling(path.getFileName().toString() + COMPACTION_SUFFIX);
+		FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			BlockCompressedFile.writeFileHeader(tempChannel);
+			for(int i = 0; i < blocks.size(); i++) {
+				blocks.set(i, BlockCompressedFile.copyBlock(channel, blocks.get(i), tempChannel));
+			}
+		} catch(IOException ex) {
+			tempChannel.close();
+			Files.deleteIfExists(tempPath);
+			throw ex;
+		}
+		channel.close();
+		channel = tempChannel;
+		compactedPath = tempPath;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		singleByte[0] = (byte) b;
+		write(singleByte, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(channel == null) throw new IOException("Stream for " + path.toAbsolutePath().toString() + " is closed");
+		while(len > 0) {
+			if(bufferLen == buffer.length) {
+				// We have a really long line; grow the buffer.
+				buffer = Arrays.copyOf(buffer, buffer.length*2);
+			}
+			int count = Math.min(len, buffer.length - bufferLen);
+			System.arraycopy(b, off, buffer, bufferLen, count);
+			int scanFrom = bufferLen;
+			bufferLen += count;
+			off += count;
+			len -= count;
+			for(int i = scanFrom; i < bufferLen; i++) {
+				if(buffer[i] == LineEscaper.NEWLINE_CHAR) {
+					processLine(lineStart, i);
+					lineStart = i + 1;
+					if(lineStart >= blockSize) {
+						writeBlock(lineStart);
+						i = -1;
+					}
+				}
+			}
+		}
+	}
+
+	private void processLine(int start, int end) throws IOException {
+		if(bufferLogicalOffset + start == 0) {
+			processHeader(buffer, start, end);
+		} else if(firstEpochSecondsInBuffer == -1 && startOfYearEpochSeconds != -1 && end > start) {
+			if(eventHeader.read(buffer, start, end) && eventHeader.getSecondsintoyear() >= 0) {
+				firstEpochSecondsInBuffer = startOfYearEpochSeconds + eventHeader.getSecondsintoyear();
+			}
+		}
+	}
+
+	private void processHeader(byte[] data, int start, int end) throws IOException {
+		try {
+			PayloadInfo info = PayloadInfo.parseFrom(LineEscaper.unescapeNewLines(Arrays.copyOfRange(data, start, end)));
+			startOfYearEpochSeconds = TimeUtils.getStartOfYearInSeconds(info.getYear());
+		} catch(InvalidProtocolBufferException ex) {
+			throw new IOException("Cannot parse the header in " + path.toAbsolutePath().toString(), ex);
+		}
+	}
+
+	/**
+	 * Compress and write out the first len bytes of the buffer and move the rest of the buffer to the start.
+	 * @param len
+	 * @throws IOException
+	 */
+	private void writeBlock(int len) throws IOException {
+		blocks.add(BlockCompressedFile.writeBlock(channel, deflater, bufferLogicalOffset, buffer, len, firstEpochSecondsInBuffer));
+		System.arraycopy(buffer, len, buffer, 0, bufferLen - len);
+		bufferLen -= len;
+		lineStart -= len;
+		bufferLogicalOffset += len;
+		firstEpochSecondsInBuffer = -1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(channel == null) return;
+		boolean indexWritten = false;
+		try {
+			if(bufferLen > 0) {
+				writeBlock(bufferLen);
+			}
+			BlockCompressedFile.writeIndex(channel, blocks);
+			indexWritten = true;
+		} finally {
+			channel.close();
+			channel = null;
+			deflater.end();
+			if(compactedPath != null && !indexWritten) {
+				Files.deleteIfExists(compactedPath);
+			}
+		}
+		if(compactedPath != null) {
+			// Readers that already have the existing file open continue to read from it.
+			Files.move(compactedPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+
+import edu.stanford.slac.archiverappliance.PB.data.DeltaVectorCodec;
+import edu.stanford.slac.archiverappliance.PB.data.DeltaVectorCodec.DeltaFrame;
+import edu.stanford.slac.archiverappliance.PB.data.DeltaVectorCodec.FullFrame;
+import edu.stanford.slac.archiverappliance.PB.data.PBParseException;
+import edu.stanford.slac.archiverappliance.PB.utils.LineByteStream;
+
+/**
+ * Used by the PlainPB iterators to replace delta frames with the full lines.
+ * The iterators pass in each line they read along with the position of the line in the file.
+ * <ol>
+ * <li>Files that do not have delta frames are passed thru as is; we do not keep any state till we see the first delta frame.</li>
+ * <li>If we are reading the file sequentially, we apply the delta frame to the values of the previous line.</li>
+ * <li>If we start in the middle of a file (for example, after a binary search), we replay the lines from the keyframe.</li>
+ * </ol>
+ * @author mshankar
+ *
+ */
+class DeltaVectorDecoder {
+	private static Logger logger = Logger.getLogger(DeltaVectorDecoder.class.getName());
+	private final Path path;
+	private final DeltaVectorCodec codec;
+	private boolean deltaFramesSeen = false;
+	private long[] previousValues = null;
+	private long nextLinePosition = -1;
+
+	DeltaVectorDecoder(Path path, ArchDBRTypes type) {
+		this.path = path;
+		this.codec = DeltaVectorCodec.isSupported(type) ? new DeltaVectorCodec(type) : null;
+	}
+
+	/**
+	 * @param line - The escaped line as read from the file
+	 * @param linePosition - The position of the start of this line in the file.
+	 * @return Either the line that was passed in or the reconstructed full line.
+	 * @throws IOException
+	 */
+	ByteArray decode(ByteArray line, long linePosition) throws IOException {
+		if(codec == null || line.isEmpty()) return line;
+		boolean isDeltaFrame = DeltaVectorCodec.isDeltaFrame(line);
+		if(!deltaFramesSeen) {
+			if(!isDeltaFrame) return line;
+			deltaFramesSeen = true;
+		}
+
+		long lineEnd = linePosition + line.len + 1;
+		if(!isDeltaFrame) {
+			FullFrame frame = codec.parseFullFrame(line);
+			previousValues = (frame != null) ? frame.getValues() : null;
+			nextLinePosition = lineEnd;
+			return line;
+		}
+
+		DeltaFrame frame = codec.parseDeltaFrame(line);
+		long[] values;
+		if(previousValues != null && linePosition == nextLinePosition) {
+			values = codec.applyDeltaFrame(frame, previousValues);
+		} else {
+			values = codec.applyDeltaFrame(frame, replayFromKeyframe(linePosition - frame.getKeyframeDistance(), linePosition));
+		}
+		previousValues = values;
+		nextLinePosition = lineEnd;
+		return codec.toFullLine(frame, values);
+	}
+
+	/**
+	 * Get the values of the line just before the target line by applying the delta frames from the keyframe onwards.
+	 * @param keyframePosition
+	 * @param targetLinePosition
+	 * @return
+	 * @throws IOException
+	 */
+	private long[] replayFromKeyframe(long keyframePosition, long targetLinePosition) throws IOException {
+		if(keyframePosition <= 0 || keyframePosition >= targetLinePosition) {
+			throw new IOException("Invalid keyframe position " + keyframePosition + " for line at " + targetLinePosition + " in " + path.toString());
+		}
+		if(logger.isDebugEnabled()) logger.debug("Replaying delta frames from " + keyframePosition + " to " + targetLinePosition + " in " + path.toString());
+		long[] values = null;
+		ByteArray line = new ByteArray(LineByteStream.MAX_LINE_SIZE);
+		try(LineByteStream lis = new LineByteStream(path, keyframePosition - 1)) {
+			lis.seekToFirstNewLine();
+			long position = lis.getCurrentPosition();
+			while(position < targetLinePosition) {
+				lis.readLine(line);
+				if(line.isEmpty()) break;
+				if(DeltaVectorCodec.isDeltaFrame(line)) {
+					values = codec.applyDeltaFrame(codec.parseDeltaFrame(line), values);
+				} else {
+					FullFrame frame = codec.parseFullFrame(line);
+					values = (frame != null) ? frame.getValues() : null;
+				}
+				position = lis.getCurrentPosition();
+			}
+			if(position != targetLinePosition || values == null) {
+				throw new PBParseException(line.toBytes(), new IOException("Cannot find the keyframe for the line at " + targetLinePosition + " in " + path.toString()));
+			}
+		}
+		return values;
+	}
+}
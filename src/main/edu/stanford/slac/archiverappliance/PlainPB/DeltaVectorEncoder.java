@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+
+import edu.stanford.slac.archiverappliance.PB.data.DeltaVectorCodec;
+import edu.stanford.slac.archiverappliance.PB.data.DeltaVectorCodec.FullFrame;
+
+/**
+ * Used by AppendDataStateData to write waveforms as keyframes followed by delta frames.
+ * We write a keyframe every keyframeInterval samples, when the number of elements changes or when the delta frame is not smaller than the full line.
+ * This should be reset each time we open a file; so each file (and each append into a file) starts with a keyframe.
+ * @author mshankar
+ *
+ */
+class DeltaVectorEncoder {
+	private final DeltaVectorCodec codec;
+	private final int keyframeInterval;
+	private long[] previousValues = null;
+	private long keyframePosition = -1;
+	private int framesSinceKeyframe = 0;
+
+	DeltaVectorEncoder(ArchDBRTypes type, int keyframeInterval) {
+		this.codec = new DeltaVectorCodec(type);
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/**
+	 * @param line - The escaped full line for this sample
+	 * @param linePosition - The position in the file where this line is going to be written.
+	 * @return The line to write; this is either the line that was passed in or a delta frame.
+	 */
+	ByteArray encode(ByteArray line, long linePosition) {
+		FullFrame frame = codec.parseFullFrame(line);
+		if(frame == null) {
+			previousValues = null;
+			return line;
+		}
+		ByteArray ret = null;
+		if(previousValues != null && framesSinceKeyframe < keyframeInterval - 1) {
+			ret = codec.encodeDeltaFrame(frame, previousValues, linePosition - keyframePosition);
+		}
+		if(ret == null) {
+			ret = line;
+			keyframePosition = linePosition;
+			framesSinceKeyframe = 0;
+		} else {
+			framesSinceKeyframe++;
+		}
+		previousValues = frame.getValues();
+		return ret;
+	}
+
+	void reset() {
+		previousValues = null;
+		keyframePosition = -1;
+		framesSinceKeyframe = 0;
+	}
+}
@@ -12,7 +12,6 @@ import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.sql.Timestamp;
@@ -30,6 +29,9 @@ import org.epics.archiverappliance.data.DBRTimeEvent;
 import org.epics.archiverappliance.etl.ETLBulkStream;
 import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
 import org.epics.archiverappliance.retrieval.RemotableOverRaw;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile.BlockIndex;
 
 import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
 import edu.stanford.slac.archiverappliance.PB.search.FileEventStreamSearch;
@@ -55,6 +57,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 	private FileBackedPBEventStreamIterator theIterator = null;
 	private RemotableEventStreamDesc desc;
 	private PBFileInfo fileInfo = null;
+	private PBScanPredicate scanPredicate = null;
 	
 	/**
 	 * Used when we want to include data from the entire file. 
@@ -68,7 +71,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 		this.path = path;
 		this.type = type;
 		this.startFilePos = 0L;
-		this.endFilePos = Files.size(path);
+		this.endFilePos = ArchPaths.size(path);
 		this.positionBoundaries = true;
 	}
 	
@@ -107,7 +110,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 		this.path = path;
 		this.type = dbrtype;
 		this.startFilePos = 0L;
-		this.endFilePos = Files.size(path);
+		this.endFilePos = ArchPaths.size(path);
 		if(skipSearch) {
 			// We filter events as we are processing the stream...
 			this.positionBoundaries = false;
@@ -132,7 +135,13 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 				readPayLoadInfo();
 			}
 			
-			if(this.positionBoundaries) {
+			if(this.scanPredicate != null) {
+				if(this.positionBoundaries) {
+					theIterator = new FileBackedPBEventStreamScanIterator(path, startFilePos, endFilePos, desc.getYear(), type, scanPredicate);
+				} else {
+					theIterator = new FileBackedPBEventStreamScanIterator(path, startFilePos, endFilePos, desc.getYear(), type, PBScanPredicate.allOf(PBScanPredicate.timeWindow(startTime, endTime), scanPredicate));
+				}
+			} else if(this.positionBoundaries) {
 				theIterator = new FileBackedPBEventStreamPositionBasedIterator(path, startFilePos, endFilePos, desc.getYear(), type);
 			} else {
 				theIterator = new FileBackedPBEventStreamTimeBasedIterator(path, startTime, endTime, desc.getYear(), type);
@@ -197,6 +206,18 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 		return pvName;
 	}
 	
+	/**
+	 * Evaluate this predicate on each line before decoding the event; the iterator returns only the events that are accepted.
+	 * This needs to be set before asking for the iterator.
+	 * Note that if we are using a time based iterator, we return only the events within the time window; we do not include the last event before the start.
+	 * @param scanPredicate
+	 * @return this
+	 */
+	public FileBackedPBEventStream setScanPredicate(PBScanPredicate scanPredicate) {
+		this.scanPredicate = scanPredicate;
+		return this;
+	}
+	
 	/**
 	 * Determine the iterator to be used for this query based on the query start and end times and the first and last sample times.
 	 * @param path
@@ -243,7 +264,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 			logger.debug("Case 3 - we need all of the data in this file");
 			this.positionBoundaries = true;
 			this.startFilePos = fileInfo.getPositionOfFirstSample() - 1;
-			this.endFilePos = Files.size(path);
+			this.endFilePos = ArchPaths.size(path);
 		} else if(queryStartEpoch >= firstSampleEpoch && queryEndEpoch < lastSampleEpoch) { 
 			logger.debug("Case 4 - Lookup start and end");
 			long endPosition = seekToEndTime(path, dbrtype, queryStartTime, queryEndTime);
@@ -264,7 +285,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 			if(startPosition != -1) { 
 				this.positionBoundaries = true;
 				this.startFilePos = startPosition;
-				this.endFilePos = Files.size(path);
+				this.endFilePos = ArchPaths.size(path);
 			} else { 
 				logger.warn("Case 5 - did not find the start for pv " + pvName + " in file " + path.toAbsolutePath().toString() + ". Switching to using a time based iterator");
 				this.positionBoundaries = false;
@@ -275,7 +296,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 			logger.debug("Case 6 - we only the last sample");
 			this.positionBoundaries = true;
 			this.startFilePos = fileInfo.getPositionOfLastSample() - 1;
-			this.endFilePos = Files.size(path);
+			this.endFilePos = ArchPaths.size(path);
 		} else {
 			logger.error("Unexpected case in seekToTimes for pv " + pvName 
 					+ " in file " + path.toAbsolutePath().toString()
@@ -296,7 +317,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 		YearSecondTimestamp queryEndYTS = TimeUtils.convertToYearSecondTimestamp(queryEndTime); 
 		int queryEndSecondsIntoYear = TimeUtils.convertToYearSecondTimestamp(queryEndTime).getSecondsintoyear();
 		if(fileInfo.getInfo().getYear() == queryEndYTS.getYear()) {
-			FileEventStreamSearch bsend = new FileEventStreamSearch(path, startFilePos);
+			FileEventStreamSearch bsend = newSearch(path, queryEndTime);
 			boolean endfound = bsend.seekToTime(dbrtype, queryEndSecondsIntoYear);
 			if(endfound) {
 				endPosition = bsend.getFoundPosition();
@@ -336,6 +357,24 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 		return endPosition;
 	}
 	
+	/**
+	 * For block compressed files, we use the first timestamps in the block index to restrict the search to the blocks that could have this time.
+	 * So, we only decompress a few blocks for the search.
+	 * @param path
+	 * @param queryTime
+	 * @return
+	 * @throws IOException
+	 */
+	private FileEventStreamSearch newSearch(Path path, Timestamp queryTime) throws IOException {
+		BlockIndex blockIndex = BlockCompressedFile.getIndex(path);
+		if(blockIndex != null) {
+			long[] searchBounds = blockIndex.getSearchBounds(TimeUtils.convertToEpochSeconds(queryTime), startFilePos);
+			if(logger.isDebugEnabled()) logger.debug("Searching between " + searchBounds[0] + " and " + searchBounds[1] + " in block compressed file " + path.toAbsolutePath().toString());
+			return new FileEventStreamSearch(path, searchBounds[0], searchBounds[1]);
+		}
+		return new FileEventStreamSearch(path, startFilePos);
+	}
+	
 	private long seekToStartTime(Path path, ArchDBRTypes dbrtype, Timestamp queryStartTime, Timestamp queryEndTime) throws IOException { 
 		int queryStartSecondsIntoYear = TimeUtils.convertToYearSecondTimestamp(queryStartTime).getSecondsintoyear();
 		YearSecondTimestamp queryStartYTS = TimeUtils.convertToYearSecondTimestamp(queryStartTime);
@@ -346,7 +385,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 		}
 
 		if(fileInfo.getInfo().getYear() == queryStartYTS.getYear()) {
-			FileEventStreamSearch bsstart = new FileEventStreamSearch(path, startFilePos);
+			FileEventStreamSearch bsstart = newSearch(path, queryStartTime);
 			boolean startfound = bsstart.seekToTime(dbrtype, queryStartSecondsIntoYear);
 			if(startfound) {
 				startPosition = bsstart.getFoundPosition();
@@ -364,7 +403,7 @@ public class FileBackedPBEventStream implements EventStream, RemotableOverRaw, E
 	@Override
 	public ReadableByteChannel getByteChannel(BasicContext context) throws IOException {
 		PBFileInfo fileInfo = new PBFileInfo(path, false);
-		SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ);
+		SeekableByteChannel channel = ArchPaths.newByteChannel(path, StandardOpenOption.READ);
 		channel.position(fileInfo.getPositionOfFirstSample());
 		return channel;
 	}
@@ -33,6 +33,8 @@ public class FileBackedPBEventStreamPositionBasedIterator implements FileBackedP
 	private short year = 0;
 	private LineByteStream lbs = null;
 	private ByteArray nextLine = new ByteArray(LineByteStream.MAX_LINE_SIZE);
+	private ByteArray nextEventLine = null;
+	private DeltaVectorDecoder deltaDecoder;
 	private ArchDBRTypes type;
 	private DBR2PBTypeMapping mapping;
 	private Constructor<? extends DBRTimeEvent> unmarshallingConstructor;
@@ -50,14 +52,19 @@ public class FileBackedPBEventStreamPositionBasedIterator implements FileBackedP
 		this.year = year;
 		lbs = new LineByteStream(path, this.startFilePos, this.endFilePos);
 		lbs.seekToFirstNewLine();
+		deltaDecoder = new DeltaVectorDecoder(path, type);
 	}
 
 	
 	@Override
 	public boolean hasNext() {
 		try {
+			long linePosition = lbs.getCurrentPosition();
 			lbs.readLine(nextLine);
-			if(!nextLine.isEmpty()) return true;
+			if(!nextLine.isEmpty()) {
+				nextEventLine = deltaDecoder.decode(nextLine, linePosition);
+				return true;
+			}
 		} catch(Exception ex) {
 			logger.error("Exception creating event object", ex);
 		}
@@ -68,7 +75,7 @@ public class FileBackedPBEventStreamPositionBasedIterator implements FileBackedP
 	@Override
 	public Event next() {
 		try {
-			return (Event) unmarshallingConstructor.newInstance(year, nextLine);
+			return (Event) unmarshallingConstructor.newInstance(year, nextEventLine);
 		} catch (Exception ex) {
 			logger.error("Exception creating event object", ex);
 			return null;
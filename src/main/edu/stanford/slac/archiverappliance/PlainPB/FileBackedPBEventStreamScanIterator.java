@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+
+import edu.stanford.slac.archiverappliance.PB.utils.LineByteStream;
+
+/**
+ * An iterator for a FileBackedPBEventStream that evaluates a PBScanPredicate on each line between the start and end positions.
+ * Only the lines accepted by the predicate are decoded.
+ * @author mshankar
+ *
+ */
+public class FileBackedPBEventStreamScanIterator implements FileBackedPBEventStreamIterator {
+	private static Logger logger = Logger.getLogger(FileBackedPBEventStreamScanIterator.class.getName());
+	private LineByteStream lbs = null;
+	private ByteArray nextLine = new ByteArray(LineByteStream.MAX_LINE_SIZE);
+	private PBScanPredicate predicate;
+	private PBScanEvent scanEvent;
+	private boolean nextAccepted = false;
+	private DeltaVectorDecoder deltaDecoder;
+
+	public FileBackedPBEventStreamScanIterator(Path path, long startFilePos, long endFilePos, short year, ArchDBRTypes type, PBScanPredicate predicate) throws IOException {
+		assert(startFilePos >= 0);
+		assert(endFilePos >= startFilePos);
+		this.predicate = predicate;
+		this.scanEvent = new PBScanEvent(year, type);
+		lbs = new LineByteStream(path, startFilePos, endFilePos);
+		lbs.seekToFirstNewLine();
+		deltaDecoder = new DeltaVectorDecoder(path, type);
+	}
+
+	@Override
+	public boolean hasNext() {
+		if(nextAccepted) return true;
+		try {
+			long linePosition = lbs.getCurrentPosition();
+			lbs.readLine(nextLine);
+			while(!nextLine.isEmpty()) {
+				// Files with delta frames have to be decoded line by line; the decoder is a no-op for other files.
+				scanEvent.setLine(deltaDecoder.decode(nextLine, linePosition));
+				if(predicate.accept(scanEvent)) {
+					nextAccepted = true;
+					return true;
+				}
+				linePosition = lbs.getCurrentPosition();
+				lbs.readLine(nextLine);
+			}
+		} catch(Exception ex) {
+			logger.error("Exception scanning for the next event", ex);
+		}
+		return false;
+	}
+
+	@Override
+	public Event next() {
+		if(!hasNext()) throw new NoSuchElementException();
+		nextAccepted = false;
+		try {
+			return scanEvent.getEvent();
+		} catch (Exception ex) {
+			logger.error("Exception creating event object", ex);
+			return null;
+		}
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void close() {
+		lbs.safeClose();
+	}
+}
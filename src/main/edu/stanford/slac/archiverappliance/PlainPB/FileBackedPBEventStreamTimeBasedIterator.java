@@ -24,6 +24,7 @@ import com.google.protobuf.InvalidProtocolBufferException;
 
 import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
 import edu.stanford.slac.archiverappliance.PB.data.PBParseException;
+import edu.stanford.slac.archiverappliance.PB.utils.EscapedPBEventHeader;
 import edu.stanford.slac.archiverappliance.PB.utils.LineByteStream;
 
 /**
@@ -40,23 +41,30 @@ public class FileBackedPBEventStreamTimeBasedIterator implements FileBackedPBEve
 	private ArchDBRTypes type;
 	private DBR2PBTypeMapping mapping;
 	private Constructor<? extends DBRTimeEvent> unmarshallingConstructor;
+	// We read the timestamps from the escaped bytes; this avoids decoding the events that we skip.
+	private EscapedPBEventHeader header;
+	private long startOfYearEpochSeconds;
+	private DeltaVectorDecoder deltaDecoder;
 	Events events = new Events();
 	
 	private class Events { 
 		private ByteArray line1 = new ByteArray(LineByteStream.MAX_LINE_SIZE);
 		private Event event1 = null;
+		private long event1EpochSeconds = 0;
 		private ByteArray line2 = new ByteArray(LineByteStream.MAX_LINE_SIZE);
 		private Event event2 = null;
+		private long event2EpochSeconds = 0;
 		
 		void readEvents(LineByteStream lbs) throws Exception {
 			if(event1 == null) {
 				boolean done = false;
 				while(!done) {
 					try { 
+						long linePosition = lbs.getCurrentPosition();
 						lbs.readLine(line1);
 						if(!line1.isEmpty()) {
-							event1 = (Event) unmarshallingConstructor.newInstance(year, line1);
-							long event1EpochSeconds = event1.getEpochSeconds();
+							event1 = (Event) unmarshallingConstructor.newInstance(year, deltaDecoder.decode(line1, linePosition));
+							event1EpochSeconds = getEpochSeconds(line1, event1);
 							done = true;
 							if(event1EpochSeconds >= endTimeEpochSeconds) { 
 								event1 = null;
@@ -75,10 +83,11 @@ public class FileBackedPBEventStreamTimeBasedIterator implements FileBackedPBEve
 				boolean done = false;
 				while(!done) {
 					try { 
+						long linePosition = lbs.getCurrentPosition();
 						lbs.readLine(line2);
 						if(!line2.isEmpty()) {
-							event2 = (Event) unmarshallingConstructor.newInstance(year, line2);
-							long event2EpochSeconds = event2.getEpochSeconds();
+							event2 = (Event) unmarshallingConstructor.newInstance(year, deltaDecoder.decode(line2, linePosition));
+							event2EpochSeconds = getEpochSeconds(line2, event2);
 							done = true;
 							if(event2EpochSeconds >= endTimeEpochSeconds) { 
 								event2 = null;
@@ -96,8 +105,6 @@ public class FileBackedPBEventStreamTimeBasedIterator implements FileBackedPBEve
 		
 		boolean startFound() {
 			if(event1 != null && event2 != null) {
-				long event1EpochSeconds = event1.getEpochSeconds();
-				long event2EpochSeconds = event2.getEpochSeconds();
 				if(event1EpochSeconds >= startTimeEpochSeconds) {
 					logger.debug("We have reached an event whose start time is greater than the requested start already. Terminating the search.");
 					return true;
@@ -108,7 +115,6 @@ public class FileBackedPBEventStreamTimeBasedIterator implements FileBackedPBEve
 			
 			if(event1 != null) {
 				assert(event2 == null);
-				long event1EpochSeconds = event1.getEpochSeconds();
 				logger.debug("Only one event found. As long as this is before the end time, we claim we found something.");
 				if(event1EpochSeconds <= endTimeEpochSeconds) return true;
 				return false;
@@ -122,6 +128,7 @@ public class FileBackedPBEventStreamTimeBasedIterator implements FileBackedPBEve
 			ByteArray previousByteArray = line1;
 			if(event2 != null) { 
 				event1 = event2;
+				event1EpochSeconds = event2EpochSeconds;
 				line1 = line2;
 				event2 = null;
 				line2 = previousByteArray;
@@ -150,6 +157,9 @@ public class FileBackedPBEventStreamTimeBasedIterator implements FileBackedPBEve
 		this.type = type;
 		mapping = DBR2PBTypeMapping.getPBClassFor(this.type);
 		unmarshallingConstructor = mapping.getUnmarshallingFromByteArrayConstructor();
+		header = new EscapedPBEventHeader(type);
+		deltaDecoder = new DeltaVectorDecoder(path, type);
+		startOfYearEpochSeconds = TimeUtils.getStartOfYearInSeconds(year);
 		assert(startTimeEpochSeconds >= 0);
 		assert(endTimeEpochSeconds >= 0);
 		assert(endTimeEpochSeconds >= startTimeEpochSeconds);
@@ -168,6 +178,12 @@ public class FileBackedPBEventStreamTimeBasedIterator implements FileBackedPBEve
 		}
 	}
 
+	private long getEpochSeconds(ByteArray line, Event event) {
+		if(header.read(line)) {
+			return startOfYearEpochSeconds + header.getSecondsintoyear();
+		}
+		return event.getEpochSeconds();
+	}
 	
 	@Override
 	public boolean hasNext() {
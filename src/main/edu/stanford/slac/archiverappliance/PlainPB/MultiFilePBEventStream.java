@@ -8,7 +8,6 @@
 package edu.stanford.slac.archiverappliance.PlainPB;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.Timestamp;
 import java.util.Iterator;
@@ -21,6 +20,7 @@ import org.epics.archiverappliance.common.YearSecondTimestamp;
 import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
 import org.epics.archiverappliance.retrieval.RemotableOverRaw;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
 
 import edu.stanford.slac.archiverappliance.PB.search.FileEventStreamSearch;
 import edu.stanford.slac.archiverappliance.PB.utils.LineByteStream;
@@ -87,7 +87,7 @@ public class MultiFilePBEventStream implements EventStream, RemotableOverRaw {
 					if(pbinfo.getDataYear() == endYTS.getYear()) {
 						FileEventStreamSearch bsend = new FileEventStreamSearch(path, pbinfo.positionOfFirstSample);
 						boolean endfound = bsend.seekToTime(dbrtype, endSecondsIntoYear);
-						long endPosition = Files.size(path);
+						long endPosition = ArchPaths.size(path);
 						if(endfound) {
 							endPosition = bsend.getFoundPosition();
 							logger.debug("Found end position " + endPosition + " in file " + path.toAbsolutePath().toString());
@@ -35,7 +35,8 @@ public class MultiFilePBEventStreamIterator implements Iterator<Event> {
 	private LineByteStreamCreator istreams[];
 	private int currentStreamIndex = 0;
 	private LineByteStream currentLis;
-	private byte[] nextLine = null;
+	private ByteArray nextLine = null;
+	private DeltaVectorDecoder deltaDecoder;
 
 	public MultiFilePBEventStreamIterator(LineByteStreamCreator istreams[], String pvName, short year, ArchDBRTypes type) throws IOException {
 		this.istreams = istreams;
@@ -44,14 +45,14 @@ public class MultiFilePBEventStreamIterator implements Iterator<Event> {
 		mapping = DBR2PBTypeMapping.getPBClassFor(this.type);
 		unmarshallingConstructor = mapping.getUnmarshallingFromByteArrayConstructor();
 		currentLis = istreams[currentStreamIndex].getLineByteStream();
+		deltaDecoder = new DeltaVectorDecoder(currentLis.getPath(), type);
 	}
 
 	
 	@Override
 	public boolean hasNext() {
 		try {
-			nextLine = currentLis.readLine();
-			if(nextLine != null) return true;
+			if(readNextLine()) return true;
 			while(true) {
 				currentStreamIndex++;
 				if(currentStreamIndex >= istreams.length) {
@@ -60,10 +61,10 @@ public class MultiFilePBEventStreamIterator implements Iterator<Event> {
 				} else {
 					if(currentLis != null) currentLis.safeClose();
 					currentLis = istreams[currentStreamIndex].getLineByteStream();
+					deltaDecoder = new DeltaVectorDecoder(currentLis.getPath(), type);
 					logger.debug("Switching to next lis " + currentLis.getAbsolutePath());
 				}
-				nextLine = currentLis.readLine();
-				if(nextLine != null) return true;
+				if(readNextLine()) return true;
 			}
 		} catch(Exception ex) {
 			logger.error("Exception creating event object", ex);
@@ -71,11 +72,19 @@ public class MultiFilePBEventStreamIterator implements Iterator<Event> {
 		return false;
 	}
 
+	private boolean readNextLine() throws IOException {
+		long linePosition = currentLis.getCurrentPosition();
+		byte[] line = currentLis.readLine();
+		if(line == null) return false;
+		nextLine = deltaDecoder.decode(new ByteArray(line), linePosition);
+		return true;
+	}
+
 
 	@Override
 	public Event next() {
 		try {
-			return (Event) unmarshallingConstructor.newInstance(year, new ByteArray(nextLine));
+			return (Event) unmarshallingConstructor.newInstance(year, nextLine);
 		} catch (Exception ex) {
 			logger.error("Exception creating event object", ex);
 			return null;
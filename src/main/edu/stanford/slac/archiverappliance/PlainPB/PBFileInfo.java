@@ -9,13 +9,13 @@ package edu.stanford.slac.archiverappliance.PlainPB;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
-import java.nio.file.Files;
 import java.nio.file.Path;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.ByteArray;
 import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
 
 import edu.stanford.slac.archiverappliance.PB.EPICSEvent.PayloadInfo;
 import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
@@ -49,7 +49,7 @@ public class PBFileInfo {
 			logger.debug("PayloadInfo PVName: " + info.getPvname() + " is of type " + info.getType().name() + " and data is for the year " + info.getYear());
 			positionOfFirstSample = lis.getCurrentPosition();
 			// This is not strictly correct; but this will be adjusted below.
-			positionOfLastSample = Files.size(path);
+			positionOfLastSample = ArchPaths.size(path);
 
 			ArchDBRTypes type = ArchDBRTypes.valueOf(info.getType());
 			Constructor<? extends DBRTimeEvent> unmarshallingConstructor = DBR2PBTypeMapping.getPBClassFor(type).getUnmarshallingFromByteArrayConstructor();
@@ -57,10 +57,10 @@ public class PBFileInfo {
 			lis.seekToFirstNewLine();
 			byte[] firstLine = lis.readLine();
 			if(firstLine != null) {
-				firstEvent = (DBRTimeEvent) unmarshallingConstructor.newInstance(getDataYear(), new ByteArray(firstLine));
+				firstEvent = (DBRTimeEvent) unmarshallingConstructor.newInstance(getDataYear(), new DeltaVectorDecoder(path, type).decode(new ByteArray(firstLine), positionOfFirstSample));
 				if(lookupLastEvent) {
 					// If we do not have a first line, we probably do not have a last line
-					this.lookupLastEvent(path, lis, unmarshallingConstructor);
+					this.lookupLastEvent(path, lis, unmarshallingConstructor, type);
 				}
 			} else {
 				logger.debug("File " + path.toAbsolutePath().toString() + " does not seem to have any first line?");
@@ -131,7 +131,7 @@ public class PBFileInfo {
 	}
 	
 	
-	private void lookupLastEvent(Path path, LineByteStream lis, Constructor<? extends DBRTimeEvent> unmarshallingConstructor) throws Exception { 
+	private void lookupLastEvent(Path path, LineByteStream lis, Constructor<? extends DBRTimeEvent> unmarshallingConstructor, ArchDBRTypes type) throws Exception { 
 		// If we do not have a first line, we probably do not have a last line
 		lis.seekToBeforeLastLine();
 		long posn = lis.getCurrentPosition();
@@ -148,7 +148,7 @@ public class PBFileInfo {
 		// Potential infinite loop here; we'll try about 1000 times
 		while(lastEvent == null && lastLine != null && tries < 1000) {
 			try { 
-				lastEvent = (DBRTimeEvent) unmarshallingConstructor.newInstance(getDataYear(), new ByteArray(lastLine));
+				lastEvent = (DBRTimeEvent) unmarshallingConstructor.newInstance(getDataYear(), new DeltaVectorDecoder(path, type).decode(new ByteArray(lastLine), posn));
 				lastEvent.getEventTimeStamp();
 				positionOfLastSample = posn;
 				return;
@@ -0,0 +1,301 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.common.BasicContext;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin.CompressionMode;
+
+/**
+ * Support for moving the PB files for a PV from one appliance to another as is; that is, without decoding and re-encoding each event.
+ * This is used when resharding PVs with lots of data.
+ * <ol>
+ * <li>The source lists the files for the PV using {@link #listFilesForPV(PlainPBStoragePlugin, BasicContext, String) listFilesForPV}.
+ * Each file is identified by the portion of its name after the PV's key; for example, <code>:2015.pb</code>.
+ * This lets the destination place the file into its own directory layout.</li>
+ * <li>The destination copies each file into a staging folder using {@link #receiveFile(InputStream, Map, String, Path, TransferProgress) receiveFile}.
+ * This verifies the size and checksum of the bytes received and then checks the header and the first/last events using {@link PBFileInfo}.</li>
+ * <li>Once all files have been received, the destination moves them into the store using {@link #installFile(PlainPBStoragePlugin, BasicContext, String, String, Path) installFile}
+ * and checks them again using {@link #verifyInstalledFile(PlainPBStoragePlugin, BasicContext, String, Map) verifyInstalledFile}.
+ * Only then is the source deleted; if something fails before this, the installed files are removed using {@link #uninstallFile(PlainPBStoragePlugin, BasicContext, String, String) uninstallFile}.</li>
+ * </ol>
+ * This does not support stores that use ZIP_PER_PV; files in BLOCK_DEFLATE stores are regular files and are transferred as is.
+ * @author mshankar
+ *
+ */
+public class PBFileTransfer {
+	private static final Logger logger = Logger.getLogger(PBFileTransfer.class);
+	public static final String CHECKSUM_ALGORITHM = "SHA-256";
+	private static final int BUFFER_SIZE = 64*1024;
+
+	/**
+	 * Get notified as bytes are received.
+	 */
+	public interface TransferProgress {
+		public void bytesTransferred(long bytes);
+	}
+
+	/**
+	 * List all the files for this PV in this store along with the information the destination needs to verify the transfer.
+	 * Each entry has these keys - <code>file</code>, <code>size</code>, <code>checksum</code>, <code>pvName</code>, <code>type</code>, <code>firstEvent</code> and <code>lastEvent</code>.
+	 * The first and last events are in epoch seconds.
+	 * @param plugin
+	 * @param context
+	 * @param pvName
+	 * @return The list of files sorted by name (which is also by time)
+	 * @throws IOException
+	 */
+	public static List<Map<String, String>> listFilesForPV(PlainPBStoragePlugin plugin, BasicContext context, String pvName) throws IOException {
+		checkCompressionMode(plugin);
+		String pvFinalNameComponent = Paths.get(plugin.getPVNameToKeyMapping().convertPVNameToKey(pvName)).getFileName().toString();
+		LinkedList<Map<String, String>> ret = new LinkedList<Map<String, String>>();
+		LinkedList<String> extensions = new LinkedList<String>();
+		extensions.add(PlainPBStoragePlugin.PB_EXTENSION);
+		extensions.addAll(plugin.getPPExtensions());
+		for(String extension : extensions) {
+			Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), plugin.getRootFolder(), pvName, extension, plugin.getPartitionGranularity(), plugin.getCompressionMode(), plugin.getPVNameToKeyMapping());
+			if(paths == null) continue;
+			for(Path path : paths) {
+				String fileName = path.getFileName().toString();
+				if(!fileName.startsWith(pvFinalNameComponent) || !fileName.endsWith(extension)) {
+					logger.warn("Skipping file " + path.toString() + " as it does not seem to follow the naming conventions for pv " + pvName);
+					continue;
+				}
+				PBFileInfo info = new PBFileInfo(path);
+				HashMap<String, String> fileDetails = new HashMap<String, String>();
+				fileDetails.put("file", fileName.substring(pvFinalNameComponent.length()));
+				fileDetails.put("size", Long.toString(Files.size(path)));
+				fileDetails.put("checksum", computeChecksum(path));
+				fileDetails.put("pvName", info.getPVName());
+				fileDetails.put("type", info.getType().toString());
+				fileDetails.put("firstEvent", Long.toString(info.getFirstEventEpochSeconds()));
+				fileDetails.put("lastEvent", Long.toString(info.getLastEventEpochSeconds()));
+				ret.add(fileDetails);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the path to the file for this PV given the file identifier from {@link #listFilesForPV(PlainPBStoragePlugin, BasicContext, String) listFilesForPV}.
+	 * We validate the identifier to make sure that the file belongs to this PV and that the path does not escape the store.
+	 * @param plugin
+	 * @param context
+	 * @param pvName
+	 * @param file
+	 * @param createParentFolder
+	 * @return
+	 * @throws IOException
+	 */
+	public static Path getPathForFile(PlainPBStoragePlugin plugin, BasicContext context, String pvName, String file, boolean createParentFolder) throws IOException {
+		checkCompressionMode(plugin);
+		if(file == null || file.isEmpty() || file.contains("/") || file.contains("\\") || file.contains("..")) {
+			throw new IOException("Invalid file " + file + " for pv " + pvName);
+		}
+		boolean validExtension = file.endsWith(PlainPBStoragePlugin.PB_EXTENSION);
+		for(String ppExtension : plugin.getPPExtensions()) {
+			if(file.endsWith(ppExtension)) validExtension = true;
+		}
+		if(!validExtension) {
+			throw new IOException("File " + file + " for pv " + pvName + " does not have a known extension");
+		}
+		return context.getPaths().get(createParentFolder, plugin.getRootFolder(), plugin.getPVNameToKeyMapping().convertPVNameToKey(pvName) + file);
+	}
+
+	/**
+	 * Copy the bytes for a file into the staging path and verify that we have the file described in fileDetails.
+	 * If the verification fails, the staging path is deleted and we throw an exception.
+	 * @param is - The bytes of the file. The caller is responsible for closing this.
+	 * @param fileDetails - The details of the file as obtained from the source using {@link #listFilesForPV(PlainPBStoragePlugin, BasicContext, String) listFilesForPV}
+	 * @param pvName - The PV we are expecting in the header of the file.
+	 * @param stagingPath - The file is copied into this path.
+	 * @param progress - Optional; gets notified as we copy bytes.
+	 * @throws IOException
+	 */
+	public static void receiveFile(InputStream is, Map<String, String> fileDetails, String pvName, Path stagingPath, TransferProgress progress) throws IOException {
+		String file = fileDetails.get("file");
+		boolean verified = false;
+		try {
+			MessageDigest digest = getMessageDigest();
+			long bytesReceived = 0;
+			byte[] buf = new byte[BUFFER_SIZE];
+			try(OutputStream os = Files.newOutputStream(stagingPath)) {
+				int bytesRead = is.read(buf);
+				while(bytesRead != -1) {
+					os.write(buf, 0, bytesRead);
+					digest.update(buf, 0, bytesRead);
+					bytesReceived += bytesRead;
+					if(progress != null) progress.bytesTransferred(bytesRead);
+					bytesRead = is.read(buf);
+				}
+			}
+
+			long expectedSize = Long.parseLong(fileDetails.get("size"));
+			if(bytesReceived != expectedSize) {
+				throw new IOException("Received " + bytesReceived + " bytes for file " + file + " for pv " + pvName + "; expecting " + expectedSize);
+			}
+			String checksum = Hex.encodeHexString(digest.digest());
+			if(!checksum.equals(fileDetails.get("checksum"))) {
+				throw new IOException("Checksum mismatch for file " + file + " for pv " + pvName + "; received " + checksum + " expecting " + fileDetails.get("checksum"));
+			}
+
+			verifyFileInfo(stagingPath, fileDetails, pvName);
+			verified = true;
+			logger.debug("Received and verified " + bytesReceived + " bytes for file " + file + " for pv " + pvName);
+		} finally {
+			if(!verified) {
+				Files.deleteIfExists(stagingPath);
+			}
+		}
+	}
+
+	/**
+	 * Move a file that was received into the staging path into its final location in this store.
+	 * We do not overwrite existing data.
+	 * @param plugin
+	 * @param context
+	 * @param pvName
+	 * @param file
+	 * @param stagingPath
+	 * @throws IOException
+	 */
+	public static void installFile(PlainPBStoragePlugin plugin, BasicContext context, String pvName, String file, Path stagingPath) throws IOException {
+		Path destPath = getPathForFile(plugin, context, pvName, file, true);
+		if(Files.exists(destPath)) {
+			throw new IOException("Not overwriting existing file " + destPath.toString() + " for pv " + pvName);
+		}
+		long size = Files.size(stagingPath);
+		Files.move(stagingPath, destPath);
+		PVStorageLedger storageLedger = plugin.getStorageLedger();
+		if(storageLedger != null) {
+			storageLedger.fileWritten(pvName, -1, size);
+		}
+		PVTimelineCatalog timelineCatalog = plugin.getTimelineCatalog();
+		if(timelineCatalog != null) {
+			timelineCatalog.partitionsChanged(pvName);
+		}
+		logger.debug("Moved " + stagingPath.toString() + " to " + destPath.toString());
+	}
+
+	/**
+	 * Check that the file installed into this store using {@link #installFile(PlainPBStoragePlugin, BasicContext, String, String, Path) installFile} is the file described in fileDetails.
+	 * Use this before deleting the source of the transfer.
+	 * @param plugin
+	 * @param context
+	 * @param pvName
+	 * @param fileDetails - The details of the file as obtained from the source using {@link #listFilesForPV(PlainPBStoragePlugin, BasicContext, String) listFilesForPV}
+	 * @throws IOException - If the installed file does not match fileDetails.
+	 */
+	public static void verifyInstalledFile(PlainPBStoragePlugin plugin, BasicContext context, String pvName, Map<String, String> fileDetails) throws IOException {
+		String file = fileDetails.get("file");
+		Path destPath = getPathForFile(plugin, context, pvName, file, false);
+		if(!Files.exists(destPath)) {
+			throw new IOException("Installed file " + destPath.toString() + " for pv " + pvName + " does not exist");
+		}
+		long expectedSize = Long.parseLong(fileDetails.get("size"));
+		if(Files.size(destPath) != expectedSize) {
+			throw new IOException("Installed file " + destPath.toString() + " for pv " + pvName + " has " + Files.size(destPath) + " bytes; expecting " + expectedSize);
+		}
+		String checksum = computeChecksum(destPath);
+		if(!checksum.equals(fileDetails.get("checksum"))) {
+			throw new IOException("Checksum mismatch for installed file " + destPath.toString() + " for pv " + pvName + "; found " + checksum + " expecting " + fileDetails.get("checksum"));
+		}
+		verifyFileInfo(destPath, fileDetails, pvName);
+	}
+
+	/**
+	 * Remove a file that we installed using {@link #installFile(PlainPBStoragePlugin, BasicContext, String, String, Path) installFile}.
+	 * This is used to roll back a transfer that could not be completed.
+	 * @param plugin
+	 * @param context
+	 * @param pvName
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void uninstallFile(PlainPBStoragePlugin plugin, BasicContext context, String pvName, String file) throws IOException {
+		Path destPath = getPathForFile(plugin, context, pvName, file, false);
+		if(!Files.exists(destPath)) return;
+		long size = Files.size(destPath);
+		Files.delete(destPath);
+		PVStorageLedger storageLedger = plugin.getStorageLedger();
+		if(storageLedger != null) {
+			storageLedger.fileRemoved(pvName, size);
+		}
+		PVTimelineCatalog timelineCatalog = plugin.getTimelineCatalog();
+		if(timelineCatalog != null) {
+			timelineCatalog.partitionsChanged(pvName);
+		}
+		logger.debug("Removed installed file " + destPath.toString());
+	}
+
+	/**
+	 * Check the header and the first/last events of the file against fileDetails.
+	 */
+	private static void verifyFileInfo(Path path, Map<String, String> fileDetails, String pvName) throws IOException {
+		String file = fileDetails.get("file");
+		PBFileInfo info = new PBFileInfo(path);
+		if(!pvName.equals(info.getPVName())) {
+			throw new IOException("File " + file + " has data for pv " + info.getPVName() + "; expecting " + pvName);
+		}
+		if(!info.getType().toString().equals(fileDetails.get("type"))) {
+			throw new IOException("File " + file + " for pv " + pvName + " has data of type " + info.getType() + "; expecting " + fileDetails.get("type"));
+		}
+		if(info.getFirstEventEpochSeconds() != Long.parseLong(fileDetails.get("firstEvent")) || info.getLastEventEpochSeconds() != Long.parseLong(fileDetails.get("lastEvent"))) {
+			throw new IOException("File " + file + " for pv " + pvName + " has events from " + info.getFirstEventEpochSeconds() + " to " + info.getLastEventEpochSeconds()
+					+ "; expecting " + fileDetails.get("firstEvent") + " to " + fileDetails.get("lastEvent"));
+		}
+	}
+
+	/**
+	 * Compute the checksum of the file's contents as a hex string.
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static String computeChecksum(Path path) throws IOException {
+		MessageDigest digest = getMessageDigest();
+		byte[] buf = new byte[BUFFER_SIZE];
+		try(InputStream is = Files.newInputStream(path)) {
+			int bytesRead = is.read(buf);
+			while(bytesRead != -1) {
+				digest.update(buf, 0, bytesRead);
+				bytesRead = is.read(buf);
+			}
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	private static MessageDigest getMessageDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+		} catch(NoSuchAlgorithmException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	private static void checkCompressionMode(PlainPBStoragePlugin plugin) throws IOException {
+		if(plugin.getCompressionMode() == CompressionMode.ZIP_PER_PV) {
+			throw new IOException("File transfers are not supported for zip compressed stores; " + plugin.getName() + " uses " + plugin.getCompressionMode());
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.lang.reflect.Constructor;
+
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+
+import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
+import edu.stanford.slac.archiverappliance.PB.utils.EscapedPBEventHeader;
+
+/**
+ * The view of a line in a PB file that is passed to a PBScanPredicate.
+ * The timestamp, severity and status (and the value for scalar numeric types) are read from the escaped bytes; the event is decoded only if asked for.
+ * If we cannot read the fields from the escaped bytes, we fall back to decoding the event.
+ * This is reused across lines by the scan iterator; so predicates should not hold on to it.
+ * @author mshankar
+ *
+ */
+public class PBScanEvent {
+	private final short year;
+	private final long startOfYearEpochSeconds;
+	private final Constructor<? extends DBRTimeEvent> unmarshallingConstructor;
+	private final EscapedPBEventHeader header;
+	private ByteArray line;
+	private boolean headerRead;
+	private DBRTimeEvent event;
+
+	PBScanEvent(short year, ArchDBRTypes type) {
+		this.year = year;
+		this.startOfYearEpochSeconds = TimeUtils.getStartOfYearInSeconds(year);
+		this.unmarshallingConstructor = DBR2PBTypeMapping.getPBClassFor(type).getUnmarshallingFromByteArrayConstructor();
+		this.header = new EscapedPBEventHeader(type);
+	}
+
+	void setLine(ByteArray line) {
+		this.line = line;
+		this.headerRead = header.read(line);
+		this.event = null;
+	}
+
+	/**
+	 * Decode the event. The event uses the line's ByteArray; so use makeClone if you need to hold on to it.
+	 * @return The decoded event
+	 */
+	public DBRTimeEvent getEvent() {
+		if(event == null) {
+			try {
+				event = unmarshallingConstructor.newInstance(year, line);
+			} catch(Exception ex) {
+				throw new RuntimeException("Exception creating event object", ex);
+			}
+		}
+		return event;
+	}
+
+	public long getEpochSeconds() {
+		if(headerRead) return startOfYearEpochSeconds + header.getSecondsintoyear();
+		return getEvent().getEpochSeconds();
+	}
+
+	public int getNanos() {
+		if(headerRead) return header.getNano();
+		return getEvent().getEventTimeStamp().getNanos();
+	}
+
+	/**
+	 * @return The timestamp as Java epoch milliseconds.
+	 */
+	public long getEpochMillis() {
+		return getEpochSeconds()*1000 + getNanos()/1000000;
+	}
+
+	public int getSeverity() {
+		if(headerRead) return header.getSeverity();
+		return getEvent().getSeverity();
+	}
+
+	public int getStatus() {
+		if(headerRead) return header.getStatus();
+		return getEvent().getStatus();
+	}
+
+	/**
+	 * The value as a double; for waveforms, this is the first element (as in SampleValue.getValue).
+	 * @return
+	 */
+	public double getValue() {
+		if(headerRead && header.hasValue()) return header.getValue();
+		return getEvent().getSampleValue().getValue().doubleValue();
+	}
+}
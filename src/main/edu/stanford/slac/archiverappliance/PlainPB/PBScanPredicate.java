@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.sql.Timestamp;
+
+/**
+ * A filter that is evaluated on each line of a PB file before the event is decoded; see FileBackedPBEventStream.setScanPredicate.
+ * Predicates that only look at the timestamp, severity, status or a scalar value can reject events without building the protobuf object.
+ * Only the events that are accepted are decoded and returned by the iterator.
+ * Predicates may be stateful (for example, everyNth); they are evaluated once per line in file order.
+ * @author mshankar
+ *
+ */
+public abstract class PBScanPredicate {
+	/**
+	 * @param event The fields of the current line; decoding the event is possible but defeats the purpose.
+	 * @return true if the event should be returned by the iterator.
+	 */
+	public abstract boolean accept(PBScanEvent event);
+
+	/**
+	 * Accept events with start &lt;= timestamp &lt; end.
+	 * Unlike the time based iterator, we do not include the last event before the start.
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public static PBScanPredicate timeWindow(Timestamp start, Timestamp end) {
+		final long startMillis = start.getTime();
+		final long endMillis = end.getTime();
+		return new PBScanPredicate() {
+			@Override
+			public boolean accept(PBScanEvent event) {
+				long epochMillis = event.getEpochMillis();
+				return epochMillis >= startMillis && epochMillis < endMillis;
+			}
+		};
+	}
+
+	/**
+	 * Accept events whose severity is at least this.
+	 * @param severity
+	 * @return
+	 */
+	public static PBScanPredicate severityAtLeast(final int severity) {
+		return new PBScanPredicate() {
+			@Override
+			public boolean accept(PBScanEvent event) {
+				return event.getSeverity() >= severity;
+			}
+		};
+	}
+
+	/**
+	 * Accept every nth event that gets to this predicate; the first one is accepted.
+	 * When combined using allOf, only the events accepted by the preceding predicates are counted.
+	 * @param n
+	 * @return
+	 */
+	public static PBScanPredicate everyNth(final int n) {
+		return new PBScanPredicate() {
+			private long count = 0;
+			@Override
+			public boolean accept(PBScanEvent event) {
+				return count++ % n == 0;
+			}
+		};
+	}
+
+	/**
+	 * Accept events whose value is greater than or equal to this threshold.
+	 * @param threshold
+	 * @return
+	 */
+	public static PBScanPredicate valueAtLeast(final double threshold) {
+		return new PBScanPredicate() {
+			@Override
+			public boolean accept(PBScanEvent event) {
+				return event.getValue() >= threshold;
+			}
+		};
+	}
+
+	/**
+	 * Accept events whose value is less than or equal to this threshold.
+	 * @param threshold
+	 * @return
+	 */
+	public static PBScanPredicate valueAtMost(final double threshold) {
+		return new PBScanPredicate() {
+			@Override
+			public boolean accept(PBScanEvent event) {
+				return event.getValue() <= threshold;
+			}
+		};
+	}
+
+	/**
+	 * Accept events that are accepted by all of these predicates; these are evaluated in order and we stop at the first rejection.
+	 * @param predicates
+	 * @return
+	 */
+	public static PBScanPredicate allOf(final PBScanPredicate... predicates) {
+		return new PBScanPredicate() {
+			@Override
+			public boolean accept(PBScanEvent event) {
+				for(PBScanPredicate predicate : predicates) {
+					if(!predicate.accept(event)) return false;
+				}
+				return true;
+			}
+		};
+	}
+}
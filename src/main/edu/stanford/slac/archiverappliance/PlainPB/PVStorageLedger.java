@@ -0,0 +1,319 @@
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.ConfigService.WAR_FILE;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin.CompressionMode;
+
+/**
+ * A running tally of the bytes and files consumed by each PV in a PlainPB store.
+ * The storage reports (PVsByStorageConsumed etc) used to list and stat every file for every PV; on a large LTS this can take a long time and thrashes the NFS metadata caches.
+ * Instead, the PlainPBStoragePlugin updates this ledger as it writes and deletes files and answers spaceConsumedByPV from memory.
+ * <ol>
+ * <li>There is one ledger per rootFolder; all the plugin instances for the store share this ledger.</li>
+ * <li>Appends (including ETL appends and post processor caches) are tracked as they happen in AppendDataStateData.</li>
+ * <li>PVs that we do not know about are scanned the first time we are asked; after that, they are tracked.</li>
+ * <li>Files deleted by markForDeletion invalidate the PV's entry.
+ * ETL sources are typically the short/medium term stores; the engine also writes into these and we do not see the engine's writes from the ETL war.
+ * These stores have only a few files per PV; so the rescan is cheap.</li>
+ * <li>The ledger is saved to a file in the rootFolder on shutdown and after each reconciliation.</li>
+ * <li>A low priority background thread periodically rescans the PVs in the ledger one at a time and fixes any drift.</li>
+ * </ol>
+ * The ledger is maintained only in the ETL war (which is where the storage reports are generated) and not for stores that use ZIP_PER_PV; for BLOCK_DEFLATE stores, these are the compressed sizes on disk.
+ * @author mshankar
+ *
+ */
+public class PVStorageLedger {
+	private static Logger logger = Logger.getLogger(PVStorageLedger.class.getName());
+	public static final String LEDGER_FILE_NAME = ".pvStorageLedger";
+	private static final int LEDGER_FILE_MAGIC = 0x50564c31;
+	private static final ConcurrentHashMap<String, PVStorageLedger> ledgers = new ConcurrentHashMap<String, PVStorageLedger>();
+	private static ScheduledExecutorService reconciler = null;
+
+	private final String rootFolder;
+	private final ConcurrentHashMap<String, PVStorage> storageForPVs = new ConcurrentHashMap<String, PVStorage>();
+	private volatile PlainPBStoragePlugin scanner;
+	private volatile boolean dirty = false;
+	private final long pauseBetweenPVsMS;
+
+	/**
+	 * The bytes and files consumed by one PV.
+	 */
+	private static class PVStorage {
+		long bytes;
+		int fileCount;
+		PVStorage(long bytes, int fileCount) {
+			this.bytes = bytes;
+			this.fileCount = fileCount;
+		}
+	}
+
+	PVStorageLedger(String rootFolder, long pauseBetweenPVsMS) {
+		this.rootFolder = rootFolder;
+		this.pauseBetweenPVsMS = pauseBetweenPVsMS;
+	}
+
+	/**
+	 * Get the ledger for the store that this plugin writes into.
+	 * @param plugin
+	 * @param configService
+	 * @return The ledger or null if we do not maintain a ledger for this plugin in this war.
+	 */
+	static PVStorageLedger getLedger(PlainPBStoragePlugin plugin, ConfigService configService) {
+		if(configService == null || configService.getWarFile() != WAR_FILE.ETL || plugin.getCompressionMode() == CompressionMode.ZIP_PER_PV) {
+			return null;
+		}
+		String enabled = configService.getInstallationProperties().getProperty("edu.stanford.slac.archiverappliance.PlainPB.PVStorageLedger.enabled", "true");
+		if(!Boolean.parseBoolean(enabled)) {
+			return null;
+		}
+		String rootFolder = plugin.getRootFolder();
+		PVStorageLedger ledger = ledgers.get(rootFolder);
+		if(ledger != null) {
+			return ledger;
+		}
+		synchronized(ledgers) {
+			ledger = ledgers.get(rootFolder);
+			if(ledger != null) {
+				return ledger;
+			}
+			long reconcileIntervalMinutes = Long.parseLong(configService.getInstallationProperties().getProperty("edu.stanford.slac.archiverappliance.PlainPB.PVStorageLedger.reconcileIntervalMinutes", "720"));
+			long pauseBetweenPVsMS = Long.parseLong(configService.getInstallationProperties().getProperty("edu.stanford.slac.archiverappliance.PlainPB.PVStorageLedger.pauseBetweenPVsMS", "10"));
+			final PVStorageLedger newLedger = new PVStorageLedger(rootFolder, pauseBetweenPVsMS);
+			newLedger.scanner = plugin;
+			newLedger.load();
+			configService.addShutdownHook(new Runnable() {
+				@Override
+				public void run() {
+					newLedger.save();
+				}
+			});
+			if(reconcileIntervalMinutes > 0) {
+				getReconciler(configService).scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						newLedger.reconcile();
+					}
+				}, reconcileIntervalMinutes, reconcileIntervalMinutes, TimeUnit.MINUTES);
+			}
+			ledgers.put(rootFolder, newLedger);
+			logger.info("Maintaining a storage ledger for the store at " + rootFolder + " with " + newLedger.storageForPVs.size() + " PVs from the saved ledger");
+			return newLedger;
+		}
+	}
+
+	private static ScheduledExecutorService getReconciler(ConfigService configService) {
+		if(reconciler == null) {
+			reconciler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "PlainPB storage ledger reconciler");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+			final ScheduledExecutorService reconcilerToShutdown = reconciler;
+			configService.addShutdownHook(new Runnable() {
+				@Override
+				public void run() {
+					reconcilerToShutdown.shutdownNow();
+				}
+			});
+		}
+		return reconciler;
+	}
+
+	/**
+	 * @param pvName
+	 * @return The bytes and the number of files consumed by this PV or null if we do not know about this PV.
+	 */
+	public long[] getStorage(String pvName) {
+		PVStorage storage = storageForPVs.get(pvName);
+		if(storage == null) return null;
+		synchronized(storage) {
+			return new long[] { storage.bytes, storage.fileCount };
+		}
+	}
+
+	/**
+	 * Record the result of a scan of the PV's files.
+	 * @param pvName
+	 * @param bytes
+	 * @param fileCount
+	 */
+	public void setStorage(String pvName, long bytes, int fileCount) {
+		storageForPVs.put(pvName, new PVStorage(bytes, fileCount));
+		dirty = true;
+	}
+
+	/**
+	 * We wrote into a file for this PV.
+	 * @param pvName
+	 * @param sizeBefore - The size of the file before we wrote into it; -1 if this is a new file.
+	 * @param sizeAfter - The size of the file after we wrote into it.
+	 */
+	public void fileWritten(String pvName, long sizeBefore, long sizeAfter) {
+		PVStorage storage = storageForPVs.get(pvName);
+		if(storage == null) {
+			// We'll pick up this file when we scan this PV.
+			return;
+		}
+		synchronized(storage) {
+			if(sizeBefore < 0) {
+				storage.fileCount++;
+				storage.bytes += sizeAfter;
+			} else {
+				storage.bytes += sizeAfter - sizeBefore;
+			}
+		}
+		dirty = true;
+	}
+
+	/**
+	 * We deleted (or replaced) a file for this PV.
+	 * @param pvName
+	 * @param size - The size of the file that we removed.
+	 */
+	public void fileRemoved(String pvName, long size) {
+		PVStorage storage = storageForPVs.get(pvName);
+		if(storage == null) {
+			return;
+		}
+		boolean invalid = false;
+		synchronized(storage) {
+			storage.fileCount--;
+			storage.bytes -= size;
+			invalid = storage.fileCount < 0 || storage.bytes < 0;
+		}
+		if(invalid) {
+			logger.debug("Storage ledger for " + pvName + " in " + rootFolder + " has drifted; we'll rescan this PV");
+			storageForPVs.remove(pvName);
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Forget what we know about this PV; we'll rescan the PV the next time we are asked.
+	 * @param pvName
+	 */
+	public void invalidate(String pvName) {
+		if(storageForPVs.remove(pvName) != null) {
+			dirty = true;
+		}
+	}
+
+	public int size() {
+		return storageForPVs.size();
+	}
+
+	/**
+	 * Rescan all the PVs in the ledger, one at a time, and fix any drift.
+	 */
+	void reconcile() {
+		PlainPBStoragePlugin plugin = this.scanner;
+		if(plugin == null) return;
+		long startTime = System.currentTimeMillis();
+		int pvsWithDrift = 0;
+		for(String pvName : new ArrayList<String>(storageForPVs.keySet())) {
+			if(Thread.currentThread().isInterrupted()) return;
+			try {
+				long[] scanned = plugin.scanSpaceConsumedByPV(pvName);
+				long[] fromLedger = getStorage(pvName);
+				if(fromLedger == null || fromLedger[0] != scanned[0] || fromLedger[1] != scanned[1]) {
+					if(fromLedger != null) {
+						pvsWithDrift++;
+						if(logger.isDebugEnabled()) logger.debug("Storage ledger for " + pvName + " in " + rootFolder + " has " + fromLedger[0] + " bytes in " + fromLedger[1] + " files; scan has " + scanned[0] + " bytes in " + scanned[1] + " files");
+					}
+					setStorage(pvName, scanned[0], (int) scanned[1]);
+				}
+				if(pauseBetweenPVsMS > 0) Thread.sleep(pauseBetweenPVsMS);
+			} catch(InterruptedException ex) {
+				return;
+			} catch(Exception ex) {
+				logger.warn("Exception reconciling the storage ledger for pv " + pvName + " in " + rootFolder, ex);
+			}
+		}
+		logger.info("Reconciled the storage ledger for " + rootFolder + " in " + (System.currentTimeMillis() - startTime) + "(ms). " + pvsWithDrift + " PVs had drifted.");
+		save();
+	}
+
+	/**
+	 * Save the ledger into the rootFolder if it has changed.
+	 */
+	void save() {
+		if(!dirty) return;
+		Path ledgerPath = Paths.get(rootFolder, LEDGER_FILE_NAME);
+		if(!Files.isDirectory(ledgerPath.getParent())) return;
+		Path tempPath = Paths.get(rootFolder, LEDGER_FILE_NAME + ".tmp");
+		dirty = false;
+		try {
+			int count = 0;
+			try(DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tempPath))))) {
+				dos.writeInt(LEDGER_FILE_MAGIC);
+				ArrayList<Map.Entry<String, PVStorage>> entries = new ArrayList<Map.Entry<String, PVStorage>>(storageForPVs.entrySet());
+				dos.writeInt(entries.size());
+				for(Map.Entry<String, PVStorage> entry : entries) {
+					PVStorage storage = entry.getValue();
+					dos.writeUTF(entry.getKey());
+					synchronized(storage) {
+						dos.writeLong(storage.bytes);
+						dos.writeInt(storage.fileCount);
+					}
+					count++;
+				}
+			}
+			Files.move(tempPath, ledgerPath, REPLACE_EXISTING, ATOMIC_MOVE);
+			logger.debug("Saved storage ledger for " + count + " PVs into " + ledgerPath.toString());
+		} catch(Exception ex) {
+			dirty = true;
+			logger.error("Exception saving the storage ledger into " + ledgerPath.toString(), ex);
+		}
+	}
+
+	/**
+	 * Load the ledger that was saved the last time around (if any).
+	 */
+	void load() {
+		Path ledgerPath = Paths.get(rootFolder, LEDGER_FILE_NAME);
+		if(!Files.exists(ledgerPath)) return;
+		try(DataInputStream dis = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(ledgerPath))))) {
+			if(dis.readInt() != LEDGER_FILE_MAGIC) {
+				logger.warn("Skipping loading the storage ledger from " + ledgerPath.toString() + " as it does not seem to be a ledger.");
+				return;
+			}
+			int count = dis.readInt();
+			for(int i = 0; i < count; i++) {
+				String pvName = dis.readUTF();
+				long bytes = dis.readLong();
+				int fileCount = dis.readInt();
+				storageForPVs.put(pvName, new PVStorage(bytes, fileCount));
+			}
+		} catch(Exception ex) {
+			logger.warn("Exception loading the storage ledger from " + ledgerPath.toString() + ". We'll rescan the PVs as needed.", ex);
+			storageForPVs.clear();
+		}
+	}
+}
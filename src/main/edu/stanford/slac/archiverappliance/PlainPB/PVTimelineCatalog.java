@@ -0,0 +1,258 @@
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.PartitionGranularity;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.PVNameToKeyMapping;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBPathNameUtility.StartEndTimeFromName;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin.CompressionMode;
+
+/**
+ * An in memory catalog of the partitions (and the first event) for each PV in a PlainPB store.
+ * Retrieval used to list the PV's folder (and open the first file to get the first known event) in every store for every request; this catalog answers these from memory.
+ * <ol>
+ * <li>There is one catalog per rootFolder; all the plugin instances for the store share this catalog.</li>
+ * <li>The engine, ETL and retrieval wars write and read these stores independently and do not see each other's catalogs.
+ * So, before using a PV's entry, we check the last modified time of the PV's folder (a single stat instead of a listing and a file open).
+ * Creating, deleting and renaming partitions changes this time; appending to an existing partition does not change the partitions or the first event.
+ * Entries built within a couple of seconds of the last change to the folder are not trusted as the file system may not have the resolution to tell us about changes in that interval.</li>
+ * <li>Partitions created, moved and deleted by the plugin in this war (appendData, ETL commit/delete, rename) drop the PV's entry right away; it is rebuilt the next time we are asked.</li>
+ * </ol>
+ * The catalog is not maintained for stores that use ZIP_PER_PV.
+ * @author mshankar
+ *
+ */
+public class PVTimelineCatalog {
+	private static Logger logger = Logger.getLogger(PVTimelineCatalog.class.getName());
+	private static final ConcurrentHashMap<String, PVTimelineCatalog> catalogs = new ConcurrentHashMap<String, PVTimelineCatalog>();
+	/**
+	 * We do not trust entries built less than this many milliseconds after the last change to the folder.
+	 */
+	private static final long FOLDER_TIMESTAMP_RESOLUTION_MS = 2000;
+
+	private final String rootFolder;
+	private final PartitionGranularity granularity;
+	private final PVNameToKeyMapping pv2key;
+	private final int maxPVs;
+	private final ConcurrentHashMap<String, Timeline> timelines = new ConcurrentHashMap<String, Timeline>();
+
+	/**
+	 * The partitions for a PV sorted by time and the state of the PV's folder when we listed it.
+	 */
+	private static class Timeline {
+		final long folderModifiedMillis;
+		final long builtAtMillis;
+		final Path[] partitions;
+		final long[] chunkStartEpochSeconds;
+		final long[] chunkEndEpochSeconds;
+		volatile Event firstEvent = null;
+
+		Timeline(long folderModifiedMillis, long builtAtMillis, Path[] partitions, long[] chunkStartEpochSeconds, long[] chunkEndEpochSeconds) {
+			this.folderModifiedMillis = folderModifiedMillis;
+			this.builtAtMillis = builtAtMillis;
+			this.partitions = partitions;
+			this.chunkStartEpochSeconds = chunkStartEpochSeconds;
+			this.chunkEndEpochSeconds = chunkEndEpochSeconds;
+		}
+
+		boolean isValid(long currentFolderModifiedMillis) {
+			return currentFolderModifiedMillis == folderModifiedMillis && (builtAtMillis - folderModifiedMillis) > FOLDER_TIMESTAMP_RESOLUTION_MS;
+		}
+	}
+
+	PVTimelineCatalog(String rootFolder, PartitionGranularity granularity, PVNameToKeyMapping pv2key, int maxPVs) {
+		this.rootFolder = rootFolder;
+		this.granularity = granularity;
+		this.pv2key = pv2key;
+		this.maxPVs = maxPVs;
+	}
+
+	/**
+	 * Get the catalog for the store that this plugin reads from.
+	 * @param plugin
+	 * @param configService
+	 * @return The catalog or null if we do not maintain a catalog for this plugin.
+	 */
+	static PVTimelineCatalog getCatalog(PlainPBStoragePlugin plugin, ConfigService configService) {
+		if(configService == null || plugin.getCompressionMode() == CompressionMode.ZIP_PER_PV || plugin.getPVNameToKeyMapping() == null) {
+			return null;
+		}
+		String enabled = configService.getInstallationProperties().getProperty("edu.stanford.slac.archiverappliance.PlainPB.PVTimelineCatalog.enabled", "true");
+		if(!Boolean.parseBoolean(enabled)) {
+			return null;
+		}
+		String catalogKey = plugin.getRootFolder() + "#" + plugin.getPartitionGranularity();
+		PVTimelineCatalog catalog = catalogs.get(catalogKey);
+		if(catalog != null) {
+			return catalog;
+		}
+		synchronized(catalogs) {
+			catalog = catalogs.get(catalogKey);
+			if(catalog != null) {
+				return catalog;
+			}
+			int maxPVs = Integer.parseInt(configService.getInstallationProperties().getProperty("edu.stanford.slac.archiverappliance.PlainPB.PVTimelineCatalog.maxPVs", "200000"));
+			catalog = new PVTimelineCatalog(plugin.getRootFolder(), plugin.getPartitionGranularity(), plugin.getPVNameToKeyMapping(), maxPVs);
+			catalogs.put(catalogKey, catalog);
+			logger.info("Maintaining a timeline catalog for the store at " + plugin.getRootFolder());
+			return catalog;
+		}
+	}
+
+	/**
+	 * Same as PlainPBPathNameUtility.getPathsWithData for the raw PB files.
+	 * @param archPaths
+	 * @param pvName
+	 * @param startts
+	 * @param endts
+	 * @return The paths sorted by time.
+	 * @throws IOException
+	 */
+	public Path[] getPathsWithData(ArchPaths archPaths, String pvName, Timestamp startts, Timestamp endts) throws IOException {
+		long reqStartEpochSeconds = TimeUtils.convertToEpochSeconds(startts);
+		long reqEndEpochSeconds = TimeUtils.convertToEpochSeconds(endts);
+		Timeline timeline = getTimeline(archPaths, pvName);
+		ArrayList<Path> retVal = new ArrayList<Path>();
+		for(int i = 0; i < timeline.partitions.length; i++) {
+			if((timeline.chunkEndEpochSeconds[i] < reqStartEpochSeconds) || (timeline.chunkStartEpochSeconds[i] > reqEndEpochSeconds)) continue;
+			retVal.add(timeline.partitions[i]);
+		}
+		return retVal.toArray(new Path[0]);
+	}
+
+	/**
+	 * Same as PlainPBPathNameUtility.getPreviousPartitionBeforeTime for the raw PB files.
+	 * @param archPaths
+	 * @param pvName
+	 * @param startts
+	 * @return The latest partition that ends before the start time; null if there is no such partition.
+	 * @throws IOException
+	 */
+	public Path getPreviousPartitionBeforeTime(ArchPaths archPaths, String pvName, Timestamp startts) throws IOException {
+		long reqStartEpochSeconds = TimeUtils.convertToEpochSeconds(startts);
+		Timeline timeline = getTimeline(archPaths, pvName);
+		for(int i = timeline.partitions.length - 1; i >= 0; i--) {
+			if(timeline.chunkEndEpochSeconds[i] < reqStartEpochSeconds) return timeline.partitions[i];
+		}
+		return null;
+	}
+
+	/**
+	 * @param archPaths
+	 * @param pvName
+	 * @return All the partitions for this PV sorted by time.
+	 * @throws IOException
+	 */
+	public Path[] getAllPaths(ArchPaths archPaths, String pvName) throws IOException {
+		return getTimeline(archPaths, pvName).partitions.clone();
+	}
+
+	/**
+	 * The first event in the store for this PV; this is the first event of the first partition that has any events.
+	 * @param archPaths
+	 * @param pvName
+	 * @return null if there is no data for this PV.
+	 * @throws IOException
+	 */
+	public Event getFirstKnownEvent(ArchPaths archPaths, String pvName) throws IOException {
+		Timeline timeline = getTimeline(archPaths, pvName);
+		Event firstEvent = timeline.firstEvent;
+		if(firstEvent == null) {
+			for(Path path : timeline.partitions) {
+				try {
+					PBFileInfo fileInfo = new PBFileInfo(path, false);
+					if(fileInfo.getFirstEvent() != null) {
+						firstEvent = fileInfo.getFirstEvent();
+						// Appends do not change the first event; so we can remember it till the partitions change.
+						timeline.firstEvent = firstEvent;
+						break;
+					}
+				} catch(Exception ex) {
+					logger.warn("Exception determing header information from file " + path.toAbsolutePath().toString(), ex);
+				}
+			}
+		}
+		return firstEvent != null ? firstEvent.makeClone() : null;
+	}
+
+	/**
+	 * The partitions for this PV have changed; we drop the PV's entry and rebuild it when we are next asked.
+	 * @param pvName
+	 */
+	public void partitionsChanged(String pvName) {
+		timelines.remove(pvName);
+	}
+
+	/**
+	 * @return The number of PVs in the catalog.
+	 */
+	public int getPVCount() {
+		return timelines.size();
+	}
+
+	private Timeline getTimeline(ArchPaths archPaths, String pvName) throws IOException {
+		Path parentFolder = PlainPBPathNameUtility.getParentPath(archPaths, rootFolder, pvName, granularity, CompressionMode.NONE, pv2key);
+		long folderModifiedMillis = getModifiedMillis(parentFolder);
+		Timeline timeline = timelines.get(pvName);
+		if(timeline != null && timeline.isValid(folderModifiedMillis)) {
+			return timeline;
+		}
+
+		// We use the folder's timestamp from before the listing; so changes made while we are listing cause a rebuild the next time around.
+		long builtAtMillis = System.currentTimeMillis();
+		Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(archPaths, rootFolder, pvName, PlainPBStoragePlugin.PB_EXTENSION, granularity, CompressionMode.NONE, pv2key);
+		String pvFinalNameComponent = PlainPBPathNameUtility.getFinalNameComponent(pvName, pv2key);
+		ArrayList<Path> partitions = new ArrayList<Path>(paths.length);
+		long[] chunkStarts = new long[paths.length];
+		long[] chunkEnds = new long[paths.length];
+		for(Path path : paths) {
+			String name = path.getFileName().toString();
+			try {
+				StartEndTimeFromName pathNameTimes = new StartEndTimeFromName(pvName, name, pvFinalNameComponent, granularity);
+				chunkStarts[partitions.size()] = pathNameTimes.chunkStartEpochSeconds;
+				chunkEnds[partitions.size()] = pathNameTimes.chunkEndEpochSeconds;
+				partitions.add(path);
+			} catch(IOException ex) {
+				logger.warn("Skipping file " + name + " when building the timeline for pv " + pvName, ex);
+			}
+		}
+		int count = partitions.size();
+		long[] chunkStartEpochSeconds = new long[count];
+		long[] chunkEndEpochSeconds = new long[count];
+		System.arraycopy(chunkStarts, 0, chunkStartEpochSeconds, 0, count);
+		System.arraycopy(chunkEnds, 0, chunkEndEpochSeconds, 0, count);
+		timeline = new Timeline(folderModifiedMillis, builtAtMillis, partitions.toArray(new Path[0]), chunkStartEpochSeconds, chunkEndEpochSeconds);
+
+		if(timelines.size() >= maxPVs) {
+			logger.info("The timeline catalog for " + rootFolder + " has more than " + maxPVs + " PVs; clearing the catalog");
+			timelines.clear();
+		}
+		timelines.put(pvName, timeline);
+		return timeline;
+	}
+
+	/**
+	 * @param folder
+	 * @return The last modified time of the folder; -1 if the folder does not exist.
+	 * @throws IOException
+	 */
+	private static long getModifiedMillis(Path folder) throws IOException {
+		try {
+			return Files.getLastModifiedTime(folder).toMillis();
+		} catch(NoSuchFileException ex) {
+			return -1;
+		}
+	}
+}
@@ -372,7 +372,8 @@ public class PlainPBPathNameUtility {
 		String pvKey = pv2key.convertPVNameToKey(pvName);
 		String pvPathComponent = pvKey + partitionNameComponent + extension;
 		switch(compressionMode) {
-		case NONE: {
+		case NONE:
+		case BLOCK_DEFLATE: {
 			Path path = paths.get(createParentFolder, rootFolder, pvPathComponent);
 			return path;
 		}
@@ -392,7 +393,7 @@ public class PlainPBPathNameUtility {
 	 * @param pvName
 	 * @return
 	 */
-	private static String getFinalNameComponent(String pvName, PVNameToKeyMapping pv2key) {
+	static String getFinalNameComponent(String pvName, PVNameToKeyMapping pv2key) {
 		Path pvPathAlone = Paths.get(pv2key.convertPVNameToKey(pvName));
 		String pvFinalNameComponent = pvPathAlone.getFileName().toString();
 		return pvFinalNameComponent;
@@ -410,11 +411,12 @@ public class PlainPBPathNameUtility {
 	 * @param compressionMode
 	 * @return
 	 */
-	private static Path getParentPath(ArchPaths paths, String rootFolder, final String pvName, final PartitionGranularity granularity, CompressionMode compressionMode, PVNameToKeyMapping pv2key) throws IOException {
+	static Path getParentPath(ArchPaths paths, String rootFolder, final String pvName, final PartitionGranularity granularity, CompressionMode compressionMode, PVNameToKeyMapping pv2key) throws IOException {
 		String pvKey = pv2key.convertPVNameToKey(pvName);
 		boolean createParentFolder = false; // should we create parent folder if it does not exist
 		switch(compressionMode) {
-		case NONE: {
+		case NONE:
+		case BLOCK_DEFLATE: {
 			Path path = paths.get(createParentFolder, rootFolder, pvKey);
 			return path.getParent();
 		}
@@ -72,6 +72,9 @@ import edu.stanford.slac.archiverappliance.PB.EPICSEvent;
  * The support for zip compression is experimental. 
  * If the zip compression is used, the <code>rootfolder</code> is prepended with <code>{@link org.epics.archiverappliance.utils.nio.ArchPaths#ZIP_PREFIX ZIP_PREFIX}</code>.
  * If this is absent in the <code>rootfolder</code>, the initialization code automatically adds it in.
+ * <code>BLOCK_DEFLATE</code> uses the same paths as uncompressed files; each partition is written as independently compressed blocks along with an index of the first timestamp in each block.
+ * Retrieval uses the index to decompress only the blocks that a query needs. 
+ * Stores can be switched to and from <code>BLOCK_DEFLATE</code>; existing partitions are read and appended to in their current format.
  * </dd>
  * <dt>hold & gather</dt><dd><code>hold</code> and <code>gather</code> are optional fields that work together to implement high/low watermarks for data transfer.
  * By default, both <code>hold</code> and <code>gather</code> are 0 which leads to data being transferred out of this plugin as soon as the partition boundary is reached.
@@ -103,6 +106,12 @@ import edu.stanford.slac.archiverappliance.PB.EPICSEvent;
  * If you don't set this flag at all; then this plugin behaves normally and will move data out as before.
  * For example, if you add a <code>etlOutofStoreIf=testFlag</code>; then data will be moved ouf of this store only if the value of the named flag <code>testFlag</code> is true.
  * </dd>
+ * <dt>deltaWaveforms</dt><dd>An optional parameter; if <code>true</code>, DOUBLE/FLOAT/INT/SHORT/ENUM waveforms are written as a keyframe followed by delta frames that hold only the difference from the previous sample.
+ * This works well for waveforms where most of the elements do not change (or change only a little) from sample to sample.
+ * As each append into a file starts with a keyframe, this is meant for stores that are filled in by ETL (for example, the MTS or the LTS).
+ * Files with delta frames can be read only by versions of the appliance that support this mode.</dd>
+ * <dt>keyframeInterval</dt><dd>Used with <code>deltaWaveforms</code>; we write a keyframe at least every <code>keyframeInterval</code> samples. 
+ * This bounds the number of delta frames we have to replay when a retrieval request starts in the middle of a file. Defaults to 64.</dd>
  * </dl>
  * @author mshankar
  *
@@ -112,6 +121,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 
 	public static final String PB_EXTENSION = ".pb";
 	public static final String APPEND_EXTENSION = ".pbappend";
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 64;
 
 	private String rootFolder = "/tmp";
 	private String name;
@@ -119,11 +129,13 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	private PVNameToKeyMapping pv2key;
 	/**
 	 * Support for ZIP_PER_PV is still experimental.
+	 * BLOCK_DEFLATE writes each partition as a file of Deflate compressed blocks; see {@link org.epics.archiverappliance.utils.nio.BlockCompressedFile}.
 	 * @author mshankar
 	 */
 	public enum CompressionMode {
 		NONE,
-		ZIP_PER_PV
+		ZIP_PER_PV,
+		BLOCK_DEFLATE
 	}
 	
 
@@ -140,6 +152,8 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	
 	private List<String> postProcessorUserArgs = null;
 	private String reducedataPostProcessor = null;
+	private boolean deltaWaveforms = false;
+	private int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
 	
 	private ConcurrentHashMap<String, AppendDataStateData> appendDataStates = new ConcurrentHashMap<String, AppendDataStateData>();
 	
@@ -152,6 +166,14 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	 */
 	private String etlIntoStoreIf;
 	private String etlOutofStoreIf;
+	/**
+	 * Running tally of the space consumed by each PV in this store; this is null if we do not maintain a ledger in this war.
+	 */
+	private PVStorageLedger storageLedger = null;
+	/**
+	 * The partitions and first event for each PV in this store; this is null if we do not maintain a catalog for this store.
+	 */
+	private PVTimelineCatalog timelineCatalog = null;
 
 	
 	public List<Callable<EventStream>> getDataForPV(BasicContext context, String pvName, Timestamp startTime, Timestamp endTime) throws IOException {
@@ -176,19 +198,19 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 			// If this is not the case, we should switch to the more accurate algorithm.
 			if(userWantsRawData) {
 				logger.debug("User wants raw data.");
-				paths = PlainPBPathNameUtility.getPathsWithData(context.getPaths(), rootFolder, pvName, startTime, endTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+				paths = getRawPathsWithData(context, pvName, startTime, endTime);
 			} else {
 				paths = PlainPBPathNameUtility.getPathsWithData(context.getPaths(), rootFolder, pvName, startTime, endTime, extension, partitionGranularity, this.compressionMode, this.pv2key);
 				if(paths == null || paths.length == 0) {
 					logger.debug("Did not find any cached entries for " + pvName + " for post processor " + extension + ". Defaulting to using the raw streams and computing the data at runtime.");
 					askingForProcessedDataButAbsentInCache = true;
-					paths = PlainPBPathNameUtility.getPathsWithData(context.getPaths(), rootFolder, pvName, startTime, endTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+					paths = getRawPathsWithData(context, pvName, startTime, endTime);
 				} else {
 					logger.debug("Found " + paths.length + " cached entries for " + pvName + " for post processor " + extension);
 				}
 			}
 			logger.debug(desc + " Found " + (paths != null ? paths.length : 0) + " matching files for pv " + pvName + " in store " + this.getName());
-			boolean useSearchForPositions = (this.compressionMode == CompressionMode.NONE);
+			boolean useSearchForPositions = (this.compressionMode != CompressionMode.ZIP_PER_PV);
 			boolean doNotuseSearchForPositions = !useSearchForPositions;
 			
 			ArrayList<Callable<EventStream>> ret = new ArrayList<Callable<EventStream>>();
@@ -235,7 +257,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	}
 
 	private Callable<EventStream> getLastEventOfPreviousPartitionBeforeTimeAsStream(BasicContext context, String pvName, Timestamp startTime, PostProcessor postProcessor, boolean askingForProcessedDataButAbsentInCache) throws Exception, IOException {
-		Path mostRecentPath = PlainPBPathNameUtility.getPreviousPartitionBeforeTime(context.getPaths(), rootFolder, pvName, startTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+		Path mostRecentPath = (timelineCatalog != null) ? timelineCatalog.getPreviousPartitionBeforeTime(context.getPaths(), pvName, startTime) : PlainPBPathNameUtility.getPreviousPartitionBeforeTime(context.getPaths(), rootFolder, pvName, startTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
 		if(mostRecentPath != null) {
 			// Should we use these two here?
 			// boolean useSearchForPositions = (this.compressionMode == CompressionMode.NONE);
@@ -253,12 +275,25 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	}
 	
 
+	/**
+	 * Get the raw PB files with data for this time frame; from the timeline catalog if we have one.
+	 */
+	private Path[] getRawPathsWithData(BasicContext context, String pvName, Timestamp startTime, Timestamp endTime) throws IOException {
+		if(timelineCatalog != null) {
+			return timelineCatalog.getPathsWithData(context.getPaths(), pvName, startTime, endTime);
+		}
+		return PlainPBPathNameUtility.getPathsWithData(context.getPaths(), rootFolder, pvName, startTime, endTime, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+	}
+
 	private AppendDataStateData getAppendDataState(BasicContext context, String pvName) throws IOException {
 		if(appendDataStates.containsKey(pvName)) {
 			return appendDataStates.get(pvName);
 		} else {
 			logger.debug("Creating new append data state for pv " + pvName);
 			AppendDataStateData state = new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, getLastKnownTimestampForAppend(context, pvName), this.compressionMode, this.pv2key);
+			state.setStorageLedger(storageLedger);
+			state.setTimelineCatalog(timelineCatalog);
+			state.setDeltaWaveforms(deltaWaveforms, keyframeInterval);
 			appendDataStates.put(pvName, state);
 			return state;
 		}
@@ -373,7 +408,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 			
 			if(queryNVPairs.containsKey("compress")) {
 				compressionMode = CompressionMode.valueOf(queryNVPairs.get("compress"));
-				if(compressionMode != CompressionMode.NONE) {
+				if(compressionMode == CompressionMode.ZIP_PER_PV) {
 					if(!rootFolderStr.startsWith(ArchPaths.ZIP_PREFIX)) {
 						String rootFolderWithPath = ArchPaths.ZIP_PREFIX + rootFolderStr;
 						logger.debug("Automatically adding url scheme for compression to rootfolder " + rootFolderWithPath);
@@ -402,7 +437,18 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 				this.etlOutofStoreIf = queryNVPairs.get("etlOutofStoreIf");
 			}
 
+			if(queryNVPairs.containsKey("deltaWaveforms")) {
+				this.deltaWaveforms = Boolean.parseBoolean(queryNVPairs.get("deltaWaveforms"));
+			}
+
+			if(queryNVPairs.containsKey("keyframeInterval")) {
+				this.keyframeInterval = Integer.parseInt(queryNVPairs.get("keyframeInterval"));
+				if(this.keyframeInterval < 1) throw new IOException("keyframeInterval has to be a positive number; it is " + this.keyframeInterval);
+			}
+
 			this.setDesc("PlainPBStorage plugin  - " + name + " with rootFolder " + rootFolder + " and granularity " + partitionGranularity);
+			this.storageLedger = PVStorageLedger.getLedger(this, configService);
+			this.timelineCatalog = PVTimelineCatalog.getCatalog(this, configService);
 		} catch(URISyntaxException ex) {
 			throw new IOException(ex);
 		}
@@ -462,6 +508,15 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 				buf.append("&etlOutofStoreIf=");
 				buf.append(this.etlOutofStoreIf);
 			}
+
+			if(this.deltaWaveforms) {
+				buf.append("&deltaWaveforms=");
+				buf.append(Boolean.toString(deltaWaveforms));
+				if(this.keyframeInterval != DEFAULT_KEYFRAME_INTERVAL) {
+					buf.append("&keyframeInterval=");
+					buf.append(Integer.toString(keyframeInterval));
+				}
+			}
 			
 			String ret =  buf.toString();
 			logger.debug("URL representation " + ret);
@@ -490,7 +545,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 		this.rootFolder = rootFolder;
 		logger.debug("Setting root folder to " + rootFolder);
 		try(ArchPaths paths = new ArchPaths()) {
-			if(this.compressionMode == CompressionMode.NONE) {
+			if(this.compressionMode != CompressionMode.ZIP_PER_PV) {
 				Path path = paths.get(this.rootFolder);
 				if(!Files.exists(path)) {
 					logger.warn(desc + ": The root folder specified does not exist - " + rootFolder + ". Creating it");
@@ -626,9 +681,13 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 			if(sizeFromInfo == -1) { 
 				logger.error("We are missing size information from ETLInfo for " + info.getKey());
 				Files.delete(path);
+				if(storageLedger != null) storageLedger.invalidate(info.getPvName());
+				if(timelineCatalog != null) timelineCatalog.partitionsChanged(info.getPvName());
 			} else { 
 				if(sizeFromInfo == size) { 
 					Files.delete(path);
+					if(storageLedger != null) storageLedger.invalidate(info.getPvName());
+					if(timelineCatalog != null) timelineCatalog.partitionsChanged(info.getPvName());
 				} else { 
 					logger.error("The path " + info.getKey() + " has changed since we generate the ETLInfo. Not deleting it this time around. If this persists, please manually remove the file. Current Size " + size + ". Size from info " + sizeFromInfo);
 				}
@@ -641,7 +700,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	@Override
 	public Event getLastKnownEvent(BasicContext context, String pvName) throws IOException {
 		try {
-			Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), rootFolder, pvName, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
+			Path[] paths = (timelineCatalog != null) ? timelineCatalog.getAllPaths(context.getPaths(), pvName) : PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), rootFolder, pvName, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
 			logger.debug(desc + " Found " + (paths != null ? paths.length : 0) + " matching files for pv " + pvName);
 			if(paths != null && paths.length > 0) {
 				for(int i = paths.length-1; i >=0; i--) {
@@ -667,6 +726,9 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	@Override
 	public Event getFirstKnownEvent(BasicContext context, String pvName) throws IOException {
 		try {
+			if(timelineCatalog != null) {
+				return timelineCatalog.getFirstKnownEvent(context.getPaths(), pvName);
+			}
 			Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), rootFolder, pvName, PB_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
 			logger.debug(desc + " Found " + (paths != null ? paths.length : 0) + " matching files for pv " + pvName);
 			if(paths != null && paths.length > 0) {
@@ -713,7 +775,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	
 	@Override
 	public boolean commitETLAppendData(String pvName, ETLContext context) throws IOException {
-		if(compressionMode == CompressionMode.NONE) {
+		if(compressionMode != CompressionMode.ZIP_PER_PV) {
 			if(backupFilesBeforeETL) {
 				// Get all append data files for the specified PV name and partition granularity.
 				Path[] appendDataPaths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), rootFolder, pvName, APPEND_EXTENSION, partitionGranularity, this.compressionMode, this.pv2key);
@@ -726,8 +788,11 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 
 				for(Path srcPath : appendDataPaths) {
 					Path destPath = context.getPaths().get(srcPath.toUri().toString().replace(APPEND_EXTENSION, PB_EXTENSION));
+					long replacedSize = (storageLedger != null && Files.exists(destPath)) ? Files.size(destPath) : -1;
 					Files.move(srcPath, destPath, REPLACE_EXISTING, ATOMIC_MOVE);
+					if(replacedSize != -1) storageLedger.fileRemoved(pvName, replacedSize);
 				}
+				if(timelineCatalog != null) timelineCatalog.partitionsChanged(pvName);
 			}
 		}
 		
@@ -756,6 +821,9 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 							// Ideally this should be the first event of the source stream minus some buffer.
 							Timestamp timezero = TimeUtils.convertFromEpochSeconds(0, 0);
 							AppendDataStateData state = new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, timezero, this.compressionMode, this.pv2key);
+							state.setStorageLedger(storageLedger);
+							state.setTimelineCatalog(timelineCatalog);
+							state.setDeltaWaveforms(deltaWaveforms, keyframeInterval);
 							int eventsAppended = state.partitionBoundaryAwareAppendData(context, pvName, stream, ppExt, null);
 							if(logger.isDebugEnabled()) logger.debug("Done generating pp data for " + missingOrOlderPath.ppsPath.toString() + " from " + missingOrOlderPath.srcPath.toString() + " appending " + eventsAppended + " events. Size of src after " + Files.size(missingOrOlderPath.srcPath));
 						} catch(Exception ex) {
@@ -824,16 +892,37 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 
 	@Override
 	public long spaceConsumedByPV(String pvName) throws IOException {
+		if(storageLedger != null) {
+			long[] fromLedger = storageLedger.getStorage(pvName);
+			if(fromLedger != null) {
+				return fromLedger[0];
+			}
+			long[] scanned = scanSpaceConsumedByPV(pvName);
+			storageLedger.setStorage(pvName, scanned[0], (int) scanned[1]);
+			return scanned[0];
+		}
+		return scanSpaceConsumedByPV(pvName)[0];
+	}
+
+	/**
+	 * List the files for this PV and add up their sizes.
+	 * @param pvName
+	 * @return The total size of the files and the number of files.
+	 * @throws IOException
+	 */
+	long[] scanSpaceConsumedByPV(String pvName) throws IOException {
 		// Using a blank extension should fetch everything?
 		Path[] rawPaths = PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), rootFolder, pvName, "", partitionGranularity, this.compressionMode, this.pv2key);
 		long spaceConsumed = 0;
+		long fileCount = 0;
 		if(rawPaths != null) {
 			for(Path f : rawPaths) {
 				spaceConsumed = spaceConsumed + f.toFile().length();
+				fileCount++;
 			}
 		}
 		
-		return spaceConsumed;
+		return new long[] { spaceConsumed, fileCount };
 	}
 
 	public void setName(String name) {
@@ -843,6 +932,18 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 	public CompressionMode getCompressionMode() {
 		return compressionMode;
 	}
+
+	PVNameToKeyMapping getPVNameToKeyMapping() {
+		return pv2key;
+	}
+
+	PVStorageLedger getStorageLedger() {
+		return storageLedger;
+	}
+
+	PVTimelineCatalog getTimelineCatalog() {
+		return timelineCatalog;
+	}
 	
 	private class PPMissingPaths {
 		Path srcPath;
@@ -892,7 +993,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 		return consolidateOnShutdown;
 	}
 	
-	private List<String> getPPExtensions() { 
+	List<String> getPPExtensions() { 
 		LinkedList<String> ret = new LinkedList<String>();
 		for(String postProcessorUserArg : postProcessorUserArgs) {
 			PostProcessor postProcessor = PostProcessors.findPostProcessor(postProcessorUserArg);
@@ -960,6 +1061,9 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 					logger.info("Converting data in " + path.toString() + " for pv " + pvName);
 					PBFileInfo info = new PBFileInfo(path);
 					AppendDataStateData state = new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, new Timestamp(0), this.compressionMode, this.pv2key);
+					state.setStorageLedger(storageLedger);
+					state.setTimelineCatalog(timelineCatalog);
+					state.setDeltaWaveforms(deltaWaveforms, keyframeInterval);
 					state.partitionBoundaryAwareAppendData(context, pvName, conversionFuntion.convertStream(new FileBackedPBEventStream(pvName, path, info.getType())), PB_EXTENSION + randSuffix, null);
 				}
 			}
@@ -973,6 +1077,9 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 					logger.info("Converting data in " + path.toString() + " for pv " + pvName + " for extension " + ppExt);
 					PBFileInfo info = new PBFileInfo(path);
 					AppendDataStateData state = new AppendDataStateData(this.partitionGranularity, this.rootFolder, this.desc, new Timestamp(0), this.compressionMode, this.pv2key);
+					state.setStorageLedger(storageLedger);
+					state.setTimelineCatalog(timelineCatalog);
+					state.setDeltaWaveforms(deltaWaveforms, keyframeInterval);
 					state.partitionBoundaryAwareAppendData(context, pvName, conversionFuntion.convertStream(new FileBackedPBEventStream(pvName, path, info.getType())), ppExt + randSuffix, null);
 				}
 			}
@@ -985,7 +1092,7 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 				for(Path path : paths) { 
 					Path destPath = context.getPaths().get(path.toString().replace(randSuffix, ""));
 					logger.info("Moving path " + path + " to " + destPath);
-					Files.move(path, destPath, StandardCopyOption.ATOMIC_MOVE);
+					moveReplacingForConvert(pvName, path, destPath);
 				}
 			}
 		}
@@ -998,10 +1105,20 @@ public class PlainPBStoragePlugin implements StoragePlugin, ETLSource, ETLDest,
 					for(Path path : paths) { 
 						Path destPath = context.getPaths().get(path.toString().replace(randSuffix, ""));
 						logger.info("Moving path " + path + " to " + destPath);
-						Files.move(path, destPath, StandardCopyOption.ATOMIC_MOVE);
+						moveReplacingForConvert(pvName, path, destPath);
 					}
 				}
 			}
 		}
 	}
+	
+	/**
+	 * Move the converted file over the original file keeping the storage ledger in sync.
+	 */
+	private void moveReplacingForConvert(String pvName, Path path, Path destPath) throws IOException {
+		long replacedSize = (storageLedger != null && Files.exists(destPath)) ? Files.size(destPath) : -1;
+		Files.move(path, destPath, StandardCopyOption.ATOMIC_MOVE);
+		if(replacedSize != -1) storageLedger.fileRemoved(pvName, replacedSize);
+		if(timelineCatalog != null) timelineCatalog.partitionsChanged(pvName);
+	}
 }
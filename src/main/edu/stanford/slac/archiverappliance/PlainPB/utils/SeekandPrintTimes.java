@@ -1,12 +1,12 @@
 package edu.stanford.slac.archiverappliance.PlainPB.utils;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import org.epics.archiverappliance.Event;
 import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
 
 import edu.stanford.slac.archiverappliance.PlainPB.FileBackedPBEventStream;
 import edu.stanford.slac.archiverappliance.PlainPB.PBFileInfo;
@@ -28,7 +28,7 @@ public class SeekandPrintTimes {
 		Path path = Paths.get(fileName);
 		System.out.println("Printing times for file " + path.toAbsolutePath().toString());
 		PBFileInfo info = new PBFileInfo(path);
-		try (FileBackedPBEventStream strm = new FileBackedPBEventStream(info.getPVName(), path, info.getType(), position, Files.size(path))) {
+		try (FileBackedPBEventStream strm = new FileBackedPBEventStream(info.getPVName(), path, info.getType(), position, ArchPaths.size(path))) {
 			for(Event ev : strm) {
 				System.out.println(TimeUtils.convertToISO8601String(((DBRTimeEvent)ev).getEventTimeStamp())
 						+ "\t" + TimeUtils.convertToHumanReadableString((((DBRTimeEvent)ev).getEventTimeStamp()))
@@ -39,7 +39,21 @@ public interface Event {
 	 */
 	public Timestamp getEventTimeStamp();
 
-	
+	/**
+	 * Get the nanos part of the timestamp of this event.
+	 * Together with getEpochSeconds, this lets the retrieval path compare and output timestamps without creating a java.sql.Timestamp for each event.
+	 * @return The nanos of this event; this is in the range 0-999999999
+	 */
+	public int getNanos();
+
+	/**
+	 * Get the timestamp of this event as nanoseconds since the java epoch; that is getEpochSeconds()*1000000000 + getNanos().
+	 * This fits into a long till the year 2262; see TimeUtils.convertToEpochNanos.
+	 * @return The java epoch nanos of this event.
+	 */
+	public long getEpochNanos();
+
+
 	/**
 	 * Return a serialized form of this event in the internal currency of the archiver appliance. For now, this is Google's Protocol Buffers
 	 * Note that the raw form is always escaped according to the archiver specification. 
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in the style of HdrHistogram; recording is lock free and does not allocate.
+ * Values are in microseconds; values smaller than the sub bucket count are recorded exactly.
+ * Larger values are recorded in buckets; each power of two is split into sub buckets so that the relative error is less than 1/subBucketCount.
+ * Values larger than about 19 hours are recorded as 19 hours.
+ * @author mshankar
+ *
+ */
+public class LatencyHistogram {
+	private static final int MAX_MAGNITUDE = 36;
+	private final int subBucketBits;
+	private final int subBucketCount;
+	private final AtomicLongArray counts;
+	private final AtomicLong totalCount = new AtomicLong(0);
+	private final AtomicLong totalMicros = new AtomicLong(0);
+	private volatile long maxMicros = 0;
+
+	/**
+	 * @param subBucketBits - Each power of two is split into 2^subBucketBits buckets. Use a small number (2 or 3) for per PV histograms to save memory.
+	 */
+	public LatencyHistogram(int subBucketBits) {
+		this.subBucketBits = subBucketBits;
+		this.subBucketCount = 1 << subBucketBits;
+		this.counts = new AtomicLongArray(subBucketCount*(MAX_MAGNITUDE - subBucketBits + 2));
+	}
+
+	public void recordMicros(long micros) {
+		if(micros < 0) micros = 0;
+		counts.incrementAndGet(bucketIndex(micros));
+		totalCount.incrementAndGet();
+		totalMicros.addAndGet(micros);
+		// A lost update here only affects the max in a race between two large values; this is good enough for monitoring.
+		if(micros > maxMicros) maxMicros = micros;
+	}
+
+	public void recordNanos(long nanos) {
+		recordMicros(nanos/1000);
+	}
+
+	private int bucketIndex(long micros) {
+		if(micros < subBucketCount) return (int) micros;
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+		if(magnitude > MAX_MAGNITUDE) {
+			return counts.length() - 1;
+		}
+		int shift = magnitude - subBucketBits;
+		int subBucket = (int) ((micros >> shift) - subBucketCount);
+		return subBucketCount + shift*subBucketCount + subBucket;
+	}
+
+	/**
+	 * @param index
+	 * @return The largest value that is recorded in this bucket.
+	 */
+	private long highestValueInBucket(int index) {
+		if(index < subBucketCount) return index;
+		int shift = (index - subBucketCount)/subBucketCount;
+		int subBucket = (index - subBucketCount) % subBucketCount;
+		return ((long)(subBucketCount + subBucket + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * @return The number of buckets in this histogram; used to estimate the memory used by the histogram.
+	 */
+	public int getBucketCount() {
+		return counts.length();
+	}
+
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+
+	public double getMeanMicros() {
+		long count = totalCount.get();
+		if(count == 0) return 0.0;
+		return totalMicros.get()/(double) count;
+	}
+
+	/**
+	 * Get the latency at the specified percentile.
+	 * As recording happens concurrently, this is approximate.
+	 * @param percentile - For example, 99.9
+	 * @return The latency in microseconds; 0 if nothing has been recorded yet.
+	 */
+	public long getMicrosAtPercentile(double percentile) {
+		long count = 0;
+		long[] snapshot = new long[counts.length()];
+		for(int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if(count == 0) return 0;
+		long countAtPercentile = Math.max(1, (long) Math.ceil((Math.min(percentile, 100.0)/100.0)*count));
+		long cumulative = 0;
+		for(int i = 0; i < snapshot.length; i++) {
+			cumulative += snapshot[i];
+			if(cumulative >= countAtPercentile) {
+				return Math.min(highestValueInBucket(i), maxMicros);
+			}
+		}
+		return maxMicros;
+	}
+}
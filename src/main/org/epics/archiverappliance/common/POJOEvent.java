@@ -89,6 +89,16 @@ public class POJOEvent implements DBRTimeEvent {
 		return TimeUtils.convertToEpochSeconds(recordProcessingTime);
 	}
 
+	@Override
+	public int getNanos() {
+		return recordProcessingTime.getNanos();
+	}
+
+	@Override
+	public long getEpochNanos() {
+		return TimeUtils.convertToEpochNanos(getEpochSeconds(), getNanos());
+	}
+
 	@Override
 	public ByteArray getRawForm() {
 		try { 
@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+
+/**
+ * A mergeable streaming quantile sketch with bounded memory.
+ * This is a simplified version of the KLL sketch (Karnin, Lang, Liberty - Optimal Quantile Approximation in Streams).
+ *
+ * Values are added to level 0; when the sketch exceeds its capacity, the lowest level that is over its capacity is sorted and every other item is promoted to the next level.
+ * An item in level <code>h</code> therefore stands for <code>2^h</code> of the original values.
+ * The capacity of the levels decreases geometrically (by 2/3) from the top level down; so the total number of retained items is about <code>3*k</code> independent of the number of values added.
+ * The rank error is about <code>1.65/k</code>; for the default k of 200 this is less than 1%.
+ *
+ * <ol>
+ * <li>Till the sketch compacts for the first time, we hold all the values and the quantiles are computed exactly using commons-math Percentile; so small bins give the same results as DescriptiveStatistics.</li>
+ * <li>Compaction alternates between the odd and even items for each level instead of using a random coin.
+ * This keeps the results reproducible; for example, data reduced during ETL and data reduced during retrieval give the same answer.</li>
+ * <li>Sketches can be merged; so sketches computed over partitions (or over appliances) can be combined into a sketch for the whole span.
+ * Use toByteArray/fromByteArray to persist a sketch.</li>
+ * </ol>
+ *
+ * This class is not thread safe.
+ * @author mshankar
+ *
+ */
+public class QuantileSketch {
+	public static final int DEFAULT_K = 200;
+	private static final int MIN_LEVEL_CAPACITY = 8;
+	private static final int MAX_LEVELS = 61;
+	private static final int INITIAL_LEVEL0_SIZE = 16;
+	/**
+	 * Version marker for the serialized form.
+	 */
+	private static final byte SERIALIZATION_VERSION = 1;
+
+	private final int k;
+	private long n = 0;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	private int numLevels = 1;
+	private int retainedItems = 0;
+	private final double[][] levelItems = new double[MAX_LEVELS][];
+	private final int[] levelSizes = new int[MAX_LEVELS];
+	/**
+	 * We alternate between the odd and even items when compacting a level.
+	 */
+	private final boolean[] compactOddItems = new boolean[MAX_LEVELS];
+
+	public QuantileSketch() {
+		this(DEFAULT_K);
+	}
+
+	public QuantileSketch(int k) {
+		if(k < MIN_LEVEL_CAPACITY) {
+			throw new IllegalArgumentException("k has to be at least " + MIN_LEVEL_CAPACITY + "; we have " + k);
+		}
+		this.k = k;
+	}
+
+	/**
+	 * Add a value to the sketch. NaN's are ignored.
+	 * @param value
+	 */
+	public void addValue(double value) {
+		if(Double.isNaN(value)) return;
+		if(n == 0) {
+			min = value;
+			max = value;
+		} else {
+			if(value < min) min = value;
+			if(value > max) max = value;
+		}
+		n++;
+		appendToLevel(0, value);
+		retainedItems++;
+		while(retainedItems >= getTotalCapacity()) {
+			compactOneLevel();
+		}
+	}
+
+	/**
+	 * Merge the other sketch into this sketch. The other sketch is not altered.
+	 * Both sketches must have the same k; otherwise, the levels have different weights and we would lose the rank error guarantee.
+	 * @param other
+	 * @throws IllegalArgumentException if the other sketch has a different k.
+	 */
+	public void merge(QuantileSketch other) {
+		if(other == null) return;
+		if(other.k != k) {
+			throw new IllegalArgumentException("Cannot merge a sketch with k " + other.k + " into a sketch with k " + k);
+		}
+		if(other.n == 0) return;
+		if(n == 0) {
+			min = other.min;
+			max = other.max;
+		} else {
+			if(other.min < min) min = other.min;
+			if(other.max > max) max = other.max;
+		}
+		n += other.n;
+		for(int level = 0; level < other.numLevels; level++) {
+			int otherSize = other.levelSizes[level];
+			if(otherSize == 0) continue;
+			if(level >= numLevels) numLevels = level + 1;
+			for(int i = 0; i < otherSize; i++) {
+				appendToLevel(level, other.levelItems[level][i]);
+			}
+			retainedItems += otherSize;
+		}
+		while(retainedItems >= getTotalCapacity()) {
+			compactOneLevel();
+		}
+	}
+
+	/**
+	 * Get the estimated quantile.
+	 * @param percentile - The percentile in the range (0, 100]; for example, 50 for the median.
+	 * @return The value at that percentile or NaN if no values have been added.
+	 */
+	public double getPercentile(double percentile) {
+		if(percentile <= 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile " + percentile + " is out of the range (0, 100]");
+		}
+		if(n == 0) return Double.NaN;
+		if(isExact()) {
+			return new Percentile(percentile).evaluate(levelItems[0], 0, levelSizes[0]);
+		}
+
+		// Gather all the retained items along with their weights and walk the cumulative weights.
+		double[] values = new double[retainedItems];
+		long[] weights = new long[retainedItems];
+		int index = 0;
+		for(int level = 0; level < numLevels; level++) {
+			for(int i = 0; i < levelSizes[level]; i++) {
+				values[index] = levelItems[level][i];
+				weights[index] = 1L << level;
+				index++;
+			}
+		}
+		sortByValue(values, weights);
+		double targetRank = (percentile/100.0)*n;
+		long cumulativeWeight = 0;
+		for(int i = 0; i < values.length; i++) {
+			cumulativeWeight += weights[i];
+			if(cumulativeWeight >= targetRank) {
+				return Math.max(min, Math.min(max, values[i]));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Are we still holding all the values that were added to this sketch?
+	 * @return
+	 */
+	public boolean isExact() {
+		return numLevels == 1;
+	}
+
+	public long getN() {
+		return n;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public int getRetainedItems() {
+		return retainedItems;
+	}
+
+	/**
+	 * Estimate the heap used by this sketch in bytes.
+	 * @return
+	 */
+	public long estimateMemoryConsumption() {
+		long bytes = 64 + 3*(16 + MAX_LEVELS*8);
+		for(int level = 0; level < numLevels; level++) {
+			if(levelItems[level] != null) {
+				bytes += 16 + levelItems[level].length*8;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * An upper bound on the heap used by a sketch with the specified k no matter how many values are added to it.
+	 * We assume at most 32 levels (which is 2^32 compactions of the top level) and allow for levels temporarily exceeding their capacity and the slack in the growable arrays.
+	 * @param k
+	 * @return
+	 */
+	public static long estimateMaxMemoryConsumption(int k) {
+		long maxItems = 0;
+		int levels = 32;
+		for(int level = 0; level < levels; level++) {
+			maxItems += getLevelCapacity(k, level, levels);
+		}
+		return 64 + 3*(16 + MAX_LEVELS*8) + levels*16 + 4*maxItems*8;
+	}
+
+	/**
+	 * Serialize this sketch so that it can be persisted and merged later.
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 8 + 8 + 8 + 4 + numLevels*4 + numLevels + retainedItems*8);
+		buf.put(SERIALIZATION_VERSION);
+		buf.putInt(k);
+		buf.putLong(n);
+		buf.putDouble(min);
+		buf.putDouble(max);
+		buf.putInt(numLevels);
+		for(int level = 0; level < numLevels; level++) {
+			buf.putInt(levelSizes[level]);
+			buf.put(compactOddItems[level] ? (byte) 1 : (byte) 0);
+			for(int i = 0; i < levelSizes[level]; i++) {
+				buf.putDouble(levelItems[level][i]);
+			}
+		}
+		return buf.array();
+	}
+
+	/**
+	 * Reconstitute a sketch from its serialized form.
+	 * @param bytes
+	 * @return
+	 */
+	public static QuantileSketch fromByteArray(byte[] bytes) {
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		byte version = buf.get();
+		if(version != SERIALIZATION_VERSION) {
+			throw new IllegalArgumentException("Unsupported quantile sketch serialization version " + version);
+		}
+		QuantileSketch ret = new QuantileSketch(buf.getInt());
+		ret.n = buf.getLong();
+		ret.min = buf.getDouble();
+		ret.max = buf.getDouble();
+		ret.numLevels = buf.getInt();
+		if(ret.numLevels < 1 || ret.numLevels > MAX_LEVELS) {
+			throw new IllegalArgumentException("Invalid number of levels " + ret.numLevels + " in serialized quantile sketch");
+		}
+		for(int level = 0; level < ret.numLevels; level++) {
+			int size = buf.getInt();
+			ret.compactOddItems[level] = buf.get() != 0;
+			ret.levelItems[level] = new double[Math.max(size, 1)];
+			for(int i = 0; i < size; i++) {
+				ret.levelItems[level][i] = buf.getDouble();
+			}
+			ret.levelSizes[level] = size;
+			ret.retainedItems += size;
+		}
+		return ret;
+	}
+
+	private void appendToLevel(int level, double value) {
+		double[] items = levelItems[level];
+		if(items == null) {
+			items = new double[level == 0 ? INITIAL_LEVEL0_SIZE : MIN_LEVEL_CAPACITY];
+			levelItems[level] = items;
+		} else if(levelSizes[level] == items.length) {
+			items = Arrays.copyOf(items, items.length*2);
+			levelItems[level] = items;
+		}
+		items[levelSizes[level]++] = value;
+	}
+
+	private int getTotalCapacity() {
+		int total = 0;
+		for(int level = 0; level < numLevels; level++) {
+			total += getLevelCapacity(k, level, numLevels);
+		}
+		return total;
+	}
+
+	private static int getLevelCapacity(int k, int level, int numLevels) {
+		int depth = numLevels - level - 1;
+		return Math.max(MIN_LEVEL_CAPACITY, (int) Math.ceil(k*Math.pow(2.0/3.0, depth)));
+	}
+
+	/**
+	 * Find the lowest level that is at or over its capacity and promote every other item in that level to the next level.
+	 */
+	private void compactOneLevel() {
+		int level = 0;
+		while(level < numLevels - 1 && levelSizes[level] < getLevelCapacity(k, level, numLevels)) {
+			level++;
+		}
+		if(level == numLevels - 1) {
+			if(numLevels == MAX_LEVELS) {
+				throw new IllegalStateException("Quantile sketch has run out of levels after " + n + " values");
+			}
+			numLevels++;
+		}
+
+		double[] items = levelItems[level];
+		int size = levelSizes[level];
+		// If we have an odd number of items, we leave the most recently added item behind in this level.
+		boolean leaveOneBehind = (size % 2) == 1;
+		double leftBehind = leaveOneBehind ? items[size-1] : Double.NaN;
+		int compactSize = leaveOneBehind ? size - 1 : size;
+		Arrays.sort(items, 0, compactSize);
+		int offset = compactOddItems[level] ? 1 : 0;
+		compactOddItems[level] = !compactOddItems[level];
+		for(int i = offset; i < compactSize; i += 2) {
+			appendToLevel(level + 1, items[i]);
+		}
+		levelSizes[level] = 0;
+		// Once a level is no longer the top level, its capacity shrinks; so we release the space it used when it was the top level.
+		int capacity = getLevelCapacity(k, level, numLevels);
+		if(items.length > 2*capacity) {
+			items = new double[capacity];
+			levelItems[level] = items;
+		}
+		if(leaveOneBehind) {
+			items[levelSizes[level]++] = leftBehind;
+		}
+		retainedItems -= compactSize/2;
+	}
+
+	/**
+	 * Sort the values array and apply the same permutation to the weights array.
+	 */
+	private static void sortByValue(double[] values, long[] weights) {
+		Integer[] order = new Integer[values.length];
+		for(int i = 0; i < order.length; i++) order[i] = i;
+		final double[] valuesForComparison = values;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(valuesForComparison[o1], valuesForComparison[o2]);
+			}
+		});
+		double[] sortedValues = new double[values.length];
+		long[] sortedWeights = new long[weights.length];
+		for(int i = 0; i < order.length; i++) {
+			sortedValues[i] = values[order[i]];
+			sortedWeights[i] = weights[order[i]];
+		}
+		System.arraycopy(sortedValues, 0, values, 0, values.length);
+		System.arraycopy(sortedWeights, 0, weights, 0, weights.length);
+	}
+}
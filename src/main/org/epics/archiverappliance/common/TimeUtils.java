@@ -91,32 +91,52 @@ public class TimeUtils {
 	}
 
 	public static YearSecondTimestamp convertToYearSecondTimestamp(java.sql.Timestamp ts) {
-		DateTime dateTime = new DateTime(ts.getTime(), DateTimeZone.UTC);
-		DateTime startoftheYear = new DateTime(dateTime.getYear(), 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
-		long startOfYearInSeconds = startoftheYear.getMillis()/1000;
-		long epochSeconds = dateTime.getMillis()/1000;
-		assert((epochSeconds - startOfYearInSeconds) < Integer.MAX_VALUE);
-		int secondsIntoYear = (int) (epochSeconds - startOfYearInSeconds);
-		return new YearSecondTimestamp((short) (dateTime.getYear()), secondsIntoYear, ts.getNanos());
+		return convertToYearSecondTimestamp(ts.getTime()/1000, ts.getNanos());
 	}
 	
 	public static YearSecondTimestamp convertToYearSecondTimestamp(gov.aps.jca.dbr.TimeStamp jcats) {
-		DateTime dateTime = new DateTime((jcats.secPastEpoch()+EPICS_EPOCH_2_JAVA_EPOCH_OFFSET)*1000, DateTimeZone.UTC);
-		DateTime startoftheYear = new DateTime(dateTime.getYear(), 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
-		long startOfYearInSeconds = startoftheYear.getMillis()/1000;
-		long epochSeconds = dateTime.getMillis()/1000;
-		assert((epochSeconds - startOfYearInSeconds) < Integer.MAX_VALUE);
-		int secondsIntoYear = (int) (epochSeconds - startOfYearInSeconds);
-		return new YearSecondTimestamp((short) (dateTime.getYear()), secondsIntoYear, (int) jcats.nsec());
+		return convertToYearSecondTimestamp(jcats.secPastEpoch()+EPICS_EPOCH_2_JAVA_EPOCH_OFFSET, (int) jcats.nsec());
 	}
 
 	public static YearSecondTimestamp convertToYearSecondTimestamp(long epochSeconds) {
-		DateTime dateTime = new DateTime(epochSeconds*1000, DateTimeZone.UTC);
-		DateTime startoftheYear = new DateTime(dateTime.getYear(), 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
-		long startOfYearInSeconds = startoftheYear.getMillis()/1000;
+		return convertToYearSecondTimestamp(epochSeconds, 0);
+	}
+
+	/**
+	 * Convert java epoch seconds + nanos into a YearSecondTimestamp.
+	 * This uses the cached start of year table and does not create any intermediate date objects; so this is safe to call for every sample.
+	 * @param epochSeconds
+	 * @param nanos
+	 * @return
+	 */
+	public static YearSecondTimestamp convertToYearSecondTimestamp(long epochSeconds, int nanos) {
+		short year = computeYearForEpochSeconds(epochSeconds);
+		long startOfYearInSeconds = getStartOfYearInSeconds(year);
 		assert((epochSeconds - startOfYearInSeconds) < Integer.MAX_VALUE);
 		int secondsIntoYear = (int) (epochSeconds - startOfYearInSeconds);
-		return new YearSecondTimestamp((short) (dateTime.getYear()), secondsIntoYear, 0);
+		return new YearSecondTimestamp(year, secondsIntoYear, nanos);
+	}
+
+	/**
+	 * Convert java epoch seconds + nanos into nanoseconds since the java epoch. 
+	 * A long holds epoch nanos till the year 2262; use this for comparisons and arithmetic in the retrieval path where we do not want to create Timestamps. 
+	 * @param epochSeconds
+	 * @param nanos
+	 * @return
+	 */
+	public static long convertToEpochNanos(long epochSeconds, int nanos) {
+		return epochSeconds*1000000000L + nanos;
+	}
+
+	/**
+	 * Compare two timestamps expressed as java epoch seconds + nanos without creating Timestamps.
+	 * @return A negative number, zero or a positive number as the first timestamp is before, same as or after the second timestamp.
+	 */
+	public static int compare(long epochSeconds1, int nanos1, long epochSeconds2, int nanos2) {
+		if(epochSeconds1 != epochSeconds2) { 
+			return epochSeconds1 < epochSeconds2 ? -1 : 1;
+		}
+		return nanos1 < nanos2 ? -1 : (nanos1 == nanos2 ? 0 : 1);
 	}
 
 	public static String convertToISO8601String(java.sql.Timestamp ts) {
@@ -173,10 +193,7 @@ public class TimeUtils {
 	}
 
 	public static long getStartOfYearInSeconds(long epochseconds) {
-		// The JODA DateTime constructor takes millis
-		DateTime dateTime = new DateTime(epochseconds*1000, DateTimeZone.UTC);
-		DateTime startoftheYear = new DateTime(dateTime.getYear(), 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
-		return startoftheYear.getMillis()/1000;
+		return getStartOfYearInSeconds(computeYearForEpochSeconds(epochseconds));
 	}
 	
 	
@@ -197,7 +214,40 @@ public class TimeUtils {
 	 * @return
 	 */
 	public static long getStartOfYearInSeconds(short year) {
-		return startOfYearInEpochSeconds[year - START_OF_CACHE_FOR_YEAR_STARTEPOCHSECONDS];
+		int index = year - START_OF_CACHE_FOR_YEAR_STARTEPOCHSECONDS;
+		if(index < 0 || index >= startOfYearInEpochSeconds.length) { 
+			DateTime startoftheYear = new DateTime(year, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC);
+			return startoftheYear.getMillis()/1000;
+		}
+		return startOfYearInEpochSeconds[index];
+	}
+	
+	/**
+	 * Average length of a gregorian year in seconds; used to get an initial guess into the start of year table.
+	 */
+	private static final long AVERAGE_SECONDS_PER_YEAR = 31556952L;
+	
+	/**
+	 * Determine the year for java epoch seconds using the start of year table.
+	 * We guess the index using the average length of a year and then correct the guess by at most a step or two.
+	 * Times outside the table fall back to JODA.
+	 * @param epochseconds
+	 * @return
+	 */
+	private static short computeYearFromStartOfYearTable(long epochseconds) {
+		int lastIndex = startOfYearInEpochSeconds.length - 1;
+		if(epochseconds < startOfYearInEpochSeconds[0] || epochseconds >= startOfYearInEpochSeconds[lastIndex]) { 
+			DateTime dateTime = new DateTime(epochseconds*1000, DateTimeZone.UTC);
+			return (short) dateTime.getYear();
+		}
+		int index = (int) Math.min(epochseconds/AVERAGE_SECONDS_PER_YEAR, lastIndex);
+		while(startOfYearInEpochSeconds[index] > epochseconds) { 
+			index--;
+		}
+		while(startOfYearInEpochSeconds[index+1] <= epochseconds) { 
+			index++;
+		}
+		return (short) (START_OF_CACHE_FOR_YEAR_STARTEPOCHSECONDS + index);
 	}
 	
 	public static Timestamp getEndOfYear(int year) {
@@ -232,7 +282,7 @@ public class TimeUtils {
 	 * @return
 	 */
 	public static int getSecondsIntoYear(long epochseconds) {
-		long startOfYearInSeconds = getStartOfYearInSeconds(epochseconds);
+		long startOfYearInSeconds = getStartOfYearInSeconds(computeYearForEpochSeconds(epochseconds));
 		long diffInSecs = epochseconds - startOfYearInSeconds;
 		assert(diffInSecs <= Integer.MAX_VALUE);
 		return (int)(diffInSecs);
@@ -245,9 +295,7 @@ public class TimeUtils {
 	 * @return
 	 */
 	public static short computeYearForEpochSeconds(long epochseconds) {
-		// The JODA DateTime constructor takes millis
-		DateTime dateTime = new DateTime(epochseconds*1000, DateTimeZone.UTC);
-		return (short) dateTime.year().get();
+		return computeYearFromStartOfYearTable(epochseconds);
 	}
 	
 	/**
@@ -496,6 +544,15 @@ public class TimeUtils {
 		return !DateTimeZone.getDefault().isStandardOffset(ts.getTime());
 	}
 	
+	/**
+	 * Whether we are in DST for a particular time (in java epoch seconds) in the servers default timezone.
+	 * @param epochSeconds
+	 * @return
+	 */
+	public static boolean isDST(long epochSeconds) { 
+		return !DateTimeZone.getDefault().isStandardOffset(epochSeconds*1000);
+	}
+	
 	
 	
 	/**
@@ -56,4 +56,17 @@ public class ChannelArchiverDataServerInfo implements Serializable {
 		logger.debug("Creating ca plugin for " + serverURL + " using index " + index + " asking for " + count + " values " + " and method " + howStr);
 		return new ChannelArchiverReadOnlyPlugin(this.serverURL, this.index, count, howStr);  
 	}
+	
+	/**
+	 * Get a plugin that uses the chunking, paging and caching settings from the installation properties.
+	 * @param count
+	 * @param howStr
+	 * @param configService
+	 * @return
+	 */
+	public ChannelArchiverReadOnlyPlugin getPlugin(int count, String howStr, ConfigService configService) {
+		ChannelArchiverReadOnlyPlugin plugin = getPlugin(count, howStr);
+		plugin.configureFetching(configService);
+		return plugin;
+	}
 }
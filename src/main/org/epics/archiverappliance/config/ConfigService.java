@@ -558,5 +558,18 @@ public interface ConfigService {
 	 * @return
 	 */
 	public Set<String> getNamedFlagNames();
+	
+	/**
+	 * The engine in each appliance periodically publishes the number of connected/disconnected PVs into the cluster.
+	 * @param counts
+	 */
+	public void updateConnectedPVCountsForThisAppliance(ConnectedPVCounts counts);
+	
+	/**
+	 * Get the number of connected/disconnected PVs that was last published by the engine in the specified appliance.
+	 * @param applianceIdentity
+	 * @return null if this appliance has not published these counts yet.
+	 */
+	public ConnectedPVCounts getConnectedPVCountsForAppliance(String applianceIdentity);
 }
 
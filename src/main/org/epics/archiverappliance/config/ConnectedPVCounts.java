@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.config;
+
+import java.io.Serializable;
+
+import org.epics.archiverappliance.common.TimeUtils;
+
+/**
+ * The number of PVs connected/disconnected in an appliance's engine as of the last disconnect check.
+ * Each engine publishes these into the cluster so that other engines do not have to ask for them.
+ * @author mshankar
+ *
+ */
+public class ConnectedPVCounts implements Serializable {
+	private static final long serialVersionUID = 4316987531079437155L;
+	private int total;
+	private int disconnected;
+	private long lastUpdatedEpochSeconds;
+	
+	public ConnectedPVCounts(int total, int disconnected) {
+		this.total = total;
+		this.disconnected = disconnected;
+		this.lastUpdatedEpochSeconds = TimeUtils.getCurrentEpochSeconds();
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	public int getDisconnected() {
+		return disconnected;
+	}
+
+	public long getLastUpdatedEpochSeconds() {
+		return lastUpdatedEpochSeconds;
+	}
+	
+	/**
+	 * @return The percentage of PVs that are disconnected; 0 if there are no PVs.
+	 */
+	public double getDisconnectedPercentage() {
+		if(total <= 0) return 0.0;
+		return (disconnected*100.0)/total;
+	}
+}
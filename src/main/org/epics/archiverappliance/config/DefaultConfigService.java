@@ -139,6 +139,7 @@ public class DefaultConfigService implements ConfigService {
 	protected Map<String, List<ChannelArchiverDataServerPVInfo>> pv2ChannelArchiverDataServer = null;
 	protected ITopic<PubSubEvent> pubSub = null;
 	protected Map<String, Boolean> namedFlags = null;
+	protected Map<String, ConnectedPVCounts> connectedPVCounts = null;
 	// Configuration state ends here.
 	
 	// Runtime state begins here 
@@ -547,6 +548,7 @@ public class DefaultConfigService implements ConfigService {
 		
 		pv2appliancemapping = hzinstance.getMap("pv2appliancemapping");
 		namedFlags = hzinstance.getMap("namedflags");
+		connectedPVCounts = hzinstance.getMap("connectedPVCounts");
 		typeInfos = hzinstance.getMap("typeinfo");
 		archivePVRequests = hzinstance.getMap("archivePVRequests");
 		channelArchiverDataServers = hzinstance.getMap("channelArchiverDataServers");
@@ -611,6 +613,7 @@ public class DefaultConfigService implements ConfigService {
 					if(clusterInet2ApplianceIdentity.containsKey(inetPort)) {
 						String appliden = clusterInet2ApplianceIdentity.get(inetPort);
 						appliancesInCluster.add(appliden);
+						StoragePluginURLParser.clearCachedStoragePlugins(DefaultConfigService.this);
 						configlogger.info("Adding newly started appliance " + appliden + " to the list of active appliances for inetport " + inetPort);
 					} else {
 						logger.debug("Skipping adding appliance using inetport " + inetPort + " to the list of active instances as we do not have a mapping to its identity");
@@ -622,6 +625,7 @@ public class DefaultConfigService implements ConfigService {
 					if(clusterInet2ApplianceIdentity.containsKey(inetPort)) {
 						String appliden = clusterInet2ApplianceIdentity.get(inetPort);
 						appliancesInCluster.remove(appliden);
+						StoragePluginURLParser.clearCachedStoragePlugins(DefaultConfigService.this);
 						configlogger.info("Removing appliance " + appliden + " from the list of active appliances");
 					} else {
 						configlogger.debug("Received member removed event for " + inetPort);
@@ -1325,6 +1329,7 @@ public class DefaultConfigService implements ConfigService {
 			}
 		}
 		logger.debug("Done running shutdown hooks in webapp " + this.warFile);
+		StoragePluginURLParser.clearCachedStoragePlugins(this);
 	}
 
 	@Override
@@ -1957,4 +1962,14 @@ public class DefaultConfigService implements ConfigService {
 	public Set<String> getNamedFlagNames() {
 		return namedFlags.keySet();
 	}
+
+	@Override
+	public void updateConnectedPVCountsForThisAppliance(ConnectedPVCounts counts) {
+		connectedPVCounts.put(getMyApplianceInfo().getIdentity(), counts);
+	}
+
+	@Override
+	public ConnectedPVCounts getConnectedPVCountsForAppliance(String applianceIdentity) {
+		return connectedPVCounts.get(applianceIdentity);
+	}
 }
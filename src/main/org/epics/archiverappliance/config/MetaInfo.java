@@ -25,6 +25,7 @@ import java.util.HashMap;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.DeferredVectorEvent;
 import org.epics.pvdata.pv.PVStructure;
 /** this class is used for getting the meta data
  *  <p>
@@ -147,11 +148,50 @@ public class MetaInfo {
 	 */
 	private long startTime=0L;
 
+	/**
+	 * The event and storage rates are computed over this many seconds; the MetaGet may stop measuring earlier if it is confident of the rate.
+	 */
+	private double rateMeasurementWindowSeconds = 60;
+
 	/**
 	 * store other information include MDEL,ADEL   &
 	 */
 	private HashMap<String,String> otherMetaInfo=new  HashMap<String,String>();
 
+	public MetaInfo() {
+	}
+
+	/**
+	 * Make a copy of the meta info; for example, to add to the meta info of a PV whose channel is still updating it.
+	 * @param src
+	 */
+	public MetaInfo(MetaInfo src) {
+		this.hostName = src.hostName;
+		this.lowerAlarmLimit = src.lowerAlarmLimit;
+		this.loweCtrlLimit = src.loweCtrlLimit;
+		this.lowerDisplayLimit = src.lowerDisplayLimit;
+		this.lowerWarningLimit = src.lowerWarningLimit;
+		this.upperAlarmLimit = src.upperAlarmLimit;
+		this.upperCtrlLimit = src.upperCtrlLimit;
+		this.upperDisplayLimit = src.upperDisplayLimit;
+		this.upperWarningLimit = src.upperWarningLimit;
+		this.precision = src.precision;
+		this.unit = src.unit;
+		this.eventCount = src.eventCount;
+		this.aliasName = src.aliasName;
+		this.archDBRTypes = src.archDBRTypes;
+		this.eventRate = src.eventRate;
+		this.storageSize = src.storageSize;
+		this.storageRate = src.storageRate;
+		this.count = src.count;
+		this.isVector = src.isVector;
+		this.label = (src.label != null) ? src.label.clone() : null;
+		this.second = src.second;
+		this.startTime = src.startTime;
+		this.rateMeasurementWindowSeconds = src.rateMeasurementWindowSeconds;
+		this.otherMetaInfo = new HashMap<String,String>(src.otherMetaInfo);
+	}
+
 
 
 	/**
@@ -383,23 +423,37 @@ public class MetaInfo {
 	}
 
 	/**
-	 * get the average event rate in 1 minute
+	 * get the average event rate over the measurement window
 	 * @return  average event rate
 	 */
 	public double getEventRate() {
-		eventRate=((double)eventCount)/60;
+		eventRate=((double)eventCount)/rateMeasurementWindowSeconds;
 		return eventRate;
 	}
 
 	/**
-	 *  get the average storage rate in 1 minute
+	 *  get the average storage rate over the measurement window
 	 * @return average storage rate
 	 */
 	public double getStorageRate() {
-		storageRate=((double)storageSize)/60;
+		storageRate=((double)storageSize)/rateMeasurementWindowSeconds;
 		return storageRate;
 	}
 
+	public double getRateMeasurementWindowSeconds() {
+		return rateMeasurementWindowSeconds;
+	}
+
+	/**
+	 * Set the time span over which the events were counted; this defaults to a minute.
+	 * @param rateMeasurementWindowSeconds
+	 */
+	public void setRateMeasurementWindowSeconds(double rateMeasurementWindowSeconds) {
+		if(rateMeasurementWindowSeconds > 0) { 
+			this.rateMeasurementWindowSeconds = rateMeasurementWindowSeconds;
+		}
+	}
+
 	/**
 	 * get the element count of the pv's value. 
 	 * @return count
@@ -466,7 +520,7 @@ public class MetaInfo {
 		}
 		eventCount++;
 		this.archDBRTypes=dbrtimeevent.getDBRType();
-		storageSize=storageSize+dbrtimeevent.getRawForm().len;
+		storageSize=storageSize+((dbrtimeevent instanceof DeferredVectorEvent) ? ((DeferredVectorEvent) dbrtimeevent).getEstimatedRawFormSize() : dbrtimeevent.getRawForm().len);
 	}
 
 	@Override
@@ -128,6 +128,10 @@ public class PVTypeInfo implements Serializable {
 	private String[] archiveFields = new String[0];
 	private boolean usePVAccess = false;
 	private boolean useDBEProperties = false;
+	/**
+	 * For high rate waveform PVs, copy the samples into a preallocated block in the engine and encode them only when writing to the STS.
+	 */
+	private boolean coalesceVectorSamples = false;
 	
 	public PVTypeInfo() {
 		
@@ -536,7 +540,7 @@ public class PVTypeInfo implements Serializable {
 		try(BasicContext context = new BasicContext()) {
 			for(String storeUrl : this.dataStores) {
 				try {
-					StoragePlugin storagePlugin = StoragePluginURLParser.parseStoragePlugin(storeUrl, configService);
+					StoragePlugin storagePlugin = StoragePluginURLParser.getCachedStoragePlugin(storeUrl, configService);
 					Event e = storagePlugin.getLastKnownEvent(context, pvName);
 					if(e != null) return e.getEventTimeStamp();
 				} catch(IOException ex) {
@@ -608,4 +612,12 @@ public class PVTypeInfo implements Serializable {
 	public void setUseDBEProperties(boolean useDBEProperties) {
 		this.useDBEProperties = useDBEProperties;
 	}
+
+	public boolean isCoalesceVectorSamples() {
+		return coalesceVectorSamples;
+	}
+
+	public void setCoalesceVectorSamples(boolean coalesceVectorSamples) {
+		this.coalesceVectorSamples = coalesceVectorSamples;
+	}
 }
@@ -10,6 +10,10 @@ package org.epics.archiverappliance.config;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang3.text.StrLookup;
 import org.apache.commons.lang3.text.StrSubstitutor;
@@ -34,11 +38,20 @@ import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
  * <li>The <code>blackhole</code> prefix initializes {@link org.epics.archiverappliance.utils.blackhole.BlackholeStoragePlugin BlackholeStoragePlugin}.</li>
  * <li>The <code>rtree</code> prefix initializes {@link org.epics.archiverappliance.retrieval.channelarchiver.ChannelArchiverReadOnlyPlugin ChannelArchiverReadOnlyPlugin}.</li>
  * </ol>
+ * Code that only reads data can use {@link #getCachedStoragePlugin(String, ConfigService) getCachedStoragePlugin} to avoid initializing a new plugin for every request.
  * @author mshankar
  *
  */
 public class StoragePluginURLParser {
 	private static Logger logger = Logger.getLogger(StoragePluginURLParser.class.getName());
+	/**
+	 * We cache at most these many plugins per config service; the cache is cleared if it grows beyond this.
+	 */
+	private static final int MAX_CACHED_PLUGINS = 1000;
+	/**
+	 * Initialized plugins keyed by their URL for each config service.
+	 */
+	private static final Map<ConfigService, ConcurrentHashMap<String, StoragePlugin>> cachedPlugins = Collections.synchronizedMap(new WeakHashMap<ConfigService, ConcurrentHashMap<String, StoragePlugin>>());
 	
 	
 	public static StoragePlugin parseStoragePlugin(String srcURIStr, ConfigService configService) throws IOException {
@@ -70,6 +83,51 @@ public class StoragePluginURLParser {
 		return null;
 	}
 	
+	/**
+	 * Same as parseStoragePlugin except that we return a shared plugin that has already been initialized for this URL.
+	 * Retrieval resolves the data sources for a PV for every request; parsing the URL and initializing the plugin each time adds up.
+	 * The returned plugin is shared across requests and threads; so, use this only for reading data and do not change the plugin.
+	 * Code that writes data (ETL, appendData etc) should continue to use parseStoragePlugin.
+	 * @param srcURIStr
+	 * @param configService
+	 * @return
+	 * @throws IOException
+	 */
+	public static StoragePlugin getCachedStoragePlugin(String srcURIStr, ConfigService configService) throws IOException {
+		ConcurrentHashMap<String, StoragePlugin> plugins;
+		synchronized(cachedPlugins) {
+			plugins = cachedPlugins.get(configService);
+			if(plugins == null) {
+				plugins = new ConcurrentHashMap<String, StoragePlugin>();
+				cachedPlugins.put(configService, plugins);
+			}
+		}
+		// The macros are expanded from the system properties and the environment; these do not change once we are up and running.
+		String cacheKey = srcURIStr.trim();
+		StoragePlugin plugin = plugins.get(cacheKey);
+		if(plugin != null) {
+			return plugin;
+		}
+		plugin = parseStoragePlugin(cacheKey, configService);
+		if(plugin == null) {
+			return null;
+		}
+		if(plugins.size() >= MAX_CACHED_PLUGINS) {
+			logger.info("Clearing the cache of storage plugins as it has more than " + MAX_CACHED_PLUGINS + " entries");
+			plugins.clear();
+		}
+		StoragePlugin existingPlugin = plugins.putIfAbsent(cacheKey, plugin);
+		return existingPlugin != null ? existingPlugin : plugin;
+	}
+
+	/**
+	 * Drop the cached plugins for this config service; for example, when the appliances in the cluster change.
+	 * @param configService
+	 */
+	public static void clearCachedStoragePlugins(ConfigService configService) {
+		cachedPlugins.remove(configService);
+	}
+	
 	public static ETLSource parseETLSource(String srcURIStr, ConfigService configService) throws IOException {
 		try {
 			srcURIStr = expandMacros(srcURIStr);
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.data;
+
+/**
+ * An event for a numeric waveform that holds its values in a primitive array and computes its raw (PB) form only when asked for.
+ * Code that copies the values or that only needs the size of the raw form can use these methods instead of forcing the encoding.
+ * @author mshankar
+ *
+ */
+public interface DeferredVectorEvent extends DBRTimeEvent {
+	/**
+	 * @return The values as a double[], float[], int[], short[] or byte[] as appropriate for the DBR type.
+	 * Returns null if the event has been encoded (for example, when field values are added); use the sample value in this case.
+	 */
+	public Object getPrimitiveValues();
+
+	/**
+	 * @return The number of elements in the waveform.
+	 */
+	public int getElementCount();
+
+	/**
+	 * @return An estimate of the size of the raw form; used to compute storage rates.
+	 */
+	public int getEstimatedRawFormSize();
+}
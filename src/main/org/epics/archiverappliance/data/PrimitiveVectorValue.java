@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.data;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A VectorValue that is backed by a primitive array.
+ * Waveforms can have hundreds of thousands of elements; VectorValue holds these as a List of boxed numbers.
+ * This holds them as a double[]/float[]/int[]/short[]/byte[]; getValues returns a view that boxes elements only when they are asked for.
+ * Code that knows about this class (the PB encoders and the mime responses) can get at the primitive arrays directly using getDoubleValue, copyToDoubleArray or the array getters in the subclasses.
+ * As this is a VectorValue, code that checks for VectorValue continues to work; equals and hashCode compare the arrays directly but give the same results as VectorValue's.
+ * @author mshankar
+ *
+ * @param <T>
+ */
+public abstract class PrimitiveVectorValue<T extends Number> extends VectorValue<T> {
+
+	protected PrimitiveVectorValue(List<T> view) {
+		super(view);
+	}
+
+	/**
+	 * Get the element at this index as a double without boxing.
+	 * @param index
+	 * @return
+	 */
+	public abstract double getDoubleValue(int index);
+
+	protected abstract void appendValue(StringBuilder buf, int index);
+
+	/**
+	 * Copy all the elements as doubles into dest starting at destPos.
+	 * @param dest
+	 * @param destPos
+	 */
+	public void copyToDoubleArray(double[] dest, int destPos) {
+		int elementCount = getElementCount();
+		for(int i = 0; i < elementCount; i++) {
+			dest[destPos + i] = getDoubleValue(i);
+		}
+	}
+
+	@Override
+	public Number getValue() {
+		return getValue(0);
+	}
+
+	@Override
+	public String toString() {
+		return toJSONString();
+	}
+
+	@Override
+	public String toJSONString() {
+		int elementCount = getElementCount();
+		StringBuilder buf = new StringBuilder(elementCount*8 + 2);
+		buf.append('[');
+		for(int i = 0; i < elementCount; i++) {
+			if(i != 0) buf.append(',');
+			appendValue(buf, i);
+		}
+		buf.append(']');
+		return buf.toString();
+	}
+
+	@Override
+	public String getStringValue(int index) {
+		StringBuilder buf = new StringBuilder();
+		appendValue(buf, index);
+		return buf.toString();
+	}
+
+	public static class OfDouble extends PrimitiveVectorValue<Double> {
+		private final double[] values;
+
+		public OfDouble(final double[] values) {
+			super(new View<Double>(values.length) {
+				@Override
+				public Double get(int index) {
+					return values[index];
+				}
+			});
+			this.values = values;
+		}
+
+		public double[] getDoubles() {
+			return values;
+		}
+
+		@Override
+		public int getElementCount() {
+			return values.length;
+		}
+
+		@Override
+		public Number getValue(int index) {
+			return values[index];
+		}
+
+		@Override
+		public double getDoubleValue(int index) {
+			return values[index];
+		}
+
+		@Override
+		public void copyToDoubleArray(double[] dest, int destPos) {
+			System.arraycopy(values, 0, dest, destPos, values.length);
+		}
+
+		@Override
+		protected void appendValue(StringBuilder buf, int index) {
+			buf.append(values[index]);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(obj instanceof OfDouble) return Arrays.equals(values, ((OfDouble) obj).values);
+			return super.equals(obj);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(values);
+		}
+	}
+
+	public static class OfFloat extends PrimitiveVectorValue<Float> {
+		private final float[] values;
+
+		public OfFloat(final float[] values) {
+			super(new View<Float>(values.length) {
+				@Override
+				public Float get(int index) {
+					return values[index];
+				}
+			});
+			this.values = values;
+		}
+
+		public float[] getFloats() {
+			return values;
+		}
+
+		@Override
+		public int getElementCount() {
+			return values.length;
+		}
+
+		@Override
+		public Number getValue(int index) {
+			return values[index];
+		}
+
+		@Override
+		public double getDoubleValue(int index) {
+			return values[index];
+		}
+
+		@Override
+		protected void appendValue(StringBuilder buf, int index) {
+			buf.append(values[index]);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(obj instanceof OfFloat) return Arrays.equals(values, ((OfFloat) obj).values);
+			return super.equals(obj);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(values);
+		}
+	}
+
+	public static class OfInt extends PrimitiveVectorValue<Integer> {
+		private final int[] values;
+
+		public OfInt(final int[] values) {
+			super(new View<Integer>(values.length) {
+				@Override
+				public Integer get(int index) {
+					return values[index];
+				}
+			});
+			this.values = values;
+		}
+
+		public int[] getInts() {
+			return values;
+		}
+
+		@Override
+		public int getElementCount() {
+			return values.length;
+		}
+
+		@Override
+		public Number getValue(int index) {
+			return values[index];
+		}
+
+		@Override
+		public double getDoubleValue(int index) {
+			return values[index];
+		}
+
+		@Override
+		protected void appendValue(StringBuilder buf, int index) {
+			buf.append(values[index]);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(obj instanceof OfInt) return Arrays.equals(values, ((OfInt) obj).values);
+			return super.equals(obj);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(values);
+		}
+	}
+
+	/**
+	 * Used for both short and enum waveforms.
+	 */
+	public static class OfShort extends PrimitiveVectorValue<Short> {
+		private final short[] values;
+
+		public OfShort(final short[] values) {
+			super(new View<Short>(values.length) {
+				@Override
+				public Short get(int index) {
+					return values[index];
+				}
+			});
+			this.values = values;
+		}
+
+		public short[] getShorts() {
+			return values;
+		}
+
+		@Override
+		public int getElementCount() {
+			return values.length;
+		}
+
+		@Override
+		public Number getValue(int index) {
+			return values[index];
+		}
+
+		@Override
+		public double getDoubleValue(int index) {
+			return values[index];
+		}
+
+		@Override
+		protected void appendValue(StringBuilder buf, int index) {
+			buf.append(values[index]);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(obj instanceof OfShort) return Arrays.equals(values, ((OfShort) obj).values);
+			return super.equals(obj);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(values);
+		}
+	}
+
+	public static class OfByte extends PrimitiveVectorValue<Byte> {
+		private final byte[] values;
+
+		public OfByte(final byte[] values) {
+			super(new View<Byte>(values.length) {
+				@Override
+				public Byte get(int index) {
+					return values[index];
+				}
+			});
+			this.values = values;
+		}
+
+		public byte[] getBytes() {
+			return values;
+		}
+
+		@Override
+		public int getElementCount() {
+			return values.length;
+		}
+
+		@Override
+		public Number getValue(int index) {
+			return values[index];
+		}
+
+		@Override
+		public double getDoubleValue(int index) {
+			return values[index];
+		}
+
+		@Override
+		protected void appendValue(StringBuilder buf, int index) {
+			buf.append(values[index]);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(obj instanceof OfByte) return Arrays.equals(values, ((OfByte) obj).values);
+			return super.equals(obj);
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(values);
+		}
+	}
+
+	/**
+	 * A read only List view of the primitive array; elements are boxed as they are asked for.
+	 */
+	private static abstract class View<T> extends AbstractList<T> implements RandomAccess {
+		private final int size;
+
+		View(int size) {
+			this.size = size;
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
@@ -117,6 +117,15 @@ public class ArchiveEngine {
 			channel = new ScannedArchiveChannel(name, writer, enablement, buffer_capacity, last_sampleTimestamp, pvSamplingPeriod, configservice, archdbrtype, controlPVname, JCACommandThreadID, usePVAccess);
 		}
 
+		PVTypeInfo typeInfo = configservice.getTypeInfoForPV(name);
+		if (typeInfo != null && typeInfo.isCoalesceVectorSamples()) {
+			if (channel.enableVectorCoalescing()) {
+				logger.debug("Coalescing the samples for pv " + name);
+			} else {
+				logger.warn("Cannot coalesce the samples for pv " + name + " of type " + archdbrtype);
+			}
+		}
+
 		configservice.getEngineContext().getChannelList().put(channel.getName(), channel);
 		engineContext.getWriteThead().addChannel(channel);
 		return channel;
@@ -185,7 +194,7 @@ public class ArchiveEngine {
 			final ConfigService configservice, final String metadatafields[], boolean usePVAccess,
 			final MetaCompletedListener metaListener) throws Exception {
 		MetaGet metaget = new MetaGet(pvName, configservice, metadatafields, usePVAccess, metaListener);
-		metaget.initpv();
+		configservice.getEngineContext().getMetaGetService().submit(metaget);
 	}
 
 
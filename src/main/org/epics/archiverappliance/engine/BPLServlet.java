@@ -28,11 +28,14 @@ import org.epics.archiverappliance.engine.bpl.ChangeArchivalParamsAction;
 import org.epics.archiverappliance.engine.bpl.CleanUpAnyImmortalChannels;
 import org.epics.archiverappliance.engine.bpl.DeletePV;
 import org.epics.archiverappliance.engine.bpl.GetEngineDataAction;
+import org.epics.archiverappliance.engine.bpl.GetEngineDataForPVsAction;
 import org.epics.archiverappliance.engine.bpl.GetLatestMetaDataAction;
 import org.epics.archiverappliance.engine.bpl.PVStatusAction;
 import org.epics.archiverappliance.engine.bpl.PauseArchivingPV;
 import org.epics.archiverappliance.engine.bpl.PausePVsOnShutdown;
+import org.epics.archiverappliance.engine.bpl.RebalanceJCACommandThreads;
 import org.epics.archiverappliance.engine.bpl.ResumeArchivingPV;
+import org.epics.archiverappliance.engine.bpl.SubscribeToPVsAction;
 import org.epics.archiverappliance.engine.bpl.reports.ApplianceMetrics;
 import org.epics.archiverappliance.engine.bpl.reports.ApplianceMetricsDetails;
 import org.epics.archiverappliance.engine.bpl.reports.ConnectedPVCountForAppliance;
@@ -42,10 +45,13 @@ import org.epics.archiverappliance.engine.bpl.reports.DroppedEventsTimestampRepo
 import org.epics.archiverappliance.engine.bpl.reports.DroppedEventsTypeChangeReport;
 import org.epics.archiverappliance.engine.bpl.reports.EventRateReport;
 import org.epics.archiverappliance.engine.bpl.reports.InstanceReportDetails;
+import org.epics.archiverappliance.engine.bpl.reports.JCACommandThreadReport;
 import org.epics.archiverappliance.engine.bpl.reports.ListAllChannels;
 import org.epics.archiverappliance.engine.bpl.reports.LostConnectionsReport;
+import org.epics.archiverappliance.engine.bpl.reports.MemoryFootprintReport;
 import org.epics.archiverappliance.engine.bpl.reports.NeverConnectedPVsAction;
 import org.epics.archiverappliance.engine.bpl.reports.PVDetails;
+import org.epics.archiverappliance.engine.bpl.reports.SampleLatenciesReport;
 import org.epics.archiverappliance.engine.bpl.reports.SilentPVReport;
 import org.epics.archiverappliance.engine.bpl.reports.StorageRateReport;
 import org.epics.archiverappliance.engine.bpl.reports.WaveformPVsAction;
@@ -61,6 +67,8 @@ public class BPLServlet extends HttpServlet {
 	private static HashMap<String, Class<? extends BPLAction>> getActions = new HashMap<String, Class<? extends BPLAction>>();
 	static {
 		getActions.put("/getData.raw", GetEngineDataAction.class);
+		getActions.put("/getDataForPVs.raw", GetEngineDataForPVsAction.class);
+		getActions.put("/subscribe", SubscribeToPVsAction.class);
 		getActions.put("/getMetadata", GetLatestMetaDataAction.class);
 		getActions.put("/status", PVStatusAction.class);
 		getActions.put("/getNeverConnectedPVsForThisAppliance", NeverConnectedPVsAction.class);
@@ -89,6 +97,10 @@ public class BPLServlet extends HttpServlet {
 		getActions.put("/getVersion", GetVersion.class);
 		getActions.put("/getArchivedWaveforms", WaveformPVsAction.class);
 		getActions.put("/getArchiveChannelObjectDetails", ArchiveChannelObjectDetailsAction.class);
+		getActions.put("/getJCACommandThreadReport", JCACommandThreadReport.class);
+		getActions.put("/rebalanceJCACommandThreads", RebalanceJCACommandThreads.class);
+		getActions.put("/getSampleLatencies", SampleLatenciesReport.class);
+		getActions.put("/getMemoryFootprint", MemoryFootprintReport.class);
 	}
 
 	@Override
@@ -103,6 +115,7 @@ public class BPLServlet extends HttpServlet {
 		postActions.put("/status", PVStatusAction.class);
 		postActions.put("/pauseArchivingPV", PauseArchivingPV.class);
 		postActions.put("/resumeArchivingPV", ResumeArchivingPV.class);
+		postActions.put("/getDataForPVs.raw", GetEngineDataForPVsAction.class);
 	}
 	
 	@Override
@@ -56,53 +56,76 @@ public class GetEngineDataAction implements BPLAction {
 		}
 
 		EngineContext engineContext = configService.getEngineContext();
-		if(engineContext.getChannelList().containsKey(pvName)){
-			ArchiveChannel archiveChannel = engineContext.getChannelList().get(pvName);
-			ArrayListEventStream st = archiveChannel.getPVData();
-			HashMap<String, String> metaFields = archiveChannel.getCurrentCopyOfMetaFields();
-			if(st != null && metaFields != null) { 
-				mergeMetaFieldsIntoStream(st, metaFields);
-			}
-			if(st != null && !st.isEmpty()) {
-				OutputStream os = resp.getOutputStream();
-				try {
-					long s = System.currentTimeMillis();
-					int totalEvents = StreamPBIntoOutput.streamPBIntoOutputStream(st, os, start, end);
-					long e = System.currentTimeMillis();
-					logger.info("Found a total of " + totalEvents + " in " + (e-s) + "(ms)");
-				} finally {
-					try { os.flush(); os.close(); } catch(Throwable t) {}
-				}
-				return;
-			} else { 
-				if(metaFields != null && archiveChannel.getPVMetrics() != null) { 
-					logger.debug("Inserting empty header with latest meta fields from engine");
-					OutputStream os = resp.getOutputStream();
-					try {
-						RemotableEventStreamDesc desc = new RemotableEventStreamDesc(archiveChannel.getPVMetrics().getArchDBRTypes(), pvName, TimeUtils.getCurrentYear());
-						if(!archiveChannel.isConnected() && archiveChannel.getPVMetrics() != null) { 
-							long connectionLastLostEpochSeconds = archiveChannel.getPVMetrics().getConnectionLastLostEpochSeconds();
-							if(connectionLastLostEpochSeconds != 0) {
-								logger.debug("Adding a cnxlostepsecs header");
-								metaFields.put("cnxlostepsecs", Long.toString(connectionLastLostEpochSeconds));
-							}
-						}
-						desc.addHeaders(metaFields);
-						StreamPBIntoOutput.writeHeaderOnly(os, desc);
-					} finally {
-						try { os.flush(); os.close(); } catch(Throwable t) {}
-					}
-					return;
-				}
+		ArchiveChannel archiveChannel = engineContext.getChannelList().get(pvName);
+		ArrayListEventStream st = (archiveChannel != null) ? archiveChannel.getPVData() : null;
+		if(archiveChannel != null && hasDataToSend(archiveChannel, st)) {
+			OutputStream os = resp.getOutputStream();
+			try {
+				long s = System.currentTimeMillis();
+				int totalEvents = writePVData(archiveChannel, st, pvName, os, start, end);
+				long e = System.currentTimeMillis();
+				logger.info("Found a total of " + totalEvents + " in " + (e-s) + "(ms)");
+			} finally {
+				try { os.flush(); os.close(); } catch(Throwable t) {}
 			}
+			return;
 		}
 
 		logger.debug("No data for PV " + pvName + " in this engine.");
 		resp.sendError(HttpServletResponse.SC_NOT_FOUND);
 		return;
 	}
+
+	/**
+	 * Do we have anything to send for this channel? 
+	 * If we have no data in the buffers, we still send a header with the latest meta fields.
+	 * @param archiveChannel
+	 * @param st - The data from the engine's buffers for this channel.
+	 * @return
+	 */
+	static boolean hasDataToSend(ArchiveChannel archiveChannel, ArrayListEventStream st) {
+		if(st != null && !st.isEmpty()) return true;
+		return archiveChannel.getPVMetrics() != null && archiveChannel.getCurrentCopyOfMetaFields() != null;
+	}
+
+	/**
+	 * Write the data in the engine's buffers for this channel into the output stream.
+	 * If we have no data in the buffers, we write a header with the latest meta fields from the engine.
+	 * @param archiveChannel
+	 * @param st - The data from the engine's buffers for this channel.
+	 * @param pvName
+	 * @param os
+	 * @param start - Could be null
+	 * @param end - Could be null
+	 * @return The number of events written; -1 if we wrote nothing at all.
+	 * @throws IOException
+	 */
+	static int writePVData(ArchiveChannel archiveChannel, ArrayListEventStream st, String pvName, OutputStream os, Timestamp start, Timestamp end) throws IOException {
+		HashMap<String, String> metaFields = archiveChannel.getCurrentCopyOfMetaFields();
+		if(st != null && metaFields != null) { 
+			mergeMetaFieldsIntoStream(st, metaFields);
+		}
+		if(st != null && !st.isEmpty()) {
+			return StreamPBIntoOutput.streamPBIntoOutputStream(st, os, start, end);
+		}
+		if(metaFields != null && archiveChannel.getPVMetrics() != null) { 
+			logger.debug("Inserting empty header with latest meta fields from engine");
+			RemotableEventStreamDesc desc = new RemotableEventStreamDesc(archiveChannel.getPVMetrics().getArchDBRTypes(), pvName, TimeUtils.getCurrentYear());
+			if(!archiveChannel.isConnected()) { 
+				long connectionLastLostEpochSeconds = archiveChannel.getPVMetrics().getConnectionLastLostEpochSeconds();
+				if(connectionLastLostEpochSeconds != 0) {
+					logger.debug("Adding a cnxlostepsecs header");
+					metaFields.put("cnxlostepsecs", Long.toString(connectionLastLostEpochSeconds));
+				}
+			}
+			desc.addHeaders(metaFields);
+			StreamPBIntoOutput.writeHeaderOnly(os, desc);
+			return 0;
+		}
+		return -1;
+	}
 	
-	private void mergeMetaFieldsIntoStream(EventStream st, HashMap<String, String> metaFields) { 
+	private static void mergeMetaFieldsIntoStream(EventStream st, HashMap<String, String> metaFields) { 
 		logger.debug("Merging meta fields from channel into engine's stream");
 		RemotableEventStreamDesc desc = (RemotableEventStreamDesc) st.getDescription();
 		try { 
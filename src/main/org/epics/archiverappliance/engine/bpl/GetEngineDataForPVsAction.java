@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.bpl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Timestamp;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.common.BPLAction;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.engine.model.ArchiveChannel;
+import org.epics.archiverappliance.engine.pv.EngineContext;
+
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Get the data in the engine's buffers for many PVs in one call.
+ * This is used by retrieval for multi PV requests; instead of a call to getData.raw for each PV, we make one call for all the PVs in the request.
+ * The PVs are specified using multiple <code>pv</code> parameters; as the list of PVs can be long, this is typically a POST.
+ * The response is the PB over HTTP format with a chunk for each PV that this engine has; PVs that are not in this engine are skipped.
+ * As with getData.raw, PVs that have no data in the buffers get a header with the latest meta fields.
+ * @author mshankar
+ *
+ */
+public class GetEngineDataForPVsAction implements BPLAction {
+	private static final Logger logger = Logger.getLogger(GetEngineDataForPVsAction.class);
+
+	@Override
+	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		String[] pvNames = req.getParameterValues("pv");
+		if(pvNames == null || pvNames.length == 0) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		String startTimeStr = req.getParameter("from");
+		String endTimeStr = req.getParameter("to");
+		// ISO datetimes are of the form "2011-02-02T08:00:00.000Z"
+		Timestamp start = null;
+		if(startTimeStr != null) {
+			start = TimeUtils.convertFromISO8601String(startTimeStr);
+		}
+		Timestamp end = null;
+		if(endTimeStr != null) {
+			end = TimeUtils.convertFromISO8601String(endTimeStr);
+		}
+
+		EngineContext engineContext = configService.getEngineContext();
+		long s = System.currentTimeMillis();
+		int totalEvents = 0;
+		int totalPVs = 0;
+		OutputStream os = resp.getOutputStream();
+		try {
+			for(String pvName : pvNames) {
+				ArchiveChannel archiveChannel = engineContext.getChannelList().get(pvName);
+				if(archiveChannel == null) {
+					logger.debug("No data for PV " + pvName + " in this engine.");
+					continue;
+				}
+				ArrayListEventStream st = archiveChannel.getPVData();
+				if(!GetEngineDataAction.hasDataToSend(archiveChannel, st)) {
+					logger.debug("Nothing to send for PV " + pvName);
+					continue;
+				}
+				// A blank line followed by a header indicates a new chunk (in this case, a new PV) in the stream.
+				if(totalPVs > 0) os.write(LineEscaper.NEWLINE_CHAR);
+				int eventsForPV = GetEngineDataAction.writePVData(archiveChannel, st, pvName, os, start, end);
+				if(eventsForPV > 0) totalEvents += eventsForPV;
+				totalPVs++;
+			}
+		} finally {
+			try { os.flush(); os.close(); } catch(Throwable t) {}
+		}
+		long e = System.currentTimeMillis();
+		logger.info("Found a total of " + totalEvents + " events for " + totalPVs + " of " + pvNames.length + " PVs in " + (e-s) + "(ms)");
+	}
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.bpl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.common.BPLAction;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.engine.pv.EngineContext;
+import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
+import org.json.simple.JSONValue;
+
+/**
+ * Move PVs from the JCA command threads with a high event rate to those with a lower event rate.
+ * The PVs are moved in the background one at a time using a pause/resume.
+ * Optional parameters
+ * <ol>
+ * <li>tolerance - Command threads whose event rate is within this fraction of the average are left alone; defaults to 0.2</li>
+ * <li>maxPVsToMove - The maximum number of PVs to move; defaults to 1000</li>
+ * </ol>
+ * @author mshankar
+ *
+ */
+public class RebalanceJCACommandThreads implements BPLAction {
+	private static Logger logger = Logger.getLogger(RebalanceJCACommandThreads.class.getName());
+	@Override
+	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		double tolerance = 0.2;
+		int maxPVsToMove = 1000;
+		try { 
+			if(req.getParameter("tolerance") != null) tolerance = Double.parseDouble(req.getParameter("tolerance"));
+			if(req.getParameter("maxPVsToMove") != null) maxPVsToMove = Integer.parseInt(req.getParameter("maxPVsToMove"));
+		} catch(NumberFormatException ex) { 
+			logger.error("Invalid parameters for rebalancing the command threads", ex);
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		
+		EngineContext engineContext = configService.getEngineContext();
+		int pendingMovesBefore = engineContext.getPendingJCACommandThreadMoves();
+		int pvsToMove = engineContext.rebalanceJCACommandThreads(tolerance, maxPVsToMove);
+		HashMap<String, Object> infoValues = new HashMap<String, Object>();
+		resp.setContentType(MimeTypeConstants.APPLICATION_JSON);
+		try(PrintWriter out = resp.getWriter()) {
+			if(pendingMovesBefore > 0) { 
+				infoValues.put("status", "A previous rebalance is still in progress");
+			} else { 
+				infoValues.put("status", "ok");
+			}
+			infoValues.put("pvsToMove", pvsToMove);
+			infoValues.put("completedMoves", engineContext.getCompletedJCACommandThreadMoves());
+			out.println(JSONValue.toJSONString(infoValues));
+		}
+	}
+}
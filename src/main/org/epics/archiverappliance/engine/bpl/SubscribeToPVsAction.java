@@ -0,0 +1,388 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.bpl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.StoragePlugin;
+import org.epics.archiverappliance.common.BPLAction;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.PVTypeInfo;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.engine.model.ArchiveChannel;
+import org.epics.archiverappliance.engine.model.SampleSubscription;
+import org.epics.archiverappliance.engine.model.SampleSubscription.Decimation;
+import org.epics.archiverappliance.engine.model.SampleSubscription.LiveSample;
+import org.epics.archiverappliance.engine.pv.EngineContext;
+import org.epics.archiverappliance.retrieval.mimeresponses.MimeResponse;
+import org.epics.archiverappliance.retrieval.postprocessors.DefaultRawPostProcessor;
+import org.json.simple.JSONValue;
+
+/**
+ * Subscribe to the new samples of one or more PVs in this engine; this lets displays get the latest data without polling.
+ * The response is a stream of <a href="https://html.spec.whatwg.org/multipage/server-sent-events.html">server-sent events</a> that stays open till the client goes away.
+ * <ol>
+ * <li>If <code>from</code> is specified, we first replay the samples from that time from the stores for the PV and the engine's buffers.</li>
+ * <li>We then send an event of type <code>live</code> and push each new sample as the engine gets it.</li>
+ * </ol>
+ * Each sample is sent as an event of type <code>sample</code> whose data is a JSON object with the same fields as the JSON response (plus the PV name).
+ * We subscribe to the new samples before replaying the history; so, there are no gaps between the history and the new samples.
+ * The request is handled asynchronously; subscriptions do not hold a request thread.
+ * The history is replayed and the new samples are pushed to all the clients by a small pool of threads shared by all the subscriptions in this engine.
+ * Parameters
+ * <ul>
+ * <li><code>pv</code> - One or more PVs; PVs that are not in this engine are skipped.</li>
+ * <li><code>from</code> - Optional, the start time of the history to replay. Start times older than <code>maxReplaySeconds</code> ago are moved up to that time.</li>
+ * <li><code>decimateMillis</code> - Optional, send at most one sample per PV in this many milliseconds.</li>
+ * <li><code>queueSize</code> - Optional, the number of samples we hold for a slow client before dropping the oldest ones. Clients are told about dropped samples using an event of type <code>dropped</code>.</li>
+ * </ul>
+ * @author mshankar
+ *
+ */
+public class SubscribeToPVsAction implements BPLAction {
+	private static final Logger logger = Logger.getLogger(SubscribeToPVsAction.class);
+	private static final String PROPERTY_PREFIX = "org.epics.archiverappliance.engine.bpl.SubscribeToPVsAction.";
+	private static final AtomicInteger activeSubscriptions = new AtomicInteger(0);
+	private static final int HEARTBEAT_SECONDS = 15;
+	/**
+	 * We push the new samples to each client this often.
+	 */
+	private static final long PUSH_INTERVAL_MILLIS = 100;
+	/**
+	 * We write at most these many samples to a client in each push; the rest are sent in the next push.
+	 */
+	private static final int MAX_SAMPLES_PER_FLUSH = 1000;
+	private static final int DEFAULT_PUSH_THREADS = 4;
+	private static ScheduledExecutorService pushExecutor = null;
+
+	@Override
+	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		String[] pvNames = req.getParameterValues("pv");
+		if(pvNames == null || pvNames.length == 0) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		int maxSubscriptions = Integer.parseInt(configService.getInstallationProperties().getProperty(PROPERTY_PREFIX + "maxSubscriptions", "100"));
+		int maxQueueSize = Integer.parseInt(configService.getInstallationProperties().getProperty(PROPERTY_PREFIX + "maxQueueSize", "10000"));
+		long maxReplaySeconds = Long.parseLong(configService.getInstallationProperties().getProperty(PROPERTY_PREFIX + "maxReplaySeconds", "86400"));
+		int queueSize = maxQueueSize;
+		long decimateMillis = 0;
+		Timestamp start = null;
+		try {
+			String queueSizeStr = req.getParameter("queueSize");
+			if(queueSizeStr != null) {
+				queueSize = Math.min(Integer.parseInt(queueSizeStr), maxQueueSize);
+			}
+			String decimateMillisStr = req.getParameter("decimateMillis");
+			if(decimateMillisStr != null) {
+				decimateMillis = Long.parseLong(decimateMillisStr);
+			}
+			String startTimeStr = req.getParameter("from");
+			if(startTimeStr != null) {
+				start = limitReplayStart(TimeUtils.convertFromISO8601String(startTimeStr), TimeUtils.now(), maxReplaySeconds);
+			}
+		} catch(IllegalArgumentException ex) {
+			logger.warn("Invalid parameters for subscription", ex);
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, ex.getMessage());
+			return;
+		}
+
+		EngineContext engineContext = configService.getEngineContext();
+		LinkedHashMap<String, ArchiveChannel> channels = new LinkedHashMap<String, ArchiveChannel>();
+		for(String pvName : pvNames) {
+			ArchiveChannel archiveChannel = engineContext.getChannelList().get(pvName);
+			if(archiveChannel == null) {
+				logger.debug("Skipping subscription to PV " + pvName + " as it is not in this engine.");
+				continue;
+			}
+			channels.put(pvName, archiveChannel);
+		}
+		if(channels.isEmpty()) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		if(activeSubscriptions.incrementAndGet() > maxSubscriptions) {
+			activeSubscriptions.decrementAndGet();
+			logger.warn("Rejecting subscription as there are already " + maxSubscriptions + " subscriptions in this engine");
+			resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		SampleSubscription subscription = new SampleSubscription(queueSize, decimateMillis);
+		for(ArchiveChannel archiveChannel : channels.values()) {
+			archiveChannel.getSampleBuffer().addSubscription(subscription);
+		}
+		logger.info("Subscription to " + channels.size() + " PVs with queue size " + queueSize + " and decimation " + decimateMillis + "(ms)");
+		SubscriptionPusher pusher = new SubscriptionPusher(configService, channels, subscription);
+		try {
+			resp.setContentType("text/event-stream");
+			resp.setCharacterEncoding("UTF-8");
+			resp.setHeader("Cache-Control", "no-cache");
+			resp.setHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+			OutputStream os = resp.getOutputStream();
+			AsyncContext asyncContext = req.startAsync();
+			asyncContext.setTimeout(0);
+			asyncContext.addListener(pusher);
+			pusher.start(getPushExecutor(configService), asyncContext, os, start);
+		} catch(IOException | RuntimeException ex) {
+			pusher.end(ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Replaying the history for a subscription is done by the same threads that push the samples; so we limit how far back a client can ask for.
+	 * @param start - The start time asked for by the client.
+	 * @param now
+	 * @param maxReplaySeconds
+	 * @return The start time of the history we will replay.
+	 */
+	static Timestamp limitReplayStart(Timestamp start, Timestamp now, long maxReplaySeconds) {
+		Timestamp earliestStart = TimeUtils.convertFromEpochSeconds(TimeUtils.convertToEpochSeconds(now) - maxReplaySeconds, 0);
+		if(start.before(earliestStart)) {
+			logger.info("Replaying the history for the subscription from " + TimeUtils.convertToISO8601String(earliestStart) + " instead of " + TimeUtils.convertToISO8601String(start));
+			return earliestStart;
+		}
+		return start;
+	}
+
+	private static synchronized ScheduledExecutorService getPushExecutor(ConfigService configService) {
+		if(pushExecutor == null) {
+			int threads = Integer.parseInt(configService.getInstallationProperties().getProperty(PROPERTY_PREFIX + "pushThreads", Integer.toString(DEFAULT_PUSH_THREADS)));
+			logger.info("Creating a thread pool with " + threads + " threads for pushing samples to subscriptions");
+			pushExecutor = Executors.newScheduledThreadPool(Math.max(1, threads), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Subscription push");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pushExecutor;
+	}
+
+	/**
+	 * Replays the history and then pushes the new samples for one subscription.
+	 * The subscription ends when we cannot write to the client or when the container ends the request; whichever happens first.
+	 */
+	private static class SubscriptionPusher implements Runnable, AsyncListener {
+		private final ConfigService configService;
+		private final LinkedHashMap<String, ArchiveChannel> channels;
+		private final SampleSubscription subscription;
+		private final HashMap<String, Long> lastSentMillis = new HashMap<String, Long>();
+		private final AtomicBoolean ended = new AtomicBoolean(false);
+		private AsyncContext asyncContext;
+		private OutputStream os;
+		private volatile ScheduledFuture<?> pushFuture;
+		private long lastWriteMillis;
+
+		SubscriptionPusher(ConfigService configService, LinkedHashMap<String, ArchiveChannel> channels, SampleSubscription subscription) {
+			this.configService = configService;
+			this.channels = channels;
+			this.subscription = subscription;
+		}
+
+		void start(final ScheduledExecutorService executor, AsyncContext asyncContext, OutputStream os, final Timestamp start) {
+			this.asyncContext = asyncContext;
+			this.os = os;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if(start != null) {
+							Timestamp end = TimeUtils.now();
+							Decimation replayDecimation = subscription.newReplayDecimation();
+							for(Map.Entry<String, ArchiveChannel> channelEntry : channels.entrySet()) {
+								if(ended.get()) return;
+								replayHistory(channelEntry.getKey(), channelEntry.getValue(), start, end, replayDecimation);
+							}
+						}
+						writeEvent(SubscriptionPusher.this.os, "live", "{ \"pvs\": " + JSONValue.toJSONString(new ArrayList<String>(channels.keySet())) + " }");
+						SubscriptionPusher.this.os.flush();
+						lastWriteMillis = System.currentTimeMillis();
+						pushFuture = executor.scheduleWithFixedDelay(SubscriptionPusher.this, PUSH_INTERVAL_MILLIS, PUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+						// We may have ended while we were scheduling the pushes.
+						if(ended.get()) pushFuture.cancel(false);
+					} catch(Throwable t) {
+						end(t);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void run() {
+			if(ended.get()) return;
+			try {
+				int samplesWritten = 0;
+				LiveSample sample = subscription.poll();
+				while(sample != null) {
+					if(sendSample(os, sample.getPvName(), sample.getEvent(), lastSentMillis)) samplesWritten++;
+					if(samplesWritten >= MAX_SAMPLES_PER_FLUSH) break;
+					sample = subscription.poll();
+				}
+				long droppedSamples = subscription.getAndResetDroppedSamples();
+				if(droppedSamples > 0) {
+					writeEvent(os, "dropped", "{ \"count\": " + droppedSamples + " }");
+					samplesWritten++;
+				}
+				long now = System.currentTimeMillis();
+				if(samplesWritten > 0) {
+					os.flush();
+					lastWriteMillis = now;
+				} else if((now - lastWriteMillis) > HEARTBEAT_SECONDS*1000) {
+					// A comment; this keeps proxies from timing out the connection and tells us when the client has gone away.
+					os.write(": heartbeat\n\n".getBytes(StandardCharsets.UTF_8));
+					os.flush();
+					lastWriteMillis = now;
+				}
+			} catch(Throwable t) {
+				end(t);
+			}
+		}
+
+		/**
+		 * Replay the samples for this PV from the start time; we go thru the stores from the oldest to the newest and end with the engine's buffers.
+		 */
+		private void replayHistory(String pvName, ArchiveChannel archiveChannel, Timestamp start, Timestamp end, Decimation replayDecimation) throws IOException {
+			PVTypeInfo typeInfo = configService.getTypeInfoForPV(pvName);
+			if(typeInfo != null) {
+				String[] dataStores = typeInfo.getDataStores();
+				for(int i = dataStores.length - 1; i >= 0; i--) {
+					try(BasicContext context = new BasicContext(typeInfo.getDBRType(), pvName)) {
+						StoragePlugin storagePlugin = StoragePluginURLParser.getCachedStoragePlugin(dataStores[i], configService);
+						List<Callable<EventStream>> callables = storagePlugin.getDataForPV(context, pvName, start, end, new DefaultRawPostProcessor());
+						if(callables == null) continue;
+						for(Callable<EventStream> callable : callables) {
+							try(EventStream st = callable.call()) {
+								for(Event e : st) {
+									replaySample(pvName, (DBRTimeEvent) e, replayDecimation);
+								}
+							}
+						}
+					} catch(IOException ex) {
+						throw ex;
+					} catch(Exception ex) {
+						logger.error("Exception replaying data for pv " + pvName + " from store " + dataStores[i], ex);
+					}
+				}
+			}
+			for(Event e : archiveChannel.getPVData()) {
+				replaySample(pvName, (DBRTimeEvent) e, replayDecimation);
+			}
+			os.flush();
+		}
+
+		private void replaySample(String pvName, DBRTimeEvent event, Decimation replayDecimation) throws IOException {
+			Long lastSent = lastSentMillis.get(pvName);
+			if(lastSent != null && event.getEventTimeStamp().getTime() <= lastSent) return;
+			if(!replayDecimation.accept(pvName, event.getEventTimeStamp().getTime())) return;
+			sendSample(os, pvName, event, lastSentMillis);
+		}
+
+		/**
+		 * Stop pushing samples, unregister the subscription and complete the request; this can be called more than once.
+		 * @param cause
+		 */
+		void end(Throwable cause) {
+			if(!ended.compareAndSet(false, true)) return;
+			if(cause instanceof IOException) {
+				logger.debug("Ending subscription; the client has most likely gone away", cause);
+			} else if(cause != null) {
+				logger.error("Ending subscription because of an exception", cause);
+			}
+			ScheduledFuture<?> future = pushFuture;
+			if(future != null) future.cancel(false);
+			for(ArchiveChannel archiveChannel : channels.values()) {
+				archiveChannel.getSampleBuffer().removeSubscription(subscription);
+			}
+			activeSubscriptions.decrementAndGet();
+			logger.info("Done with subscription to " + channels.size() + " PVs; skipped " + subscription.getDecimatedSamples() + " samples because of decimation");
+			if(asyncContext != null) {
+				try {
+					asyncContext.complete();
+				} catch(IllegalStateException ex) {
+					// The container has already completed the request.
+				}
+			}
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException {
+			end(null);
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) throws IOException {
+			end(event.getThrowable());
+		}
+
+		@Override
+		public void onError(AsyncEvent event) throws IOException {
+			end(event.getThrowable());
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) throws IOException {
+		}
+	}
+
+	/**
+	 * Send this sample unless we have already sent it (or something newer) as part of the history.
+	 * @return true if the sample was sent.
+	 */
+	private static boolean sendSample(OutputStream os, String pvName, DBRTimeEvent event, HashMap<String, Long> lastSentMillis) throws IOException {
+		long eventMillis = event.getEventTimeStamp().getTime();
+		Long lastSent = lastSentMillis.get(pvName);
+		if(lastSent != null && eventMillis <= lastSent) return false;
+		lastSentMillis.put(pvName, eventMillis);
+		writeEvent(os, "sample", "{ \"pv\": \"" + JSONValue.escape(pvName) + "\""
+				+ ", \"secs\": " + event.getEpochSeconds()
+				+ ", \"val\": " + event.getSampleValue().toJSONString()
+				+ ", \"nanos\": " + Integer.toString(event.getNanos())
+				+ ", \"severity\":" + Integer.toString(event.getSeverity())
+				+ ", \"status\":" + Integer.toString(event.getStatus())
+				+ " }");
+		return true;
+	}
+
+	private static void writeEvent(OutputStream os, String eventType, String data) throws IOException {
+		os.write(("event: " + eventType + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.bpl.reports;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.epics.archiverappliance.common.BPLAction;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
+import org.json.simple.JSONValue;
+
+/**
+ * Return the PV count, event rate and monitor callback latency for each JCA command thread (and its CAJ context) as a JSON array.
+ * Use this to determine if we need to rebalance the command threads.
+ * @author mshankar
+ *
+ */
+public class JCACommandThreadReport implements BPLAction {
+	@Override
+	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		resp.setContentType(MimeTypeConstants.APPLICATION_JSON);
+		try (PrintWriter out = resp.getWriter()) {
+			out.println(JSONValue.toJSONString(configService.getEngineContext().getJCACommandThreadReport()));
+		}
+	}
+}
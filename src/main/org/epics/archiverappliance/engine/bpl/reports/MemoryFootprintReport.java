@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.bpl.reports;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.common.BPLAction;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.engine.model.ArchiveChannel;
+import org.epics.archiverappliance.engine.model.MemoryFootprint;
+import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
+import org.json.simple.JSONValue;
+
+/**
+ * Return the estimated heap used by the channels in this engine as a JSON array; one entry per component with the total bytes and the bytes per PV.
+ * Use the <code>pv</code> parameter to get the estimate for a single PV.
+ * @author mshankar
+ *
+ */
+public class MemoryFootprintReport implements BPLAction {
+	private static Logger logger = Logger.getLogger(MemoryFootprintReport.class.getName());
+
+	@Override
+	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		List<Map<String, String>> report;
+		String pvName = req.getParameter("pv");
+		if(pvName != null && !pvName.equals("")) {
+			ArchiveChannel channel = configService.getEngineContext().getChannelList().get(pvName);
+			if(channel == null) {
+				logger.debug("No channel for pv " + pvName);
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			report = MemoryFootprint.getReport(channel);
+		} else {
+			MemoryFootprint footprint = new MemoryFootprint();
+			for(ArchiveChannel channel : configService.getEngineContext().getChannelList().values()) {
+				footprint.addChannel(channel);
+			}
+			logger.debug("Estimated " + footprint.getTotalBytes() + " bytes for " + footprint.getChannelCount() + " channels");
+			report = footprint.getReport();
+		}
+		resp.setContentType(MimeTypeConstants.APPLICATION_JSON);
+		try (PrintWriter out = resp.getWriter()) {
+			out.println(JSONValue.toJSONString(report));
+		}
+	}
+}
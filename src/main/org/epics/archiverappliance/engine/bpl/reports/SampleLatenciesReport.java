@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.bpl.reports;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.common.BPLAction;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.engine.model.ArchiveChannel;
+import org.epics.archiverappliance.engine.pv.SampleLatencies;
+import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
+import org.json.simple.JSONValue;
+
+/**
+ * Return the percentiles of the latencies from the CA monitor callback to the STS as a JSON array.
+ * By default, this returns the latencies for the appliance; use the <code>pv</code> parameter to get the latencies for a PV.
+ * Per PV latencies are available only if enabled in archappl.properties.
+ * @author mshankar
+ *
+ */
+public class SampleLatenciesReport implements BPLAction {
+	private static Logger logger = Logger.getLogger(SampleLatenciesReport.class.getName());
+
+	@Override
+	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		SampleLatencies latencies = SampleLatencies.getApplianceLatencies();
+		String pvName = req.getParameter("pv");
+		if(pvName != null && !pvName.equals("")) {
+			ArchiveChannel channel = configService.getEngineContext().getChannelList().get(pvName);
+			if(channel == null) {
+				logger.debug("No channel for pv " + pvName);
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			latencies = channel.getPVMetrics().getLatencies();
+			if(latencies == null) {
+				logger.warn("Per PV latencies are not enabled; set " + SampleLatencies.PER_PV_PROPERTY + " in archappl.properties");
+				resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+		}
+		resp.setContentType(MimeTypeConstants.APPLICATION_JSON);
+		try (PrintWriter out = resp.getWriter()) {
+			out.println(JSONValue.toJSONString(latencies.getPercentiles()));
+		}
+	}
+}
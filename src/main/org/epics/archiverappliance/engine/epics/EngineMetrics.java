@@ -16,12 +16,14 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.epics.archiverappliance.common.LatencyHistogram;
 import org.epics.archiverappliance.config.ConfigService;
 import org.epics.archiverappliance.engine.metadata.MetaGet;
 import org.epics.archiverappliance.engine.model.ArchiveChannel;
 import org.epics.archiverappliance.engine.pv.EngineContext;
 import org.epics.archiverappliance.engine.pv.PVContext;
 import org.epics.archiverappliance.engine.pv.PVMetrics;
+import org.epics.archiverappliance.engine.pv.SampleLatencies;
 import org.json.simple.JSONAware;
 import org.json.simple.JSONValue;
 
@@ -112,6 +114,20 @@ public class EngineMetrics implements JSONAware {
 			addDetailedStatus(details, "Benchmark - writing at (MB/sec)", twoSignificantDigits.format(writeBytesPerSec));
 		}
 		addDetailedStatus(details, "PVs pending computation of meta info", Integer.toString(MetaGet.getPendingMetaGetsSize()));
+		if(context.getMetaGetService() != null) { 
+			addDetailedStatus(details, "PVs queued for computation of meta info", Integer.toString(context.getMetaGetService().getQueueLength()));
+			addDetailedStatus(details, "PVs measuring event rates for meta info", Integer.toString(context.getMetaGetService().getInProgressCount()));
+			addDetailedStatus(details, "Times we gave up waiting for a PV to connect for meta info", Long.toString(context.getMetaGetService().getTimedOutCount()));
+			addDetailedStatus(details, "Average time to compute meta info (in secs)", twoSignificantDigits.format(context.getMetaGetService().getAverageSecondsToMetaInfo()));
+		}
+		addDetailedStatus(details, "Time taken by the last pass of the disconnect checks (in secs)", formatPassDuration(twoSignificantDigits, context.getDisconnectCheckerLastPassElapsedMillis()));
+		addDetailedStatus(details, "Time spent processing channels in the last pass of the disconnect checks (in secs)", formatPassDuration(twoSignificantDigits, context.getDisconnectCheckerLastPassBusyMillis()));
+		addDetailedStatus(details, "Time taken by the last pass of the metadata updates (in secs)", formatPassDuration(twoSignificantDigits, context.getMetadataUpdaterLastPassElapsedMillis()));
+		addDetailedStatus(details, "Time spent processing channels in the last pass of the metadata updates (in secs)", formatPassDuration(twoSignificantDigits, context.getMetadataUpdaterLastPassBusyMillis()));
+		SampleLatencies latencies = SampleLatencies.getApplianceLatencies();
+		addLatencyStatus(details, "Monitor callback to sample buffer", latencies.getCallbackToBuffer());
+		addLatencyStatus(details, "Sample buffer to start of flush", latencies.getBufferToFlushStart());
+		addLatencyStatus(details, "Flush to STS", latencies.getFlushDuration());
 		addDetailedStatus(details, "Total number of reference counted channels", Integer.toString(PVContext.getChannelCount()));
 		addDetailedStatus(details, "Total number of CAJ channels", Integer.toString(context.getCAJChannelCount()));
 		
@@ -126,6 +142,19 @@ public class EngineMetrics implements JSONAware {
 		details.add(obj);
 	}
 	
+	private static void addLatencyStatus(LinkedList<Map<String, String>> details, String name, LatencyHistogram histogram) {
+		DecimalFormat millisFormat = new DecimalFormat("###,###,###,###.###");
+		addDetailedStatus(details, name + " latency p50/p99/max (in ms)", 
+				millisFormat.format(histogram.getMicrosAtPercentile(50.0)/1000.0) 
+				+ "/" + millisFormat.format(histogram.getMicrosAtPercentile(99.0)/1000.0) 
+				+ "/" + millisFormat.format(histogram.getMaxMicros()/1000.0));
+	}
+	
+	private static String formatPassDuration(DecimalFormat twoSignificantDigits, long millis) {
+		if(millis < 0) return "N/A";
+		return twoSignificantDigits.format(millis/1000.0);
+	}
+	
 	
 	public static EngineMetrics computeEngineMetrics(EngineContext engineContext, ConfigService configService) {
         EngineMetrics engineMetrics = new EngineMetrics();
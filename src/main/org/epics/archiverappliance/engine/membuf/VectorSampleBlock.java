@@ -0,0 +1,276 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.membuf;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.common.YearSecondTimestamp;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.DeferredVectorEvent;
+import org.epics.archiverappliance.data.SampleValue;
+
+import edu.stanford.slac.archiverappliance.PB.data.PBVectorByte;
+import edu.stanford.slac.archiverappliance.PB.data.PBVectorDouble;
+import edu.stanford.slac.archiverappliance.PB.data.PBVectorEnum;
+import edu.stanford.slac.archiverappliance.PB.data.PBVectorFloat;
+import edu.stanford.slac.archiverappliance.PB.data.PBVectorInt;
+import edu.stanford.slac.archiverappliance.PB.data.PBVectorShort;
+import edu.stanford.slac.archiverappliance.PB.data.PackedVectorCodec;
+import edu.stanford.slac.archiverappliance.PB.data.PackedVectorCodec.ElementType;
+
+/**
+ * A preallocated block of samples for a numeric waveform PV.
+ * Instead of holding on to an event object (and its PB encoding) for each sample, we copy the values, timestamp and alarm info of each sample into primitive arrays.
+ * When the buffer is flushed, the samples are encoded into PB events in one pass using PackedVectorCodec.
+ * The encoding is the same as that generated by the PBVector* classes; so what ends up on disk are standard PlainPB lines.
+ * Like the sample buffer, this holds at most <code>capacity</code> samples; when full, the oldest sample is dropped.
+ * This is not thread safe; the SampleBuffer synchronizes access to this.
+ * @author mshankar
+ *
+ */
+public class VectorSampleBlock {
+	private final ArchDBRTypes dbrType;
+	private final ElementType elementType;
+	private final int capacity;
+	/** The number of elements reserved for each sample; this is the largest element count we have seen so far. */
+	private int elementsPerSample = 0;
+	/** A double[], float[], int[], short[] or byte[] with elementsPerSample elements for each sample; allocated when we get the first sample. */
+	private Object values = null;
+	private final int[] elementCounts;
+	private final long[] epochSeconds;
+	private final int[] nanos;
+	private final int[] severities;
+	private final int[] statuses;
+	private final int[] repeatCounts;
+	/** Field values are rare; so these are kept by slot only for the samples that have them. */
+	private HashMap<Integer, HashMap<String, String>> fieldValues = null;
+	private HashMap<Integer, Boolean> actualChanges = null;
+	private int start = 0;
+	private int size = 0;
+
+	public VectorSampleBlock(ArchDBRTypes dbrType, int capacity) {
+		if(!isSupported(dbrType)) throw new IllegalArgumentException("Cannot coalesce samples of type " + dbrType);
+		this.dbrType = dbrType;
+		this.elementType = ElementType.forDBRType(dbrType);
+		this.capacity = capacity;
+		this.elementCounts = new int[capacity];
+		this.epochSeconds = new long[capacity];
+		this.nanos = new int[capacity];
+		this.severities = new int[capacity];
+		this.statuses = new int[capacity];
+		this.repeatCounts = new int[capacity];
+	}
+
+	/**
+	 * We coalesce only the numeric waveforms.
+	 * @param dbrType
+	 * @return
+	 */
+	public static boolean isSupported(ArchDBRTypes dbrType) {
+		if(dbrType == null) return false;
+		switch(dbrType) {
+		case DBR_WAVEFORM_DOUBLE:
+		case DBR_WAVEFORM_FLOAT:
+		case DBR_WAVEFORM_INT:
+		case DBR_WAVEFORM_SHORT:
+		case DBR_WAVEFORM_ENUM:
+		case DBR_WAVEFORM_BYTE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isFull() {
+		return size == capacity;
+	}
+
+	public void clear() {
+		start = 0;
+		size = 0;
+		fieldValues = null;
+		actualChanges = null;
+	}
+
+	/**
+	 * Copy this sample into the block.
+	 * @param event
+	 * @return false if the block was full and we dropped the oldest sample.
+	 */
+	public boolean add(DBRTimeEvent event) {
+		boolean droppedOldest = false;
+		if(size == capacity) {
+			removeFieldValues(start);
+			start = (start + 1) % capacity;
+			size--;
+			droppedOldest = true;
+		}
+		int slot = (start + size) % capacity;
+		Object primitiveValues = (event instanceof DeferredVectorEvent) ? ((DeferredVectorEvent) event).getPrimitiveValues() : null;
+		if(primitiveValues != null) {
+			int count = ((DeferredVectorEvent) event).getElementCount();
+			ensureElementsPerSample(count);
+			System.arraycopy(primitiveValues, 0, values, slot*elementsPerSample, count);
+			elementCounts[slot] = count;
+		} else {
+			SampleValue sampleValue = event.getSampleValue();
+			int count = sampleValue.getElementCount();
+			ensureElementsPerSample(count);
+			copyValues(sampleValue, slot*elementsPerSample, count);
+			elementCounts[slot] = count;
+		}
+		epochSeconds[slot] = event.getEpochSeconds();
+		nanos[slot] = event.getNanos();
+		severities[slot] = event.getSeverity();
+		statuses[slot] = event.getStatus();
+		repeatCounts[slot] = event.getRepeatCount();
+		removeFieldValues(slot);
+		if(event.hasFieldValues()) {
+			if(fieldValues == null) {
+				fieldValues = new HashMap<Integer, HashMap<String, String>>();
+				actualChanges = new HashMap<Integer, Boolean>();
+			}
+			fieldValues.put(slot, event.getFields());
+			actualChanges.put(slot, event.isActualChange());
+		}
+		size++;
+		return !droppedOldest;
+	}
+
+	private void removeFieldValues(int slot) {
+		if(fieldValues != null) {
+			fieldValues.remove(slot);
+			actualChanges.remove(slot);
+		}
+	}
+
+	/**
+	 * Make room for samples with count elements; this happens once when we get the first sample and then only if the waveform grows.
+	 */
+	private void ensureElementsPerSample(int count) {
+		if(values != null && count <= elementsPerSample) return;
+		int newElementsPerSample = Math.max(count, elementsPerSample);
+		Object newValues = newArray(capacity*newElementsPerSample);
+		if(values != null) {
+			for(int i = 0; i < size; i++) {
+				int slot = (start + i) % capacity;
+				System.arraycopy(values, slot*elementsPerSample, newValues, slot*newElementsPerSample, elementCounts[slot]);
+			}
+		}
+		values = newValues;
+		elementsPerSample = newElementsPerSample;
+	}
+
+	private Object newArray(int length) {
+		switch(dbrType) {
+		case DBR_WAVEFORM_DOUBLE:
+			return new double[length];
+		case DBR_WAVEFORM_FLOAT:
+			return new float[length];
+		case DBR_WAVEFORM_INT:
+			return new int[length];
+		case DBR_WAVEFORM_SHORT:
+		case DBR_WAVEFORM_ENUM:
+			return new short[length];
+		case DBR_WAVEFORM_BYTE:
+			return new byte[length];
+		default:
+			throw new IllegalArgumentException("Cannot coalesce samples of type " + dbrType);
+		}
+	}
+
+	private void copyValues(SampleValue sampleValue, int offset, int count) {
+		for(int i = 0; i < count; i++) {
+			Number value = sampleValue.getValue(i);
+			switch(dbrType) {
+			case DBR_WAVEFORM_DOUBLE:
+				((double[]) values)[offset + i] = value.doubleValue();
+				break;
+			case DBR_WAVEFORM_FLOAT:
+				((float[]) values)[offset + i] = value.floatValue();
+				break;
+			case DBR_WAVEFORM_INT:
+				((int[]) values)[offset + i] = value.intValue();
+				break;
+			case DBR_WAVEFORM_SHORT:
+			case DBR_WAVEFORM_ENUM:
+				((short[]) values)[offset + i] = value.shortValue();
+				break;
+			case DBR_WAVEFORM_BYTE:
+				((byte[]) values)[offset + i] = value.byteValue();
+				break;
+			default:
+				throw new IllegalArgumentException("Cannot coalesce samples of type " + dbrType);
+			}
+		}
+	}
+
+	/**
+	 * Encode the samples in this block (oldest first) as PB events and add them to the event stream.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void encodeInto(ArrayListEventStream out) throws IOException {
+		for(int i = 0; i < size; i++) {
+			out.add(encode((start + i) % capacity));
+		}
+	}
+
+	private DBRTimeEvent encode(int slot) throws IOException {
+		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(epochSeconds[slot], nanos[slot]);
+		HashMap<String, String> fields = fieldValues != null ? fieldValues.get(slot) : null;
+		ByteArray bar = PackedVectorCodec.encode(yst, severities[slot], statuses[slot], repeatCounts[slot], elementType, values, slot*elementsPerSample, elementCounts[slot], fields, fields != null && actualChanges.get(slot));
+		switch(dbrType) {
+		case DBR_WAVEFORM_DOUBLE:
+			return new PBVectorDouble(yst.getYear(), bar);
+		case DBR_WAVEFORM_FLOAT:
+			return new PBVectorFloat(yst.getYear(), bar);
+		case DBR_WAVEFORM_INT:
+			return new PBVectorInt(yst.getYear(), bar);
+		case DBR_WAVEFORM_SHORT:
+			return new PBVectorShort(yst.getYear(), bar);
+		case DBR_WAVEFORM_ENUM:
+			return new PBVectorEnum(yst.getYear(), bar);
+		case DBR_WAVEFORM_BYTE:
+			return new PBVectorByte(yst.getYear(), bar);
+		default:
+			throw new IllegalArgumentException("Cannot coalesce samples of type " + dbrType);
+		}
+	}
+
+	/**
+	 * @return An estimate of the heap used by this block.
+	 */
+	public long getAllocatedBytes() {
+		long bytesPerElement;
+		switch(dbrType) {
+		case DBR_WAVEFORM_DOUBLE:
+			bytesPerElement = 8;
+			break;
+		case DBR_WAVEFORM_FLOAT:
+		case DBR_WAVEFORM_INT:
+			bytesPerElement = 4;
+			break;
+		case DBR_WAVEFORM_SHORT:
+		case DBR_WAVEFORM_ENUM:
+			bytesPerElement = 2;
+			break;
+		default:
+			bytesPerElement = 1;
+		}
+		return (long) capacity*(elementsPerSample*bytesPerElement + 8 + 5*4);
+	}
+}
@@ -9,11 +9,10 @@
 package org.epics.archiverappliance.engine.metadata;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.config.ConfigService;
@@ -25,11 +24,14 @@ import org.epics.archiverappliance.data.ScalarStringSampleValue;
 import org.epics.archiverappliance.data.ScalarValue;
 import org.epics.archiverappliance.data.VectorStringSampleValue;
 import org.epics.archiverappliance.data.VectorValue;
+import org.epics.archiverappliance.engine.model.ArchiveChannel;
 import org.epics.archiverappliance.engine.pv.PV;
 import org.epics.archiverappliance.engine.pv.PVFactory;
 import org.epics.archiverappliance.engine.pv.PVListener;
 /**
  * this class is used to create channel for pv and compute the meta info for one pv.
+ * MetaGets are queued and started in batches by the {@link MetaGetService}; the service also decides when we have measured the event rate for long enough.
+ * If the PV is already being archived by this engine, we reuse the ArchiveChannel's connection instead of creating a new channel for the PV.
  * @author Luofeng Li
  *
  */
@@ -44,7 +46,15 @@ public class MetaGet implements Runnable {
 
 	final private ConfigService configservice;
 	private static final Logger logger = Logger.getLogger(MetaGet.class.getName());
-	private boolean isScheduled = false;
+	private final int jcaCommandThreadId;
+	private final long requestedAtMillis = System.currentTimeMillis();
+	/** When the channels were created; -1 if we have not started yet. */
+	private volatile long startedAtMillis = -1;
+	/** When the main PV connected; we measure the event rate from here on. -1 if we are not connected yet. */
+	private volatile long connectedAtMillis = -1;
+	/** Are we using the PV from an existing ArchiveChannel? If so, we should not stop it when we are done. */
+	private boolean reusingArchiveChannel = false;
+	private volatile boolean aborted = false;
 
 	public MetaGet(String pvName, ConfigService configservice,
 			String metadatafields[], boolean usePVAccess, MetaCompletedListener metaListener) {
@@ -53,6 +63,7 @@ public class MetaGet implements Runnable {
 		this.metadatafields = metadatafields;
 		this.metaListener = metaListener;
 		this.configservice = configservice;
+		this.jcaCommandThreadId = configservice.getEngineContext().assignJCACommandThread(pvName, null);
 		metaGets.put(pvName, this);
 	}
 /**
@@ -60,39 +71,51 @@ public class MetaGet implements Runnable {
  * @throws Exception error when creating channel for pv and its meta field
  */
 	public void initpv() throws Exception {
-		try {
+		startedAtMillis = System.currentTimeMillis();
+		createChannels();
+	}
 
-			int jcaCommandThreadId = configservice.getEngineContext().assignJCACommandThread(pvName, null);
-			PV pv = PVFactory.createPV(pvName, configservice, jcaCommandThreadId, usePVAccess);
-			pv.addListener(new PVListener() {
-				@Override
-				public void pvValueUpdate(PV pv) {
-				}
+	/**
+	 * Create the channels for the PV and its fields; or reuse the ArchiveChannel's connection for the PV.
+	 * @throws Exception
+	 */
+	void createChannels() throws Exception {
+		try {
+			ArchiveChannel archiveChannel = configservice.getEngineContext().getChannelList().get(pvName);
+			if(archiveChannel != null && archiveChannel.isConnected() && archiveChannel.getPV().getTotalMetaInfo() != null) {
+				logger.debug("Reusing the connection from the ArchiveChannel for pv " + pvName + " to compute meta info");
+				PV pv = archiveChannel.getPV();
+				reusingArchiveChannel = true;
+				pvList.put("main", pv);
+				long subscribedAtMillis = pv.getTotalMetaInfo().getStartTime();
+				markConnected(subscribedAtMillis > 0 ? subscribedAtMillis : System.currentTimeMillis());
+			} else {
+				PV pv = PVFactory.createPV(pvName, configservice, jcaCommandThreadId, usePVAccess);
+				pv.addListener(new PVListener() {
+					@Override
+					public void pvValueUpdate(PV pv) {
+					}
 
-				@Override
-				public void pvDisconnected(PV pv) {
-				}
+					@Override
+					public void pvDisconnected(PV pv) {
+					}
 
-				@Override
-				public void pvConnected(PV pv) {
-					if (!isScheduled) {
-						logger.debug("Starting the timer to measure event and storage rates for about 60 seconds for pv " + MetaGet.this.pvName);
-						ScheduledThreadPoolExecutor scheduler = configservice.getEngineContext().getScheduler();
-						scheduler.schedule(MetaGet.this, 60, TimeUnit.SECONDS);
-						isScheduled = true;
+					@Override
+					public void pvConnected(PV pv) {
+						markConnected(System.currentTimeMillis());
 					}
-				}
 
-				@Override
-				public void pvConnectionRequestMade(PV pv) {
-				}
+					@Override
+					public void pvConnectionRequestMade(PV pv) {
+					}
 
-				@Override
-				public void pvDroppedSample(PV pv, DroppedReason reason) {
-				}
-			});
-			pvList.put("main", pv);
-			pv.start();
+					@Override
+					public void pvDroppedSample(PV pv, DroppedReason reason) {
+					}
+				});
+				pvList.put("main", pv);
+				pv.start();
+			}
 
 			PV pv2 = PVFactory.createPV(pvName + ".NAME", configservice, jcaCommandThreadId, usePVAccess);
 			pvList.put("NAME", pv2);
@@ -116,12 +139,90 @@ public class MetaGet implements Runnable {
 		}
 	}
 
+	/**
+	 * The main PV has connected; we measure the event rate from here on.
+	 * @param millis
+	 */
+	void markConnected(long millis) {
+		if (connectedAtMillis == -1) {
+			logger.debug("Starting to measure event and storage rates for pv " + pvName);
+			connectedAtMillis = millis;
+		}
+	}
+
+	/**
+	 * Have we been waiting for the PV to connect for longer than connectTimeoutSeconds?
+	 * Such a MetaGet will never be ready to complete; the {@link MetaGetService} stops it using {@link #stopForRetry() stopForRetry} so that it does not hold on to its place.
+	 * @param now - current time in milliseconds
+	 * @param connectTimeoutSeconds
+	 * @return
+	 */
+	boolean hasTimedOutConnecting(long now, int connectTimeoutSeconds) {
+		return connectedAtMillis == -1 && startedAtMillis != -1 && (now - startedAtMillis) >= connectTimeoutSeconds*1000L;
+	}
+
+	/**
+	 * Close the channels for this MetaGet; initpv creates them again when this is started again.
+	 * We stay in the list of pending MetaGet's so that we can still be aborted.
+	 */
+	void stopForRetry() {
+		stopChannels();
+		pvList.clear();
+		reusingArchiveChannel = false;
+		startedAtMillis = -1;
+		connectedAtMillis = -1;
+	}
+
+	private void stopChannels() {
+		for(String fieldName : new ArrayList<String>(pvList.keySet())) {
+			if(fieldName.equals("main") && reusingArchiveChannel) {
+				// This belongs to the ArchiveChannel
+				continue;
+			}
+			PV pv = pvList.get(fieldName);
+			if(pv != null) pv.stop();
+		}
+	}
+
+	/**
+	 * Have we measured the event rate for long enough and have we heard from the meta fields?
+	 * We measure for at least minWindowSeconds and at most maxWindowSeconds.
+	 * In between, we stop as soon as we have seen confidentEventCount events and all the fields that have connected have a value.
+	 * Fields that have not connected by minWindowSeconds are most likely not present in this record type.
+	 * @param now - current time in milliseconds
+	 * @param minWindowSeconds
+	 * @param maxWindowSeconds
+	 * @param confidentEventCount
+	 * @return
+	 */
+	boolean isReadyToComplete(long now, int minWindowSeconds, int maxWindowSeconds, int confidentEventCount) {
+		if(connectedAtMillis == -1) return false;
+		double elapsedSeconds = (now - connectedAtMillis)/1000.0;
+		if(elapsedSeconds >= maxWindowSeconds) return true;
+		if(elapsedSeconds < minWindowSeconds) return false;
+		PV pvMain = pvList.get("main");
+		if(pvMain == null || pvMain.getTotalMetaInfo() == null || pvMain.getTotalMetaInfo().getEventCount() < confidentEventCount) return false;
+		for(String fieldName : pvList.keySet()) {
+			if(fieldName.equals("main")) continue;
+			PV fieldPV = pvList.get(fieldName);
+			if(fieldPV.isConnected() && fieldPV.getDBRTimeEvent() == null) return false;
+		}
+		return true;
+	}
+
 	@Override
 	public void run() {
-		logger.debug("Finished the timer to measure event and storage rates for about 60 seconds for pv " + MetaGet.this.pvName);
+		if(aborted) { 
+			logger.debug("Skipping completing the meta get for aborted pv " + pvName);
+			return;
+		}
+		long measuredMillis = System.currentTimeMillis() - connectedAtMillis;
+		logger.debug("Finished measuring event and storage rates for " + measuredMillis + "(ms) for pv " + MetaGet.this.pvName);
 		try {
 			PV pvMain = pvList.get("main");
-			MetaInfo mainMeta = pvMain.getTotalMetaInfo();
+			// Work on a copy; if we are reusing the ArchiveChannel's PV, the PV's meta info is still in use by the ArchiveChannel.
+			MetaInfo mainMeta = new MetaInfo(pvMain.getTotalMetaInfo());
+			mainMeta.setRateMeasurementWindowSeconds(Math.max(1.0, measuredMillis/1000.0));
 			// Per Dirk Zimoch, we first check the NAME$.
 			// If that exists, we use it. If not, we use the NAME
 			PV pv_NameDollar = pvList.get("NAME$");
@@ -167,6 +268,10 @@ public class MetaGet implements Runnable {
 					}
 				}
 
+				if(fieldName.equals("main") && reusingArchiveChannel) {
+					// This belongs to the ArchiveChannel
+					continue;
+				}
 				pvList.get(fieldName).stop();
 			}
 			// Make sure we have at least the DBR type here. 
@@ -266,9 +371,8 @@ public class MetaGet implements Runnable {
 		MetaGet metaGet = metaGets.get(pvName);
 		if(metaGet != null) { 
 			metaGets.remove(pvName);
-			for(PV pv : metaGet.pvList.values()) { 
-				pv.stop();
-			}
+			metaGet.aborted = true;
+			metaGet.stopChannels();
 			return true;
 		}
 		
@@ -278,6 +382,29 @@ public class MetaGet implements Runnable {
 	public static int getPendingMetaGetsSize() { 
 		return metaGets.size();
 	}
+
+	/**
+	 * Remove this from the pending list without completing it; for example, if we could not create the channels.
+	 */
+	void discard() {
+		metaGets.remove(pvName, this);
+	}
+
+	public String getPvName() {
+		return pvName;
+	}
+
+	public int getJCACommandThreadId() {
+		return jcaCommandThreadId;
+	}
+
+	public long getRequestedAtMillis() {
+		return requestedAtMillis;
+	}
+
+	public boolean isAborted() {
+		return aborted;
+	}
 	public boolean isUsePVAccess() {
 		return usePVAccess;
 	}
@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.metadata;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ConfigService;
+
+/**
+ * Computes the meta info for PVs in batches.
+ * When adding thousands of PVs at a time, creating the channels for all the MetaGet's at once leads to tens of thousands of transient channels.
+ * Instead, MetaGet's are queued here and a single timer
+ * <ol>
+ * <li>starts a limited number of queued MetaGet's each tick; these are grouped by JCA command thread so that the searches for an IOC go out together.</li>
+ * <li>checks the MetaGet's in progress and completes those that have measured the event rate for long enough; see {@link MetaGet#isReadyToComplete(long, int, int, int) isReadyToComplete}.</li>
+ * <li>stops the MetaGet's whose PV has not connected within connectTimeoutSeconds and puts them back at the end of the queue.
+ * Otherwise, PVs that never connect would hold on to their place and eventually starve the queue.
+ * They are tried again once the MetaGet's queued after them have had their turn; so a PV whose IOC comes up later still gets archived.</li>
+ * </ol>
+ * The completion itself (which computes the policy) runs on the engine scheduler.
+ * The settings come from archappl.properties using the prefix <code>org.epics.archiverappliance.engine.metadata.MetaGetService.</code>
+ * @author mshankar
+ *
+ */
+public class MetaGetService {
+	private static final Logger logger = Logger.getLogger(MetaGetService.class.getName());
+	public static final String PROPERTY_PREFIX = "org.epics.archiverappliance.engine.metadata.MetaGetService.";
+
+	private final ConfigService configService;
+	private final ConcurrentLinkedQueue<MetaGet> queued = new ConcurrentLinkedQueue<MetaGet>();
+	private final Set<MetaGet> inProgress = Collections.newSetFromMap(new ConcurrentHashMap<MetaGet, Boolean>());
+	private final ScheduledExecutorService timer;
+	private final AtomicLong completedCount = new AtomicLong(0);
+	private final AtomicLong totalMillisToMetaInfo = new AtomicLong(0);
+	private final AtomicLong timedOutCount = new AtomicLong(0);
+
+	/** The maximum number of MetaGet's that have channels open at any time. */
+	private int maxInProgress = 2000;
+	/** The maximum number of MetaGet's started in each tick. */
+	private int startsPerTick = 500;
+	private int minWindowSeconds = 10;
+	private int maxWindowSeconds = 60;
+	private int confidentEventCount = 10;
+	/** MetaGet's whose PV has not connected in this many seconds are stopped and queued again. */
+	private int connectTimeoutSeconds = 120;
+	private long tickMillis = 1000;
+
+	public MetaGetService(ConfigService configService) {
+		this(configService, true);
+	}
+
+	/**
+	 * @param configService
+	 * @param startTimer - The unit tests drive the service themselves.
+	 */
+	MetaGetService(ConfigService configService, boolean startTimer) {
+		this.configService = configService;
+		Properties installationProperties = configService.getInstallationProperties();
+		if(installationProperties != null) {
+			maxInProgress = Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "maxInProgress", Integer.toString(maxInProgress)));
+			startsPerTick = Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "startsPerTick", Integer.toString(startsPerTick)));
+			minWindowSeconds = Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "minWindowSeconds", Integer.toString(minWindowSeconds)));
+			maxWindowSeconds = Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "maxWindowSeconds", Integer.toString(maxWindowSeconds)));
+			confidentEventCount = Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "confidentEventCount", Integer.toString(confidentEventCount)));
+			connectTimeoutSeconds = Integer.parseInt(installationProperties.getProperty(PROPERTY_PREFIX + "connectTimeoutSeconds", Integer.toString(connectTimeoutSeconds)));
+		}
+		if(!startTimer) {
+			timer = null;
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread ret = new Thread(r, "MetaGet service");
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkInProgress(System.currentTimeMillis());
+					startQueued();
+				} catch(Throwable t) {
+					logger.error("Exception in the MetaGet service", t);
+				}
+			}
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+		configService.addShutdownHook(new Runnable() {
+			@Override
+			public void run() {
+				logger.info("Shutting down the MetaGet service");
+				timer.shutdown();
+			}
+		});
+	}
+
+	/**
+	 * Queue this MetaGet; the channels are created when there is room.
+	 * @param metaGet
+	 */
+	public void submit(MetaGet metaGet) {
+		queued.add(metaGet);
+	}
+
+	void startQueued() {
+		int toStart = Math.min(startsPerTick, maxInProgress - inProgress.size());
+		if(toStart <= 0 || queued.isEmpty()) return;
+		TreeMap<Integer, List<MetaGet>> byCommandThread = new TreeMap<Integer, List<MetaGet>>();
+		for(int i = 0; i < toStart; i++) {
+			MetaGet metaGet = queued.poll();
+			if(metaGet == null) break;
+			if(metaGet.isAborted()) continue;
+			List<MetaGet> metaGetsForThread = byCommandThread.get(metaGet.getJCACommandThreadId());
+			if(metaGetsForThread == null) {
+				metaGetsForThread = new LinkedList<MetaGet>();
+				byCommandThread.put(metaGet.getJCACommandThreadId(), metaGetsForThread);
+			}
+			metaGetsForThread.add(metaGet);
+		}
+		for(Map.Entry<Integer, List<MetaGet>> entry : byCommandThread.entrySet()) {
+			logger.debug("Starting " + entry.getValue().size() + " MetaGet's on command thread " + entry.getKey());
+			for(MetaGet metaGet : entry.getValue()) {
+				try {
+					inProgress.add(metaGet);
+					metaGet.initpv();
+				} catch(Exception ex) {
+					logger.error("Exception starting the MetaGet for pv " + metaGet.getPvName(), ex);
+					inProgress.remove(metaGet);
+					metaGet.discard();
+				}
+			}
+		}
+	}
+
+	void checkInProgress(long now) {
+		for(final MetaGet metaGet : inProgress) {
+			if(metaGet.isAborted()) {
+				inProgress.remove(metaGet);
+				continue;
+			}
+			if(metaGet.hasTimedOutConnecting(now, connectTimeoutSeconds)) {
+				logger.warn("PV " + metaGet.getPvName() + " has not connected in " + connectTimeoutSeconds + " seconds; we will try computing its meta info again later");
+				inProgress.remove(metaGet);
+				metaGet.stopForRetry();
+				timedOutCount.incrementAndGet();
+				if(!metaGet.isAborted()) {
+					queued.add(metaGet);
+				}
+				continue;
+			}
+			if(metaGet.isReadyToComplete(now, minWindowSeconds, maxWindowSeconds, confidentEventCount)) {
+				inProgress.remove(metaGet);
+				configService.getEngineContext().getScheduler().execute(new Runnable() {
+					@Override
+					public void run() {
+						metaGet.run();
+						if(!metaGet.isAborted()) {
+							completedCount.incrementAndGet();
+							totalMillisToMetaInfo.addAndGet(System.currentTimeMillis() - metaGet.getRequestedAtMillis());
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * @return The number of MetaGet's waiting for their channels to be created.
+	 */
+	public int getQueueLength() {
+		return queued.size();
+	}
+
+	/**
+	 * @return The number of MetaGet's that have their channels open.
+	 */
+	public int getInProgressCount() {
+		return inProgress.size();
+	}
+
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	/**
+	 * @return The number of times we gave up waiting for a PV to connect and queued its MetaGet again.
+	 */
+	public long getTimedOutCount() {
+		return timedOutCount.get();
+	}
+
+	/**
+	 * @return The average time in seconds from when the meta info was requested to when it was computed; this includes the time spent in the queue.
+	 */
+	public double getAverageSecondsToMetaInfo() {
+		long completed = completedCount.get();
+		if(completed == 0) return 0.0;
+		return totalMillisToMetaInfo.get()/(1000.0*completed);
+	}
+}
@@ -15,6 +15,8 @@ package org.epics.archiverappliance.engine.model;
 
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
@@ -29,11 +31,13 @@ import org.epics.archiverappliance.config.PVNames;
 import org.epics.archiverappliance.data.DBRTimeEvent;
 import org.epics.archiverappliance.data.SampleValue;
 import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.engine.pv.EPICS_V3_PV;
 import org.epics.archiverappliance.engine.pv.EngineContext;
 import org.epics.archiverappliance.engine.pv.PV;
 import org.epics.archiverappliance.engine.pv.PVFactory;
 import org.epics.archiverappliance.engine.pv.PVListener;
 import org.epics.archiverappliance.engine.pv.PVMetrics;
+import org.epics.archiverappliance.engine.pv.SampleLatencies;
 /**
  * Base for archived channels. An ArchiveChannel has
  * <ol>
@@ -64,9 +68,10 @@ abstract public class ArchiveChannel {
 	final private PV pv;
 	
 	/**
-	 * The control system PVs for the metafields
+	 * The control system PVs for the metafields.
+	 * Most PVs do not have any metafields; so this is created when the first metafield is added.
 	 */
-	private ConcurrentHashMap<String, PV> metaPVs = new ConcurrentHashMap<String, PV>();
+	private volatile ConcurrentHashMap<String, PV> metaPVs = null;
 	
 
 	/**
@@ -173,6 +178,15 @@ abstract public class ArchiveChannel {
 		return this.writer;
 	}
 
+	/**
+	 * Get the control system PV for this channel.
+	 * This is used by the MetaGet's to reuse the connection when computing the meta info for a PV that is already being archived.
+	 * @return PV
+	 */
+	public PV getPV() {
+		return pv;
+	}
+
 	/**
 	 * get pv metrics for this channel
 	 * @return PVMetrics
@@ -221,6 +235,9 @@ abstract public class ArchiveChannel {
 		this.enablement = enablement;
 		this.last_archived_timestamp = last_archived_timestamp;
 		this.pvMetrics = new PVMetrics(name, controlPVname, System.currentTimeMillis() / 1000, archdbrtype);
+		if(SampleLatencies.isPerPVLatenciesEnabled()) { 
+			this.pvMetrics.setLatencies(SampleLatencies.newPVLatencies());
+		}
 		this.buffer = new SampleBuffer(name, buffer_capacity, archdbrtype,this.pvMetrics);
 		this.JCACommandThreadID =  commandThreadID;
 
@@ -232,12 +249,14 @@ abstract public class ArchiveChannel {
 				// PV already suppresses updates after 'stop', but check anyway
 				if (is_running) {
 					try {
+						long callbackStartNanos = System.nanoTime();
 						final DBRTimeEvent temptimeevent = pv.getDBRTimeEvent();
 
 						if (enablement != Enablement.Passive)
 							handleEnablement(temptimeevent);
 
 						handleNewValue(temptimeevent);
+						SampleLatencies.recordCallbackToBuffer(pvMetrics, System.nanoTime() - callbackStartNanos);
 					} catch (Exception e) {
 						logger.error("exception in pvValueUpdate of PVListener for pv " + name, e);
 					}
@@ -335,7 +354,27 @@ abstract public class ArchiveChannel {
 		
 		PV metaPV = PVFactory.createPV(pvNameForField, configservice, false, metaFieldDBRType, this.JCACommandThreadID, usePVAccess);
 		metaPV.setMetaFieldParentPV(this.pv, isRuntimeOnly);
-		this.metaPVs.put(fieldName, metaPV);
+		synchronized(this) {
+			if(this.metaPVs == null) {
+				this.metaPVs = new ConcurrentHashMap<String, PV>();
+			}
+			this.metaPVs.put(fieldName, metaPV);
+		}
+	}
+
+	/**
+	 * Coalesce the samples of this waveform PV in a preallocated block in the sample buffer and encode them only when the buffer is flushed.
+	 * This must be called before the channel is started.
+	 * @return false if we cannot coalesce samples for this PV.
+	 */
+	public boolean enableVectorCoalescing() {
+		if(!this.buffer.enableVectorCoalescing()) {
+			return false;
+		}
+		if(this.pv instanceof EPICS_V3_PV) {
+			((EPICS_V3_PV) this.pv).setDeferVectorEncoding(true);
+		}
+		return true;
 	}
 
 	/**
@@ -513,7 +552,7 @@ abstract public class ArchiveChannel {
 	 */
 	public void startUpMetaChannels() throws Exception {
 		logger.debug("Starting up monitors on the fields for pv " + name);
-		for(PV metaPV : metaPVs.values()) { 
+		for(PV metaPV : getMetaPVs()) { 
 			metaPV.stop();
 			metaPV.start();
 		}
@@ -522,7 +561,7 @@ abstract public class ArchiveChannel {
 
 	public void shutdownMetaChannels() throws Exception {
 		logger.debug("Shutting down monitors on the fields for pv " + this.name);
-		for(PV metaPV : metaPVs.values()) { 
+		for(PV metaPV : getMetaPVs()) { 
 			metaPV.stop();
 		}
 		logger.debug("Done shutting down monitors on the fields for pv " + this.name);
@@ -713,7 +752,8 @@ abstract public class ArchiveChannel {
 	 * @return
 	 */
 	public boolean isMetaPVConnected(String metaFieldName) {
-		PV metaPV = metaPVs.get(metaFieldName);
+		ConcurrentHashMap<String, PV> metaPVs = this.metaPVs;
+		PV metaPV = metaPVs != null ? metaPVs.get(metaFieldName) : null;
 		if(metaPV != null) { 
 			return metaPV.isConnected();
 		}
@@ -725,6 +765,8 @@ abstract public class ArchiveChannel {
 	 * @return
 	 */
 	public Set<String> getMetaPVNames() {
+		ConcurrentHashMap<String, PV> metaPVs = this.metaPVs;
+		if(metaPVs == null) return Collections.emptySet();
 		return metaPVs.keySet();
 	}
 	
@@ -733,16 +775,27 @@ abstract public class ArchiveChannel {
 	 * @return
 	 */
 	public int getMetaChannelCount() { 
-		return metaPVs.size();
+		ConcurrentHashMap<String, PV> metaPVs = this.metaPVs;
+		return metaPVs != null ? metaPVs.size() : 0;
 	}
 	
+	/**
+	 * The PVs for the metafields; empty if this channel does not have any metafields.
+	 * @return
+	 */
+	private Collection<PV> getMetaPVs() {
+		ConcurrentHashMap<String, PV> metaPVs = this.metaPVs;
+		if(metaPVs == null) return Collections.emptyList();
+		return metaPVs.values();
+	}
+
 	/**
 	 * Get the number of connected field channels
 	 * @return
 	 */
 	public int getConnectedMetaChannelCount() { 
 		int connectedMetaFieldCount = 0;
-		for(PV metaPV : metaPVs.values()) { 
+		for(PV metaPV : getMetaPVs()) { 
 			if(metaPV.isConnected()) { 
 				connectedMetaFieldCount++;
 			}
@@ -756,7 +809,7 @@ abstract public class ArchiveChannel {
 	 * @return
 	 */
 	public boolean metaChannelsNeedStartingUp() {
-		for(PV metaPV : metaPVs.values()) {
+		for(PV metaPV : getMetaPVs()) {
 			logger.debug(metaPV.getName() + " connected is " + metaPV.isConnected());
 			if(!metaPV.isConnected()) { 
 				return true;
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.model;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.engine.pv.PVMetrics;
+import org.epics.archiverappliance.engine.pv.SampleLatencies;
+
+/**
+ * Estimates the heap used by the channels in the engine, broken down by component.
+ * These are estimates computed from the shallow sizes of the objects on a 64 bit JVM with compressed oops and the number of samples and fields in each channel.
+ * They are meant to tell us where the memory per PV goes and to compare one configuration against another; use a heap dump for exact numbers.
+ * @author mshankar
+ *
+ */
+public class MemoryFootprint {
+	public static final String[] COMPONENTS = new String[] { "channel", "pv", "metrics", "sampleBuffers", "metaFieldPVs", "fieldValues" };
+	private static final int CHANNEL = 0;
+	private static final int PV = 1;
+	private static final int METRICS = 2;
+	private static final int SAMPLE_BUFFERS = 3;
+	private static final int META_FIELD_PVS = 4;
+	private static final int FIELD_VALUES = 5;
+
+	private static final int OBJECT_HEADER_BYTES = 12;
+	private static final int ARRAY_HEADER_BYTES = 16;
+	private static final int REFERENCE_BYTES = 4;
+	/** The ArchiveChannel and its Enablement and listener. */
+	private static final int CHANNEL_BYTES = 144;
+	/** The PV, its MetaInfo, the listener list and the JCA/PVAccess channel. */
+	private static final int PV_BYTES = 640;
+	/** PVMetrics; mostly primitives. */
+	private static final int PV_METRICS_BYTES = 176;
+	/** The SampleBuffer and its BufferStats. */
+	private static final int SAMPLE_BUFFER_BYTES = 112;
+	private static final int EVENT_STREAM_BYTES = 32;
+	private static final int EVENT_STREAM_DESC_BYTES = 48;
+	/** The DBRTimeEvent and the DBR it wraps, not counting the array holding the value. */
+	private static final int EVENT_BYTES = 72;
+	private static final int EMPTY_MAP_BYTES = 64;
+	private static final int MAP_ENTRY_BYTES = 32;
+	private static final int ATOMIC_LONG_BYTES = 16;
+
+	private final long[] totalBytes = new long[COMPONENTS.length];
+	private int channelCount = 0;
+
+	/**
+	 * Add the estimated footprint of this channel to the totals.
+	 * @param channel
+	 */
+	public void addChannel(ArchiveChannel channel) {
+		long[] channelBytes = estimate(channel);
+		for(int i = 0; i < COMPONENTS.length; i++) {
+			totalBytes[i] += channelBytes[i];
+		}
+		channelCount++;
+	}
+
+	/**
+	 * Estimate the footprint of a channel.
+	 * @param channel
+	 * @return The estimated bytes for each of the {@link #COMPONENTS components}.
+	 */
+	public static long[] estimate(ArchiveChannel channel) {
+		long[] bytes = new long[COMPONENTS.length];
+		PVMetrics pvMetrics = channel.getPVMetrics();
+		ArchDBRTypes dbrType = pvMetrics.getArchDBRTypes();
+		int elementCount = Math.max(1, pvMetrics.getElementCount());
+
+		// The channel name is shared by the channel, the PV, the PVMetrics and the sample buffer; so we count it once.
+		bytes[CHANNEL] = CHANNEL_BYTES + stringBytes(channel.getName());
+		IdentityHashMap<DBRTimeEvent, Boolean> latestEvents = new IdentityHashMap<DBRTimeEvent, Boolean>();
+		for(DBRTimeEvent event : new DBRTimeEvent[] { channel.getCurrentArchivedValue(), channel.getLastArchivedValue(), channel.getPV() != null ? channel.getPV().getDBRTimeEvent() : null }) {
+			if(event != null) latestEvents.put(event, Boolean.TRUE);
+		}
+		bytes[CHANNEL] += latestEvents.size()*eventBytes(dbrType, elementCount);
+
+		bytes[PV] = PV_BYTES + (channel.getPV() != null ? stringBytes(channel.getHostName()) : 0);
+
+		bytes[METRICS] = PV_METRICS_BYTES;
+		SampleLatencies latencies = pvMetrics.getLatencies();
+		if(latencies != null) {
+			bytes[METRICS] += align(OBJECT_HEADER_BYTES + 3*REFERENCE_BYTES);
+			bytes[METRICS] += histogramBytes(latencies.getCallbackToBuffer().getBucketCount());
+			bytes[METRICS] += histogramBytes(latencies.getBufferToFlushStart().getBucketCount());
+			bytes[METRICS] += histogramBytes(latencies.getFlushDuration().getBucketCount());
+		}
+
+		SampleBuffer buffer = channel.getSampleBuffer();
+		if(buffer != null) {
+			bytes[SAMPLE_BUFFERS] = SAMPLE_BUFFER_BYTES + buffer.getCoalescedBlockBytes();
+			ArrayListEventStream currentSamples = buffer.getCurrentSamples();
+			ArrayListEventStream previousSamples = buffer.getPreviousSamples();
+			bytes[SAMPLE_BUFFERS] += eventStreamBytes(currentSamples, dbrType, elementCount);
+			bytes[SAMPLE_BUFFERS] += eventStreamBytes(previousSamples, dbrType, elementCount);
+			if(currentSamples != null && previousSamples != null && currentSamples.getDescription() == previousSamples.getDescription()) {
+				bytes[SAMPLE_BUFFERS] -= EVENT_STREAM_DESC_BYTES;
+			}
+		}
+
+		int metaChannelCount = channel.getMetaChannelCount();
+		if(metaChannelCount > 0) {
+			bytes[META_FIELD_PVS] = align(EMPTY_MAP_BYTES + ARRAY_HEADER_BYTES + tableSize(metaChannelCount)*REFERENCE_BYTES) + metaChannelCount*MAP_ENTRY_BYTES;
+			// The field PVs each have their own name of the form pvName.FIELD
+			bytes[META_FIELD_PVS] += metaChannelCount*(PV_BYTES + stringBytes(channel.getName() + ".FIELD"));
+			// The PVs with archived fields keep two maps for these fields.
+			bytes[FIELD_VALUES] = 2*EMPTY_MAP_BYTES;
+		}
+		HashMap<String, String> fieldValues = channel.getCurrentCopyOfMetaFields();
+		if(fieldValues != null && !fieldValues.isEmpty()) {
+			bytes[FIELD_VALUES] += align(ARRAY_HEADER_BYTES + tableSize(fieldValues.size())*REFERENCE_BYTES);
+			for(Map.Entry<String, String> fieldValue : fieldValues.entrySet()) {
+				bytes[FIELD_VALUES] += MAP_ENTRY_BYTES + stringBytes(fieldValue.getKey()) + stringBytes(fieldValue.getValue());
+			}
+		}
+		return bytes;
+	}
+
+	public int getChannelCount() {
+		return channelCount;
+	}
+
+	public long getTotalBytes() {
+		long total = 0;
+		for(long componentBytes : totalBytes) {
+			total += componentBytes;
+		}
+		return total;
+	}
+
+	/**
+	 * The estimated total bytes and the bytes per PV for each component.
+	 * @return
+	 */
+	public List<Map<String, String>> getReport() {
+		LinkedList<Map<String, String>> ret = new LinkedList<Map<String, String>>();
+		for(int i = 0; i < COMPONENTS.length; i++) {
+			ret.add(reportLine(COMPONENTS[i], totalBytes[i], channelCount));
+		}
+		ret.add(reportLine("total", getTotalBytes(), channelCount));
+		return ret;
+	}
+
+	/**
+	 * The estimated bytes for each component of a single channel.
+	 * @param channel
+	 * @return
+	 */
+	public static List<Map<String, String>> getReport(ArchiveChannel channel) {
+		MemoryFootprint footprint = new MemoryFootprint();
+		footprint.addChannel(channel);
+		return footprint.getReport();
+	}
+
+	private static Map<String, String> reportLine(String component, long bytes, int channelCount) {
+		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+		ret.put("component", component);
+		ret.put("totalBytes", Long.toString(bytes));
+		ret.put("bytesPerPV", Long.toString(channelCount > 0 ? bytes/channelCount : 0));
+		return ret;
+	}
+
+	private static long eventStreamBytes(ArrayListEventStream samples, ArchDBRTypes dbrType, int elementCount) {
+		if(samples == null) return 0;
+		int sampleCount = samples.size();
+		return EVENT_STREAM_BYTES + EVENT_STREAM_DESC_BYTES
+				+ align(ARRAY_HEADER_BYTES + sampleCount*REFERENCE_BYTES)
+				+ sampleCount*eventBytes(dbrType, elementCount);
+	}
+
+	static long eventBytes(ArchDBRTypes dbrType, int elementCount) {
+		return EVENT_BYTES + align(ARRAY_HEADER_BYTES + (long) elementCount*bytesPerElement(dbrType));
+	}
+
+	/**
+	 * Bytes per element of the value; strings are assumed to be about 20 characters long.
+	 */
+	static int bytesPerElement(ArchDBRTypes dbrType) {
+		if(dbrType == null) return 8;
+		switch(dbrType) {
+		case DBR_SCALAR_BYTE:
+		case DBR_WAVEFORM_BYTE:
+		case DBR_V4_GENERIC_BYTES:
+			return 1;
+		case DBR_SCALAR_SHORT:
+		case DBR_WAVEFORM_SHORT:
+		case DBR_SCALAR_ENUM:
+		case DBR_WAVEFORM_ENUM:
+			return 2;
+		case DBR_SCALAR_FLOAT:
+		case DBR_WAVEFORM_FLOAT:
+		case DBR_SCALAR_INT:
+		case DBR_WAVEFORM_INT:
+			return 4;
+		case DBR_SCALAR_STRING:
+		case DBR_WAVEFORM_STRING:
+			return REFERENCE_BYTES + (int) stringBytes("01234567890123456789");
+		default:
+			return 8;
+		}
+	}
+
+	/**
+	 * Estimate the bytes used by a String; we assume two bytes per char.
+	 */
+	static long stringBytes(String str) {
+		if(str == null) return 0;
+		return align(OBJECT_HEADER_BYTES + REFERENCE_BYTES + 4 + 4) + align(ARRAY_HEADER_BYTES + 2L*str.length());
+	}
+
+	private static long histogramBytes(int bucketCount) {
+		return align(OBJECT_HEADER_BYTES + 4 + 4 + 8 + 3*REFERENCE_BYTES) + align(ARRAY_HEADER_BYTES + 8L*bucketCount) + align(OBJECT_HEADER_BYTES + REFERENCE_BYTES) + 2*ATOMIC_LONG_BYTES;
+	}
+
+	/**
+	 * The size of the hash table for a map with these many entries using the default load factor.
+	 */
+	private static int tableSize(int entries) {
+		int size = 16;
+		while(size*3/4 < entries) size *= 2;
+		return size;
+	}
+
+	static long align(long bytes) {
+		return (bytes + 7) & ~7L;
+	}
+}
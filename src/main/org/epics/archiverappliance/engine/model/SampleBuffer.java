@@ -11,7 +11,9 @@ import org.apache.log4j.Logger;
 import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.data.DBRTimeEvent;
 import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.engine.membuf.VectorSampleBlock;
 import org.epics.archiverappliance.engine.pv.PVMetrics;
+import org.epics.archiverappliance.engine.pv.SampleLatencies;
 import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
 
 /**
@@ -73,6 +75,33 @@ public class SampleBuffer {
 	 */
 	final private ArchDBRTypes archdbrtype;
 	private short year;
+	/** When the oldest sample currently in the buffer was added; 0 if the buffer is empty. Used for the latency histograms. */
+	private long oldestSampleNanos = 0;
+	/**
+	 * The description of the samples in this buffer.
+	 * This is shared by the current and previous samples and changes only when the year changes; so we do not create one each time the buffer is flushed.
+	 */
+	private RemotableEventStreamDesc samplesDesc;
+	/**
+	 * The smallest initial size of the ArrayList for the samples.
+	 * Most PVs get far fewer samples in a write period than the capacity of the buffer; so we size the ArrayList using the samples we got in the previous write period and let it grow if needed.
+	 */
+	private static final int MIN_INITIAL_SIZE = 2;
+	/**
+	 * If we are coalescing the samples of a waveform PV, the samples are copied into this block instead of being added to currentSamples.
+	 * The block is encoded into previousSamples when the buffer is flushed; we then reuse the block as the spare.
+	 */
+	private VectorSampleBlock currentBlock = null;
+	private VectorSampleBlock spareBlock = null;
+	/**
+	 * The block that is being encoded into the new previousSamples by resetSamples; null if we are not flushing.
+	 * Readers use this block in place of previousSamples until the encoded samples are published so that they do not miss the samples being flushed.
+	 */
+	private VectorSampleBlock flushingBlock = null;
+	/**
+	 * Clients subscribed to the new samples of this PV; null if there are none (which is almost always the case).
+	 */
+	private volatile SampleSubscription[] subscriptions = null;
 	private static Logger logger = Logger.getLogger(SampleBuffer.class.getName());
 
 	/** Create sample buffer of given capacity */
@@ -81,10 +110,10 @@ public class SampleBuffer {
 		this.channel_name = channel_name;
 		this.archdbrtype = archdbrtype;
 		this.pVMetrics = pVMetrics;
-		RemotableEventStreamDesc desc = new RemotableEventStreamDesc(
+		samplesDesc = new RemotableEventStreamDesc(
 				archdbrtype, channel_name, (short) 0);
 
-		currentSamples = new ArrayListEventStream(capacity, desc);
+		currentSamples = new ArrayListEventStream(Math.min(capacity, MIN_INITIAL_SIZE), samplesDesc);
 		this.capacity = capacity;
 	}
 
@@ -104,6 +133,9 @@ public class SampleBuffer {
     * @return ArrayListEventStream
     */
 	public ArrayListEventStream getCombinedSamples() {
+		if (currentBlock != null) {
+			return getCombinedCoalescedSamples();
+		}
 		RemotableEventStreamDesc desc = new RemotableEventStreamDesc(
 				archdbrtype, channel_name, (short) 0);
 		ArrayListEventStream combinedSamples = new ArrayListEventStream(
@@ -129,14 +161,93 @@ public class SampleBuffer {
 	}
 
 	public void resetSamples() {
-		RemotableEventStreamDesc desc = new RemotableEventStreamDesc(
-				archdbrtype, channel_name, this.year);
+		if(samplesDesc.getYear() != this.year) { 
+			samplesDesc = new RemotableEventStreamDesc(
+					archdbrtype, channel_name, this.year);
+		}
 
+		long waitStartNanos;
+		VectorSampleBlock blockToEncode = null;
 		synchronized (this) {
-			previousSamples = currentSamples;
-			currentSamples = new ArrayListEventStream(capacity, desc);
+			if (currentBlock != null) {
+				// Swap in the spare block; we encode the samples outside the lock so that we do not hold up the monitors.
+				blockToEncode = currentBlock;
+				flushingBlock = blockToEncode;
+				currentBlock = spareBlock != null ? spareBlock : new VectorSampleBlock(archdbrtype, capacity);
+				spareBlock = null;
+				currentSamples = new ArrayListEventStream(0, samplesDesc);
+			} else {
+				previousSamples = currentSamples;
+				currentSamples = new ArrayListEventStream(Math.min(capacity, Math.max(MIN_INITIAL_SIZE, previousSamples.size())), samplesDesc);
+			}
+			waitStartNanos = oldestSampleNanos;
+			oldestSampleNanos = 0;
+		}
+		if(waitStartNanos != 0) { 
+			SampleLatencies.recordBufferToFlushStart(pVMetrics, System.nanoTime() - waitStartNanos);
+		}
+		if (blockToEncode != null) {
+			ArrayListEventStream encodedSamples = new ArrayListEventStream(blockToEncode.size(), samplesDesc);
+			try {
+				blockToEncode.encodeInto(encodedSamples);
+			} catch (Exception ex) {
+				logger.error("Exception encoding the coalesced samples for pv " + channel_name, ex);
+			}
+			synchronized (this) {
+				previousSamples = encodedSamples;
+				flushingBlock = null;
+				// Readers may have been encoding this block as well; so we clear it only after it is no longer visible to them.
+				blockToEncode.clear();
+				spareBlock = blockToEncode;
+			}
+		}
+	}
 
+	/**
+	 * Coalesce the samples of this waveform PV into a preallocated block and encode them only when the buffer is flushed.
+	 * This must be called before we get any samples.
+	 * @return false if we cannot coalesce samples of this type.
+	 */
+	public synchronized boolean enableVectorCoalescing() {
+		if (!VectorSampleBlock.isSupported(archdbrtype)) {
+			return false;
+		}
+		if (currentBlock == null) {
+			currentBlock = new VectorSampleBlock(archdbrtype, capacity);
 		}
+		return true;
+	}
+
+	public boolean isCoalescingVectorSamples() {
+		return currentBlock != null;
+	}
+
+	/**
+	 * @return An estimate of the heap used by the blocks if we are coalescing samples; 0 otherwise.
+	 */
+	public synchronized long getCoalescedBlockBytes() {
+		long bytes = 0;
+		if (currentBlock != null) bytes += currentBlock.getAllocatedBytes();
+		if (spareBlock != null) bytes += spareBlock.getAllocatedBytes();
+		return bytes;
+	}
+
+	private ArrayListEventStream getCombinedCoalescedSamples() {
+		ArrayListEventStream combinedSamples = new ArrayListEventStream(
+				capacity * 2, new RemotableEventStreamDesc(archdbrtype, channel_name, (short) 0));
+		synchronized (this) {
+			try {
+				if (flushingBlock != null) {
+					flushingBlock.encodeInto(combinedSamples);
+				} else if (previousSamples != null) {
+					combinedSamples.addAll(previousSamples);
+				}
+				currentBlock.encodeInto(combinedSamples);
+			} catch (Exception ex) {
+				logger.error("Exception encoding the coalesced samples for pv " + channel_name, ex);
+			}
+		}
+		return combinedSamples;
 	}
 /**
  * get the previous ArrayListEventStream
@@ -155,7 +266,10 @@ public class SampleBuffer {
 
 	/** @return Current queue size, i.e. number of samples in the queue. */
 	public int getQueueSize() {
-
+		VectorSampleBlock block = currentBlock;
+		if (block != null) {
+			return block.size();
+		}
 		return currentSamples.size();
 
 	}
@@ -198,14 +312,16 @@ public class SampleBuffer {
 		try {
 			{  
 				synchronized (this) {
-			int remainSize = capacity - currentSamples.size();
+			boolean isFull = (currentBlock != null) ? currentBlock.isFull() : (capacity - currentSamples.size() < 1);
 
-			if (remainSize < 1) {
+			if (isFull) {
 				retval = false;
 				// the queue is full
-				// Note start of overruns, then drop older sample
+				// Note start of overruns, then drop older sample; the block drops the oldest sample by itself
 				
-				currentSamples.remove(0);
+				if (currentBlock == null) {
+					currentSamples.remove(0);
+				}
 				//}
 				pVMetrics.addSampleBufferFullLostEventCount();
 				// }
@@ -220,8 +336,19 @@ public class SampleBuffer {
 			}
 			
 			
-				currentSamples.add(value);
+				if (currentBlock != null) {
+					currentBlock.add(value);
+				} else {
+					currentSamples.add(value);
+				}
+				if(oldestSampleNanos == 0) oldestSampleNanos = System.nanoTime();
 			}
+				SampleSubscription[] currentSubscriptions = subscriptions;
+				if (currentSubscriptions != null) {
+					for (SampleSubscription subscription : currentSubscriptions) {
+						subscription.offer(channel_name, value);
+					}
+				}
 				return retval;
 			}
 		} catch (Exception e) {
@@ -258,6 +385,42 @@ public class SampleBuffer {
 						channel_name, getQueueSize(), stats.getMaxSize(),
 						stats.getAverageSize(), stats.getOverruns());
 	}
+	/**
+	 * Send the new samples added to this buffer to this subscription as well.
+	 * @param subscription
+	 */
+	public synchronized void addSubscription(SampleSubscription subscription) {
+		SampleSubscription[] currentSubscriptions = subscriptions;
+		int count = (currentSubscriptions == null) ? 0 : currentSubscriptions.length;
+		SampleSubscription[] newSubscriptions = new SampleSubscription[count + 1];
+		if (count > 0) {
+			System.arraycopy(currentSubscriptions, 0, newSubscriptions, 0, count);
+		}
+		newSubscriptions[count] = subscription;
+		subscriptions = newSubscriptions;
+	}
+
+	public synchronized void removeSubscription(SampleSubscription subscription) {
+		SampleSubscription[] currentSubscriptions = subscriptions;
+		if (currentSubscriptions == null) {
+			return;
+		}
+		int count = 0;
+		SampleSubscription[] newSubscriptions = new SampleSubscription[currentSubscriptions.length];
+		for (SampleSubscription currentSubscription : currentSubscriptions) {
+			if (currentSubscription != subscription) {
+				newSubscriptions[count++] = currentSubscription;
+			}
+		}
+		if (count == 0) {
+			subscriptions = null;
+		} else if (count < newSubscriptions.length) {
+			SampleSubscription[] trimmedSubscriptions = new SampleSubscription[count];
+			System.arraycopy(newSubscriptions, 0, trimmedSubscriptions, 0, count);
+			subscriptions = trimmedSubscriptions;
+		}
+	}
+
 /**
  * add the year listener to this buffer
  * @param yearListener the interface of yearListener
@@ -0,0 +1,136 @@
+package org.epics.archiverappliance.engine.model;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.epics.archiverappliance.data.DBRTimeEvent;
+
+/**
+ * A client's subscription to the new samples of one or more PVs.
+ * The subscription is registered with the SampleBuffer of each PV; the buffer offers each sample it receives to the subscription.
+ * <ol>
+ * <li>Samples are queued in a bounded queue; if the client does not keep up, we drop the oldest samples in the queue and count them.
+ * We never block the thread adding samples to the buffer.</li>
+ * <li>If a decimation interval is specified, we queue at most one sample per PV in each interval; the others are dropped (and counted) before they are queued.</li>
+ * <li>The replay of the history uses its own decimation state; the live samples arrive while we replay and are newer than the history being replayed.</li>
+ * </ol>
+ * @author mshankar
+ *
+ */
+public class SampleSubscription {
+	/**
+	 * A sample in the subscription's queue.
+	 */
+	public static class LiveSample {
+		private final String pvName;
+		private final DBRTimeEvent event;
+
+		LiveSample(String pvName, DBRTimeEvent event) {
+			this.pvName = pvName;
+			this.event = event;
+		}
+
+		public String getPvName() {
+			return pvName;
+		}
+
+		public DBRTimeEvent getEvent() {
+			return event;
+		}
+	}
+
+	/**
+	 * Keeps track of the last sample accepted for each PV in a sequence of samples.
+	 */
+	public class Decimation {
+		private final ConcurrentHashMap<String, Long> lastAcceptedMillis = new ConcurrentHashMap<String, Long>();
+
+		private Decimation() {
+		}
+
+		/**
+		 * Apply the decimation for this subscription.
+		 * @param pvName
+		 * @param epochMillis The timestamp of the sample
+		 * @return true if this sample should be sent to the client.
+		 */
+		public boolean accept(String pvName, long epochMillis) {
+			if(decimateMillis <= 0) return true;
+			Long lastAccepted = lastAcceptedMillis.get(pvName);
+			if(lastAccepted != null && (epochMillis - lastAccepted) < decimateMillis) {
+				decimatedSamples.incrementAndGet();
+				return false;
+			}
+			lastAcceptedMillis.put(pvName, epochMillis);
+			return true;
+		}
+	}
+
+	private final ArrayBlockingQueue<LiveSample> queue;
+	private final long decimateMillis;
+	private final Decimation liveDecimation = new Decimation();
+	private final AtomicLong droppedSamples = new AtomicLong(0);
+	private final AtomicLong decimatedSamples = new AtomicLong(0);
+
+	/**
+	 * @param queueSize The maximum number of samples that we hold for this client.
+	 * @param decimateMillis Send at most one sample per PV in this many milliseconds; 0 sends all the samples.
+	 */
+	public SampleSubscription(int queueSize, long decimateMillis) {
+		this.queue = new ArrayBlockingQueue<LiveSample>(Math.max(queueSize, 1));
+		this.decimateMillis = decimateMillis;
+	}
+
+	/**
+	 * Called by the sample buffer for each sample it receives.
+	 * @param pvName
+	 * @param event
+	 */
+	void offer(String pvName, DBRTimeEvent event) {
+		if(!liveDecimation.accept(pvName, event.getEventTimeStamp().getTime())) {
+			return;
+		}
+		LiveSample sample = new LiveSample(pvName, event);
+		while(!queue.offer(sample)) {
+			if(queue.poll() != null) {
+				droppedSamples.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Decimation state for replaying the history so that the client sees the same rate for old and new samples.
+	 * This is separate from the decimation of the live samples; otherwise, a live sample accepted during the replay would cause all the older samples in the history to be skipped.
+	 * @return A new decimation state with this subscription's interval.
+	 */
+	public Decimation newReplayDecimation() {
+		return new Decimation();
+	}
+
+	/**
+	 * Get the next sample without waiting; the samples are pushed to the client periodically.
+	 * @return null if there are no samples in the queue.
+	 */
+	public LiveSample poll() {
+		return queue.poll();
+	}
+
+	/**
+	 * @return The number of samples dropped because the client did not keep up; this resets the count.
+	 */
+	public long getAndResetDroppedSamples() {
+		return droppedSamples.getAndSet(0);
+	}
+
+	/**
+	 * @return The number of samples skipped because of decimation.
+	 */
+	public long getDecimatedSamples() {
+		return decimatedSamples.get();
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+}
@@ -8,7 +8,6 @@
 package org.epics.archiverappliance.engine.model;
 
 import java.sql.Timestamp;
-import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.Writer;
@@ -130,9 +129,8 @@ public class ScannedArchiveChannel extends ArchiveChannel implements Runnable {
 
 			VectorValue<?> vv1 = (VectorValue<?>) val1;
 			VectorValue<?> vv2 = (VectorValue<?>) val2;
-			final Object values1[] = vv1.getValues().toArray();
-			final Object values2[] = vv2.getValues().toArray();
-			if (!Arrays.equals(values1, values2))
+			// PrimitiveVectorValues compare their arrays without boxing the elements.
+			if (!vv1.equals(vv2))
 				return false;
 
 		}
@@ -27,6 +27,7 @@ import java.util.Calendar;
 import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.common.POJOEvent;
@@ -76,8 +77,10 @@ public class EPICS_V3_PV implements PV, ControllingPV, ConnectionListener, Monit
 	 */
 	private ConcurrentHashMap<String, String> allarchiveFieldsData = null;
 	
-	/** Runtime fields that are not archived/stored are stored here */
-	private ConcurrentHashMap<String, String> runTimeFieldsData = new ConcurrentHashMap<String, String>();
+	/** Runtime fields that are not archived/stored are stored here; this is created when we get the first value for a runtime field. */
+	private volatile ConcurrentHashMap<String, String> runTimeFieldsData = null;
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<EPICS_V3_PV, ConcurrentHashMap> runTimeFieldsDataUpdater = AtomicReferenceFieldUpdater.newUpdater(EPICS_V3_PV.class, ConcurrentHashMap.class, "runTimeFieldsData");
 	
 	/** if this pv has many meta fields archived,changedarchiveFieldsData includes the changed meta values and the field names*/
 	private ConcurrentHashMap<String, String> changedarchiveFieldsData = null;
@@ -181,6 +184,11 @@ public class EPICS_V3_PV implements PV, ControllingPV, ConnectionListener, Monit
 	/**Does this pv have one meta field archived?*/
 	private boolean hasMetaField = false;
 
+	/**
+	 * If the samples of this waveform PV are coalesced in the sample buffer, we wrap the DBR in a JCAVectorEvent and defer the PB encoding to flush time.
+	 */
+	private boolean deferVectorEncoding = false;
+
 	/**
 	 * the ioc host name where this pv is 
 	 */
@@ -612,6 +620,18 @@ public class EPICS_V3_PV implements PV, ControllingPV, ConnectionListener, Monit
 		if (ev.getStatus() == null || !ev.getStatus().isSuccessful()) {
 			return;
 		}
+		long callbackStartNanos = System.nanoTime();
+		try { 
+			handleMonitorEvent(ev);
+		} finally { 
+			EngineContext engineContext = configservice.getEngineContext();
+			if(engineContext != null) { 
+				engineContext.getJCACommandThread(jcaCommandThreadId).addCallbackTime(System.nanoTime() - callbackStartNanos);
+			}
+		}
+	}
+	
+	private void handleMonitorEvent(final MonitorEvent ev) {
 		if (controlledPVList != null) {
 			// this pv is control pv.
 			try {
@@ -651,7 +671,11 @@ public class EPICS_V3_PV implements PV, ControllingPV, ConnectionListener, Monit
 						return;
 					}
 				}
-				dbrtimeevent = con.newInstance(dbr);
+				if (deferVectorEncoding) {
+					dbrtimeevent = new JCAVectorEvent(archDBRType, dbr, con);
+				} else {
+					dbrtimeevent = con.newInstance(dbr);
+				}
 				totalMetaInfo.computeRate(dbrtimeevent);
 				dbr = null;
 			} catch (Exception e) {
@@ -781,6 +805,9 @@ public class EPICS_V3_PV implements PV, ControllingPV, ConnectionListener, Monit
 		String fieldName = strs[strs.length - 1];
 		if(isruntimeFieldField) { 
 			logger.debug("Not storing value change for runtime field " + fieldName);
+			if(runTimeFieldsData == null) {
+				runTimeFieldsDataUpdater.compareAndSet(this, null, new ConcurrentHashMap<String, String>());
+			}
 			runTimeFieldsData.put(fieldName, fieldValue);
 		} else { 
 			logger.debug("Storing value change for meta field " + fieldName);
@@ -789,6 +816,14 @@ public class EPICS_V3_PV implements PV, ControllingPV, ConnectionListener, Monit
 		}
 	}
 
+	/**
+	 * Wrap the DBRs for this waveform PV in JCAVectorEvent's; used when the samples are coalesced in the sample buffer.
+	 * @param deferVectorEncoding
+	 */
+	public void setDeferVectorEncoding(boolean deferVectorEncoding) {
+		this.deferVectorEncoding = deferVectorEncoding;
+	}
+
 	/***
 	 * @See PV#setHasMetaField(boolean)
 	 */
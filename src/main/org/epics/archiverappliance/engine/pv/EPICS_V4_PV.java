@@ -5,6 +5,7 @@ import java.util.Calendar;
 import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.config.ArchDBRTypes;
@@ -95,8 +96,10 @@ public class EPICS_V4_PV implements PV, ChannelGetRequester, ChannelRequester, M
 	 */
 	private ConcurrentHashMap<String, String> allarchiveFieldsData = null;
 	
-	/** Runtime fields that are not archived/stored are stored here */
-	private ConcurrentHashMap<String, String> runTimeFieldsData = new ConcurrentHashMap<String, String>();
+	/** Runtime fields that are not archived/stored are stored here; this is created when we get the first value for a runtime field. */
+	private volatile ConcurrentHashMap<String, String> runTimeFieldsData = null;
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<EPICS_V4_PV, ConcurrentHashMap> runTimeFieldsDataUpdater = AtomicReferenceFieldUpdater.newUpdater(EPICS_V4_PV.class, ConcurrentHashMap.class, "runTimeFieldsData");
 	
 	/** if this pv has many meta fields archived,changedarchiveFieldsData includes the changed meta values and the field names*/
 	private ConcurrentHashMap<String, String> changedarchiveFieldsData = null;
@@ -238,6 +241,9 @@ public class EPICS_V4_PV implements PV, ChannelGetRequester, ChannelRequester, M
 		String fieldName = strs[strs.length - 1];
 		if(isruntimeFieldField) { 
 			logger.debug("Not storing value change for runtime field " + fieldName);
+			if(runTimeFieldsData == null) {
+				runTimeFieldsDataUpdater.compareAndSet(this, null, new ConcurrentHashMap<String, String>());
+			}
 			runTimeFieldsData.put(fieldName, fieldValue);
 		} else { 
 			logger.debug("Storing value change for meta field " + fieldName);
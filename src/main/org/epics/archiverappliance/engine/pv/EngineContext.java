@@ -15,9 +15,12 @@ import gov.aps.jca.Context;
 
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
@@ -32,6 +35,7 @@ import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.config.ApplianceInfo;
 import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.ConnectedPVCounts;
 import org.epics.archiverappliance.config.MetaInfo;
 import org.epics.archiverappliance.config.PVNames;
 import org.epics.archiverappliance.config.PVTypeInfo;
@@ -41,6 +45,7 @@ import org.epics.archiverappliance.config.pubsub.PubSubEvent;
 import org.epics.archiverappliance.engine.ArchiveEngine;
 import org.epics.archiverappliance.engine.metadata.MetaCompletedListener;
 import org.epics.archiverappliance.engine.metadata.MetaGet;
+import org.epics.archiverappliance.engine.metadata.MetaGetService;
 import org.epics.archiverappliance.engine.model.ArchiveChannel;
 import org.epics.archiverappliance.engine.writer.WriterRunnable;
 import org.epics.archiverappliance.mgmt.policy.PolicyConfig.SamplingMethod;
@@ -79,6 +84,8 @@ public class EngineContext {
     /**the command thread for all  pvs*/
 	private JCACommandThread[] command_threads = null;
 	private Context[] context2CommandThreadId = null;
+	/** Assigns new PVs to the command thread with the least load and moves PVs across command threads on a rebalance */
+	private JCACommandThreadBalancer commandThreadBalancer = null;
 	private ChannelProvider channelProvider;
 
 	
@@ -108,10 +115,25 @@ public class EngineContext {
 	 */
 	private int disconnectCheckerPeriodInMinutes = 20;
 	
+	/**
+	 * The disconnectChecker processes the channels in these many slices spread over disconnectCheckerPeriodInMinutes.
+	 */
+	private int disconnectCheckerSlices = 20;
+	
+	/**
+	 * The daily metadata update processes the channels in these many slices spread over the day.
+	 */
+	private int metadataUpdaterSlices = 96;
+	
 	private ScheduledFuture<?> disconnectFuture = null;
+	private DisconnectChecker disconnectChecker = null;
+	private MetadataUpdater metadataUpdater = null;
 	
 	private double sampleBufferCapacityAdjustment = 1.0;
 	
+	/** Computes the meta info for PVs that are being added in batches */
+	private MetaGetService metaGetService;
+	
 
 	/***
 	 * 
@@ -153,6 +175,7 @@ public class EngineContext {
 			command_threads[threadNum] = new JCACommandThread(configService);
 			command_threads[threadNum].start();			
 		}
+		commandThreadBalancer = new JCACommandThreadBalancer(this, commandThreadCount);
 		
 		writer = new WriterRunnable(configService);
 		channelList = new ConcurrentHashMap<String, ArchiveChannel>();
@@ -220,10 +243,18 @@ public class EngineContext {
 			} catch(Throwable t) { 
 				logger.error("Exception initializing disconnectCheckTimeoutInMinutes", t);
 			}
+			try {
+				this.disconnectCheckerSlices = Math.max(1, Integer.parseInt(configService.getInstallationProperties().getProperty("org.epics.archiverappliance.engine.util.EngineContext.disconnectCheckerSlices", Integer.toString(this.disconnectCheckerSlices))));
+				this.metadataUpdaterSlices = Math.max(1, Integer.parseInt(configService.getInstallationProperties().getProperty("org.epics.archiverappliance.engine.util.EngineContext.metadataUpdaterSlices", Integer.toString(this.metadataUpdaterSlices))));
+			} catch(Throwable t) { 
+				logger.error("Exception initializing the slices for the disconnect checker and the metadata updater", t);
+			}
 		}
 		
 		startMiscTasksScheduler(configService);
 		
+		this.metaGetService = new MetaGetService(configService);
+		
 		boolean allContextsHaveBeenInitialized = false;
 		for(int loopcount = 0; loopcount < 60 && !allContextsHaveBeenInitialized; loopcount++) {
 			allContextsHaveBeenInitialized = true;
@@ -255,6 +286,8 @@ public class EngineContext {
 		
 		this.iniV4ChannelProvidert();
 		
+		SampleLatencies.setPerPVLatenciesEnabled(Boolean.parseBoolean(configService.getInstallationProperties().getProperty(SampleLatencies.PER_PV_PROPERTY, "false")));
+		
 		this.sampleBufferCapacityAdjustment = Double.parseDouble(configService.getInstallationProperties().getProperty("org.epics.archiverappliance.config.PVTypeInfo.sampleBufferCapacityAdjustment", "1.0"));
 		logger.debug("Buffer capacity adjustment is " + this.sampleBufferCapacityAdjustment);
 	}
@@ -282,16 +315,22 @@ public class EngineContext {
 
 		// Add an assertion in case we accidentally set this to 0 from the props file.
 		assert(disconnectCheckerPeriodInMinutes > 0);
-		disconnectFuture = miscTasksScheduler.scheduleAtFixedRate(new DisconnectChecker(configService), disconnectCheckerPeriodInMinutes, disconnectCheckerPeriodInMinutes, TimeUnit.MINUTES);
+		// Both the disconnect checks and the metadata updates process a slice of the channels in each tick so that a pass is spread over the period.
+		long disconnectCheckerTickInSeconds = Math.max(1, (disconnectCheckerPeriodInMinutes*60L)/disconnectCheckerSlices);
+		disconnectChecker = new DisconnectChecker(configService, disconnectCheckerSlices);
+		disconnectFuture = miscTasksScheduler.scheduleAtFixedRate(disconnectChecker, disconnectCheckerTickInSeconds, disconnectCheckerTickInSeconds, TimeUnit.SECONDS);
 		
-		// Add a task to update the metadata fields for each PV
+		// Add a task to update the metadata fields for each PV once a day.
 		// We start this at a well known time; this code was previously suspected of a small memory leak.
 		// Need to make sure this leak is no more.
 		long currentEpochSeconds = TimeUtils.getCurrentEpochSeconds();
 		// Start the metadata updates tomorrow afternoon; doesn't really matter what time; minimze impact with ETL etc
+		// Each pass is spread over the day in slices; so the passes start at this time every day.
 		long tomorrowAfternoon = ((currentEpochSeconds/(24*60*60)) + 1)*24*60*60 + 22*60*60;
-		logger.info("Starting the metadata updater from " + TimeUtils.convertToHumanReadableString(tomorrowAfternoon));
-		miscTasksScheduler.scheduleAtFixedRate(new MetadataUpdater(), tomorrowAfternoon-currentEpochSeconds, 24*60*60, TimeUnit.SECONDS);
+		long metadataUpdaterTickInSeconds = Math.max(1, (24*60*60L)/metadataUpdaterSlices);
+		metadataUpdater = new MetadataUpdater(metadataUpdaterSlices);
+		logger.info("Starting the metadata updater from " + TimeUtils.convertToHumanReadableString(tomorrowAfternoon) + " in " + metadataUpdaterSlices + " slices; one every " + metadataUpdaterTickInSeconds + " seconds");
+		miscTasksScheduler.scheduleAtFixedRate(metadataUpdater, tomorrowAfternoon-currentEpochSeconds, metadataUpdaterTickInSeconds, TimeUnit.SECONDS);
 	}
 	
 	public JCACommandThread getJCACommandThread(int jcaCommandThreadId) {
@@ -315,8 +354,40 @@ public class EngineContext {
 			}
 			return channel.getJCACommandThreadID();			
 		}
-		int threadId =  Math.abs(pvNameOnly.hashCode()) % command_threads.length;
-		return threadId;
+		return commandThreadBalancer.assignCommandThread(pvNameOnly);
+	}
+	
+	/**
+	 * Move PVs from the JCA command threads (and their CAJ contexts) with a high event rate to those with a lower event rate.
+	 * The PVs are moved one at a time in the background using a pause/resume.
+	 * @param tolerance - We leave command threads whose event rate is within this fraction of the average alone.
+	 * @param maxPVsToMove - The maximum number of PVs moved in this rebalance.
+	 * @return The number of PVs that will be moved.
+	 */
+	public int rebalanceJCACommandThreads(double tolerance, int maxPVsToMove) {
+		return commandThreadBalancer.rebalance(configService, miscTasksScheduler, tolerance, maxPVsToMove);
+	}
+	
+	/**
+	 * @return The number of PVs waiting to be moved as part of a rebalance.
+	 */
+	public int getPendingJCACommandThreadMoves() {
+		return commandThreadBalancer.getPendingMoves();
+	}
+	
+	/**
+	 * @return The number of PVs moved across command threads since startup.
+	 */
+	public long getCompletedJCACommandThreadMoves() {
+		return commandThreadBalancer.getCompletedMoves();
+	}
+	
+	/**
+	 * Get the PV count, event rate and monitor callback latency for each JCA command thread.
+	 * @return
+	 */
+	public List<Map<String, String>> getJCACommandThreadReport() {
+		return commandThreadBalancer.getReport();
 	}
 	
 	
@@ -447,105 +518,240 @@ public class EngineContext {
 		
 	}
 	
+	/**
+	 * Base class for maintenance tasks that loop thru all the archive channels.
+	 * Instead of processing all the channels in one go, each run processes the next slice of the channels so that a pass is spread over the period of the task.
+	 * At the start of a pass, we take a snapshot of the channel names; channels added after this are processed in the next pass.
+	 * @author mshankar
+	 *
+	 */
+	abstract class IncrementalChannelPass implements Runnable {
+		private final String taskName;
+		private final int slices;
+		private ArrayList<String> pvNamesInPass = null;
+		private int nextIndex = 0;
+		private long passStartMillis = 0;
+		private long passBusyMillis = 0;
+		private volatile long lastPassElapsedMillis = -1;
+		private volatile long lastPassBusyMillis = -1;
+		private volatile long lastPassCompletedEpochSeconds = -1;
+
+		protected IncrementalChannelPass(String taskName, int slices) {
+			this.taskName = taskName;
+			this.slices = slices;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if(EngineContext.this.configService.isShuttingDown()) {
+					logger.debug("Skipping " + taskName + " as the system is shutting down.");
+					return;
+				}
+				long sliceStartMillis = System.currentTimeMillis();
+				if(pvNamesInPass == null) {
+					pvNamesInPass = new ArrayList<String>(getPVNamesForPass());
+					nextIndex = 0;
+					passStartMillis = sliceStartMillis;
+					passBusyMillis = 0;
+					logger.debug("Starting a pass of " + taskName + " over " + pvNamesInPass.size() + " channels");
+					startPass(pvNamesInPass.size());
+				}
+				int sliceSize = (pvNamesInPass.size() + slices - 1)/slices;
+				int sliceEnd = Math.min(pvNamesInPass.size(), nextIndex + sliceSize);
+				for(; nextIndex < sliceEnd; nextIndex++) {
+					processPV(pvNamesInPass.get(nextIndex));
+				}
+				if(nextIndex >= pvNamesInPass.size()) {
+					completePass();
+					long now = System.currentTimeMillis();
+					passBusyMillis += now - sliceStartMillis;
+					lastPassElapsedMillis = now - passStartMillis;
+					lastPassBusyMillis = passBusyMillis;
+					lastPassCompletedEpochSeconds = TimeUtils.getCurrentEpochSeconds();
+					logger.info("Completed a pass of " + taskName + " over " + pvNamesInPass.size() + " channels in " + lastPassElapsedMillis + "(ms) of which " + lastPassBusyMillis + "(ms) was spent processing");
+					pvNamesInPass = null;
+				} else {
+					passBusyMillis += System.currentTimeMillis() - sliceStartMillis;
+				}
+			} catch(Throwable t) {
+				logger.error("Exception in " + taskName, t);
+				pvNamesInPass = null;
+			}
+		}
+
+		/**
+		 * @return The names of the channels to process in a pass; this is snapshotted at the start of the pass.
+		 */
+		Collection<String> getPVNamesForPass() {
+			return EngineContext.this.channelList.keySet();
+		}
+
+		/**
+		 * Process one PV in the pass; channels that have been removed since the start of the pass are skipped.
+		 * @param pvName - The name of the PV
+		 */
+		void processPV(String pvName) {
+			ArchiveChannel channel = EngineContext.this.channelList.get(pvName);
+			if(channel != null) {
+				processChannel(channel);
+			}
+		}
+
+		/**
+		 * Called at the start of each pass
+		 * @param channelCount - The number of channels in this pass
+		 */
+		protected abstract void startPass(int channelCount);
+
+		protected abstract void processChannel(ArchiveChannel channel);
+
+		/**
+		 * Called once all the channels in this pass have been processed.
+		 */
+		protected abstract void completePass();
+
+		/**
+		 * @return The wall clock time taken by the last completed pass; -1 if we have not completed a pass yet.
+		 */
+		public long getLastPassElapsedMillis() {
+			return lastPassElapsedMillis;
+		}
+
+		/**
+		 * @return The time spent processing the channels in the last completed pass; -1 if we have not completed a pass yet.
+		 */
+		public long getLastPassBusyMillis() {
+			return lastPassBusyMillis;
+		}
+
+		public long getLastPassCompletedEpochSeconds() {
+			return lastPassCompletedEpochSeconds;
+		}
+	}
+
 	/**
 	 * A class that loops thru the archive channels and checks for connectivity.
 	 * We start connecting up the metachannels only after a certain percentage of channels have connected up.
+	 * The connected/disconnected counts for this appliance are published into the cluster at the end of each pass.
+	 * We use the counts published by the other appliances in the cluster to determine if the cluster has connected up; we ask the appliance only if it has not published its counts recently.
 	 * @author mshankar
 	 *
 	 */
-	private final class DisconnectChecker implements Runnable {
+	private final class DisconnectChecker extends IncrementalChannelPass {
 		private final ConfigService configService;
+		private LinkedList<String> needToStartMetaChannelPVNames = new LinkedList<String>();
+		private int totalChannels = 0;
+		private int disconnectedChannels = 0;
 
-		private DisconnectChecker(ConfigService configService) {
+		private DisconnectChecker(ConfigService configService, int slices) {
+			super("the disconnect checks", slices);
 			this.configService = configService;
 		}
 
 		@Override
-		public void run() {
+		protected void startPass(int channelCount) {
+			needToStartMetaChannelPVNames = new LinkedList<String>();
+			totalChannels = channelCount;
+			disconnectedChannels = 0;
+		}
+
+		@Override
+		protected void processChannel(ArchiveChannel channel) {
+			// If a channel has not reconnected in disconnectCheckTimeoutInMinutes, we count it as disconnected.
+			long disconnectTimeoutInSeconds = EngineContext.this.disconnectCheckTimeoutInMinutes*60;
+			if(!channel.isConnected()) {
+				logger.debug(channel.getName() + " is not connected. See if we have requested for it some time back and have still not connected.");
+				if(disconnectTimeoutInSeconds > 0 && channel.getSecondsElapsedSinceSearchRequest() > disconnectTimeoutInSeconds) { 
+					disconnectedChannels++;
+				} else {
+					if(disconnectTimeoutInSeconds > 0) { 
+						logger.debug(channel.getName() + " is not connected but we still have some time to go before attempting pause/resume " + channel.getSecondsElapsedSinceSearchRequest() + " and disconnectTimeoutInSeconds " + disconnectTimeoutInSeconds);
+					} else { 
+						logger.debug("The pause/resume on disconnect has been turned off. Not attempting reconnect using pause/resume for PV " + channel.getName());
+					}
+				}
+			} else { 
+				// Channel is connected.
+				logger.debug(channel.getName() + " is connected. Seeing if we need to start up the meta channels for the fields.");
+				if(channel.metaChannelsNeedStartingUp()) { 
+					needToStartMetaChannelPVNames.add(channel.getName());
+				}
+			}
+		}
+
+		@Override
+		protected void completePass() {
+			ConnectedPVCounts myCounts = new ConnectedPVCounts(totalChannels, disconnectedChannels);
 			try { 
-				// We run thru all the channels - if a channel has not reconnected in disconnectCheckTimeoutInMinutes, we pause and resume the channel.
-				if(EngineContext.this.configService.isShuttingDown()) {
-					logger.debug("Skipping checking for disconnected channels as the system is shutting down.");
-					return;
+				configService.updateConnectedPVCountsForThisAppliance(myCounts);
+			} catch(Exception ex) { 
+				logger.error("Exception publishing the connected PV counts for this appliance", ex);
+			}
+
+			// Need to start up the metachannels here after we determine that the cluster has started up..
+			// We fire up the metachannels gradually only after the entire cluster's connected PV count has reached a certain threshold.
+			// First we see if the percentage of disconnected channels in this appliance is lower than a threshold
+			if(needToStartMetaChannelPVNames.isEmpty()) return;
+			if(myCounts.getDisconnectedPercentage() >= MAXIMUM_DISCONNECTED_CHANNEL_PERCENTAGE_BEFORE_STARTING_METACHANNELS) return;
+
+			// Then we repeat the same check for the other appliances in this cluster
+			long staleCountsInSeconds = 3*EngineContext.this.disconnectCheckerPeriodInMinutes*60L;
+			for(ApplianceInfo applianceInfo : configService.getAppliancesInCluster()) { 
+				if(applianceInfo.getIdentity().equals(configService.getMyApplianceInfo().getIdentity())) { 
+					// We do not check for ourself...
+					continue;
 				}
-				logger.debug("Checking for disconnected channels.");
-				LinkedList<String> disconnectedPVNames = new LinkedList<String>();
-				LinkedList<String> needToStartMetaChannelPVNames = new LinkedList<String>();
-				int totalChannels = EngineContext.this.channelList.size();
-				long disconnectTimeoutInSeconds = EngineContext.this.disconnectCheckTimeoutInMinutes*60;
-				for(ArchiveChannel channel : EngineContext.this.channelList.values()) {
-					if(!channel.isConnected()) {
-						logger.debug(channel.getName() + " is not connected. See if we have requested for it some time back and have still not connected.");
-						if(disconnectTimeoutInSeconds > 0 && channel.getSecondsElapsedSinceSearchRequest() > disconnectTimeoutInSeconds) { 
-							disconnectedPVNames.add(channel.getName());
-						} else {
-							if(disconnectTimeoutInSeconds > 0) { 
-								logger.debug(channel.getName() + " is not connected but we still have some time to go before attempting pause/resume " + channel.getSecondsElapsedSinceSearchRequest() + " and disconnectTimeoutInSeconds " + disconnectTimeoutInSeconds);
-							} else { 
-								logger.debug("The pause/resume on disconnect has been turned off. Not attempting reconnect using pause/resume for PV " + channel.getName());
-							}
-						}
+				try { 
+					ConnectedPVCounts applianceCounts = configService.getConnectedPVCountsForAppliance(applianceInfo.getIdentity());
+					if(applianceCounts == null || (TimeUtils.getCurrentEpochSeconds() - applianceCounts.getLastUpdatedEpochSeconds()) > staleCountsInSeconds) { 
+						applianceCounts = getConnectedPVCountsFromAppliance(applianceInfo);
+					}
+					if (applianceCounts.getDisconnectedPercentage() < MAXIMUM_DISCONNECTED_CHANNEL_PERCENTAGE_BEFORE_STARTING_METACHANNELS) { 
+						logger.debug("Appliance " + applianceInfo.getIdentity() + " has connected to most of its channels");
 					} else { 
-						// Channel is connected.
-						logger.debug(channel.getName() + " is connected. Seeing if we need to start up the meta channels for the fields.");
-						if(channel.metaChannelsNeedStartingUp()) { 
-							needToStartMetaChannelPVNames.add(channel.getName());
-						}
+						logger.info("Appliance " + applianceInfo.getIdentity() + " has not connected to most of its channels. Skipping starting of meta channels");
+						return;
 					}
+				} catch(Exception ex) { 
+					logger.error("Exception checking for disconnected PVs on appliance " + applianceInfo.getIdentity(), ex);
 				}
+			}
 
-				int disconnectedChannels = disconnectedPVNames.size();
-
-				// Need to start up the metachannels here after we determine that the cluster has started up..
-				// To do this we update the connected/disconnected count for this appliance.
-				// We fire up the metachannels gradually only after the entire cluster's connected PV count has reached a certain threshold.
-				// First we see if the percentage of disconnected channels in this appliance is lower than a threshold
-				if(!needToStartMetaChannelPVNames.isEmpty()) {   
-					if ((disconnectedChannels*100.0)/totalChannels < MAXIMUM_DISCONNECTED_CHANNEL_PERCENTAGE_BEFORE_STARTING_METACHANNELS) {
-						boolean kickOffMetaChannels = true;
-						// Then we repeat the same check for the other appliances in this cluster
-						for(ApplianceInfo applianceInfo : configService.getAppliancesInCluster()) { 
-							if(applianceInfo.getIdentity().equals(configService.getMyApplianceInfo().getIdentity())) { 
-								// We do not check for ourself...
-							} else { 
-								String connectedPVCountURL = applianceInfo.getEngineURL() + "/ConnectedPVCountForAppliance";
-								try { 
-									JSONObject connectedPVCount = GetUrlContent.getURLContentAsJSONObject(connectedPVCountURL);
-									int applianceTotalPVCount = Integer.parseInt((String) connectedPVCount.get("total"));
-									int applianceDisconnectedPVCount = Integer.parseInt((String) connectedPVCount.get("disconnected"));
-									if ((applianceDisconnectedPVCount*100.0/applianceTotalPVCount) < MAXIMUM_DISCONNECTED_CHANNEL_PERCENTAGE_BEFORE_STARTING_METACHANNELS) { 
-										logger.debug("Appliance " + applianceInfo.getIdentity() + " has connected to most of its channels");
-									} else { 
-										logger.info("Appliance " + applianceInfo.getIdentity() + " has not connected to most of its channels. Skipping starting of meta channels");
-										kickOffMetaChannels = false;
-										break;
-									}
-								} catch(Exception ex) { 
-									logger.error("Exception checking for disconnected PVs on appliance " + applianceInfo.getIdentity() + " using URL " + connectedPVCountURL, ex);
-								}
-							}
-						}
-
-						if(kickOffMetaChannels && !needToStartMetaChannelPVNames.isEmpty()) { 
-							// We can kick off the metachannels. We kick them off a few at a time.
-							for (int i = 0; i < METACHANNELS_TO_START_AT_A_TIME; i++) { 
-								String channelPVNameToKickOffMetaFields = needToStartMetaChannelPVNames.poll();
-								if(channelPVNameToKickOffMetaFields != null) { 
-									logger.debug("Starting meta channels for " + channelPVNameToKickOffMetaFields);
-									ArchiveChannel channelToKickOffMetaFields = EngineContext.this.channelList.get(channelPVNameToKickOffMetaFields);
-									channelToKickOffMetaFields.startUpMetaChannels();
-								} else { 
-									logger.debug("No more metachannels to start");
-									break;
-								}
-							}
+			// We can kick off the metachannels. We kick them off a few at a time.
+			for (int i = 0; i < METACHANNELS_TO_START_AT_A_TIME; i++) { 
+				String channelPVNameToKickOffMetaFields = needToStartMetaChannelPVNames.poll();
+				if(channelPVNameToKickOffMetaFields != null) { 
+					ArchiveChannel channelToKickOffMetaFields = EngineContext.this.channelList.get(channelPVNameToKickOffMetaFields);
+					if(channelToKickOffMetaFields != null) { 
+						logger.debug("Starting meta channels for " + channelPVNameToKickOffMetaFields);
+						try { 
+							channelToKickOffMetaFields.startUpMetaChannels();
+						} catch(Exception ex) { 
+							logger.error("Exception starting meta channels for " + channelPVNameToKickOffMetaFields, ex);
 						}
 					}
+				} else { 
+					logger.debug("No more metachannels to start");
+					break;
 				}
-			} catch(Throwable t) { 
-				logger.error("Exception doing the pause/resume checks", t);
 			}
 		}
+
+		/**
+		 * Older appliances may not publish their counts into the cluster; we ask these for their counts.
+		 */
+		private ConnectedPVCounts getConnectedPVCountsFromAppliance(ApplianceInfo applianceInfo) throws IOException {
+			String connectedPVCountURL = applianceInfo.getEngineURL() + "/ConnectedPVCountForAppliance";
+			logger.debug("Appliance " + applianceInfo.getIdentity() + " has not published its connected PV counts recently; asking using " + connectedPVCountURL);
+			JSONObject connectedPVCount = GetUrlContent.getURLContentAsJSONObject(connectedPVCountURL);
+			if(connectedPVCount == null) { 
+				throw new IOException("Unable to get the connected PV counts using " + connectedPVCountURL);
+			}
+			int applianceTotalPVCount = Integer.parseInt((String) connectedPVCount.get("total"));
+			int applianceDisconnectedPVCount = Integer.parseInt((String) connectedPVCount.get("disconnected"));
+			return new ConnectedPVCounts(applianceTotalPVCount, applianceDisconnectedPVCount);
+		}
 	}
 
 	static class ArchivePVMetaCompletedListener implements MetaCompletedListener {
@@ -597,6 +803,10 @@ public class EngineContext {
 	}
 	
 	
+	public MetaGetService getMetaGetService() {
+		return metaGetService;
+	}
+	
 	public boolean abortComputeMetaInfo(String pvName) { 
 		return MetaGet.abortMetaGet(pvName);
 	}
@@ -669,27 +879,59 @@ public class EngineContext {
 	
 	
 	/**
-	 * Use EPICS_V3_PV's updateTotalMetaInfo to update the metadata once every 24 hours.  
+	 * Use EPICS_V3_PV's updateTotalMetaInfo to update the metadata once every 24 hours.
+	 * The updates are spread over the day; each run updates the next slice of the channels.
 	 * @author mshankar
 	 *
 	 */
-	private class MetadataUpdater implements Runnable { 
-		public void run() {
-			logger.info("Starting the daily update of metadata information");
-			int pvCount = 0;
-			for(ArchiveChannel channel : EngineContext.this.channelList.values()) {
-				if(channel.isConnected()) {
-					logger.debug("Updating metadata for " + channel.getName());
-					channel.updateMetadataOnceADay(EngineContext.this);
-					pvCount++;
-					// 100,000 PVs should complete in 100,000/(100*(1000/250)) seconds approx 5 minutes
-					if(pvCount %100 == 0) { 
-						try {Thread.sleep(250); } catch(Throwable t) {}
-					}
-				}
+	private class MetadataUpdater extends IncrementalChannelPass { 
+		private MetadataUpdater(int slices) {
+			super("the daily update of metadata information", slices);
+		}
+
+		@Override
+		protected void startPass(int channelCount) {
+		}
+
+		@Override
+		protected void processChannel(ArchiveChannel channel) {
+			if(channel.isConnected()) {
+				logger.debug("Updating metadata for " + channel.getName());
+				channel.updateMetadataOnceADay(EngineContext.this);
 			}
-			logger.info("Completed scheduling the daily update of metadata information");
 		}
+
+		@Override
+		protected void completePass() {
+		}
+	}
+	
+	/**
+	 * @return The wall clock time in milliseconds of the last complete pass of the disconnect checker; -1 if we have not completed a pass yet.
+	 */
+	public long getDisconnectCheckerLastPassElapsedMillis() {
+		return disconnectChecker != null ? disconnectChecker.getLastPassElapsedMillis() : -1;
+	}
+
+	/**
+	 * @return The time in milliseconds spent processing channels in the last complete pass of the disconnect checker; -1 if we have not completed a pass yet.
+	 */
+	public long getDisconnectCheckerLastPassBusyMillis() {
+		return disconnectChecker != null ? disconnectChecker.getLastPassBusyMillis() : -1;
+	}
+
+	/**
+	 * @return The wall clock time in milliseconds of the last complete pass of the metadata updater; -1 if we have not completed a pass yet.
+	 */
+	public long getMetadataUpdaterLastPassElapsedMillis() {
+		return metadataUpdater != null ? metadataUpdater.getLastPassElapsedMillis() : -1;
+	}
+
+	/**
+	 * @return The time in milliseconds spent processing channels in the last complete pass of the metadata updater; -1 if we have not completed a pass yet.
+	 */
+	public long getMetadataUpdaterLastPassBusyMillis() {
+		return metadataUpdater != null ? metadataUpdater.getLastPassBusyMillis() : -1;
 	}
 	
 	
@@ -16,6 +16,7 @@ import gov.aps.jca.event.ContextMessageListener;
 
 import java.io.ByteArrayInputStream;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.config.ConfigService;
@@ -66,6 +67,11 @@ public class JCACommandThread extends Thread {
 	private boolean run = false;
 	
 	private ConfigService configService;
+	
+	/** The number of monitor callbacks from this thread's context and the time spent in them; used to balance the load across the contexts. */
+	private final AtomicLong callbackCount = new AtomicLong(0);
+	private final AtomicLong callbackNanos = new AtomicLong(0);
+	private volatile long maxCallbackNanos = 0;
 
 	/**
 	 * Construct, but don't start the thread.
@@ -230,6 +236,42 @@ public class JCACommandThread extends Thread {
 		}
 	}
 
+	/**
+	 * Record the time spent in a monitor callback from this thread's context.
+	 * @param nanos
+	 */
+	public void addCallbackTime(long nanos) {
+		callbackCount.incrementAndGet();
+		callbackNanos.addAndGet(nanos);
+		if(nanos > maxCallbackNanos) maxCallbackNanos = nanos;
+	}
+	
+	public long getCallbackCount() {
+		return callbackCount.get();
+	}
+	
+	/**
+	 * @return The average time spent in a monitor callback in microseconds.
+	 */
+	public double getAverageCallbackMicros() {
+		long count = callbackCount.get();
+		if(count == 0) return 0.0;
+		return callbackNanos.get()/(1000.0*count);
+	}
+	
+	public double getMaxCallbackMicros() {
+		return maxCallbackNanos/1000.0;
+	}
+	
+	/**
+	 * @return The number of commands waiting to be executed by this thread.
+	 */
+	public int getCommandQueueSize() {
+		synchronized (command_queue) {
+			return command_queue.size();
+		}
+	}
+
 	void destoryContext() {
 		addCommand(new Runnable()
 
@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.pv;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.engine.ArchiveEngine;
+import org.epics.archiverappliance.engine.model.ArchiveChannel;
+
+/**
+ * Balances the PVs across the JCA command threads (and their CAJ contexts) using the event rates from the PVMetrics.
+ * <ol>
+ * <li>New PVs are assigned to the command thread with the least load.
+ * The load of each command thread is recomputed from the channels every so often; in between, we add the average event rate per PV for each assignment.</li>
+ * <li>A rebalance moves the busiest PVs from the overloaded command threads to the least loaded ones.
+ * Each PV is moved using a pause/resume; we move one PV at a time and only when the writer is not writing out the sample buffers so that we do not lose any samples.</li>
+ * </ol>
+ * @author mshankar
+ *
+ */
+public class JCACommandThreadBalancer {
+	private static final Logger logger = Logger.getLogger(JCACommandThreadBalancer.class.getName());
+	private static final long LOAD_RECOMPUTE_INTERVAL_MILLIS = 60*1000;
+	private static final long DELAY_BETWEEN_MOVES_MILLIS = 500;
+
+	private final EngineContext engineContext;
+	private final int commandThreadCount;
+	private double[] eventRates;
+	private int[] pvCounts;
+	private double averageEventRatePerPV = 0.0;
+	private long lastRecomputeMillis = 0;
+	/** PVs that are being moved to a different command thread */
+	private final ConcurrentHashMap<String, Integer> moveTargets = new ConcurrentHashMap<String, Integer>();
+	private volatile int pendingMoves = 0;
+	private volatile long completedMoves = 0;
+
+	/**
+	 * The event rate of a PV and the command thread it is currently assigned to.
+	 */
+	static class ChannelLoad {
+		final String pvName;
+		final int commandThreadId;
+		final double eventRate;
+		ChannelLoad(String pvName, int commandThreadId, double eventRate) {
+			this.pvName = pvName;
+			this.commandThreadId = commandThreadId;
+			this.eventRate = eventRate;
+		}
+	}
+
+	/**
+	 * A planned move of a PV from one command thread to another.
+	 */
+	static class Move {
+		final String pvName;
+		final int fromCommandThreadId;
+		final int toCommandThreadId;
+		final double eventRate;
+		Move(String pvName, int fromCommandThreadId, int toCommandThreadId, double eventRate) {
+			this.pvName = pvName;
+			this.fromCommandThreadId = fromCommandThreadId;
+			this.toCommandThreadId = toCommandThreadId;
+			this.eventRate = eventRate;
+		}
+	}
+
+	JCACommandThreadBalancer(EngineContext engineContext, int commandThreadCount) {
+		this.engineContext = engineContext;
+		this.commandThreadCount = commandThreadCount;
+		this.eventRates = new double[commandThreadCount];
+		this.pvCounts = new int[commandThreadCount];
+	}
+
+	/**
+	 * Pick a command thread for a new PV.
+	 * @param pvName
+	 * @return
+	 */
+	synchronized int assignCommandThread(String pvName) {
+		Integer moveTarget = moveTargets.get(pvName);
+		if(moveTarget != null) {
+			return moveTarget;
+		}
+		long now = System.currentTimeMillis();
+		if(now - lastRecomputeMillis > LOAD_RECOMPUTE_INTERVAL_MILLIS) {
+			recomputeLoads();
+			lastRecomputeMillis = now;
+		}
+		int leastLoaded = 0;
+		for(int i = 1; i < commandThreadCount; i++) {
+			if(eventRates[i] < eventRates[leastLoaded] || (eventRates[i] == eventRates[leastLoaded] && pvCounts[i] < pvCounts[leastLoaded])) {
+				leastLoaded = i;
+			}
+		}
+		eventRates[leastLoaded] += averageEventRatePerPV;
+		pvCounts[leastLoaded]++;
+		return leastLoaded;
+	}
+
+	private void recomputeLoads() {
+		double[] newEventRates = new double[commandThreadCount];
+		int[] newPVCounts = new int[commandThreadCount];
+		double totalEventRate = 0.0;
+		int totalPVs = 0;
+		for(ChannelLoad channelLoad : getChannelLoads()) {
+			newEventRates[channelLoad.commandThreadId] += channelLoad.eventRate;
+			newPVCounts[channelLoad.commandThreadId]++;
+			totalEventRate += channelLoad.eventRate;
+			totalPVs++;
+		}
+		eventRates = newEventRates;
+		pvCounts = newPVCounts;
+		averageEventRatePerPV = totalPVs > 0 ? totalEventRate/totalPVs : 0.0;
+	}
+
+	private List<ChannelLoad> getChannelLoads() {
+		LinkedList<ChannelLoad> channelLoads = new LinkedList<ChannelLoad>();
+		for(ArchiveChannel channel : engineContext.getChannelList().values()) {
+			int commandThreadId = channel.getJCACommandThreadID();
+			if(commandThreadId < 0 || commandThreadId >= commandThreadCount) continue;
+			channelLoads.add(new ChannelLoad(channel.getName(), commandThreadId, channel.getPVMetrics().getEventRate()));
+		}
+		return channelLoads;
+	}
+
+	/**
+	 * Plan the moves needed to bring the event rate of each command thread within tolerance of the average.
+	 * We repeatedly move the busiest PV from the busiest command thread that reduces its load to the least loaded command thread.
+	 * @param commandThreadCount
+	 * @param channelLoads
+	 * @param tolerance - For example, 0.2 means we are happy if all command threads are within 120% of the average event rate.
+	 * @param maxMoves - The maximum number of PVs to move
+	 * @return
+	 */
+	static List<Move> planMoves(int commandThreadCount, List<ChannelLoad> channelLoads, double tolerance, int maxMoves) {
+		LinkedList<Move> moves = new LinkedList<Move>();
+		if(commandThreadCount < 2) return moves;
+		double[] rates = new double[commandThreadCount];
+		ArrayList<List<ChannelLoad>> channelsForThread = new ArrayList<List<ChannelLoad>>(commandThreadCount);
+		for(int i = 0; i < commandThreadCount; i++) {
+			channelsForThread.add(new ArrayList<ChannelLoad>());
+		}
+		double totalRate = 0.0;
+		for(ChannelLoad channelLoad : channelLoads) {
+			rates[channelLoad.commandThreadId] += channelLoad.eventRate;
+			channelsForThread.get(channelLoad.commandThreadId).add(channelLoad);
+			totalRate += channelLoad.eventRate;
+		}
+		if(totalRate <= 0.0) return moves;
+		Comparator<ChannelLoad> busiestFirst = new Comparator<ChannelLoad>() {
+			@Override
+			public int compare(ChannelLoad o1, ChannelLoad o2) {
+				return Double.compare(o2.eventRate, o1.eventRate);
+			}
+		};
+		for(List<ChannelLoad> channels : channelsForThread) {
+			Collections.sort(channels, busiestFirst);
+		}
+		double threshold = (totalRate/commandThreadCount)*(1.0 + tolerance);
+		while(moves.size() < maxMoves) {
+			int busiest = 0, leastLoaded = 0;
+			for(int i = 1; i < commandThreadCount; i++) {
+				if(rates[i] > rates[busiest]) busiest = i;
+				if(rates[i] < rates[leastLoaded]) leastLoaded = i;
+			}
+			if(rates[busiest] <= threshold) break;
+			double gap = rates[busiest] - rates[leastLoaded];
+			ChannelLoad toMove = null;
+			for(ChannelLoad candidate : channelsForThread.get(busiest)) {
+				// Moving this PV should reduce the load on the busiest thread without making the other thread the new busiest one.
+				if(candidate.eventRate > 0.0 && candidate.eventRate < gap) {
+					toMove = candidate;
+					break;
+				}
+			}
+			if(toMove == null) break;
+			channelsForThread.get(busiest).remove(toMove);
+			rates[busiest] -= toMove.eventRate;
+			rates[leastLoaded] += toMove.eventRate;
+			moves.add(new Move(toMove.pvName, busiest, leastLoaded, toMove.eventRate));
+		}
+		return moves;
+	}
+
+	/**
+	 * Move PVs from the overloaded command threads to the least loaded ones.
+	 * The moves are carried out one PV at a time in the background using the specified executor.
+	 * @param configService
+	 * @param executor
+	 * @param tolerance
+	 * @param maxMoves
+	 * @return The number of PVs that will be moved.
+	 */
+	synchronized int rebalance(final ConfigService configService, final ScheduledExecutorService executor, double tolerance, int maxMoves) {
+		if(pendingMoves > 0) {
+			logger.warn("Skipping rebalance as there are still " + pendingMoves + " moves pending from the previous rebalance");
+			return 0;
+		}
+		final LinkedList<Move> moves = new LinkedList<Move>(planMoves(commandThreadCount, getChannelLoads(), tolerance, maxMoves));
+		logger.info("Rebalancing the JCA command threads by moving " + moves.size() + " PVs");
+		pendingMoves = moves.size();
+		if(moves.isEmpty()) return 0;
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				Move move = moves.peek();
+				if(move == null) return;
+				try {
+					moves.poll();
+					movePV(configService, move);
+				} catch(Throwable t) {
+					moves.poll();
+					logger.error("Exception moving pv " + move.pvName + " to command thread " + move.toCommandThreadId, t);
+				}
+				pendingMoves = moves.size();
+				if(!moves.isEmpty() && !configService.isShuttingDown()) {
+					executor.schedule(this, DELAY_BETWEEN_MOVES_MILLIS, TimeUnit.MILLISECONDS);
+				} else {
+					pendingMoves = 0;
+					synchronized(JCACommandThreadBalancer.this) {
+						lastRecomputeMillis = 0;
+					}
+				}
+			}
+		}, 0, TimeUnit.MILLISECONDS);
+		return moves.size();
+	}
+
+	private void movePV(ConfigService configService, Move move) throws Exception {
+		ArchiveChannel channel = engineContext.getChannelList().get(move.pvName);
+		if(channel == null || channel.getJCACommandThreadID() != move.fromCommandThreadId) {
+			logger.debug("PV " + move.pvName + " has been paused/deleted/moved since we planned the rebalance");
+			return;
+		}
+		logger.info("Moving pv " + move.pvName + " with an event rate of " + move.eventRate + " from command thread " + move.fromCommandThreadId + " to " + move.toCommandThreadId);
+		moveTargets.put(move.pvName, move.toCommandThreadId);
+		try {
+			// Stop the channel before flushing its sample buffer so that we do not lose the samples that arrive after the flush when the channel is destroyed.
+			channel.shutdownMetaChannels();
+			channel.stop();
+			engineContext.getWriteThead().flushChannel(move.pvName);
+			ArchiveEngine.pauseArchivingPV(move.pvName, configService);
+			ArchiveEngine.resumeArchivingPV(move.pvName, configService);
+			completedMoves++;
+		} finally {
+			moveTargets.remove(move.pvName);
+		}
+	}
+
+	int getPendingMoves() {
+		return pendingMoves;
+	}
+
+	long getCompletedMoves() {
+		return completedMoves;
+	}
+
+	/**
+	 * The PV count, event rate and callback latency for each command thread.
+	 * @return
+	 */
+	List<Map<String, String>> getReport() {
+		DecimalFormat twoSignificantDigits = new DecimalFormat("###,###,###,###,###,###.##");
+		double[] reportRates = new double[commandThreadCount];
+		int[] reportPVCounts = new int[commandThreadCount];
+		for(ChannelLoad channelLoad : getChannelLoads()) {
+			reportRates[channelLoad.commandThreadId] += channelLoad.eventRate;
+			reportPVCounts[channelLoad.commandThreadId]++;
+		}
+		LinkedList<Map<String, String>> report = new LinkedList<Map<String, String>>();
+		for(int i = 0; i < commandThreadCount; i++) {
+			JCACommandThread commandThread = engineContext.getJCACommandThread(i);
+			HashMap<String, String> threadReport = new HashMap<String, String>();
+			threadReport.put("commandThreadID", Integer.toString(i));
+			threadReport.put("pvCount", Integer.toString(reportPVCounts[i]));
+			threadReport.put("eventRate", twoSignificantDigits.format(reportRates[i]));
+			threadReport.put("callbackCount", Long.toString(commandThread.getCallbackCount()));
+			threadReport.put("averageCallbackLatencyMicros", twoSignificantDigits.format(commandThread.getAverageCallbackMicros()));
+			threadReport.put("maxCallbackLatencyMicros", twoSignificantDigits.format(commandThread.getMaxCallbackMicros()));
+			threadReport.put("commandQueueSize", Integer.toString(commandThread.getCommandQueueSize()));
+			report.add(threadReport);
+		}
+		return report;
+	}
+}
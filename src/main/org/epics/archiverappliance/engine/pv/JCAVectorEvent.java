@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.pv;
+
+import java.lang.reflect.Constructor;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.DeferredVectorEvent;
+import org.epics.archiverappliance.data.SampleValue;
+
+import gov.aps.jca.dbr.DBR;
+import gov.aps.jca.dbr.STS;
+import gov.aps.jca.dbr.TIME;
+
+/**
+ * The event for a monitor of a numeric waveform PV whose samples are coalesced in the sample buffer.
+ * This holds on to the DBR from JCA and creates the PB event (using the constructor from the type system) only if something asks for the raw form or modifies the event.
+ * In the common case, the sample buffer copies the values straight from the DBR and the PB encoding happens once at flush time.
+ * @author mshankar
+ *
+ */
+public class JCAVectorEvent implements DeferredVectorEvent {
+	private final ArchDBRTypes dbrType;
+	private final DBR dbr;
+	private final Constructor<? extends DBRTimeEvent> pbConstructor;
+	private DBRTimeEvent pbEvent = null;
+
+	/**
+	 * @param dbrType
+	 * @param dbr - A DBR_TIME_* for a numeric waveform.
+	 * @param pbConstructor - The constructor that creates the PB event from the DBR.
+	 */
+	public JCAVectorEvent(ArchDBRTypes dbrType, DBR dbr, Constructor<? extends DBRTimeEvent> pbConstructor) {
+		this.dbrType = dbrType;
+		this.dbr = dbr;
+		this.pbConstructor = pbConstructor;
+	}
+
+	private synchronized DBRTimeEvent getPBEvent() {
+		if(pbEvent == null) {
+			try {
+				pbEvent = pbConstructor.newInstance(dbr);
+			} catch(Exception ex) {
+				throw new RuntimeException("Exception creating PB event for DBR of type " + dbrType, ex);
+			}
+		}
+		return pbEvent;
+	}
+
+	private synchronized boolean isEncoded() {
+		return pbEvent != null;
+	}
+
+	@Override
+	public Object getPrimitiveValues() {
+		if(isEncoded()) return null;
+		return dbr.getValue();
+	}
+
+	@Override
+	public int getElementCount() {
+		return dbr.getCount();
+	}
+
+	@Override
+	public int getEstimatedRawFormSize() {
+		if(isEncoded()) return pbEvent.getRawForm().len;
+		int bytesPerElement;
+		switch(dbrType) {
+		case DBR_WAVEFORM_DOUBLE:
+			bytesPerElement = 8;
+			break;
+		case DBR_WAVEFORM_FLOAT:
+		case DBR_WAVEFORM_INT:
+			bytesPerElement = 4;
+			break;
+		case DBR_WAVEFORM_SHORT:
+		case DBR_WAVEFORM_ENUM:
+			bytesPerElement = 2;
+			break;
+		default:
+			bytesPerElement = 1;
+		}
+		// Timestamp, tags and length of the values
+		return 16 + bytesPerElement*dbr.getCount();
+	}
+
+	@Override
+	public long getEpochSeconds() {
+		return ((TIME) dbr).getTimeStamp().secPastEpoch() + TimeUtils.EPICS_EPOCH_2_JAVA_EPOCH_OFFSET;
+	}
+
+	@Override
+	public Timestamp getEventTimeStamp() {
+		return TimeUtils.convertFromJCATimeStamp(((TIME) dbr).getTimeStamp());
+	}
+
+	@Override
+	public int getNanos() {
+		return (int) ((TIME) dbr).getTimeStamp().nsec();
+	}
+
+	@Override
+	public long getEpochNanos() {
+		return TimeUtils.convertToEpochNanos(getEpochSeconds(), getNanos());
+	}
+
+	@Override
+	public ByteArray getRawForm() {
+		return getPBEvent().getRawForm();
+	}
+
+	@Override
+	public SampleValue getSampleValue() {
+		if(isEncoded()) return pbEvent.getSampleValue();
+		return new SampleValue() {
+			private SampleValue decoded = null;
+
+			// Only the element count is used when adding the sample to the buffer; the rest comes from the PB event.
+			private SampleValue getDecoded() {
+				if(decoded == null) decoded = getPBEvent().getSampleValue();
+				return decoded;
+			}
+
+			@Override
+			public int getElementCount() {
+				return dbr.getCount();
+			}
+
+			@Override
+			public Number getValue() {
+				return getDecoded().getValue();
+			}
+
+			@Override
+			public Number getValue(int index) {
+				return getDecoded().getValue(index);
+			}
+
+			@Override
+			public String getStringValue(int index) {
+				return getDecoded().getStringValue(index);
+			}
+
+			@Override
+			public String toJSONString() {
+				return getDecoded().toJSONString();
+			}
+
+			@SuppressWarnings("rawtypes")
+			@Override
+			public List getValues() {
+				return getDecoded().getValues();
+			}
+
+			@Override
+			public String toString() {
+				return getDecoded().toString();
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				return getDecoded().equals(obj);
+			}
+
+			@Override
+			public int hashCode() {
+				return getDecoded().hashCode();
+			}
+		};
+	}
+
+	@Override
+	public Event makeClone() {
+		return getPBEvent().makeClone();
+	}
+
+	@Override
+	public ArchDBRTypes getDBRType() {
+		return dbrType;
+	}
+
+	@Override
+	public int getRepeatCount() {
+		if(isEncoded()) return pbEvent.getRepeatCount();
+		return 0;
+	}
+
+	@Override
+	public void setRepeatCount(int repeatCount) {
+		getPBEvent().setRepeatCount(repeatCount);
+	}
+
+	@Override
+	public int getStatus() {
+		if(isEncoded()) return pbEvent.getStatus();
+		return ((STS) dbr).getStatus().getValue();
+	}
+
+	@Override
+	public int getSeverity() {
+		if(isEncoded()) return pbEvent.getSeverity();
+		return ((STS) dbr).getSeverity().getValue();
+	}
+
+	@Override
+	public void setStatus(int status) {
+		getPBEvent().setStatus(status);
+	}
+
+	@Override
+	public void setSeverity(int severity) {
+		getPBEvent().setSeverity(severity);
+	}
+
+	@Override
+	public boolean hasFieldValues() {
+		if(isEncoded()) return pbEvent.hasFieldValues();
+		return false;
+	}
+
+	@Override
+	public boolean isActualChange() {
+		if(isEncoded()) return pbEvent.isActualChange();
+		return false;
+	}
+
+	@Override
+	public HashMap<String, String> getFields() {
+		if(isEncoded()) return pbEvent.getFields();
+		return new HashMap<String, String>();
+	}
+
+	@Override
+	public String getFieldValue(String fieldName) {
+		if(isEncoded()) return pbEvent.getFieldValue(fieldName);
+		return null;
+	}
+
+	@Override
+	public void markAsActualChange() {
+		getPBEvent().markAsActualChange();
+	}
+
+	@Override
+	public void addFieldValue(String fieldName, String fieldValue) {
+		getPBEvent().addFieldValue(fieldName, fieldValue);
+	}
+
+	@Override
+	public void setFieldValues(HashMap<String, String> fieldValues, boolean markAsActualChange) {
+		getPBEvent().setFieldValues(fieldValues, markAsActualChange);
+	}
+}
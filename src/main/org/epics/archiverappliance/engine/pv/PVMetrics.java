@@ -24,6 +24,7 @@ import org.apache.log4j.Logger;
 import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.DeferredVectorEvent;
 /***
  * PVMetrics includes the dynamic information of the pv
  * @author Luofeng Li
@@ -101,8 +102,11 @@ public class PVMetrics {
 	/**
 	 * This is the timestamp of the last event from the IOC regardless of whether the timestamp is accurate or not 
 	 * Note this may not be what's written out into the archive that we used to compare against to enforce monotonically increasing eventstreams
+	 * We store the epoch seconds and nanos instead of holding on to the Timestamp from the event; NO_EVENT_FROM_IOC if we have not received an event.
 	 */
-	private Timestamp lastEventFromIOCTimeStamp = null;
+	private long lastEventFromIOCEpochSeconds = NO_EVENT_FROM_IOC;
+	private int lastEventFromIOCNanos = 0;
+	private static final long NO_EVENT_FROM_IOC = Long.MIN_VALUE;
 
 	/**
 	 * The state of the connection at the last connectionChangedEvent.
@@ -111,6 +115,11 @@ public class PVMetrics {
 	 */
 	private boolean lastConnectionEventState;
 	
+	/**
+	 * Latency histograms for this PV; null unless per PV latencies are enabled.
+	 */
+	private SampleLatencies latencies = null;
+	
 	public void setHostName(String hostName) {
 		this.hostName = hostName;
 	}
@@ -142,11 +151,13 @@ public class PVMetrics {
     */
 
 	public void addTimestampWrongEventCount(Timestamp incorrectTimeStamp) {
-		if(lastEventFromIOCTimeStamp != null && incorrectTimeStamp != null && incorrectTimeStamp.equals(lastEventFromIOCTimeStamp)) { 
+		if(lastEventFromIOCEpochSeconds != NO_EVENT_FROM_IOC && incorrectTimeStamp != null 
+				&& TimeUtils.convertToEpochSeconds(incorrectTimeStamp) == lastEventFromIOCEpochSeconds 
+				&& incorrectTimeStamp.getNanos() == lastEventFromIOCNanos) { 
 			return;
 		}
 		
-		lastEventFromIOCTimeStamp = incorrectTimeStamp;
+		setLastEventFromIOCTimeStamp(incorrectTimeStamp);
 		timestampWrongEventCount++;
 	}
 
@@ -265,7 +276,8 @@ public class PVMetrics {
 	 */
 	public void addStorageSize(final DBRTimeEvent timeevent) {
 		// int count =timeevent.getSampleValue().getElementCount();
-		storageSize = storageSize + timeevent.getRawForm().len;
+		// Events whose samples are coalesced are encoded only at flush time; so we use an estimate for these.
+		storageSize = storageSize + ((timeevent instanceof DeferredVectorEvent) ? ((DeferredVectorEvent) timeevent).getEstimatedRawFormSize() : timeevent.getRawForm().len);
 		if (storageSize > ROTATEEVENTS_OR_STORAGE_LIMIT) {
 			eventCounts = 0;
 			storageSize = 0;
@@ -538,14 +550,20 @@ public class PVMetrics {
 	 * Note this may not be what's written out into the archive that we used to compare against to enforce monotonically increasing eventstreams
 	 */
 	public String getLastEventFromIOCTimeStampStr() {
-		if(lastEventFromIOCTimeStamp == null) return "N/A";
-		return TimeUtils.convertToHumanReadableString(lastEventFromIOCTimeStamp);
+		if(lastEventFromIOCEpochSeconds == NO_EVENT_FROM_IOC) return "N/A";
+		return TimeUtils.convertToHumanReadableString(TimeUtils.convertFromEpochSeconds(lastEventFromIOCEpochSeconds, lastEventFromIOCNanos));
 	}
 
 
 
 	public void setLastEventFromIOCTimeStamp(Timestamp lastEventFromIOCTimeStamp) {
-		this.lastEventFromIOCTimeStamp = lastEventFromIOCTimeStamp;
+		if(lastEventFromIOCTimeStamp == null) { 
+			this.lastEventFromIOCEpochSeconds = NO_EVENT_FROM_IOC;
+			this.lastEventFromIOCNanos = 0;
+			return;
+		}
+		this.lastEventFromIOCEpochSeconds = TimeUtils.convertToEpochSeconds(lastEventFromIOCTimeStamp);
+		this.lastEventFromIOCNanos = lastEventFromIOCTimeStamp.getNanos();
 	}
 
 	public boolean isLastConnectionEventState() {
@@ -556,6 +574,14 @@ public class PVMetrics {
 		this.lastConnectionEventState = lastConnectionEventState;
 	}
 
+	public SampleLatencies getLatencies() {
+		return latencies;
+	}
+
+	public void setLatencies(SampleLatencies latencies) {
+		this.latencies = latencies;
+	}
+
 	public void resetConnectionLastLostEpochSeconds() {
 		connectionLastLostEpochSeconds = 0;
 	}
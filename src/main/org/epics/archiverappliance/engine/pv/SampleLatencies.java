@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.pv;
+
+import java.text.DecimalFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.epics.archiverappliance.common.LatencyHistogram;
+
+/**
+ * Latency histograms for the path of a sample from the CA monitor callback to the short term store.
+ * <ol>
+ * <li>Callback to sample buffer - the time spent in the engine's PV listener adding the sample to the sample buffer.</li>
+ * <li>Sample buffer to flush start - how long the oldest sample in the sample buffer waited before the writer picked up the buffer.</li>
+ * <li>Flush duration - the time taken to append the samples for a PV to the short term store.</li>
+ * </ol>
+ * There is one set of histograms for the appliance; per PV histograms are maintained only if enabled in archappl.properties.
+ * @author mshankar
+ *
+ */
+public class SampleLatencies {
+	public static final String PER_PV_PROPERTY = "org.epics.archiverappliance.engine.pv.SampleLatencies.perPV";
+	public static final double[] REPORTED_PERCENTILES = new double[] { 50.0, 90.0, 99.0, 99.9 };
+
+	private static final SampleLatencies applianceLatencies = new SampleLatencies(4);
+	private static volatile boolean perPVLatenciesEnabled = false;
+
+	private final LatencyHistogram callbackToBuffer;
+	private final LatencyHistogram bufferToFlushStart;
+	private final LatencyHistogram flushDuration;
+
+	SampleLatencies(int subBucketBits) {
+		callbackToBuffer = new LatencyHistogram(subBucketBits);
+		bufferToFlushStart = new LatencyHistogram(subBucketBits);
+		flushDuration = new LatencyHistogram(subBucketBits);
+	}
+
+	/**
+	 * @return Latencies for a PV; uses coarser buckets than the appliance wide histograms.
+	 */
+	public static SampleLatencies newPVLatencies() {
+		return new SampleLatencies(2);
+	}
+
+	public static SampleLatencies getApplianceLatencies() {
+		return applianceLatencies;
+	}
+
+	public static boolean isPerPVLatenciesEnabled() {
+		return perPVLatenciesEnabled;
+	}
+
+	public static void setPerPVLatenciesEnabled(boolean enabled) {
+		perPVLatenciesEnabled = enabled;
+	}
+
+	/**
+	 * @param pvMetrics - Can be null
+	 * @param nanos
+	 */
+	public static void recordCallbackToBuffer(PVMetrics pvMetrics, long nanos) {
+		applianceLatencies.callbackToBuffer.recordNanos(nanos);
+		SampleLatencies pvLatencies = pvMetrics != null ? pvMetrics.getLatencies() : null;
+		if(pvLatencies != null) pvLatencies.callbackToBuffer.recordNanos(nanos);
+	}
+
+	public static void recordBufferToFlushStart(PVMetrics pvMetrics, long nanos) {
+		applianceLatencies.bufferToFlushStart.recordNanos(nanos);
+		SampleLatencies pvLatencies = pvMetrics != null ? pvMetrics.getLatencies() : null;
+		if(pvLatencies != null) pvLatencies.bufferToFlushStart.recordNanos(nanos);
+	}
+
+	public static void recordFlushDuration(PVMetrics pvMetrics, long nanos) {
+		applianceLatencies.flushDuration.recordNanos(nanos);
+		SampleLatencies pvLatencies = pvMetrics != null ? pvMetrics.getLatencies() : null;
+		if(pvLatencies != null) pvLatencies.flushDuration.recordNanos(nanos);
+	}
+
+	public LatencyHistogram getCallbackToBuffer() {
+		return callbackToBuffer;
+	}
+
+	public LatencyHistogram getBufferToFlushStart() {
+		return bufferToFlushStart;
+	}
+
+	public LatencyHistogram getFlushDuration() {
+		return flushDuration;
+	}
+
+	/**
+	 * The count, mean, max and percentiles (in milliseconds) for each of the latencies.
+	 * @return
+	 */
+	public List<Map<String, String>> getPercentiles() {
+		LinkedList<Map<String, String>> ret = new LinkedList<Map<String, String>>();
+		ret.add(getPercentiles("callbackToBuffer", callbackToBuffer));
+		ret.add(getPercentiles("bufferToFlushStart", bufferToFlushStart));
+		ret.add(getPercentiles("flushDuration", flushDuration));
+		return ret;
+	}
+
+	private static Map<String, String> getPercentiles(String name, LatencyHistogram histogram) {
+		DecimalFormat millisFormat = new DecimalFormat("###,###,###,###.###");
+		LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+		ret.put("latency", name);
+		ret.put("count", Long.toString(histogram.getCount()));
+		ret.put("meanMillis", millisFormat.format(histogram.getMeanMicros()/1000.0));
+		for(double percentile : REPORTED_PERCENTILES) {
+			ret.put("p" + formatPercentile(percentile) + "Millis", millisFormat.format(histogram.getMicrosAtPercentile(percentile)/1000.0));
+		}
+		ret.put("maxMillis", millisFormat.format(histogram.getMaxMicros()/1000.0));
+		return ret;
+	}
+
+	static String formatPercentile(double percentile) {
+		if(percentile == Math.rint(percentile)) return Integer.toString((int) percentile);
+		return Double.toString(percentile);
+	}
+}
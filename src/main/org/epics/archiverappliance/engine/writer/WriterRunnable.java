@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.util.Iterator;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.common.BasicContext;
@@ -21,6 +22,7 @@ import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
 import org.epics.archiverappliance.engine.model.ArchiveChannel;
 import org.epics.archiverappliance.engine.model.SampleBuffer;
 import org.epics.archiverappliance.engine.model.YearListener;
+import org.epics.archiverappliance.engine.pv.SampleLatencies;
 
 /**
  * WriterRunnable is scheduled by the executor in the engine context every writing period.
@@ -36,8 +38,8 @@ public class WriterRunnable implements Runnable {
 
 	/**the configservice used by this WriterRunnable*/
 	private ConfigService configservice = null;
-	/**is running?*/
-	private boolean isRunning=false;
+	/**Held while writing out sample buffers; so that the periodic write, the year change writes and the flushes of individual channels do not write the same buffer concurrently.*/
+	private final ReentrantLock writeLock = new ReentrantLock();
 /**
  * the constructor
  * @param configservice the configservice used by this WriterRunnable
@@ -131,85 +133,76 @@ public class WriterRunnable implements Runnable {
     * @throws IOException  error occurs during writing the sample buffer to the short term storage
     */
 	private void write(SampleBuffer buffer) throws IOException {
-		if(isRunning) return;
-		isRunning=true;
-		ConcurrentHashMap<String, ArchiveChannel> channelList = configservice
-				.getEngineContext().getChannelList();
-		buffer.updateStats();
-		String channelNname = buffer.getChannelName();
-		buffer.resetSamples();
-		ArrayListEventStream previousSamples = buffer.getPreviousSamples();
-		
-
-		try (BasicContext basicContext = new BasicContext()) {
-
+		writeLock.lock();
+		try {
+			buffer.updateStats();
+			String channelNname = buffer.getChannelName();
+			buffer.resetSamples();
+			ArrayListEventStream previousSamples = buffer.getPreviousSamples();
 			if (previousSamples.size() > 0) {
-				ArchiveChannel tempChannel = channelList.get(channelNname);
-				tempChannel.setlastRotateLogsEpochSeconds(System
-						.currentTimeMillis() / 1000);
-				tempChannel.getWriter().appendData(basicContext, channelNname,
-						previousSamples);
+				appendSamples(channelNname, previousSamples);
 			}
-		} catch (IOException e) {
-			throw (e);
+		} finally {
+			writeLock.unlock();
 		}
-		finally{
-			isRunning=false;
-		}
-		isRunning=false;
 	}
 /**
  * write all sample buffers into short term storage
  * @throws Exception error occurs during writing the sample buffer to the short term storage
  */
 	private void write() throws Exception {
-		if(isRunning) return;
-		isRunning=true;
-		ConcurrentHashMap<String, ArchiveChannel> channelList = configservice
-				.getEngineContext().getChannelList();
-		
-
-		Iterator<Entry<String, SampleBuffer>> it = buffers.entrySet()
-				.iterator();
-
-		
-		while (it.hasNext())
-		
-		{
-		
-			Entry<String, SampleBuffer> entry = (Entry<String, SampleBuffer>) it
-					.next();
-			SampleBuffer buffer = entry.getValue();
-		
-			buffer.updateStats();
-			String channelNname = buffer.getChannelName();
-			
-			buffer.resetSamples();
-			ArrayListEventStream previousSamples = buffer.getPreviousSamples();
-			try (BasicContext basicContext = new BasicContext()) {
-				if (previousSamples.size() > 0)
-
-				{
-					ArchiveChannel tempChannel = channelList.get(channelNname);
-					tempChannel.setlastRotateLogsEpochSeconds(System
-							.currentTimeMillis() / 1000);
-					tempChannel.getWriter().appendData(basicContext,
-							channelNname, previousSamples);
+		writeLock.lock();
+		try {
+			Iterator<Entry<String, SampleBuffer>> it = buffers.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Entry<String, SampleBuffer> entry = (Entry<String, SampleBuffer>) it
+						.next();
+				SampleBuffer buffer = entry.getValue();
+				buffer.updateStats();
+				String channelNname = buffer.getChannelName();
+				buffer.resetSamples();
+				ArrayListEventStream previousSamples = buffer.getPreviousSamples();
+				if (previousSamples.size() > 0) {
+					appendSamples(channelNname, previousSamples);
 				}
-			} catch (IOException e) {
-				throw (e);
-			}finally{
-				isRunning=false;
 			}
-
+		} finally {
+			writeLock.unlock();
 		}
-		
-		isRunning=false;
-		
-		
+	}
 
+	/**
+	 * Append the samples that were flushed out of the sample buffer for this channel to the first store.
+	 * @param channelName the name of the channel
+	 * @param samples the samples from the sample buffer
+	 * @throws IOException error occurs during writing the samples to the short term storage
+	 */
+	void appendSamples(String channelName, ArrayListEventStream samples) throws IOException {
+		ArchiveChannel tempChannel = configservice.getEngineContext().getChannelList().get(channelName);
+		try (BasicContext basicContext = new BasicContext()) {
+			tempChannel.setlastRotateLogsEpochSeconds(System
+					.currentTimeMillis() / 1000);
+			long flushStartNanos = System.nanoTime();
+			tempChannel.getWriter().appendData(basicContext, channelName,
+					samples);
+			SampleLatencies.recordFlushDuration(tempChannel.getPVMetrics(), System.nanoTime() - flushStartNanos);
+		}
+	}
 
+	/**
+	 * Write out the samples buffered for this channel; for example, before the channel is paused and resumed.
+	 * If the writer is busy writing out the sample buffers, we wait for it to finish; so stop the channel before flushing it to make sure we have all its samples.
+	 * @param channelName
+	 * @throws IOException
+	 */
+	public void flushChannel(String channelName) throws IOException {
+		SampleBuffer buffer = buffers.get(channelName);
+		if(buffer != null) {
+			write(buffer);
+		}
 	}
+	
 	/**
 	 * flush out the sample buffer to the short term storage before shutting down the engine
 	 * @throws Exception  error occurs during writing the sample buffer to the short term storage
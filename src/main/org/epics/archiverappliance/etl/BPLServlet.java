@@ -24,6 +24,8 @@ import org.epics.archiverappliance.config.ConfigService;
 import org.epics.archiverappliance.etl.bpl.ConsolidatePBFilesForOnePV;
 import org.epics.archiverappliance.etl.bpl.DeletePV;
 import org.epics.archiverappliance.etl.bpl.GetLastKnownEventTimeStamp;
+import org.epics.archiverappliance.etl.bpl.GetPBFileForPV;
+import org.epics.archiverappliance.etl.bpl.GetPBFilesForPV;
 import org.epics.archiverappliance.etl.bpl.PauseArchivingPV;
 import org.epics.archiverappliance.etl.bpl.reports.ApplianceMetrics;
 import org.epics.archiverappliance.etl.bpl.reports.ApplianceMetricsDetails;
@@ -55,6 +57,8 @@ public class BPLServlet extends HttpServlet {
 		getActions.put("/consolidateDataForPV", ConsolidatePBFilesForOnePV.class);
 		getActions.put("/pauseArchivingPV", PauseArchivingPV.class);
 		getActions.put("/deletePV", DeletePV.class);
+		getActions.put("/getPBFilesForPV", GetPBFilesForPV.class);
+		getActions.put("/getPBFileForPV", GetPBFileForPV.class);
 		getActions.put("/getProcessMetrics", ProcessMetricsReport.class);
 		getActions.put("/getVersion", GetVersion.class);
 	}
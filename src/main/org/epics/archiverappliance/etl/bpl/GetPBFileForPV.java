@@ -0,0 +1,67 @@
+package org.epics.archiverappliance.etl.bpl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.common.BPLAction;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.config.ConfigService;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PBFileTransfer;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
+
+/**
+ * Send the bytes of one of the PB files for a PV as is.
+ * The file is identified using the <code>file</code> from {@link GetPBFilesForPV}; the caller verifies the bytes using the checksum from there.
+ * The PV needs to be paused first.
+ * @author mshankar
+ *
+ */
+public class GetPBFileForPV implements BPLAction {
+	private static final Logger logger = Logger.getLogger(GetPBFileForPV.class);
+
+	@Override
+	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		String pvName = req.getParameter("pv");
+		String storageName = req.getParameter("storage");
+		String file = req.getParameter("file");
+		if(pvName == null || pvName.equals("") || storageName == null || storageName.equals("") || file == null || file.equals("")) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		PlainPBStoragePlugin plugin = GetPBFilesForPV.findPausedPVsPlainPBStore(configService, pvName, storageName);
+		if(plugin == null) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		Path path;
+		try(BasicContext context = new BasicContext()) {
+			path = PBFileTransfer.getPathForFile(plugin, context, pvName, file, false);
+		} catch(IOException ex) {
+			logger.error("Invalid file " + file + " for pv " + pvName, ex);
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		if(!Files.exists(path)) {
+			logger.error("File " + path.toString() + " for pv " + pvName + " does not exist");
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		resp.setContentType("application/octet-stream");
+		resp.setHeader("Content-Length", Long.toString(Files.size(path)));
+		try(OutputStream os = resp.getOutputStream()) {
+			Files.copy(path, os);
+		}
+		logger.debug("Sent file " + path.toString() + " for pv " + pvName);
+	}
+}
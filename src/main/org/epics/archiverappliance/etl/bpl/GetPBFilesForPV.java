@@ -0,0 +1,94 @@
+package org.epics.archiverappliance.etl.bpl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.StoragePlugin;
+import org.epics.archiverappliance.common.BPLAction;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.PVTypeInfo;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
+import org.json.simple.JSONValue;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PBFileTransfer;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
+
+/**
+ * List the PB files for a PV in a store along with their sizes and checksums.
+ * This is used by the destination appliance when resharding a PV by transferring the files as is.
+ * The PV needs to be paused first.
+ * @author mshankar
+ *
+ */
+public class GetPBFilesForPV implements BPLAction {
+	private static final Logger logger = Logger.getLogger(GetPBFilesForPV.class);
+
+	@Override
+	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		String pvName = req.getParameter("pv");
+		String storageName = req.getParameter("storage");
+		if(pvName == null || pvName.equals("") || storageName == null || storageName.equals("")) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		PlainPBStoragePlugin plugin = findPausedPVsPlainPBStore(configService, pvName, storageName);
+		if(plugin == null) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		try(BasicContext context = new BasicContext()) {
+			List<Map<String, String>> files = PBFileTransfer.listFilesForPV(plugin, context, pvName);
+			logger.info("Found " + files.size() + " files for pv " + pvName + " in store " + storageName);
+			resp.setContentType(MimeTypeConstants.APPLICATION_JSON);
+			try(PrintWriter out = resp.getWriter()) {
+				out.println(JSONValue.toJSONString(files));
+			}
+		} catch(IOException ex) {
+			logger.error("Exception listing the files for pv " + pvName + " in store " + storageName, ex);
+			resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Find the store with the specified name for this PV.
+	 * We return null if the PV is not paused or if the store is not a PlainPB store.
+	 * @param configService
+	 * @param pvName
+	 * @param storageName
+	 * @return
+	 * @throws IOException
+	 */
+	static PlainPBStoragePlugin findPausedPVsPlainPBStore(ConfigService configService, String pvName, String storageName) throws IOException {
+		PVTypeInfo typeInfo = configService.getTypeInfoForPV(pvName);
+		if(typeInfo == null) {
+			logger.error("Unable to find typeinfo for pv " + pvName);
+			return null;
+		}
+		if(!typeInfo.isPaused()) {
+			logger.error("PV " + pvName + " needs to be paused before we can transfer its files");
+			return null;
+		}
+		for(String store : typeInfo.getDataStores()) {
+			StoragePlugin plugin = StoragePluginURLParser.parseStoragePlugin(store, configService);
+			if(plugin.getName().equals(storageName)) {
+				if(plugin instanceof PlainPBStoragePlugin) {
+					return (PlainPBStoragePlugin) plugin;
+				}
+				logger.error("Store " + storageName + " for pv " + pvName + " is not a PlainPB store");
+				return null;
+			}
+		}
+		logger.error("Cannot find storage with name " + storageName + " for pv " + pvName);
+		return null;
+	}
+}
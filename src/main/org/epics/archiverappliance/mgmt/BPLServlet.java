@@ -44,6 +44,7 @@ import org.epics.archiverappliance.mgmt.bpl.GetPVStatusAction;
 import org.epics.archiverappliance.mgmt.bpl.GetPVTypeInfo;
 import org.epics.archiverappliance.mgmt.bpl.GetPVsForThisAppliance;
 import org.epics.archiverappliance.mgmt.bpl.GetPausedPVsForThisAppliance;
+import org.epics.archiverappliance.mgmt.bpl.GetReshardStatus;
 import org.epics.archiverappliance.mgmt.bpl.GetStoresForPV;
 import org.epics.archiverappliance.mgmt.bpl.GetVersions;
 import org.epics.archiverappliance.mgmt.bpl.ImportChannelArchiverConfigAction;
@@ -122,6 +123,7 @@ public class BPLServlet extends HttpServlet {
 		addAction("/getAppliancesInCluster", GetAppliancesInCluster.class);
 		addAction("/renamePV", RenamePVAction.class);
 		addAction("/reshardPV", ReshardPV.class);
+		addAction("/getReshardStatus", GetReshardStatus.class);
 		addAction("/addAlias", AddAliasAction.class);
 		addAction("/removeAlias", RemoveAliasAction.class);
 		addAction("/skipAliasCheck", SkipAliasCheckAction.class);
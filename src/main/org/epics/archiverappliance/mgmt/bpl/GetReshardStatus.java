@@ -0,0 +1,49 @@
+package org.epics.archiverappliance.mgmt.bpl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.epics.archiverappliance.common.BPLAction;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
+import org.json.simple.JSONValue;
+
+/**
+ * Gets the progress of the file transfers for the reshard requests driven by this appliance.
+ * 
+ * @epics.BPLAction - Gets the progress and throughput of the file transfers for PVs being resharded onto this appliance using <code>transfer=files</code>. The reshard is driven by the destination appliance; so this needs to be called on the destination appliance. The last few completed transfers are also included.
+ * @epics.BPLActionParam pv - Optional; the name of the pv. If not specified, we return the status of all the transfers we know of.
+ * @epics.BPLActionEnd
+ * @author mshankar
+ *
+ */
+public class GetReshardStatus implements BPLAction {
+
+	@Override
+	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		String pvName = req.getParameter("pv");
+		resp.setContentType(MimeTypeConstants.APPLICATION_JSON);
+		if(pvName == null || pvName.equals("")) {
+			try(PrintWriter out = resp.getWriter()) {
+				out.println(JSONValue.toJSONString(ReshardTransferStatus.getAllTransfers()));
+			}
+			return;
+		}
+
+		String realName = configService.getRealNameForAlias(pvName);
+		if(realName != null) pvName = realName;
+
+		Map<String, String> status = ReshardTransferStatus.getTransfer(pvName);
+		if(status == null) {
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		try(PrintWriter out = resp.getWriter()) {
+			out.println(JSONValue.toJSONString(status));
+		}
+	}
+}
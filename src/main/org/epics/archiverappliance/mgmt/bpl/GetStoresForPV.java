@@ -51,7 +51,7 @@ public class GetStoresForPV implements BPLAction {
 		try (PrintWriter out = resp.getWriter()) {
 			LinkedList<String> stores = new LinkedList<String>();
 			for(String store : typeInfo.getDataStores()) {
-				StoragePlugin plugin = StoragePluginURLParser.parseStoragePlugin(store, configService);
+				StoragePlugin plugin = StoragePluginURLParser.getCachedStoragePlugin(store, configService);
 				stores.add(plugin.getName());
 			}
 			out.println(JSONValue.toJSONString(stores));
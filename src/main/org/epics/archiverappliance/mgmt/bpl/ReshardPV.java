@@ -1,17 +1,26 @@
 package org.epics.archiverappliance.mgmt.bpl;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Timestamp;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Callable;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.Event;
 import org.epics.archiverappliance.EventStream;
@@ -27,9 +36,13 @@ import org.epics.archiverappliance.config.exception.AlreadyRegisteredException;
 import org.epics.archiverappliance.retrieval.postprocessors.DefaultRawPostProcessor;
 import org.epics.archiverappliance.utils.ui.GetUrlContent;
 import org.epics.archiverappliance.utils.ui.MimeTypeConstants;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
+import edu.stanford.slac.archiverappliance.PlainPB.PBFileTransfer;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
+
 /**
  * <div>Reshards the PV to another appliance. This is a complex BPL whose implementation uses functionality provided by existing BPL.</div>
  * 
@@ -47,10 +60,24 @@ import org.json.simple.JSONValue;
  * </ol>
  * </div>
  * 
+ * <div>
+ * For PVs with lots of data, decoding and re-encoding every event can take a long time.
+ * If the store is a PlainPB store, one can use <code>transfer=files</code> to move the PB files over as is.
+ * After consolidating the data, the sequence of steps are
+ * <ol>
+ * <li>Get the list of files along with their sizes and checksums from the src appliance using the <code>getPBFilesForPV</code> ETL BPL.</li>
+ * <li>Copy each file into a staging folder in the destination store using the <code>getPBFileForPV</code> ETL BPL and verify the size, checksum and the header/first/last events of the file.</li>
+ * <li>Delete the source PV along with it's data by calling the {@link org.epics.archiverappliance.mgmt.bpl.DeletePV delete BPL}</li>
+ * <li>Register the PV to this appliance and move the files from the staging folder into the store.</li>
+ * </ol>
+ * The progress and throughput of the transfer can be monitored using the {@link org.epics.archiverappliance.mgmt.bpl.GetReshardStatus reshard status BPL}.
+ * </div>
+ * 
  * @epics.BPLAction - This BPL reassigns the PV to another appliance. This is a complex BPL that also moves data over to the other appliance. For more details on the sequence of steps, see the Javadoc for the BPL.
  * @epics.BPLActionParam pv - The name of the pv. The PV needs to be paused first and will remain in a paused state after the resharding is complete.
  * @epics.BPLActionParam appliance - The new appliance to assign the PV to. This is the same string as the <code>identity</code> element in the <code>appliances.xml</code> that identifies this appliance.
  * @epics.BPLActionParam storage - The name of the store until which we'll consolidate data before resharding. The data is moved over to the store with the same name on the new appliance. This is typically a string like LTS.
+ * @epics.BPLActionParam transfer - Optional; how the data is moved. The default, <code>events</code>, moves the data event by event. Use <code>files</code> to move the PB files as is; this is much faster for PVs with lots of data and only works for PlainPB stores that are not compressed.
  * @epics.BPLActionEnd
  *
  * 
@@ -58,6 +85,8 @@ import org.json.simple.JSONValue;
  */
 public class ReshardPV implements BPLAction {
 	private static Logger logger = Logger.getLogger(ReshardPV.class.getName());
+	private static final String TRANSFER_EVENTS = "events";
+	private static final String TRANSFER_FILES = "files";
 
 	@Override
 	public void execute(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
@@ -79,6 +108,15 @@ public class ReshardPV implements BPLAction {
 			return;
 		}
 
+		String transferMode = req.getParameter("transfer");
+		if(transferMode == null || transferMode.equals("")) {
+			transferMode = TRANSFER_EVENTS;
+		}
+		if(!transferMode.equals(TRANSFER_EVENTS) && !transferMode.equals(TRANSFER_FILES)) {
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
 		// String pvNameFromRequest = pvName;
 		String realName = configService.getRealNameForAlias(srcPVName);
 		if(realName != null) srcPVName = realName;
@@ -122,7 +160,9 @@ public class ReshardPV implements BPLAction {
 					+ "&storage=" 
 					+ URLEncoder.encode(storageName, "UTF-8")
 					+ "&appliance=" 
-					+ URLEncoder.encode(destApplianceIdentity, "UTF-8"); 
+					+ URLEncoder.encode(destApplianceIdentity, "UTF-8")
+					+ "&transfer="
+					+ URLEncoder.encode(transferMode, "UTF-8");
 
 			logger.info("Redirecting resharding request for PV to " + destApplianceIdentity + " using URL " + redirectURL);
 			JSONObject status = GetUrlContent.getURLContentAsJSONObject(redirectURL);
@@ -179,6 +219,12 @@ public class ReshardPV implements BPLAction {
 			}
 		}
 
+		if(transferMode.equals(TRANSFER_FILES)) {
+			logger.info("Done consolidating data for PV using URL " + ETLConsolidateURL + ". Now transferring the files");
+			reshardByTransferringFiles(resp, configService, srcPVName, srcTypeInfo, srcApplianceInfo, storageName, infoValues);
+			return;
+		}
+
 		logger.info("Done consolidating data for PV using URL " + ETLConsolidateURL + ". Now cloning the type info");
 		
 		
@@ -336,6 +382,172 @@ public class ReshardPV implements BPLAction {
 		}
 	}
 
+	/**
+	 * Reshard by moving the PB files in the store over as is.
+	 * The files are copied into a staging folder in the destination store and verified.
+	 * We then install the files into the destination store and verify them again; only then do we delete the source PV.
+	 * If anything fails before the source PV is deleted, we remove the installed files and leave the source PV as is.
+	 */
+	private void reshardByTransferringFiles(HttpServletResponse resp, ConfigService configService, String srcPVName, PVTypeInfo srcTypeInfo, ApplianceInfo srcApplianceInfo, String storageName, HashMap<String, Object> infoValues) throws IOException {
+		ApplianceInfo myApplianceInfo = configService.getMyApplianceInfo();
+		ReshardTransferStatus transferStatus = ReshardTransferStatus.startTransfer(srcPVName, srcApplianceInfo.getIdentity(), myApplianceInfo.getIdentity(), storageName);
+
+		PVTypeInfo destTypeInfo = new PVTypeInfo(srcPVName, srcTypeInfo);
+		destTypeInfo.setCreationTime(srcTypeInfo.getCreationTime());
+		destTypeInfo.setModificationTime(TimeUtils.now());
+		destTypeInfo.setApplianceIdentity(myApplianceInfo.getIdentity());
+		PlainPBStoragePlugin destPlugin = null;
+		for(String store : destTypeInfo.getDataStores()) {
+			StoragePlugin plugin = StoragePluginURLParser.parseStoragePlugin(store, configService);
+			if(plugin.getName().equals(storageName) && plugin instanceof PlainPBStoragePlugin) {
+				destPlugin = (PlainPBStoragePlugin) plugin;
+				break;
+			}
+		}
+		if(destPlugin == null) {
+			sendFileTransferFailure(resp, transferStatus, infoValues, "Store " + storageName + " for pv " + srcPVName + " is not a PlainPB store; cannot transfer files.", null);
+			return;
+		}
+
+		String listFilesURL = srcApplianceInfo.getEtlURL() + "/getPBFilesForPV" 
+				+ "?pv=" + URLEncoder.encode(srcPVName, "UTF-8")
+				+ "&storage=" + URLEncoder.encode(storageName, "UTF-8"); 
+		transferStatus.setState("Listing files");
+		logger.info("Getting the list of files for PV using URL " + listFilesURL);
+		JSONArray filesArray = GetUrlContent.getURLContentAsJSONArray(listFilesURL);
+		if(filesArray == null) {
+			sendFileTransferFailure(resp, transferStatus, infoValues, "Unable to get the list of files for PV " + srcPVName + " using " + listFilesURL, null);
+			return;
+		}
+		LinkedList<Map<String, String>> files = new LinkedList<Map<String, String>>();
+		long totalBytes = 0;
+		for(Object fileObj : filesArray) {
+			HashMap<String, String> fileDetails = new HashMap<String, String>();
+			for(Object entryObj : ((JSONObject) fileObj).entrySet()) {
+				Map.Entry<?, ?> entry = (Map.Entry<?, ?>) entryObj;
+				fileDetails.put((String) entry.getKey(), (String) entry.getValue());
+			}
+			totalBytes += Long.parseLong(fileDetails.get("size"));
+			files.add(fileDetails);
+		}
+		transferStatus.setTotals(files.size(), totalBytes);
+		logger.info("Transferring " + files.size() + " files with " + totalBytes + " bytes for PV " + srcPVName);
+
+		Path stagingFolder = null;
+		LinkedList<Path> stagedPaths = new LinkedList<Path>();
+		try(BasicContext context = new BasicContext()) {
+			Path storeRootFolder = context.getPaths().get(destPlugin.getRootFolder());
+			Files.createDirectories(storeRootFolder);
+			stagingFolder = Files.createTempDirectory(storeRootFolder, ".reshard_");
+			transferStatus.setState("Transferring files");
+			int fileNum = 0;
+			for(Map<String, String> fileDetails : files) {
+				String file = fileDetails.get("file");
+				transferStatus.startingFile(file);
+				Path stagedPath = stagingFolder.resolve("file_" + (fileNum++));
+				String fileURL = srcApplianceInfo.getEtlURL() + "/getPBFileForPV" 
+						+ "?pv=" + URLEncoder.encode(srcPVName, "UTF-8")
+						+ "&storage=" + URLEncoder.encode(storageName, "UTF-8")
+						+ "&file=" + URLEncoder.encode(file, "UTF-8");
+				HttpURLConnection connection = (HttpURLConnection) new URL(fileURL).openConnection();
+				connection.connect();
+				if(connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+					throw new IOException("Response code " + connection.getResponseCode() + " when getting file using " + fileURL);
+				}
+				try(InputStream is = new BufferedInputStream(connection.getInputStream())) {
+					PBFileTransfer.receiveFile(is, fileDetails, srcPVName, stagedPath, transferStatus);
+				}
+				stagedPaths.add(stagedPath);
+				transferStatus.fileTransferred();
+			}
+		} catch(Exception ex) {
+			deleteStagingFolder(stagingFolder);
+			sendFileTransferFailure(resp, transferStatus, infoValues, "Exception transferring files for " + srcPVName + " " + ex.getMessage() + ". Giving up on resharding " + srcPVName, ex);
+			return;
+		}
+
+		logger.info("Transferred and verified " + files.size() + " files for PV " + srcPVName + " at " + String.format("%.2f", transferStatus.getThroughputMBPerSec()) + " MB/s");
+		infoValues.put("filesTransferred", Integer.toString(files.size()));
+		infoValues.put("bytesTransferred", Long.toString(transferStatus.getBytesTransferred()));
+		infoValues.put("throughputMBPerSec", String.format("%.2f", transferStatus.getThroughputMBPerSec()));
+
+		transferStatus.setState("Installing files");
+		LinkedList<String> installedFiles = new LinkedList<String>();
+		try(BasicContext context = new BasicContext()) {
+			int fileNum = 0;
+			for(Map<String, String> fileDetails : files) {
+				PBFileTransfer.installFile(destPlugin, context, srcPVName, fileDetails.get("file"), stagedPaths.get(fileNum++));
+				installedFiles.add(fileDetails.get("file"));
+				PBFileTransfer.verifyInstalledFile(destPlugin, context, srcPVName, fileDetails);
+			}
+		} catch(Exception ex) {
+			uninstallFiles(destPlugin, srcPVName, installedFiles);
+			deleteStagingFolder(stagingFolder);
+			sendFileTransferFailure(resp, transferStatus, infoValues, "Exception installing the transferred files for " + srcPVName + " " + ex.getMessage() + ". Giving up on resharding " + srcPVName, ex);
+			return;
+		}
+		deleteStagingFolder(stagingFolder);
+
+		transferStatus.setState("Deleting source PV");
+		String deleteURL = srcApplianceInfo.getMgmtURL() + "/deletePV?pv=" + URLEncoder.encode(srcPVName, "UTF-8") + "&deleteData=true";
+		logger.info("Deleting original PV from system using " + deleteURL);
+		JSONObject deleteStatus =  GetUrlContent.getURLContentAsJSONObject(deleteURL);
+		if(deleteStatus == null || deleteStatus.equals("") || !deleteStatus.containsKey("status") || !((String)deleteStatus.get("status")).equalsIgnoreCase("ok")) {
+			uninstallFiles(destPlugin, srcPVName, installedFiles);
+			sendFileTransferFailure(resp, transferStatus, infoValues, "Invalid status deleting original PV from system using " + deleteURL + ". Giving up on resharding " + srcPVName, null);
+			return;
+		}
+		infoValues.put("deleteOriginal", "ok");
+
+		transferStatus.setState("Registering PV");
+		try {
+			configService.registerPVToAppliance(srcPVName, myApplianceInfo);
+			configService.updateTypeInfoForPV(srcPVName, destTypeInfo);
+		} catch(Exception ex) {
+			// The data is already in this appliance's store; we only need to add the PV back.
+			sendFileTransferFailure(resp, transferStatus, infoValues, "Exception registering " + srcPVName + " to this appliance " + ex.getMessage() + ". The data for the PV is in the store " + storageName + " on this appliance.", ex);
+			return;
+		}
+
+		transferStatus.completed();
+		try(PrintWriter out = resp.getWriter()) {
+			infoValues.put("status", "ok");
+			infoValues.put("desc", "Successfully assigned " + srcPVName + " to appliance " + myApplianceInfo.getIdentity());
+			out.println(JSONValue.toJSONString(infoValues));
+		}
+	}
+
+	private void sendFileTransferFailure(HttpServletResponse resp, ReshardTransferStatus transferStatus, HashMap<String, Object> infoValues, String errorMsg, Exception ex) throws IOException {
+		logger.error(errorMsg, ex);
+		transferStatus.failed(errorMsg);
+		try(PrintWriter out = resp.getWriter()) {
+			infoValues.put("validation", errorMsg);
+			out.println(JSONValue.toJSONString(infoValues));
+		}
+	}
+
+	/**
+	 * Roll back the files we installed for a transfer that could not be completed.
+	 */
+	private void uninstallFiles(PlainPBStoragePlugin destPlugin, String pvName, List<String> installedFiles) {
+		try(BasicContext context = new BasicContext()) {
+			for(String file : installedFiles) {
+				PBFileTransfer.uninstallFile(destPlugin, context, pvName, file);
+			}
+		} catch(Throwable t) {
+			logger.error("Exception removing the installed files " + installedFiles + " for pv " + pvName, t);
+		}
+	}
+
+	private void deleteStagingFolder(Path stagingFolder) {
+		if(stagingFolder == null) return;
+		try {
+			FileUtils.deleteDirectory(stagingFolder.toFile());
+		} catch(Throwable t) {
+			logger.error("Exception deleting staging folder " + stagingFolder.toString(), t);
+		}
+	}
+
 	private void cleanupTemporaryPV(ConfigService configService, String destPVName) {
 		try { 
 			String deleteURL = configService.getMyApplianceInfo().getMgmtURL() + "/deletePV?pv=" + URLEncoder.encode(destPVName, "UTF-8") + "&deleteData=true";
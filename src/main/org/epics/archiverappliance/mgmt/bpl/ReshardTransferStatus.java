@@ -0,0 +1,164 @@
+package org.epics.archiverappliance.mgmt.bpl;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.epics.archiverappliance.common.TimeUtils;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PBFileTransfer.TransferProgress;
+
+/**
+ * Progress of the file transfers for the reshard requests being driven by this appliance.
+ * We also remember the last few completed (or failed) transfers.
+ * @author mshankar
+ *
+ */
+public class ReshardTransferStatus implements TransferProgress {
+	private static final int MAX_TRANSFERS_TO_REMEMBER = 100;
+	@SuppressWarnings("serial")
+	private static final LinkedHashMap<String, ReshardTransferStatus> transfers = new LinkedHashMap<String, ReshardTransferStatus>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ReshardTransferStatus> eldest) {
+			return this.size() > MAX_TRANSFERS_TO_REMEMBER && eldest.getValue().isDone();
+		}
+	};
+
+	private final String pvName;
+	private final String srcAppliance;
+	private final String destAppliance;
+	private final String storage;
+	private final long startTimeMillis = System.currentTimeMillis();
+	private volatile long endTimeMillis = -1;
+	private volatile String state = "Starting";
+	private volatile String currentFile = null;
+	private volatile int totalFiles = 0;
+	private volatile int filesTransferred = 0;
+	private volatile long totalBytes = 0;
+	private final AtomicLong bytesTransferred = new AtomicLong(0);
+
+	private ReshardTransferStatus(String pvName, String srcAppliance, String destAppliance, String storage) {
+		this.pvName = pvName;
+		this.srcAppliance = srcAppliance;
+		this.destAppliance = destAppliance;
+		this.storage = storage;
+	}
+
+	/**
+	 * Start tracking a new transfer for this PV; this replaces any previous transfer for this PV.
+	 * @param pvName
+	 * @param srcAppliance
+	 * @param destAppliance
+	 * @param storage
+	 * @return
+	 */
+	public static ReshardTransferStatus startTransfer(String pvName, String srcAppliance, String destAppliance, String storage) {
+		ReshardTransferStatus status = new ReshardTransferStatus(pvName, srcAppliance, destAppliance, storage);
+		synchronized(transfers) {
+			transfers.remove(pvName);
+			transfers.put(pvName, status);
+		}
+		return status;
+	}
+
+	/**
+	 * @return The status of all the transfers we know of with the most recent transfers last.
+	 */
+	public static List<Map<String, String>> getAllTransfers() {
+		LinkedList<Map<String, String>> ret = new LinkedList<Map<String, String>>();
+		synchronized(transfers) {
+			for(ReshardTransferStatus status : transfers.values()) {
+				ret.add(status.toMap());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @param pvName
+	 * @return The status of the transfer for this PV or null if we do not know of one.
+	 */
+	public static Map<String, String> getTransfer(String pvName) {
+		synchronized(transfers) {
+			ReshardTransferStatus status = transfers.get(pvName);
+			return status != null ? status.toMap() : null;
+		}
+	}
+
+	public void setState(String state) {
+		this.state = state;
+	}
+
+	public void setTotals(int totalFiles, long totalBytes) {
+		this.totalFiles = totalFiles;
+		this.totalBytes = totalBytes;
+	}
+
+	public void startingFile(String file) {
+		this.currentFile = file;
+	}
+
+	public void fileTransferred() {
+		this.filesTransferred++;
+		this.currentFile = null;
+	}
+
+	@Override
+	public void bytesTransferred(long bytes) {
+		bytesTransferred.addAndGet(bytes);
+	}
+
+	public void completed() {
+		this.state = "Complete";
+		this.endTimeMillis = System.currentTimeMillis();
+	}
+
+	public void failed(String reason) {
+		this.state = "Failed - " + reason;
+		this.endTimeMillis = System.currentTimeMillis();
+	}
+
+	public boolean isDone() {
+		return endTimeMillis != -1;
+	}
+
+	public long getBytesTransferred() {
+		return bytesTransferred.get();
+	}
+
+	/**
+	 * @return The throughput so far in MB/s
+	 */
+	public double getThroughputMBPerSec() {
+		long elapsedMillis = (isDone() ? endTimeMillis : System.currentTimeMillis()) - startTimeMillis;
+		if(elapsedMillis <= 0) return 0.0;
+		return (bytesTransferred.get()/(1024.0*1024.0))/(elapsedMillis/1000.0);
+	}
+
+	private Map<String, String> toMap() {
+		HashMap<String, String> ret = new HashMap<String, String>();
+		ret.put("pvName", pvName);
+		ret.put("srcAppliance", srcAppliance);
+		ret.put("destAppliance", destAppliance);
+		ret.put("storage", storage);
+		ret.put("state", state);
+		ret.put("startTime", TimeUtils.convertToHumanReadableString(startTimeMillis/1000));
+		ret.put("elapsedSeconds", Long.toString(((isDone() ? endTimeMillis : System.currentTimeMillis()) - startTimeMillis)/1000));
+		if(isDone()) {
+			ret.put("endTime", TimeUtils.convertToHumanReadableString(endTimeMillis/1000));
+		}
+		if(currentFile != null) {
+			ret.put("currentFile", currentFile);
+		}
+		ret.put("totalFiles", Integer.toString(totalFiles));
+		ret.put("filesTransferred", Integer.toString(filesTransferred));
+		ret.put("totalBytes", Long.toString(totalBytes));
+		ret.put("bytesTransferred", Long.toString(bytesTransferred.get()));
+		ret.put("percentComplete", String.format("%.1f", totalBytes > 0 ? (bytesTransferred.get()*100.0)/totalBytes : 0.0));
+		ret.put("throughputMBPerSec", String.format("%.2f", getThroughputMBPerSec()));
+		return ret;
+	}
+}
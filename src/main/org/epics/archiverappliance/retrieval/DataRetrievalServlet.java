@@ -22,6 +22,7 @@ import java.sql.Timestamp;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -62,6 +63,7 @@ import org.epics.archiverappliance.config.StoragePluginURLParser;
 import org.epics.archiverappliance.data.ScalarValue;
 import org.epics.archiverappliance.etl.ETLDest;
 import org.epics.archiverappliance.mgmt.policy.PolicyConfig.SamplingMethod;
+import org.epics.archiverappliance.retrieval.mimeresponses.ColumnarBinaryResponse;
 import org.epics.archiverappliance.retrieval.mimeresponses.FlxXMLResponse;
 import org.epics.archiverappliance.retrieval.mimeresponses.JPlotResponse;
 import org.epics.archiverappliance.retrieval.mimeresponses.JSONResponse;
@@ -78,7 +80,9 @@ import org.epics.archiverappliance.retrieval.postprocessors.FirstSamplePP;
 import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
 import org.epics.archiverappliance.retrieval.postprocessors.PostProcessorWithConsolidatedEventStream;
 import org.epics.archiverappliance.retrieval.postprocessors.PostProcessors;
+import org.epics.archiverappliance.retrieval.postprocessors.RemotedPostProcessor;
 import org.epics.archiverappliance.retrieval.workers.CurrentThreadExecutorService;
+import org.epics.archiverappliance.retrieval.workers.PrefetchedEventStream;
 import org.epics.archiverappliance.utils.simulation.SimulationEvent;
 import org.epics.archiverappliance.utils.ui.GetUrlContent;
 import org.json.simple.JSONObject;
@@ -117,6 +121,7 @@ public class DataRetrievalServlet  extends HttpServlet {
 		mimeresponses.put("flx", new MimeMappingInfo(FlxXMLResponse.class, "text/xml"));
 		mimeresponses.put("txt", new MimeMappingInfo(TextResponse.class, "text/plain"));
 		mimeresponses.put("mat", new MimeMappingInfo(MatlabResponse.class, "application/matlab"));
+		mimeresponses.put("cbin", new MimeMappingInfo(ColumnarBinaryResponse.class, "application/x-archappl-columnar"));
 	}
 	
 	
@@ -135,6 +140,9 @@ public class DataRetrievalServlet  extends HttpServlet {
 		} else if (requestName.equals("getDataForPVs")) {
 			logger.info("User requesting data for multiple PVs");
 			doGetMultiPV(req, resp);
+		} else if (requestName.equals("subscribe")) {
+			logger.info("User subscribing to the new samples of one or more PVs");
+			LiveSubscriptionProxy.subscribe(req, resp, configService);
 		} else {
 			String msg = "\"" + requestName + "\" is not a valid API method.";
 			resp.setHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, msg);
@@ -550,8 +558,8 @@ public class DataRetrievalServlet  extends HttpServlet {
 		String extension = req.getPathInfo().split("\\.")[1];
 		logger.info("Mime is " + extension);
 		
-		if (!extension.equals("json") && !extension.equals("raw") && !extension.equals("jplot")) {
-			String msg = "Mime type " + extension + " is not supported. Please use \"json\", \"jplot\" or \"raw\".";
+		if (!extension.equals("json") && !extension.equals("raw") && !extension.equals("jplot") && !extension.equals("cbin")) {
+			String msg = "Mime type " + extension + " is not supported. Please use \"json\", \"jplot\", \"cbin\" or \"raw\".";
 			resp.setHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
 			resp.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
 			return;
@@ -847,6 +855,26 @@ public class DataRetrievalServlet  extends HttpServlet {
 			}
 		}
 		
+		// For PVs on other appliances, we run the post processor on the other appliance (where the data is) if we can.
+		boolean remotePostProcessing = Boolean.parseBoolean(configService.getInstallationProperties().getProperty("org.epics.archiverappliance.retrieval.postprocessors.RemotedPostProcessor.enabled", "true"));
+		for (int i = 0; remotePostProcessing && i < pvNames.size(); i++) {
+			if(!applianceForPVs.get(i).equals(configService.getMyApplianceInfo()) && RemotedPostProcessor.canBeRemoted(postProcessors.get(i), postProcessorUserArgs.get(i))) {
+				logger.debug("Running post processor " + postProcessorUserArgs.get(i) + " for pv " + pvNames.get(i) + " on appliance " + applianceForPVs.get(i).getIdentity());
+				postProcessors.set(i, new RemotedPostProcessor(postProcessors.get(i), postProcessorUserArgs.get(i)));
+			}
+		}
+
+		// The engine's data for the PVs in this appliance is fetched in one call to the engine when the first of these PVs needs it.
+		List<String> pvNamesForEngineBatch = new ArrayList<String>();
+		for (int i = 0; i < pvNames.size(); i++) {
+			if(applianceForPVs.get(i).equals(configService.getMyApplianceInfo()) && typeInfos.get(i).getSamplingMethod() != SamplingMethod.DONT_ARCHIVE) {
+				pvNamesForEngineBatch.add(typeInfos.get(i).getPvName());
+			}
+		}
+		if(pvNamesForEngineBatch.size() > 1) {
+			req.setAttribute(EngineTailBatch.REQUEST_ATTRIBUTE, new EngineTailBatch(configService.getMyApplianceInfo().getEngineURL(), pvNamesForEngineBatch, start, end));
+		}
+
 		/*
 		 * MergeDedupConsumer is what writes PB data in its respective format to the HTML response.
 		 * The response, after the MergeDedupConsumer is created, contains the following:
@@ -873,47 +901,31 @@ public class DataRetrievalServlet  extends HttpServlet {
 		 * RetrievalExecutorResult contains a thread service class and the time spans Presumably, the 
 		 * thread service is what retrieves the data, and the BasicContext is the context in which it 
 		 * works.
+		 * The post processors estimate their memory consumption here; we use this to limit the number of PVs we fetch ahead of time.
 		 */
-		List<HashMap<String, String>> engineMetadatas = new ArrayList<HashMap<String, String>>();
-		try {
-			List<BasicContext> retrievalContexts = new ArrayList<BasicContext>(pvNames.size());
-			List<RetrievalExecutorResult> executorResults = new ArrayList<RetrievalExecutorResult>(pvNames.size());
-			for (int i = 0; i < pvNames.size(); i++) {
-				if(fetchLatestMetadata) {
-					// Make a call to the engine to fetch the latest metadata.
-					engineMetadatas.add(fetchLatestMedataFromEngine(pvNames.get(i), applianceForPVs.get(i)));
-				}
-				retrievalContexts.add(new BasicContext(typeInfos.get(i).getDBRType(), pvNamesFromRequests.get(i)));
-				executorResults.add(determineExecutorForPostProcessing(pvNames.get(i), typeInfos.get(i), requestTimes, req, postProcessors.get(i)));
-			}
-			
-			/*
-			 * There are as many Future objects in the eventStreamFutures List as there are periods over 
-			 * which to fetch data. Retrieval of data happen here in parallel.
-			 */
-			List<LinkedList<Future<RetrievalResult>>> listOfRetrievalResultFuturesLists = new ArrayList<LinkedList<Future<RetrievalResult>>>();
-			for (int i = 0; i < pvNames.size(); i++) {
-				listOfRetrievalResultFuturesLists.add(resolveAllDataSources(pvNames.get(i), typeInfos.get(i), postProcessors.get(i), 
-						applianceForPVs.get(i), retrievalContexts.get(i), executorResults.get(i), req, resp));
-			}
-			pmansProfiler.mark("After data source resolution");
-
-			for (int i = 0; i < pvNames.size(); i++) {
-				// Data is retrieved here
-				List<Future<EventStream>> eventStreamFutures = getEventStreamFuturesFromRetrievalResults(executorResults.get(i),
-						listOfRetrievalResultFuturesLists.get(i));
-				listOfEventStreamFuturesLists.add(eventStreamFutures);
-			}
-			
-		} catch(Exception ex) {
-			if(ex != null && ex.toString() != null && ex.toString().contains("ClientAbortException")) {
-				// We check for ClientAbortException etc this way to avoid including tomcat jars in the build path.
-				logger.debug("Exception when retrieving data ", ex);
-			} else { 
-				logger.error("Exception when retrieving data " + "-->" + ex.toString(), ex);
-			}
+		List<PVFetchTask> fetchTasks = new ArrayList<PVFetchTask>(pvNames.size());
+		for (int i = 0; i < pvNames.size(); i++) {
+			BasicContext retrievalContext = new BasicContext(typeInfos.get(i).getDBRType(), pvNamesFromRequests.get(i));
+			RetrievalExecutorResult executorResult = determineExecutorForPostProcessing(pvNames.get(i), typeInfos.get(i), requestTimes, req, postProcessors.get(i));
+			fetchTasks.add(new PVFetchTask(pvNames.get(i), typeInfos.get(i), postProcessors.get(i), applianceForPVs.get(i), retrievalContext, executorResult, fetchLatestMetadata, req, resp));
 		}
 		
+		boolean debugTimings = false;
+		String debugTimingsStr = req.getParameter("debugTimings");
+		if(debugTimingsStr != null && debugTimingsStr.equals("true")) { 
+			// The PVs are fetched within the usual limits; we log the timing for each PV as we finish writing it out.
+			debugTimings = true;
+		}
+
+		/*
+		 * We fetch the PVs concurrently using a bounded pool that is shared across requests.
+		 * Each request limits the number of PVs it has in flight (being fetched or fetched and waiting to be written out) and the memory these are estimated to consume.
+		 * PVs whose estimate on its own exceeds the memory limit are not fetched ahead of time; they are streamed when it is their turn, just like a single PV request.
+		 * The PVs are still written out one after another in the order of the request.
+		 */
+		MultiPVFetchScheduler fetchScheduler = new MultiPVFetchScheduler(fetchTasks);
+		pmansProfiler.mark("After data source resolution");
+		
 		long s1 = System.currentTimeMillis();
 		String currentlyProcessingPV = null;
 		
@@ -924,11 +936,21 @@ public class DataRetrievalServlet  extends HttpServlet {
 		 */
 		try {
 			for (int i = 0; i < pvNames.size(); i++) {
-				List<Future<EventStream>> eventStreamFutures = listOfEventStreamFuturesLists.get(i);
 				String pvName = pvNames.get(i);
 				PVTypeInfo typeInfo = typeInfos.get(i);
-				HashMap<String, String> engineMetadata = fetchLatestMetadata ? engineMetadatas.get(i) : null;
 				PostProcessor postProcessor = postProcessors.get(i);
+				long pvStartMS = System.currentTimeMillis();
+				int eventsBeforePV = mergeDedupCountingConsumer.totalEventsForAllPVs;
+				PVFetchResult fetchResult = null;
+				try { 
+					fetchResult = fetchScheduler.getFetchResult(i);
+				} catch(Exception ex) { 
+					logger.error("Exception when retrieving data for pv " + pvName + "-->" + ex.toString(), ex);
+					fetchScheduler.doneWithPV(i);
+					continue;
+				}
+				List<Future<EventStream>> eventStreamFutures = fetchResult.eventStreamFutures;
+				HashMap<String, String> engineMetadata = fetchResult.engineMetadata;
 				
 				logger.debug("Done with the RetrievalResults; moving onto the individual event stream "
 						+ "from each source for " + StringUtils.join(pvNames, ", "));
@@ -1023,6 +1045,11 @@ public class DataRetrievalServlet  extends HttpServlet {
 					}
 				}
 				
+				fetchScheduler.doneWithPV(i);
+				fetchTasks.get(i).recordWrite(System.currentTimeMillis() - pvStartMS, mergeDedupCountingConsumer.totalEventsForAllPVs - eventsBeforePV);
+				if(debugTimings) { 
+					logger.info("Timing for multi PV request " + fetchTasks.get(i).getTimingSummary());
+				}
 				pmansProfiler.mark("After writing all eventstreams to response");
 			}
 		} catch(Exception ex) {
@@ -1032,6 +1059,8 @@ public class DataRetrievalServlet  extends HttpServlet {
 			} else { 
 				logger.error("Exception when retrieving data " + "-->" + ex.toString(), ex);
 			}
+		} finally { 
+			fetchScheduler.cancelOutstandingFetches();
 		}
 		
 		long s2 = System.currentTimeMillis();
@@ -1298,6 +1327,10 @@ public class DataRetrievalServlet  extends HttpServlet {
 	private static class RetrievalExecutorResult implements AutoCloseable { 
 		ExecutorService executorService;
 		LinkedList<TimeSpan> requestTimespans;
+		/**
+		 * The memory consumption estimate from the post processor.
+		 */
+		long estimatedMemoryConsumption = 0;
 		RetrievalExecutorResult(ExecutorService executorService, LinkedList<TimeSpan> requestTimepans) {
 			this.executorService = executorService;
 			this.requestTimespans = requestTimepans;
@@ -1324,6 +1357,11 @@ public class DataRetrievalServlet  extends HttpServlet {
 	 */
 	private static RetrievalExecutorResult determineExecutorForPostProcessing(String pvName, PVTypeInfo typeInfo, LinkedList<TimeSpan> requestTimes, HttpServletRequest req, PostProcessor postProcessor) {
 		long memoryConsumption = postProcessor.estimateMemoryConsumption(pvName, typeInfo, requestTimes.getFirst().getStartTime(), requestTimes.getLast().getEndTime(), req);
+		if(memoryConsumption <= 0) { 
+			// Many post processors (including the default raw one) return 0 when we do not yet know the storage rate of the PV.
+			memoryConsumption = estimateMemoryConsumptionFromTypeInfo(typeInfo, requestTimes.getFirst().getStartTime(), requestTimes.getLast().getEndTime());
+		}
+		memoryConsumption = Math.max(memoryConsumption, MIN_MEMORY_ESTIMATE_PER_PV);
 		double memoryConsumptionInMB = (double)memoryConsumption/(1024*1024);
 		DecimalFormat twoSignificantDigits = new DecimalFormat("###,###,###,###,###,###.##");
 		logger.debug("Memory consumption estimate from postprocessor for pv " + pvName + " is " + memoryConsumption + "(bytes) ~= " + twoSignificantDigits.format(memoryConsumptionInMB) + "(MB)");
@@ -1333,7 +1371,277 @@ public class DataRetrievalServlet  extends HttpServlet {
 		// There are some complexities in using the ForkJoinPool - in this case, we need to convert to using synchronized versions of the SummaryStatistics and DescriptiveStatistics
 		// We also still have the issue where we can add a sample twice because of the non-transactional nature of ETL.
 		// However, there is a lot of work done by the PostProcessors in estimateMemoryConsumption so leave this call in place.
-		return new RetrievalExecutorResult(new CurrentThreadExecutorService(), requestTimes);
+		RetrievalExecutorResult executorResult = new RetrievalExecutorResult(new CurrentThreadExecutorService(), requestTimes);
+		executorResult.estimatedMemoryConsumption = memoryConsumption;
+		return executorResult;
+	}
+	
+	
+	/**
+	 * The smallest memory estimate we use for a PV when deciding how many PVs of a multi PV request to fetch ahead of time.
+	 */
+	private static final long MIN_MEMORY_ESTIMATE_PER_PV = 1024*1024;
+	
+	/**
+	 * Estimate the memory needed for the raw data of a PV using the element count and the sampling period.
+	 * This is used when the post processor cannot estimate the memory consumption; for example, when the storage rate of the PV is not known.
+	 * @param typeInfo
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	static long estimateMemoryConsumptionFromTypeInfo(PVTypeInfo typeInfo, Timestamp start, Timestamp end) { 
+		if(typeInfo == null) return MIN_MEMORY_ESTIMATE_PER_PV;
+		long numSeconds = Math.max(1, TimeUtils.convertToEpochSeconds(end) - TimeUtils.convertToEpochSeconds(start));
+		double samplingPeriod = typeInfo.getSamplingPeriod() > 0 ? typeInfo.getSamplingPeriod() : 1.0;
+		long numEvents = (long) Math.ceil(numSeconds/samplingPeriod);
+		// Assume 8 bytes per element and 32 bytes of timestamp, alarm and object overhead per event; with a fudge factor of 2 for java.
+		long bytesPerEvent = 32 + 8L*Math.max(1, typeInfo.getElementCount());
+		return numEvents*bytesPerEvent*2;
+	}
+	
+	/**
+	 * What we have for a PV in a multi PV request before we write it out.
+	 * If the PV was fetched ahead of time, the event streams have already been read into memory.
+	 */
+	private static class PVFetchResult { 
+		HashMap<String, String> engineMetadata = null;
+		List<Future<EventStream>> eventStreamFutures = new LinkedList<Future<EventStream>>();
+		
+		/**
+		 * Close any event streams that we have not written out; for example, if the client went away.
+		 */
+		void closeEventStreams() { 
+			for(Future<EventStream> eventStreamFuture : eventStreamFutures) { 
+				if(!eventStreamFuture.isDone()) continue;
+				try { 
+					EventStream eventStream = eventStreamFuture.get();
+					if(eventStream != null) { 
+						logger.debug("Closing unused event stream");
+						eventStream.close();
+					}
+				} catch(Exception ex) { 
+					logger.debug("Exception closing unused event stream", ex);
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Resolves the data sources for a PV in a multi PV request and gets the event streams from them.
+	 * This is run either in the request thread or in the multi PV retrieval pool.
+	 * If the PV is being fetched ahead of time (prefetch), we also read the events into memory so that the request thread has nothing left to do but write them out.
+	 */
+	private class PVFetchTask implements Callable<PVFetchResult> { 
+		private final String pvName;
+		private final PVTypeInfo typeInfo;
+		private final PostProcessor postProcessor;
+		private final ApplianceInfo applianceForPV;
+		private final BasicContext retrievalContext;
+		private final RetrievalExecutorResult executorResult;
+		private final boolean fetchLatestMetadata;
+		private final HttpServletRequest req;
+		private final HttpServletResponse resp;
+		private boolean prefetch = false;
+		private long submittedMS = 0;
+		private volatile long waitMS = 0;
+		private volatile long fetchMS = 0;
+		private volatile int prefetchedEvents = 0;
+		private long writeMS = 0;
+		private int writtenEvents = 0;
+		
+		PVFetchTask(String pvName, PVTypeInfo typeInfo, PostProcessor postProcessor, ApplianceInfo applianceForPV, 
+				BasicContext retrievalContext, RetrievalExecutorResult executorResult, boolean fetchLatestMetadata, 
+				HttpServletRequest req, HttpServletResponse resp) {
+			this.pvName = pvName;
+			this.typeInfo = typeInfo;
+			this.postProcessor = postProcessor;
+			this.applianceForPV = applianceForPV;
+			this.retrievalContext = retrievalContext;
+			this.executorResult = executorResult;
+			this.fetchLatestMetadata = fetchLatestMetadata;
+			this.req = req;
+			this.resp = resp;
+		}
+		
+		long getEstimatedMemoryConsumption() { 
+			return executorResult.estimatedMemoryConsumption;
+		}
+		
+		/**
+		 * Mark this task as being submitted to the multi PV retrieval pool
+		 */
+		void markSubmittedForPrefetch() { 
+			this.prefetch = true;
+			this.submittedMS = System.currentTimeMillis();
+		}
+		
+		/**
+		 * Record the time the request thread spent on this PV, from asking for the fetch result till it was written out.
+		 * For PVs that were not fetched ahead, this includes reading the data from the stores.
+		 * @param writeMS
+		 * @param writtenEvents
+		 */
+		void recordWrite(long writeMS, int writtenEvents) { 
+			this.writeMS = writeMS;
+			this.writtenEvents = writtenEvents;
+		}
+		
+		String getTimingSummary() { 
+			return pvName + ";prefetch=" + prefetch + ";queue=" + waitMS + "ms;fetch=" + fetchMS + "ms;write=" + writeMS + "ms;prefetchedEvents=" + prefetchedEvents + ";events=" + writtenEvents;
+		}
+
+		@Override
+		public PVFetchResult call() throws Exception {
+			long startMS = System.currentTimeMillis();
+			if(submittedMS != 0) { 
+				waitMS = startMS - submittedMS;
+			}
+			PVFetchResult fetchResult = new PVFetchResult();
+			if(fetchLatestMetadata) {
+				// Make a call to the engine to fetch the latest metadata.
+				fetchResult.engineMetadata = fetchLatestMedataFromEngine(pvName, applianceForPV);
+			}
+			LinkedList<Future<RetrievalResult>> retrievalResultFutures = resolveAllDataSources(pvName, typeInfo, postProcessor, applianceForPV, retrievalContext, executorResult, req, resp);
+			List<Future<EventStream>> eventStreamFutures = getEventStreamFuturesFromRetrievalResults(executorResult, retrievalResultFutures);
+			if(prefetch) { 
+				// Post processors with consolidated event streams have already consumed the events; we only need the description from these streams.
+				final boolean includeEvents = !(postProcessor instanceof PostProcessorWithConsolidatedEventStream);
+				CurrentThreadExecutorService prefetchExecutor = new CurrentThreadExecutorService();
+				for(final Future<EventStream> eventStreamFuture : eventStreamFutures) { 
+					fetchResult.eventStreamFutures.add(prefetchExecutor.submit(new Callable<EventStream>() {
+						@Override
+						public EventStream call() throws Exception {
+							EventStream eventStream = eventStreamFuture.get();
+							if(!PrefetchedEventStream.canPrefetch(eventStream)) { 
+								// We'll stream these in the request thread.
+								return eventStream;
+							}
+							try(EventStream sourceStream = eventStream) { 
+								PrefetchedEventStream prefetchedStream = PrefetchedEventStream.prefetch(sourceStream, includeEvents);
+								prefetchedEvents += prefetchedStream.getEventCount();
+								return prefetchedStream;
+							}
+						}
+					}));
+				}
+				prefetchExecutor.shutdown();
+			} else { 
+				fetchResult.eventStreamFutures = eventStreamFutures;
+			}
+			fetchMS = System.currentTimeMillis() - startMS;
+			logger.debug("Fetched data for pv " + pvName + " in " + fetchMS + "(ms) after waiting " + waitMS + "(ms)");
+			return fetchResult;
+		}
+	}
+	
+	
+	/**
+	 * Schedules the PVFetchTasks of a multi PV request onto the multi PV retrieval pool.
+	 * We fetch ahead in request order and limit ourselves to the number of PVs and the estimated memory configured in RetrievalState.
+	 * A PV counts against these limits from when it is submitted till it has been written out (see doneWithPV).
+	 * PVs that do not fit into the memory limit by themselves are not fetched ahead; these are fetched and streamed in the request thread when it is their turn.
+	 * This is used only from the request thread.
+	 */
+	private class MultiPVFetchScheduler { 
+		private final List<PVFetchTask> fetchTasks;
+		private final List<Future<PVFetchResult>> fetchFutures;
+		private final boolean[] doneWithPV;
+		private final ExecutorService executor;
+		private final int maxConcurrentPVs;
+		private final long maxMemory;
+		private int nextPVToConsider = 0;
+		private int pvsInFlight = 0;
+		private long memoryInFlight = 0;
+		
+		/**
+		 * @param fetchTasks - The fetch tasks in request order
+		 */
+		MultiPVFetchScheduler(List<PVFetchTask> fetchTasks) { 
+			this.fetchTasks = fetchTasks;
+			this.fetchFutures = new ArrayList<Future<PVFetchResult>>(Collections.<Future<PVFetchResult>>nCopies(fetchTasks.size(), null));
+			this.doneWithPV = new boolean[fetchTasks.size()];
+			RetrievalState retrievalState = configService.getRetrievalRuntimeState();
+			this.maxConcurrentPVs = retrievalState.getMultiPVMaxConcurrentPVsPerRequest();
+			this.maxMemory = retrievalState.getMultiPVMaxMemoryPerRequest();
+			if(fetchTasks.size() > 1 && maxConcurrentPVs > 1) { 
+				this.executor = retrievalState.getMultiPVRetrievalExecutor();
+			} else { 
+				this.executor = null;
+			}
+			submitMoreFetches();
+		}
+		
+		private void submitMoreFetches() { 
+			if(executor == null) return;
+			while(nextPVToConsider < fetchTasks.size()) { 
+				PVFetchTask fetchTask = fetchTasks.get(nextPVToConsider);
+				long estimatedMemoryConsumption = fetchTask.getEstimatedMemoryConsumption();
+				if(estimatedMemoryConsumption > maxMemory) { 
+					logger.debug("Not fetching ahead for pv " + fetchTask.pvName + " as the memory estimate " + estimatedMemoryConsumption + " is more than the limit " + maxMemory);
+					nextPVToConsider++;
+					continue;
+				}
+				if(pvsInFlight >= maxConcurrentPVs || (pvsInFlight > 0 && memoryInFlight + estimatedMemoryConsumption > maxMemory)) { 
+					return;
+				}
+				fetchTask.markSubmittedForPrefetch();
+				fetchFutures.set(nextPVToConsider, executor.submit(fetchTask));
+				pvsInFlight++;
+				memoryInFlight += estimatedMemoryConsumption;
+				nextPVToConsider++;
+			}
+		}
+		
+		/**
+		 * Get the fetch result for the PV at the specified index; if we have not fetched this PV ahead of time, we fetch it now in the current thread.
+		 * @param index
+		 * @return
+		 * @throws Exception
+		 */
+		PVFetchResult getFetchResult(int index) throws Exception { 
+			Future<PVFetchResult> fetchFuture = fetchFutures.get(index);
+			if(fetchFuture != null) { 
+				return fetchFuture.get();
+			}
+			if(nextPVToConsider <= index) { 
+				nextPVToConsider = index + 1;
+			}
+			return fetchTasks.get(index).call();
+		}
+		
+		/**
+		 * We are done writing out the PV at the specified index; release its share of the limits and fetch more PVs.
+		 * @param index
+		 */
+		void doneWithPV(int index) { 
+			if(doneWithPV[index]) return;
+			doneWithPV[index] = true;
+			if(fetchFutures.get(index) != null) { 
+				pvsInFlight--;
+				memoryInFlight -= fetchTasks.get(index).getEstimatedMemoryConsumption();
+				fetchFutures.set(index, null);
+			}
+			submitMoreFetches();
+		}
+		
+		/**
+		 * Cancel any fetches that we have not written out; for example, if the client went away.
+		 */
+		void cancelOutstandingFetches() { 
+			for(int i = 0; i < fetchFutures.size(); i++) { 
+				Future<PVFetchResult> fetchFuture = fetchFutures.get(i);
+				if(fetchFuture == null || doneWithPV[i]) continue;
+				if(!fetchFuture.cancel(true) && fetchFuture.isDone()) { 
+					try { 
+						fetchFuture.get().closeEventStreams();
+					} catch(Exception ex) { 
+						logger.debug("Exception closing fetch that was not written out", ex);
+					}
+				}
+			}
+		}
 	}
 	
 	
@@ -1560,7 +1868,7 @@ public class DataRetrievalServlet  extends HttpServlet {
 	private boolean setActualDBRTypeFromData(String pvName, PVTypeInfo typeInfo, ConfigService configService) throws IOException {
 		String[] dataStores = typeInfo.getDataStores();
 		for(String dataStore : dataStores) { 
-			StoragePlugin plugin = StoragePluginURLParser.parseStoragePlugin(dataStore, configService);
+			StoragePlugin plugin = StoragePluginURLParser.getCachedStoragePlugin(dataStore, configService);
 			if(plugin instanceof ETLDest) { 
 				ETLDest etlDest = (ETLDest) plugin;
 				try(BasicContext context = new BasicContext()) { 
@@ -29,6 +29,7 @@ import org.epics.archiverappliance.config.ConfigService;
 import org.epics.archiverappliance.config.PVTypeInfo;
 import org.epics.archiverappliance.config.StoragePluginURLParser;
 import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.RemotedPostProcessor;
 import org.epics.archiverappliance.retrieval.postprocessors.TimeSpanDependentProcessing;
 import org.epics.archiverappliance.retrieval.postprocessors.TimeSpanDependentProcessor;
 
@@ -80,7 +81,9 @@ public class DataSourceResolution {
 				String redirectURIStr = redirectURI.normalize().toString();
 				logger.debug("Raw URL on remote appliance for pv " + pvName + " is " + redirectURIStr);
 				String remoteRawURL = URLEncoder.encode(redirectURIStr, "UTF-8");
-				StoragePlugin storagePlugin = StoragePluginURLParser.parseStoragePlugin("pbraw://localhost?rawURL=" + remoteRawURL, configService);
+				// Post processors that can be run on the remote appliance are passed in as a RemotedPostProcessor; for the others, we get the raw data and process it here.
+				boolean runPostProcessorOnRemote = postProcessor instanceof RemotedPostProcessor;
+				StoragePlugin storagePlugin = StoragePluginURLParser.getCachedStoragePlugin("pbraw://localhost?rawURL=" + remoteRawURL + (runPostProcessorOnRemote ? "" : "&forwardPostProcessor=false"), configService);
 				unitsofretrieval.add(new UnitOfRetrieval(storagePlugin.getDescription(), storagePlugin, typeInfo.getPvName(), pvName, start, end, postProcessor, context));
 			} catch (URISyntaxException e) {
 				throw new IOException(e);
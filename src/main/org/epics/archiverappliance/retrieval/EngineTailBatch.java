@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.EventStreamDesc;
+import org.epics.archiverappliance.StoragePlugin;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.etl.ConversionFunction;
+import org.epics.archiverappliance.retrieval.client.RetrievalEventProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+
+import edu.stanford.slac.archiverappliance.PBOverHTTP.InputStreamBackedEventStream;
+
+/**
+ * Fetches the data in the engine's buffers for all the PVs in a multi PV request in one call.
+ * Multi PV requests (dashboards etc) ask for recent data and typically all of them hit the engine; making one getData.raw call per PV adds a round trip for each PV.
+ * This is created for the multi PV request and attached to the request; the first PV that needs the engine fetches the data for all of the PVs using the engine's getDataForPVs.raw.
+ * The other PVs are then served from memory.
+ * If the call to the engine fails, we return null for the engine's plugin and retrieval falls back to the per PV getData.raw.
+ * @author mshankar
+ *
+ */
+public class EngineTailBatch {
+	private static Logger logger = Logger.getLogger(EngineTailBatch.class.getName());
+	/**
+	 * The name of the request attribute that holds the batch for a multi PV request.
+	 */
+	public static final String REQUEST_ATTRIBUTE = "org.epics.archiverappliance.retrieval.EngineTailBatch";
+
+	private final String engineURL;
+	private final Set<String> pvNames;
+	private final Timestamp start;
+	private final Timestamp end;
+	private boolean fetched = false;
+	private boolean fetchFailed = false;
+	private HashMap<String, ArrayListEventStream> engineData = new HashMap<String, ArrayListEventStream>();
+
+	/**
+	 * @param engineURL The engine URL of this appliance.
+	 * @param pvNames The PVs in the request that belong to this appliance; these are the names from the typeinfos.
+	 * @param start
+	 * @param end
+	 */
+	public EngineTailBatch(String engineURL, List<String> pvNames, Timestamp start, Timestamp end) {
+		this.engineURL = engineURL;
+		this.pvNames = new LinkedHashSet<String>(pvNames);
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * Get the engine plugin to be used for this PV in this request.
+	 * @param pvName
+	 * @return null if this PV is not part of the batch or if we could not get the data from the engine; the caller should fall back to the per PV plugin.
+	 */
+	public StoragePlugin getEngineStoragePlugin(String pvName) {
+		if(!pvNames.contains(pvName)) return null;
+		fetchIfNeeded();
+		if(fetchFailed) return null;
+		return new EngineTailPlugin();
+	}
+
+	private synchronized void fetchIfNeeded() {
+		if(fetched) return;
+		fetched = true;
+		long s = System.currentTimeMillis();
+		String url = engineURL + "/getDataForPVs.raw";
+		List<NameValuePair> params = new ArrayList<NameValuePair>();
+		for(String pvName : pvNames) {
+			params.add(new BasicNameValuePair("pv", pvName));
+		}
+		params.add(new BasicNameValuePair("from", TimeUtils.convertToISO8601String(start)));
+		params.add(new BasicNameValuePair("to", TimeUtils.convertToISO8601String(end)));
+		try(CloseableHttpClient httpclient = HttpClients.createDefault()) {
+			HttpPost postMethod = new HttpPost(url);
+			postMethod.setEntity(new UrlEncodedFormEntity(params, "UTF-8"));
+			HttpResponse response = httpclient.execute(postMethod);
+			int statusCode = response.getStatusLine().getStatusCode();
+			HttpEntity entity = response.getEntity();
+			if(statusCode != 200 || entity == null) {
+				logger.warn("Invalid status code " + statusCode + " when fetching the engine data for " + pvNames.size() + " PVs from " + url);
+				fetchFailed = true;
+				return;
+			}
+			try(InputStream is = new BufferedInputStream(entity.getContent())) {
+				parseEngineData(is, start, engineData);
+			}
+		} catch(Throwable t) {
+			logger.warn("Exception fetching the engine data for " + pvNames.size() + " PVs from " + url, t);
+			fetchFailed = true;
+			engineData.clear();
+			return;
+		}
+		long e = System.currentTimeMillis();
+		logger.debug("Fetched engine data for " + engineData.size() + " of " + pvNames.size() + " PVs in " + (e-s) + "(ms)");
+	}
+
+	/**
+	 * Split a getDataForPVs.raw response into an event stream for each PV.
+	 * @param is A stream that supports mark/reset
+	 * @param start
+	 * @param engineData The event streams are added to this map keyed by PV name; the chunks for a PV that spans years are combined into one stream.
+	 * @throws IOException
+	 */
+	static void parseEngineData(InputStream is, Timestamp start, final HashMap<String, ArrayListEventStream> engineData) throws IOException {
+		final ArrayListEventStream[] currentStream = new ArrayListEventStream[1];
+		try(InputStreamBackedEventStream isStream = new InputStreamBackedEventStream(is, start, new RetrievalEventProcessor() {
+			@Override
+			public void newPVOnStream(EventStreamDesc desc) {
+				RemotableEventStreamDesc pvDesc = (RemotableEventStreamDesc) desc;
+				// The engine starts a new chunk for a PV when the year changes; never replace the events we have already parsed for a PV.
+				currentStream[0] = engineData.get(pvDesc.getPvName());
+				if(currentStream[0] == null) {
+					currentStream[0] = new ArrayListEventStream(0, pvDesc);
+					engineData.put(pvDesc.getPvName(), currentStream[0]);
+				}
+			}
+		})) {
+			for(Event event : isStream) {
+				if(event == null) continue;
+				currentStream[0].add(event);
+			}
+		}
+	}
+
+	/**
+	 * Serves the data for a PV from the batch; this stands in for the pbraw plugin pointing to the engine's getData.raw.
+	 */
+	private class EngineTailPlugin implements StoragePlugin {
+		@Override
+		public List<Callable<EventStream>> getDataForPV(BasicContext context, String pvName, Timestamp startTime, Timestamp endTime, PostProcessor postProcessor) throws IOException {
+			ArrayListEventStream pvData = engineData.get(pvName);
+			if(pvData == null) {
+				logger.debug("No data in the engine for pv " + pvName);
+				return null;
+			}
+			RemotableEventStreamDesc desc = new RemotableEventStreamDesc(pvData.getDescription());
+			desc.setSource(getName());
+			ArrayListEventStream st = new ArrayListEventStream(pvData.size(), desc);
+			for(Event event : pvData) {
+				Timestamp ts = event.getEventTimeStamp();
+				if(ts.before(startTime) || ts.after(endTime)) continue;
+				st.add(event);
+			}
+			return CallableEventStream.makeOneStreamCallableList(st, postProcessor, true);
+		}
+
+		@Override
+		public boolean appendData(BasicContext context, String pvName, EventStream stream) throws IOException {
+			throw new RuntimeException("Append Data is not available for the engine's buffers");
+		}
+
+		@Override
+		public String getDescription() {
+			return "Batched engine data from " + engineURL;
+		}
+
+		@Override
+		public void initialize(String configURL, ConfigService configService) throws IOException {
+			// Nothing to do here.
+		}
+
+		@Override
+		public String getName() {
+			return "engine";
+		}
+
+		@Override
+		public Event getLastKnownEvent(BasicContext context, String pvName) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Event getFirstKnownEvent(BasicContext context, String pvName) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void renamePV(BasicContext context, String oldName, String newName) throws IOException {
+			// Nothing to do here.
+		}
+
+		@Override
+		public void convert(BasicContext context, String pvName, ConversionFunction conversionFuntion) throws IOException {
+			// Nothing to do here.
+		}
+	}
+}
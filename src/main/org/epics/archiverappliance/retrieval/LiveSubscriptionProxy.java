@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.config.ApplianceInfo;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.PVNames;
+import org.epics.archiverappliance.config.PVTypeInfo;
+import org.epics.archiverappliance.retrieval.mimeresponses.MimeResponse;
+
+/**
+ * Retrieval's end point for live subscriptions; this lets clients subscribe to PVs using the retrieval URL like they do for getData.
+ * The samples come from the engine's subscribe BPL (see SubscribeToPVsAction); we group the PVs by the appliance that archives them and proxy the engine's server-sent events.
+ * If the PVs are on more than one appliance, we merge the events from each engine into the response; each event is written as a whole.
+ * The request is handled asynchronously; a small pool of threads shared by all the subscriptions copies whatever the engines have sent so far into the responses.
+ * We only read what is available from the engines; so a quiet engine does not hold up a thread.
+ * The subscription ends when the client goes away or when we have not heard from any of the engines for a while; clients are expected to reconnect (as EventSource does).
+ * @author mshankar
+ *
+ */
+public class LiveSubscriptionProxy {
+	private static Logger logger = Logger.getLogger(LiveSubscriptionProxy.class.getName());
+	/**
+	 * The engine sends a heartbeat every 15 seconds; if we do not hear from an engine in this time, we assume it has gone away.
+	 */
+	private static final int READ_TIMEOUT_MILLIS = 60*1000;
+	/**
+	 * We copy the events from the engines to each client this often.
+	 */
+	private static final long COPY_INTERVAL_MILLIS = 100;
+	private static final int DEFAULT_COPY_THREADS = 4;
+	private static final String[] PASSTHRU_PARAMS = new String[] { "from", "decimateMillis", "queueSize" };
+	private static ScheduledExecutorService copyExecutor = null;
+
+	public static void subscribe(HttpServletRequest req, HttpServletResponse resp, ConfigService configService) throws IOException {
+		String[] pvNames = req.getParameterValues("pv");
+		if(pvNames == null || pvNames.length == 0) {
+			resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+			resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+
+		LinkedHashMap<String, List<String>> engineURLToPVs = new LinkedHashMap<String, List<String>>();
+		for(String pvName : pvNames) {
+			PVTypeInfo typeInfo = PVNames.determineAppropriatePVTypeInfo(pvName, configService);
+			if(typeInfo == null) {
+				logger.debug("Skipping subscription for pv " + pvName + " as we are not archiving it");
+				continue;
+			}
+			ApplianceInfo applianceInfo = configService.getAppliance(typeInfo.getApplianceIdentity());
+			List<String> pvsForEngine = engineURLToPVs.get(applianceInfo.getEngineURL());
+			if(pvsForEngine == null) {
+				pvsForEngine = new ArrayList<String>();
+				engineURLToPVs.put(applianceInfo.getEngineURL(), pvsForEngine);
+			}
+			pvsForEngine.add(typeInfo.getPvName());
+		}
+		if(engineURLToPVs.isEmpty()) {
+			resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+			resp.sendError(HttpServletResponse.SC_NOT_FOUND, "None of the PVs are being archived");
+			return;
+		}
+
+		List<EngineStream> engineStreams = new ArrayList<EngineStream>();
+		SubscriptionCopier copier = null;
+		try {
+			for(String engineURL : engineURLToPVs.keySet()) {
+				String subscribeURL = makeSubscribeURL(engineURL, engineURLToPVs.get(engineURL), req);
+				HttpURLConnection urlConnection = (HttpURLConnection) new URL(subscribeURL).openConnection();
+				urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+				engineStreams.add(new EngineStream(urlConnection));
+				if(urlConnection.getResponseCode() != 200) {
+					logger.warn("Invalid status code " + urlConnection.getResponseCode() + " when subscribing using " + subscribeURL);
+					resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+					resp.sendError(urlConnection.getResponseCode());
+					closeAll(engineStreams);
+					return;
+				}
+				engineStreams.get(engineStreams.size() - 1).open();
+			}
+
+			resp.setContentType("text/event-stream");
+			resp.setCharacterEncoding("UTF-8");
+			resp.setHeader("Cache-Control", "no-cache");
+			resp.addHeader(MimeResponse.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+			OutputStream os = resp.getOutputStream();
+			AsyncContext asyncContext = req.startAsync();
+			asyncContext.setTimeout(0);
+			copier = new SubscriptionCopier(engineStreams, asyncContext, os);
+			asyncContext.addListener(copier);
+			copier.start(getCopyExecutor(configService));
+		} catch(IOException | RuntimeException ex) {
+			if(copier != null) {
+				copier.end(ex);
+			} else {
+				closeAll(engineStreams);
+			}
+			throw ex;
+		}
+	}
+
+	private static synchronized ScheduledExecutorService getCopyExecutor(ConfigService configService) {
+		if(copyExecutor == null) {
+			int threads = Integer.parseInt(configService.getInstallationProperties().getProperty("org.epics.archiverappliance.retrieval.LiveSubscriptionProxy.copyThreads", Integer.toString(DEFAULT_COPY_THREADS)));
+			logger.info("Creating a thread pool with " + threads + " threads for proxying subscriptions");
+			copyExecutor = Executors.newScheduledThreadPool(Math.max(1, threads), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Subscription proxy");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return copyExecutor;
+	}
+
+	private static String makeSubscribeURL(String engineURL, List<String> pvNames, HttpServletRequest req) throws IOException {
+		StringBuilder buf = new StringBuilder();
+		buf.append(engineURL).append("/subscribe?");
+		boolean first = true;
+		for(String pvName : pvNames) {
+			if(first) { first = false; } else { buf.append("&"); }
+			buf.append("pv=").append(URLEncoder.encode(pvName, "UTF-8"));
+		}
+		for(String param : PASSTHRU_PARAMS) {
+			String value = req.getParameter(param);
+			if(value != null) {
+				buf.append("&").append(param).append("=").append(URLEncoder.encode(value, "UTF-8"));
+			}
+		}
+		return buf.toString();
+	}
+
+	private static void closeAll(List<EngineStream> engineStreams) {
+		for(EngineStream engineStream : engineStreams) {
+			engineStream.close();
+		}
+	}
+
+	/**
+	 * The server-sent events from one engine.
+	 * We hold on to the bytes of a partially received event till we get the rest of it.
+	 */
+	static class EngineStream {
+		private final HttpURLConnection urlConnection;
+		private InputStream is;
+		private byte[] pending = new byte[8192];
+		private int pendingLength = 0;
+		private long lastReadMillis = System.currentTimeMillis();
+
+		EngineStream(HttpURLConnection urlConnection) {
+			this.urlConnection = urlConnection;
+		}
+
+		EngineStream(InputStream is) {
+			this.urlConnection = null;
+			this.is = is;
+		}
+
+		void open() throws IOException {
+			is = urlConnection.getInputStream();
+		}
+
+		/**
+		 * Read whatever the engine has sent so far without blocking and copy the complete events into the response.
+		 * Events are separated by a blank line.
+		 * @param os
+		 * @return The number of bytes copied; -1 if we have not heard from the engine in a while.
+		 * @throws IOException
+		 */
+		int copyAvailableEvents(OutputStream os) throws IOException {
+			long now = System.currentTimeMillis();
+			int available = is.available();
+			if(available <= 0) {
+				return (now - lastReadMillis) < READ_TIMEOUT_MILLIS ? 0 : -1;
+			}
+			lastReadMillis = now;
+			while(available > 0) {
+				if(pendingLength + available > pending.length) {
+					pending = Arrays.copyOf(pending, Math.max(pending.length*2, pendingLength + available));
+				}
+				int bytesRead = is.read(pending, pendingLength, available);
+				if(bytesRead <= 0) break;
+				pendingLength += bytesRead;
+				available = is.available();
+			}
+			int eventsEnd = 0;
+			for(int i = 1; i < pendingLength; i++) {
+				if(pending[i] == '\n' && pending[i-1] == '\n') {
+					eventsEnd = i + 1;
+				}
+			}
+			if(eventsEnd > 0) {
+				os.write(pending, 0, eventsEnd);
+				System.arraycopy(pending, eventsEnd, pending, 0, pendingLength - eventsEnd);
+				pendingLength -= eventsEnd;
+			}
+			return eventsEnd;
+		}
+
+		void close() {
+			try { if(is != null) is.close(); } catch(Throwable t) {}
+			if(urlConnection != null) urlConnection.disconnect();
+		}
+
+		@Override
+		public String toString() {
+			return urlConnection != null ? urlConnection.getURL().toString() : "engine stream";
+		}
+	}
+
+	/**
+	 * Copies the events from the engines for one subscription; the copying ends when we cannot write to the client, when an engine goes quiet or when the container ends the request.
+	 */
+	private static class SubscriptionCopier implements Runnable, AsyncListener {
+		private final List<EngineStream> engineStreams;
+		private final AsyncContext asyncContext;
+		private final OutputStream os;
+		private final AtomicBoolean ended = new AtomicBoolean(false);
+		private volatile ScheduledFuture<?> copyFuture;
+
+		SubscriptionCopier(List<EngineStream> engineStreams, AsyncContext asyncContext, OutputStream os) {
+			this.engineStreams = engineStreams;
+			this.asyncContext = asyncContext;
+			this.os = os;
+		}
+
+		void start(ScheduledExecutorService executor) {
+			copyFuture = executor.scheduleWithFixedDelay(this, 0, COPY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+			// We may have ended while we were scheduling the copies.
+			if(ended.get()) copyFuture.cancel(false);
+		}
+
+		@Override
+		public void run() {
+			if(ended.get()) return;
+			try {
+				int bytesCopied = 0;
+				for(EngineStream engineStream : engineStreams) {
+					int engineBytes = engineStream.copyAvailableEvents(os);
+					if(engineBytes < 0) {
+						logger.debug("Ending subscription proxy as we have not heard from " + engineStream + " in " + READ_TIMEOUT_MILLIS + "(ms)");
+						end(null);
+						return;
+					}
+					bytesCopied += engineBytes;
+				}
+				if(bytesCopied > 0) {
+					os.flush();
+				}
+			} catch(Throwable t) {
+				end(t);
+			}
+		}
+
+		void end(Throwable cause) {
+			if(!ended.compareAndSet(false, true)) return;
+			if(cause != null) {
+				logger.debug("Ending subscription proxy", cause);
+			}
+			ScheduledFuture<?> future = copyFuture;
+			if(future != null) future.cancel(false);
+			closeAll(engineStreams);
+			try {
+				asyncContext.complete();
+			} catch(IllegalStateException ex) {
+				// The container has already completed the request.
+			}
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException {
+			end(null);
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) throws IOException {
+			end(event.getThrowable());
+		}
+
+		@Override
+		public void onError(AsyncEvent event) throws IOException {
+			end(event.getThrowable());
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) throws IOException {
+		}
+	}
+}
@@ -30,12 +30,17 @@ import edu.stanford.slac.archiverappliance.PB.data.PBParseException;
  */
 class MergeDedupConsumer implements EventStreamConsumer, AutoCloseable {
 	private static Logger logger = Logger.getLogger(MergeDedupConsumer.class.getName());
-	private Timestamp startTimeStamp;
+	private long startEpochSeconds;
+	private int startNanos;
 	int totalEvents = 0;
 	int skippedEvents = 0;
 	int comparedEvents = 0;
 	OutputStream os = null;
-	private Timestamp timestampOfLastEvent;
+	/**
+	 * We track the timestamp of the last event as epoch seconds + nanos to avoid creating a Timestamp for every event.
+	 */
+	private long epochSecondsOfLastEvent;
+	private int nanosOfLastEvent;
 	boolean amIDeduping = false;
 	boolean haveIpushedTheFirstEvent = false;
 	Event firstEvent = null;
@@ -98,7 +103,8 @@ class MergeDedupConsumer implements EventStreamConsumer, AutoCloseable {
 	
 	public void processingPV(String PV, Timestamp start, Timestamp end, EventStreamDesc streamDesc) {
 		logNumbersAndCollectTotal();
-		this.startTimeStamp = start;
+		this.startEpochSeconds = TimeUtils.convertToEpochSeconds(start);
+		this.startNanos = start.getNanos();
 		mimeresponse.processingPV(PV, start, end, streamDesc);
 		pvName = PV;
 		resetForNextPV();
@@ -112,42 +118,47 @@ class MergeDedupConsumer implements EventStreamConsumer, AutoCloseable {
 					eventsInCurrentStream++;
 					
 					if(!haveIpushedTheFirstEvent && firstEvent == null) {
-						logger.debug("Making a copy of the first event " + TimeUtils.convertToHumanReadableString(e.getEventTimeStamp()));
+						if(logger.isDebugEnabled()) logger.debug("Making a copy of the first event " + TimeUtils.convertToHumanReadableString(e.getEpochSeconds()));
 						firstEvent = e.makeClone();
 						continue;
 					}
 					
+					long epochSeconds = e.getEpochSeconds();
+					int nanos = e.getNanos();
 					if(!haveIpushedTheFirstEvent) { 
-						if(e.getEventTimeStamp().before(this.startTimeStamp)) {
-							logger.debug("Making a copy of another event " + TimeUtils.convertToHumanReadableString(e.getEventTimeStamp()));
+						if(TimeUtils.compare(epochSeconds, nanos, startEpochSeconds, startNanos) < 0) {
+							if(logger.isDebugEnabled()) logger.debug("Making a copy of another event " + TimeUtils.convertToHumanReadableString(epochSeconds));
 							firstEvent = e.makeClone();
 							continue;
 						} else { 
 							haveIpushedTheFirstEvent = true;
-							logger.debug("Consuming first and current events " + TimeUtils.convertToHumanReadableString(e.getEventTimeStamp()));
+							if(logger.isDebugEnabled()) logger.debug("Consuming first and current events " + TimeUtils.convertToHumanReadableString(epochSeconds));
 							mimeresponse.consumeEvent(firstEvent);
 							totalEvents++;
 							mimeresponse.consumeEvent(e);
 							totalEvents++;
-							timestampOfLastEvent = e.getEventTimeStamp();
+							epochSecondsOfLastEvent = epochSeconds;
+							nanosOfLastEvent = nanos;
 							continue;
 						}
 					}
 					
 					if(amIDeduping) {
 						comparedEvents++;
-						if(!e.getEventTimeStamp().after(timestampOfLastEvent)) {
+						if(TimeUtils.compare(epochSeconds, nanos, epochSecondsOfLastEvent, nanosOfLastEvent) <= 0) {
 							skippedEvents++;
 							continue;
 						} else {
 							amIDeduping = false;
 							mimeresponse.consumeEvent(e);
-							timestampOfLastEvent = e.getEventTimeStamp();
+							epochSecondsOfLastEvent = epochSeconds;
+							nanosOfLastEvent = nanos;
 							totalEvents++;
 						}
 					} else {
 						mimeresponse.consumeEvent(e);
-						timestampOfLastEvent = e.getEventTimeStamp();
+						epochSecondsOfLastEvent = epochSeconds;
+						nanosOfLastEvent = nanos;
 						totalEvents++;
 					}
 				} catch(InvalidProtocolBufferException|PBParseException ex) { 
@@ -184,7 +195,8 @@ class MergeDedupConsumer implements EventStreamConsumer, AutoCloseable {
 		totalEvents = 0;
 		skippedEvents = 0;
 		comparedEvents = 0;
-		timestampOfLastEvent = new Timestamp(Long.MIN_VALUE);
+		epochSecondsOfLastEvent = Long.MIN_VALUE;
+		nanosOfLastEvent = 0;
 		amIDeduping = false;
 		firstEvent = null;
 		haveIpushedTheFirstEvent = false;
@@ -6,6 +6,10 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -25,10 +29,64 @@ public class RetrievalState {
 	private static Logger logger = Logger.getLogger(RetrievalState.class.getName());
 	private ConfigService configService;
 	private int engineWriteThreadInSeconds = 60;
+	/**
+	 * Number of threads in the pool shared by all multi PV retrieval requests in this appliance.
+	 */
+	private int multiPVRetrievalThreads = 8;
+	/**
+	 * Maximum number of PVs that a single multi PV retrieval request can have in flight (being fetched or fetched and waiting to be written out).
+	 */
+	private int multiPVMaxConcurrentPVsPerRequest = 4;
+	/**
+	 * Maximum memory (as estimated by the post processors) that a single multi PV retrieval request can have in flight.
+	 */
+	private long multiPVMaxMemoryPerRequest = 64*1024*1024;
+	private ExecutorService multiPVRetrievalExecutor = null;
 	
 	public RetrievalState(ConfigService configService) {
 		this.configService = configService;
 		this.engineWriteThreadInSeconds = Integer.parseInt(configService.getInstallationProperties().getProperty("org.epics.archiverappliance.config.PVTypeInfo.secondsToBuffer", "60")); 
+		this.multiPVRetrievalThreads = Integer.parseInt(configService.getInstallationProperties().getProperty("org.epics.archiverappliance.retrieval.MultiPVRetrieval.threads", "8"));
+		this.multiPVMaxConcurrentPVsPerRequest = Integer.parseInt(configService.getInstallationProperties().getProperty("org.epics.archiverappliance.retrieval.MultiPVRetrieval.maxConcurrentPVsPerRequest", "4"));
+		this.multiPVMaxMemoryPerRequest = Long.parseLong(configService.getInstallationProperties().getProperty("org.epics.archiverappliance.retrieval.MultiPVRetrieval.maxMemoryPerRequestMB", "64"))*1024*1024;
+	}
+	
+	/**
+	 * Get the bounded thread pool used to fetch the PVs in a multi PV retrieval request concurrently.
+	 * This is shared across all requests; each request limits itself using getMultiPVMaxConcurrentPVsPerRequest and getMultiPVMaxMemoryPerRequest.
+	 * @return
+	 */
+	public synchronized ExecutorService getMultiPVRetrievalExecutor() {
+		if(multiPVRetrievalExecutor == null) { 
+			logger.info("Creating a thread pool with " + multiPVRetrievalThreads + " threads for multi PV retrieval");
+			final AtomicInteger threadNum = new AtomicInteger(0);
+			multiPVRetrievalExecutor = Executors.newFixedThreadPool(multiPVRetrievalThreads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setName("Multi PV retrieval " + threadNum.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			final ExecutorService executorToShutdown = multiPVRetrievalExecutor;
+			configService.addShutdownHook(new Runnable() {
+				@Override
+				public void run() {
+					logger.info("Shutting down the multi PV retrieval thread pool");
+					executorToShutdown.shutdownNow();
+				}
+			});
+		}
+		return multiPVRetrievalExecutor;
+	}
+
+	public int getMultiPVMaxConcurrentPVsPerRequest() {
+		return multiPVMaxConcurrentPVsPerRequest;
+	}
+
+	public long getMultiPVMaxMemoryPerRequest() {
+		return multiPVMaxMemoryPerRequest;
 	}
 
 	/**
@@ -47,7 +105,7 @@ public class RetrievalState {
 					String howStr = determineHowStr(req);
 					int lifetimeid = 1;
 					logger.debug("Adding Channel Archiver server for " + pvName + " " + caServer.toString());
-					dataSourcesForPV.add(new DataSourceforPV(pvName, caServer.getServerInfo().getPlugin(count, howStr), lifetimeid++, null, null));
+					dataSourcesForPV.add(new DataSourceforPV(pvName, caServer.getServerInfo().getPlugin(count, howStr, configService), lifetimeid++, null, null));
 					return dataSourcesForPV;
 				}
 			}
@@ -66,9 +124,17 @@ public class RetrievalState {
 				if(typeInfo.getSamplingMethod() == SamplingMethod.DONT_ARCHIVE) {
 					logger.debug("Skipping going to the engine for something we are not sampling for pv " + pvName);
 				} else { 
-					ApplianceInfo applianceInfo = configService.getAppliance(typeInfo.getApplianceIdentity());
-					String engineRawURL = URLEncoder.encode(applianceInfo.getEngineURL() + "/getData.raw", "UTF-8");
-					StoragePlugin engineStoragePlugin = StoragePluginURLParser.parseStoragePlugin("pbraw://localhost?rawURL=" + engineRawURL + "&name=engine", configService);
+					// Multi PV requests fetch the engine's data for all their PVs in one call.
+					StoragePlugin engineStoragePlugin = null;
+					EngineTailBatch engineTailBatch = (req != null) ? (EngineTailBatch) req.getAttribute(EngineTailBatch.REQUEST_ATTRIBUTE) : null;
+					if(engineTailBatch != null) {
+						engineStoragePlugin = engineTailBatch.getEngineStoragePlugin(typeInfo.getPvName());
+					}
+					if(engineStoragePlugin == null) {
+						ApplianceInfo applianceInfo = configService.getAppliance(typeInfo.getApplianceIdentity());
+						String engineRawURL = URLEncoder.encode(applianceInfo.getEngineURL() + "/getData.raw", "UTF-8");
+						engineStoragePlugin = StoragePluginURLParser.getCachedStoragePlugin("pbraw://localhost?rawURL=" + engineRawURL + "&name=engine", configService);
+					}
 					dataSourcesForPV.add(new DataSourceforPV(pvName, engineStoragePlugin, 0, null, null));
 				}
 			} else { 
@@ -78,7 +144,7 @@ public class RetrievalState {
 			// Add the various storage plugins
 			int lifetimeid = 1;
 			for(String store : typeInfo.getDataStores()) {
-				StoragePlugin storagePlugin = StoragePluginURLParser.parseStoragePlugin(store, configService);
+				StoragePlugin storagePlugin = StoragePluginURLParser.getCachedStoragePlugin(store, configService);
 				dataSourcesForPV.add(new DataSourceforPV(pvName, storagePlugin, lifetimeid++, null, null));
 				Event firstKnownEvent = storagePlugin.getFirstKnownEvent(context, pvName);
 				if(firstKnownEvent != null && firstKnownEvent.getEventTimeStamp().before(start)) { 
@@ -100,7 +166,7 @@ public class RetrievalState {
 							logger.debug("Adding Channel Archiver server for " + pvName + " " + caServer.toString() 
 									+ " and asking for data from " + TimeUtils.convertToHumanReadableString(start)
 									+ " and " + TimeUtils.convertToHumanReadableString(creationTime));
-							dataSourcesForPV.add(new DataSourceforPV(pvName, caServer.getServerInfo().getPlugin(count, howStr), lifetimeid++, start, creationTime));
+							dataSourcesForPV.add(new DataSourceforPV(pvName, caServer.getServerInfo().getPlugin(count, howStr, configService), lifetimeid++, start, creationTime));
 						}
 					}
 				} else { 
@@ -166,6 +166,11 @@ public class ArchiverValuesHandler implements XMLRPCStaxProcessor, EventStream,
 	 */
 	private boolean throwYearTransitionException = false;
 
+	/**
+	 * If we stopped parsing the response because of an error, the error.
+	 */
+	private Exception error = null;
+
 	@Override
 	public boolean startElement(String localName) throws IOException {
 		currentNodes.add(localName);
@@ -444,10 +449,20 @@ public class ArchiverValuesHandler implements XMLRPCStaxProcessor, EventStream,
 		} catch(Exception ex) {
 			logger.error("Exception determining next event for pv " + this.pvName, ex);
 			currentEvent = null;
+			error = ex;
 		}
 		return retVal;			
 	}
 
+	/**
+	 * The iterator interface does not let us throw exceptions; so we stop at the first error in the response and remember it here.
+	 * Use this to tell an incomplete response apart from one that simply has no more data.
+	 * @return The error that stopped the parsing; null if we parsed the response completely (so far).
+	 */
+	public Exception getError() {
+		return error;
+	}
+
 
 
 	public HashMap<String, String> getMetaInformation() {
@@ -0,0 +1,241 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval.channelarchiver;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.ChangeInYearsException;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.RemotableOverRaw;
+import org.epics.archiverappliance.retrieval.workers.CurrentThreadWorkerEventStream;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
+
+/**
+ * A local cache of data fetched from a Channel Archiver.
+ * Data from a Channel Archiver does not change once it is old enough; so we cache chunks of raw data in PlainPB stores with daily partitions.
+ * Chunks can be fetched in any order while PlainPB only appends to the end; so each chunk has its own PlainPB store in a folder named after the chunk.
+ * For each PV, we maintain a list of the chunks that have been cached in a small text file; one line per chunk with the start and end epoch seconds.
+ * A chunk is considered cached even if the Channel Archiver had no data for it; however, a chunk is not marked as cached if we ran into errors fetching it.
+ * The events we did get are still added to the store; PlainPB skips events we already have when the chunk is fetched again.
+ * The same PV name can be served by several Channel Archiver servers or archive keys with different data; so each server URL and archive key gets its own subfolder of the cache folder.
+ * There is one cache per subfolder; get it using {@link #getCache(String, String, int, ConfigService) getCache}.
+ * @author mshankar
+ *
+ */
+public class ChannelArchiverCache {
+	private static Logger logger = Logger.getLogger(ChannelArchiverCache.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CACHED_CHUNKS_FOLDER = ".cachedChunks";
+	private static final int EVENTS_PER_APPEND = 10000;
+	private static ConcurrentHashMap<String, ChannelArchiverCache> caches = new ConcurrentHashMap<String, ChannelArchiverCache>();
+
+	private final String rootFolder;
+	private final ConfigService configService;
+	private final ConcurrentHashMap<String, Set<String>> cachedChunksForPV = new ConcurrentHashMap<String, Set<String>>();
+	private final ConcurrentHashMap<String, Object> chunkLocks = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * Get the cache for data from the specified Channel Archiver server and archive key; we have one cache per server URL and archive key within the cache folder.
+	 * @param cacheFolder
+	 * @param serverURL
+	 * @param archiveKey
+	 * @param configService
+	 * @return
+	 */
+	public static ChannelArchiverCache getCache(String cacheFolder, String serverURL, int archiveKey, ConfigService configService) {
+		String rootFolder = cacheFolder + File.separator + getSourceFolderName(serverURL, archiveKey);
+		ChannelArchiverCache cache = caches.get(rootFolder);
+		if(cache == null) {
+			caches.putIfAbsent(rootFolder, new ChannelArchiverCache(rootFolder, configService));
+			cache = caches.get(rootFolder);
+		}
+		return cache;
+	}
+
+	/**
+	 * The name of the subfolder for a server URL and archive key.
+	 * We replace the characters that are not safe in a file name and add the hash code of the URL so that URLs that differ only in those characters do not share a folder.
+	 * @param serverURL
+	 * @param archiveKey
+	 * @return
+	 */
+	static String getSourceFolderName(String serverURL, int archiveKey) {
+		return serverURL.replaceAll("[^A-Za-z0-9]", "_") + "_" + Integer.toHexString(serverURL.hashCode()) + "_" + archiveKey;
+	}
+
+	ChannelArchiverCache(String rootFolder, ConfigService configService) {
+		this.rootFolder = rootFolder;
+		this.configService = configService;
+	}
+
+	public String getRootFolder() {
+		return rootFolder;
+	}
+
+	/**
+	 * Have we cached the data for this PV for this chunk?
+	 * @param pvName
+	 * @param chunkStartEpochSeconds
+	 * @param chunkEndEpochSeconds
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean isCached(String pvName, long chunkStartEpochSeconds, long chunkEndEpochSeconds) throws IOException {
+		return getCachedChunks(pvName).contains(chunkStartEpochSeconds + "," + chunkEndEpochSeconds);
+	}
+
+	/**
+	 * Add the events in the stream that fall within the chunk to the cache and mark the chunk as cached.
+	 * The chunk is expected to be within a year.
+	 * If the stream stopped because of an error, we do not mark the chunk as cached and throw an exception.
+	 * @param pvName
+	 * @param strm - The data from the Channel Archiver; the caller is responsible for closing this.
+	 * @param chunkStartEpochSeconds - inclusive
+	 * @param chunkEndEpochSeconds - exclusive
+	 * @return The number of events added to the cache.
+	 * @throws IOException - If we could not add the events to the cache or if we did not get all the data for the chunk.
+	 */
+	public int addToCache(String pvName, EventStream strm, long chunkStartEpochSeconds, long chunkEndEpochSeconds) throws IOException {
+		// Different chunks go into different stores and can be written concurrently; we only need to serialize writes to the same chunk.
+		String chunkKey = pvName + "," + chunkStartEpochSeconds + "," + chunkEndEpochSeconds;
+		chunkLocks.putIfAbsent(chunkKey, new Object());
+		Object chunkLock = chunkLocks.get(chunkKey);
+		synchronized(chunkLock) {
+			if(isCached(pvName, chunkStartEpochSeconds, chunkEndEpochSeconds)) {
+				return 0;
+			}
+			return addChunkToCache(pvName, strm, chunkStartEpochSeconds, chunkEndEpochSeconds);
+		}
+	}
+
+	private int addChunkToCache(String pvName, EventStream strm, long chunkStartEpochSeconds, long chunkEndEpochSeconds) throws IOException {
+		int eventsAdded = 0;
+		short year = TimeUtils.computeYearForEpochSeconds(chunkStartEpochSeconds);
+		ArrayListEventStream batch = null;
+		try(BasicContext context = new BasicContext()) {
+			PlainPBStoragePlugin storagePlugin = getStoragePlugin(chunkStartEpochSeconds, chunkEndEpochSeconds);
+			Iterator<Event> it = strm.iterator();
+			while(true) {
+				boolean hasNext;
+				try {
+					hasNext = it.hasNext();
+				} catch(ChangeInYearsException ex) {
+					continue;
+				}
+				if(!hasNext) break;
+				Event e = it.next();
+				if(e == null) continue;
+				long epochSeconds = e.getEpochSeconds();
+				if(epochSeconds < chunkStartEpochSeconds || epochSeconds >= chunkEndEpochSeconds) continue;
+				if(batch == null) {
+					ArchDBRTypes dbrType = e.getDBRType();
+					if(dbrType == null) dbrType = ((RemotableOverRaw)strm).getDescription().getArchDBRType();
+					batch = new ArrayListEventStream(EVENTS_PER_APPEND, new RemotableEventStreamDesc(dbrType, pvName, year));
+				}
+				batch.add(e);
+				eventsAdded++;
+				if(batch.size() >= EVENTS_PER_APPEND) {
+					storagePlugin.appendData(context, pvName, batch);
+					batch = new ArrayListEventStream(EVENTS_PER_APPEND, batch.getDescription());
+				}
+			}
+			if(batch != null && !batch.isEmpty()) {
+				storagePlugin.appendData(context, pvName, batch);
+			}
+		}
+		Exception fetchError = ChannelArchiverPagedEventStream.getError(strm);
+		if(fetchError != null) {
+			throw new IOException("Not marking the chunk from " + TimeUtils.convertToISO8601String(chunkStartEpochSeconds) + " to " + TimeUtils.convertToISO8601String(chunkEndEpochSeconds) + " for pv " + pvName + " as cached as we did not get all the data", fetchError);
+		}
+		markChunkAsCached(pvName, chunkStartEpochSeconds, chunkEndEpochSeconds);
+		logger.debug("Cached " + eventsAdded + " events for pv " + pvName + " from " + TimeUtils.convertToISO8601String(chunkStartEpochSeconds) + " to " + TimeUtils.convertToISO8601String(chunkEndEpochSeconds));
+		return eventsAdded;
+	}
+
+	/**
+	 * Get the data for the PV for a time span within a cached chunk.
+	 * @param context
+	 * @param pvName
+	 * @param chunkStartEpochSeconds
+	 * @param chunkEndEpochSeconds
+	 * @param startTime
+	 * @param endTime
+	 * @return A stream of events; if we do not have any data, the stream is empty and has no description.
+	 * @throws IOException
+	 */
+	public EventStream getDataForPV(BasicContext context, String pvName, long chunkStartEpochSeconds, long chunkEndEpochSeconds, Timestamp startTime, Timestamp endTime) throws IOException {
+		List<Callable<EventStream>> callables = getStoragePlugin(chunkStartEpochSeconds, chunkEndEpochSeconds).getDataForPV(context, pvName, startTime, endTime);
+		if(callables == null || callables.isEmpty()) {
+			return new ArrayListEventStream(0, null);
+		}
+		return new CurrentThreadWorkerEventStream(pvName, callables);
+	}
+
+	private PlainPBStoragePlugin getStoragePlugin(long chunkStartEpochSeconds, long chunkEndEpochSeconds) throws IOException {
+		String chunkFolder = rootFolder + File.separator + chunkStartEpochSeconds + "_" + chunkEndEpochSeconds;
+		return (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=ChannelArchiverCache&rootFolder=" + URLEncoder.encode(chunkFolder, "UTF-8") + "&partitionGranularity=PARTITION_DAY", configService);
+	}
+
+	private Set<String> getCachedChunks(String pvName) throws IOException {
+		Set<String> cachedChunks = cachedChunksForPV.get(pvName);
+		if(cachedChunks != null) return cachedChunks;
+		cachedChunks = Collections.synchronizedSet(new HashSet<String>());
+		Path cachedChunksPath = getCachedChunksPath(pvName, false);
+		if(Files.exists(cachedChunksPath)) {
+			for(String line : Files.readAllLines(cachedChunksPath, UTF8)) {
+				line = line.trim();
+				if(!line.isEmpty()) cachedChunks.add(line);
+			}
+		}
+		cachedChunksForPV.putIfAbsent(pvName, cachedChunks);
+		return cachedChunksForPV.get(pvName);
+	}
+
+	private void markChunkAsCached(String pvName, long chunkStartEpochSeconds, long chunkEndEpochSeconds) throws IOException {
+		String chunk = chunkStartEpochSeconds + "," + chunkEndEpochSeconds;
+		Set<String> cachedChunks = getCachedChunks(pvName);
+		synchronized(cachedChunks) {
+			try(BufferedWriter writer = Files.newBufferedWriter(getCachedChunksPath(pvName, true), UTF8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+				writer.write(chunk);
+				writer.newLine();
+			}
+			cachedChunks.add(chunk);
+		}
+	}
+
+	private Path getCachedChunksPath(String pvName, boolean createParentFolder) throws IOException {
+		try(BasicContext context = new BasicContext()) {
+			return context.getPaths().get(createParentFolder, rootFolder, CACHED_CHUNKS_FOLDER, configService.getPVNameToKeyConverter().convertPVNameToKey(pvName) + "txt");
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval.channelarchiver;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeSpan;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+
+/**
+ * A request to the Channel Archiver for a large time span.
+ * The time span is broken into chunks aligned to multiples of chunkDays (and to year boundaries); each chunk is one call to archiver.values.
+ * We fetch a window of chunks ahead concurrently; the responses are spooled into temporary files so that the connections are released as soon as possible.
+ * The chunks are then parsed and returned in order, one stream per chunk.
+ * Older chunks are optionally served from/added to a {@link ChannelArchiverCache}.
+ * This is added as a resource to the retrieval context; closing it cancels outstanding fetches and deletes any remaining spool files.
+ * @author mshankar
+ *
+ */
+class ChannelArchiverChunkedRequest implements Closeable {
+	private static Logger logger = Logger.getLogger(ChannelArchiverChunkedRequest.class.getName());
+	/**
+	 * We only cache chunks that end at least this long ago; the Channel Archiver could still be adding data to more recent chunks.
+	 */
+	private static final long CACHE_ONLY_CHUNKS_OLDER_THAN_SECS = 86400;
+
+	private static class ChunkData {
+		final File spoolFile;
+		final boolean cached;
+		ChunkData(File spoolFile, boolean cached) {
+			this.spoolFile = spoolFile;
+			this.cached = cached;
+		}
+	}
+
+	private final ChannelArchiverReadOnlyPlugin plugin;
+	private final BasicContext context;
+	private final String pvName;
+	private final String pvNameForCall;
+	private final int archiveKey;
+	private final Timestamp startTime;
+	private final Timestamp endTime;
+	private final ArrayList<TimeSpan> chunks;
+	private final ChannelArchiverCache cache;
+	private final ExecutorService executor;
+	private final int prefetchWindow;
+	private final ArchDBRTypes expectedDBRType;
+	private final ArrayList<Future<ChunkData>> fetches;
+	private final Set<File> spoolFiles = Collections.synchronizedSet(new HashSet<File>());
+	private volatile boolean closed = false;
+
+	ChannelArchiverChunkedRequest(ChannelArchiverReadOnlyPlugin plugin, BasicContext context, String pvName, String pvNameForCall, int archiveKey, Timestamp startTime, Timestamp endTime, List<TimeSpan> chunks, ChannelArchiverCache cache, ExecutorService executor, int prefetchWindow) {
+		this.plugin = plugin;
+		this.context = context;
+		this.pvName = pvName;
+		this.pvNameForCall = pvNameForCall;
+		this.archiveKey = archiveKey;
+		this.startTime = startTime;
+		this.endTime = endTime;
+		this.chunks = new ArrayList<TimeSpan>(chunks);
+		this.cache = cache;
+		this.executor = executor;
+		this.prefetchWindow = Math.max(1, prefetchWindow);
+		this.expectedDBRType = context.getRetrievalExpectedDBRType();
+		this.fetches = new ArrayList<Future<ChunkData>>(Collections.<Future<ChunkData>>nCopies(chunks.size(), null));
+	}
+
+	/**
+	 * Break the time span into chunks whose boundaries are multiples of chunkDays since the epoch.
+	 * Chunks are also broken at year boundaries so that each chunk is within a year.
+	 * The first and last chunks are not clipped to the time span; that is, the chunks are the same irrespective of the time span that was asked for.
+	 * If chunkDays is 0 or less, we return the time span as is.
+	 * @param startTime
+	 * @param endTime
+	 * @param chunkDays
+	 * @return
+	 */
+	static List<TimeSpan> splitIntoChunks(Timestamp startTime, Timestamp endTime, int chunkDays) {
+		LinkedList<TimeSpan> ret = new LinkedList<TimeSpan>();
+		if(chunkDays <= 0) {
+			ret.add(new TimeSpan(startTime, endTime));
+			return ret;
+		}
+		long chunkSeconds = chunkDays*86400L;
+		long startEpochSeconds = TimeUtils.convertToEpochSeconds(startTime);
+		long endEpochSeconds = TimeUtils.convertToEpochSeconds(endTime);
+		long chunkStart = Math.max((startEpochSeconds/chunkSeconds)*chunkSeconds, TimeUtils.getStartOfYearInSeconds(startEpochSeconds));
+		while(chunkStart < endEpochSeconds || (chunkStart == endEpochSeconds && endTime.getNanos() > 0)) {
+			long startOfNextYear = TimeUtils.getStartOfYearInSeconds(TimeUtils.computeYearForEpochSeconds(chunkStart) + 1);
+			long chunkEnd = Math.min(((chunkStart/chunkSeconds) + 1)*chunkSeconds, startOfNextYear);
+			ret.add(new TimeSpan(chunkStart, chunkEnd));
+			chunkStart = chunkEnd;
+		}
+		if(ret.isEmpty()) {
+			ret.add(new TimeSpan(startTime, endTime));
+		}
+		return ret;
+	}
+
+	/**
+	 * Get one callable per chunk; the fetches for the first few chunks are started right away.
+	 * @param postProcessor - Optional; if specified, each chunk is wrapped with this post processor.
+	 * @return
+	 */
+	List<Callable<EventStream>> getCallables(PostProcessor postProcessor) {
+		ArrayList<Callable<EventStream>> ret = new ArrayList<Callable<EventStream>>();
+		for(int i = 0; i < chunks.size(); i++) {
+			final int chunkIndex = i;
+			Callable<EventStream> callable = new Callable<EventStream>() {
+				@Override
+				public EventStream call() throws Exception {
+					return getChunkStream(chunkIndex);
+				}
+			};
+			ret.add(postProcessor != null ? postProcessor.wrap(callable) : callable);
+		}
+		submitFetches(0);
+		return ret;
+	}
+
+	/**
+	 * Make sure that we have started fetching the chunks in the window starting at this chunk.
+	 * @param chunkIndex
+	 */
+	private synchronized void submitFetches(int chunkIndex) {
+		for(int i = chunkIndex; i < Math.min(chunks.size(), chunkIndex + prefetchWindow); i++) {
+			if(fetches.get(i) == null && !closed) {
+				final int fetchIndex = i;
+				fetches.set(i, executor.submit(new Callable<ChunkData>() {
+					@Override
+					public ChunkData call() throws Exception {
+						return fetchChunk(fetchIndex);
+					}
+				}));
+			}
+		}
+	}
+
+	private EventStream getChunkStream(int chunkIndex) throws IOException {
+		submitFetches(chunkIndex);
+		TimeSpan chunk = chunks.get(chunkIndex);
+		Timestamp fetchStart = getFetchStart(chunk);
+		Timestamp fetchEnd = getFetchEnd(chunk);
+		ChunkData chunkData;
+		try {
+			chunkData = fetches.get(chunkIndex).get();
+		} catch(InterruptedException ex) {
+			throw new IOException(ex);
+		} catch(ExecutionException ex) {
+			// Let the caller know that we do not have the data for this chunk rather than return an empty stream.
+			throw new IOException("Exception fetching data for pv " + pvName + " from " + TimeUtils.convertToISO8601String(fetchStart) + " to " + TimeUtils.convertToISO8601String(fetchEnd), ex.getCause());
+		}
+
+		if(chunkData != null && chunkData.cached) {
+			return cache.getDataForPV(context, pvName, TimeUtils.convertToEpochSeconds(chunk.getStartTime()), TimeUtils.convertToEpochSeconds(chunk.getEndTime()), fetchStart, fetchEnd);
+		}
+		if(chunkData.spoolFile == null) {
+			// The server did not have a response for us or the request was closed; the description is null and so this stream is skipped.
+			return new ArrayListEventStream(0, null);
+		}
+		return plugin.makePagedStream(pvName, pvNameForCall, archiveKey, openSpoolFile(chunkData.spoolFile), fetchStart, fetchEnd, expectedDBRType);
+	}
+
+	/**
+	 * Runs in the fetch thread.
+	 * @param chunkIndex
+	 * @return
+	 * @throws IOException
+	 */
+	private ChunkData fetchChunk(int chunkIndex) throws IOException {
+		TimeSpan chunk = chunks.get(chunkIndex);
+		long chunkStartEpochSeconds = TimeUtils.convertToEpochSeconds(chunk.getStartTime());
+		long chunkEndEpochSeconds = TimeUtils.convertToEpochSeconds(chunk.getEndTime());
+		boolean useCache = cache != null && chunkEndEpochSeconds <= (TimeUtils.getCurrentEpochSeconds() - CACHE_ONLY_CHUNKS_OLDER_THAN_SECS);
+		if(useCache) {
+			if(!cache.isCached(pvName, chunkStartEpochSeconds, chunkEndEpochSeconds)) {
+				// We fetch the entire chunk and add it to the cache.
+				File spoolFile = spool(plugin.openFirstPage(archiveKey, pvNameForCall, chunk.getStartTime(), chunk.getEndTime()));
+				if(spoolFile == null) {
+					return new ChunkData(null, false);
+				}
+				try(EventStream strm = plugin.makePagedStream(pvName, pvNameForCall, archiveKey, openSpoolFile(spoolFile), chunk.getStartTime(), chunk.getEndTime(), expectedDBRType)) {
+					cache.addToCache(pvName, strm, chunkStartEpochSeconds, chunkEndEpochSeconds);
+				}
+			}
+			return new ChunkData(null, true);
+		}
+		return new ChunkData(spool(plugin.openFirstPage(archiveKey, pvNameForCall, getFetchStart(chunk), getFetchEnd(chunk))), false);
+	}
+
+	private Timestamp getFetchStart(TimeSpan chunk) {
+		return chunk.getStartTime().before(startTime) ? startTime : chunk.getStartTime();
+	}
+
+	private Timestamp getFetchEnd(TimeSpan chunk) {
+		return chunk.getEndTime().after(endTime) ? endTime : chunk.getEndTime();
+	}
+
+	/**
+	 * Copy the response into a temporary file; this releases the connection right away.
+	 * @param is - The response; this is closed by this method.
+	 * @return The temporary file; null if we did not get a response.
+	 * @throws IOException
+	 */
+	private File spool(InputStream is) throws IOException {
+		if(is == null) return null;
+		File spoolFile = File.createTempFile("ChannelArchiver_", ".xml");
+		spoolFiles.add(spoolFile);
+		try {
+			Files.copy(is, spoolFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch(IOException ex) {
+			deleteSpoolFile(spoolFile);
+			throw ex;
+		} finally {
+			is.close();
+		}
+		if(closed) {
+			// The request was closed while we were fetching.
+			deleteSpoolFile(spoolFile);
+			return null;
+		}
+		return spoolFile;
+	}
+
+	private InputStream openSpoolFile(final File spoolFile) throws IOException {
+		return new BufferedInputStream(new FileInputStream(spoolFile) {
+			@Override
+			public void close() throws IOException {
+				super.close();
+				deleteSpoolFile(spoolFile);
+			}
+		});
+	}
+
+	private void deleteSpoolFile(File spoolFile) {
+		spoolFiles.remove(spoolFile);
+		if(spoolFile.exists() && !spoolFile.delete()) {
+			logger.warn("Cannot delete spool file " + spoolFile.getAbsolutePath());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized(this) {
+			closed = true;
+			for(Future<ChunkData> fetch : fetches) {
+				if(fetch != null && !fetch.isDone()) {
+					fetch.cancel(true);
+				}
+			}
+		}
+		for(File spoolFile : new ArrayList<File>(spoolFiles)) {
+			deleteSpoolFile(spoolFile);
+		}
+	}
+}
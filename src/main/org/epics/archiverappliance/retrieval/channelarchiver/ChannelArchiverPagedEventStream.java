@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval.channelarchiver;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Iterator;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.retrieval.ChangeInYearsException;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.RemotableOverRaw;
+
+/**
+ * The Channel Archiver returns at most the requested number of values in one archiver.values call.
+ * This stream pages thru the data; if a page comes back full, we ask for the next page starting just after the last event we saw.
+ * Some data servers also return the sample just before the start time; we skip events that are not after the last event we returned.
+ * Each page is parsed as it streams in; we do not hold more than one page open at a time.
+ * @author mshankar
+ *
+ */
+public class ChannelArchiverPagedEventStream implements EventStream, Iterator<Event>, RemotableOverRaw {
+	private static Logger logger = Logger.getLogger(ChannelArchiverPagedEventStream.class.getName());
+
+	/**
+	 * Fetch a page of data from the Channel Archiver.
+	 */
+	public interface PageFetcher {
+		/**
+		 * @param start
+		 * @param end
+		 * @return The page as a stream of events; null if the server has no more data.
+		 * @throws IOException
+		 */
+		public EventStream fetchPage(Timestamp start, Timestamp end) throws IOException;
+	}
+
+	private final String pvName;
+	private final int valuesPerPage;
+	private final Timestamp end;
+	private final PageFetcher fetcher;
+	private EventStream currentPage;
+	private Iterator<Event> currentIterator;
+	private RemotableEventStreamDesc lastDesc = null;
+	private int eventsInCurrentPage = 0;
+	private int pagesFetched = 1;
+	private Event nextEvent = null;
+	private long lastEventEpochSeconds = -1;
+	private int lastEventNanos = 0;
+	private short lastEventYear = -1;
+	private boolean newPage = false;
+	private Exception error = null;
+
+	/**
+	 * @param pvName
+	 * @param firstPage - The first page of data; this stream takes over the burden of closing it.
+	 * @param valuesPerPage - The number of values we asked for in each page; use 0 to disable paging.
+	 * @param end - The end time of the request
+	 * @param fetcher - Used to fetch subsequent pages.
+	 */
+	public ChannelArchiverPagedEventStream(String pvName, EventStream firstPage, int valuesPerPage, Timestamp end, PageFetcher fetcher) {
+		this.pvName = pvName;
+		this.valuesPerPage = valuesPerPage;
+		this.end = end;
+		this.fetcher = fetcher;
+		this.currentPage = firstPage;
+		this.currentIterator = firstPage != null ? firstPage.iterator() : null;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while(nextEvent == null) {
+			if(currentIterator == null) return false;
+			boolean pageHasNext;
+			try {
+				pageHasNext = currentIterator.hasNext();
+			} catch(ChangeInYearsException ex) {
+				// The page has detected the change in years itself; make sure we do not signal this again.
+				newPage = false;
+				lastEventYear = -1;
+				throw ex;
+			}
+			if(pageHasNext) {
+				Event candidate = currentIterator.next();
+				if(candidate == null) continue;
+				eventsInCurrentPage++;
+				if(lastEventEpochSeconds != -1 && TimeUtils.compare(candidate.getEpochSeconds(), candidate.getNanos(), lastEventEpochSeconds, lastEventNanos) <= 0) {
+					continue;
+				}
+				nextEvent = candidate;
+				short candidateYear = TimeUtils.computeYearForEpochSeconds(candidate.getEpochSeconds());
+				if(newPage) {
+					newPage = false;
+					// The page handler only detects changes in years within a page; we detect changes across pages here.
+					if(lastEventYear != -1 && candidateYear != lastEventYear) {
+						short previousYear = lastEventYear;
+						lastEventYear = candidateYear;
+						throw new ChangeInYearsException(previousYear, candidateYear);
+					}
+				}
+				lastEventYear = candidateYear;
+			} else if(!fetchNextPage()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Event next() {
+		if(nextEvent == null && !hasNext()) return null;
+		Event retVal = nextEvent;
+		nextEvent = null;
+		lastEventEpochSeconds = retVal.getEpochSeconds();
+		lastEventNanos = retVal.getNanos();
+		return retVal;
+	}
+
+	/**
+	 * The current page is exhausted; if it was a full page, fetch the next one.
+	 * @return true if we have a new page to iterate thru.
+	 */
+	private boolean fetchNextPage() {
+		if(valuesPerPage <= 0 || eventsInCurrentPage < valuesPerPage || lastEventEpochSeconds == -1) {
+			return false;
+		}
+		Timestamp nextStart = lastEventNanos >= 999999999 ? TimeUtils.convertFromEpochSeconds(lastEventEpochSeconds + 1, 0) : TimeUtils.convertFromEpochSeconds(lastEventEpochSeconds, lastEventNanos + 1);
+		if(!nextStart.before(end)) {
+			return false;
+		}
+		closeCurrentPage();
+		try {
+			logger.debug("Fetching page " + (pagesFetched + 1) + " for pv " + pvName + " starting at " + TimeUtils.convertToISO8601String(nextStart));
+			currentPage = fetcher.fetchPage(nextStart, end);
+			pagesFetched++;
+		} catch(IOException ex) {
+			logger.error("Exception fetching page " + (pagesFetched + 1) + " for pv " + pvName + " from the Channel Archiver", ex);
+			currentPage = null;
+			error = ex;
+		}
+		if(currentPage == null) {
+			if(error == null) {
+				// We only ask for the next page after a full page; so the server should have had a response for us.
+				error = new IOException("No response from the Channel Archiver for page " + (pagesFetched + 1) + " for pv " + pvName + " starting at " + TimeUtils.convertToISO8601String(nextStart));
+				logger.error(error.getMessage());
+			}
+			currentIterator = null;
+			return false;
+		}
+		currentIterator = currentPage.iterator();
+		eventsInCurrentPage = 0;
+		newPage = true;
+		return true;
+	}
+
+	private void closeCurrentPage() {
+		if(currentPage != null) {
+			if(error == null) error = getError(currentPage);
+			lastDesc = ((RemotableOverRaw)currentPage).getDescription();
+			try {
+				currentPage.close();
+			} catch(IOException ex) {
+				logger.error("Exception closing page for pv " + pvName, ex);
+			}
+		}
+		currentPage = null;
+		currentIterator = null;
+	}
+
+	public int getPagesFetched() {
+		return pagesFetched;
+	}
+
+	/**
+	 * @return The error that stopped us from getting all the data; null if we have not seen any errors (so far).
+	 */
+	public Exception getError() {
+		if(error != null) return error;
+		return getError(currentPage);
+	}
+
+	/**
+	 * Get the error that stopped a stream of data from the Channel Archiver from returning all the data.
+	 * Failures in the middle of a stream are otherwise indistinguishable from the end of the data.
+	 * @param strm
+	 * @return null if we have not seen any errors or if this is not a stream of Channel Archiver data.
+	 */
+	static Exception getError(EventStream strm) {
+		if(strm instanceof ChannelArchiverPagedEventStream) {
+			return ((ChannelArchiverPagedEventStream) strm).getError();
+		} else if(strm instanceof ArchiverValuesHandler) {
+			return ((ArchiverValuesHandler) strm).getError();
+		}
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		nextEvent = null;
+		closeCurrentPage();
+	}
+
+	@Override
+	public Iterator<Event> iterator() {
+		return this;
+	}
+
+	@Override
+	public RemotableEventStreamDesc getDescription() {
+		if(currentPage != null) {
+			return ((RemotableOverRaw)currentPage).getDescription();
+		}
+		return lastDesc;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -19,21 +19,20 @@ import java.net.URL;
 import java.sql.Timestamp;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.Event;
 import org.epics.archiverappliance.EventStream;
 import org.epics.archiverappliance.StoragePlugin;
 import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeSpan;
 import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.config.ConfigService;
 import org.epics.archiverappliance.etl.ConversionFunction;
 import org.epics.archiverappliance.retrieval.CallableEventStream;
@@ -50,6 +49,16 @@ import org.epics.archiverappliance.utils.ui.URIUtils;
  * <li>A PV that is archived in both the appliance and ChannelArchiver. Date ranges should be appliance only, overlap and ChannelArchiver only.</li>
  * <li>A PV that is archived in only the ChannelArchiver.</li>
  * </ol>
+ * Requests for large time spans are broken into chunks that are fetched concurrently and streamed back in order; see {@link ChannelArchiverChunkedRequest}.
+ * The chunk size, the number of concurrent fetches, the page size and an optional local cache can be configured using these installation properties (or URL parameters of the same name).
+ * <ol>
+ * <li><code>chunkDays</code> - The size of each chunk in days; 0 disables chunking. Defaults to 30 days.</li>
+ * <li><code>fetchThreads</code> - The number of chunks that are fetched ahead concurrently. Defaults to 4.
+ * All plugins share one pool of fetch threads; the size of this pool is the value of the installation property.</li>
+ * <li><code>valuesPerPage</code> - If specified, we ask for raw data in pages of these many values and page thru the data using {@link ChannelArchiverPagedEventStream}.</li>
+ * <li><code>cacheFolder</code> - If specified, older chunks of raw data are cached in PlainPB files in this folder; see {@link ChannelArchiverCache}.</li>
+ * </ol>
+ * For installation properties, these names are prefixed with <code>org.epics.archiverappliance.retrieval.channelarchiver.ChannelArchiverReadOnlyPlugin.</code>
  * @author mshankar
  *
  */
@@ -62,6 +71,14 @@ public class ChannelArchiverReadOnlyPlugin implements StoragePlugin {
 	private String name;
 	private int valuesRequested = Integer.MAX_VALUE;
 	// private String howStr = "0";
+	public static final String FETCH_PROPERTY_PREFIX = "org.epics.archiverappliance.retrieval.channelarchiver.ChannelArchiverReadOnlyPlugin.";
+	private int chunkDays = 30;
+	private static final int DEFAULT_FETCH_THREADS = 4;
+	private int fetchThreads = DEFAULT_FETCH_THREADS;
+	private int valuesPerPage = 0;
+	private String cacheFolder = null;
+	private ConfigService configService = null;
+	private static ExecutorService fetchExecutor = null;
 	
 	public ChannelArchiverReadOnlyPlugin() {
 		
@@ -93,34 +110,16 @@ public class ChannelArchiverReadOnlyPlugin implements StoragePlugin {
 	
 	private List<Callable<EventStream>> getDataForPV(BasicContext context, String pvName, Timestamp startTime, Timestamp endTime, int archiveKey, PostProcessor postProcessor) throws IOException {
 		try {
-			// TODO the only thing that seems to get similar charts in ArchiveViewer for production data is using plot-binning.
-			// This is hardcoded somewhere in the Data server or the ArchiveViewer code....
-			// Need to figure out where it and and how to address it.
-			String howStr = "3";
 			String pvNameForCall = pvName;
 			if(context.getPvNameFromRequest() != null) { 
 				logger.info("Using pvName from request " + context.getPvNameFromRequest() + " when making a call to the ChannelArchiver for pv " + pvName);
 				pvNameForCall = context.getPvNameFromRequest();
 			}
 			
-			
-			String archiveValuesStr = new String("<?xml version=\"1.0\"?>\n"
-							+ "<methodCall>\n"
-							+ "<methodName>archiver.values</methodName>\n"
-							+ "<params>\n"
-							+ "<param><value><i4>" + archiveKey + "</i4></value></param>\n"
-							+ "<param><value><array><data><value><string>" + pvNameForCall + "</string></value></data></array></value></param>\n"
-							+ "<param><value><i4>" + TimeUtils.convertToEpochSeconds(startTime)+ "</i4></value></param>\n"
-							+ "<param><value><i4>" + startTime.getNanos() + "</i4></value></param>\n"
-							+ "<param><value><i4>" + TimeUtils.convertToEpochSeconds(endTime) + "</i4></value></param>\n"
-							+ "<param><value><i4>" + endTime.getNanos() + "</i4></value></param>\n"
-							+ "<param><value><i4>" + valuesRequested + "</i4></value></param>\n"
-							+ "<param><value><i4>" + howStr + "</i4></value></param>\n"
-							+ "</params>\n"
-							+ "</methodCall>\n");
 			URI serverURI = new URI(serverURL);
 			if(serverURI.getScheme().equals("file")) {
 				logger.info("Using a file provider for Channel Archiver data - this better be a unit test.");
+				String archiveValuesStr = makeArchiverValuesCall(archiveKey, pvNameForCall, startTime, endTime);
 				// We use the file scheme for unit testing... Yeah, the extensions are hardcoded...
 				InputStream is = new BufferedInputStream(new FileInputStream(new File(serverURI.getPath() + File.separator + pvName + ".xml")));
 				// ArchiverValuesHandler takes over the burden of closing the input stream.
@@ -131,39 +130,29 @@ public class ChannelArchiverReadOnlyPlugin implements StoragePlugin {
 					return CallableEventStream.makeOneStreamCallableList(handler);
 				}
 			} else {
-				StringEntity archiverValues = new StringEntity(archiveValuesStr, ContentType.APPLICATION_XML);
-				if(logger.isDebugEnabled()) {
-					logger.debug(getDescription() + " making call to channel archiver with " + archiveValuesStr);
+				List<TimeSpan> chunks = ChannelArchiverChunkedRequest.splitIntoChunks(startTime, endTime, chunkDays);
+				ChannelArchiverCache cache = null;
+				if(cacheFolder != null && configService != null && chunkDays > 0 && valuesRequested == Integer.MAX_VALUE) {
+					// We only cache raw data; that is, requests where the client has not asked for a specific number of values.
+					// The cache is organized by chunk; so we need chunking to be enabled.
+					cache = ChannelArchiverCache.getCache(cacheFolder, serverURL, archiveKey, configService);
 				}
-				
-				CloseableHttpClient httpclient = HttpClients.createDefault();
-				HttpPost postMethod = new HttpPost(serverURL);
-				postMethod.addHeader("Content-Type", "text/xml");
-				postMethod.setEntity(archiverValues);
-				if(logger.isDebugEnabled()) {
-					logger.debug("About to make a POST with " + archiveValuesStr);
+				if(chunks.size() > 1 || cache != null) {
+					ChannelArchiverChunkedRequest request = new ChannelArchiverChunkedRequest(this, context, pvName, pvNameForCall, archiveKey, startTime, endTime, chunks, cache, getFetchExecutor(configService), fetchThreads);
+					context.addResource(request);
+					return request.getCallables(postProcessor);
 				}
-				HttpResponse response = httpclient.execute(postMethod);
-				int statusCode = response.getStatusLine().getStatusCode();
-				if(statusCode >= 200 && statusCode <= 206) { 
-					HttpEntity entity = response.getEntity();
-					if (entity != null) {
-						logger.debug("Obtained a HTTP entity of length " + entity.getContentLength());
-						// ArchiverValuesHandler takes over the burden of closing the input stream.
-						InputStream is = entity.getContent();
-						ArchiverValuesHandler handler = new ArchiverValuesHandler(pvName, is, serverURL.toString() + "\n" + archiveValuesStr, context.getRetrievalExpectedDBRType());
-						if(postProcessor != null) { 
-							return CallableEventStream.makeOneStreamCallableList(handler, postProcessor, true);
-						} else { 
-							return CallableEventStream.makeOneStreamCallableList(handler);
-						}
-					} else {
-						throw new IOException("HTTP response did not have an entity associated with it");
-					}
-				} else {
-					logger.error("Got an invalid status code " + statusCode + " from the server " + serverURL + " for PV " + pvName + " so returning null");
+
+				EventStream strm = fetchData(pvName, pvNameForCall, archiveKey, startTime, endTime, context.getRetrievalExpectedDBRType());
+				if(strm == null) {
+					logger.error("Did not get any data from the server " + serverURL + " for PV " + pvName + " so returning null");
 					return null;
 				}
+				if(postProcessor != null) { 
+					return CallableEventStream.makeOneStreamCallableList(strm, postProcessor, true);
+				} else { 
+					return CallableEventStream.makeOneStreamCallableList(strm);
+				}
 			}
 		} catch(UnsupportedEncodingException ex) {
 			throw new IOException("Exception making call to Channel Archiver", ex);
@@ -171,6 +160,148 @@ public class ChannelArchiverReadOnlyPlugin implements StoragePlugin {
 			throw new IOException("Invalid URL " + serverURL, e);
 		}
 	}
+	
+	/**
+	 * Are we paging thru raw data? 
+	 * We only do this if the client has not asked for a specific number of values.
+	 * @return
+	 */
+	boolean isPagingRawData() {
+		return valuesRequested == Integer.MAX_VALUE && valuesPerPage > 0;
+	}
+	
+	/**
+	 * Make the XML-RPC call for archiver.values
+	 * @param archiveKey
+	 * @param pvNameForCall
+	 * @param startTime
+	 * @param endTime
+	 * @return
+	 */
+	String makeArchiverValuesCall(int archiveKey, String pvNameForCall, Timestamp startTime, Timestamp endTime) {
+		// TODO the only thing that seems to get similar charts in ArchiveViewer for production data is using plot-binning.
+		// This is hardcoded somewhere in the Data server or the ArchiveViewer code....
+		// Need to figure out where it and and how to address it.
+		// When paging, we have to ask for raw data; plot-binning would bin each page into valuesPerPage bins.
+		String howStr = isPagingRawData() ? "0" : "3";
+		int count = isPagingRawData() ? valuesPerPage : valuesRequested;
+		return "<?xml version=\"1.0\"?>\n"
+						+ "<methodCall>\n"
+						+ "<methodName>archiver.values</methodName>\n"
+						+ "<params>\n"
+						+ "<param><value><i4>" + archiveKey + "</i4></value></param>\n"
+						+ "<param><value><array><data><value><string>" + pvNameForCall + "</string></value></data></array></value></param>\n"
+						+ "<param><value><i4>" + TimeUtils.convertToEpochSeconds(startTime)+ "</i4></value></param>\n"
+						+ "<param><value><i4>" + startTime.getNanos() + "</i4></value></param>\n"
+						+ "<param><value><i4>" + TimeUtils.convertToEpochSeconds(endTime) + "</i4></value></param>\n"
+						+ "<param><value><i4>" + endTime.getNanos() + "</i4></value></param>\n"
+						+ "<param><value><i4>" + count + "</i4></value></param>\n"
+						+ "<param><value><i4>" + howStr + "</i4></value></param>\n"
+						+ "</params>\n"
+						+ "</methodCall>\n";
+	}
+	
+	/**
+	 * Make a call to archiver.values for the first page of data and return the response as a stream. 
+	 * @param archiveKey
+	 * @param pvNameForCall
+	 * @param startTime
+	 * @param endTime
+	 * @return The response; null if the server returned an error
+	 * @throws IOException
+	 */
+	InputStream openFirstPage(int archiveKey, String pvNameForCall, Timestamp startTime, Timestamp endTime) throws IOException {
+		String archiveValuesStr = makeArchiverValuesCall(archiveKey, pvNameForCall, startTime, endTime);
+		if(logger.isDebugEnabled()) {
+			logger.debug(getDescription() + " making call to channel archiver with " + archiveValuesStr);
+		}
+		return XMLRPCClient.archiverValues(serverURL, archiveValuesStr);
+	}
+	
+	/**
+	 * Fetch the data from the server as a stream; if we are paging, this stream fetches subsequent pages as needed.
+	 * @param pvName
+	 * @param pvNameForCall
+	 * @param archiveKey
+	 * @param startTime
+	 * @param endTime
+	 * @param expectedDBRType
+	 * @return null if the server returned an error
+	 * @throws IOException
+	 */
+	EventStream fetchData(String pvName, String pvNameForCall, int archiveKey, Timestamp startTime, Timestamp endTime, ArchDBRTypes expectedDBRType) throws IOException {
+		InputStream is = openFirstPage(archiveKey, pvNameForCall, startTime, endTime);
+		if(is == null) return null;
+		return makePagedStream(pvName, pvNameForCall, archiveKey, is, startTime, endTime, expectedDBRType);
+	}
+	
+	/**
+	 * Wrap the response for the first page of data; if we are paging, the stream fetches subsequent pages as needed.
+	 * @param pvName
+	 * @param pvNameForCall
+	 * @param archiveKey
+	 * @param firstPage - The response for the first page; the returned stream takes over the burden of closing this.
+	 * @param startTime
+	 * @param endTime
+	 * @param expectedDBRType
+	 * @return
+	 * @throws IOException
+	 */
+	EventStream makePagedStream(final String pvName, final String pvNameForCall, final int archiveKey, InputStream firstPage, Timestamp startTime, Timestamp endTime, final ArchDBRTypes expectedDBRType) throws IOException {
+		// ArchiverValuesHandler takes over the burden of closing the input stream.
+		ArchiverValuesHandler handler = new ArchiverValuesHandler(pvName, firstPage, serverURL + "\n" + makeArchiverValuesCall(archiveKey, pvNameForCall, startTime, endTime), expectedDBRType);
+		if(!isPagingRawData()) {
+			return handler;
+		}
+		return new ChannelArchiverPagedEventStream(pvName, handler, valuesPerPage, endTime, new ChannelArchiverPagedEventStream.PageFetcher() {
+			@Override
+			public EventStream fetchPage(Timestamp start, Timestamp end) throws IOException {
+				InputStream is = openFirstPage(archiveKey, pvNameForCall, start, end);
+				if(is == null) return null;
+				return new ArchiverValuesHandler(pvName, is, serverURL + "\n" + makeArchiverValuesCall(archiveKey, pvNameForCall, start, end), expectedDBRType);
+			}
+		});
+	}
+	
+	/**
+	 * Use the installation properties to configure chunking, paging and caching. 
+	 * Plugins created from a URL can override these using URL parameters of the same name.
+	 * @param configService
+	 */
+	public void configureFetching(ConfigService configService) {
+		this.configService = configService;
+		if(configService == null) return;
+		Properties installationProperties = configService.getInstallationProperties();
+		this.chunkDays = Integer.parseInt(installationProperties.getProperty(FETCH_PROPERTY_PREFIX + "chunkDays", Integer.toString(chunkDays)));
+		this.fetchThreads = Integer.parseInt(installationProperties.getProperty(FETCH_PROPERTY_PREFIX + "fetchThreads", Integer.toString(fetchThreads)));
+		this.valuesPerPage = Integer.parseInt(installationProperties.getProperty(FETCH_PROPERTY_PREFIX + "valuesPerPage", Integer.toString(valuesPerPage)));
+		this.cacheFolder = installationProperties.getProperty(FETCH_PROPERTY_PREFIX + "cacheFolder", cacheFolder);
+	}
+	
+	/**
+	 * All Channel Archiver plugins share one pool of threads for fetching chunks.
+	 * The size of the pool comes from the installation properties; plugins that override fetchThreads in their URL only change how many chunks they fetch ahead.
+	 * @param configService - If null, we use the default number of threads.
+	 * @return
+	 */
+	private static synchronized ExecutorService getFetchExecutor(ConfigService configService) {
+		if(fetchExecutor == null) {
+			int threads = DEFAULT_FETCH_THREADS;
+			if(configService != null) {
+				threads = Integer.parseInt(configService.getInstallationProperties().getProperty(FETCH_PROPERTY_PREFIX + "fetchThreads", Integer.toString(DEFAULT_FETCH_THREADS)));
+			}
+			logger.info("Creating a thread pool with " + threads + " threads for fetching data from Channel Archivers");
+			fetchExecutor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Channel Archiver fetch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return fetchExecutor;
+	}
 
 	@Override
 	public boolean appendData(BasicContext context, String pvName, EventStream stream) throws IOException {
@@ -204,6 +335,20 @@ public class ChannelArchiverReadOnlyPlugin implements StoragePlugin {
 				this.setReducedArchiveKey(Integer.parseInt(queryNVPairs.get("reducedArchiveKey")));
 			}
 			
+			configureFetching(configService);
+			if(queryNVPairs.containsKey("chunkDays")) {
+				this.chunkDays = Integer.parseInt(queryNVPairs.get("chunkDays"));
+			}
+			if(queryNVPairs.containsKey("fetchThreads")) {
+				this.fetchThreads = Integer.parseInt(queryNVPairs.get("fetchThreads"));
+			}
+			if(queryNVPairs.containsKey("valuesPerPage")) {
+				this.valuesPerPage = Integer.parseInt(queryNVPairs.get("valuesPerPage"));
+			}
+			if(queryNVPairs.containsKey("cacheFolder")) {
+				this.cacheFolder = queryNVPairs.get("cacheFolder");
+			}
+			
 			if(queryNVPairs.containsKey("name")) {
 				name = queryNVPairs.get("name");
 			} else {
@@ -237,6 +382,22 @@ public class ChannelArchiverReadOnlyPlugin implements StoragePlugin {
 		this.description = description;
 	}
 
+	public int getChunkDays() {
+		return chunkDays;
+	}
+
+	public int getFetchThreads() {
+		return fetchThreads;
+	}
+
+	public int getValuesPerPage() {
+		return valuesPerPage;
+	}
+
+	public String getCacheFolder() {
+		return cacheFolder;
+	}
+
 	public int getReducedArchiveKey() {
 		return reducedArchiveKey;
 	}
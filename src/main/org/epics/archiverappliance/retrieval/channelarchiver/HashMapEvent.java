@@ -13,6 +13,7 @@ import java.util.LinkedList;
 
 import org.epics.archiverappliance.ByteArray;
 import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.data.DBRTimeEvent;
 import org.epics.archiverappliance.data.SampleValue;
@@ -104,6 +105,16 @@ public class HashMapEvent implements DBRTimeEvent {
 		return ret;
 	}
 
+	@Override
+	public int getNanos() {
+		return Integer.parseInt((String)values.get(NANO_FIELD_NAME));
+	}
+
+	@Override
+	public long getEpochNanos() {
+		return TimeUtils.convertToEpochNanos(getEpochSeconds(), getNanos());
+	}
+
 	@Override
 	public ByteArray getRawForm() {
 		throw new UnsupportedOperationException("There should be no need to support a raw form here.");
@@ -21,6 +21,8 @@ import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -34,6 +36,23 @@ import org.xml.sax.helpers.DefaultHandler;
  */
 public class XMLRPCClient {
 	private static Logger logger = Logger.getLogger(XMLRPCClient.class.getName());
+	private static final int MAX_CONNECTIONS_PER_SERVER = 16;
+	private static CloseableHttpClient httpClient = null;
+
+	/**
+	 * We share one pooled HTTP client for all calls to the Channel Archivers; this lets us reuse connections across calls.
+	 * @return
+	 */
+	static synchronized CloseableHttpClient getHttpClient() {
+		if(httpClient == null) {
+			PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+			connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_SERVER);
+			connectionManager.setMaxTotal(MAX_CONNECTIONS_PER_SERVER*4);
+			httpClient = HttpClients.custom().setConnectionManager(connectionManager).build();
+		}
+		return httpClient;
+	}
+
 	/**
 	 * Internal method to make a XML_RPC post call and call the SAX handler on the returned document.
 	 * @param serverURL
@@ -44,12 +63,11 @@ public class XMLRPCClient {
 	 */
 	private static void doHTTPPostAndCallSAXHandler(String serverURL, DefaultHandler handler, StringEntity postEntity)  throws IOException, SAXException {
 		logger.debug("Executing doHTTPPostAndCallSAXHandler with the server URL " + serverURL);
-		CloseableHttpClient httpclient = HttpClients.createDefault();
 		HttpPost postMethod = new HttpPost(serverURL);
 		postMethod.addHeader("Content-Type", "text/xml");
 		postMethod.setEntity(postEntity);
 		logger.debug("Executing the HTTP POST" + serverURL);
-		HttpResponse response = httpclient.execute(postMethod);
+		HttpResponse response = getHttpClient().execute(postMethod);
 		HttpEntity entity = response.getEntity();
 		if (entity != null) {
 			logger.debug("Obtained a HTTP entity of length " + entity.getContentLength());
@@ -129,4 +147,37 @@ public class XMLRPCClient {
 						ContentType.APPLICATION_XML);
 		doHTTPPostAndCallSAXHandler(serverURL, handler, archiverInfo);
 	}
+	
+	
+	/**
+	 * Call archiver.values on the Channel Archiver and return the response as a stream.
+	 * The caller is responsible for closing the stream; this releases the connection back into the pool.
+	 * @param serverURL
+	 * @param archiveValuesStr - The XML-RPC method call for archiver.values
+	 * @return The response; null if the server returned an error status.
+	 * @throws IOException
+	 */
+	public static InputStream archiverValues(String serverURL, String archiveValuesStr) throws IOException {
+		HttpPost postMethod = new HttpPost(serverURL);
+		postMethod.addHeader("Content-Type", "text/xml");
+		postMethod.setEntity(new StringEntity(archiveValuesStr, ContentType.APPLICATION_XML));
+		if(logger.isDebugEnabled()) {
+			logger.debug("About to make a POST with " + archiveValuesStr);
+		}
+		HttpResponse response = getHttpClient().execute(postMethod);
+		int statusCode = response.getStatusLine().getStatusCode();
+		HttpEntity entity = response.getEntity();
+		if(statusCode >= 200 && statusCode <= 206) {
+			if (entity != null) {
+				logger.debug("Obtained a HTTP entity of length " + entity.getContentLength());
+				return entity.getContent();
+			} else {
+				throw new IOException("HTTP response did not have an entity associated with it");
+			}
+		} else {
+			logger.error("Got an invalid status code " + statusCode + " from the server " + serverURL);
+			EntityUtils.consumeQuietly(entity);
+			return null;
+		}
+	}
 }
@@ -0,0 +1,94 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import org.epics.archiverappliance.config.ArchDBRTypes;
+
+/**
+ * A block of samples for a PV as read from a columnar binary response.
+ * The fields are parallel arrays indexed by sample; the values are flattened across samples.
+ * For waveforms, the values for sample <i>i</i> start at the sum of the element counts of the samples before it; use getValueOffset.
+ * @author mshankar
+ * @see ColumnarDataRetrieval
+ */
+public class ColumnarDataBlock {
+	private final String pvName;
+	private final ArchDBRTypes dbrType;
+	private final int sampleCount;
+	private final long[] epochSeconds;
+	private final int[] nanos;
+	private final int[] severities;
+	private final int[] statuses;
+	private final int[] valueOffsets;
+	private final double[] values;
+	private final String[] stringValues;
+
+	ColumnarDataBlock(String pvName, ArchDBRTypes dbrType, int sampleCount, long[] epochSeconds, int[] nanos, int[] severities, int[] statuses, int[] valueOffsets, double[] values, String[] stringValues) {
+		this.pvName = pvName;
+		this.dbrType = dbrType;
+		this.sampleCount = sampleCount;
+		this.epochSeconds = epochSeconds;
+		this.nanos = nanos;
+		this.severities = severities;
+		this.statuses = statuses;
+		this.valueOffsets = valueOffsets;
+		this.values = values;
+		this.stringValues = stringValues;
+	}
+
+	public String getPvName() {
+		return pvName;
+	}
+
+	public ArchDBRTypes getDBRType() {
+		return dbrType;
+	}
+
+	public int getSampleCount() {
+		return sampleCount;
+	}
+
+	public long[] getEpochSeconds() {
+		return epochSeconds;
+	}
+
+	public int[] getNanos() {
+		return nanos;
+	}
+
+	public int[] getSeverities() {
+		return severities;
+	}
+
+	public int[] getStatuses() {
+		return statuses;
+	}
+
+	/**
+	 * @return The values as doubles; this is null if the values were sent as strings.
+	 */
+	public double[] getValues() {
+		return values;
+	}
+
+	/**
+	 * @return The values as strings; this is null if the values were sent as doubles.
+	 */
+	public String[] getStringValues() {
+		return stringValues;
+	}
+
+	/**
+	 * @param sample
+	 * @return The index of the first value of the specified sample in getValues/getStringValues
+	 */
+	public int getValueOffset(int sample) {
+		return valueOffsets[sample];
+	}
+
+	/**
+	 * @param sample
+	 * @return The number of values for the specified sample; this is 1 for scalars.
+	 */
+	public int getElementCount(int sample) {
+		return valueOffsets[sample+1] - valueOffsets[sample];
+	}
+}
@@ -0,0 +1,228 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.retrieval.mimeresponses.ColumnarBinaryResponse;
+
+/**
+ * Client side class for retrieving data from the appliance archiver using the columnar binary response.
+ * Use this with the <code>cbin</code> mime type; for example, <code>http://localhost:17665/retrieval/data/getDataForPVs.cbin</code>.
+ * Unlike RawDataRetrievalAsEventStream, we do not generate events; rather, the data comes back as blocks of primitive arrays.
+ * This is meant for bulk exports where the cost of creating an object per sample dominates.
+ * @author mshankar
+ * @see ColumnarBinaryResponse
+ */
+public class ColumnarDataRetrieval {
+	private static Logger logger = Logger.getLogger(ColumnarDataRetrieval.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private String accessURL = null;
+
+	public ColumnarDataRetrieval(String accessURL) {
+		this.accessURL = accessURL;
+	}
+
+	/**
+	 * Get data for multiple PVs from starttime to endtime.
+	 * @param pvNames
+	 * @param startTime
+	 * @param endTime
+	 * @param otherParams - Any other name/value pairs that are passed onto the server; for example, a post processor.
+	 * @return A reader for the response; the caller is responsible for closing this. This is null if we did not get any data.
+	 * @throws IOException
+	 */
+	public Reader getDataForPVS(String[] pvNames, Timestamp startTime, Timestamp endTime, HashMap<String, String> otherParams) throws IOException {
+		StringWriter buf = new StringWriter();
+		buf.append(accessURL)
+		.append("?from=").append(URLEncoder.encode(TimeUtils.convertToISO8601String(startTime), "UTF-8"))
+		.append("&to=").append(URLEncoder.encode(TimeUtils.convertToISO8601String(endTime), "UTF-8"));
+		for(String pvName : pvNames) {
+			buf.append("&pv=").append(URLEncoder.encode(pvName, "UTF-8"));
+		}
+		if(otherParams != null) {
+			for(String key : otherParams.keySet()) {
+				buf.append("&");
+				buf.append(key);
+				buf.append("=");
+				buf.append(URLEncoder.encode(otherParams.get(key), "UTF-8"));
+			}
+		}
+		String getURL = buf.toString();
+		logger.info("URL to fetch data is " + getURL);
+		URL url = new URL(getURL);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.connect();
+		if(connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+			return new Reader(new BufferedInputStream(connection.getInputStream()));
+		} else {
+			logger.info("No data found using URL " + url.toString() + " Response code " + connection.getResponseCode());
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a columnar binary response one block at a time.
+	 * A block has samples for one PV; the data for a PV can span many blocks.
+	 * Only one block is held in memory at a time.
+	 * @author mshankar
+	 *
+	 */
+	public static class Reader implements Closeable {
+		private final DataInputStream is;
+		private String currentPVName = null;
+		private ArchDBRTypes currentDBRType = null;
+		private boolean currentIsWaveform = false;
+		private boolean currentValuesAsStrings = false;
+		private boolean endOfResponse = false;
+		private byte[] readBuffer = new byte[64*1024];
+
+		public Reader(InputStream is) throws IOException {
+			this.is = new DataInputStream(is);
+			int magic = readInt();
+			if(magic != ColumnarBinaryResponse.MAGIC) {
+				throw new IOException("The response does not seem to be a columnar binary response. Magic " + Integer.toHexString(magic));
+			}
+			int version = readInt();
+			if(version != ColumnarBinaryResponse.VERSION) {
+				throw new IOException("Unsupported version " + version + " of the columnar binary response.");
+			}
+		}
+
+		/**
+		 * @return The next block of data or null if we have reached the end of the response.
+		 * @throws IOException
+		 */
+		public ColumnarDataBlock nextBlock() throws IOException {
+			while(!endOfResponse) {
+				byte tag;
+				try {
+					tag = is.readByte();
+				} catch(EOFException ex) {
+					throw new IOException("Premature end of the columnar binary response", ex);
+				}
+				switch(tag) {
+				case ColumnarBinaryResponse.PV_HEADER:
+					readPVHeader();
+					break;
+				case ColumnarBinaryResponse.DATA_BLOCK:
+					return readDataBlock();
+				case ColumnarBinaryResponse.END_OF_RESPONSE:
+					endOfResponse = true;
+					break;
+				default:
+					throw new IOException("Unknown tag " + tag + " in the columnar binary response");
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void close() throws IOException {
+			is.close();
+		}
+
+		private void readPVHeader() throws IOException {
+			currentPVName = readString();
+			int dbrTypeInt = readInt();
+			currentDBRType = null;
+			for(ArchDBRTypes dbrType : ArchDBRTypes.values()) {
+				if(dbrType.getIntegerMap() == dbrTypeInt) {
+					currentDBRType = dbrType;
+					break;
+				}
+			}
+			if(currentDBRType == null) {
+				throw new IOException("Unknown DBR type " + dbrTypeInt + " for pv " + currentPVName);
+			}
+			currentIsWaveform = currentDBRType.isWaveForm();
+			// The element count of the first sample is informational; each block has the element counts for waveforms.
+			readInt();
+			currentValuesAsStrings = is.readByte() == ColumnarBinaryResponse.VALUES_AS_STRINGS;
+		}
+
+		private ColumnarDataBlock readDataBlock() throws IOException {
+			if(currentPVName == null) {
+				throw new IOException("Data block without a PV header");
+			}
+			int sampleCount = readInt();
+			int valueCount = readInt();
+			ByteBuffer buf = readFully(sampleCount*8);
+			long[] epochSeconds = new long[sampleCount];
+			buf.asLongBuffer().get(epochSeconds);
+			int[] nanos = readInts(sampleCount);
+			int[] severities = readInts(sampleCount);
+			int[] statuses = readInts(sampleCount);
+			int[] valueOffsets = new int[sampleCount+1];
+			if(currentIsWaveform) {
+				int[] elementCounts = readInts(sampleCount);
+				for(int i = 0; i < sampleCount; i++) {
+					valueOffsets[i+1] = valueOffsets[i] + elementCounts[i];
+				}
+			} else {
+				for(int i = 0; i <= sampleCount; i++) {
+					valueOffsets[i] = i;
+				}
+			}
+			if(valueOffsets[sampleCount] != valueCount) {
+				throw new IOException("Element counts do not add up to the value count " + valueCount + " for pv " + currentPVName);
+			}
+			if(currentValuesAsStrings) {
+				String[] stringValues = new String[valueCount];
+				for(int i = 0; i < valueCount; i++) {
+					stringValues[i] = readString();
+				}
+				return new ColumnarDataBlock(currentPVName, currentDBRType, sampleCount, epochSeconds, nanos, severities, statuses, valueOffsets, null, stringValues);
+			} else {
+				double[] values = new double[valueCount];
+				readFully(valueCount*8).asDoubleBuffer().get(values);
+				return new ColumnarDataBlock(currentPVName, currentDBRType, sampleCount, epochSeconds, nanos, severities, statuses, valueOffsets, values, null);
+			}
+		}
+
+		private int[] readInts(int count) throws IOException {
+			int[] ret = new int[count];
+			readFully(count*4).asIntBuffer().get(ret);
+			return ret;
+		}
+
+		private int readInt() throws IOException {
+			return readFully(4).getInt();
+		}
+
+		private String readString() throws IOException {
+			int len = readInt();
+			ByteBuffer buf = readFully(len);
+			return new String(buf.array(), 0, len, UTF8);
+		}
+
+		/**
+		 * Read the specified number of bytes into our read buffer and return a little endian view of these bytes.
+		 */
+		private ByteBuffer readFully(int len) throws IOException {
+			if(len < 0) {
+				throw new IOException("Invalid length " + len + " in the columnar binary response");
+			}
+			if(readBuffer.length < len) {
+				readBuffer = new byte[len];
+			}
+			is.readFully(readBuffer, 0, len);
+			return ByteBuffer.wrap(readBuffer, 0, len).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+}
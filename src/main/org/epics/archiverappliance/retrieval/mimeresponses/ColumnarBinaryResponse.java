@@ -0,0 +1,286 @@
+package org.epics.archiverappliance.retrieval.mimeresponses;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.EventStreamDesc;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.AlarmInfo;
+import org.epics.archiverappliance.data.PrimitiveVectorValue;
+import org.epics.archiverappliance.data.SampleValue;
+
+/**
+ * A columnar binary response meant for bulk export into offline analysis tools.
+ * The row oriented responses (PB, JSON, CSV...) spend most of their time (both on the server and the client) encoding and decoding individual events.
+ * Here, we buffer a block of events for a PV and write each field of the block as a little endian primitive array.
+ * Clients can read these straight into numpy arrays, ByteBuffers etc.
+ * Memory is bounded by the block size; so this can be used for very large requests.
+ *
+ * The response is a sequence of records; all numbers are little endian.
+ * <ol>
+ * <li>The response starts with the {@link #MAGIC} int and the {@link #VERSION} int.</li>
+ * <li>A {@link #PV_HEADER} record is a byte tag followed by
+ * <ul>
+ * <li>the PV name as an int length followed by those many UTF-8 bytes</li>
+ * <li>the DBR type as the int from db_access.h (see ArchDBRTypes.getIntegerMap)</li>
+ * <li>the element count of the first sample as an int</li>
+ * <li>a byte indicating the value encoding; either {@link #VALUES_AS_DOUBLES} or {@link #VALUES_AS_STRINGS}</li>
+ * </ul>
+ * </li>
+ * <li>One or more {@link #DATA_BLOCK} records for the PV. Each of these is a byte tag followed by
+ * <ul>
+ * <li>an int <i>n</i> - the number of samples in this block</li>
+ * <li>an int <i>v</i> - the total number of values in this block; for scalars, this is the same as <i>n</i></li>
+ * <li><i>n</i> longs - the epoch seconds of each sample</li>
+ * <li><i>n</i> ints - the nanos of each sample</li>
+ * <li><i>n</i> ints - the severity of each sample</li>
+ * <li><i>n</i> ints - the status of each sample</li>
+ * <li>For waveforms only, <i>n</i> ints - the element count of each sample.</li>
+ * <li>The values; either <i>v</i> doubles or <i>v</i> strings each of which is an int length followed by those many UTF-8 bytes.</li>
+ * </ul>
+ * </li>
+ * <li>The response ends with a {@link #END_OF_RESPONSE} tag.</li>
+ * </ol>
+ * PVs that have no data in the requested time frame do not appear in the response.
+ * See ColumnarDataRetrieval for a reader.
+ * @author mshankar
+ *
+ */
+public class ColumnarBinaryResponse implements MimeResponse {
+	private static Logger logger = Logger.getLogger(ColumnarBinaryResponse.class.getName());
+	/**
+	 * The bytes <code>AACB</code> read as a little endian int.
+	 */
+	public static final int MAGIC = 0x42434141;
+	public static final int VERSION = 1;
+	public static final byte PV_HEADER = 1;
+	public static final byte DATA_BLOCK = 2;
+	public static final byte END_OF_RESPONSE = 3;
+	public static final byte VALUES_AS_DOUBLES = 0;
+	public static final byte VALUES_AS_STRINGS = 1;
+	/**
+	 * The maximum number of samples in a block.
+	 */
+	public static final int MAX_SAMPLES_PER_BLOCK = 8192;
+	/**
+	 * We also limit the number of values in a block so that large waveforms do not blow up the memory.
+	 */
+	public static final int MAX_VALUES_PER_BLOCK = 1024*1024;
+	private static final int WRITE_BUFFER_SIZE = 64*1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private OutputStream os = null;
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private String pvName = null;
+	private boolean pvHeaderWritten = false;
+	private boolean isWaveform = false;
+	private boolean valuesAsStrings = false;
+
+	private int sampleCount = 0;
+	private int valueCount = 0;
+	private long[] epochSeconds = new long[MAX_SAMPLES_PER_BLOCK];
+	private int[] nanos = new int[MAX_SAMPLES_PER_BLOCK];
+	private int[] severities = new int[MAX_SAMPLES_PER_BLOCK];
+	private int[] statuses = new int[MAX_SAMPLES_PER_BLOCK];
+	private int[] elementCounts = new int[MAX_SAMPLES_PER_BLOCK];
+	private double[] doubleValues = new double[MAX_SAMPLES_PER_BLOCK];
+	private ArrayList<String> stringValues = new ArrayList<String>();
+
+	@Override
+	public void setOutputStream(OutputStream os) {
+		this.os = os;
+		try {
+			writeBuffer.putInt(MAGIC);
+			writeBuffer.putInt(VERSION);
+		} catch(Exception ex) {
+			logger.error("Exception writing the header for the columnar response", ex);
+		}
+	}
+
+	@Override
+	public void processingPV(String pv, Timestamp start, Timestamp end, EventStreamDesc streamDesc) {
+		try {
+			writeBlock();
+		} catch(IOException ex) {
+			logIOException("Exception writing data block for pv " + this.pvName, ex);
+		}
+		this.pvName = pv;
+		this.pvHeaderWritten = false;
+	}
+
+	@Override
+	public void swicthingToStream(EventStream strm) {
+		// Nothing to do here; the PV header has the type information we need.
+	}
+
+	@Override
+	public void consumeEvent(Event e) throws Exception {
+		SampleValue sampleValue = e.getSampleValue();
+		if(!pvHeaderWritten) {
+			writePVHeader(e.getDBRType(), sampleValue.getElementCount());
+		}
+		int elementCount = isWaveform ? sampleValue.getElementCount() : 1;
+		if(sampleCount >= MAX_SAMPLES_PER_BLOCK || (sampleCount > 0 && valueCount + elementCount > MAX_VALUES_PER_BLOCK)) {
+			writeBlock();
+		}
+		epochSeconds[sampleCount] = e.getEpochSeconds();
+		nanos[sampleCount] = e.getNanos();
+		if(e instanceof AlarmInfo) {
+			severities[sampleCount] = ((AlarmInfo) e).getSeverity();
+			statuses[sampleCount] = ((AlarmInfo) e).getStatus();
+		} else {
+			severities[sampleCount] = 0;
+			statuses[sampleCount] = 0;
+		}
+		elementCounts[sampleCount] = elementCount;
+		if(valuesAsStrings) {
+			if(isWaveform && e.getDBRType() == ArchDBRTypes.DBR_WAVEFORM_STRING) {
+				for(int i = 0; i < elementCount; i++) {
+					stringValues.add(sampleValue.getStringValue(i));
+				}
+			} else {
+				stringValues.add(sampleValue.toString());
+			}
+		} else {
+			if(valueCount + elementCount > doubleValues.length) {
+				doubleValues = Arrays.copyOf(doubleValues, Math.max(doubleValues.length*2, valueCount + elementCount));
+			}
+			if(isWaveform && sampleValue instanceof PrimitiveVectorValue) {
+				((PrimitiveVectorValue<?>) sampleValue).copyToDoubleArray(doubleValues, valueCount);
+			} else if(isWaveform) {
+				for(int i = 0; i < elementCount; i++) {
+					doubleValues[valueCount + i] = sampleValue.getValue(i).doubleValue();
+				}
+			} else {
+				doubleValues[valueCount] = sampleValue.getValue().doubleValue();
+			}
+		}
+		valueCount += elementCount;
+		sampleCount++;
+	}
+
+	@Override
+	public void close() {
+		try {
+			writeBlock();
+			ensureRoom(1);
+			writeBuffer.put(END_OF_RESPONSE);
+			flushWriteBuffer();
+			os.flush();
+		} catch(IOException ex) {
+			logIOException("Exception closing the columnar response", ex);
+		} finally {
+			try { os.close(); os = null; } catch(Exception t) {}
+		}
+	}
+
+	@Override
+	public HashMap<String, String> getExtraHeaders() {
+		return null;
+	}
+
+	private void writePVHeader(ArchDBRTypes dbrType, int elementCount) throws IOException {
+		isWaveform = dbrType.isWaveForm();
+		valuesAsStrings = dbrType == ArchDBRTypes.DBR_SCALAR_STRING || dbrType == ArchDBRTypes.DBR_WAVEFORM_STRING || dbrType == ArchDBRTypes.DBR_V4_GENERIC_BYTES;
+		ensureRoom(1);
+		writeBuffer.put(PV_HEADER);
+		writeString(pvName != null ? pvName : "");
+		ensureRoom(9);
+		writeBuffer.putInt(dbrType.getIntegerMap());
+		writeBuffer.putInt(elementCount);
+		writeBuffer.put(valuesAsStrings ? VALUES_AS_STRINGS : VALUES_AS_DOUBLES);
+		pvHeaderWritten = true;
+	}
+
+	/**
+	 * Write out the samples we have buffered (if any) as a block and reset the buffers.
+	 * @throws IOException
+	 */
+	private void writeBlock() throws IOException {
+		if(sampleCount <= 0) return;
+		ensureRoom(9);
+		writeBuffer.put(DATA_BLOCK);
+		writeBuffer.putInt(sampleCount);
+		writeBuffer.putInt(valueCount);
+		for(int i = 0; i < sampleCount; i++) {
+			ensureRoom(8);
+			writeBuffer.putLong(epochSeconds[i]);
+		}
+		writeInts(nanos, sampleCount);
+		writeInts(severities, sampleCount);
+		writeInts(statuses, sampleCount);
+		if(isWaveform) {
+			writeInts(elementCounts, sampleCount);
+		}
+		if(valuesAsStrings) {
+			for(String stringValue : stringValues) {
+				writeString(stringValue != null ? stringValue : "");
+			}
+		} else {
+			for(int i = 0; i < valueCount; i++) {
+				ensureRoom(8);
+				writeBuffer.putDouble(doubleValues[i]);
+			}
+		}
+		flushWriteBuffer();
+		sampleCount = 0;
+		valueCount = 0;
+		stringValues.clear();
+		if(doubleValues.length > MAX_VALUES_PER_BLOCK) {
+			// Do not hold onto the memory from a very large waveform.
+			doubleValues = new double[MAX_SAMPLES_PER_BLOCK];
+		}
+	}
+
+	private void writeInts(int[] values, int count) throws IOException {
+		for(int i = 0; i < count; i++) {
+			ensureRoom(4);
+			writeBuffer.putInt(values[i]);
+		}
+	}
+
+	private void writeString(String str) throws IOException {
+		byte[] strBytes = str.getBytes(UTF8);
+		ensureRoom(4);
+		writeBuffer.putInt(strBytes.length);
+		int offset = 0;
+		while(offset < strBytes.length) {
+			ensureRoom(1);
+			int len = Math.min(writeBuffer.remaining(), strBytes.length - offset);
+			writeBuffer.put(strBytes, offset, len);
+			offset += len;
+		}
+	}
+
+	private void ensureRoom(int bytes) throws IOException {
+		if(writeBuffer.remaining() < bytes) {
+			flushWriteBuffer();
+		}
+	}
+
+	private void flushWriteBuffer() throws IOException {
+		if(writeBuffer.position() > 0) {
+			os.write(writeBuffer.array(), 0, writeBuffer.position());
+			writeBuffer.clear();
+		}
+	}
+
+	private static void logIOException(String msg, IOException ex) {
+		if(ex != null && ex.toString() != null && ex.toString().contains("ClientAbortException")) {
+			// We check for ClientAbortException etc this way to avoid including tomcat jars in the build path.
+			logger.debug(msg, ex);
+		} else {
+			logger.error(msg + " --> " + ex.toString(), ex);
+		}
+	}
+}
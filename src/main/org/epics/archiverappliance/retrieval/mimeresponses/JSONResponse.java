@@ -43,7 +43,7 @@ public class JSONResponse implements MimeResponse {
 		}
 		out.print("{ \"secs\": " + evnt.getEpochSeconds() 
 				+ ", \"val\": " + evnt.getSampleValue().toJSONString()
-				+ ", \"nanos\": " + Integer.toString(evnt.getEventTimeStamp().getNanos())
+				+ ", \"nanos\": " + Integer.toString(evnt.getNanos())
 				+ ", \"severity\":" + Integer.toString(evnt.getSeverity())
 				+ ", \"status\":" + Integer.toString(evnt.getStatus())
 				+ consumeMetadata(evnt)
@@ -14,6 +14,7 @@ import org.epics.archiverappliance.EventStream;
 import org.epics.archiverappliance.EventStreamDesc;
 import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.PrimitiveVectorValue;
 import org.epics.archiverappliance.data.SampleValue;
 import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
 import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
@@ -130,7 +131,7 @@ public class MatlabResponse implements MimeResponse {
 			MLUInt8 ret = new MLUInt8("isDST", new int[] {dest.size(), 1} );
 			int i = 0;
 			for(Event e : dest) {
-				ret.set(TimeUtils.isDST(e.getEventTimeStamp()) ? (byte) 1 : (byte) 0, i++);
+				ret.set(TimeUtils.isDST(e.getEpochSeconds()) ? (byte) 1 : (byte) 0, i++);
 			}
 			return ret;
 		}
@@ -144,8 +145,15 @@ public class MatlabResponse implements MimeResponse {
 				int i = 0;
 				for(Event e : dest) {
 					SampleValue sampleValue = e.getSampleValue();
-					for(int col = 0; col < sampleValue.getElementCount(); col++) {
-						ret.set(sampleValue.getValue(col).doubleValue(), i, col);
+					if(sampleValue instanceof PrimitiveVectorValue) {
+						PrimitiveVectorValue<?> primitiveValue = (PrimitiveVectorValue<?>) sampleValue;
+						for(int col = 0; col < primitiveValue.getElementCount(); col++) {
+							ret.set(primitiveValue.getDoubleValue(col), i, col);
+						}
+					} else {
+						for(int col = 0; col < sampleValue.getElementCount(); col++) {
+							ret.set(sampleValue.getValue(col).doubleValue(), i, col);
+						}
 					}
 					i++;
 				}
@@ -166,7 +174,7 @@ public class MatlabResponse implements MimeResponse {
 			MLUInt64 ret = new MLUInt64("nanos", new int[] {dest.size(), 1} );
 			int i = 0;
 			for(Event e : dest) {
-				ret.set((long) e.getEventTimeStamp().getNanos(), i++);
+				ret.set((long) e.getNanos(), i++);
 			}
 			return ret;
 		}
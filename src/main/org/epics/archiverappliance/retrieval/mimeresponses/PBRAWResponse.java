@@ -79,7 +79,7 @@ public class PBRAWResponse implements MimeResponse {
 				throw new IOException(msg);
 			}
 			try { 
-				short eventYear = TimeUtils.convertToYearSecondTimestamp(e.getEventTimeStamp()).getYear();
+				short eventYear = TimeUtils.computeYearForEpochSeconds(e.getEpochSeconds());
 				if(eventYear != previouslySentYear) {
 					logger.debug("Writing header as part of event for year " + eventYear);
 					headerToBeSentLater.setYear(eventYear);
@@ -33,7 +33,7 @@ public class TextResponse implements MimeResponse, ExceptionCommunicator {
 				+ "\t" + e.getSampleValue().toString()
 				+ "\t" + (((DBRTimeEvent)e).getSeverity())
 				+ "\t" + (((DBRTimeEvent)e).getStatus())
-				+ "\t" + (((DBRTimeEvent)e).getEventTimeStamp().getNanos())
+				+ "\t" + e.getNanos()
 				);
 	}
 
@@ -2,14 +2,14 @@ package org.epics.archiverappliance.retrieval.postprocessors;
 
 import java.io.IOException;
 import java.sql.Timestamp;
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 import java.util.concurrent.Callable;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.Event;
 import org.epics.archiverappliance.EventStream;
@@ -21,7 +21,9 @@ import org.epics.archiverappliance.config.PVTypeInfo;
 import org.epics.archiverappliance.data.DBRTimeEvent;
 import org.epics.archiverappliance.data.ScalarValue;
 import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.ChangeInYearsException;
 import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.RemotableOverRaw;
 
 import edu.stanford.slac.archiverappliance.PB.data.PBParseException;
 
@@ -38,6 +40,9 @@ import edu.stanford.slac.archiverappliance.PB.data.PBParseException;
  * the maximum of all raw samples who's time stamps fall into the bin. They
  * are presented to the user in the sequence initial, minimum, maximum, final.</li>
  * </ol>
+ * 
+ * The bins are kept in a SummaryBinStore (first, last, min and max values along with the timestamps of the first and last samples and the count) 
+ * and the events are generated lazily as the consolidated event stream is iterated.
  *  
  * @author mshankar
  *
@@ -76,96 +81,18 @@ public class CAPlotBinning implements PostProcessor, PostProcessorWithConsolidat
 	private static Logger logger = Logger.getLogger(CAPlotBinning.class.getName());
 	int intervalSecs = PostProcessors.DEFAULT_SUMMARIZING_INTERVAL;
 	
-	class PlotBin { 
-		Event firstSample;
-		Event lastSample;
-		SummaryStatistics stats = new SummaryStatistics();
-		long binNumber = 0;
-		/**
-		 * Maximize severity
-		 */
-		int maximizedSeverity = 0;
-		/**
-		 * Do we have any connection changed events
-		 */
-		boolean connectionChanged = false;
-
-		
-		PlotBin(long binNumber) { 
-			this.binNumber = binNumber;
-		}
-		
-		void addEvent(Event e) { 
-			if(firstSample == null) { 
-				firstSample = e.makeClone();
-				stats.addValue(firstSample.getSampleValue().getValue().doubleValue());
-				return;
-			}
-			if(lastSample == null) { 
-				lastSample = e.makeClone();
-				stats.addValue(lastSample.getSampleValue().getValue().doubleValue());
-				return;
-				
-			}
-			// We have more than two samples
-			if(e.getEventTimeStamp().after(lastSample.getEventTimeStamp())) { 
-				lastSample = e.makeClone();
-				stats.addValue(lastSample.getSampleValue().getValue().doubleValue());
-				return;
-			}
-		}
-		
-
-		public void outputEvents(ArrayListEventStream ret) {
-			// If there is no sample for the time span of a bin, the bin remains empty
-			if(firstSample == null) { 
-				return;
-			}
-
-			if(ret.getDescription().getYear() == -1) {
-				short curYear = TimeUtils.computeYearForEpochSeconds(firstSample.getEpochSeconds());
-				logger.debug("Initialize the current year as the year of the first bin with a value it it " + curYear);
-				ret.getDescription().setYear(curYear);
-			}
-			
-			// If there is one sample, it is placed in the bin
-			if(lastSample == null) { 
-				ret.add(makeEvent(SampleLocation.ASIS, firstSample.getEpochSeconds(), firstSample.getSampleValue().getValue().doubleValue()));
-				return;
-			}
-			// If there are two samples, they are placed in the bin
-			if(stats.getN() == 2) { 
-				ret.add(makeEvent(SampleLocation.ASIS, firstSample.getEpochSeconds(), firstSample.getSampleValue().getValue().doubleValue()));
-				ret.add(makeEvent(SampleLocation.ASIS, lastSample.getEpochSeconds(), lastSample.getSampleValue().getValue().doubleValue()));
-				return;
-			}
-
-			// If there are more than two samples...
-			// presented to the user in the sequence initial, minimum, maximum, final
-			long binStartEpochSeconds = binNumber*intervalSecs;
-			ret.add(makeEvent(SampleLocation.FIRSTSAMPLE, binStartEpochSeconds, firstSample.getSampleValue().getValue().doubleValue()));
-			ret.add(makeEvent(SampleLocation.MINSAMPLE, binStartEpochSeconds, stats.getMin()));
-			ret.add(makeEvent(SampleLocation.MAXSAMPLE, binStartEpochSeconds, stats.getMax()));
-			ret.add(makeEvent(SampleLocation.LASTSAMPLE, binStartEpochSeconds, lastSample.getSampleValue().getValue().doubleValue()));
-		}
-		
-		
-		private Event makeEvent(SampleLocation location, long binStartEpochSeconds, double value) {
-			long epochSeconds = location.getLocationEpochSeconds(binStartEpochSeconds, binNumber, intervalSecs);
-			// logger.info("Location " + location.toString() + " epochSeconds " + epochSeconds + " for bin " + binNumber + " and intervalSecs " + intervalSecs);
-			POJOEvent pojoEvent = new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE,
-					TimeUtils.convertFromEpochSeconds(epochSeconds, 0), 
-					new ScalarValue<Double>(value), 
-					0, this.maximizedSeverity);
-			DBRTimeEvent pbevent = (DBRTimeEvent) pojoEvent.makeClone();
-			if(this.connectionChanged) { 
-				pbevent.addFieldValue("connectionChange", "true");
-			}
-			return pbevent;
-		}
-	}
+	// Value columns in the bin store
+	private static final int FIRST_VALUE = 0;
+	private static final int LAST_VALUE = 1;
+	private static final int MIN_VALUE = 2;
+	private static final int MAX_VALUE = 3;
+	// Long columns in the bin store
+	private static final int FIRST_EPOCHSECONDS = 0;
+	private static final int LAST_EPOCHSECONDS = 1;
+	private static final int LAST_NANOS = 2;
+	private static final int SAMPLE_COUNT = 3;
 	
-	LinkedHashMap<Long, PlotBin> consolidatedData = new LinkedHashMap<Long, PlotBin>();
+	SummaryBinStore consolidatedData = new SummaryBinStore(4, 4);
 	
 	long firstBin = 0;
 	long lastBin = Long.MAX_VALUE;
@@ -175,7 +102,7 @@ public class CAPlotBinning implements PostProcessor, PostProcessorWithConsolidat
 	Event lastSampleBeforeStart = null;
 	boolean lastSampleBeforeStartAdded = false;
 	private Timestamp previousEventTimestamp = new Timestamp(1);
-	private PlotBin currentPlotBin = null;
+	private int currentBinIndex = -1;
 	
 	@Override
 	public void initialize(String userarg, String pvName) throws IOException {
@@ -232,7 +159,7 @@ public class CAPlotBinning implements PostProcessor, PostProcessorWithConsolidat
 								// We could add a firstbin-1 and put all values before the starting timestamp in that bin but that would give incorrect summaries.
 								if(!lastSampleBeforeStartAdded && lastSampleBeforeStart != null) { 
 									switchToNewBin(firstBin-1);
-									currentPlotBin.addEvent(lastSampleBeforeStart);
+									addEventToCurrentBin(lastSampleBeforeStart);
 									lastSampleBeforeStartAdded = true; 
 								}
 
@@ -240,14 +167,14 @@ public class CAPlotBinning implements PostProcessor, PostProcessorWithConsolidat
 									switchToNewBin(binNumber);
 								}
 								
-								currentPlotBin.addEvent(e);
+								addEventToCurrentBin(e);
 								
-								if(dbrTimeEvent.getSeverity() > currentPlotBin.maximizedSeverity) { 
-									currentPlotBin.maximizedSeverity = dbrTimeEvent.getSeverity();
+								if(dbrTimeEvent.getSeverity() > consolidatedData.getSeverity(currentBinIndex)) { 
+									consolidatedData.setSeverity(currentBinIndex, dbrTimeEvent.getSeverity());
 								}
 								
 								if(dbrTimeEvent.hasFieldValues() && dbrTimeEvent.getFields().containsKey("cnxregainedepsecs")) { 
-									currentPlotBin.connectionChanged= true;
+									consolidatedData.setConnectionChanged(currentBinIndex);
 								}
 								
 							} else if(binNumber < firstBin) { 
@@ -271,8 +198,7 @@ public class CAPlotBinning implements PostProcessor, PostProcessorWithConsolidat
 
 			private void switchToNewBin(long binNumber) {
 				currentBin = binNumber;
-				currentPlotBin = new PlotBin(currentBin);
-				consolidatedData.put(currentBin, currentPlotBin);
+				currentBinIndex = consolidatedData.addBin(currentBin, 0, false);
 			}
 		};
 	}
@@ -289,25 +215,173 @@ public class CAPlotBinning implements PostProcessor, PostProcessorWithConsolidat
 	}
 	
 	
+	/**
+	 * Add the event to the current bin. 
+	 * We keep the first and the last sample and the min/max of all the samples in the bin.
+	 * @param e
+	 */
+	private void addEventToCurrentBin(Event e) { 
+		long sampleCount = consolidatedData.getLong(currentBinIndex, SAMPLE_COUNT);
+		if(sampleCount >= 2 && TimeUtils.compare(e.getEpochSeconds(), e.getNanos(), consolidatedData.getLong(currentBinIndex, LAST_EPOCHSECONDS), (int) consolidatedData.getLong(currentBinIndex, LAST_NANOS)) <= 0) { 
+			// We have more than two samples and this one is not after the last sample.
+			return;
+		}
+		double value = e.getSampleValue().getValue().doubleValue();
+		if(sampleCount == 0) { 
+			consolidatedData.setValue(currentBinIndex, FIRST_VALUE, value);
+			consolidatedData.setLong(currentBinIndex, FIRST_EPOCHSECONDS, e.getEpochSeconds());
+		} else { 
+			consolidatedData.setValue(currentBinIndex, LAST_VALUE, value);
+			consolidatedData.setLong(currentBinIndex, LAST_EPOCHSECONDS, e.getEpochSeconds());
+			consolidatedData.setLong(currentBinIndex, LAST_NANOS, e.getNanos());
+		}
+		// Same semantics as SummaryStatistics; NaN's are ignored unless all the values are NaN's
+		double min = consolidatedData.getValue(currentBinIndex, MIN_VALUE);
+		if(value < min || Double.isNaN(min)) { 
+			consolidatedData.setValue(currentBinIndex, MIN_VALUE, value);
+		}
+		double max = consolidatedData.getValue(currentBinIndex, MAX_VALUE);
+		if(value > max || Double.isNaN(max)) { 
+			consolidatedData.setValue(currentBinIndex, MAX_VALUE, value);
+		}
+		consolidatedData.setLong(currentBinIndex, SAMPLE_COUNT, sampleCount + 1);
+	}
+	
 	@Override
 	public EventStream getConsolidatedEventStream() {
 		if(consolidatedData.isEmpty()) { 
 			return new ArrayListEventStream(0, this.srcDesc);			
 		} else { 
 			if(lastBin == Long.MAX_VALUE) { 
-				this.firstBin = Collections.min(consolidatedData.keySet());
-				this.lastBin = Collections.max(consolidatedData.keySet());
+				this.firstBin = consolidatedData.getFirstBinNumber();
+				this.lastBin = consolidatedData.getLastBinNumber();
 			}
-			ArrayListEventStream ret = new ArrayListEventStream((int) (lastBin - firstBin + 1), this.srcDesc);
-			for(long curBin = this.firstBin-1; curBin <= this.lastBin; curBin++) { 
-				if(consolidatedData.containsKey(curBin)) { 
-					consolidatedData.get(curBin).outputEvents(ret);
-				}
+			int startIndex = consolidatedData.ceilingIndex(this.firstBin-1);
+			int endIndex = consolidatedData.ceilingIndex(this.lastBin+1);
+			if(startIndex < endIndex && this.srcDesc.getYear() == -1) {
+				short curYear = TimeUtils.computeYearForEpochSeconds(consolidatedData.getLong(startIndex, FIRST_EPOCHSECONDS));
+				logger.debug("Initialize the current year as the year of the first bin with a value it it " + curYear);
+				this.srcDesc.setYear(curYear);
 			}
-			
-			return new ArrayListCollectorEventStream(ret);
+			return new CAPlotBinningEventStream(startIndex, endIndex);
+		}
+
+	}
+	
+	/**
+	 * Generates the events for the bins in the bin store as we iterate.
+	 * Like ArrayListCollectorEventStream, this throws a ChangeInYearsException when the year changes.
+	 */
+	private class CAPlotBinningEventStream implements EventStream, RemotableOverRaw { 
+		private final RemotableEventStreamDesc desc = new RemotableEventStreamDesc(srcDesc);
+		private final int endIndex;
+		private int currentIndex;
+		private short currentYear = -1;
+		private ArrayList<Event> binEvents = new ArrayList<Event>(4);
+		private int binEventIndex = 0;
+		private Iterator<Event> theOneAndOnlyIterator;
+		
+		CAPlotBinningEventStream(int startIndex, int endIndex) { 
+			this.currentIndex = startIndex;
+			this.endIndex = endIndex;
+		}
+
+		@Override
+		public void close() throws IOException {
+		}
+
+		@Override
+		public RemotableEventStreamDesc getDescription() {
+			return desc;
 		}
 
+		@Override
+		public Iterator<Event> iterator() {
+			if(theOneAndOnlyIterator == null) { 
+				theOneAndOnlyIterator = new Iterator<Event>() {
+					@Override
+					public boolean hasNext() {
+						fillBinEvents();
+						return binEventIndex < binEvents.size();
+					}
+
+					@Override
+					public Event next() {
+						if(!hasNext()) { 
+							throw new NoSuchElementException();
+						}
+						Event next = binEvents.get(binEventIndex);
+						short eventYear = TimeUtils.computeYearForEpochSeconds(next.getEpochSeconds());
+						if(eventYear != currentYear) { 
+							logger.info("Detected a change in years eventYear " + eventYear + " and currentYear is " + eventYear);
+							desc.setYear(eventYear);
+							short tempCurrentYear = currentYear;
+							currentYear = eventYear;
+							throw new ChangeInYearsException(tempCurrentYear, eventYear);
+						}
+						binEventIndex++;
+						return next;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+			return theOneAndOnlyIterator;
+		}
+		
+		/**
+		 * If we have used up the events for the current bin, generate the events for the next bin.
+		 */
+		private void fillBinEvents() { 
+			if(binEventIndex < binEvents.size() || currentIndex >= endIndex) return;
+			binEvents.clear();
+			binEventIndex = 0;
+			outputEvents(currentIndex++, binEvents);
+		}
+	}
+	
+	private void outputEvents(int index, ArrayList<Event> ret) {
+		long sampleCount = consolidatedData.getLong(index, SAMPLE_COUNT);
+		// If there is no sample for the time span of a bin, the bin remains empty
+		if(sampleCount == 0) { 
+			return;
+		}
+
+		// If there is one sample, it is placed in the bin
+		if(sampleCount == 1) { 
+			ret.add(makeEvent(index, SampleLocation.ASIS, consolidatedData.getLong(index, FIRST_EPOCHSECONDS), consolidatedData.getValue(index, FIRST_VALUE)));
+			return;
+		}
+		// If there are two samples, they are placed in the bin
+		if(sampleCount == 2) { 
+			ret.add(makeEvent(index, SampleLocation.ASIS, consolidatedData.getLong(index, FIRST_EPOCHSECONDS), consolidatedData.getValue(index, FIRST_VALUE)));
+			ret.add(makeEvent(index, SampleLocation.ASIS, consolidatedData.getLong(index, LAST_EPOCHSECONDS), consolidatedData.getValue(index, LAST_VALUE)));
+			return;
+		}
+
+		// If there are more than two samples...
+		// presented to the user in the sequence initial, minimum, maximum, final
+		long binStartEpochSeconds = consolidatedData.getBinNumber(index)*intervalSecs;
+		ret.add(makeEvent(index, SampleLocation.FIRSTSAMPLE, binStartEpochSeconds, consolidatedData.getValue(index, FIRST_VALUE)));
+		ret.add(makeEvent(index, SampleLocation.MINSAMPLE, binStartEpochSeconds, consolidatedData.getValue(index, MIN_VALUE)));
+		ret.add(makeEvent(index, SampleLocation.MAXSAMPLE, binStartEpochSeconds, consolidatedData.getValue(index, MAX_VALUE)));
+		ret.add(makeEvent(index, SampleLocation.LASTSAMPLE, binStartEpochSeconds, consolidatedData.getValue(index, LAST_VALUE)));
+	}
+	
+	private Event makeEvent(int index, SampleLocation location, long binStartEpochSeconds, double value) {
+		long epochSeconds = location.getLocationEpochSeconds(binStartEpochSeconds, consolidatedData.getBinNumber(index), intervalSecs);
+		POJOEvent pojoEvent = new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE,
+				TimeUtils.convertFromEpochSeconds(epochSeconds, 0), 
+				new ScalarValue<Double>(value), 
+				0, consolidatedData.getSeverity(index));
+		DBRTimeEvent pbevent = (DBRTimeEvent) pojoEvent.makeClone();
+		if(consolidatedData.isConnectionChanged(index)) { 
+			pbevent.addFieldValue("connectionChange", "true");
+		}
+		return pbevent;
 	}
 	/* (non-Javadoc)
 	 * @see org.epics.archiverappliance.retrieval.postprocessors.PostProcessorWithConsolidatedEventStream#getStartBinEpochSeconds()
@@ -1,12 +1,18 @@
 package org.epics.archiverappliance.retrieval.postprocessors;
 
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import java.sql.Timestamp;
+
+import javax.servlet.http.HttpServletRequest;
+
 import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.QuantileSketch;
+import org.epics.archiverappliance.config.PVTypeInfo;
 
 /**
  * Implements the median over a bin. 
- * For example, median_600(PV) returns DescriptiveStatistics.getPercentile(50) with a bin size of 600 seconds
- * This uses DescriptiveStatistics which stores values; so, this will throw OutOfMemoryExceptions if the bin sizes are large
+ * For example, median_600(PV) returns the 50th percentile with a bin size of 600 seconds
+ * This uses a QuantileSketch; so the memory used per bin is bounded. 
+ * For small bins, the median is exact and is the same as DescriptiveStatistics.getPercentile(50); for large bins, this is an estimate.
  * @author mshankar
  *
  */
@@ -17,30 +23,36 @@ public class Median extends SummaryStatsPostProcessor implements PostProcessor {
 	public String getIdentity() {
 		return IDENTITY;
 	}
+	
+	@Override
+	public long estimateMemoryConsumption(String pvName, PVTypeInfo typeInfo, Timestamp start, Timestamp end, HttpServletRequest req) {
+		// We have at most one sketch active at any time.
+		return super.estimateMemoryConsumption(pvName, typeInfo, start, end, req) + QuantileSketch.estimateMaxMemoryConsumption(QuantileSketch.DEFAULT_K);
+	}
 
 	@Override
 	public SummaryStatsCollector getCollector() {
 		return new SummaryStatsCollector() {
-			DescriptiveStatistics stats = new DescriptiveStatistics();
+			QuantileSketch sketch = new QuantileSketch();
 			@Override
 			public void setBinParams(int intervalSecs, long binNum) {
 			}
 			
 			@Override
 			public boolean haveEventsBeenAdded() {
-				return stats.getN() > 0;
+				return sketch.getN() > 0;
 			}
 			
 			@Override
 			public double getStat() {
-				return stats.getPercentile(50);
+				return sketch.getPercentile(50);
 			}
 			
 			@Override
 			public void addEvent(Event e) {
 				double val = e.getSampleValue().getValue().doubleValue();
 				if(!Double.isNaN(val)) { 
-					stats.addValue(val);
+					sketch.addValue(val);
 				}
 			}
 		};
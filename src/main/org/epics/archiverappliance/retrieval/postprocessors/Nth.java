@@ -18,6 +18,10 @@ import org.epics.archiverappliance.data.AlarmInfo;
 import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
 import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
 
+import edu.stanford.slac.archiverappliance.PlainPB.FileBackedPBEventStream;
+import edu.stanford.slac.archiverappliance.PlainPB.PBScanEvent;
+import edu.stanford.slac.archiverappliance.PlainPB.PBScanPredicate;
+
 /**
  * 
  * <code>Nth</code> is a post processor which returns every n-th value.
@@ -97,28 +101,27 @@ public class Nth implements PostProcessor, PostProcessorWithConsolidatedEventStr
 					if(data == null) {
 						data = new ArrayListEventStream(count,(RemotableEventStreamDesc)strm.getDescription());
 					}
+					// For PB files, we select the events while scanning the file and only decode the ones we keep.
+					boolean selectedWhileScanning = false;
+					if(strm instanceof FileBackedPBEventStream) {
+						((FileBackedPBEventStream)strm).setScanPredicate(new PBScanPredicate() {
+							@Override
+							public boolean accept(PBScanEvent event) {
+								Timestamp ts = TimeUtils.convertFromEpochSeconds(event.getEpochSeconds(), event.getNanos());
+								return select(ts);
+							}
+						});
+						selectedWhileScanning = true;
+					}
 					for(Event e : strm) {
-						if(e.getEventTimeStamp().after(previousEventTimestamp)) { 
-							previousEventTimestamp = e.getEventTimeStamp();
-						} else {
-							if(logger.isDebugEnabled()) { 
-								logger.debug("Skipping older event " + TimeUtils.convertToHumanReadableString(e.getEventTimeStamp()) + " previous " + TimeUtils.convertToHumanReadableString(previousEventTimestamp));
+						if (selectedWhileScanning || select(e.getEventTimeStamp())) {
+							//Transform events to POJOEvent. Using the incomming events causes troubles when
+							//transferring data to the client (client only sees one sample).
+							if (e instanceof AlarmInfo) {
+								data.add(new POJOEvent(e.getDBRType(),e.getEventTimeStamp(),e.getSampleValue(),((AlarmInfo)e).getStatus(),((AlarmInfo)e).getSeverity()));
+							} else {
+								data.add(new POJOEvent(e.getDBRType(),e.getEventTimeStamp(),e.getSampleValue(),0,0));
 							}
-							continue;
-						}
-						long s = e.getEventTimeStamp().getTime();
-						if (s < startTime || s > endTime) {
-							logger.debug("Skipping event that is out of selected boundaries. Time: " + TimeUtils.convertToHumanReadableString(s));
-						} else {
-    						if (i++ % everyNth == 0) {
-    							//Transform events to POJOEvent. Using the incomming events causes troubles when
-    							//transferring data to the client (client only sees one sample).
-    							if (e instanceof AlarmInfo) {
-    								data.add(new POJOEvent(e.getDBRType(),e.getEventTimeStamp(),e.getSampleValue(),((AlarmInfo)e).getStatus(),((AlarmInfo)e).getSeverity()));
-    							} else {
-    								data.add(new POJOEvent(e.getDBRType(),e.getEventTimeStamp(),e.getSampleValue(),0,0));
-    							}
-    						}
 						}
 						if (data.size() == MAX_COUNT) {
 							logger.warn("Too many points. Truncating the data array at " + MAX_COUNT);
@@ -132,6 +135,28 @@ public class Nth implements PostProcessor, PostProcessorWithConsolidatedEventStr
 		};
 	}
 	
+	/**
+	 * Do we include the event with this timestamp? This is called once for each event in order.
+	 * @param ts
+	 * @return
+	 */
+	private boolean select(Timestamp ts) {
+		if(ts.after(previousEventTimestamp)) { 
+			previousEventTimestamp = ts;
+		} else {
+			if(logger.isDebugEnabled()) { 
+				logger.debug("Skipping older event " + TimeUtils.convertToHumanReadableString(ts) + " previous " + TimeUtils.convertToHumanReadableString(previousEventTimestamp));
+			}
+			return false;
+		}
+		long s = ts.getTime();
+		if (s < startTime || s > endTime) {
+			logger.debug("Skipping event that is out of selected boundaries. Time: " + TimeUtils.convertToHumanReadableString(s));
+			return false;
+		}
+		return i++ % everyNth == 0;
+	}
+	
 	@Override
 	public LinkedList<TimeSpan> getBinTimestamps() {
 		LinkedList<TimeSpan> list = new LinkedList<>();
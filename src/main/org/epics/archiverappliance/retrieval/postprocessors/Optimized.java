@@ -26,6 +26,7 @@ import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
  * If there are less samples in the time interval than requested (with a certain deadband), all samples 
  * will be returned. If there are more samples than requested, the samples will be collected into bins.
  * Mean, std, min, max and count of each bin is calculated and returned as a single sample. 
+ * The bins are held in the SummaryBinStore of the underlying Statistics post processor.
  *
  * @author <a href="mailto:jaka.bobnar@cosylab.com">Jaka Bobnar</a>
  *
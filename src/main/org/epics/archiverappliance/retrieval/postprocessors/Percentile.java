@@ -0,0 +1,100 @@
+package org.epics.archiverappliance.retrieval.postprocessors;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.QuantileSketch;
+import org.epics.archiverappliance.config.PVTypeInfo;
+
+/**
+ * Implements percentiles over a bin. 
+ * The first argument is the percentile and the second (optional) argument is the bin size.
+ * For example, percentile_99_600(PV) returns the 99th percentile with a bin size of 600 seconds and percentile_95(PV) returns the 95th percentile using the default bin size.
+ * This uses a QuantileSketch; so the memory used per bin is bounded no matter how large the bins are.
+ * @author mshankar
+ *
+ */
+public class Percentile extends SummaryStatsPostProcessor implements PostProcessor {
+	static final String IDENTITY = "percentile";
+	private static final double DEFAULT_PERCENTILE = 50.0;
+	private static Logger logger = Logger.getLogger(Percentile.class.getName());
+	double percentile = DEFAULT_PERCENTILE;
+	String percentileStr = null;
+
+	@Override
+	public String getIdentity() {
+		return IDENTITY;
+	}
+	
+	@Override
+	public void initialize(String userarg, String pvName) throws IOException {
+		try { 
+			if(userarg != null && userarg.contains("_")) {
+				String[] userparams = userarg.split("_");
+				percentileStr = userparams[1];
+				percentile = Double.parseDouble(percentileStr);
+				if(percentile <= 0 || percentile > 100) { 
+					throw new IOException("Percentile " + percentileStr + " is out of the range (0, 100]");
+				}
+				if(userparams.length > 2) { 
+					intervalSecs = Integer.parseInt(userparams[2]);
+				}
+				logger.debug("Using user supplied percentile " + percentile + " and interval of " + intervalSecs);
+			} else {
+				logger.debug("Using the default percentile " + percentile + " and interval of " + intervalSecs + " as the user has not specified any arguments.");
+			}
+		} catch(NumberFormatException ex) {
+			throw new IOException(ex);
+		}
+	}
+	
+	@Override
+	public String getExtension() {
+		if(percentileStr == null) { 
+			return this.getIdentity();
+		}
+		if(intervalSecs == PostProcessors.DEFAULT_SUMMARIZING_INTERVAL) {
+			return this.getIdentity() + "_" + percentileStr;
+		} else {
+			return this.getIdentity() + "_" + percentileStr + "_" + Integer.toString(intervalSecs);
+		}
+	}
+	
+	@Override
+	public long estimateMemoryConsumption(String pvName, PVTypeInfo typeInfo, Timestamp start, Timestamp end, HttpServletRequest req) {
+		// We have at most one sketch active at any time.
+		return super.estimateMemoryConsumption(pvName, typeInfo, start, end, req) + QuantileSketch.estimateMaxMemoryConsumption(QuantileSketch.DEFAULT_K);
+	}
+
+	@Override
+	public SummaryStatsCollector getCollector() {
+		return new SummaryStatsCollector() {
+			QuantileSketch sketch = new QuantileSketch();
+			@Override
+			public void setBinParams(int intervalSecs, long binNum) {
+			}
+			
+			@Override
+			public boolean haveEventsBeenAdded() {
+				return sketch.getN() > 0;
+			}
+			
+			@Override
+			public double getStat() {
+				return sketch.getPercentile(percentile);
+			}
+			
+			@Override
+			public void addEvent(Event e) {
+				double val = e.getSampleValue().getValue().doubleValue();
+				if(!Double.isNaN(val)) { 
+					sketch.addValue(val);
+				}
+			}
+		};
+	}
+}
@@ -61,6 +61,7 @@ public class PostProcessors {
 		registerPostProcessor(new LinearInterpolation().getIdentity(), LinearInterpolation.class);
 		registerPostProcessor(new LoessInterpolation().getIdentity(), LoessInterpolation.class);
 		registerPostProcessor(new Median().getIdentity(), Median.class);
+		registerPostProcessor(new Percentile().getIdentity(), Percentile.class);
 		registerPostProcessor(new Variance().getIdentity(), Variance.class);
 		registerPostProcessor(new PopulationVariance().getIdentity(), PopulationVariance.class);
 		registerPostProcessor(new Kurtosis().getIdentity(), Kurtosis.class);
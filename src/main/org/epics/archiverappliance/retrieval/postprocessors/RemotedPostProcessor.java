@@ -0,0 +1,71 @@
+package org.epics.archiverappliance.retrieval.postprocessors;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.concurrent.Callable;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.config.PVTypeInfo;
+
+/**
+ * Stands in for a post processor that is run on the appliance that owns the PV.
+ * In a cluster, the data for PVs on other appliances is fetched using the other appliance's getData.raw.
+ * Instead of fetching the raw data and reducing it here, we forward the post processor (as specified by the user) to the other appliance and ship only the result.
+ * So, this passes the user's argument as the extension (which is sent as the pp parameter) and does not process the event streams we get back.
+ * Post processors that cannot be represented in the raw response (for example, those that generate vector data for a scalar PV) are not remoted; for these we fetch the raw data as before.
+ * @author mshankar
+ *
+ */
+public class RemotedPostProcessor implements PostProcessor {
+	private final PostProcessor postProcessor;
+	private final String postProcessorUserArg;
+
+	public RemotedPostProcessor(PostProcessor postProcessor, String postProcessorUserArg) {
+		this.postProcessor = postProcessor;
+		this.postProcessorUserArg = postProcessorUserArg;
+	}
+
+	/**
+	 * Can we run this post processor on the appliance that owns the PV?
+	 * @param postProcessor The post processor that would run here.
+	 * @param postProcessorUserArg The post processor as specified by the user; this is what we send to the other appliance.
+	 * @return true if the other appliance generates the same data when given the user's argument.
+	 */
+	public static boolean canBeRemoted(PostProcessor postProcessor, String postProcessorUserArg) {
+		if(postProcessor == null || postProcessorUserArg == null || postProcessorUserArg.isEmpty()) return false;
+		if(postProcessor instanceof DefaultRawPostProcessor || postProcessor instanceof ExtraFieldsPostProcessor || postProcessor instanceof RemotedPostProcessor) return false;
+		if(postProcessor instanceof SummaryStatsPostProcessor && ((SummaryStatsPostProcessor) postProcessor).isProvidingVectorData()) return false;
+		// The other appliance should come up with the same post processor for the user's argument.
+		PostProcessor remotePostProcessor = PostProcessors.findPostProcessor(postProcessorUserArg);
+		return remotePostProcessor != null && remotePostProcessor.getClass().equals(postProcessor.getClass());
+	}
+
+	@Override
+	public String getIdentity() {
+		return postProcessor.getIdentity();
+	}
+
+	@Override
+	public String getExtension() {
+		return postProcessorUserArg;
+	}
+
+	@Override
+	public void initialize(String userarg, String pvName) throws IOException {
+		// The post processor is initialized on the other appliance.
+	}
+
+	@Override
+	public long estimateMemoryConsumption(String pvName, PVTypeInfo typeInfo, Timestamp start, Timestamp end, HttpServletRequest req) {
+		// This is the size of the result; which is what we get from the other appliance.
+		return postProcessor.estimateMemoryConsumption(pvName, typeInfo, start, end, req);
+	}
+
+	@Override
+	public Callable<EventStream> wrap(Callable<EventStream> callable) {
+		// The data has already been processed by the other appliance.
+		return callable;
+	}
+}
@@ -0,0 +1,262 @@
+package org.epics.archiverappliance.retrieval.postprocessors;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.epics.archiverappliance.data.DBRTimeEvent;
+
+/**
+ * A primitive, array backed store for the consolidated bins of the summarizing post processors.
+ * Instead of an object per bin (and a map entry, a list of boxed doubles and a map for the additional columns...), we keep the bins as columns.
+ * <ol>
+ * <li>The bin numbers are in a <code>long[]</code> sorted in ascending order. The summarizing post processors add bins in increasing order; so adding a bin is typically an append.</li>
+ * <li>The maximized severity is an <code>int[]</code> and the connection changed flag is a BitSet.</li>
+ * <li>Each bin has a fixed number of double value columns and long columns; for example, a scalar summary has one value column and the <code>stats</code> post processor has 5.</li>
+ * <li>Additional columns (see SummaryStatsCollectorAdditionalColumns) are optional and are stored as a String[] per column name.</li>
+ * </ol>
+ * Bins are identified by their index in the store; use indexOf or ceilingIndex to map a bin number to an index.
+ * This class is not thread safe.
+ * @author mshankar
+ *
+ */
+public class SummaryBinStore {
+	private static final int INITIAL_CAPACITY = 64;
+	private final int valueColumnCount;
+	private final int longColumnCount;
+	private int size = 0;
+	private int capacity = 0;
+	private long[] binNumbers = new long[0];
+	private int[] severities = new int[0];
+	private final BitSet connectionChanged = new BitSet();
+	private final double[][] valueColumns;
+	private final long[][] longColumns;
+	private LinkedHashMap<String, String[]> additionalColumns = null;
+
+	/**
+	 * @param valueColumnCount - The number of double values we store for each bin.
+	 */
+	public SummaryBinStore(int valueColumnCount) {
+		this(valueColumnCount, 0);
+	}
+
+	/**
+	 * @param valueColumnCount - The number of double values we store for each bin.
+	 * @param longColumnCount - The number of long values we store for each bin.
+	 */
+	public SummaryBinStore(int valueColumnCount, int longColumnCount) {
+		this.valueColumnCount = valueColumnCount;
+		this.longColumnCount = longColumnCount;
+		this.valueColumns = new double[valueColumnCount][];
+		for(int column = 0; column < valueColumnCount; column++) {
+			valueColumns[column] = new double[0];
+		}
+		this.longColumns = new long[longColumnCount][];
+		for(int column = 0; column < longColumnCount; column++) {
+			longColumns[column] = new long[0];
+		}
+	}
+
+	/**
+	 * Add a bin to the store and return its index.
+	 * If we already have this bin, the existing bin is cleared and reused; this is similar to a Map.put.
+	 * @param binNumber
+	 * @param severity - The maximized severity of the bin.
+	 * @param connectionChangedInBin - Did we have any connection changed events in this bin.
+	 * @return The index of the bin; use this index to set the values for the bin.
+	 */
+	public int addBin(long binNumber, int severity, boolean connectionChangedInBin) {
+		int index;
+		if(size == 0 || binNumber > binNumbers[size-1]) {
+			ensureCapacity(size + 1);
+			index = size;
+			size++;
+		} else {
+			index = Arrays.binarySearch(binNumbers, 0, size, binNumber);
+			if(index < 0) {
+				// The bins are out of order; this should not happen often.
+				index = -index - 1;
+				ensureCapacity(size + 1);
+				shiftRight(index);
+				size++;
+			}
+		}
+		binNumbers[index] = binNumber;
+		severities[index] = severity;
+		connectionChanged.set(index, connectionChangedInBin);
+		for(int column = 0; column < valueColumnCount; column++) {
+			valueColumns[column][index] = Double.NaN;
+		}
+		for(int column = 0; column < longColumnCount; column++) {
+			longColumns[column][index] = 0;
+		}
+		if(additionalColumns != null) {
+			for(String[] columnValues : additionalColumns.values()) {
+				columnValues[index] = null;
+			}
+		}
+		return index;
+	}
+
+	public void setSeverity(int index, int severity) {
+		severities[index] = severity;
+	}
+
+	public void setConnectionChanged(int index) {
+		connectionChanged.set(index);
+	}
+
+	public void setValue(int index, int column, double value) {
+		valueColumns[column][index] = value;
+	}
+
+	public void setLong(int index, int column, long value) {
+		longColumns[column][index] = value;
+	}
+
+	/**
+	 * Set the additional columns for the bin at the specified index.
+	 * @param index
+	 * @param additionalStats
+	 */
+	public void setAdditionalColumns(int index, Map<String, String> additionalStats) {
+		if(additionalStats == null || additionalStats.isEmpty()) return;
+		if(additionalColumns == null) {
+			additionalColumns = new LinkedHashMap<String, String[]>();
+		}
+		for(Map.Entry<String, String> additionalStat : additionalStats.entrySet()) {
+			String[] columnValues = additionalColumns.get(additionalStat.getKey());
+			if(columnValues == null) {
+				columnValues = new String[capacity];
+				additionalColumns.put(additionalStat.getKey(), columnValues);
+			}
+			columnValues[index] = additionalStat.getValue();
+		}
+	}
+
+	/**
+	 * Add the additional columns (if any) for the bin at the specified index as field values to the event.
+	 * @param index
+	 * @param event
+	 */
+	public void addAdditionalColumnsToEvent(int index, DBRTimeEvent event) {
+		if(additionalColumns == null) return;
+		for(Map.Entry<String, String[]> additionalColumn : additionalColumns.entrySet()) {
+			String value = additionalColumn.getValue()[index];
+			if(value != null) {
+				event.addFieldValue(additionalColumn.getKey(), value);
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public long getBinNumber(int index) {
+		return binNumbers[index];
+	}
+
+	public int getSeverity(int index) {
+		return severities[index];
+	}
+
+	public boolean isConnectionChanged(int index) {
+		return connectionChanged.get(index);
+	}
+
+	public double getValue(int index, int column) {
+		return valueColumns[column][index];
+	}
+
+	public long getLong(int index, int column) {
+		return longColumns[column][index];
+	}
+
+	public int getValueColumnCount() {
+		return valueColumnCount;
+	}
+
+	public long getFirstBinNumber() {
+		return binNumbers[0];
+	}
+
+	public long getLastBinNumber() {
+		return binNumbers[size-1];
+	}
+
+	/**
+	 * @param binNumber
+	 * @return The index of the specified bin or -1 if we do not have this bin.
+	 */
+	public int indexOf(long binNumber) {
+		int index = Arrays.binarySearch(binNumbers, 0, size, binNumber);
+		return index >= 0 ? index : -1;
+	}
+
+	/**
+	 * @param binNumber
+	 * @return The index of the first bin whose bin number is greater than or equal to the specified bin number; this is size() if there is no such bin.
+	 */
+	public int ceilingIndex(long binNumber) {
+		int index = Arrays.binarySearch(binNumbers, 0, size, binNumber);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	/**
+	 * Estimate the heap used by this store in bytes.
+	 * @return
+	 */
+	public long estimateMemoryConsumption() {
+		long bytesPerBin = 8 + 4 + 8*valueColumnCount + 8*longColumnCount + (additionalColumns == null ? 0 : 4*additionalColumns.size());
+		return 128 + capacity*bytesPerBin + capacity/8;
+	}
+
+	private void ensureCapacity(int minCapacity) {
+		if(minCapacity <= capacity) return;
+		int newCapacity = Math.max(INITIAL_CAPACITY, capacity*2);
+		if(newCapacity < minCapacity) newCapacity = minCapacity;
+		binNumbers = Arrays.copyOf(binNumbers, newCapacity);
+		severities = Arrays.copyOf(severities, newCapacity);
+		for(int column = 0; column < valueColumnCount; column++) {
+			valueColumns[column] = Arrays.copyOf(valueColumns[column], newCapacity);
+		}
+		for(int column = 0; column < longColumnCount; column++) {
+			longColumns[column] = Arrays.copyOf(longColumns[column], newCapacity);
+		}
+		if(additionalColumns != null) {
+			for(Map.Entry<String, String[]> additionalColumn : additionalColumns.entrySet()) {
+				additionalColumn.setValue(Arrays.copyOf(additionalColumn.getValue(), newCapacity));
+			}
+		}
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Make space for a bin at the specified index by moving all the bins at or after the index one to the right.
+	 */
+	private void shiftRight(int index) {
+		int count = size - index;
+		System.arraycopy(binNumbers, index, binNumbers, index+1, count);
+		System.arraycopy(severities, index, severities, index+1, count);
+		for(int i = size; i > index; i--) {
+			connectionChanged.set(i, connectionChanged.get(i-1));
+		}
+		for(int column = 0; column < valueColumnCount; column++) {
+			System.arraycopy(valueColumns[column], index, valueColumns[column], index+1, count);
+		}
+		for(int column = 0; column < longColumnCount; column++) {
+			System.arraycopy(longColumns[column], index, longColumns[column], index+1, count);
+		}
+		if(additionalColumns != null) {
+			for(String[] columnValues : additionalColumns.values()) {
+				System.arraycopy(columnValues, index, columnValues, index+1, count);
+			}
+		}
+	}
+}
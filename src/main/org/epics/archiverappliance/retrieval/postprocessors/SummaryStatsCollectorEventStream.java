@@ -1,10 +1,10 @@
 package org.epics.archiverappliance.retrieval.postprocessors;
 
 import java.io.IOException;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Set;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.apache.log4j.Logger;
 import org.epics.archiverappliance.Event;
@@ -15,14 +15,13 @@ import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.data.DBRTimeEvent;
 import org.epics.archiverappliance.data.ScalarValue;
 import org.epics.archiverappliance.data.VectorValue;
-import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
 import org.epics.archiverappliance.retrieval.ChangeInYearsException;
 import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
 import org.epics.archiverappliance.retrieval.RemotableOverRaw;
-import org.epics.archiverappliance.retrieval.postprocessors.SummaryStatsPostProcessor.SummaryValue;
 
 /**
  * An event stream over a list of SummaryStatsCollectors; typically used by post processors that return consolidated results.
+ * The events are generated lazily from the SummaryBinStore as we iterate; so we do not hold an event per bin in memory.
  *
  * @author mshankar
  * @see PostProcessorWithConsolidatedEventStream
@@ -30,7 +29,7 @@ import org.epics.archiverappliance.retrieval.postprocessors.SummaryStatsPostProc
 public class SummaryStatsCollectorEventStream implements EventStream, RemotableOverRaw {
 	private static Logger logger = Logger.getLogger(SummaryStatsCollectorEventStream.class.getName());
 	private final RemotableEventStreamDesc desc;
-	private LinkedHashMap<Long, SummaryValue> consolidatedData;
+	private SummaryBinStore consolidatedData;
 	private long firstBin;
 	private long lastBin;
 	private int intervalSecs;
@@ -39,7 +38,8 @@ public class SummaryStatsCollectorEventStream implements EventStream, RemotableO
 	private Iterator<Event> theOneAndOnlyIterator;
 	private final boolean vectorType;
 	private final ArchDBRTypes dbrType;
-	public SummaryStatsCollectorEventStream(long firstBin, long lastBin, int intervalSecs, RemotableEventStreamDesc desc, LinkedHashMap<Long, SummaryValue> consolidatedData, boolean inheritValuesFromPreviousBins, boolean zeroOutEmptyBins, boolean vectorType, int elementCount) {
+	private final int elementCount;
+	public SummaryStatsCollectorEventStream(long firstBin, long lastBin, int intervalSecs, RemotableEventStreamDesc desc, SummaryBinStore consolidatedData, boolean inheritValuesFromPreviousBins, boolean zeroOutEmptyBins, boolean vectorType, int elementCount) {
 	    this.vectorType = vectorType;
 		this.firstBin = firstBin;
 		this.lastBin = lastBin;
@@ -51,6 +51,7 @@ public class SummaryStatsCollectorEventStream implements EventStream, RemotableO
 		if (vectorType) {
 		    this.desc.setElementCount(elementCount);
 		}
+		this.elementCount = elementCount;
 		this.consolidatedData = consolidatedData;
 		this.inheritValuesFromPreviousBins = inheritValuesFromPreviousBins;
 		this.zeroOutEmptyBins = zeroOutEmptyBins;
@@ -76,92 +77,116 @@ public class SummaryStatsCollectorEventStream implements EventStream, RemotableO
 	}
 
 	private class SummaryStatsCollectorEventStreamIterator implements Iterator<Event> {
-		ArrayListEventStream strm = new ArrayListEventStream(consolidatedData.size(), desc);
 		short currentYear = -1;
-		int currentEvent = 0;
-		int totalEvents = -1;
+		int nanos = ((intervalSecs % 2) == 0) ? 0 : 500000000;
+		/**
+		 * The next bin we need to look at.
+		 */
+		long binNum;
+		/**
+		 * The index in the store of the first bin at or after binNum.
+		 */
+		int storeIndex;
+		boolean foundValue = false;
+		/**
+		 * The index in the store of the value that we are currently using; -1 if we are zeroing out empty bins.
+		 */
+		int valueIndex = -1;
+		Event nextEvent = null;
 
 		SummaryStatsCollectorEventStreamIterator() {
-			SummaryValue summaryValue = null;
-			boolean foundValue = false;
-			int nanos = ((intervalSecs % 2) == 0) ? 0 : 500000000;
-			
 			if(consolidatedData.isEmpty()) { 
 				logger.info("We not seem to have any events");
-				totalEvents = 0;
 				return;
 			}
 			
-			Set<Long> bins = consolidatedData.keySet();
 			if(firstBin == 0) { 
-				firstBin = Collections.min(bins); 
+				firstBin = consolidatedData.getFirstBinNumber(); 
 			}
 			if(lastBin == Long.MAX_VALUE) { 
-				lastBin = Collections.max(bins);
+				lastBin = consolidatedData.getLastBinNumber();
 			}
 			
-			for(long binNum = firstBin; binNum <= lastBin; binNum++) {
-				if(consolidatedData.containsKey(binNum)) {
-					summaryValue = consolidatedData.get(binNum);
+			binNum = firstBin;
+			storeIndex = consolidatedData.ceilingIndex(firstBin);
+			nextEvent = computeNextEvent();
+			if(nextEvent != null) { 
+				// Initialize the current year as the year of the first bin with a value it it.
+				currentYear = TimeUtils.computeYearForEpochSeconds(nextEvent.getEpochSeconds());
+				SummaryStatsCollectorEventStream.this.desc.setYear(currentYear);
+			}
+		}
+		
+		/**
+		 * Walk the bins from binNum till we find a bin that has a value (or inherits one) and generate the event for that bin.
+		 * @return The event or null if we have run out of bins.
+		 */
+		private Event computeNextEvent() { 
+			while(binNum <= lastBin) {
+				long currentBinNum = binNum++;
+				if(storeIndex < consolidatedData.size() && consolidatedData.getBinNumber(storeIndex) == currentBinNum) {
+					valueIndex = storeIndex++;
 					foundValue = true;
 				} else { 
 					if(inheritValuesFromPreviousBins) { 
 						if(foundValue)  { 
-							logger.debug("Inheriting previous value for bin " + binNum);
+							logger.debug("Inheriting previous value for bin " + currentBinNum);
 							if(SummaryStatsCollectorEventStream.this.zeroOutEmptyBins) { 
-								summaryValue = new SummaryValue(0.0, 0, false);
+								valueIndex = -1;
 							}
 						}
 					} else { 
 						foundValue = false;
-						logger.debug("Skipping inheriting previous value for bin " + binNum);
+						logger.debug("Skipping inheriting previous value for bin " + currentBinNum);
 					}
 				}
 				if(foundValue) { 
-					long epochSeconds = binNum*intervalSecs + intervalSecs/2;
-					POJOEvent pojoEvent;
-					if (vectorType) {
-					    pojoEvent = new POJOEvent(dbrType,
-                                TimeUtils.convertFromEpochSeconds(epochSeconds, nanos), 
-                                new VectorValue<>(summaryValue.values), 
-                                0, summaryValue.severity);
-					} else {
-    					pojoEvent = new POJOEvent(dbrType,
-    							TimeUtils.convertFromEpochSeconds(epochSeconds, nanos), 
-    							new ScalarValue<Double>(summaryValue.value), 
-    							0, summaryValue.severity);
-					}
-					DBRTimeEvent pbevent = (DBRTimeEvent) pojoEvent.makeClone();
-					if(summaryValue.connectionChanged) { 
-						pbevent.addFieldValue("connectionChange", "true");
-					}
-					
-					if(summaryValue.additionalCols != null && !summaryValue.additionalCols.isEmpty()) { 
-						for(String addnName : summaryValue.additionalCols.keySet()) { 
-							String addnValue = summaryValue.additionalCols.get(addnName);
-							pbevent.addFieldValue(addnName, addnValue);
-						}
-					}
-					
-					strm.add(pbevent);
-					if(currentYear == -1) { 
-						// Initialize the current year as the year of the first bin with a value it it.
-						currentYear = TimeUtils.computeYearForEpochSeconds(epochSeconds);
-						SummaryStatsCollectorEventStream.this.desc.setYear(currentYear);
-					}
+					return makeEvent(currentBinNum);
 				}
 			}
-			totalEvents = strm.size();
+			return null;
+		}
+
+		private Event makeEvent(long currentBinNum) {
+			long epochSeconds = currentBinNum*intervalSecs + intervalSecs/2;
+			int severity = valueIndex == -1 ? 0 : consolidatedData.getSeverity(valueIndex);
+			POJOEvent pojoEvent;
+			if (vectorType) {
+				List<Double> values = new ArrayList<Double>(elementCount);
+				for(int column = 0; column < consolidatedData.getValueColumnCount(); column++) { 
+					values.add(valueIndex == -1 ? 0.0 : consolidatedData.getValue(valueIndex, column));
+				}
+			    pojoEvent = new POJOEvent(dbrType,
+                        TimeUtils.convertFromEpochSeconds(epochSeconds, nanos), 
+                        new VectorValue<>(values), 
+                        0, severity);
+			} else {
+				pojoEvent = new POJOEvent(dbrType,
+						TimeUtils.convertFromEpochSeconds(epochSeconds, nanos), 
+						new ScalarValue<Double>(valueIndex == -1 ? 0.0 : consolidatedData.getValue(valueIndex, 0)), 
+						0, severity);
+			}
+			DBRTimeEvent pbevent = (DBRTimeEvent) pojoEvent.makeClone();
+			if(valueIndex != -1) { 
+				if(consolidatedData.isConnectionChanged(valueIndex)) { 
+					pbevent.addFieldValue("connectionChange", "true");
+				}
+				consolidatedData.addAdditionalColumnsToEvent(valueIndex, pbevent);
+			}
+			return pbevent;
 		}
 		
 		@Override
 		public boolean hasNext() {
-			return currentEvent < totalEvents;
+			return nextEvent != null;
 		}
 
 		@Override
 		public Event next() {
-			Event next = strm.get(currentEvent);
+			if(nextEvent == null) { 
+				throw new NoSuchElementException();
+			}
+			Event next = nextEvent;
 			short eventYear = TimeUtils.computeYearForEpochSeconds(next.getEpochSeconds());
 			if(eventYear != currentYear) { 
 				logger.info("Detected a change in years eventYear " + eventYear + " and currentYear is " + eventYear);
@@ -170,7 +195,7 @@ public class SummaryStatsCollectorEventStream implements EventStream, RemotableO
 				currentYear = eventYear;
 				throw new ChangeInYearsException(tempCurrentYear, eventYear);
 			}
-			currentEvent++;
+			nextEvent = computeNextEvent();
 			return next;
 		}
 
@@ -180,4 +205,3 @@ public class SummaryStatsCollectorEventStream implements EventStream, RemotableO
 		} 
 	}
 }
-
@@ -2,8 +2,6 @@ package org.epics.archiverappliance.retrieval.postprocessors;
 
 import java.io.IOException;
 import java.sql.Timestamp;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -49,54 +47,14 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 	
 	private static Logger logger = Logger.getLogger(SummaryStatsPostProcessor.class.getName());
 	int intervalSecs = PostProcessors.DEFAULT_SUMMARIZING_INTERVAL;
-	private Timestamp previousEventTimestamp = new Timestamp(1);
+	private long previousEventEpochSeconds = 0;
+	private int previousEventNanos = 0;
 	
-	static class SummaryValue { 
-		/**
-		 * The summary value
-		 */
-		double value;
-		/**
-		 * Maximize severity
-		 */
-		int severity;
-		/**
-		 * Do we have any connection changed events
-		 */
-		boolean connectionChanged;
-		
-		HashMap<String, String> additionalCols = null;
-		
-        /**
-         * Summary values
-         */
-        List<Double> values;
-
-		public SummaryValue(double value, int severity, boolean connectionChanged) {
-			this.value = value;
-			this.severity = severity;
-			this.connectionChanged = connectionChanged;
-		}
-
-		public SummaryValue(List<Double> values, int severity, boolean connectionChanged) {
-		    this.values = values;
-		    this.value = Double.NaN;
-		    this.severity = severity;
-		    this.connectionChanged = connectionChanged;
-		}		
-		
-		public void addAdditionalColumn(HashMap<String, String> additionalColumns) {
-			for(String name : additionalColumns.keySet()) { 
-				String value = additionalColumns.get(name);
-				if(this.additionalCols == null) { 
-					this.additionalCols = new HashMap<String, String>();
-				}
-				this.additionalCols.put(name,  value);
-			}
-		}
-	}
-
-	protected LinkedHashMap<Long, SummaryValue> consolidatedData = new LinkedHashMap<Long, SummaryValue>();
+	/**
+	 * The consolidated bins; one value column per element for vector data, else one value column.
+	 * This is created lazily as the value column count depends on the child class.
+	 */
+	protected SummaryBinStore consolidatedData = null;
 	long firstBin = 0;
 	long lastBin = Long.MAX_VALUE;
 	long currentBin = -1;
@@ -138,6 +96,7 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 	public Callable<EventStream> wrap(final Callable<EventStream> callable) {
 	    final boolean vectorType = isProvidingVectorData();
 	    final int elementCount = getElementCount();
+	    final SummaryBinStore binStore = getConsolidatedData();
 		return new Callable<EventStream>() {
 			@Override
 			public EventStream call() throws Exception {
@@ -148,12 +107,14 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 						try { 
 							DBRTimeEvent dbrTimeEvent = (DBRTimeEvent) e;
 							long epochSeconds = dbrTimeEvent.getEpochSeconds();
-							if(dbrTimeEvent.getEventTimeStamp().after(previousEventTimestamp)) { 
-								previousEventTimestamp = dbrTimeEvent.getEventTimeStamp();
+							int nanos = dbrTimeEvent.getNanos();
+							if(TimeUtils.compare(epochSeconds, nanos, previousEventEpochSeconds, previousEventNanos) > 0) { 
+								previousEventEpochSeconds = epochSeconds;
+								previousEventNanos = nanos;
 							} else {
 								// Note that this is expected. ETL is not transactional; so we can get the same event twice from different stores.
 								if(logger.isDebugEnabled()) { 
-									logger.debug("Skipping older event " + TimeUtils.convertToHumanReadableString(dbrTimeEvent.getEventTimeStamp()) + " previous " + TimeUtils.convertToHumanReadableString(previousEventTimestamp));
+									logger.debug("Skipping older event " + TimeUtils.convertToHumanReadableString(epochSeconds) + " previous " + TimeUtils.convertToHumanReadableString(previousEventEpochSeconds));
 								}
 								continue;
 							}
@@ -169,16 +130,7 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 								}
 								if(binNumber != currentBin) {
 									if(currentBin != -1) {
-									    SummaryValue summaryValue;
-									    if (vectorType) {
-							                summaryValue = new SummaryValue(((SummaryStatsVectorCollector)currentBinCollector).getVectorValues(), currentMaxSeverity, currentConnectionChangedEvents);
-							            } else {
-    										summaryValue = new SummaryValue(currentBinCollector.getStat(), currentMaxSeverity, currentConnectionChangedEvents);
-    										if(currentBinCollector instanceof SummaryStatsCollectorAdditionalColumns) { 
-    											summaryValue.addAdditionalColumn(((SummaryStatsCollectorAdditionalColumns)currentBinCollector).getAdditionalStats());
-    										}
-							            }
-										consolidatedData.put(currentBin, summaryValue);
+										addCurrentBinToConsolidatedData();
 									}
 									switchToNewBin(binNumber);
 								}
@@ -205,12 +157,39 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 							logger.error("Skipping possible corrupted event for pv " + strm.getDescription());
 						}
 					}
-					return new SummaryStatsCollectorEventStream(firstBin, lastBin, intervalSecs, srcDesc, consolidatedData, inheritValuesFromPreviousBins, zeroOutEmptyBins(), vectorType, elementCount);
+					return new SummaryStatsCollectorEventStream(firstBin, lastBin, intervalSecs, srcDesc, binStore, inheritValuesFromPreviousBins, zeroOutEmptyBins(), vectorType, elementCount);
 				}
 			}
 		};
 	}
 
+	private SummaryBinStore getConsolidatedData() {
+		if(consolidatedData == null) { 
+			consolidatedData = new SummaryBinStore(isProvidingVectorData() ? getElementCount() : 1);
+		}
+		return consolidatedData;
+	}
+
+	/**
+	 * Add the summary for the current bin into the consolidated data.
+	 */
+	private void addCurrentBinToConsolidatedData() {
+		SummaryBinStore binStore = getConsolidatedData();
+		int index = binStore.addBin(currentBin, currentMaxSeverity, currentConnectionChangedEvents);
+		if (isProvidingVectorData()) {
+			List<Double> values = ((SummaryStatsVectorCollector)currentBinCollector).getVectorValues();
+			int columns = Math.min(values.size(), binStore.getValueColumnCount());
+			for(int column = 0; column < columns; column++) { 
+				binStore.setValue(index, column, values.get(column));
+			}
+		} else {
+			binStore.setValue(index, 0, currentBinCollector.getStat());
+			if(currentBinCollector instanceof SummaryStatsCollectorAdditionalColumns) { 
+				binStore.setAdditionalColumns(index, ((SummaryStatsCollectorAdditionalColumns)currentBinCollector).getAdditionalStats());
+			}
+		}
+	}
+
 	private void switchToNewBin(long binNumber) {
 		currentBin = binNumber;
 		currentMaxSeverity = 0;
@@ -238,23 +217,15 @@ public abstract class SummaryStatsPostProcessor implements PostProcessor, PostPr
 			currentBinCollector.addEvent(lastSampleBeforeStart);
 			lastSampleBeforeStartAdded = true; 
 		}
-		if(currentBin != -1) {
-		    SummaryValue summaryValue;
-		    if (isProvidingVectorData()) {
-		        summaryValue = new SummaryValue(((SummaryStatsVectorCollector)currentBinCollector).getVectorValues(), currentMaxSeverity, currentConnectionChangedEvents);
-		    } else {
-    			summaryValue = new SummaryValue(currentBinCollector.getStat(), currentMaxSeverity, currentConnectionChangedEvents);
-    			if(currentBinCollector instanceof SummaryStatsCollectorAdditionalColumns) { 
-    				summaryValue.addAdditionalColumn(((SummaryStatsCollectorAdditionalColumns)currentBinCollector).getAdditionalStats());
-    			}
-		    }
-    		consolidatedData.put(currentBin, summaryValue);
+		if(currentBin != -1 && currentBinCollector != null) {
+			addCurrentBinToConsolidatedData();
 			currentBinCollector = null;
 		}
-		if(consolidatedData.isEmpty()) { 
+		SummaryBinStore binStore = getConsolidatedData();
+		if(binStore.isEmpty()) { 
 			return new ArrayListEventStream(0, srcDesc);			
 		} else { 
-			return new SummaryStatsCollectorEventStream(this.firstBin == 0 ? 0 : this.firstBin-1, this.lastBin, this.intervalSecs, srcDesc, consolidatedData, inheritValuesFromPreviousBins, zeroOutEmptyBins(), isProvidingVectorData(), getElementCount());
+			return new SummaryStatsCollectorEventStream(this.firstBin == 0 ? 0 : this.firstBin-1, this.lastBin, this.intervalSecs, srcDesc, binStore, inheritValuesFromPreviousBins, zeroOutEmptyBins(), isProvidingVectorData(), getElementCount());
 		}
 
 	}
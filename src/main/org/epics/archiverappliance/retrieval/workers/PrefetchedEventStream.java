@@ -0,0 +1,139 @@
+package org.epics.archiverappliance.retrieval.workers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.retrieval.ChangeInYearsException;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.RemotableOverRaw;
+
+/**
+ * An event stream whose events have been read into memory ahead of time; typically in a worker thread while the response is being written out for some other PV.
+ * Event streams can span years; they communicate this using a ChangeInYearsException.
+ * We remember the year of each segment of the source stream and replay the ChangeInYearsException's (along with the year in the description) when iterating.
+ * We only support one iterator for this stream.
+ * @author mshankar
+ *
+ */
+public class PrefetchedEventStream implements EventStream, RemotableOverRaw {
+	private static Logger logger = Logger.getLogger(PrefetchedEventStream.class.getName());
+	private final RemotableEventStreamDesc desc;
+	private final ArrayList<ArrayList<Event>> segments = new ArrayList<ArrayList<Event>>();
+	private final ArrayList<Short> segmentYears = new ArrayList<Short>();
+	private int eventCount = 0;
+	private PrefetchedEventStreamIterator theOneAndOnlyIterator = null;
+
+	private PrefetchedEventStream(RemotableEventStreamDesc desc) {
+		this.desc = desc;
+	}
+
+	/**
+	 * Can we prefetch this event stream? We need a remotable description to track changes in years.
+	 * @param strm
+	 * @return
+	 */
+	public static boolean canPrefetch(EventStream strm) {
+		return strm != null && strm.getDescription() instanceof RemotableEventStreamDesc;
+	}
+
+	/**
+	 * Read all the events from the source stream into memory. The source stream is not closed; that is the caller's responsibility.
+	 * @param strm - The source stream; see canPrefetch.
+	 * @param includeEvents - If false, we only hold on to the description; use this if the events will come from elsewhere; for example, from a post processor's consolidated event stream.
+	 * @return
+	 */
+	public static PrefetchedEventStream prefetch(EventStream strm, boolean includeEvents) {
+		RemotableEventStreamDesc desc = (RemotableEventStreamDesc) strm.getDescription();
+		PrefetchedEventStream ret = new PrefetchedEventStream(desc);
+		if(!includeEvents) {
+			return ret;
+		}
+		Iterator<Event> it = strm.iterator();
+		ArrayList<Event> currentSegment = ret.addSegment(desc.getYear());
+		while(true) {
+			try {
+				if(!it.hasNext()) break;
+				currentSegment.add(it.next().makeClone());
+				ret.eventCount++;
+			} catch(ChangeInYearsException ex) {
+				if(logger.isDebugEnabled()) logger.debug("Change in years from " + ex.getPreviousYear() + " to " + ex.getCurrentYear() + " when prefetching " + desc.getPvName());
+				currentSegment = ret.addSegment(desc.getYear());
+			}
+		}
+		// We start replaying from the first segment; so reset the year in the desc to that of the first segment.
+		desc.setYear(ret.segmentYears.get(0));
+		return ret;
+	}
+
+	private ArrayList<Event> addSegment(short year) {
+		ArrayList<Event> segment = new ArrayList<Event>();
+		segments.add(segment);
+		segmentYears.add(year);
+		return segment;
+	}
+
+	/**
+	 * @return The number of events that were prefetched.
+	 */
+	public int getEventCount() {
+		return eventCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		segments.clear();
+		segmentYears.clear();
+	}
+
+	@Override
+	public Iterator<Event> iterator() {
+		if(theOneAndOnlyIterator == null) {
+			theOneAndOnlyIterator = new PrefetchedEventStreamIterator();
+		}
+		return theOneAndOnlyIterator;
+	}
+
+	@Override
+	public RemotableEventStreamDesc getDescription() {
+		return desc;
+	}
+
+	private class PrefetchedEventStreamIterator implements Iterator<Event> {
+		private int currentSegment = 0;
+		private int currentEvent = 0;
+
+		@Override
+		public boolean hasNext() {
+			while(currentSegment < segments.size() && currentEvent >= segments.get(currentSegment).size()) {
+				if(currentSegment + 1 >= segments.size()) return false;
+				currentSegment++;
+				currentEvent = 0;
+				short previousYear = desc.getYear();
+				short currentYear = segmentYears.get(currentSegment);
+				if(currentYear != previousYear && !segments.get(currentSegment).isEmpty()) {
+					desc.setYear(currentYear);
+					throw new ChangeInYearsException(previousYear, currentYear);
+				}
+			}
+			return currentSegment < segments.size();
+		}
+
+		@Override
+		public Event next() {
+			if(!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return segments.get(currentSegment).get(currentEvent++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
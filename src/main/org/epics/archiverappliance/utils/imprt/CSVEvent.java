@@ -214,6 +214,16 @@ public class CSVEvent implements DBRTimeEvent {
 		return TimeUtils.convertToEpochSeconds(timestamp);
 	}
 
+	@Override
+	public int getNanos() {
+		return timestamp.getNanos();
+	}
+
+	@Override
+	public long getEpochNanos() {
+		return TimeUtils.convertToEpochNanos(getEpochSeconds(), getNanos());
+	}
+
 	@Override
 	public ByteArray getRawForm() {
 		throw new UnsupportedOperationException("Not supported. Convert to a PB form if you want to use this.");
@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.utils.imprt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A tokenizer for the CSV files used in the import that works directly on the bytes read from the file.
+ * The fields of the current line are tracked as offsets into the read buffer; numeric fields are parsed from the buffer without creating Strings.
+ * Quoted fields (with "" as the escape for a quote) are supported as in opencsv; quoted fields can span lines.
+ * Empty lines are skipped.
+ * The tokenizer also tracks the offset of the current line in the stream; this is used to resume an import.
+ * @author mshankar
+ *
+ */
+class CSVLineTokenizer {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int INITIAL_BUFFER_SIZE = 64*1024;
+	private static final int INITIAL_FIELD_COUNT = 8;
+
+	private final InputStream is;
+	private byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+	private int bufStart = 0;
+	private int bufEnd = 0;
+	private boolean eof = false;
+
+	private int[] fieldStarts = new int[INITIAL_FIELD_COUNT];
+	private int[] fieldEnds = new int[INITIAL_FIELD_COUNT];
+	private boolean[] fieldQuoted = new boolean[INITIAL_FIELD_COUNT];
+	private int fieldCount = 0;
+
+	private long streamOffsetOfBuffer;
+	private long lineOffset = -1;
+	private long lineNumber;
+
+	/**
+	 * @param is - The tokenizer reads in blocks; so there is no need to buffer this.
+	 * @param startOffset - The offset in the file of the first byte in the input stream; used when resuming an import.
+	 * @param startLineNumber - The line number of the first line in the input stream; used for error messages.
+	 */
+	CSVLineTokenizer(InputStream is, long startOffset, long startLineNumber) {
+		this.is = is;
+		this.streamOffsetOfBuffer = startOffset;
+		this.lineNumber = startLineNumber - 1;
+	}
+
+	/**
+	 * Move to the next line; the fields in the previous line are no longer valid after this call.
+	 * @return false if there are no more lines.
+	 * @throws IOException
+	 */
+	boolean nextLine() throws IOException {
+		while(true) {
+			fieldCount = 0;
+			int lineEnd = tokenize();
+			if(lineEnd < 0) {
+				lineOffset = -1;
+				return false;
+			}
+			lineNumber++;
+			int lineStart = bufStart;
+			lineOffset = streamOffsetOfBuffer + lineStart;
+			bufStart = lineEnd;
+			if(fieldCount == 1 && fieldEnds[0] == fieldStarts[0] && !fieldQuoted[0]) {
+				// Empty line
+				continue;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Split the line starting at bufStart into fields, reading more of the stream as needed.
+	 * @return The offset in the buffer of the first byte after this line (including the line terminator); -1 at the end of the stream.
+	 * @throws IOException
+	 */
+	private int tokenize() throws IOException {
+		while(true) {
+			int end = tokenizeFrom(bufStart, bufEnd, false);
+			if(end >= 0) return end;
+			if(!fill()) {
+				if(bufEnd == bufStart) return -1;
+				// Last line without a line terminator
+				return tokenizeFrom(bufStart, bufEnd, true);
+			}
+		}
+	}
+
+	/**
+	 * Try to tokenize a complete line in the buffer between start and limit.
+	 * @return The offset after the line terminator or -1 if the line is not complete in the buffer.
+	 */
+	private int tokenizeFrom(int start, int limit, boolean atEOF) {
+		fieldCount = 0;
+		int pos = start;
+		while(true) {
+			int fieldStart = pos;
+			boolean quoted = false;
+			if(pos < limit && buf[pos] == '"') {
+				quoted = true;
+				pos++;
+				fieldStart = pos;
+				// Find the closing quote; "" is an escaped quote.
+				while(true) {
+					if(pos >= limit) {
+						if(atEOF) break;
+						return -1;
+					}
+					if(buf[pos] == '"') {
+						if(pos + 1 < limit && buf[pos+1] == '"') {
+							pos += 2;
+							continue;
+						}
+						if(pos + 1 >= limit && !atEOF) return -1;
+						break;
+					}
+					pos++;
+				}
+				int fieldEnd = pos;
+				if(pos < limit) pos++;
+				// Skip anything between the closing quote and the separator.
+				while(pos < limit && buf[pos] != ',' && buf[pos] != '\n') pos++;
+				if(pos >= limit && !atEOF) return -1;
+				addField(fieldStart, fieldEnd, quoted);
+			} else {
+				while(pos < limit && buf[pos] != ',' && buf[pos] != '\n') pos++;
+				if(pos >= limit && !atEOF) return -1;
+				int fieldEnd = pos;
+				if(fieldEnd > fieldStart && (pos >= limit || buf[pos] == '\n') && buf[fieldEnd-1] == '\r') fieldEnd--;
+				addField(fieldStart, fieldEnd, quoted);
+			}
+			if(pos >= limit) return limit;
+			if(buf[pos] == '\n') return pos + 1;
+			// Separator
+			pos++;
+		}
+	}
+
+	private void addField(int start, int end, boolean quoted) {
+		if(fieldCount == fieldStarts.length) {
+			int newLength = fieldStarts.length*2;
+			int[] newStarts = new int[newLength];
+			int[] newEnds = new int[newLength];
+			boolean[] newQuoted = new boolean[newLength];
+			System.arraycopy(fieldStarts, 0, newStarts, 0, fieldCount);
+			System.arraycopy(fieldEnds, 0, newEnds, 0, fieldCount);
+			System.arraycopy(fieldQuoted, 0, newQuoted, 0, fieldCount);
+			fieldStarts = newStarts;
+			fieldEnds = newEnds;
+			fieldQuoted = newQuoted;
+		}
+		fieldStarts[fieldCount] = start;
+		fieldEnds[fieldCount] = end;
+		fieldQuoted[fieldCount] = quoted;
+		fieldCount++;
+	}
+
+	/**
+	 * Read more data into the buffer, compacting or growing the buffer as needed so that the current line stays in the buffer.
+	 * @return false if we are at the end of the stream.
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException {
+		if(eof) return false;
+		if(bufStart > 0) {
+			int remaining = bufEnd - bufStart;
+			System.arraycopy(buf, bufStart, buf, 0, remaining);
+			streamOffsetOfBuffer += bufStart;
+			bufStart = 0;
+			bufEnd = remaining;
+		}
+		if(bufEnd == buf.length) {
+			byte[] newBuf = new byte[buf.length*2];
+			System.arraycopy(buf, 0, newBuf, 0, bufEnd);
+			buf = newBuf;
+		}
+		int bytesRead = is.read(buf, bufEnd, buf.length - bufEnd);
+		if(bytesRead < 0) {
+			eof = true;
+			return false;
+		}
+		bufEnd += bytesRead;
+		return true;
+	}
+
+	int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * @return The offset in the file of the start of the current line.
+	 */
+	long getLineOffset() {
+		return lineOffset;
+	}
+
+	long getLineNumber() {
+		return lineNumber;
+	}
+
+	byte[] getBuffer() {
+		return buf;
+	}
+
+	int getFieldStart(int field) {
+		return fieldStarts[field];
+	}
+
+	int getFieldEnd(int field) {
+		return fieldEnds[field];
+	}
+
+	boolean isFieldEmpty(int field) {
+		return fieldEnds[field] == fieldStarts[field];
+	}
+
+	long getLong(int field) {
+		return parseLong(buf, fieldStarts[field], fieldEnds[field]);
+	}
+
+	int getInt(int field) {
+		long val = getLong(field);
+		if(val < Integer.MIN_VALUE || val > Integer.MAX_VALUE) throw new NumberFormatException("Value out of range for an int " + getString(field));
+		return (int) val;
+	}
+
+	String getString(int field) {
+		String ret = new String(buf, fieldStarts[field], fieldEnds[field] - fieldStarts[field], UTF_8);
+		if(fieldQuoted[field] && ret.indexOf('"') >= 0) {
+			ret = ret.replace("\"\"", "\"");
+		}
+		return ret;
+	}
+
+	/**
+	 * Parse a long from the bytes between start and end; leading and trailing spaces are ignored.
+	 */
+	static long parseLong(byte[] buf, int start, int end) {
+		while(start < end && buf[start] == ' ') start++;
+		while(end > start && buf[end-1] == ' ') end--;
+		if(start >= end) throw new NumberFormatException("Empty numeric field");
+		boolean negative = false;
+		int pos = start;
+		if(buf[pos] == '-' || buf[pos] == '+') {
+			negative = buf[pos] == '-';
+			pos++;
+			if(pos >= end) throw new NumberFormatException("Invalid number " + new String(buf, start, end - start, UTF_8));
+		}
+		long result = 0;
+		while(pos < end) {
+			int digit = buf[pos] - '0';
+			if(digit < 0 || digit > 9) throw new NumberFormatException("Invalid number " + new String(buf, start, end - start, UTF_8));
+			if(result > (Long.MAX_VALUE - digit)/10) throw new NumberFormatException("Number out of range " + new String(buf, start, end - start, UTF_8));
+			result = result*10 + digit;
+			pos++;
+		}
+		return negative ? -result : result;
+	}
+
+	/**
+	 * Parse a double from the bytes between start and end.
+	 * Plain integers (the common case for many legacy exports) are parsed directly; everything else uses Double.parseDouble so that the rounding is exactly that of the JDK.
+	 */
+	static double parseDouble(byte[] buf, int start, int end) {
+		if(isPlainInteger(buf, start, end)) {
+			long val = parseLong(buf, start, end);
+			if(val == 0 && buf[start] == '-') return -0.0;
+			return val;
+		}
+		return Double.parseDouble(new String(buf, start, end - start, UTF_8));
+	}
+
+	/**
+	 * Parse a float from the bytes between start and end; as with parseDouble, plain integers are parsed directly.
+	 */
+	static float parseFloat(byte[] buf, int start, int end) {
+		if(isPlainInteger(buf, start, end)) {
+			// Integers with less than 16 digits are exact as a double; so there is only one rounding here.
+			return (float) parseDouble(buf, start, end);
+		}
+		return Float.parseFloat(new String(buf, start, end - start, UTF_8));
+	}
+
+	/**
+	 * @return true if the bytes between start and end are an optional minus sign followed by less than 16 digits.
+	 */
+	private static boolean isPlainInteger(byte[] buf, int start, int end) {
+		int pos = start;
+		if(pos < end && buf[pos] == '-') pos++;
+		if(pos >= end || end - pos >= 16) return false;
+		for(; pos < end; pos++) {
+			if(buf[pos] < '0' || buf[pos] > '9') return false;
+		}
+		return true;
+	}
+}
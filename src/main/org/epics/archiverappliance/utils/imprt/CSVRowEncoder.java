@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.utils.imprt;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.common.YearSecondTimestamp;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.SampleValue;
+
+import com.google.protobuf.ByteString;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent;
+import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Converts a line from the CSV tokenizer directly into the PB bytes for the DBR type.
+ * This skips the CSVEvent/SampleValue and the serializing constructor that the CSVEventStream uses; the bytes are identical.
+ * The events returned carry the timestamp and the raw form; the PB event is created only if someone asks for the value.
+ * See CSVEvent for the format of the lines.
+ * @author mshankar
+ *
+ */
+class CSVRowEncoder {
+	private static final int EPOCHSECONDS_FIELD = 0;
+	private static final int NANOS_FIELD = 1;
+	private static final int VALUE_FIELD = 2;
+	private static final int STATUS_FIELD = 3;
+	private static final int SEVERITY_FIELD = 4;
+	private static final byte VECTOR_SEPARATOR = '|';
+
+	private final ArchDBRTypes dbrType;
+	private final Constructor<? extends DBRTimeEvent> unmarshallingConstructor;
+
+	CSVRowEncoder(ArchDBRTypes dbrType) {
+		this.dbrType = dbrType;
+		this.unmarshallingConstructor = DBR2PBTypeMapping.getPBClassFor(dbrType).getUnmarshallingFromByteArrayConstructor();
+	}
+
+	/**
+	 * Encode the current line of the tokenizer.
+	 * @param tokenizer
+	 * @return The event for the current line.
+	 * @throws IOException - If the line has less than five columns; NumberFormatException if a numeric field cannot be parsed.
+	 */
+	Event encode(CSVLineTokenizer tokenizer) throws IOException {
+		if(tokenizer.getFieldCount() < 5) throw new IOException("We need at least five columns in the CSV - epochseconds, nanos, value, status, severity. Example: - 1301986801,446452000,5.55269,0,0");
+		// Per Bob, the epochseconds here is EPICS epoch seconds. We need to convert to Java epoch seconds; so we add the offset.
+		long epochSeconds = tokenizer.getLong(EPOCHSECONDS_FIELD) + TimeUtils.EPICS_EPOCH_2_JAVA_EPOCH_OFFSET;
+		int nanos = tokenizer.getInt(NANOS_FIELD);
+		int status = tokenizer.getInt(STATUS_FIELD);
+		int severity = tokenizer.getInt(SEVERITY_FIELD);
+		YearSecondTimestamp yst = TimeUtils.convertToYearSecondTimestamp(epochSeconds, nanos);
+		byte[] buf = tokenizer.getBuffer();
+		int start = tokenizer.getFieldStart(VALUE_FIELD);
+		int end = tokenizer.getFieldEnd(VALUE_FIELD);
+
+		byte[] pbBytes;
+		switch(dbrType) {
+		case DBR_SCALAR_STRING: {
+			EPICSEvent.ScalarString.Builder builder = EPICSEvent.ScalarString.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos())
+					.setVal(tokenizer.getString(VALUE_FIELD));
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_SCALAR_SHORT: {
+			EPICSEvent.ScalarShort.Builder builder = EPICSEvent.ScalarShort.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos())
+					.setVal(parseShort(buf, start, end));
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_SCALAR_FLOAT: {
+			EPICSEvent.ScalarFloat.Builder builder = EPICSEvent.ScalarFloat.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos())
+					.setVal(CSVLineTokenizer.parseFloat(buf, start, end));
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_SCALAR_ENUM: {
+			EPICSEvent.ScalarEnum.Builder builder = EPICSEvent.ScalarEnum.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos())
+					.setVal(parseShort(buf, start, end));
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_SCALAR_BYTE: {
+			EPICSEvent.ScalarByte.Builder builder = EPICSEvent.ScalarByte.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos())
+					.setVal(ByteString.copyFrom(new byte[] { parseByte(buf, start, end) }));
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_SCALAR_INT: {
+			EPICSEvent.ScalarInt.Builder builder = EPICSEvent.ScalarInt.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos())
+					.setVal(tokenizer.getInt(VALUE_FIELD));
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_SCALAR_DOUBLE: {
+			EPICSEvent.ScalarDouble.Builder builder = EPICSEvent.ScalarDouble.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos())
+					.setVal(CSVLineTokenizer.parseDouble(buf, start, end));
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_WAVEFORM_STRING: {
+			EPICSEvent.VectorString.Builder builder = EPICSEvent.VectorString.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos());
+			String valueStr = tokenizer.getString(VALUE_FIELD);
+			if(!valueStr.equals("")) {
+				// Same as the String.split used by CSVEvent; trailing empty elements are dropped.
+				ArrayList<String> vals = new ArrayList<String>();
+				int elementStart = 0;
+				for(int i = 0; i <= valueStr.length(); i++) {
+					if(i == valueStr.length() || valueStr.charAt(i) == VECTOR_SEPARATOR) {
+						vals.add(valueStr.substring(elementStart, i));
+						elementStart = i + 1;
+					}
+				}
+				int size = vals.size();
+				while(size > 0 && vals.get(size - 1).isEmpty()) size--;
+				builder.addAllVal(vals.subList(0, size));
+			}
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_WAVEFORM_SHORT: {
+			EPICSEvent.VectorShort.Builder builder = EPICSEvent.VectorShort.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos());
+			for(int elementStart = start, elementEnd; elementStart < end; elementStart = elementEnd + 1) {
+				elementEnd = elementEnd(buf, elementStart, end);
+				builder.addVal(parseShort(buf, elementStart, elementEnd));
+			}
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_WAVEFORM_FLOAT: {
+			EPICSEvent.VectorFloat.Builder builder = EPICSEvent.VectorFloat.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos());
+			for(int elementStart = start, elementEnd; elementStart < end; elementStart = elementEnd + 1) {
+				elementEnd = elementEnd(buf, elementStart, end);
+				builder.addVal(CSVLineTokenizer.parseFloat(buf, elementStart, elementEnd));
+			}
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_WAVEFORM_ENUM: {
+			EPICSEvent.VectorEnum.Builder builder = EPICSEvent.VectorEnum.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos());
+			for(int elementStart = start, elementEnd; elementStart < end; elementStart = elementEnd + 1) {
+				elementEnd = elementEnd(buf, elementStart, end);
+				builder.addVal(parseShort(buf, elementStart, elementEnd));
+			}
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_WAVEFORM_BYTE: {
+			byte[] vals = new byte[elementCount(buf, start, end)];
+			int i = 0;
+			for(int elementStart = start, elementEnd; elementStart < end; elementStart = elementEnd + 1) {
+				elementEnd = elementEnd(buf, elementStart, end);
+				vals[i++] = parseByte(buf, elementStart, elementEnd);
+			}
+			EPICSEvent.VectorChar.Builder builder = EPICSEvent.VectorChar.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos())
+					.setVal(ByteString.copyFrom(vals, 0, i));
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_WAVEFORM_INT: {
+			EPICSEvent.VectorInt.Builder builder = EPICSEvent.VectorInt.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos());
+			for(int elementStart = start, elementEnd; elementStart < end; elementStart = elementEnd + 1) {
+				elementEnd = elementEnd(buf, elementStart, end);
+				builder.addVal(parseInt(buf, elementStart, elementEnd));
+			}
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_WAVEFORM_DOUBLE: {
+			EPICSEvent.VectorDouble.Builder builder = EPICSEvent.VectorDouble.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos());
+			for(int elementStart = start, elementEnd; elementStart < end; elementStart = elementEnd + 1) {
+				elementEnd = elementEnd(buf, elementStart, end);
+				builder.addVal(CSVLineTokenizer.parseDouble(buf, elementStart, elementEnd));
+			}
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		case DBR_V4_GENERIC_BYTES: {
+			EPICSEvent.V4GenericBytes.Builder builder = EPICSEvent.V4GenericBytes.newBuilder()
+					.setSecondsintoyear(yst.getSecondsintoyear())
+					.setNano(yst.getNanos())
+					.setVal(ByteString.copyFromUtf8(tokenizer.getString(VALUE_FIELD)));
+			if(severity != 0) builder.setSeverity(severity);
+			if(status != 0) builder.setStatus(status);
+			pbBytes = builder.build().toByteArray();
+			break;
+		}
+		default:
+			throw new IOException("Unsupported DBR type in switch statement " + dbrType.toString());
+		}
+
+		return new ImportedEvent(epochSeconds, nanos, yst.getYear(), new ByteArray(LineEscaper.escapeNewLines(pbBytes)));
+	}
+
+	/**
+	 * @return The end of the waveform element starting at elementStart.
+	 */
+	private static int elementEnd(byte[] buf, int elementStart, int end) {
+		int pos = elementStart;
+		while(pos < end && buf[pos] != VECTOR_SEPARATOR) pos++;
+		return pos;
+	}
+
+	private static int elementCount(byte[] buf, int start, int end) {
+		if(start >= end) return 0;
+		int count = 1;
+		for(int i = start; i < end; i++) {
+			if(buf[i] == VECTOR_SEPARATOR) count++;
+		}
+		return count;
+	}
+
+	private static int parseInt(byte[] buf, int start, int end) {
+		long val = CSVLineTokenizer.parseLong(buf, start, end);
+		if(val < Integer.MIN_VALUE || val > Integer.MAX_VALUE) throw new NumberFormatException("Value out of range for an int " + val);
+		return (int) val;
+	}
+
+	private static short parseShort(byte[] buf, int start, int end) {
+		long val = CSVLineTokenizer.parseLong(buf, start, end);
+		if(val < Short.MIN_VALUE || val > Short.MAX_VALUE) throw new NumberFormatException("Value out of range for a short " + val);
+		return (short) val;
+	}
+
+	private static byte parseByte(byte[] buf, int start, int end) {
+		long val = CSVLineTokenizer.parseLong(buf, start, end);
+		if(val < Byte.MIN_VALUE || val > Byte.MAX_VALUE) throw new NumberFormatException("Value out of range for a byte " + val);
+		return (byte) val;
+	}
+
+	/**
+	 * An event that has the timestamp and the raw form; appending this to a PB file does not need to unmarshal the PB bytes.
+	 * @author mshankar
+	 *
+	 */
+	private class ImportedEvent implements Event {
+		private final long epochSeconds;
+		private final int nanos;
+		private final short year;
+		private final ByteArray rawForm;
+
+		ImportedEvent(long epochSeconds, int nanos, short year, ByteArray rawForm) {
+			this.epochSeconds = epochSeconds;
+			this.nanos = nanos;
+			this.year = year;
+			this.rawForm = rawForm;
+		}
+
+		@Override
+		public long getEpochSeconds() {
+			return epochSeconds;
+		}
+
+		@Override
+		public Timestamp getEventTimeStamp() {
+			return TimeUtils.convertFromEpochSeconds(epochSeconds, nanos);
+		}
+
+		@Override
+		public int getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public long getEpochNanos() {
+			return TimeUtils.convertToEpochNanos(epochSeconds, nanos);
+		}
+
+		@Override
+		public ByteArray getRawForm() {
+			return rawForm;
+		}
+
+		@Override
+		public SampleValue getSampleValue() {
+			return toPBEvent().getSampleValue();
+		}
+
+		@Override
+		public Event makeClone() {
+			// This event is immutable
+			return this;
+		}
+
+		@Override
+		public ArchDBRTypes getDBRType() {
+			return dbrType;
+		}
+
+		private DBRTimeEvent toPBEvent() {
+			try {
+				return unmarshallingConstructor.newInstance(year, rawForm);
+			} catch(Exception ex) {
+				throw new RuntimeException("Exception unmarshalling imported event of type " + dbrType, ex);
+			}
+		}
+	}
+}
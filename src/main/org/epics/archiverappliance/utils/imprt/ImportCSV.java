@@ -7,11 +7,14 @@
  *******************************************************************************/
 package org.epics.archiverappliance.utils.imprt;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
+import java.util.LinkedList;
 
 import org.apache.log4j.Logger;
-import org.epics.archiverappliance.common.BasicContext;
 import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.utils.imprt.StreamingCSVImport.CSVFile;
 
 import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
 
@@ -19,6 +22,8 @@ import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
  * Simple import of a CSV file into storage plugin.
  * CSV file format is the one used by Bob Hall for export from ChannelArchiver - EPICS epochseconds, nanos, value, status, severity.
  * Example: - 644223600,461147000,5.59054,0,0 
+ * To import many files, use a manifest file with one line per CSV file - CSVFileName,PVName,DBRType; PVs are imported in parallel.
+ * See StreamingCSVImport for details of the import; an interrupted import can be resumed by running the same command again.
  * @author mshankar
  *
  */
@@ -28,39 +33,62 @@ public class ImportCSV {
 	 * @param args
 	 */
 	public static void main(String[] args) throws IOException {
-		if(args.length < 4) {
+		if(args.length < 3 || (args.length < 4 && !args[0].equals("-manifest"))) {
 			// For now we only support the PB plugin.
 			System.err.println("Usage: java org.epics.archiverappliance.utils.imprt.ImportCSV <CSVFileName> <PVName> <DBRType> <PBRootFolder>");
+			System.err.println("   or: java org.epics.archiverappliance.utils.imprt.ImportCSV -manifest <ManifestFileName> <PBRootFolder> [<Threads>]");
+			System.err.println("The manifest has one line per CSV file - CSVFileName,PVName,DBRType");
 			return;
 		}
 
-		String fileName = args[0];
-		String pvName = args[1];
-		ArchDBRTypes type = ArchDBRTypes.valueOf(args[2]);
-		if(type == null) {
-			System.err.println("Unable to determine the DBR type. Supported types are as follows ");
-			for(ArchDBRTypes supptype : ArchDBRTypes.values()) {
-				System.err.println(supptype.ordinal() + "\t:" + supptype.toString());
+		LinkedList<CSVFile> files = new LinkedList<CSVFile>();
+		String rootFolder;
+		int threads = 1;
+		if(args[0].equals("-manifest")) {
+			rootFolder = args[2];
+			threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+			try(BufferedReader reader = new BufferedReader(new FileReader(args[1]))) {
+				String line = reader.readLine();
+				while(line != null) {
+					line = line.trim();
+					if(!line.isEmpty() && !line.startsWith("#")) {
+						String[] parts = line.split(",");
+						if(parts.length < 3) {
+							System.err.println("Expecting CSVFileName,PVName,DBRType in the manifest; instead found " + line);
+							return;
+						}
+						ArchDBRTypes type = parseDBRType(parts[2].trim());
+						if(type == null) return;
+						files.add(new CSVFile(parts[0].trim(), parts[1].trim(), type));
+					}
+					line = reader.readLine();
+				}
 			}
+		} else {
+			ArchDBRTypes type = parseDBRType(args[2]);
+			if(type == null) return;
+			files.add(new CSVFile(args[0], args[1], type));
+			rootFolder = args[3];
 		}
-		String rootFolder = args[3];
 
 		PlainPBStoragePlugin pbplugin = new PlainPBStoragePlugin();
 		pbplugin.setRootFolder(rootFolder);
-		                         
-		CSVEventStream strm = null;
-		try(BasicContext context = new BasicContext()) {
-			strm = new CSVEventStream(pvName, fileName, type);
-			boolean success = pbplugin.appendData(context, pvName, strm);
-			if(!success) {
-				throw new IOException("Please check the logs to make sure the import succeeded.");
-			}
-		} catch (Exception ex) {
-			logger.error(ex.getMessage(), ex);
-		} finally {
-			try { if(strm != null) { strm.close(); strm = null; } } catch(Exception ex) {} 
+
+		StreamingCSVImport imprt = new StreamingCSVImport(pbplugin);
+		if(!imprt.importFiles(files, threads)) {
+			logger.error("Please check the logs to make sure the import succeeded.");
 		}
-		
 	}
 
+	private static ArchDBRTypes parseDBRType(String typeName) {
+		try {
+			return ArchDBRTypes.valueOf(typeName);
+		} catch(IllegalArgumentException ex) {
+			System.err.println("Unable to determine the DBR type " + typeName + ". Supported types are as follows ");
+			for(ArchDBRTypes supptype : ArchDBRTypes.values()) {
+				System.err.println(supptype.ordinal() + "\t:" + supptype.toString());
+			}
+			return null;
+		}
+	}
 }
@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.utils.imprt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.EventStreamDesc;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.PartitionGranularity;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
+
+/**
+ * Streaming import of CSV files (in the format described in CSVEvent) into a PB storage plugin.
+ * <ol>
+ * <li>Lines are tokenized from the bytes of the file and converted directly into PB bytes; so memory use is bounded irrespective of the size of the file.</li>
+ * <li>The data is appended one partition at a time. After each partition, we record the offset in the CSV file of the first line of the next partition in a progress file next to the CSV file.
+ * If the import is interrupted, the next import of the same file resumes from the last completed partition.
+ * Samples in this partition that were appended before the interruption are skipped by the plugin as they are not newer than the last sample in the store.</li>
+ * <li>Many PVs are imported in parallel; files for the same PV are imported sequentially in the order specified.</li>
+ * </ol>
+ * Lines that cannot be parsed are logged and skipped.
+ * @author mshankar
+ *
+ */
+public class StreamingCSVImport {
+	private static final Logger logger = Logger.getLogger(StreamingCSVImport.class);
+	public static final String PROGRESS_EXTENSION = ".importprogress";
+
+	private final PlainPBStoragePlugin pbplugin;
+	private final AtomicLong totalRowsImported = new AtomicLong(0);
+	private final AtomicLong totalRowsSkipped = new AtomicLong(0);
+
+	/**
+	 * A CSV file to be imported and the PV and DBR type for the data in the file.
+	 */
+	public static class CSVFile {
+		private final String fileName;
+		private final String pvName;
+		private final ArchDBRTypes dbrType;
+
+		public CSVFile(String fileName, String pvName, ArchDBRTypes dbrType) {
+			this.fileName = fileName;
+			this.pvName = pvName;
+			this.dbrType = dbrType;
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		public String getPVName() {
+			return pvName;
+		}
+
+		public ArchDBRTypes getDBRType() {
+			return dbrType;
+		}
+	}
+
+	public StreamingCSVImport(PlainPBStoragePlugin pbplugin) {
+		this.pbplugin = pbplugin;
+	}
+
+	/**
+	 * Import these files using this many threads.
+	 * @param files
+	 * @param threads
+	 * @return true if all the files were imported successfully.
+	 */
+	public boolean importFiles(List<CSVFile> files, int threads) {
+		LinkedHashMap<String, List<CSVFile>> filesByPV = new LinkedHashMap<String, List<CSVFile>>();
+		for(CSVFile file : files) {
+			List<CSVFile> pvFiles = filesByPV.get(file.getPVName());
+			if(pvFiles == null) {
+				pvFiles = new LinkedList<CSVFile>();
+				filesByPV.put(file.getPVName(), pvFiles);
+			}
+			pvFiles.add(file);
+		}
+
+		long startNanos = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, filesByPV.size())), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CSV import");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		boolean success = true;
+		try {
+			ArrayList<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for(final Map.Entry<String, List<CSVFile>> pvFiles : filesByPV.entrySet()) {
+				futures.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						for(CSVFile file : pvFiles.getValue()) {
+							try {
+								importFile(file);
+							} catch(Throwable t) {
+								logger.error("Exception importing " + file.getFileName() + " for pv " + file.getPVName() + "; the remaining files for this PV are skipped", t);
+								return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for(Future<Boolean> future : futures) {
+				try {
+					if(!future.get()) success = false;
+				} catch(Exception ex) {
+					logger.error("Exception waiting for import", ex);
+					success = false;
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		logger.info("Imported " + totalRowsImported.get() + " rows for " + filesByPV.size() + " PVs at " + formatRate(totalRowsImported.get(), System.nanoTime() - startNanos) + " rows/sec; skipped " + totalRowsSkipped.get() + " rows that could not be parsed");
+		return success;
+	}
+
+	/**
+	 * Import a CSV file resuming from the last completed partition if this file has been partially imported before.
+	 * @param file
+	 * @return The number of rows read from the file and handed to the plugin; the plugin skips rows that are not newer than the data in the store.
+	 * @throws IOException
+	 */
+	public long importFile(CSVFile file) throws IOException {
+		Path csvPath = Paths.get(file.getFileName());
+		Path progressPath = Paths.get(file.getFileName() + PROGRESS_EXTENSION);
+		Progress progress = Progress.load(progressPath);
+		if(progress != null) {
+			if(!file.getPVName().equals(progress.pvName)) {
+				throw new IOException("The progress file " + progressPath + " is for pv " + progress.pvName + " and not " + file.getPVName() + "; please delete it to import this file");
+			}
+			if(progress.completed) {
+				logger.info("Skipping " + file.getFileName() + " for pv " + file.getPVName() + " as it has already been imported");
+				return 0;
+			}
+			logger.info("Resuming import of " + file.getFileName() + " for pv " + file.getPVName() + " from line " + progress.lineNumber);
+		} else {
+			progress = new Progress(file.getPVName());
+		}
+
+		PartitionGranularity granularity = pbplugin.getPartitionGranularity();
+		long startNanos = System.nanoTime();
+		long rowsImported = 0;
+		try(FileChannel channel = FileChannel.open(csvPath, StandardOpenOption.READ); BasicContext context = new BasicContext()) {
+			channel.position(progress.offset);
+			InputStream is = Channels.newInputStream(channel);
+			PartitionReader reader = new PartitionReader(file, new CSVLineTokenizer(is, progress.offset, progress.lineNumber));
+			reader.readNext();
+			while(reader.pendingEvent != null) {
+				long partitionStartNanos = System.nanoTime();
+				reader.startPartition(TimeUtils.getNextPartitionFirstSecond(reader.pendingEvent.getEpochSeconds(), granularity));
+				pbplugin.appendData(context, file.getPVName(), reader);
+				rowsImported += reader.rowsInPartition;
+				totalRowsImported.addAndGet(reader.rowsInPartition);
+				// The next partition starts with the pending event; if there is none, we are done with this file.
+				progress.offset = reader.pendingLineOffset;
+				progress.lineNumber = reader.pendingLineNumber;
+				progress.completed = reader.pendingEvent == null;
+				progress.save(progressPath);
+				logger.info("Imported " + reader.rowsInPartition + " rows for pv " + file.getPVName()
+						+ " in the partition ending at " + TimeUtils.convertToISO8601String(reader.partitionEndEpochSeconds)
+						+ " at " + formatRate(reader.rowsInPartition, System.nanoTime() - partitionStartNanos) + " rows/sec");
+			}
+			if(!progress.completed) {
+				// Empty file or a file whose remaining lines could not be parsed.
+				progress.completed = true;
+				progress.save(progressPath);
+			}
+		}
+		logger.info("Done importing " + file.getFileName() + " for pv " + file.getPVName() + "; imported " + rowsImported + " rows at " + formatRate(rowsImported, System.nanoTime() - startNanos) + " rows/sec");
+		return rowsImported;
+	}
+
+	public long getRowsImported() {
+		return totalRowsImported.get();
+	}
+
+	public long getRowsSkipped() {
+		return totalRowsSkipped.get();
+	}
+
+	private static String formatRate(long rows, long nanos) {
+		double seconds = Math.max(nanos, 1)/1000000000.0;
+		return new DecimalFormat("###,###,###,###").format(rows/seconds);
+	}
+
+	/**
+	 * The events in a CSV file for one partition.
+	 * The first event of the next partition is held as the pending event so that we can resume from its line.
+	 */
+	private class PartitionReader implements EventStream, Iterator<Event> {
+		private final CSVFile file;
+		private final CSVLineTokenizer tokenizer;
+		private final CSVRowEncoder encoder;
+		private final EventStreamDesc desc;
+		private Event pendingEvent = null;
+		private long pendingLineOffset = 0;
+		private long pendingLineNumber = 1;
+		private long partitionEndEpochSeconds;
+		private long rowsInPartition = 0;
+
+		PartitionReader(CSVFile file, CSVLineTokenizer tokenizer) {
+			this.file = file;
+			this.tokenizer = tokenizer;
+			this.encoder = new CSVRowEncoder(file.getDBRType());
+			this.desc = new EventStreamDesc(file.getDBRType(), file.getPVName());
+		}
+
+		void startPartition(long partitionEndEpochSeconds) {
+			this.partitionEndEpochSeconds = partitionEndEpochSeconds;
+			this.rowsInPartition = 0;
+		}
+
+		/**
+		 * Read the next line that can be parsed into the pending event; the pending event is null at the end of the file.
+		 * @throws IOException
+		 */
+		void readNext() throws IOException {
+			pendingEvent = null;
+			while(tokenizer.nextLine()) {
+				try {
+					pendingEvent = encoder.encode(tokenizer);
+					pendingLineOffset = tokenizer.getLineOffset();
+					pendingLineNumber = tokenizer.getLineNumber();
+					return;
+				} catch(IOException|RuntimeException ex) {
+					totalRowsSkipped.incrementAndGet();
+					logger.error("Skipping line " + tokenizer.getLineNumber() + " in " + file.getFileName() + " for pv " + file.getPVName() + " - " + ex.getMessage());
+				}
+			}
+		}
+
+		@Override
+		public Iterator<Event> iterator() {
+			return this;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return pendingEvent != null && pendingEvent.getEpochSeconds() < partitionEndEpochSeconds;
+		}
+
+		@Override
+		public Event next() {
+			Event ret = pendingEvent;
+			try {
+				readNext();
+			} catch(IOException ex) {
+				throw new RuntimeException("Exception reading " + file.getFileName(), ex);
+			}
+			rowsInPartition++;
+			return ret;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("We do not support the remove method in this iterator");
+		}
+
+		@Override
+		public void close() {
+			// The plugin closes the stream after each partition; the file is closed when we are done with all the partitions.
+		}
+
+		@Override
+		public EventStreamDesc getDescription() {
+			return desc;
+		}
+	}
+
+	/**
+	 * The progress of the import of a CSV file; this is saved as a properties file next to the CSV file.
+	 */
+	private static class Progress {
+		private final String pvName;
+		private long offset = 0;
+		private long lineNumber = 1;
+		private boolean completed = false;
+
+		Progress(String pvName) {
+			this.pvName = pvName;
+		}
+
+		static Progress load(Path progressPath) throws IOException {
+			if(!Files.exists(progressPath)) return null;
+			Properties props = new Properties();
+			try(InputStream is = Files.newInputStream(progressPath)) {
+				props.load(is);
+			}
+			Progress progress = new Progress(props.getProperty("pvName"));
+			progress.offset = Long.parseLong(props.getProperty("offset", "0"));
+			progress.lineNumber = Long.parseLong(props.getProperty("lineNumber", "1"));
+			progress.completed = Boolean.parseBoolean(props.getProperty("completed", "false"));
+			return progress;
+		}
+
+		void save(Path progressPath) throws IOException {
+			Properties props = new Properties();
+			props.setProperty("pvName", pvName);
+			props.setProperty("offset", Long.toString(offset));
+			props.setProperty("lineNumber", Long.toString(lineNumber));
+			props.setProperty("completed", Boolean.toString(completed));
+			Path tempPath = Paths.get(progressPath.toString() + ".tmp");
+			try(OutputStream os = Files.newOutputStream(tempPath)) {
+				props.store(os, "Progress of the CSV import; delete this file to import the CSV file again from the start");
+			}
+			Files.move(tempPath, progressPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+}
@@ -10,12 +10,14 @@ import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.spi.FileSystemProvider;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile.BlockIndex;
 
 /**
  * This is a replacement for NIO Paths that caters to our syntax rules.
@@ -168,6 +170,7 @@ public class ArchPaths implements Closeable {
 	 * Returns a seekable byte channel. 
 	 * In case of file systems, this is the raw SeekableByteChannel as returned by the provider.
 	 * In case of zip files, we wrap the InputStream using WrappedSeekableByteChannel (which is a read only byte channel for now).
+	 * In case of block compressed files opened for reading, we return a BlockCompressedByteChannel over the uncompressed content.
 	 * @param path
 	 * @param options
 	 * @return
@@ -178,8 +181,38 @@ public class ArchPaths implements Closeable {
 		if(pathURI.startsWith(ZIP_PREFIX)) {
 			return new WrappedSeekableByteChannel(path);
 		} else {
-			return Files.newByteChannel(path, options);
+			SeekableByteChannel channel = Files.newByteChannel(path, options);
+			if(isReadOnly(options) && BlockCompressedFile.isBlockCompressed(channel)) {
+				return new BlockCompressedByteChannel(path, channel);
+			}
+			return channel;
+		}
+	}
+	
+	/**
+	 * The size of the content of the file; for block compressed files, this is the size of the uncompressed content.
+	 * Use this when we need positions within the file; use Files.size for disk usage.
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public static long size(Path path) throws IOException {
+		String pathURI = path.toUri().toString();
+		if(pathURI.startsWith(ZIP_PREFIX)) {
+			return Files.size(path);
+		}
+		BlockIndex index = BlockCompressedFile.getIndex(path);
+		if(index != null) {
+			return index.getLogicalSize();
+		}
+		return Files.size(path);
+	}
+	
+	private static boolean isReadOnly(OpenOption...options) {
+		for(OpenOption option : options) {
+			if(option == StandardOpenOption.WRITE || option == StandardOpenOption.APPEND) return false;
 		}
+		return true;
 	}
 	
 
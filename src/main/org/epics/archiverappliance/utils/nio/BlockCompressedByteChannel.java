@@ -0,0 +1,108 @@
+package org.epics.archiverappliance.utils.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.util.zip.Inflater;
+
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile.Block;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile.BlockIndex;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile.CachedItem;
+
+/**
+ * A read only seekable byte channel over the uncompressed content of a block compressed file.
+ * Positions and sizes are in terms of the uncompressed content; so code that uses LineByteStream works as is.
+ * Unlike WrappedSeekableByteChannel, seeking is cheap; we only decompress the block that contains the position.
+ * We look at the size and modification time of the file once when we read the index and use the same inflater for all the blocks that we decompress.
+ * @author mshankar
+ *
+ */
+public class BlockCompressedByteChannel implements SeekableByteChannel {
+	private final Path srcPath;
+	private SeekableByteChannel backingChannel;
+	private final CachedItem<BlockIndex> cachedIndex;
+	private final BlockIndex index;
+	private final Inflater inflater = new Inflater();
+	private long position = 0;
+	private int currentBlockNum = -1;
+	private byte[] currentBlock = null;
+
+	public BlockCompressedByteChannel(Path path, SeekableByteChannel backingChannel) throws IOException {
+		this.srcPath = path;
+		this.backingChannel = backingChannel;
+		this.cachedIndex = BlockCompressedFile.getIndex(path, backingChannel);
+		this.index = cachedIndex.item;
+	}
+
+	public BlockIndex getIndex() {
+		return index;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(backingChannel != null) {
+			backingChannel.close();
+			inflater.end();
+		}
+		backingChannel = null;
+		currentBlock = null;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return backingChannel != null;
+	}
+
+	@Override
+	public long position() throws IOException {
+		return position;
+	}
+
+	@Override
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		if(newPosition < 0) throw new IllegalArgumentException("Negative position " + newPosition);
+		this.position = newPosition;
+		return this;
+	}
+
+	@Override
+	public int read(ByteBuffer byteBuf) throws IOException {
+		if(backingChannel == null) throw new ClosedChannelException();
+		int bytesRead = 0;
+		while(byteBuf.hasRemaining()) {
+			Block block = (currentBlockNum != -1) ? index.getBlocks().get(currentBlockNum) : null;
+			if(block == null || position < block.getLogicalOffset() || position >= block.getLogicalEnd()) {
+				int blockNum = index.findBlock(position);
+				if(blockNum == -1) break;
+				block = index.getBlocks().get(blockNum);
+				currentBlock = BlockCompressedFile.getBlock(srcPath, backingChannel, cachedIndex, block, inflater);
+				currentBlockNum = blockNum;
+			}
+			int offsetInBlock = (int) (position - block.getLogicalOffset());
+			int count = Math.min(byteBuf.remaining(), currentBlock.length - offsetInBlock);
+			byteBuf.put(currentBlock, offsetInBlock, count);
+			position += count;
+			bytesRead += count;
+		}
+		if(bytesRead == 0 && byteBuf.hasRemaining()) return -1;
+		return bytesRead;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return index.getLogicalSize();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long arg0) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int write(ByteBuffer arg0) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -0,0 +1,589 @@
+package org.epics.archiverappliance.utils.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Layout of files that are stored as independently compressed blocks.
+ * The uncompressed (logical) content of these files is exactly what we'd have written into an uncompressed file; this is split at line boundaries into blocks of a few tens of KB and each block is compressed using Deflate.
+ * The file looks like so
+ * <ol>
+ * <li>The file magic <code>PBBLOCK1</code>.</li>
+ * <li>The blocks; each block has a header (block magic, compressed length, logical length, logical offset and the epoch seconds of the first event in the block) followed by the compressed bytes.</li>
+ * <li>The index; this has the physical offset, lengths and first epoch seconds of each block in logical order and lets us locate blocks without reading each header.</li>
+ * <li>The trailer; this has the offset of the index and the index magic <code>PBBLKIDX</code>.</li>
+ * </ol>
+ * Appends do not overwrite anything; the new blocks and a new index and trailer are written after the existing trailer.
+ * A small last block is written out again along with the appended data; the old copy of this block and the old index are then unused space in the file.
+ * If the trailer is missing or corrupt (for example, if we are in the middle of an append or if we crashed in the middle of an append), we rebuild the index by walking the blocks and the old indexes.
+ * A block replaces the blocks from its logical offset on and we ignore any incomplete block at the end; so we always get the samples from the last complete append.
+ * Decompressed blocks are cached so that binary searches and sequential reads do not decompress the same block over and over again.
+ * @author mshankar
+ *
+ */
+public class BlockCompressedFile {
+	private static Logger logger = Logger.getLogger(BlockCompressedFile.class.getName());
+	/**
+	 * We cut a block at the first line boundary after we have this many bytes.
+	 * Deflate only looks back 32KB; so larger blocks do not compress much better but we'd decompress more than we need for short time windows.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 64*1024;
+	private static final byte[] FILE_MAGIC = "PBBLOCK1".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] TRAILER_MAGIC = "PBBLKIDX".getBytes(StandardCharsets.US_ASCII);
+	private static final int BLOCK_MAGIC = 0x50424B42;
+	private static final int INDEX_MAGIC = 0x50424B49;
+	private static final int BLOCK_HEADER_SIZE = 28;
+	private static final int INDEX_ENTRY_SIZE = 24;
+	private static final int TRAILER_SIZE = 16;
+	/**
+	 * About 8MB of decompressed blocks.
+	 */
+	private static final int MAX_CACHED_BLOCKS = 128;
+	private static final int MAX_CACHED_INDEXES = 256;
+
+	private static final Map<String, CachedItem<byte[]>> blockCache = new LinkedHashMap<String, CachedItem<byte[]>>(MAX_CACHED_BLOCKS, 0.75f, true) {
+		private static final long serialVersionUID = 6219455183829349614L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedItem<byte[]>> eldest) {
+			return size() > MAX_CACHED_BLOCKS;
+		}
+	};
+
+	private static final Map<String, CachedItem<BlockIndex>> indexCache = new LinkedHashMap<String, CachedItem<BlockIndex>>(MAX_CACHED_INDEXES, 0.75f, true) {
+		private static final long serialVersionUID = -2964780383262871035L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedItem<BlockIndex>> eldest) {
+			return size() > MAX_CACHED_INDEXES;
+		}
+	};
+
+	/**
+	 * One compressed block in the file.
+	 */
+	public static class Block {
+		private final long logicalOffset;
+		private final int logicalLength;
+		private final long physicalOffset;
+		private final int compressedLength;
+		private final long firstEpochSeconds;
+
+		Block(long logicalOffset, int logicalLength, long physicalOffset, int compressedLength, long firstEpochSeconds) {
+			this.logicalOffset = logicalOffset;
+			this.logicalLength = logicalLength;
+			this.physicalOffset = physicalOffset;
+			this.compressedLength = compressedLength;
+			this.firstEpochSeconds = firstEpochSeconds;
+		}
+
+		/**
+		 * @return The offset of this block in the uncompressed content.
+		 */
+		public long getLogicalOffset() {
+			return logicalOffset;
+		}
+
+		public int getLogicalLength() {
+			return logicalLength;
+		}
+
+		/**
+		 * @return The offset of the block header in the file.
+		 */
+		public long getPhysicalOffset() {
+			return physicalOffset;
+		}
+
+		public int getCompressedLength() {
+			return compressedLength;
+		}
+
+		/**
+		 * @return The epoch seconds of the first event in this block; -1 if this block does not have any events (for example, it only has the header).
+		 */
+		public long getFirstEpochSeconds() {
+			return firstEpochSeconds;
+		}
+
+		public long getPhysicalEnd() {
+			return physicalOffset + BLOCK_HEADER_SIZE + compressedLength;
+		}
+
+		public long getLogicalEnd() {
+			return logicalOffset + logicalLength;
+		}
+	}
+
+	/**
+	 * The blocks in a file in logical order.
+	 */
+	public static class BlockIndex {
+		private final List<Block> blocks;
+		private final long physicalEnd;
+
+		BlockIndex(List<Block> blocks, long physicalEnd) {
+			this.blocks = Collections.unmodifiableList(blocks);
+			this.physicalEnd = physicalEnd;
+		}
+
+		public List<Block> getBlocks() {
+			return blocks;
+		}
+
+		/**
+		 * @return The size of the uncompressed content.
+		 */
+		public long getLogicalSize() {
+			return blocks.isEmpty() ? 0 : blocks.get(blocks.size()-1).getLogicalEnd();
+		}
+
+		/**
+		 * @return The end of the trailer or, if we rebuilt the index, the end of the last complete block or index; appends start from here.
+		 */
+		public long getPhysicalEnd() {
+			return physicalEnd;
+		}
+
+		/**
+		 * @return The bytes before getPhysicalEnd that are not part of the blocks in this index; that is, the indexes and the blocks that have been written out again.
+		 */
+		public long getUnusedBytes() {
+			long usedBytes = FILE_MAGIC.length;
+			for(Block block : blocks) {
+				usedBytes += block.getPhysicalEnd() - block.getPhysicalOffset();
+			}
+			return physicalEnd - usedBytes;
+		}
+
+		/**
+		 * Find the block that contains this logical position.
+		 * @param logicalPosition
+		 * @return The index of the block or -1 if the position is past the end.
+		 */
+		public int findBlock(long logicalPosition) {
+			int low = 0, high = blocks.size() - 1;
+			while(low <= high) {
+				int mid = (low + high) >>> 1;
+				Block block = blocks.get(mid);
+				if(logicalPosition < block.getLogicalOffset()) {
+					high = mid - 1;
+				} else if(logicalPosition >= block.getLogicalEnd()) {
+					low = mid + 1;
+				} else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Use the first timestamps of the blocks to bound a search for the events around epochSeconds.
+		 * Events are sorted by time; so the event we are looking for is in the last block that starts before epochSeconds or in a following block that starts at epochSeconds.
+		 * @param epochSeconds
+		 * @param startPosition - The search does not start before this position
+		 * @return The logical start and end positions for the search
+		 */
+		public long[] getSearchBounds(long epochSeconds, long startPosition) {
+			long searchStart = startPosition;
+			long searchEnd = getLogicalSize();
+			for(Block block : blocks) {
+				if(block.getFirstEpochSeconds() == -1) continue;
+				if(block.getFirstEpochSeconds() < epochSeconds) {
+					// The newline at the end of the previous block is the position just before the first line of this block.
+					searchStart = Math.max(startPosition, block.getLogicalOffset() - 1);
+				} else if(block.getFirstEpochSeconds() > epochSeconds) {
+					searchEnd = Math.max(searchStart + 1, block.getLogicalOffset());
+					break;
+				}
+			}
+			return new long[] { searchStart, searchEnd };
+		}
+	}
+
+	/**
+	 * Something we read from a file along with the size and modification time of the file when we read it.
+	 */
+	static class CachedItem<T> {
+		final long fileSize;
+		final long lastModified;
+		final T item;
+
+		CachedItem(long fileSize, long lastModified, T item) {
+			this.fileSize = fileSize;
+			this.lastModified = lastModified;
+			this.item = item;
+		}
+	}
+
+	/**
+	 * Check if the file open in this channel is a block compressed file.
+	 * The position of the channel is not changed.
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isBlockCompressed(SeekableByteChannel channel) throws IOException {
+		if(channel instanceof FileChannel) {
+			// The binary search opens the file for each probe; so we use a single positional read here.
+			ByteBuffer magic = ByteBuffer.allocate(FILE_MAGIC.length);
+			while(magic.hasRemaining()) {
+				if(((FileChannel) channel).read(magic, magic.position()) < 0) return false;
+			}
+			return Arrays.equals(magic.array(), FILE_MAGIC);
+		}
+		if(channel.size() < FILE_MAGIC.length) return false;
+		long currentPosition = channel.position();
+		try {
+			ByteBuffer magic = readFully(channel, 0, FILE_MAGIC.length);
+			return Arrays.equals(magic.array(), FILE_MAGIC);
+		} finally {
+			channel.position(currentPosition);
+		}
+	}
+
+	/**
+	 * Get the block index for this path.
+	 * @param path
+	 * @return null if this is not a block compressed file.
+	 * @throws IOException
+	 */
+	public static BlockIndex getIndex(Path path) throws IOException {
+		if(path.toUri().toString().startsWith(ArchPaths.ZIP_PREFIX)) return null;
+		try {
+			// Retrieval asks for the index of the same file a few times for each request; we can skip opening the file if we have already read the index.
+			BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			CachedItem<BlockIndex> cached = getCachedItem(indexCache, path.toAbsolutePath().toString(), attrs.size(), attrs.lastModifiedTime().toMillis());
+			if(cached != null) {
+				return cached.item;
+			}
+			try(SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+				if(!isBlockCompressed(channel)) return null;
+				return getIndex(path, channel).item;
+			}
+		} catch(NoSuchFileException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the block index for the file open in this channel along with the size and modification time of the file; readers use these to validate cached blocks.
+	 * @param path
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	static CachedItem<BlockIndex> getIndex(Path path, SeekableByteChannel channel) throws IOException {
+		String key = path.toAbsolutePath().toString();
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		long fileSize = attrs.size();
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		CachedItem<BlockIndex> cached = getCachedItem(indexCache, key, fileSize, lastModified);
+		if(cached != null) {
+			return cached;
+		}
+		cached = new CachedItem<BlockIndex>(fileSize, lastModified, readIndex(path, channel));
+		synchronized(indexCache) {
+			indexCache.put(key, cached);
+		}
+		return cached;
+	}
+
+	/**
+	 * Read the index from the trailer; if this is missing or corrupt, rebuild the index from the blocks.
+	 * @param path - Used for logging.
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public static BlockIndex readIndex(Path path, SeekableByteChannel channel) throws IOException {
+		long fileSize = channel.size();
+		if(fileSize >= FILE_MAGIC.length + TRAILER_SIZE) {
+			ByteBuffer trailer = readFully(channel, fileSize - TRAILER_SIZE, TRAILER_SIZE);
+			long indexOffset = trailer.getLong();
+			if(hasTrailerMagic(trailer) && indexOffset >= FILE_MAGIC.length && indexOffset <= fileSize - TRAILER_SIZE - 8) {
+				List<Block> blocks = readIndexEntries(channel, indexOffset, (int) (fileSize - TRAILER_SIZE - indexOffset));
+				if(blocks != null) {
+					return new BlockIndex(blocks, fileSize);
+				}
+			}
+		}
+
+		logger.info("Rebuilding the block index for " + path.toAbsolutePath().toString() + " from the blocks; the file is being appended to or the last append did not complete");
+		List<Block> blocks = new ArrayList<Block>();
+		long physicalOffset = FILE_MAGIC.length;
+		while(physicalOffset + 8 <= fileSize) {
+			ByteBuffer magicAndCount = readFully(channel, physicalOffset, 8);
+			int magic = magicAndCount.getInt();
+			if(magic == BLOCK_MAGIC) {
+				if(physicalOffset + BLOCK_HEADER_SIZE > fileSize) break;
+				ByteBuffer header = readFully(channel, physicalOffset + 4, BLOCK_HEADER_SIZE - 4);
+				int compressedLength = header.getInt();
+				int logicalLength = header.getInt();
+				long logicalOffset = header.getLong();
+				long firstEpochSeconds = header.getLong();
+				if(compressedLength < 0 || logicalLength < 0 || physicalOffset + BLOCK_HEADER_SIZE + compressedLength > fileSize) {
+					break;
+				}
+				// A small last block is written out again along with the appended data; the new copy replaces the old one.
+				while(!blocks.isEmpty() && blocks.get(blocks.size()-1).getLogicalEnd() > logicalOffset) {
+					blocks.remove(blocks.size()-1);
+				}
+				long logicalEnd = blocks.isEmpty() ? 0 : blocks.get(blocks.size()-1).getLogicalEnd();
+				if(logicalOffset != logicalEnd) {
+					break;
+				}
+				Block block = new Block(logicalOffset, logicalLength, physicalOffset, compressedLength, firstEpochSeconds);
+				blocks.add(block);
+				physicalOffset = block.getPhysicalEnd();
+			} else if(magic == INDEX_MAGIC) {
+				// The index from a previous append; skip it if it is complete.
+				int count = magicAndCount.getInt();
+				long trailerOffset = physicalOffset + 8 + ((long)count)*INDEX_ENTRY_SIZE;
+				if(count < 0 || trailerOffset + TRAILER_SIZE > fileSize) {
+					break;
+				}
+				ByteBuffer trailer = readFully(channel, trailerOffset, TRAILER_SIZE);
+				if(trailer.getLong() != physicalOffset || !hasTrailerMagic(trailer)) {
+					break;
+				}
+				physicalOffset = trailerOffset + TRAILER_SIZE;
+			} else {
+				break;
+			}
+		}
+		return new BlockIndex(blocks, physicalOffset);
+	}
+
+	/**
+	 * Parse the index at indexOffset.
+	 * @return null if the index is corrupt.
+	 */
+	private static List<Block> readIndexEntries(SeekableByteChannel channel, long indexOffset, int indexSize) throws IOException {
+		ByteBuffer indexBuf = readFully(channel, indexOffset, indexSize);
+		int indexMagic = indexBuf.getInt();
+		int count = indexBuf.getInt();
+		if(indexMagic != INDEX_MAGIC || count < 0 || indexSize != 8 + ((long)count)*INDEX_ENTRY_SIZE) {
+			return null;
+		}
+		List<Block> blocks = new ArrayList<Block>(count);
+		long logicalOffset = 0;
+		for(int i = 0; i < count; i++) {
+			long physicalOffset = indexBuf.getLong();
+			int compressedLength = indexBuf.getInt();
+			int logicalLength = indexBuf.getInt();
+			long firstEpochSeconds = indexBuf.getLong();
+			Block block = new Block(logicalOffset, logicalLength, physicalOffset, compressedLength, firstEpochSeconds);
+			if(physicalOffset < FILE_MAGIC.length || compressedLength < 0 || logicalLength < 0 || block.getPhysicalEnd() > indexOffset) {
+				return null;
+			}
+			blocks.add(block);
+			logicalOffset = block.getLogicalEnd();
+		}
+		return blocks;
+	}
+
+	/**
+	 * Get the uncompressed contents of this block; we use the cache if possible.
+	 * Cached blocks are validated against the size and modification time of the file when we read the index; so we do not look at the file again for each block.
+	 * @param path
+	 * @param channel
+	 * @param index - As returned by getIndex
+	 * @param block
+	 * @param inflater - This is reset before use.
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] getBlock(Path path, SeekableByteChannel channel, CachedItem<BlockIndex> index, Block block, Inflater inflater) throws IOException {
+		String key = path.toAbsolutePath().toString() + "@" + block.getPhysicalOffset();
+		CachedItem<byte[]> cached = getCachedItem(blockCache, key, index.fileSize, index.lastModified);
+		if(cached != null) {
+			return cached.item;
+		}
+		byte[] data = decompressBlock(path, channel, block, inflater);
+		synchronized(blockCache) {
+			blockCache.put(key, new CachedItem<byte[]>(index.fileSize, index.lastModified, data));
+		}
+		return data;
+	}
+
+	private static <T> CachedItem<T> getCachedItem(Map<String, CachedItem<T>> cache, String key, long fileSize, long lastModified) {
+		synchronized(cache) {
+			CachedItem<T> cached = cache.get(key);
+			if(cached != null && cached.fileSize == fileSize && cached.lastModified == lastModified) {
+				return cached;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read and decompress this block.
+	 * @param path - Used for logging
+	 * @param channel
+	 * @param block
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] decompressBlock(Path path, SeekableByteChannel channel, Block block) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			return decompressBlock(path, channel, block, inflater);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Read and decompress this block using this inflater; creating an Inflater for each block is expensive.
+	 * @param path - Used for logging
+	 * @param channel
+	 * @param block
+	 * @param inflater - This is reset before use.
+	 * @return
+	 * @throws IOException
+	 */
+	static byte[] decompressBlock(Path path, SeekableByteChannel channel, Block block, Inflater inflater) throws IOException {
+		ByteBuffer compressed = readFully(channel, block.getPhysicalOffset() + BLOCK_HEADER_SIZE, block.getCompressedLength());
+		byte[] data = new byte[block.getLogicalLength()];
+		inflater.reset();
+		try {
+			inflater.setInput(compressed.array());
+			int bytesInflated = 0;
+			while(bytesInflated < data.length && !inflater.finished()) {
+				int count = inflater.inflate(data, bytesInflated, data.length - bytesInflated);
+				if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				bytesInflated += count;
+			}
+			if(bytesInflated != data.length) {
+				throw new IOException("Block at " + block.getPhysicalOffset() + " in " + path.toAbsolutePath().toString() + " decompressed to " + bytesInflated + " bytes; expecting " + data.length);
+			}
+		} catch(DataFormatException ex) {
+			throw new IOException("Corrupt block at " + block.getPhysicalOffset() + " in " + path.toAbsolutePath().toString(), ex);
+		}
+		return data;
+	}
+
+	/**
+	 * Write the file magic at the current position of the channel; this should be the start of the file.
+	 * @param channel
+	 * @throws IOException
+	 */
+	public static void writeFileHeader(SeekableByteChannel channel) throws IOException {
+		writeFully(channel, ByteBuffer.wrap(FILE_MAGIC));
+	}
+
+	/**
+	 * Compress and write a block at the current position of the channel.
+	 * @param channel
+	 * @param deflater - This is reset before use.
+	 * @param logicalOffset - The logical position of the first byte of data.
+	 * @param data
+	 * @param len
+	 * @param firstEpochSeconds
+	 * @return
+	 * @throws IOException
+	 */
+	public static Block writeBlock(SeekableByteChannel channel, Deflater deflater, long logicalOffset, byte[] data, int len, long firstEpochSeconds) throws IOException {
+		deflater.reset();
+		deflater.setInput(data, 0, len);
+		deflater.finish();
+		byte[] compressed = new byte[len + len/1000 + 64];
+		int compressedLength = 0;
+		while(!deflater.finished()) {
+			if(compressedLength == compressed.length) {
+				compressed = Arrays.copyOf(compressed, compressed.length*2);
+			}
+			compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+		}
+		long physicalOffset = channel.position();
+		ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+		header.putInt(BLOCK_MAGIC);
+		header.putInt(compressedLength);
+		header.putInt(len);
+		header.putLong(logicalOffset);
+		header.putLong(firstEpochSeconds);
+		header.flip();
+		writeFully(channel, header);
+		writeFully(channel, ByteBuffer.wrap(compressed, 0, compressedLength));
+		return new Block(logicalOffset, len, physicalOffset, compressedLength, firstEpochSeconds);
+	}
+
+	/**
+	 * Copy a block as is from one file to the current position of another.
+	 * @param channel
+	 * @param block
+	 * @param destChannel
+	 * @return The block in the destination.
+	 * @throws IOException
+	 */
+	public static Block copyBlock(SeekableByteChannel channel, Block block, SeekableByteChannel destChannel) throws IOException {
+		long physicalOffset = destChannel.position();
+		writeFully(destChannel, readFully(channel, block.getPhysicalOffset(), BLOCK_HEADER_SIZE + block.getCompressedLength()));
+		return new Block(block.getLogicalOffset(), block.getLogicalLength(), physicalOffset, block.getCompressedLength(), block.getFirstEpochSeconds());
+	}
+
+	/**
+	 * Write the index and the trailer at the current position of the channel; this should be after the last block.
+	 * @param channel
+	 * @param blocks
+	 * @throws IOException
+	 */
+	public static void writeIndex(SeekableByteChannel channel, List<Block> blocks) throws IOException {
+		long indexOffset = channel.position();
+		ByteBuffer buf = ByteBuffer.allocate(8 + blocks.size()*INDEX_ENTRY_SIZE + TRAILER_SIZE);
+		buf.putInt(INDEX_MAGIC);
+		buf.putInt(blocks.size());
+		for(Block block : blocks) {
+			buf.putLong(block.getPhysicalOffset());
+			buf.putInt(block.getCompressedLength());
+			buf.putInt(block.getLogicalLength());
+			buf.putLong(block.getFirstEpochSeconds());
+		}
+		buf.putLong(indexOffset);
+		buf.put(TRAILER_MAGIC);
+		buf.flip();
+		writeFully(channel, buf);
+	}
+
+	private static boolean hasTrailerMagic(ByteBuffer trailer) {
+		byte[] trailerMagic = new byte[TRAILER_MAGIC.length];
+		trailer.get(trailerMagic);
+		return Arrays.equals(trailerMagic, TRAILER_MAGIC);
+	}
+
+	private static ByteBuffer readFully(SeekableByteChannel channel, long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		channel.position(position);
+		while(buf.hasRemaining()) {
+			if(channel.read(buf) < 0) {
+				throw new IOException("Unexpected end of file reading " + length + " bytes at " + position);
+			}
+		}
+		buf.flip();
+		return buf;
+	}
+
+	private static void writeFully(SeekableByteChannel channel, ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+}
@@ -107,7 +107,12 @@ public class SimulationEvent implements DBRTimeEvent {
 
 	@Override
 	public long getEpochSeconds() {
-		return TimeUtils.convertToEpochSeconds(TimeUtils.convertFromYearSecondTimestamp(new YearSecondTimestamp(yearofdata, secondsIntoYear, 0)));
+		return TimeUtils.getStartOfYearInSeconds(yearofdata) + secondsIntoYear;
+	}
+
+	@Override
+	public long getEpochNanos() {
+		return TimeUtils.convertToEpochNanos(getEpochSeconds(), nanos);
 	}
 
 	@Override
@@ -175,6 +180,7 @@ public class SimulationEvent implements DBRTimeEvent {
 		throw new UnsupportedOperationException("Not supported. Convert to a PB form if you want to use this.");
 	}
 
+	@Override
 	public int getNanos() {
 		return nanos;
 	}
@@ -22,6 +22,8 @@ import org.epics.archiverappliance.common.PartitionGranularity;
 import org.epics.archiverappliance.common.TimeSpan;
 import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.common.YearSecondTimestamp;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -252,6 +254,38 @@ public class TimeUtilsTest {
 	
 	}
 	
+	/**
+	 * Test that the year/secondsintoyear computed from the start of year table matches JODA, especially around year boundaries.
+	 */
+	@Test
+	public void testComputeYearFromEpochSecondsMatchesJoda() {
+		for(int year = 1970; year < 2500; year++) {
+			long startOfYear = new DateTime(year, 1, 1, 0, 0, 0, 0, DateTimeZone.UTC).getMillis()/1000;
+			for(long epochSeconds : new long[] {startOfYear - 1, startOfYear, startOfYear + 1, startOfYear + 86400*180}) {
+				if(epochSeconds < 0) continue;
+				DateTime dateTime = new DateTime(epochSeconds*1000, DateTimeZone.UTC);
+				assertEquals("Year for " + epochSeconds, dateTime.getYear(), TimeUtils.computeYearForEpochSeconds(epochSeconds));
+				YearSecondTimestamp yts = TimeUtils.convertToYearSecondTimestamp(epochSeconds, 1234);
+				assertEquals(dateTime.getYear(), yts.getYear());
+				assertEquals(epochSeconds - new DateTime(dateTime.getYear(), 1, 1, 0, 0, 0, 0, DateTimeZone.UTC).getMillis()/1000, yts.getSecondsintoyear());
+				assertEquals(1234, yts.getNanos());
+				assertEquals(epochSeconds - yts.getSecondsintoyear(), TimeUtils.getStartOfYearInSeconds(epochSeconds));
+			}
+		}
+	}
+	
+	@Test
+	public void testCompareAndEpochNanos() {
+		for(Timestamp ts : testcases) {
+			long epochSeconds = TimeUtils.convertToEpochSeconds(ts);
+			int nanos = ts.getNanos();
+			assertEquals(ts.getTime()*1000000L + (nanos % 1000000), TimeUtils.convertToEpochNanos(epochSeconds, nanos));
+			assertEquals(0, TimeUtils.compare(epochSeconds, nanos, epochSeconds, nanos));
+			assertTrue(TimeUtils.compare(epochSeconds, nanos, epochSeconds, nanos+1) < 0);
+			assertTrue(TimeUtils.compare(epochSeconds+1, 0, epochSeconds, 999999999) > 0);
+		}
+	}
+	
 	static private void testNextEquals(String tsstr, PartitionGranularity granularity, String expectedStr) {
 		assertEquals(
 				TimeUtils.convertToISO8601String(TimeUtils.getNextPartitionFirstSecond(TimeUtils.convertToEpochSeconds(TimeUtils.convertFromISO8601String(tsstr)), granularity)),
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PB.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.common.YearSecondTimestamp;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.PrimitiveVectorValue;
+import org.epics.archiverappliance.data.SampleValue;
+import org.epics.archiverappliance.data.VectorValue;
+import org.junit.Test;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+
+import edu.stanford.slac.archiverappliance.PB.EPICSEvent;
+import edu.stanford.slac.archiverappliance.PB.data.PackedVectorCodec.ElementType;
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Test that the waveforms we write from primitive arrays have the same bytes as what the generated code writes.
+ * And that we get the same values back when we read the packed values into primitive arrays.
+ * @author mshankar
+ *
+ */
+public class PackedVectorCodecTest {
+	private static Logger logger = Logger.getLogger(PackedVectorCodecTest.class.getName());
+	short year = 2012;
+
+	@Test
+	public void testPackedVectors() throws Exception {
+		ArchDBRTypes[] dbrTypes = new ArchDBRTypes[] {
+				ArchDBRTypes.DBR_WAVEFORM_SHORT,
+				ArchDBRTypes.DBR_WAVEFORM_FLOAT,
+				ArchDBRTypes.DBR_WAVEFORM_ENUM,
+				ArchDBRTypes.DBR_WAVEFORM_BYTE,
+				ArchDBRTypes.DBR_WAVEFORM_INT,
+				ArchDBRTypes.DBR_WAVEFORM_DOUBLE
+		};
+		BoundaryConditionsSimulationValueGenerator valueGenerator = new BoundaryConditionsSimulationValueGenerator();
+		for(ArchDBRTypes dbrType : dbrTypes) {
+			logger.info("Testing packed vectors for DBR_type: " + dbrType.name());
+			DBR2PBTypeMapping mapping = DBR2PBTypeMapping.getPBClassFor(dbrType);
+			int numberOfSamples = valueGenerator.getNumberOfSamples(dbrType);
+			for(int secondsIntoYear = 0; secondsIntoYear < numberOfSamples; secondsIntoYear++) {
+				SampleValue sampleValue = valueGenerator.getSampleValue(dbrType, secondsIntoYear);
+				POJOEvent pojoEvent = new POJOEvent(dbrType,
+						TimeUtils.convertFromEpochSeconds(TimeUtils.getStartOfYearInSeconds(year) + secondsIntoYear, secondsIntoYear*7919),
+						sampleValue,
+						secondsIntoYear % 22,
+						secondsIntoYear % 4);
+				String msg = dbrType.name() + " at " + secondsIntoYear;
+				DBRTimeEvent serialized = mapping.getSerializingConstructor().newInstance(pojoEvent);
+				if(secondsIntoYear % 10 == 0) {
+					// POJOEvents do not have field values; so we add these to a PB event and serialize that again.
+					HashMap<String, String> fields = new HashMap<String, String>();
+					fields.put("HIHI", Integer.toString(secondsIntoYear));
+					fields.put("LOLO", Integer.toString(-secondsIntoYear));
+					serialized.setFieldValues(fields, true);
+					serialized = mapping.getSerializingConstructor().newInstance(serialized);
+				}
+				byte[] line = serialized.getRawForm().toBytes();
+				byte[] unescaped = LineEscaper.unescapeNewLines(line);
+				assertArrayEquals(msg, parseUsingGeneratedCode(dbrType, unescaped).toByteArray(), unescaped);
+
+				DBRTimeEvent unmarshalled = mapping.getUnmarshallingFromByteArrayConstructor().newInstance(year, new ByteArray(line));
+				SampleValue readBack = unmarshalled.getSampleValue();
+				assertTrue(msg, readBack instanceof PrimitiveVectorValue);
+				assertEquals(msg, sampleValue.getElementCount(), readBack.getElementCount());
+				List<Number> readBackValues = new ArrayList<Number>();
+				for(int i = 0; i < sampleValue.getElementCount(); i++) {
+					assertEquals(msg, sampleValue.getValue(i).doubleValue(), ((PrimitiveVectorValue<?>) readBack).getDoubleValue(i), 0.0);
+					readBackValues.add(readBack.getValue(i));
+				}
+				assertEquals(msg, new VectorValue<Number>(readBackValues), readBack);
+				assertEquals(msg, new VectorValue<Number>(readBackValues).hashCode(), readBack.hashCode());
+				assertEquals(msg, secondsIntoYear % 22, unmarshalled.getStatus());
+				assertEquals(msg, secondsIntoYear % 4, unmarshalled.getSeverity());
+				assertEquals(msg, secondsIntoYear % 10 == 0, unmarshalled.hasFieldValues());
+			}
+		}
+	}
+
+	/**
+	 * Encode a slice of a larger array with a repeat count (this is what the engine's VectorSampleBlock does) and check it against the generated code.
+	 * Then read the packed elements as bits and write them back; this is what the DeltaVectorCodec does.
+	 */
+	@Test
+	public void testSlicesAndBits() throws Exception {
+		YearSecondTimestamp yst = new YearSecondTimestamp(year, 1234, 5678);
+		HashMap<String, String> fields = new HashMap<String, String>();
+		fields.put("HIHI", "10");
+		int offset = 5;
+		int count = 7;
+		double[] doubles = new double[20];
+		short[] shorts = new short[20];
+		byte[] bytes = new byte[20];
+		for(int i = 0; i < 20; i++) {
+			doubles[i] = i*1.5 - 3;
+			shorts[i] = (short) (i*1000 - 8000);
+			bytes[i] = (byte) (i*13);
+		}
+
+		EPICSEvent.VectorDouble vectorDouble = EPICSEvent.VectorDouble.parseFrom(LineEscaper.unescapeNewLines(PackedVectorCodec.encode(yst, 2, 3, 4, ElementType.DOUBLE, doubles, offset, count, fields, true).toBytes()));
+		for(int i = 0; i < count; i++) {
+			assertEquals(doubles[offset + i], vectorDouble.getVal(i), 0.0);
+		}
+		assertEquals(count, vectorDouble.getValCount());
+		assertEquals(4, vectorDouble.getRepeatcount());
+		assertEquals("10", vectorDouble.getFieldvalues(0).getVal());
+		assertTrue(vectorDouble.getFieldactualchange());
+
+		byte[] shortLine = LineEscaper.unescapeNewLines(PackedVectorCodec.encode(yst, 0, 0, 4, ElementType.SINT32, shorts, offset, count, null, false).toBytes());
+		EPICSEvent.VectorShort vectorShort = EPICSEvent.VectorShort.parseFrom(shortLine);
+		assertArrayEquals(vectorShort.toByteArray(), shortLine);
+		for(int i = 0; i < count; i++) {
+			assertEquals(shorts[offset + i], vectorShort.getVal(i));
+		}
+
+		byte[] byteLine = LineEscaper.unescapeNewLines(PackedVectorCodec.encode(yst, 0, 0, 0, ElementType.BYTES, bytes, offset, count, null, false).toBytes());
+		EPICSEvent.VectorChar vectorChar = EPICSEvent.VectorChar.parseFrom(byteLine);
+		assertArrayEquals(vectorChar.toByteArray(), byteLine);
+		assertArrayEquals(Arrays.copyOfRange(bytes, offset, offset + count), vectorChar.getVal().toByteArray());
+
+		for(ElementType elementType : new ElementType[] { ElementType.DOUBLE, ElementType.SINT32 }) {
+			byte[] unescaped = elementType == ElementType.DOUBLE ? LineEscaper.unescapeNewLines(PackedVectorCodec.encode(yst, 0, 0, 0, elementType, doubles, 0, 20, null, false).toBytes()) : LineEscaper.unescapeNewLines(PackedVectorCodec.encode(yst, 0, 0, 0, elementType, shorts, 0, 20, null, false).toBytes());
+			CodedInputStream is = CodedInputStream.newInstance(unescaped);
+			is.readTag(); is.readUInt32();
+			is.readTag(); is.readUInt32();
+			is.readTag();
+			int length = is.readRawVarint32();
+			int valStart = is.getTotalBytesRead();
+			int oldLimit = is.pushLimit(length);
+			long[] bits = PackedVectorCodec.readPackedBits(is, elementType, length);
+			is.popLimit(oldLimit);
+			assertEquals(20, bits.length);
+			assertEquals(length, PackedVectorCodec.packedBitsSize(elementType, bits));
+			byte[] written = new byte[length];
+			CodedOutputStream os = CodedOutputStream.newInstance(written);
+			PackedVectorCodec.writePackedBits(os, elementType, bits);
+			os.checkNoSpaceLeft();
+			assertArrayEquals(Arrays.copyOfRange(unescaped, valStart, valStart + length), written);
+		}
+	}
+
+	private static Message parseUsingGeneratedCode(ArchDBRTypes dbrType, byte[] unescaped) throws Exception {
+		switch(dbrType) {
+		case DBR_WAVEFORM_SHORT: return EPICSEvent.VectorShort.parseFrom(unescaped);
+		case DBR_WAVEFORM_FLOAT: return EPICSEvent.VectorFloat.parseFrom(unescaped);
+		case DBR_WAVEFORM_ENUM: return EPICSEvent.VectorEnum.parseFrom(unescaped);
+		case DBR_WAVEFORM_BYTE: return EPICSEvent.VectorChar.parseFrom(unescaped);
+		case DBR_WAVEFORM_INT: return EPICSEvent.VectorInt.parseFrom(unescaped);
+		case DBR_WAVEFORM_DOUBLE: return EPICSEvent.VectorDouble.parseFrom(unescaped);
+		default: throw new UnsupportedOperationException(dbrType.name());
+		}
+	}
+}
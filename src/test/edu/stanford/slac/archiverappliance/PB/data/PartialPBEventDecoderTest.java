@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package edu.stanford.slac.archiverappliance.PB.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.ByteArray;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.junit.Test;
+
+/**
+ * Test that the timestamp, severity and status we get without parsing the whole message match what we get when we parse the whole message.
+ * We use the boundary condition values; these have escaped bytes in various places in the line.
+ * @author mshankar
+ *
+ */
+public class PartialPBEventDecoderTest {
+	private static Logger logger = Logger.getLogger(PartialPBEventDecoderTest.class.getName());
+	short year = 2012;
+
+	@Test
+	public void testPartialDecoding() throws Exception {
+		BoundaryConditionsSimulationValueGenerator valueGenerator = new BoundaryConditionsSimulationValueGenerator();
+		for(ArchDBRTypes dbrType : ArchDBRTypes.values()) {
+			if(!dbrType.isV3Type()) continue;
+			logger.info("Testing partial decoding for DBR_type: " + dbrType.name());
+			DBR2PBTypeMapping mapping = DBR2PBTypeMapping.getPBClassFor(dbrType);
+			int numberOfSamples = valueGenerator.getNumberOfSamples(dbrType);
+			for(int secondsIntoYear = 0; secondsIntoYear < numberOfSamples; secondsIntoYear++) {
+				int nanos = (secondsIntoYear*7919) % 1000000000;
+				POJOEvent pojoEvent = new POJOEvent(dbrType,
+						TimeUtils.convertFromEpochSeconds(TimeUtils.getStartOfYearInSeconds(year) + secondsIntoYear, nanos),
+						valueGenerator.getSampleValue(dbrType, secondsIntoYear),
+						secondsIntoYear % 22,
+						secondsIntoYear % 4);
+				DBRTimeEvent serialized = mapping.getSerializingConstructor().newInstance(pojoEvent);
+				if(secondsIntoYear % 10 == 0) {
+					HashMap<String, String> fields = new HashMap<String, String>();
+					fields.put("HIHI", Integer.toString(secondsIntoYear));
+					serialized.setFieldValues(fields, true);
+				}
+				byte[] line = serialized.getRawForm().toBytes();
+
+				DBRTimeEvent parsed = mapping.getUnmarshallingFromByteArrayConstructor().newInstance(year, new ByteArray(line));
+				parsed.hasFieldValues();
+				assertNotNull(getParsedMessage(parsed));
+
+				DBRTimeEvent partial = mapping.getUnmarshallingFromByteArrayConstructor().newInstance(year, new ByteArray(line));
+				String msg = dbrType.name() + " at " + secondsIntoYear;
+				assertEquals(msg, parsed.getEpochSeconds(), partial.getEpochSeconds());
+				assertEquals(msg, ((PartionedTime) parsed).getSecondsIntoYear(), ((PartionedTime) partial).getSecondsIntoYear());
+				assertEquals(msg, parsed.getNanos(), partial.getNanos());
+				assertEquals(msg, parsed.getEpochNanos(), partial.getEpochNanos());
+				assertEquals(msg, parsed.getEventTimeStamp(), partial.getEventTimeStamp());
+				assertEquals(msg, parsed.getSeverity(), partial.getSeverity());
+				assertEquals(msg, parsed.getStatus(), partial.getStatus());
+				assertNull("We should not have parsed the message for " + msg, getParsedMessage(partial));
+				assertEquals(msg, parsed.getSampleValue().toString(), partial.getSampleValue().toString());
+				// Asking for the field values parses the message.
+				assertEquals(msg, parsed.hasFieldValues(), partial.hasFieldValues());
+				assertNotNull(getParsedMessage(partial));
+			}
+		}
+	}
+
+	private static Object getParsedMessage(DBRTimeEvent event) throws Exception {
+		Field dbeventField = event.getClass().getDeclaredField("dbevent");
+		dbeventField.setAccessible(true);
+		return dbeventField.get(event);
+	}
+}
@@ -0,0 +1,439 @@
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.etl.ETLContext;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.workers.CurrentThreadWorkerEventStream;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.epics.archiverappliance.utils.nio.BlockCompressedByteChannel;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile.Block;
+import org.epics.archiverappliance.utils.nio.BlockCompressedFile.BlockIndex;
+import org.junit.After;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Test the BLOCK_DEFLATE compression mode of the PlainPB plugin.
+ * We write the same data into a plain store and a block compressed store and make sure that the uncompressed content of the block compressed files is the same as the plain files.
+ * We then compare what we get back from both stores for various time windows, when appending, when ETL'ing in and out of block compressed stores and after losing the index or crashing in the middle of an append.
+ * We also log the size of the files and the time it takes to retrieve data.
+ * @author mshankar
+ *
+ */
+public class BlockCompressedPBTest {
+	private static Logger logger = Logger.getLogger(BlockCompressedPBTest.class.getName());
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "BlockCompressedPBTest");
+	short year = 2012;
+	long startOfYear = TimeUtils.getStartOfYearInSeconds(year);
+	ArchDBRTypes type = ArchDBRTypes.DBR_SCALAR_DOUBLE;
+	private static final int READ_PASSES = 5;
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testBlockCompressedStore() throws Exception {
+		ConfigServiceForTests configService = new ConfigServiceForTests(new File("./bin"));
+		String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":BlockCompressedPBTest";
+		PlainPBStoragePlugin plainPlugin = newPlugin(configService, "plain", "PARTITION_DAY", "");
+		PlainPBStoragePlugin blockPlugin = newPlugin(configService, "block", "PARTITION_DAY", "&compress=BLOCK_DEFLATE");
+		assertTrue(blockPlugin.getURLRepresentation(), blockPlugin.getURLRepresentation().contains("&compress=BLOCK_DEFLATE"));
+		assertFalse(blockPlugin.getRootFolder(), blockPlugin.getRootFolder().startsWith(ArchPaths.ZIP_PREFIX));
+
+		// 36 hours of 1Hz data starting at noon; so we have two partitions.
+		// We append in chunks; so we also append to existing files.
+		long firstSecond = startOfYear + 12*3600;
+		int numSamples = 36*3600;
+		int chunkSize = 10000;
+		for(int chunkStart = 0; chunkStart < numSamples; chunkStart += chunkSize) {
+			ArrayListEventStream strm = generateData(pvName, firstSecond, chunkStart, Math.min(chunkStart + chunkSize, numSamples));
+			try(BasicContext context = new BasicContext()) {
+				plainPlugin.appendData(context, pvName, strm);
+			}
+			try(BasicContext context = new BasicContext()) {
+				blockPlugin.appendData(context, pvName, strm);
+			}
+		}
+
+		Path[] plainPaths = getPaths(plainPlugin, pvName);
+		Path[] blockPaths = getPaths(blockPlugin, pvName);
+		assertEquals(2, plainPaths.length);
+		assertEquals(2, blockPaths.length);
+		for(int p = 0; p < plainPaths.length; p++) {
+			checkBlockCompressedFile(blockPaths[p], plainPaths[p]);
+
+			// Full iteration
+			assertLinesEqual(readLines(new FileBackedPBEventStream(pvName, plainPaths[p], type)), readLines(new FileBackedPBEventStream(pvName, blockPaths[p], type)));
+
+			// First and last events
+			PBFileInfo plainInfo = new PBFileInfo(plainPaths[p]);
+			PBFileInfo blockInfo = new PBFileInfo(blockPaths[p]);
+			assertArrayEquals(plainInfo.getFirstEvent().getRawForm().toBytes(), blockInfo.getFirstEvent().getRawForm().toBytes());
+			assertArrayEquals(plainInfo.getLastEvent().getRawForm().toBytes(), blockInfo.getLastEvent().getRawForm().toBytes());
+			assertEquals(plainInfo.getPositionOfFirstSample(), blockInfo.getPositionOfFirstSample());
+			assertEquals(plainInfo.getPositionOfLastSample(), blockInfo.getPositionOfLastSample());
+		}
+
+		// Random time windows; both with the binary search and with the time based iterator.
+		Random random = new Random(1234);
+		for(int i = 0; i < 20; i++) {
+			int p = i % 2;
+			long partitionStart = (p == 0) ? firstSecond : startOfYear + 86400;
+			long windowStart = partitionStart + random.nextInt(12*3600);
+			Timestamp start = TimeUtils.convertFromEpochSeconds(windowStart, random.nextInt(1000000000));
+			Timestamp end = TimeUtils.convertFromEpochSeconds(windowStart + 1 + random.nextInt(3*3600), 0);
+			for(boolean skipSearch : new boolean[] { false, true }) {
+				List<byte[]> blockLines = readLines(new FileBackedPBEventStream(pvName, blockPaths[p], type, start, end, skipSearch));
+				assertLinesEqual(readLines(new FileBackedPBEventStream(pvName, plainPaths[p], type, start, end, skipSearch)), blockLines);
+			}
+		}
+
+		// Retrieval across partitions
+		Timestamp retrievalStart = TimeUtils.convertFromEpochSeconds(firstSecond + 7777, 0);
+		Timestamp retrievalEnd = TimeUtils.convertFromEpochSeconds(firstSecond + 22*3600, 0);
+		assertLinesEqual(retrieve(plainPlugin, pvName, retrievalStart, retrievalEnd), retrieve(blockPlugin, pvName, retrievalStart, retrievalEnd));
+	}
+
+	/**
+	 * If we crash in the middle of an append, we lose the index; make sure we can still read the file and append to it.
+	 * Stores that are not block compressed also append blocks to existing block compressed files.
+	 */
+	@Test
+	public void testRecoverIndex() throws Exception {
+		ConfigServiceForTests configService = new ConfigServiceForTests(new File("./bin"));
+		String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":BlockCompressedPBRecover";
+		PlainPBStoragePlugin plainPlugin = newPlugin(configService, "plain", "PARTITION_YEAR", "");
+		PlainPBStoragePlugin blockPlugin = newPlugin(configService, "block", "PARTITION_YEAR", "&compress=BLOCK_DEFLATE");
+		ArrayListEventStream firstChunk = generateData(pvName, startOfYear, 0, 50000);
+		try(BasicContext context = new BasicContext()) {
+			plainPlugin.appendData(context, pvName, firstChunk);
+		}
+		try(BasicContext context = new BasicContext()) {
+			blockPlugin.appendData(context, pvName, firstChunk);
+		}
+		Path plainPath = getPaths(plainPlugin, pvName)[0];
+		Path blockPath = getPaths(blockPlugin, pvName)[0];
+		checkBlockCompressedFile(blockPath, plainPath);
+
+		// Chop off part of the trailer
+		try(FileChannel channel = FileChannel.open(blockPath, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 5);
+		}
+		checkBlockCompressedFile(blockPath, plainPath);
+		assertLinesEqual(readLines(new FileBackedPBEventStream(pvName, plainPath, type)), readLines(new FileBackedPBEventStream(pvName, blockPath, type)));
+
+		// Append using a plugin that is not block compressed
+		PlainPBStoragePlugin uncompressedPluginForBlockStore = newPlugin(configService, "block", "PARTITION_YEAR", "");
+		ArrayListEventStream secondChunk = generateData(pvName, startOfYear, 50000, 60000);
+		try(BasicContext context = new BasicContext()) {
+			plainPlugin.appendData(context, pvName, secondChunk);
+		}
+		try(BasicContext context = new BasicContext()) {
+			uncompressedPluginForBlockStore.appendData(context, pvName, secondChunk);
+		}
+		checkBlockCompressedFile(blockPath, plainPath);
+		assertLinesEqual(readLines(new FileBackedPBEventStream(pvName, plainPath, type)), readLines(new FileBackedPBEventStream(pvName, blockPath, type)));
+	}
+
+	/**
+	 * Appends do not overwrite the existing blocks; if we crash in the middle of an append, we should still have all the samples from the previous appends.
+	 * Readers that open the file in the middle of an append should see these samples as well.
+	 */
+	@Test
+	public void testCrashDuringAppend() throws Exception {
+		ConfigServiceForTests configService = new ConfigServiceForTests(new File("./bin"));
+		String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":BlockCompressedPBCrash";
+		PlainPBStoragePlugin plainPlugin = newPlugin(configService, "plain", "PARTITION_YEAR", "");
+		PlainPBStoragePlugin blockPlugin = newPlugin(configService, "block", "PARTITION_YEAR", "&compress=BLOCK_DEFLATE");
+		ArrayListEventStream firstChunk = generateData(pvName, startOfYear, 0, 17000);
+		try(BasicContext context = new BasicContext()) {
+			plainPlugin.appendData(context, pvName, firstChunk);
+		}
+		try(BasicContext context = new BasicContext()) {
+			blockPlugin.appendData(context, pvName, firstChunk);
+		}
+		Path plainPath = getPaths(plainPlugin, pvName)[0];
+		Path blockPath = getPaths(blockPlugin, pvName)[0];
+		List<byte[]> firstChunkLines = readLines(new FileBackedPBEventStream(pvName, plainPath, type));
+		List<Block> blocksBefore = BlockCompressedFile.getIndex(blockPath).getBlocks();
+		assertTrue("The next append should write out the last block again", blocksBefore.get(blocksBefore.size()-1).getLogicalLength() < BlockCompressedFile.DEFAULT_BLOCK_SIZE/2);
+
+		ArrayListEventStream secondChunk = generateData(pvName, startOfYear, 17000, 60000);
+		Path crashedPath = blockPath.resolveSibling("crashed.pb");
+		List<byte[]> linesDuringAppend;
+		try(OutputStream os = new BlockCompressedPBOutputStream(blockPath, true, BlockCompressedFile.DEFAULT_BLOCK_SIZE)) {
+			for(Event e : secondChunk) {
+				os.write(e.getRawForm().toBytes());
+				os.write(LineEscaper.NEWLINE_CHAR);
+			}
+			// We have written out a few blocks but not the index; this is what we'd have if we crashed now.
+			Files.copy(blockPath, crashedPath);
+			linesDuringAppend = readLines(new FileBackedPBEventStream(pvName, blockPath, type));
+		}
+		try(BasicContext context = new BasicContext()) {
+			plainPlugin.appendData(context, pvName, secondChunk);
+		}
+		checkBlockCompressedFile(blockPath, plainPath);
+		List<byte[]> plainLines = readLines(new FileBackedPBEventStream(pvName, plainPath, type));
+		assertLinesEqual(plainLines, readLines(new FileBackedPBEventStream(pvName, blockPath, type)));
+		assertTrue(linesDuringAppend.size() > firstChunkLines.size());
+		assertLinesEqual(plainLines.subList(0, linesDuringAppend.size()), linesDuringAppend);
+
+		// Add some junk to simulate an incomplete block at the end of the crashed file.
+		Files.write(crashedPath, new byte[100], StandardOpenOption.APPEND);
+		List<byte[]> crashedLines = readLines(new FileBackedPBEventStream(pvName, crashedPath, type));
+		assertTrue(crashedLines.size() > firstChunkLines.size());
+		assertLinesEqual(plainLines.subList(0, crashedLines.size()), crashedLines);
+
+		// Appending to the crashed file should drop the junk and continue from the last complete block.
+		try(OutputStream os = new BlockCompressedPBOutputStream(crashedPath, true, BlockCompressedFile.DEFAULT_BLOCK_SIZE)) {
+			for(byte[] line : plainLines.subList(crashedLines.size(), plainLines.size())) {
+				os.write(line);
+				os.write(LineEscaper.NEWLINE_CHAR);
+			}
+		}
+		checkBlockCompressedFile(crashedPath, plainPath);
+	}
+
+	/**
+	 * The engine appends a few samples at a time; so, the small last block is written out again for almost every append.
+	 * Make sure the file does not keep growing with the old copies of this block.
+	 */
+	@Test
+	public void testSmallAppends() throws Exception {
+		ConfigServiceForTests configService = new ConfigServiceForTests(new File("./bin"));
+		String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":BlockCompressedPBSmallAppends";
+		PlainPBStoragePlugin plainPlugin = newPlugin(configService, "plain", "PARTITION_YEAR", "");
+		PlainPBStoragePlugin blockPlugin = newPlugin(configService, "block", "PARTITION_YEAR", "&compress=BLOCK_DEFLATE");
+		for(int chunkStart = 0; chunkStart < 40000; chunkStart += 500) {
+			ArrayListEventStream strm = generateData(pvName, startOfYear, chunkStart, chunkStart + 500);
+			try(BasicContext context = new BasicContext()) {
+				plainPlugin.appendData(context, pvName, strm);
+			}
+			try(BasicContext context = new BasicContext()) {
+				blockPlugin.appendData(context, pvName, strm);
+			}
+			Path blockPath = getPaths(blockPlugin, pvName)[0];
+			BlockIndex index = BlockCompressedFile.getIndex(blockPath);
+			logger.info("After appending " + (chunkStart + 500) + " samples, " + index.getUnusedBytes() + " of " + Files.size(blockPath) + " bytes are unused");
+			assertTrue("Too much unused space " + index.getUnusedBytes() + " of " + Files.size(blockPath), index.getUnusedBytes()*4 <= Files.size(blockPath));
+		}
+		Path blockPath = getPaths(blockPlugin, pvName)[0];
+		checkBlockCompressedFile(blockPath, getPaths(plainPlugin, pvName)[0]);
+		assertFalse(Files.exists(blockPath.resolveSibling(blockPath.getFileName().toString() + BlockCompressedPBOutputStream.COMPACTION_SUFFIX)));
+	}
+
+	/**
+	 * ETL from a plain store into a block compressed store and from there into another plain store; these use the bulk append.
+	 */
+	@Test
+	public void testETL() throws Exception {
+		ConfigServiceForTests configService = new ConfigServiceForTests(new File("./bin"));
+		String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":BlockCompressedPBETL";
+		PlainPBStoragePlugin srcPlugin = newPlugin(configService, "src", "PARTITION_HOUR", "");
+		PlainPBStoragePlugin blockPlugin = newPlugin(configService, "block", "PARTITION_DAY", "&compress=BLOCK_DEFLATE");
+		PlainPBStoragePlugin destPlugin = newPlugin(configService, "dest", "PARTITION_DAY", "");
+		try(BasicContext context = new BasicContext()) {
+			srcPlugin.appendData(context, pvName, generateData(pvName, startOfYear, 0, 6*3600));
+		}
+
+		etl(pvName, srcPlugin, blockPlugin);
+		Path blockPath = getPaths(blockPlugin, pvName)[0];
+		BlockIndex index = BlockCompressedFile.getIndex(blockPath);
+		assertNotNull(index);
+		for(int i = 0; i < index.getBlocks().size() - 1; i++) {
+			assertTrue("Block " + i + " is too small " + index.getBlocks().get(i).getLogicalLength(), index.getBlocks().get(i).getLogicalLength() >= BlockCompressedFile.DEFAULT_BLOCK_SIZE/2);
+		}
+
+		etl(pvName, blockPlugin, destPlugin);
+		Path destPath = getPaths(destPlugin, pvName)[0];
+		assertTrue("ETL out of a block compressed store should write an uncompressed file", BlockCompressedFile.getIndex(destPath) == null);
+		checkBlockCompressedFile(blockPath, destPath);
+
+		Timestamp start = TimeUtils.convertFromEpochSeconds(startOfYear + 3333, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(startOfYear + 4*3600 + 44, 0);
+		assertLinesEqual(retrieve(srcPlugin, pvName, start, end), retrieve(blockPlugin, pvName, start, end));
+		assertLinesEqual(retrieve(srcPlugin, pvName, start, end), retrieve(destPlugin, pvName, start, end));
+	}
+
+	/**
+	 * Compare the size of the files and the time it takes to retrieve data from a plain store and a block compressed store.
+	 */
+	@Test
+	public void testRetrievalTime() throws Exception {
+		ConfigServiceForTests configService = new ConfigServiceForTests(new File("./bin"));
+		String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":BlockCompressedPBRetrievalTime";
+		int numSamples = 10*86400;
+		ArrayListEventStream strm = generateData(pvName, startOfYear, 0, numSamples);
+		for(String mode : new String[] { "", "&compress=BLOCK_DEFLATE" }) {
+			PlainPBStoragePlugin plugin = newPlugin(configService, "retrievaltime" + mode.length(), "PARTITION_YEAR", mode);
+			long writeStart = System.currentTimeMillis();
+			try(BasicContext context = new BasicContext()) {
+				plugin.appendData(context, pvName, strm);
+			}
+			long writeEnd = System.currentTimeMillis();
+			Path path = getPaths(plugin, pvName)[0];
+
+			// The first pass warms up the JIT; we report the best of the rest.
+			// Each pass reads a different set of windows so that we do not just read back the blocks cached by the previous pass.
+			int windowCount = 100;
+			long bestFullReadMillis = Long.MAX_VALUE;
+			long bestWindowReadMillis = Long.MAX_VALUE;
+			for(int pass = 0; pass <= READ_PASSES; pass++) {
+				long fullReadStart = System.currentTimeMillis();
+				int eventCount = readLines(new FileBackedPBEventStream(pvName, path, type)).size();
+				long fullReadEnd = System.currentTimeMillis();
+				assertEquals(numSamples, eventCount);
+
+				Random random = new Random(4321 + pass);
+				long windowReadStart = System.currentTimeMillis();
+				for(int i = 0; i < windowCount; i++) {
+					long windowStart = startOfYear + random.nextInt(numSamples - 3600);
+					List<byte[]> lines = readLines(new FileBackedPBEventStream(pvName, path, type, TimeUtils.convertFromEpochSeconds(windowStart, 0), TimeUtils.convertFromEpochSeconds(windowStart + 3600, 0), false));
+					assertTrue(lines.size() >= 3600);
+				}
+				long windowReadEnd = System.currentTimeMillis();
+				if(pass > 0) {
+					bestFullReadMillis = Math.min(bestFullReadMillis, fullReadEnd - fullReadStart);
+					bestWindowReadMillis = Math.min(bestWindowReadMillis, windowReadEnd - windowReadStart);
+				}
+			}
+			logger.info("Scalar doubles with mode [" + mode + "]: " + Files.size(path) + " bytes; "
+					+ (writeEnd - writeStart) + "(ms) to write; "
+					+ bestFullReadMillis + "(ms) to read all " + numSamples + " events; "
+					+ bestWindowReadMillis + "(ms) to read " + windowCount + " one hour windows");
+		}
+	}
+
+	/**
+	 * The uncompressed content of the block compressed file should be the same as the plain file.
+	 * Blocks should be in time order and all blocks but the last should be at least half the block size.
+	 */
+	private static void checkBlockCompressedFile(Path blockPath, Path plainPath) throws Exception {
+		byte[] plainBytes = Files.readAllBytes(plainPath);
+		assertEquals(plainBytes.length, ArchPaths.size(blockPath));
+		ByteArrayOutputStream logicalBytes = new ByteArrayOutputStream();
+		try(SeekableByteChannel channel = ArchPaths.newByteChannel(blockPath, StandardOpenOption.READ)) {
+			assertTrue(channel instanceof BlockCompressedByteChannel);
+			ByteBuffer buf = ByteBuffer.allocate(64*1024);
+			while(channel.read(buf) > 0) {
+				buf.flip();
+				logicalBytes.write(buf.array(), 0, buf.limit());
+				buf.clear();
+			}
+		}
+		assertArrayEquals(plainBytes, logicalBytes.toByteArray());
+
+		long blockSize = Files.size(blockPath);
+		logger.info(blockPath.getFileName() + " has " + blockSize + " bytes when block compressed and " + plainBytes.length + " bytes uncompressed");
+		assertTrue("Block compressed file is not smaller " + blockSize + "/" + plainBytes.length, blockSize*2 < plainBytes.length);
+
+		BlockIndex index = BlockCompressedFile.getIndex(blockPath);
+		assertNotNull(index);
+		assertTrue("Expecting more than one block", index.getBlocks().size() > 1);
+		long previousEpochSeconds = -1;
+		for(Block block : index.getBlocks()) {
+			assertTrue(block.getFirstEpochSeconds() >= previousEpochSeconds);
+			previousEpochSeconds = block.getFirstEpochSeconds();
+		}
+		for(int i = 0; i < index.getBlocks().size() - 1; i++) {
+			assertTrue("Block " + i + " is too small " + index.getBlocks().get(i).getLogicalLength(), index.getBlocks().get(i).getLogicalLength() >= BlockCompressedFile.DEFAULT_BLOCK_SIZE/2);
+		}
+	}
+
+	private void etl(String pvName, PlainPBStoragePlugin src, PlainPBStoragePlugin dest) throws Exception {
+		try(ETLContext etlContext = new ETLContext()) {
+			for(Path path : getPaths(src, pvName)) {
+				try(FileBackedPBEventStream stream = new FileBackedPBEventStream(pvName, path, type)) {
+					dest.appendToETLAppendData(pvName, stream, etlContext);
+				}
+			}
+			dest.commitETLAppendData(pvName, etlContext);
+		}
+	}
+
+	private PlainPBStoragePlugin newPlugin(ConfigServiceForTests configService, String folder, String partitionGranularity, String mode) throws Exception {
+		return (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=" + folder + "&rootFolder=" + testFolder.getAbsolutePath() + "/" + folder + "&partitionGranularity=" + partitionGranularity + mode, configService);
+	}
+
+	private Path[] getPaths(PlainPBStoragePlugin plugin, String pvName) throws Exception {
+		try(BasicContext context = new BasicContext()) {
+			return PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), plugin.getRootFolder(), pvName, PlainPBStoragePlugin.PB_EXTENSION, plugin.getPartitionGranularity(), PlainPBStoragePlugin.CompressionMode.NONE, plugin.getPVNameToKeyMapping());
+		}
+	}
+
+	/**
+	 * A slowly varying value with two decimal places; the severity and status change now and then.
+	 */
+	private ArrayListEventStream generateData(String pvName, long firstSecond, int fromSample, int toSample) {
+		ArrayListEventStream strm = new ArrayListEventStream(toSample - fromSample, new RemotableEventStreamDesc(type, pvName, year));
+		for(int i = fromSample; i < toSample; i++) {
+			double value = Math.round(Math.sin(i/600.0)*10000)/100.0;
+			strm.add(new POJOEvent(type, TimeUtils.convertFromEpochSeconds(firstSecond + i, ((i % 1000)*7919) % 1000), new ScalarValue<Double>(value), (i % 5000 < 10) ? 1 : 0, (i % 5000 < 10) ? 3 : 0));
+		}
+		return strm;
+	}
+
+	private static List<byte[]> readLines(EventStream stream) throws Exception {
+		List<byte[]> lines = new ArrayList<byte[]>();
+		try {
+			for(Event e : stream) {
+				lines.add(e.getRawForm().toBytes());
+			}
+		} finally {
+			stream.close();
+		}
+		return lines;
+	}
+
+	private static List<byte[]> retrieve(PlainPBStoragePlugin plugin, String pvName, Timestamp start, Timestamp end) throws Exception {
+		try(BasicContext context = new BasicContext()) {
+			List<Callable<EventStream>> callables = plugin.getDataForPV(context, pvName, start, end);
+			return readLines(new CurrentThreadWorkerEventStream(pvName, callables));
+		}
+	}
+
+	private static void assertLinesEqual(List<byte[]> expected, List<byte[]> got) {
+		assertTrue("No events", !expected.isEmpty());
+		assertEquals(expected.size(), got.size());
+		for(int i = 0; i < expected.size(); i++) {
+			assertArrayEquals("Line " + i, expected.get(i), got.get(i));
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.PrimitiveVectorValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+
+/**
+ * Compare the size of the files and the time it takes to read the waveforms back from a plain store and a store with deltaWaveforms.
+ * This is not part of the unit tests as it writes a few tens of MB for each type; run it using
+ * <pre>
+ * <code>java -cp ... edu.stanford.slac.archiverappliance.PlainPB.DeltaWaveformsBenchmark [elementCount] [numSamples]</code>
+ * </pre>
+ * For each type, this prints the compression ratio and the decode rate (in MB of values and in events per second) for both stores.
+ * We use the same waveforms as DeltaWaveformsTest.
+ * @author mshankar
+ *
+ */
+public class DeltaWaveformsBenchmark {
+	private static final int READ_ITERATIONS = 5;
+
+	public static void main(String[] args) throws Exception {
+		int elementCount = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+		int numSamples = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "DeltaWaveformsBenchmark");
+		ConfigServiceForTests configService = new ConfigServiceForTests(new File("./bin"));
+		DecimalFormat twoPlaces = new DecimalFormat("0.00");
+		short year = 2012;
+		long startOfYear = TimeUtils.getStartOfYearInSeconds(year);
+		try {
+			for(ArchDBRTypes type : new ArchDBRTypes[] { ArchDBRTypes.DBR_WAVEFORM_DOUBLE, ArchDBRTypes.DBR_WAVEFORM_FLOAT, ArchDBRTypes.DBR_WAVEFORM_INT, ArchDBRTypes.DBR_WAVEFORM_SHORT, ArchDBRTypes.DBR_WAVEFORM_ENUM }) {
+				String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":DeltaWaveformsBenchmark" + type.name();
+				ArrayListEventStream strm = new ArrayListEventStream(numSamples, new RemotableEventStreamDesc(type, pvName, year));
+				for(int i = 0; i < numSamples; i++) {
+					strm.add(new POJOEvent(type, TimeUtils.convertFromEpochSeconds(startOfYear + i, 0), DeltaWaveformsTest.generateWaveform(type, i, elementCount), 0, 0));
+				}
+				long valueBytes = ((long) numSamples)*elementCount*elementSize(type);
+
+				long plainSize = 0;
+				for(String mode : new String[] { "", "&deltaWaveforms=true" }) {
+					PlainPBStoragePlugin plugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=Benchmark&rootFolder=" + testFolder.getAbsolutePath() + "/" + type.name() + mode.length() + "&partitionGranularity=PARTITION_YEAR" + mode, configService);
+					long writeStart = System.currentTimeMillis();
+					try(BasicContext context = new BasicContext()) {
+						plugin.appendData(context, pvName, strm);
+					}
+					long writeMillis = System.currentTimeMillis() - writeStart;
+					Path path;
+					try(BasicContext context = new BasicContext()) {
+						path = PlainPBPathNameUtility.getPathNameForTime(plugin, pvName, startOfYear, context.getPaths(), configService.getPVNameToKeyConverter());
+					}
+					long size = Files.size(path);
+					if(mode.isEmpty()) plainSize = size;
+
+					// The first read warms up the JIT; we report the best of the rest.
+					long bestReadNanos = Long.MAX_VALUE;
+					for(int iteration = 0; iteration <= READ_ITERATIONS; iteration++) {
+						long readStart = System.nanoTime();
+						int eventCount = 0;
+						double sum = 0;
+						try(FileBackedPBEventStream stream = new FileBackedPBEventStream(pvName, path, type)) {
+							for(Event e : stream) {
+								sum += ((PrimitiveVectorValue<?>) e.getSampleValue()).getDoubleValue(elementCount/2);
+								eventCount++;
+							}
+						}
+						long readNanos = System.nanoTime() - readStart;
+						if(eventCount != numSamples) throw new IllegalStateException("Expecting " + numSamples + " events; got " + eventCount + " (checksum " + sum + ")");
+						if(iteration > 0) bestReadNanos = Math.min(bestReadNanos, readNanos);
+					}
+					double readSeconds = bestReadNanos/1.0e9;
+					System.out.println(type.name() + (mode.isEmpty() ? " plain" : " delta")
+							+ ": " + size + " bytes"
+							+ "; compression ratio " + twoPlaces.format(((double) plainSize)/size) + " vs plain"
+							+ "; " + writeMillis + "(ms) to write"
+							+ "; decode rate " + twoPlaces.format(valueBytes/(1024.0*1024.0)/readSeconds) + " MB/s"
+							+ " (" + twoPlaces.format(numSamples/readSeconds) + " events/s)");
+				}
+			}
+		} finally {
+			FileUtils.deleteDirectory(testFolder);
+			configService.shutdownNow();
+		}
+		// The engine context in the config service leaves some non daemon threads behind.
+		System.exit(0);
+	}
+
+	private static int elementSize(ArchDBRTypes type) {
+		switch(type) {
+		case DBR_WAVEFORM_DOUBLE: return 8;
+		case DBR_WAVEFORM_FLOAT: case DBR_WAVEFORM_INT: return 4;
+		default: return 2;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.PartitionGranularity;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.PrimitiveVectorValue;
+import org.epics.archiverappliance.data.SampleValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.workers.CurrentThreadWorkerEventStream;
+import org.junit.After;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Test the deltaWaveforms mode of the PlainPB plugin.
+ * We write the same waveforms into a plain store and a store with deltaWaveforms and make sure we get the same lines back from both.
+ * The values are chosen so that the lines and the deltas have escaped bytes.
+ * DeltaWaveformsBenchmark reports the compression ratio and the decode rate.
+ * @author mshankar
+ *
+ */
+public class DeltaWaveformsTest {
+	private static Logger logger = Logger.getLogger(DeltaWaveformsTest.class.getName());
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "DeltaWaveformsTest");
+	short year = 2012;
+	long startOfYear = TimeUtils.getStartOfYearInSeconds(year);
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testWaveformDouble() throws Exception {
+		testDeltaWaveforms(ArchDBRTypes.DBR_WAVEFORM_DOUBLE);
+	}
+
+	@Test
+	public void testWaveformShort() throws Exception {
+		testDeltaWaveforms(ArchDBRTypes.DBR_WAVEFORM_SHORT);
+	}
+
+	@Test
+	public void testWaveformFloat() throws Exception {
+		testDeltaWaveforms(ArchDBRTypes.DBR_WAVEFORM_FLOAT);
+	}
+
+	@Test
+	public void testWaveformInt() throws Exception {
+		testDeltaWaveforms(ArchDBRTypes.DBR_WAVEFORM_INT);
+	}
+
+	@Test
+	public void testWaveformEnum() throws Exception {
+		testDeltaWaveforms(ArchDBRTypes.DBR_WAVEFORM_ENUM);
+	}
+
+	private void testDeltaWaveforms(ArchDBRTypes type) throws Exception {
+		ConfigServiceForTests configService = new ConfigServiceForTests(new File("./bin"));
+		String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":DeltaWaveformsTest" + type.name();
+		PlainPBStoragePlugin plainPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=Plain&rootFolder=" + testFolder.getAbsolutePath() + "/plain&partitionGranularity=PARTITION_HOUR", configService);
+		PlainPBStoragePlugin deltaPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=Delta&rootFolder=" + testFolder.getAbsolutePath() + "/delta&partitionGranularity=PARTITION_HOUR&deltaWaveforms=true&keyframeInterval=16", configService);
+		assertTrue(deltaPlugin.getURLRepresentation(), deltaPlugin.getURLRepresentation().contains("&deltaWaveforms=true&keyframeInterval=16"));
+
+		// 3000 samples starting 1500 seconds before the hour; so we have two partitions.
+		// We append in chunks of 1000 samples; so we also append to existing files.
+		int numSamples = 3000;
+		long firstSecond = startOfYear + 3600 - 1500;
+		for(int chunk = 0; chunk < numSamples/1000; chunk++) {
+			ArrayListEventStream strm = new ArrayListEventStream(1000, new RemotableEventStreamDesc(type, pvName, year));
+			for(int i = chunk*1000; i < (chunk+1)*1000; i++) {
+				strm.add(new POJOEvent(type, TimeUtils.convertFromEpochSeconds(firstSecond + i, i % 20), generateWaveform(type, i, 500), i % 4, i % 7));
+			}
+			try(BasicContext context = new BasicContext()) {
+				plainPlugin.appendData(context, pvName, strm);
+			}
+			try(BasicContext context = new BasicContext()) {
+				deltaPlugin.appendData(context, pvName, strm);
+			}
+		}
+
+		Path[] plainPaths;
+		Path[] deltaPaths;
+		try(BasicContext context = new BasicContext()) {
+			plainPaths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), plainPlugin.getRootFolder(), pvName, PlainPBStoragePlugin.PB_EXTENSION, PartitionGranularity.PARTITION_HOUR, PlainPBStoragePlugin.CompressionMode.NONE, configService.getPVNameToKeyConverter());
+			deltaPaths = PlainPBPathNameUtility.getAllPathsForPV(context.getPaths(), deltaPlugin.getRootFolder(), pvName, PlainPBStoragePlugin.PB_EXTENSION, PartitionGranularity.PARTITION_HOUR, PlainPBStoragePlugin.CompressionMode.NONE, configService.getPVNameToKeyConverter());
+		}
+		assertEquals(2, plainPaths.length);
+		assertEquals(2, deltaPaths.length);
+		for(int p = 0; p < plainPaths.length; p++) {
+			long plainSize = Files.size(plainPaths[p]);
+			long deltaSize = Files.size(deltaPaths[p]);
+			logger.info(type + " file " + deltaPaths[p].getFileName() + " has " + deltaSize + " bytes with deltaWaveforms and " + plainSize + " bytes without");
+			assertTrue(type + " delta file is not smaller " + deltaSize + "/" + plainSize, deltaSize*2 < plainSize);
+
+			// Full iteration
+			assertLinesEqual(readLines(new FileBackedPBEventStream(pvName, plainPaths[p], type)), readLines(new FileBackedPBEventStream(pvName, deltaPaths[p], type)));
+
+			// First and last events
+			PBFileInfo plainInfo = new PBFileInfo(plainPaths[p]);
+			PBFileInfo deltaInfo = new PBFileInfo(deltaPaths[p]);
+			assertArrayEquals(plainInfo.getFirstEvent().getRawForm().toBytes(), deltaInfo.getFirstEvent().getRawForm().toBytes());
+			assertArrayEquals(plainInfo.getLastEvent().getRawForm().toBytes(), deltaInfo.getLastEvent().getRawForm().toBytes());
+			// The position of the last sample is the start of the last line in the file.
+			byte[] fileBytes = Files.readAllBytes(deltaPaths[p]);
+			int lastNewLine = fileBytes.length - 2;
+			while(fileBytes[lastNewLine] != LineEscaper.NEWLINE_CHAR) lastNewLine--;
+			assertEquals(lastNewLine + 1, deltaInfo.getPositionOfLastSample());
+		}
+
+		// Time windows that start in the middle of a run of delta frames; both with the binary search and with the time based iterator.
+		Timestamp start = TimeUtils.convertFromEpochSeconds(firstSecond + 777, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(firstSecond + 1203, 0);
+		for(boolean useSearchForPositions : new boolean[] { true, false }) {
+			List<byte[]> deltaLines = readLines(new FileBackedPBEventStream(pvName, deltaPaths[0], type, start, end, useSearchForPositions));
+			assertLinesEqual(readLines(new FileBackedPBEventStream(pvName, plainPaths[0], type, start, end, useSearchForPositions)), deltaLines);
+			assertTrue("Too few events " + deltaLines.size(), deltaLines.size() > 400);
+		}
+
+		// Retrieval across partitions
+		Timestamp retrievalStart = TimeUtils.convertFromEpochSeconds(firstSecond + 1111, 0);
+		Timestamp retrievalEnd = TimeUtils.convertFromEpochSeconds(firstSecond + 2222, 0);
+		assertLinesEqual(retrieve(plainPlugin, pvName, retrievalStart, retrievalEnd), retrieve(deltaPlugin, pvName, retrievalStart, retrievalEnd));
+	}
+
+	/**
+	 * Most of the elements are the same from sample to sample; a few change by small amounts.
+	 * Every 700 samples, we drop an element; this should force a keyframe.
+	 */
+	static SampleValue generateWaveform(ArchDBRTypes type, int sample, int elementCount) {
+		int count = elementCount - (sample / 700) % 2;
+		switch(type) {
+		case DBR_WAVEFORM_DOUBLE: {
+			double[] vals = new double[count];
+			for(int j = 0; j < count; j++) vals[j] = Math.sin(j/10.0)*100 + (((j*7 + sample) % 20 == 0) ? sample*0.001 : 0);
+			return new PrimitiveVectorValue.OfDouble(vals);
+		}
+		case DBR_WAVEFORM_FLOAT: {
+			float[] vals = new float[count];
+			for(int j = 0; j < count; j++) vals[j] = (float) (Math.cos(j/10.0)*100 + (((j*7 + sample) % 20 == 0) ? sample*0.001 : 0));
+			return new PrimitiveVectorValue.OfFloat(vals);
+		}
+		case DBR_WAVEFORM_INT: {
+			int[] vals = new int[count];
+			for(int j = 0; j < count; j++) vals[j] = (j % 27) * 0x0A0D1B + (((j*7 + sample) % 20 == 0) ? sample % 27 : 0);
+			return new PrimitiveVectorValue.OfInt(vals);
+		}
+		case DBR_WAVEFORM_SHORT: {
+			short[] vals = new short[count];
+			for(int j = 0; j < count; j++) vals[j] = (short) ((j % 27) - 13 + (((j*7 + sample) % 20 == 0) ? (sample % 27) - 13 : 0));
+			return new PrimitiveVectorValue.OfShort(vals);
+		}
+		case DBR_WAVEFORM_ENUM: {
+			// Enum states are small and mostly stay the same.
+			short[] vals = new short[count];
+			for(int j = 0; j < count; j++) vals[j] = (short) ((j % 16) + (((j*7 + sample) % 20 == 0) ? sample % 3 : 0));
+			return new PrimitiveVectorValue.OfShort(vals);
+		}
+		default:
+			throw new UnsupportedOperationException(type.name());
+		}
+	}
+
+	private static List<byte[]> readLines(EventStream stream) throws Exception {
+		List<byte[]> lines = new ArrayList<byte[]>();
+		try {
+			for(Event e : stream) {
+				lines.add(e.getRawForm().toBytes());
+			}
+		} finally {
+			stream.close();
+		}
+		return lines;
+	}
+
+	private static List<byte[]> retrieve(PlainPBStoragePlugin plugin, String pvName, Timestamp start, Timestamp end) throws Exception {
+		try(BasicContext context = new BasicContext()) {
+			List<Callable<EventStream>> callables = plugin.getDataForPV(context, pvName, start, end);
+			return readLines(new CurrentThreadWorkerEventStream(pvName, callables));
+		}
+	}
+
+	private static void assertLinesEqual(List<byte[]> expected, List<byte[]> got) {
+		assertTrue("No events", !expected.isEmpty());
+		assertEquals(expected.size(), got.size());
+		for(int i = 0; i < expected.size(); i++) {
+			assertArrayEquals("Line " + i, expected.get(i), got.get(i));
+		}
+	}
+}
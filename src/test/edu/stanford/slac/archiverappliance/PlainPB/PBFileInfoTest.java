@@ -7,12 +7,14 @@
  *******************************************************************************/
 package edu.stanford.slac.archiverappliance.PlainPB;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
+import org.epics.archiverappliance.Event;
 import org.epics.archiverappliance.common.TimeUtils;
 import org.epics.archiverappliance.config.ArchDBRTypes;
 import org.epics.archiverappliance.config.ConfigService;
@@ -24,6 +26,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import edu.stanford.slac.archiverappliance.PB.data.PBCommonSetup;
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
 
 /**
  * Test the PBFileInfo.
@@ -63,4 +66,27 @@ public class PBFileInfoTest {
 		long lastSeconds = TimeUtils.getStartOfYearInSeconds(TimeUtils.getCurrentYear()+1)-1;
 		assertTrue("PVInfo last event time " + info.getLastEventEpochSeconds() + "!=" + lastSeconds, info.getLastEventEpochSeconds() == lastSeconds);
 	}
+
+	/**
+	 * The position of the last sample should be the start of the last line in the file.
+	 * FileBackedPBEventStream uses this to return only the last sample for queries that start after the last sample in the file.
+	 */
+	@Test
+	public void testPositionOfLastSample() throws Exception {
+		PBFileInfo info = new PBFileInfo(PBfile);
+		byte[] fileBytes = Files.readAllBytes(PBfile);
+		int lastNewLine = fileBytes.length - 2;
+		while(fileBytes[lastNewLine] != LineEscaper.NEWLINE_CHAR) lastNewLine--;
+		assertEquals(lastNewLine + 1, info.getPositionOfLastSample());
+
+		long afterLastSample = info.getLastEventEpochSeconds() + 10;
+		int eventCount = 0;
+		try(FileBackedPBEventStream strm = new FileBackedPBEventStream(pvName, PBfile, ArchDBRTypes.DBR_SCALAR_DOUBLE, TimeUtils.convertFromEpochSeconds(afterLastSample, 0), TimeUtils.convertFromEpochSeconds(afterLastSample + 3600, 0), false)) {
+			for(Event e : strm) {
+				assertEquals(info.getLastEventEpochSeconds(), e.getEpochSeconds());
+				eventCount++;
+			}
+		}
+		assertEquals("We should get only the last sample", 1, eventCount);
+	}
 }
@@ -0,0 +1,200 @@
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PBFileTransfer.TransferProgress;
+
+/**
+ * Transfer the PB files for a PV from one store to another as is and make sure we have the same data in the destination.
+ * @author mshankar
+ *
+ */
+public class PBFileTransferTest {
+	String srcRootFolder = ConfigServiceForTests.getDefaultPBTestFolder() + "/PBFileTransferTest/src";
+	String destRootFolder = ConfigServiceForTests.getDefaultPBTestFolder() + "/PBFileTransferTest/dest";
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + "PBFileTransferTest";
+	ArchDBRTypes type = ArchDBRTypes.DBR_SCALAR_DOUBLE;
+	ConfigServiceForTests configService;
+	PlainPBStoragePlugin srcPlugin;
+	PlainPBStoragePlugin destPlugin;
+
+	@Before
+	public void setUp() throws Exception {
+		File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + "/PBFileTransferTest");
+		if(testFolder.exists()) {
+			FileUtils.deleteDirectory(testFolder);
+		}
+		configService = new ConfigServiceForTests(new File("./bin"));
+		srcPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=LTS&rootFolder=" + srcRootFolder + "&partitionGranularity=PARTITION_DAY", configService);
+		destPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=LTS&rootFolder=" + destRootFolder + "&partitionGranularity=PARTITION_DAY", configService);
+		short currentYear = TimeUtils.getCurrentYear();
+		long startOfYear = TimeUtils.getStartOfCurrentYearInSeconds();
+		try(BasicContext context = new BasicContext()) {
+			ArrayListEventStream strm = new ArrayListEventStream(0, new RemotableEventStreamDesc(type, pvName, currentYear));
+			for(long s = startOfYear; s < startOfYear + 5*86400; s += 30) {
+				strm.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(s), type, new ScalarValue<Double>((double) s)));
+			}
+			srcPlugin.appendData(context, pvName, strm);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(new File(ConfigServiceForTests.getDefaultPBTestFolder() + "/PBFileTransferTest"));
+	}
+
+	@Test
+	public void testTransferFiles() throws Exception {
+		try(BasicContext context = new BasicContext()) {
+			List<Map<String, String>> files = PBFileTransfer.listFilesForPV(srcPlugin, context, pvName);
+			assertEquals(5, files.size());
+			long totalBytes = 0;
+			for(Map<String, String> fileDetails : files) {
+				totalBytes += Long.parseLong(fileDetails.get("size"));
+			}
+
+			Path stagingFolder = Files.createTempDirectory(context.getPaths().get(true, destRootFolder, "staging").getParent(), ".reshard_");
+			final AtomicLong bytesTransferred = new AtomicLong(0);
+			TransferProgress progress = new TransferProgress() {
+				@Override
+				public void bytesTransferred(long bytes) {
+					bytesTransferred.addAndGet(bytes);
+				}
+			};
+			int fileNum = 0;
+			for(Map<String, String> fileDetails : files) {
+				Path stagedPath = stagingFolder.resolve("file_" + (fileNum++));
+				try(InputStream is = Files.newInputStream(PBFileTransfer.getPathForFile(srcPlugin, context, pvName, fileDetails.get("file"), false))) {
+					PBFileTransfer.receiveFile(is, fileDetails, pvName, stagedPath, progress);
+				}
+				PBFileTransfer.installFile(destPlugin, context, pvName, fileDetails.get("file"), stagedPath);
+			}
+			assertEquals(totalBytes, bytesTransferred.get());
+
+			List<Map<String, String>> destFiles = PBFileTransfer.listFilesForPV(destPlugin, context, pvName);
+			assertEquals(files, destFiles);
+			assertEquals(countEvents(srcPlugin), countEvents(destPlugin));
+			assertEquals(5*86400/30, countEvents(destPlugin));
+		}
+	}
+
+	@Test
+	public void testVerificationFailures() throws Exception {
+		try(BasicContext context = new BasicContext()) {
+			List<Map<String, String>> files = PBFileTransfer.listFilesForPV(srcPlugin, context, pvName);
+			Path srcPath = PBFileTransfer.getPathForFile(srcPlugin, context, pvName, files.get(0).get("file"), false);
+			Path stagedPath = context.getPaths().get(true, destRootFolder, "staged_file");
+
+			HashMap<String, String> badChecksum = new HashMap<String, String>(files.get(0));
+			badChecksum.put("checksum", "0000");
+			checkReceiveFails(srcPath, badChecksum, pvName, stagedPath);
+
+			HashMap<String, String> badSize = new HashMap<String, String>(files.get(0));
+			badSize.put("size", "1");
+			checkReceiveFails(srcPath, badSize, pvName, stagedPath);
+
+			checkReceiveFails(srcPath, files.get(0), pvName + "_another", stagedPath);
+
+			try {
+				PBFileTransfer.getPathForFile(destPlugin, context, pvName, "/../../../etc/passwd.pb", false);
+				fail("We should not be able to escape the store");
+			} catch(IOException ex) {
+				// Expected
+			}
+		}
+	}
+
+	/**
+	 * Install the files, verify them in the destination and then roll back the install; the destination should be empty and the source intact.
+	 */
+	@Test
+	public void testVerifyAndUninstall() throws Exception {
+		long srcEvents = countEvents(srcPlugin);
+		try(BasicContext context = new BasicContext()) {
+			List<Map<String, String>> files = PBFileTransfer.listFilesForPV(srcPlugin, context, pvName);
+			int fileNum = 0;
+			for(Map<String, String> fileDetails : files) {
+				Path stagedPath = context.getPaths().get(true, destRootFolder, "staged_file_" + (fileNum++));
+				try(InputStream is = Files.newInputStream(PBFileTransfer.getPathForFile(srcPlugin, context, pvName, fileDetails.get("file"), false))) {
+					PBFileTransfer.receiveFile(is, fileDetails, pvName, stagedPath, null);
+				}
+				PBFileTransfer.installFile(destPlugin, context, pvName, fileDetails.get("file"), stagedPath);
+				PBFileTransfer.verifyInstalledFile(destPlugin, context, pvName, fileDetails);
+			}
+			assertEquals(srcEvents, countEvents(destPlugin));
+
+			HashMap<String, String> badChecksum = new HashMap<String, String>(files.get(0));
+			badChecksum.put("checksum", "0000");
+			try {
+				PBFileTransfer.verifyInstalledFile(destPlugin, context, pvName, badChecksum);
+				fail("Verification of the installed file should have failed for " + badChecksum);
+			} catch(IOException ex) {
+				// Expected
+			}
+
+			for(Map<String, String> fileDetails : files) {
+				PBFileTransfer.uninstallFile(destPlugin, context, pvName, fileDetails.get("file"));
+				assertFalse(Files.exists(PBFileTransfer.getPathForFile(destPlugin, context, pvName, fileDetails.get("file"), false)));
+			}
+			assertEquals(0, countEvents(destPlugin));
+			assertEquals(srcEvents, countEvents(srcPlugin));
+		}
+	}
+
+	private void checkReceiveFails(Path srcPath, Map<String, String> fileDetails, String expectedPVName, Path stagedPath) throws IOException {
+		try(InputStream is = Files.newInputStream(srcPath)) {
+			PBFileTransfer.receiveFile(is, fileDetails, expectedPVName, stagedPath, null);
+			fail("Verification should have failed for " + fileDetails);
+		} catch(IOException ex) {
+			// Expected
+		}
+		assertFalse("Staged file should be deleted when verification fails", Files.exists(stagedPath));
+		assertTrue(Files.exists(srcPath));
+	}
+
+	private long countEvents(PlainPBStoragePlugin plugin) throws Exception {
+		long eventCount = 0;
+		try(BasicContext context = new BasicContext()) {
+			long startOfYear = TimeUtils.getStartOfCurrentYearInSeconds();
+			List<Callable<EventStream>> callables = plugin.getDataForPV(context, pvName, TimeUtils.convertFromEpochSeconds(startOfYear, 0), TimeUtils.convertFromEpochSeconds(startOfYear + 10*86400, 0));
+			for(Callable<EventStream> callable : callables) {
+				try(EventStream strm = callable.call()) {
+					for(@SuppressWarnings("unused") Event e : strm) {
+						eventCount++;
+					}
+				}
+			}
+		}
+		return eventCount;
+	}
+}
@@ -0,0 +1,158 @@
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the predicates evaluated while scanning a PB file.
+ * We generate a day's worth of data with known values and severities and compare the scan with what we expect from the decoded events.
+ * The values are chosen so that some of the lines have escaped bytes in the fields we read.
+ * @author mshankar
+ *
+ */
+public class PBScanPredicateTest {
+	File testFolder = new File(ConfigServiceForTests.getDefaultPBTestFolder() + File.separator + "PBScanPredicateTest");
+	short year = 2012;
+	long startOfYear = TimeUtils.getStartOfYearInSeconds(year);
+	int numEvents = 86400;
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(testFolder);
+	}
+
+	@Test
+	public void testScalarDouble() throws Exception {
+		testScan(ArchDBRTypes.DBR_SCALAR_DOUBLE);
+	}
+
+	@Test
+	public void testScalarShort() throws Exception {
+		testScan(ArchDBRTypes.DBR_SCALAR_SHORT);
+	}
+
+	private void testScan(ArchDBRTypes type) throws Exception {
+		ConfigServiceForTests configService = new ConfigServiceForTests(new File("./bin"));
+		String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + ":PBScanPredicateTest" + type.name();
+		PlainPBStoragePlugin storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=PBScanPredicateTest&rootFolder=" + testFolder.getAbsolutePath() + "&partitionGranularity=PARTITION_YEAR", configService);
+		ArrayListEventStream strm = new ArrayListEventStream(numEvents, new RemotableEventStreamDesc(type, pvName, year));
+		for(int i = 0; i < numEvents; i++) {
+			// Values in -13..13 and nanos that include 10 and 13 cover the newline and carriage return escapes.
+			strm.add(new POJOEvent(type, TimeUtils.convertFromEpochSeconds(startOfYear + i, i % 20), new ScalarValue<Short>((short) ((i % 27) - 13)), i % 7, i % 4));
+		}
+		try(BasicContext context = new BasicContext()) {
+			storagePlugin.appendData(context, pvName, strm);
+		}
+
+		Path path;
+		try(BasicContext context = new BasicContext()) {
+			path = PlainPBPathNameUtility.getPathNameForTime(storagePlugin, pvName, startOfYear + 60, context.getPaths(), configService.getPVNameToKeyConverter());
+		}
+		assertTrue("Did we not write any data?", path != null);
+
+		// The fields we read while scanning match the decoded event.
+		final int[] scanned = new int[1];
+		try(FileBackedPBEventStream stream = new FileBackedPBEventStream(pvName, path, type)) {
+			stream.setScanPredicate(new PBScanPredicate() {
+				@Override
+				public boolean accept(PBScanEvent event) {
+					long epochSeconds = event.getEpochSeconds();
+					int nanos = event.getNanos();
+					int severity = event.getSeverity();
+					int status = event.getStatus();
+					double value = event.getValue();
+					DBRTimeEvent decoded = event.getEvent();
+					assertEquals(decoded.getEpochSeconds(), epochSeconds);
+					assertEquals(decoded.getEventTimeStamp().getNanos(), nanos);
+					assertEquals(decoded.getSeverity(), severity);
+					assertEquals(decoded.getStatus(), status);
+					assertEquals(decoded.getSampleValue().getValue().doubleValue(), value, 0.0);
+					scanned[0]++;
+					return false;
+				}
+			});
+			for(@SuppressWarnings("unused") Event e : stream) {
+				assertTrue("We should not get any events", false);
+			}
+		}
+		assertEquals(numEvents, scanned[0]);
+
+		Timestamp start = TimeUtils.convertFromEpochSeconds(startOfYear + 3600, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(startOfYear + 7200, 0);
+		checkScan(pvName, path, type, PBScanPredicate.timeWindow(start, end), new Expected() {
+			@Override
+			public boolean expected(int i) {
+				return i >= 3600 && i < 7200;
+			}
+		});
+		checkScan(pvName, path, type, PBScanPredicate.severityAtLeast(3), new Expected() {
+			@Override
+			public boolean expected(int i) {
+				return i % 4 >= 3;
+			}
+		});
+		checkScan(pvName, path, type, PBScanPredicate.everyNth(100), new Expected() {
+			@Override
+			public boolean expected(int i) {
+				return i % 100 == 0;
+			}
+		});
+		checkScan(pvName, path, type, PBScanPredicate.allOf(PBScanPredicate.valueAtLeast(-5), PBScanPredicate.valueAtMost(5)), new Expected() {
+			@Override
+			public boolean expected(int i) {
+				return Math.abs((i % 27) - 13) <= 5;
+			}
+		});
+
+		// Time based iteration restricts the scan to the time window.
+		List<Event> events = new ArrayList<Event>();
+		try(FileBackedPBEventStream stream = new FileBackedPBEventStream(pvName, path, type, start, end, true)) {
+			stream.setScanPredicate(PBScanPredicate.severityAtLeast(2));
+			for(Event e : stream) {
+				events.add(e.makeClone());
+			}
+		}
+		assertEquals(1800, events.size());
+		assertEquals(startOfYear + 3602, events.get(0).getEpochSeconds());
+	}
+
+	private interface Expected {
+		public boolean expected(int i);
+	}
+
+	private void checkScan(String pvName, Path path, ArchDBRTypes type, PBScanPredicate predicate, Expected expected) throws Exception {
+		List<Long> expectedSeconds = new ArrayList<Long>();
+		for(int i = 0; i < numEvents; i++) {
+			if(expected.expected(i)) expectedSeconds.add(startOfYear + i);
+		}
+		List<Long> gotSeconds = new ArrayList<Long>();
+		try(FileBackedPBEventStream stream = new FileBackedPBEventStream(pvName, path, type)) {
+			stream.setScanPredicate(predicate);
+			for(Event e : stream) {
+				gotSeconds.add(e.getEpochSeconds());
+			}
+		}
+		assertEquals(expectedSeconds, gotSeconds);
+	}
+}
@@ -0,0 +1,128 @@
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigService.WAR_FILE;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.etl.ETLContext;
+import org.epics.archiverappliance.etl.ETLInfo;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that the storage ledger in the PlainPB plugin stays in sync with the files on disk as we append and delete data.
+ * @author mshankar
+ *
+ */
+public class PVStorageLedgerTest {
+	String rootFolderName = ConfigServiceForTests.getDefaultPBTestFolder() + "/PVStorageLedgerTest";
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + "PVStorageLedgerTest";
+	ArchDBRTypes type = ArchDBRTypes.DBR_SCALAR_DOUBLE;
+	ConfigServiceForTests configService;
+	PlainPBStoragePlugin storagePlugin;
+
+	@Before
+	public void setUp() throws Exception {
+		if(new File(rootFolderName).exists()) {
+			FileUtils.deleteDirectory(new File(rootFolderName));
+		}
+		new File(rootFolderName).mkdirs();
+		configService = new ConfigServiceForTests(new File("./bin"));
+		configService.setWarFileForTestingPurposesOnly(WAR_FILE.ETL);
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=LTS&rootFolder=" + rootFolderName + "&partitionGranularity=PARTITION_DAY", configService);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(new File(rootFolderName));
+	}
+
+	@Test
+	public void testLedgerTracksAppendsAndDeletes() throws Exception {
+		PVStorageLedger ledger = PVStorageLedger.getLedger(storagePlugin, configService);
+		assertNotNull(ledger);
+		long startOfYear = TimeUtils.getStartOfCurrentYearInSeconds();
+		appendDays(startOfYear, 0, 3);
+		// The first call scans the PV; from then on, the ledger is updated as we write.
+		assertEquals(storagePlugin.scanSpaceConsumedByPV(pvName)[0], storagePlugin.spaceConsumedByPV(pvName));
+		assertArrayEquals(storagePlugin.scanSpaceConsumedByPV(pvName), ledger.getStorage(pvName));
+
+		appendDays(startOfYear, 3, 5);
+		long[] scanned = storagePlugin.scanSpaceConsumedByPV(pvName);
+		assertEquals(5, scanned[1]);
+		assertArrayEquals(scanned, ledger.getStorage(pvName));
+		assertEquals(scanned[0], storagePlugin.spaceConsumedByPV(pvName));
+
+		// Another plugin instance for the same store shares the ledger
+		PlainPBStoragePlugin anotherPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=LTS&rootFolder=" + rootFolderName + "&partitionGranularity=PARTITION_DAY", configService);
+		appendDays(anotherPlugin, startOfYear, 5, 6);
+		assertArrayEquals(storagePlugin.scanSpaceConsumedByPV(pvName), ledger.getStorage(pvName));
+
+		// ETL deletes invalidate the entry and we rescan.
+		try(ETLContext etlContext = new ETLContext()) {
+			List<ETLInfo> etlInfos = storagePlugin.getETLStreams(pvName, TimeUtils.convertFromEpochSeconds(startOfYear + 86400*4, 0), etlContext);
+			assertTrue(etlInfos.size() > 0);
+			for(ETLInfo etlInfo : etlInfos) {
+				storagePlugin.markForDeletion(etlInfo, etlContext);
+			}
+		}
+		assertNull(ledger.getStorage(pvName));
+		scanned = storagePlugin.scanSpaceConsumedByPV(pvName);
+		assertEquals(scanned[0], storagePlugin.spaceConsumedByPV(pvName));
+		assertArrayEquals(scanned, ledger.getStorage(pvName));
+
+		// Save the ledger and load it back
+		ledger.setStorage(pvName + "_other", 1234, 5);
+		ledger.save();
+		assertTrue(new File(rootFolderName + "/" + PVStorageLedger.LEDGER_FILE_NAME).exists());
+		PVStorageLedger loadedLedger = new PVStorageLedger(rootFolderName, 0);
+		loadedLedger.load();
+		assertEquals(2, loadedLedger.size());
+		assertArrayEquals(scanned, loadedLedger.getStorage(pvName));
+		assertArrayEquals(new long[] { 1234, 5 }, loadedLedger.getStorage(pvName + "_other"));
+
+		// Reconciliation fixes any drift.
+		ledger.fileWritten(pvName, 100, 10000);
+		ledger.reconcile();
+		assertArrayEquals(storagePlugin.scanSpaceConsumedByPV(pvName), ledger.getStorage(pvName));
+		assertArrayEquals(new long[] { 0, 0 }, ledger.getStorage(pvName + "_other"));
+	}
+
+	@Test
+	public void testNoLedgerOutsideETL() throws Exception {
+		configService.setWarFileForTestingPurposesOnly(WAR_FILE.ENGINE);
+		assertNull(PVStorageLedger.getLedger(storagePlugin, configService));
+	}
+
+	private void appendDays(long startOfYear, int fromDay, int toDay) throws Exception {
+		appendDays(storagePlugin, startOfYear, fromDay, toDay);
+	}
+
+	private void appendDays(PlainPBStoragePlugin plugin, long startOfYear, int fromDay, int toDay) throws Exception {
+		short currentYear = TimeUtils.getCurrentYear();
+		try(BasicContext context = new BasicContext()) {
+			ArrayListEventStream strm = new ArrayListEventStream(0, new RemotableEventStreamDesc(type, pvName, currentYear));
+			for(long s = startOfYear + fromDay*86400; s < startOfYear + toDay*86400; s += 60) {
+				strm.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(s), type, new ScalarValue<Double>((double) s)));
+			}
+			plugin.appendData(context, pvName, strm);
+		}
+	}
+}
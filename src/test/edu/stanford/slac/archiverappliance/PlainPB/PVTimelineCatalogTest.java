@@ -0,0 +1,155 @@
+package edu.stanford.slac.archiverappliance.PlainPB;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.etl.ETLContext;
+import org.epics.archiverappliance.etl.ETLInfo;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.nio.ArchPaths;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin.CompressionMode;
+
+/**
+ * Test that the timeline catalog in the PlainPB plugin stays in sync with the partitions on disk.
+ * We check changes made through the plugin and changes made to the files directly (as happens when another war writes into the store).
+ * @author mshankar
+ *
+ */
+public class PVTimelineCatalogTest {
+	String rootFolderName = ConfigServiceForTests.getDefaultPBTestFolder() + "/PVTimelineCatalogTest";
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + "PVTimelineCatalogTest";
+	ArchDBRTypes type = ArchDBRTypes.DBR_SCALAR_DOUBLE;
+	ConfigServiceForTests configService;
+	PlainPBStoragePlugin storagePlugin;
+	long startOfYear = TimeUtils.getStartOfCurrentYearInSeconds();
+
+	@Before
+	public void setUp() throws Exception {
+		if(new File(rootFolderName).exists()) {
+			FileUtils.deleteDirectory(new File(rootFolderName));
+		}
+		new File(rootFolderName).mkdirs();
+		configService = new ConfigServiceForTests(new File("./bin"));
+		storagePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=LTS&rootFolder=" + rootFolderName + "&partitionGranularity=PARTITION_DAY", configService);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(new File(rootFolderName));
+	}
+
+	@Test
+	public void testCatalogTracksPluginChanges() throws Exception {
+		PVTimelineCatalog catalog = storagePlugin.getTimelineCatalog();
+		assertNotNull(catalog);
+		assertEquals(0, catalog.getPathsWithData(new ArchPaths(), pvName, day(0), day(10)).length);
+		assertNull(catalog.getFirstKnownEvent(new ArchPaths(), pvName));
+
+		appendDays(storagePlugin, 0, 3);
+		checkAgainstFileSystem(pvName, 3);
+		Event firstEvent = catalog.getFirstKnownEvent(new ArchPaths(), pvName);
+		assertEquals(startOfYear, firstEvent.getEpochSeconds());
+
+		// Another plugin instance for the same store shares the catalog; new partitions are visible right away.
+		PlainPBStoragePlugin anotherPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=LTS&rootFolder=" + rootFolderName + "&partitionGranularity=PARTITION_DAY", configService);
+		assertSame(catalog, anotherPlugin.getTimelineCatalog());
+		appendDays(anotherPlugin, 3, 5);
+		checkAgainstFileSystem(pvName, 5);
+		assertNotNull(catalog.getPreviousPartitionBeforeTime(new ArchPaths(), pvName, day(4)));
+		assertNull(catalog.getPreviousPartitionBeforeTime(new ArchPaths(), pvName, day(0)));
+
+		// ETL deletes change the first event.
+		try(ETLContext etlContext = new ETLContext()) {
+			List<ETLInfo> etlInfos = storagePlugin.getETLStreams(pvName, day(2), etlContext);
+			assertTrue(etlInfos.size() > 0);
+			for(ETLInfo etlInfo : etlInfos) {
+				storagePlugin.markForDeletion(etlInfo, etlContext);
+			}
+		}
+		checkAgainstFileSystem(pvName, 3);
+		try(BasicContext context = new BasicContext()) {
+			assertEquals(startOfYear + 2*86400, storagePlugin.getFirstKnownEvent(context, pvName).getEpochSeconds());
+		}
+
+		// Renames create partitions for the new name.
+		String newName = pvName + "_renamed";
+		assertEquals(0, catalog.getPathsWithData(new ArchPaths(), newName, day(0), day(10)).length);
+		try(BasicContext context = new BasicContext()) {
+			storagePlugin.renamePV(context, pvName, newName);
+		}
+		checkAgainstFileSystem(newName, 3);
+	}
+
+	@Test
+	public void testCatalogDetectsExternalChanges() throws Exception {
+		PVTimelineCatalog catalog = storagePlugin.getTimelineCatalog();
+		appendDays(storagePlugin, 0, 3);
+		// Let the folder's timestamp age so that the catalog trusts its entry.
+		Thread.sleep(2500);
+		checkAgainstFileSystem(pvName, 3);
+		assertTrue(catalog.getPVCount() > 0);
+
+		// Delete the first partition directly; as another war would.
+		Path[] paths = PlainPBPathNameUtility.getAllPathsForPV(new ArchPaths(), rootFolderName, pvName, PlainPBStoragePlugin.PB_EXTENSION, storagePlugin.getPartitionGranularity(), CompressionMode.NONE, configService.getPVNameToKeyConverter());
+		Files.delete(paths[0]);
+		checkAgainstFileSystem(pvName, 2);
+		assertEquals(startOfYear + 86400, catalog.getFirstKnownEvent(new ArchPaths(), pvName).getEpochSeconds());
+	}
+
+	@Test
+	public void testNoCatalogIfDisabled() throws Exception {
+		configService.getInstallationProperties().setProperty("edu.stanford.slac.archiverappliance.PlainPB.PVTimelineCatalog.enabled", "false");
+		PlainPBStoragePlugin disabledPlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin("pb://localhost?name=LTS&rootFolder=" + rootFolderName + "/disabled&partitionGranularity=PARTITION_DAY", configService);
+		assertNull(disabledPlugin.getTimelineCatalog());
+		configService.getInstallationProperties().remove("edu.stanford.slac.archiverappliance.PlainPB.PVTimelineCatalog.enabled");
+	}
+
+	private void checkAgainstFileSystem(String name, int expectedPartitions) throws Exception {
+		PVTimelineCatalog catalog = storagePlugin.getTimelineCatalog();
+		for(int startDay = 0; startDay < 6; startDay++) {
+			Path[] fromFileSystem = PlainPBPathNameUtility.getPathsWithData(new ArchPaths(), rootFolderName, name, day(startDay), day(startDay + 1), PlainPBStoragePlugin.PB_EXTENSION, storagePlugin.getPartitionGranularity(), CompressionMode.NONE, configService.getPVNameToKeyConverter());
+			Path[] fromCatalog = catalog.getPathsWithData(new ArchPaths(), name, day(startDay), day(startDay + 1));
+			assertArrayEquals(fromFileSystem, fromCatalog);
+		}
+		assertEquals(expectedPartitions, catalog.getAllPaths(new ArchPaths(), name).length);
+	}
+
+	private Timestamp day(int day) {
+		return TimeUtils.convertFromEpochSeconds(startOfYear + day*86400 + 3600, 0);
+	}
+
+	private void appendDays(PlainPBStoragePlugin plugin, int fromDay, int toDay) throws Exception {
+		short currentYear = TimeUtils.getCurrentYear();
+		try(BasicContext context = new BasicContext()) {
+			ArrayListEventStream strm = new ArrayListEventStream(0, new RemotableEventStreamDesc(type, pvName, currentYear));
+			for(long s = startOfYear + fromDay*86400; s < startOfYear + toDay*86400; s += 60) {
+				strm.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(s), type, new ScalarValue<Double>((double) s)));
+			}
+			plugin.appendData(context, pvName, strm);
+		}
+	}
+}
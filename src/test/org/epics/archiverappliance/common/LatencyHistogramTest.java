@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test the percentiles computed by the LatencyHistogram
+ * @author mshankar
+ *
+ */
+public class LatencyHistogramTest {
+	@Test
+	public void testPercentiles() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram(4);
+		assertEquals(0, histogram.getMicrosAtPercentile(99.0));
+		for(long micros = 1; micros <= 100000; micros++) {
+			histogram.recordMicros(micros);
+		}
+		assertEquals(100000, histogram.getCount());
+		assertEquals(100000, histogram.getMaxMicros());
+		assertEquals(50000.5, histogram.getMeanMicros(), 0.001);
+		for(double percentile : new double[] { 10.0, 50.0, 90.0, 99.0, 99.9 }) {
+			long expected = (long) (percentile*1000);
+			long actual = histogram.getMicrosAtPercentile(percentile);
+			// With 16 sub buckets, we should be within 1/16 of the actual value.
+			assertTrue("Percentile " + percentile + " expected " + expected + " got " + actual, actual >= expected && actual <= expected*(1.0 + 1.0/16));
+		}
+		assertEquals(100000, histogram.getMicrosAtPercentile(100.0));
+	}
+
+	@Test
+	public void testSmallAndLargeValues() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram(2);
+		histogram.recordMicros(0);
+		histogram.recordMicros(3);
+		assertEquals(0, histogram.getMicrosAtPercentile(50.0));
+		assertEquals(3, histogram.getMicrosAtPercentile(100.0));
+		// Very large values end up in the last bucket
+		histogram.recordMicros(Long.MAX_VALUE/2);
+		assertEquals(Long.MAX_VALUE/2, histogram.getMaxMicros());
+		assertTrue(histogram.getMicrosAtPercentile(100.0) > 3);
+	}
+}
@@ -0,0 +1,55 @@
+package org.epics.archiverappliance.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import org.epics.archiverappliance.StoragePlugin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that the cached storage plugins are shared for the same URL and are dropped when the cache is cleared.
+ * @author mshankar
+ *
+ */
+public class CachedStoragePluginTest {
+	ConfigServiceForTests configService;
+	String ltsURL = "pb://localhost?name=LTS&rootFolder=" + ConfigServiceForTests.getDefaultPBTestFolder() + "/CachedStoragePluginTest&partitionGranularity=PARTITION_YEAR";
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		configService.shutdownNow();
+	}
+
+	@Test
+	public void testCachedPlugins() throws Exception {
+		StoragePlugin plugin = StoragePluginURLParser.getCachedStoragePlugin(ltsURL, configService);
+		assertEquals("LTS", plugin.getName());
+		assertSame(plugin, StoragePluginURLParser.getCachedStoragePlugin(ltsURL, configService));
+		// parseStoragePlugin always gives us a new plugin.
+		assertNotSame(plugin, StoragePluginURLParser.parseStoragePlugin(ltsURL, configService));
+
+		StoragePlugin enginePlugin = StoragePluginURLParser.getCachedStoragePlugin("pbraw://localhost?rawURL=http%3A%2F%2Flocalhost%3A17665%2Fengine%2Fbpl%2FgetData.raw&name=engine", configService);
+		assertEquals("engine", enginePlugin.getName());
+		assertNotSame(plugin, enginePlugin);
+
+		// Plugins are cached per config service.
+		ConfigServiceForTests anotherConfigService = new ConfigServiceForTests(new File("./bin"));
+		assertNotSame(plugin, StoragePluginURLParser.getCachedStoragePlugin(ltsURL, anotherConfigService));
+		anotherConfigService.shutdownNow();
+
+		StoragePluginURLParser.clearCachedStoragePlugins(configService);
+		StoragePlugin newPlugin = StoragePluginURLParser.getCachedStoragePlugin(ltsURL, configService);
+		assertNotSame(plugin, newPlugin);
+		assertSame(newPlugin, StoragePluginURLParser.getCachedStoragePlugin(ltsURL, configService));
+	}
+}
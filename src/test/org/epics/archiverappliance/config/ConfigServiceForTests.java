@@ -67,6 +67,7 @@ public class ConfigServiceForTests extends DefaultConfigService {
 		appliances = new HashMap<String, ApplianceInfo>();
 		pv2appliancemapping = new  ConcurrentHashMap<String, ApplianceInfo>();
 		namedFlags = new ConcurrentHashMap<String, Boolean>(); 
+		connectedPVCounts = new ConcurrentHashMap<String, ConnectedPVCounts>();
 		typeInfos = new ConcurrentHashMap<String, PVTypeInfo>();
 		archivePVRequests = new ConcurrentHashMap<String, UserSpecifiedSamplingParams>();
 		aliasNamesToRealNames = new ConcurrentHashMap<String, String>();
@@ -211,6 +212,14 @@ public class ConfigServiceForTests extends DefaultConfigService {
 		this.rootFolder = rootFolder;
 	}
 	
+	/**
+	 * Some functionality is enabled only in specific wars; use this to pretend we are running in a specific war.
+	 * @param warFile
+	 */
+	public void setWarFileForTestingPurposesOnly(WAR_FILE warFile) {
+		this.warFile = warFile;
+	}
+
 	/**
 	 * Get the root folder for the PB storage plugin
 	 * @return
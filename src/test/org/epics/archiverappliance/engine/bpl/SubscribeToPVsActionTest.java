@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.bpl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+
+import org.epics.archiverappliance.common.TimeUtils;
+import org.junit.Test;
+
+/**
+ * Test that subscriptions cannot replay the history from arbitrarily far back.
+ * @author mshankar
+ *
+ */
+public class SubscribeToPVsActionTest {
+	@Test
+	public void testReplayStartIsLimited() throws Exception {
+		long nowEpochSeconds = TimeUtils.getStartOfYearInSeconds(2012) + 100*86400L;
+		Timestamp now = TimeUtils.convertFromEpochSeconds(nowEpochSeconds, 0);
+		long maxReplaySeconds = 86400;
+
+		Timestamp recentStart = TimeUtils.convertFromEpochSeconds(nowEpochSeconds - 3600, 500);
+		assertEquals(recentStart, SubscribeToPVsAction.limitReplayStart(recentStart, now, maxReplaySeconds));
+
+		Timestamp earliestStart = TimeUtils.convertFromEpochSeconds(nowEpochSeconds - maxReplaySeconds, 0);
+		assertEquals(earliestStart, SubscribeToPVsAction.limitReplayStart(earliestStart, now, maxReplaySeconds));
+
+		Timestamp oldStart = TimeUtils.convertFromEpochSeconds(nowEpochSeconds - 30*86400L, 0);
+		assertEquals(earliestStart, SubscribeToPVsAction.limitReplayStart(oldStart, now, maxReplaySeconds));
+	}
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.membuf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.VectorValue;
+import org.epics.archiverappliance.engine.pv.JCAVectorEvent;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PB.data.PBTypeSystem;
+import gov.aps.jca.dbr.DBR;
+import gov.aps.jca.dbr.DBR_TIME_Byte;
+import gov.aps.jca.dbr.DBR_TIME_Double;
+import gov.aps.jca.dbr.DBR_TIME_Enum;
+import gov.aps.jca.dbr.DBR_TIME_Float;
+import gov.aps.jca.dbr.DBR_TIME_Int;
+import gov.aps.jca.dbr.DBR_TIME_Short;
+import gov.aps.jca.dbr.TimeStamp;
+
+/**
+ * The samples coalesced in a VectorSampleBlock should encode to the same bytes as the PB events created one at a time.
+ * @author mshankar
+ *
+ */
+public class VectorSampleBlockTest {
+	private static final ArchDBRTypes[] TYPES = new ArchDBRTypes[] { 
+		ArchDBRTypes.DBR_WAVEFORM_DOUBLE, 
+		ArchDBRTypes.DBR_WAVEFORM_FLOAT, 
+		ArchDBRTypes.DBR_WAVEFORM_INT, 
+		ArchDBRTypes.DBR_WAVEFORM_SHORT, 
+		ArchDBRTypes.DBR_WAVEFORM_ENUM, 
+		ArchDBRTypes.DBR_WAVEFORM_BYTE };
+	private PBTypeSystem typeSystem = new PBTypeSystem();
+
+	@Test
+	public void testEncodingMatchesPBEvents() throws Exception {
+		long startOfYear = TimeUtils.getStartOfYearInSeconds(2014);
+		for(ArchDBRTypes type : TYPES) {
+			VectorSampleBlock block = new VectorSampleBlock(type, 10);
+			ArrayList<DBRTimeEvent> expected = new ArrayList<DBRTimeEvent>();
+			for(int i = 0; i < 10; i++) {
+				// Vary the number of elements, including an empty waveform, and use negative values to exercise the zigzag encoding.
+				int elementCount = (i == 3) ? 0 : 5 + i;
+				DBRTimeEvent event;
+				if(i % 2 == 0) {
+					DBR dbr = makeDBR(type, elementCount, startOfYear + i*60, i*1000, i % 3, i % 4);
+					event = new JCAVectorEvent(type, dbr, typeSystem.getJCADBRConstructor(type));
+					if(i == 4) {
+						// Adding field values encodes the event; the block should then copy from the encoded event.
+						HashMap<String, String> fields = new HashMap<String, String>();
+						fields.put("EGU", "mm");
+						fields.put("HOPR", "10\n");
+						event.setFieldValues(fields, true);
+						expected.add(event);
+					} else {
+						expected.add(typeSystem.getJCADBRConstructor(type).newInstance(dbr));
+					}
+				} else {
+					ArrayList<Number> values = new ArrayList<Number>();
+					for(int j = 0; j < elementCount; j++) values.add(makeValue(type, j - elementCount/2));
+					event = new POJOEvent(type, TimeUtils.convertFromEpochSeconds(startOfYear + i*60, i*1000), new VectorValue<Number>(values), i % 4, i % 3);
+					expected.add(typeSystem.getSerializingConstructor(type).newInstance(event));
+				}
+				assertTrue(block.add(event));
+			}
+			assertTrue(block.isFull());
+			ArrayListEventStream encoded = new ArrayListEventStream(10, new RemotableEventStreamDesc(type, "VectorSampleBlockTest", (short) 2014));
+			block.encodeInto(encoded);
+			assertEquals(expected.size(), encoded.size());
+			for(int i = 0; i < expected.size(); i++) {
+				assertArrayEquals("Sample " + i + " of type " + type, expected.get(i).getRawForm().toBytes(), encoded.get(i).getRawForm().toBytes());
+				assertEquals(expected.get(i).getEpochSeconds(), encoded.get(i).getEpochSeconds());
+			}
+		}
+	}
+
+	@Test
+	public void testOverrunDropsOldest() throws Exception {
+		ArchDBRTypes type = ArchDBRTypes.DBR_WAVEFORM_DOUBLE;
+		long startOfYear = TimeUtils.getStartOfYearInSeconds(2014);
+		VectorSampleBlock block = new VectorSampleBlock(type, 4);
+		for(int i = 0; i < 6; i++) {
+			// The waveform grows as we go along; the block should keep the older samples intact when it makes room for the larger waveforms.
+			boolean added = block.add(new JCAVectorEvent(type, makeDBR(type, 2 + i, startOfYear + i, 0, 0, 0), typeSystem.getJCADBRConstructor(type)));
+			if(i < 4) assertTrue(added); else assertFalse(added);
+		}
+		assertEquals(4, block.size());
+		ArrayListEventStream encoded = new ArrayListEventStream(4, new RemotableEventStreamDesc(type, "VectorSampleBlockTest", (short) 2014));
+		block.encodeInto(encoded);
+		for(int i = 0; i < 4; i++) {
+			DBRTimeEvent event = (DBRTimeEvent) encoded.get(i);
+			assertEquals(startOfYear + 2 + i, event.getEpochSeconds());
+			assertEquals(4 + i, event.getSampleValue().getElementCount());
+		}
+		block.clear();
+		assertEquals(0, block.size());
+	}
+
+	private static Number makeValue(ArchDBRTypes type, int value) {
+		switch(type) {
+		case DBR_WAVEFORM_DOUBLE:
+			return value*1.5;
+		case DBR_WAVEFORM_FLOAT:
+			return value*1.5f;
+		case DBR_WAVEFORM_INT:
+			return value*100000;
+		case DBR_WAVEFORM_SHORT:
+		case DBR_WAVEFORM_ENUM:
+			return (short) value;
+		default:
+			return (byte) value;
+		}
+	}
+
+	private static DBR makeDBR(ArchDBRTypes type, int elementCount, long epochSeconds, int nanos, int severity, int status) {
+		DBR dbr;
+		switch(type) {
+		case DBR_WAVEFORM_DOUBLE: {
+			double[] values = new double[elementCount];
+			for(int i = 0; i < elementCount; i++) values[i] = makeValue(type, i - elementCount/2).doubleValue();
+			DBR_TIME_Double timeDBR = new DBR_TIME_Double(values);
+			timeDBR.setTimeStamp(new TimeStamp(epochSeconds - TimeUtils.EPICS_EPOCH_2_JAVA_EPOCH_OFFSET, nanos));
+			timeDBR.setSeverity(severity);
+			timeDBR.setStatus(status);
+			dbr = timeDBR;
+			break;
+		}
+		case DBR_WAVEFORM_FLOAT: {
+			float[] values = new float[elementCount];
+			for(int i = 0; i < elementCount; i++) values[i] = makeValue(type, i - elementCount/2).floatValue();
+			DBR_TIME_Float timeDBR = new DBR_TIME_Float(values);
+			timeDBR.setTimeStamp(new TimeStamp(epochSeconds - TimeUtils.EPICS_EPOCH_2_JAVA_EPOCH_OFFSET, nanos));
+			timeDBR.setSeverity(severity);
+			timeDBR.setStatus(status);
+			dbr = timeDBR;
+			break;
+		}
+		case DBR_WAVEFORM_INT: {
+			int[] values = new int[elementCount];
+			for(int i = 0; i < elementCount; i++) values[i] = makeValue(type, i - elementCount/2).intValue();
+			DBR_TIME_Int timeDBR = new DBR_TIME_Int(values);
+			timeDBR.setTimeStamp(new TimeStamp(epochSeconds - TimeUtils.EPICS_EPOCH_2_JAVA_EPOCH_OFFSET, nanos));
+			timeDBR.setSeverity(severity);
+			timeDBR.setStatus(status);
+			dbr = timeDBR;
+			break;
+		}
+		case DBR_WAVEFORM_SHORT: {
+			short[] values = new short[elementCount];
+			for(int i = 0; i < elementCount; i++) values[i] = makeValue(type, i - elementCount/2).shortValue();
+			DBR_TIME_Short timeDBR = new DBR_TIME_Short(values);
+			timeDBR.setTimeStamp(new TimeStamp(epochSeconds - TimeUtils.EPICS_EPOCH_2_JAVA_EPOCH_OFFSET, nanos));
+			timeDBR.setSeverity(severity);
+			timeDBR.setStatus(status);
+			dbr = timeDBR;
+			break;
+		}
+		case DBR_WAVEFORM_ENUM: {
+			short[] values = new short[elementCount];
+			for(int i = 0; i < elementCount; i++) values[i] = makeValue(type, i - elementCount/2).shortValue();
+			DBR_TIME_Enum timeDBR = new DBR_TIME_Enum(values);
+			timeDBR.setTimeStamp(new TimeStamp(epochSeconds - TimeUtils.EPICS_EPOCH_2_JAVA_EPOCH_OFFSET, nanos));
+			timeDBR.setSeverity(severity);
+			timeDBR.setStatus(status);
+			dbr = timeDBR;
+			break;
+		}
+		default: {
+			byte[] values = new byte[elementCount];
+			for(int i = 0; i < elementCount; i++) values[i] = makeValue(type, i - elementCount/2).byteValue();
+			DBR_TIME_Byte timeDBR = new DBR_TIME_Byte(values);
+			timeDBR.setTimeStamp(new TimeStamp(epochSeconds - TimeUtils.EPICS_EPOCH_2_JAVA_EPOCH_OFFSET, nanos));
+			timeDBR.setSeverity(severity);
+			timeDBR.setStatus(status);
+			dbr = timeDBR;
+		}
+		}
+		return dbr;
+	}
+}
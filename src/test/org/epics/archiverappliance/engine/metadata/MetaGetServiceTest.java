@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.metadata;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.MetaInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the completion, the connect timeout and the eviction of MetaGet's in the MetaGetService.
+ * We drive the service ourselves and use MetaGet's that do not create any channels.
+ * @author mshankar
+ *
+ */
+public class MetaGetServiceTest {
+	private ConfigServiceForTests configService;
+	private List<TestMetaGet> metaGets = new LinkedList<TestMetaGet>();
+
+	/**
+	 * A MetaGet that does not create any channels; connectOnStart simulates a PV that connects right away.
+	 */
+	private static class TestMetaGet extends MetaGet {
+		final boolean connectOnStart;
+		int timesStarted = 0;
+		final CountDownLatch completed = new CountDownLatch(1);
+
+		TestMetaGet(String pvName, ConfigService configService, boolean connectOnStart) {
+			super(pvName, configService, null, false, null);
+			this.connectOnStart = connectOnStart;
+		}
+
+		@Override
+		void createChannels() throws Exception {
+			timesStarted++;
+			if(connectOnStart) {
+				markConnected(System.currentTimeMillis());
+			}
+		}
+
+		@Override
+		public void run() {
+			completed.countDown();
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+		configService.getInstallationProperties().setProperty(MetaGetService.PROPERTY_PREFIX + "maxInProgress", "2");
+		configService.getInstallationProperties().setProperty(MetaGetService.PROPERTY_PREFIX + "connectTimeoutSeconds", "30");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for(TestMetaGet metaGet : metaGets) {
+			MetaGet.abortMetaGet(metaGet.getPvName());
+		}
+		configService.shutdownNow();
+	}
+
+	@Test
+	public void testCompletion() throws Exception {
+		MetaGetService service = new MetaGetService(configService, false);
+		TestMetaGet metaGet = newMetaGet("Test_MetaGetService:completion", true);
+		service.submit(metaGet);
+		service.startQueued();
+		assertEquals(1, service.getInProgressCount());
+		long now = System.currentTimeMillis();
+		service.checkInProgress(now);
+		assertEquals("We should still be measuring the event rate", 1, service.getInProgressCount());
+		// We have not seen any events; so we measure for the full window.
+		service.checkInProgress(now + 61*1000);
+		assertTrue("The MetaGet should have been completed", metaGet.completed.await(10, TimeUnit.SECONDS));
+		assertEquals(0, service.getInProgressCount());
+	}
+
+	@Test
+	public void testConnectTimeoutAndEviction() throws Exception {
+		MetaGetService service = new MetaGetService(configService, false);
+		TestMetaGet neverConnects1 = newMetaGet("Test_MetaGetService:neverConnects1", false);
+		TestMetaGet neverConnects2 = newMetaGet("Test_MetaGetService:neverConnects2", false);
+		TestMetaGet connects = newMetaGet("Test_MetaGetService:connects", true);
+		service.submit(neverConnects1);
+		service.submit(neverConnects2);
+		service.submit(connects);
+		service.startQueued();
+		assertEquals(2, service.getInProgressCount());
+		assertEquals(1, service.getQueueLength());
+
+		long now = System.currentTimeMillis();
+		// A PV that never connects is never ready to complete...
+		service.checkInProgress(now + 29*1000);
+		service.startQueued();
+		assertEquals(0, connects.timesStarted);
+
+		// ...so we stop it after the connect timeout and put it back at the end of the queue.
+		service.checkInProgress(now + 31*1000);
+		assertEquals(0, service.getInProgressCount());
+		assertEquals(3, service.getQueueLength());
+		assertEquals(2, service.getTimedOutCount());
+		service.startQueued();
+		assertEquals("The PV queued behind the ones that never connect should get its turn", 1, connects.timesStarted);
+		assertEquals(2, service.getInProgressCount());
+
+		service.checkInProgress(System.currentTimeMillis() + 61*1000);
+		assertTrue(connects.completed.await(10, TimeUnit.SECONDS));
+		// One of the PVs that never connect was started again along with the PV that connects.
+		assertEquals(3, neverConnects1.timesStarted + neverConnects2.timesStarted);
+
+		// Aborted MetaGet's are dropped rather than queued again.
+		MetaGet.abortMetaGet(neverConnects1.getPvName());
+		MetaGet.abortMetaGet(neverConnects2.getPvName());
+		service.checkInProgress(System.currentTimeMillis() + 120*1000);
+		service.startQueued();
+		assertEquals(0, service.getInProgressCount());
+		assertEquals(0, service.getQueueLength());
+		assertEquals(1, neverConnects1.completed.getCount());
+		assertEquals(1, neverConnects2.completed.getCount());
+	}
+
+	@Test
+	public void testMetaInfoCopy() throws Exception {
+		MetaInfo live = new MetaInfo();
+		live.setEventCount(100);
+		live.addOtherMetaInfo("ADEL", 1.0);
+		MetaInfo copy = new MetaInfo(live);
+		copy.setRateMeasurementWindowSeconds(10);
+		copy.addOtherMetaInfo("RTYP", "ai");
+		copy.setAliasName("Test_MetaGetService:alias");
+		assertEquals(10.0, copy.getEventRate(), 0.001);
+		assertEquals(100/60.0, live.getEventRate(), 0.001);
+		assertFalse(live.getOtherMetaInfo().containsKey("RTYP"));
+		assertEquals("", live.getAliasName());
+		assertEquals("1.0", copy.getOtherMetaInfo().get("ADEL"));
+	}
+
+	private TestMetaGet newMetaGet(String pvName, boolean connectOnStart) {
+		TestMetaGet metaGet = new TestMetaGet(pvName, configService, connectOnStart);
+		metaGets.add(metaGet);
+		return metaGet;
+	}
+}
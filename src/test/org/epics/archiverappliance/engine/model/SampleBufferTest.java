@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.data.VectorValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.engine.pv.PVMetrics;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.junit.Test;
+
+/**
+ * Test that the sample buffer shares the description of its samples across flushes and creates a new one when the year changes.
+ * Also test the sample buffer when coalescing the samples of waveforms.
+ * @author mshankar
+ *
+ */
+public class SampleBufferTest {
+	String pvName = "SampleBufferTest";
+	ArchDBRTypes type = ArchDBRTypes.DBR_SCALAR_DOUBLE;
+
+	@Test
+	public void testDescriptionIsShared() throws Exception {
+		PVMetrics pvMetrics = new PVMetrics(pvName, null, TimeUtils.getCurrentEpochSeconds(), type);
+		final SampleBuffer buffer = new SampleBuffer(pvName, 100, type, pvMetrics);
+		buffer.addYearListener(new YearListener() {
+			@Override
+			public void yearChanged(SampleBuffer sampleBuffer) {
+				buffer.resetSamples();
+			}
+		});
+		long startOf2012 = TimeUtils.getStartOfYearInSeconds(2012);
+		for(int i = 0; i < 10; i++) {
+			buffer.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(startOf2012 + i), type, new ScalarValue<Double>((double) i)));
+		}
+		buffer.resetSamples();
+		assertEquals(10, buffer.getPreviousSamples().size());
+		assertEquals(2012, buffer.getPreviousSamples().getYear());
+		assertSame(buffer.getPreviousSamples().getDescription(), buffer.getCurrentSamples().getDescription());
+
+		// More samples than the initial size of the buffer grow the buffer up to its capacity.
+		for(int i = 0; i < 150; i++) {
+			buffer.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(startOf2012 + 100 + i), type, new ScalarValue<Double>((double) i)));
+		}
+		assertEquals(100, buffer.getQueueSize());
+
+		// A change in years starts a new buffer with a new description
+		buffer.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(TimeUtils.getStartOfYearInSeconds(2013) + 1), type, new ScalarValue<Double>(1.0)));
+		assertEquals(2012, buffer.getPreviousSamples().getYear());
+		assertEquals(2013, buffer.getCurrentSamples().getYear());
+		assertNotSame(buffer.getPreviousSamples().getDescription(), buffer.getCurrentSamples().getDescription());
+		assertEquals(1, buffer.getCurrentSamples().size());
+	}
+
+	@Test
+	public void testCoalescedSamples() throws Exception {
+		ArchDBRTypes waveformType = ArchDBRTypes.DBR_WAVEFORM_DOUBLE;
+		PVMetrics pvMetrics = new PVMetrics(pvName, null, TimeUtils.getCurrentEpochSeconds(), waveformType);
+		SampleBuffer buffer = new SampleBuffer(pvName, 5, waveformType, pvMetrics);
+		assertTrue(buffer.enableVectorCoalescing());
+		long startOf2012 = TimeUtils.getStartOfYearInSeconds(2012);
+		for(int i = 0; i < 7; i++) {
+			buffer.add(new POJOEvent(waveformType, TimeUtils.convertFromEpochSeconds(startOf2012 + i, 0), new VectorValue<Double>(Arrays.asList(1.0*i, 2.0*i, 3.0*i)), 0, 0));
+		}
+		assertEquals(5, buffer.getQueueSize());
+		assertEquals(5, buffer.getCombinedSamples().size());
+		buffer.resetSamples();
+		assertEquals(0, buffer.getQueueSize());
+		ArrayListEventStream previousSamples = buffer.getPreviousSamples();
+		assertEquals(5, previousSamples.size());
+		for(int i = 0; i < 5; i++) {
+			DBRTimeEvent event = (DBRTimeEvent) previousSamples.get(i);
+			assertEquals(startOf2012 + 2 + i, event.getEpochSeconds());
+			assertEquals(3.0*(2 + i), event.getSampleValue().getValue(2).doubleValue(), 0.0);
+		}
+
+		SampleBuffer scalarBuffer = new SampleBuffer(pvName, 5, type, pvMetrics);
+		assertFalse(scalarBuffer.enableVectorCoalescing());
+	}
+
+	/**
+	 * The coalesced samples are encoded outside the lock when the buffer is flushed.
+	 * Readers of the buffer should see the samples being flushed while they are being encoded; so the latest sample we added should always be visible.
+	 */
+	@Test
+	public void testReadDuringFlush() throws Exception {
+		final ArchDBRTypes waveformType = ArchDBRTypes.DBR_WAVEFORM_DOUBLE;
+		PVMetrics pvMetrics = new PVMetrics(pvName, null, TimeUtils.getCurrentEpochSeconds(), waveformType);
+		final SampleBuffer buffer = new SampleBuffer(pvName, 10, waveformType, pvMetrics);
+		assertTrue(buffer.enableVectorCoalescing());
+		final long startOf2012 = TimeUtils.getStartOfYearInSeconds(2012);
+		final Double[] elements = new Double[1000];
+		Arrays.fill(elements, 1.0);
+		final VectorValue<Double> value = new VectorValue<Double>(Arrays.asList(elements));
+		final AtomicLong latestAdded = new AtomicLong(-1);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final AtomicInteger readsDuringTest = new AtomicInteger(0);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(!done.get() && failure.get() == null) {
+					long expected = latestAdded.get();
+					long latestSeen = -1;
+					for(Event e : buffer.getCombinedSamples()) {
+						latestSeen = Math.max(latestSeen, e.getEpochSeconds());
+					}
+					if(latestSeen < expected) {
+						failure.set("Expecting to see the sample at " + expected + " but the latest sample is at " + latestSeen);
+					}
+					readsDuringTest.incrementAndGet();
+				}
+			}
+		}, "SampleBufferTestReader");
+		reader.start();
+		try {
+			long epochSeconds = startOf2012;
+			for(int flush = 0; flush < 2000 && failure.get() == null; flush++) {
+				for(int i = 0; i < 10; i++) {
+					epochSeconds++;
+					buffer.add(new POJOEvent(waveformType, TimeUtils.convertFromEpochSeconds(epochSeconds, 0), value, 0, 0));
+					latestAdded.set(epochSeconds);
+				}
+				buffer.resetSamples();
+				assertEquals(epochSeconds, buffer.getPreviousSamples().get(9).getEpochSeconds());
+			}
+		} finally {
+			done.set(true);
+			reader.join();
+		}
+		assertNull(failure.get(), failure.get());
+		assertTrue(readsDuringTest.get() > 0);
+	}
+}
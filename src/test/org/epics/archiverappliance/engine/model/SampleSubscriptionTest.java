@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.model.SampleSubscription.Decimation;
+import org.epics.archiverappliance.engine.model.SampleSubscription.LiveSample;
+import org.epics.archiverappliance.engine.pv.PVMetrics;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.junit.Test;
+
+/**
+ * Test that the subscriptions registered with a sample buffer get the new samples with the bounded queue and decimation working as expected.
+ * @author mshankar
+ *
+ */
+public class SampleSubscriptionTest {
+	String pvName = "SampleSubscriptionTest";
+	ArchDBRTypes type = ArchDBRTypes.DBR_SCALAR_DOUBLE;
+	long startOf2012 = TimeUtils.getStartOfYearInSeconds(2012);
+
+	@Test
+	public void testSubscription() throws Exception {
+		SampleBuffer buffer = newBuffer();
+		SampleSubscription subscription = new SampleSubscription(100, 0);
+		SampleSubscription anotherSubscription = new SampleSubscription(100, 0);
+		buffer.addSubscription(subscription);
+		buffer.addSubscription(anotherSubscription);
+		addSamples(buffer, 0, 10);
+		for(int i = 0; i < 10; i++) {
+			LiveSample sample = subscription.poll();
+			assertEquals(pvName, sample.getPvName());
+			assertEquals(startOf2012 + i, sample.getEvent().getEpochSeconds());
+		}
+		assertNull(subscription.poll());
+		assertEquals(10, anotherSubscription.getQueueSize());
+
+		// Once removed, we no longer get samples.
+		buffer.removeSubscription(subscription);
+		addSamples(buffer, 10, 20);
+		assertNull(subscription.poll());
+		assertEquals(20, anotherSubscription.getQueueSize());
+		buffer.removeSubscription(anotherSubscription);
+		addSamples(buffer, 20, 30);
+		assertEquals(20, anotherSubscription.getQueueSize());
+	}
+
+	@Test
+	public void testSlowClient() throws Exception {
+		SampleBuffer buffer = newBuffer();
+		SampleSubscription subscription = new SampleSubscription(10, 0);
+		buffer.addSubscription(subscription);
+		addSamples(buffer, 0, 25);
+		assertEquals(10, subscription.getQueueSize());
+		assertEquals(15, subscription.getAndResetDroppedSamples());
+		assertEquals(0, subscription.getAndResetDroppedSamples());
+		// We keep the newest samples.
+		assertEquals(startOf2012 + 15, subscription.poll().getEvent().getEpochSeconds());
+	}
+
+	@Test
+	public void testDecimation() throws Exception {
+		SampleBuffer buffer = newBuffer();
+		SampleSubscription subscription = new SampleSubscription(100, 5000);
+		buffer.addSubscription(subscription);
+		addSamples(buffer, 0, 20);
+		assertEquals(4, subscription.getQueueSize());
+		assertEquals(16, subscription.getDecimatedSamples());
+		for(int i = 0; i < 4; i++) {
+			assertEquals(startOf2012 + i*5, subscription.poll().getEvent().getEpochSeconds());
+		}
+	}
+
+	/**
+	 * Replay the history while the live samples are arriving; the live samples are newer than the history and should not cause the history to be decimated away.
+	 */
+	@Test
+	public void testReplayWhileLiveSamplesArrive() throws Exception {
+		final SampleBuffer buffer = newBuffer();
+		SampleSubscription subscription = new SampleSubscription(1000, 5000);
+		buffer.addSubscription(subscription);
+		addSamples(buffer, 100, 110);
+		Thread liveSamples = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				addSamples(buffer, 110, 200);
+			}
+		});
+		liveSamples.start();
+
+		Decimation replayDecimation = subscription.newReplayDecimation();
+		List<Long> replayed = new LinkedList<Long>();
+		for(int i = 0; i < 60; i++) {
+			if(replayDecimation.accept(pvName, (startOf2012 + i)*1000)) {
+				replayed.add(startOf2012 + i);
+			}
+		}
+		liveSamples.join(10*1000);
+
+		assertEquals("We should replay one sample every 5 seconds " + replayed, 12, replayed.size());
+		for(int i = 0; i < 12; i++) {
+			assertEquals(startOf2012 + i*5, replayed.get(i).longValue());
+		}
+		assertEquals(20, subscription.getQueueSize());
+		for(int i = 0; i < 20; i++) {
+			assertEquals(startOf2012 + 100 + i*5, subscription.poll().getEvent().getEpochSeconds());
+		}
+		assertEquals(80 + 48, subscription.getDecimatedSamples());
+	}
+
+	private SampleBuffer newBuffer() {
+		PVMetrics pvMetrics = new PVMetrics(pvName, null, TimeUtils.getCurrentEpochSeconds(), type);
+		return new SampleBuffer(pvName, 100, type, pvMetrics);
+	}
+
+	private void addSamples(SampleBuffer buffer, int from, int to) {
+		for(int i = from; i < to; i++) {
+			buffer.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(startOf2012 + i), type, new ScalarValue<Double>((double) i)));
+		}
+	}
+}
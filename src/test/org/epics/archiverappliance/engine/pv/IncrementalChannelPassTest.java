@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.pv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.ConnectedPVCounts;
+import org.epics.archiverappliance.engine.model.ArchiveChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that the maintenance tasks in the engine process the channels in slices and that a pass covers all the channels exactly once.
+ * @author mshankar
+ *
+ */
+public class IncrementalChannelPassTest {
+	private ConfigServiceForTests configService;
+
+	/**
+	 * A pass over a list of PV names that we control; records the PVs processed and the start/completion of the passes.
+	 */
+	private static class RecordingPass extends EngineContext.IncrementalChannelPass {
+		List<String> pvNames = new ArrayList<String>();
+		List<String> processed = new LinkedList<String>();
+		int passesStarted = 0;
+		int passesCompleted = 0;
+		int channelCountAtStart = -1;
+
+		RecordingPass(EngineContext engineContext, int slices) {
+			engineContext.super("the test pass", slices);
+		}
+
+		@Override
+		Collection<String> getPVNamesForPass() {
+			return pvNames;
+		}
+
+		@Override
+		void processPV(String pvName) {
+			processed.add(pvName);
+		}
+
+		@Override
+		protected void startPass(int channelCount) {
+			passesStarted++;
+			channelCountAtStart = channelCount;
+		}
+
+		@Override
+		protected void processChannel(ArchiveChannel channel) {
+		}
+
+		@Override
+		protected void completePass() {
+			passesCompleted++;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		configService.shutdownNow();
+	}
+
+	@Test
+	public void testSlicing() throws Exception {
+		RecordingPass pass = new RecordingPass(configService.getEngineContext(), 4);
+		for(int i = 0; i < 10; i++) {
+			pass.pvNames.add("Test_IncrementalChannelPass:" + i);
+		}
+		assertEquals(-1, pass.getLastPassElapsedMillis());
+
+		// 10 PVs in 4 slices; we process 3, 3, 3 and then the remaining 1.
+		int[] expectedProcessed = new int[] { 3, 6, 9, 10 };
+		for(int slice = 0; slice < 4; slice++) {
+			pass.run();
+			assertEquals(1, pass.passesStarted);
+			assertEquals(expectedProcessed[slice], pass.processed.size());
+			assertEquals(slice == 3 ? 1 : 0, pass.passesCompleted);
+		}
+		assertEquals(10, pass.channelCountAtStart);
+		assertEquals(pass.pvNames, pass.processed);
+		assertTrue(pass.getLastPassElapsedMillis() >= 0);
+		assertTrue(pass.getLastPassBusyMillis() >= 0);
+		assertTrue(pass.getLastPassCompletedEpochSeconds() > 0);
+	}
+
+	@Test
+	public void testChannelsAddedDuringAPass() throws Exception {
+		RecordingPass pass = new RecordingPass(configService.getEngineContext(), 2);
+		for(int i = 0; i < 4; i++) {
+			pass.pvNames.add("Test_IncrementalChannelPass:" + i);
+		}
+		pass.run();
+		assertEquals(2, pass.processed.size());
+
+		// Channels added in the middle of a pass are processed in the next pass.
+		pass.pvNames.add("Test_IncrementalChannelPass:4");
+		pass.run();
+		assertEquals(4, pass.processed.size());
+		assertEquals(1, pass.passesCompleted);
+		assertFalse(pass.processed.contains("Test_IncrementalChannelPass:4"));
+
+		pass.run();
+		assertEquals(2, pass.passesStarted);
+		assertEquals(5, pass.channelCountAtStart);
+		pass.run();
+		assertEquals(2, pass.passesCompleted);
+		assertEquals(9, pass.processed.size());
+		assertTrue(pass.processed.contains("Test_IncrementalChannelPass:4"));
+	}
+
+	@Test
+	public void testMoreSlicesThanChannels() throws Exception {
+		RecordingPass pass = new RecordingPass(configService.getEngineContext(), 96);
+		pass.pvNames.add("Test_IncrementalChannelPass:0");
+		pass.pvNames.add("Test_IncrementalChannelPass:1");
+		pass.run();
+		pass.run();
+		assertEquals(1, pass.passesCompleted);
+		assertEquals(pass.pvNames, pass.processed);
+
+		// An empty pass completes right away.
+		pass.pvNames.clear();
+		pass.run();
+		assertEquals(2, pass.passesCompleted);
+		assertEquals(0, pass.channelCountAtStart);
+	}
+
+	@Test
+	public void testConnectedPVCountsArePublished() throws Exception {
+		configService.updateConnectedPVCountsForThisAppliance(new ConnectedPVCounts(10, 2));
+		ConnectedPVCounts counts = configService.getConnectedPVCountsForAppliance(configService.getMyApplianceInfo().getIdentity());
+		assertEquals(10, counts.getTotal());
+		assertEquals(2, counts.getDisconnected());
+	}
+}
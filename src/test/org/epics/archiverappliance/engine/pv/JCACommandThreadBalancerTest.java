@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.pv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.epics.archiverappliance.engine.pv.JCACommandThreadBalancer.ChannelLoad;
+import org.epics.archiverappliance.engine.pv.JCACommandThreadBalancer.Move;
+import org.junit.Test;
+
+/**
+ * Test the planning of the moves when rebalancing the JCA command threads.
+ * @author mshankar
+ *
+ */
+public class JCACommandThreadBalancerTest {
+	@Test
+	public void testPlanMovesFromOverloadedThread() throws Exception {
+		int commandThreadCount = 4;
+		LinkedList<ChannelLoad> channelLoads = new LinkedList<ChannelLoad>();
+		// Thread 0 has 5 times the event rate of the others.
+		for(int i = 0; i < 50; i++) {
+			channelLoads.add(new ChannelLoad("Thread0PV" + i, 0, 10.0));
+		}
+		for(int thread = 1; thread < commandThreadCount; thread++) {
+			for(int i = 0; i < 10; i++) {
+				channelLoads.add(new ChannelLoad("Thread" + thread + "PV" + i, thread, 10.0));
+			}
+		}
+		List<Move> moves = JCACommandThreadBalancer.planMoves(commandThreadCount, channelLoads, 0.1, 1000);
+		assertTrue("Expecting some moves", moves.size() > 0);
+		double[] rates = new double[commandThreadCount];
+		for(ChannelLoad channelLoad : channelLoads) {
+			rates[channelLoad.commandThreadId] += channelLoad.eventRate;
+		}
+		for(Move move : moves) {
+			assertEquals("We should only move PVs off the overloaded thread", 0, move.fromCommandThreadId);
+			rates[move.fromCommandThreadId] -= move.eventRate;
+			rates[move.toCommandThreadId] += move.eventRate;
+		}
+		double average = (50 + 3*10)*10.0/commandThreadCount;
+		for(int thread = 0; thread < commandThreadCount; thread++) {
+			assertTrue("Thread " + thread + " has an event rate of " + rates[thread], rates[thread] <= average*1.1);
+		}
+	}
+
+	@Test
+	public void testPlanMovesLimits() throws Exception {
+		LinkedList<ChannelLoad> channelLoads = new LinkedList<ChannelLoad>();
+		for(int i = 0; i < 100; i++) {
+			channelLoads.add(new ChannelLoad("PV" + i, 0, 1.0));
+		}
+		assertEquals(5, JCACommandThreadBalancer.planMoves(2, channelLoads, 0.0, 5).size());
+		// A single busy PV cannot be split across threads; we should not move it back and forth.
+		LinkedList<ChannelLoad> oneBusyPV = new LinkedList<ChannelLoad>();
+		oneBusyPV.add(new ChannelLoad("BusyPV", 0, 1000.0));
+		oneBusyPV.add(new ChannelLoad("QuietPV", 1, 1.0));
+		assertEquals(0, JCACommandThreadBalancer.planMoves(2, oneBusyPV, 0.2, 100).size());
+		// Balanced threads need no moves
+		LinkedList<ChannelLoad> balanced = new LinkedList<ChannelLoad>();
+		balanced.add(new ChannelLoad("PV0", 0, 10.0));
+		balanced.add(new ChannelLoad("PV1", 1, 11.0));
+		assertEquals(0, JCACommandThreadBalancer.planMoves(2, balanced, 0.2, 100).size());
+	}
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.engine.writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigService;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.engine.model.SampleBuffer;
+import org.epics.archiverappliance.engine.pv.PVMetrics;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Flush a channel while the writer is busy writing out the sample buffers.
+ * The flush should wait for the writer and every sample should be written out exactly once.
+ * @author mshankar
+ *
+ */
+public class WriterRunnableTest {
+	private static final String BUSY_PV = "Test_WriterRunnable:busy";
+	private static final String FLUSHED_PV = "Test_WriterRunnable:flushed";
+	private ArchDBRTypes type = ArchDBRTypes.DBR_SCALAR_DOUBLE;
+	private ConfigServiceForTests configService;
+
+	/**
+	 * Records the samples written out instead of writing them to a store; blocks the write of the busy PV until we release it.
+	 */
+	private static class BlockingWriter extends WriterRunnable {
+		final CountDownLatch writerBusy = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final HashMap<String, List<Long>> appended = new HashMap<String, List<Long>>();
+
+		BlockingWriter(ConfigService configService) {
+			super(configService);
+		}
+
+		@Override
+		void appendSamples(String channelName, ArrayListEventStream samples) {
+			if(channelName.equals(BUSY_PV)) {
+				writerBusy.countDown();
+				try {
+					release.await(60, TimeUnit.SECONDS);
+				} catch(InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized(appended) {
+				if(!appended.containsKey(channelName)) {
+					appended.put(channelName, new LinkedList<Long>());
+				}
+				for(Event e : samples) {
+					appended.get(channelName).add(e.getEpochSeconds());
+				}
+			}
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		configService = new ConfigServiceForTests(new File("./bin"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		configService.shutdownNow();
+	}
+
+	@Test
+	public void testFlushWhileWriterIsBusy() throws Exception {
+		final BlockingWriter writer = new BlockingWriter(configService);
+		SampleBuffer busyBuffer = newSampleBuffer(writer, BUSY_PV);
+		SampleBuffer flushedBuffer = newSampleBuffer(writer, FLUSHED_PV);
+		long startOfYear = TimeUtils.getStartOfCurrentYearInSeconds();
+		for(int i = 0; i < 10; i++) {
+			busyBuffer.add(newEvent(startOfYear + i));
+			flushedBuffer.add(newEvent(startOfYear + i));
+		}
+
+		Thread writerThread = new Thread(writer);
+		writerThread.start();
+		assertTrue("The writer should be busy writing out the busy PV", writer.writerBusy.await(10, TimeUnit.SECONDS));
+
+		// Samples that arrive while the writer is busy...
+		for(int i = 10; i < 15; i++) {
+			flushedBuffer.add(newEvent(startOfYear + i));
+		}
+		// ...should be written out by the flush once the writer is done.
+		Thread flushThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writer.flushChannel(FLUSHED_PV);
+				} catch(Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		});
+		flushThread.start();
+		flushThread.join(500);
+		assertTrue("The flush should wait for the writer", flushThread.isAlive());
+
+		writer.release.countDown();
+		writerThread.join(10*1000);
+		flushThread.join(10*1000);
+		assertFalse(writerThread.isAlive());
+		assertFalse(flushThread.isAlive());
+
+		assertEquals(10, writer.appended.get(BUSY_PV).size());
+		List<Long> flushedSamples = writer.appended.get(FLUSHED_PV);
+		assertEquals("Every sample should be written out exactly once " + flushedSamples, 15, flushedSamples.size());
+		assertEquals(15, new HashSet<Long>(flushedSamples).size());
+		assertEquals(0, flushedBuffer.getQueueSize());
+	}
+
+	private SampleBuffer newSampleBuffer(WriterRunnable writer, String pvName) {
+		SampleBuffer buffer = new SampleBuffer(pvName, 100, type, new PVMetrics(pvName, null, TimeUtils.getCurrentEpochSeconds(), type));
+		writer.addSampleBuffer(pvName, buffer);
+		return buffer;
+	}
+
+	private SimulationEvent newEvent(long epochSeconds) {
+		return new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(epochSeconds), type, new ScalarValue<Double>((double) epochSeconds));
+	}
+}
@@ -0,0 +1,99 @@
+package org.epics.archiverappliance.retrieval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.epics.archiverappliance.utils.ui.StreamPBIntoOutput;
+import org.junit.Test;
+
+import edu.stanford.slac.archiverappliance.PB.utils.LineEscaper;
+
+/**
+ * Test the parsing of the engine's getDataForPVs.raw response into a stream per PV.
+ * The response has a chunk for each PV; PVs with no data in the engine's buffers have a chunk with just the header.
+ * @author mshankar
+ *
+ */
+public class EngineTailBatchTest {
+
+	@Test
+	public void testParseEngineData() throws Exception {
+		long now = TimeUtils.getCurrentEpochSeconds();
+		Timestamp start = TimeUtils.convertFromEpochSeconds(now - 3600, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(now + 3600, 0);
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		StreamPBIntoOutput.streamPBIntoOutputStream(makeStream("Test_EngineTailBatch1", now, 100), os, start, end);
+		os.write(LineEscaper.NEWLINE_CHAR);
+		StreamPBIntoOutput.writeHeaderOnly(os, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, "Test_EngineTailBatch2", TimeUtils.getCurrentYear()));
+		os.write(LineEscaper.NEWLINE_CHAR);
+		StreamPBIntoOutput.streamPBIntoOutputStream(makeStream("Test_EngineTailBatch3", now, 50), os, start, end);
+
+		HashMap<String, ArrayListEventStream> engineData = new HashMap<String, ArrayListEventStream>();
+		EngineTailBatch.parseEngineData(new BufferedInputStream(new ByteArrayInputStream(os.toByteArray())), start, engineData);
+		assertEquals(3, engineData.size());
+		assertEquals(100, engineData.get("Test_EngineTailBatch1").size());
+		assertEquals(0, engineData.get("Test_EngineTailBatch2").size());
+		assertEquals(50, engineData.get("Test_EngineTailBatch3").size());
+		assertEquals("Test_EngineTailBatch3", engineData.get("Test_EngineTailBatch3").getDescription().getPvName());
+		assertEquals(now, engineData.get("Test_EngineTailBatch3").get(49).getEpochSeconds());
+	}
+
+	/**
+	 * The engine's buffers for a PV span the change of year; the engine sends a chunk for each year and we should combine them.
+	 */
+	@Test
+	public void testParseEngineDataAcrossYears() throws Exception {
+		long startOfYear = TimeUtils.getStartOfCurrentYearInSeconds();
+		Timestamp start = TimeUtils.convertFromEpochSeconds(startOfYear - 3600, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(startOfYear + 3600, 0);
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		ArrayListEventStream acrossYears = new ArrayListEventStream(100, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, "Test_EngineTailBatch1", (short) (TimeUtils.getCurrentYear() - 1)));
+		for(long s = startOfYear - 50; s < startOfYear + 50; s++) {
+			acrossYears.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(s), ArchDBRTypes.DBR_SCALAR_DOUBLE, new ScalarValue<Double>((double) s)));
+		}
+		StreamPBIntoOutput.streamPBIntoOutputStream(acrossYears, os, start, end);
+		os.write(LineEscaper.NEWLINE_CHAR);
+		StreamPBIntoOutput.streamPBIntoOutputStream(makeStream("Test_EngineTailBatch2", startOfYear + 10, 10), os, start, end);
+
+		HashMap<String, ArrayListEventStream> engineData = new HashMap<String, ArrayListEventStream>();
+		EngineTailBatch.parseEngineData(new BufferedInputStream(new ByteArrayInputStream(os.toByteArray())), start, engineData);
+		assertEquals(2, engineData.size());
+		ArrayListEventStream pvData = engineData.get("Test_EngineTailBatch1");
+		assertEquals("We should have the samples from both years", 100, pvData.size());
+		for(int i = 0; i < 100; i++) {
+			assertEquals(startOfYear - 50 + i, pvData.get(i).getEpochSeconds());
+		}
+		assertEquals(10, engineData.get("Test_EngineTailBatch2").size());
+	}
+
+	@Test
+	public void testFallbackWhenEngineIsNotAvailable() throws Exception {
+		Timestamp end = TimeUtils.now();
+		Timestamp start = TimeUtils.minusHours(end, 1);
+		EngineTailBatch batch = new EngineTailBatch("http://localhost:1/engine/bpl", Arrays.asList("Test_EngineTailBatch1", "Test_EngineTailBatch2"), start, end);
+		assertNull(batch.getEngineStoragePlugin("Test_EngineTailBatch3"));
+		assertNull(batch.getEngineStoragePlugin("Test_EngineTailBatch1"));
+	}
+
+	private static ArrayListEventStream makeStream(String pvName, long now, int count) {
+		ArrayListEventStream st = new ArrayListEventStream(count, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, TimeUtils.getCurrentYear()));
+		for(int i = count - 1; i >= 0; i--) {
+			st.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(now - i), ArchDBRTypes.DBR_SCALAR_DOUBLE, new ScalarValue<Double>((double) i)));
+		}
+		return st;
+	}
+}
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * The subscription proxy copies only what the engine has sent so far; test that it only copies complete events.
+ * @author mshankar
+ *
+ */
+public class LiveSubscriptionProxyTest {
+	@Test
+	public void testOnlyCompleteEventsAreCopied() throws Exception {
+		try(PipedOutputStream fromEngine = new PipedOutputStream(); PipedInputStream is = new PipedInputStream(fromEngine, 64*1024)) {
+			LiveSubscriptionProxy.EngineStream engineStream = new LiveSubscriptionProxy.EngineStream(is);
+			ByteArrayOutputStream toClient = new ByteArrayOutputStream();
+			assertEquals(0, engineStream.copyAvailableEvents(toClient));
+
+			String firstEvent = "event: live\ndata: { \"pvs\": [\"test:pv\"] }\n\n";
+			String secondEvent = "event: sample\ndata: { \"pv\": \"test:pv\", \"secs\": 1 }\n\n";
+			fromEngine.write((firstEvent + secondEvent.substring(0, 20)).getBytes(StandardCharsets.UTF_8));
+			assertEquals(firstEvent.length(), engineStream.copyAvailableEvents(toClient));
+			assertEquals(firstEvent, new String(toClient.toByteArray(), StandardCharsets.UTF_8));
+
+			fromEngine.write(secondEvent.substring(20, secondEvent.length() - 1).getBytes(StandardCharsets.UTF_8));
+			assertEquals(0, engineStream.copyAvailableEvents(toClient));
+			assertEquals(firstEvent, new String(toClient.toByteArray(), StandardCharsets.UTF_8));
+
+			// A heartbeat is a comment followed by a blank line; a large event makes us grow the buffer.
+			StringBuilder largeEvent = new StringBuilder("event: sample\ndata: ");
+			for(int i = 0; i < 10000; i++) largeEvent.append(i).append(',');
+			largeEvent.append("\n\n");
+			String rest = "\n: heartbeat\n\n" + largeEvent;
+			fromEngine.write(rest.getBytes(StandardCharsets.UTF_8));
+			assertEquals(secondEvent.length() + rest.length() - 1, engineStream.copyAvailableEvents(toClient));
+			assertEquals(firstEvent + secondEvent + ": heartbeat\n\n" + largeEvent, new String(toClient.toByteArray(), StandardCharsets.UTF_8));
+		}
+	}
+}
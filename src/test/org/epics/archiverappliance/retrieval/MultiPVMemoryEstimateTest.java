@@ -0,0 +1,42 @@
+package org.epics.archiverappliance.retrieval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.PVTypeInfo;
+import org.junit.Test;
+
+/**
+ * Test the memory estimate used to limit the PVs we fetch ahead of time in a multi PV request when the post processor has no estimate.
+ * @author mshankar
+ *
+ */
+public class MultiPVMemoryEstimateTest {
+
+	@Test
+	public void testEstimateFromTypeInfo() throws Exception {
+		Timestamp end = TimeUtils.now();
+		Timestamp start = TimeUtils.minusDays(end, 1);
+
+		PVTypeInfo scalarInfo = new PVTypeInfo("Test_MultiPVMemoryEstimate:scalar", ArchDBRTypes.DBR_SCALAR_DOUBLE, true, 1);
+		scalarInfo.setSamplingPeriod(1.0f);
+		long scalarEstimate = DataRetrievalServlet.estimateMemoryConsumptionFromTypeInfo(scalarInfo, start, end);
+		assertEquals("A day of 1Hz scalars", 86400L*40*2, scalarEstimate);
+
+		PVTypeInfo waveformInfo = new PVTypeInfo("Test_MultiPVMemoryEstimate:waveform", ArchDBRTypes.DBR_WAVEFORM_DOUBLE, false, 1000);
+		waveformInfo.setSamplingPeriod(1.0f);
+		long waveformEstimate = DataRetrievalServlet.estimateMemoryConsumptionFromTypeInfo(waveformInfo, start, end);
+		assertTrue("Waveforms should be estimated higher than scalars " + waveformEstimate, waveformEstimate > 100*scalarEstimate);
+
+		PVTypeInfo slowInfo = new PVTypeInfo("Test_MultiPVMemoryEstimate:slow", ArchDBRTypes.DBR_SCALAR_DOUBLE, true, 1);
+		slowInfo.setSamplingPeriod(60.0f);
+		long slowEstimate = DataRetrievalServlet.estimateMemoryConsumptionFromTypeInfo(slowInfo, start, end);
+		assertEquals("A day of scalars sampled every minute", 1440L*40*2, slowEstimate);
+
+		assertTrue("Missing type info should still yield an estimate", DataRetrievalServlet.estimateMemoryConsumptionFromTypeInfo(null, start, end) > 0);
+	}
+}
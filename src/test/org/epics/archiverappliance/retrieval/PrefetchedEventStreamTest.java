@@ -0,0 +1,84 @@
+package org.epics.archiverappliance.retrieval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.postprocessors.ArrayListCollectorEventStream;
+import org.epics.archiverappliance.retrieval.workers.PrefetchedEventStream;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.junit.Test;
+
+/**
+ * Test the PrefetchedEventStream used when fetching multiple PVs concurrently.
+ * We prefetch a stream that spans a couple of years and make sure we replay the same events and the same changes in years.
+ * @author mshankar
+ *
+ */
+public class PrefetchedEventStreamTest {
+	private String pvName = "Test_PrefetchedEventStream1";
+
+	@Test
+	public void testPrefetchAcrossYears() throws Exception {
+		short currentYear = TimeUtils.getCurrentYear();
+		short previousYear = (short) (currentYear - 1);
+		ArrayListEventStream sourceData = new ArrayListEventStream(0, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, previousYear));
+		long startOfPreviousYear = TimeUtils.getStartOfYearInSeconds(previousYear);
+		long startOfCurrentYear = TimeUtils.getStartOfYearInSeconds(currentYear);
+		int eventsPerYear = 1000;
+		for(int i = 0; i < eventsPerYear; i++) {
+			sourceData.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(startOfPreviousYear + 3600 + i*60), ArchDBRTypes.DBR_SCALAR_DOUBLE, new ScalarValue<Double>((double) i)));
+		}
+		for(int i = 0; i < eventsPerYear; i++) {
+			sourceData.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(startOfCurrentYear + 3600 + i*60), ArchDBRTypes.DBR_SCALAR_DOUBLE, new ScalarValue<Double>((double) (eventsPerYear + i))));
+		}
+
+		ArrayListCollectorEventStream sourceStream = new ArrayListCollectorEventStream(sourceData);
+		assertTrue(PrefetchedEventStream.canPrefetch(sourceStream));
+		PrefetchedEventStream prefetchedStream = PrefetchedEventStream.prefetch(sourceStream, true);
+		sourceStream.close();
+		assertEquals(2*eventsPerYear, prefetchedStream.getEventCount());
+
+		List<Event> events = new ArrayList<Event>();
+		List<Short> changesInYears = new ArrayList<Short>();
+		Iterator<Event> it = prefetchedStream.iterator();
+		while(true) {
+			try {
+				if(!it.hasNext()) break;
+				Event e = it.next();
+				assertEquals("Year in the description does not match the event", TimeUtils.computeYearForEpochSeconds(e.getEpochSeconds()), prefetchedStream.getDescription().getYear());
+				events.add(e);
+			} catch(ChangeInYearsException ex) {
+				changesInYears.add(ex.getCurrentYear());
+			}
+		}
+		prefetchedStream.close();
+
+		assertEquals(2*eventsPerYear, events.size());
+		for(int i = 0; i < events.size(); i++) {
+			assertEquals((double) i, events.get(i).getSampleValue().getValue().doubleValue(), 0.0);
+		}
+		// The description starts off in the previous year; so we should only see the change into the current year.
+		assertEquals(1, changesInYears.size());
+		assertEquals(currentYear, changesInYears.get(0).shortValue());
+	}
+
+	@Test
+	public void testPrefetchDescriptionOnly() throws Exception {
+		short currentYear = TimeUtils.getCurrentYear();
+		ArrayListEventStream sourceData = new ArrayListEventStream(0, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		sourceData.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(TimeUtils.getStartOfCurrentYearInSeconds() + 3600), ArchDBRTypes.DBR_SCALAR_DOUBLE, new ScalarValue<Double>(1.0)));
+		PrefetchedEventStream prefetchedStream = PrefetchedEventStream.prefetch(new ArrayListCollectorEventStream(sourceData), false);
+		assertEquals(0, prefetchedStream.getEventCount());
+		assertEquals(pvName, prefetchedStream.getDescription().getPvName());
+		assertTrue(!prefetchedStream.iterator().hasNext());
+	}
+}
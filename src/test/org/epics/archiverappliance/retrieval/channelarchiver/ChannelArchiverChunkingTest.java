@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright (c) 2011 The Board of Trustees of the Leland Stanford Junior University
+ * as Operator of the SLAC National Accelerator Laboratory.
+ * Copyright (c) 2011 Brookhaven National Laboratory.
+ * EPICS archiver appliance is distributed subject to a Software License Agreement found
+ * in file LICENSE that is included with this distribution.
+ *******************************************************************************/
+package org.epics.archiverappliance.retrieval.channelarchiver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.TimeSpan;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.ChangeInYearsException;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the chunking, paging and caching used when fetching large time spans from a Channel Archiver.
+ * @author mshankar
+ *
+ */
+public class ChannelArchiverChunkingTest {
+	String cacheFolderName = ConfigServiceForTests.getDefaultPBTestFolder() + "/ChannelArchiverChunkingTest";
+	String pvName = ConfigServiceForTests.ARCH_UNIT_TEST_PVNAME_PREFIX + "ChannelArchiverChunkingTest";
+	String serverURL = "http://localhost/cgi-bin/ArchiveDataServer.cgi";
+	ArchDBRTypes type = ArchDBRTypes.DBR_SCALAR_DOUBLE;
+	ConfigServiceForTests configService;
+
+	@Before
+	public void setUp() throws Exception {
+		if(new File(cacheFolderName).exists()) {
+			FileUtils.deleteDirectory(new File(cacheFolderName));
+		}
+		configService = new ConfigServiceForTests(new File("./bin"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(new File(cacheFolderName));
+	}
+
+	@Test
+	public void testSplitIntoChunks() throws Exception {
+		long chunkSeconds = 30*86400L;
+		long startOf2012 = TimeUtils.getStartOfYearInSeconds(2012);
+		Timestamp start = TimeUtils.convertFromEpochSeconds(startOf2012 - 100*86400L + 3600, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(startOf2012 + 45*86400L, 0);
+		List<TimeSpan> chunks = ChannelArchiverChunkedRequest.splitIntoChunks(start, end, 30);
+		long previousChunkEnd = -1;
+		for(TimeSpan chunk : chunks) {
+			long chunkStart = TimeUtils.convertToEpochSeconds(chunk.getStartTime());
+			long chunkEnd = TimeUtils.convertToEpochSeconds(chunk.getEndTime());
+			assertTrue(chunkStart < chunkEnd);
+			assertTrue("Chunk starting at " + chunkStart + " is not aligned", chunkStart % chunkSeconds == 0 || chunkStart == startOf2012);
+			assertTrue("Chunk ending at " + chunkEnd + " is not aligned", chunkEnd % chunkSeconds == 0 || chunkEnd == startOf2012);
+			assertEquals("Chunk spans years", TimeUtils.computeYearForEpochSeconds(chunkStart), TimeUtils.computeYearForEpochSeconds(chunkEnd - 1));
+			if(previousChunkEnd != -1) assertEquals(previousChunkEnd, chunkStart);
+			previousChunkEnd = chunkEnd;
+		}
+		assertTrue(TimeUtils.convertToEpochSeconds(chunks.get(0).getStartTime()) <= TimeUtils.convertToEpochSeconds(start));
+		assertTrue(previousChunkEnd >= TimeUtils.convertToEpochSeconds(end));
+
+		// Overlapping requests should get the same chunks so that we can cache them.
+		List<TimeSpan> otherChunks = ChannelArchiverChunkedRequest.splitIntoChunks(TimeUtils.convertFromEpochSeconds(startOf2012 + 86400, 0), end, 30);
+		assertEquals(chunks.get(chunks.size()-1).getStartTime(), otherChunks.get(otherChunks.size()-1).getStartTime());
+		assertEquals(chunks.get(chunks.size()-1).getEndTime(), otherChunks.get(otherChunks.size()-1).getEndTime());
+
+		assertEquals(1, ChannelArchiverChunkedRequest.splitIntoChunks(start, end, 0).size());
+	}
+
+	@Test
+	public void testPaging() throws Exception {
+		final long startOf2012 = TimeUtils.getStartOfYearInSeconds(2012);
+		final int valuesPerPage = 100;
+		final int totalEvents = 1050;
+		final int[] pagesRequested = new int[1];
+		// The first page has events from the end of 2011; each page is full except the last one.
+		// The pages line up so that the change in years happens at the start of a page.
+		final long firstEventEpochSeconds = startOf2012 - 500;
+		ChannelArchiverPagedEventStream.PageFetcher fetcher = new ChannelArchiverPagedEventStream.PageFetcher() {
+			@Override
+			public EventStream fetchPage(Timestamp start, Timestamp end) throws IOException {
+				pagesRequested[0]++;
+				return makePage(TimeUtils.convertToEpochSeconds(start) + (start.getNanos() > 0 ? 1 : 0), firstEventEpochSeconds + totalEvents, valuesPerPage);
+			}
+		};
+		int eventCount = 0;
+		int changesInYears = 0;
+		long previousEpochSeconds = -1;
+		try(ChannelArchiverPagedEventStream strm = new ChannelArchiverPagedEventStream(pvName, makePage(firstEventEpochSeconds, firstEventEpochSeconds + totalEvents, valuesPerPage), valuesPerPage, TimeUtils.convertFromEpochSeconds(firstEventEpochSeconds + totalEvents, 0), fetcher)) {
+			while(true) {
+				try {
+					if(!strm.hasNext()) break;
+				} catch(ChangeInYearsException ex) {
+					changesInYears++;
+					assertEquals(2012, strm.getDescription().getYear());
+					continue;
+				}
+				Event e = strm.next();
+				assertTrue("Events are not in order or are duplicated", e.getEpochSeconds() > previousEpochSeconds);
+				previousEpochSeconds = e.getEpochSeconds();
+				eventCount++;
+			}
+			assertEquals(totalEvents, eventCount);
+			assertEquals(1, changesInYears);
+			assertEquals(pagesRequested[0] + 1, strm.getPagesFetched());
+			assertTrue(pagesRequested[0] >= totalEvents/valuesPerPage);
+		}
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		long startOf2012 = TimeUtils.getStartOfYearInSeconds(2012);
+		long chunkStart = startOf2012 + 30*86400L;
+		long chunkEnd = chunkStart + 30*86400L;
+		ChannelArchiverCache cache = ChannelArchiverCache.getCache(cacheFolderName, serverURL, 1, configService);
+		assertFalse(cache.isCached(pvName, chunkStart, chunkEnd));
+
+		// The data from the server can extend beyond the chunk; we only cache what is within the chunk.
+		ArrayListEventStream fromServer = new ArrayListEventStream(0, new RemotableEventStreamDesc(type, pvName, (short)2012));
+		for(long s = chunkStart - 3600; s < chunkEnd + 3600; s += 60) {
+			fromServer.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(s), type, new ScalarValue<Double>((double) s)));
+		}
+		int eventsAdded = cache.addToCache(pvName, fromServer, chunkStart, chunkEnd);
+		assertEquals((chunkEnd - chunkStart)/60, eventsAdded);
+		assertTrue(cache.isCached(pvName, chunkStart, chunkEnd));
+		assertEquals(0, cache.addToCache(pvName, fromServer, chunkStart, chunkEnd));
+
+		// Chunks with no data are also remembered.
+		long earlierChunkStart = chunkStart - 30*86400L;
+		cache.addToCache(pvName, new ArrayListEventStream(0, new RemotableEventStreamDesc(type, pvName, (short)2012)), earlierChunkStart, chunkStart);
+		assertTrue(cache.isCached(pvName, earlierChunkStart, chunkStart));
+		try(BasicContext context = new BasicContext(); EventStream strm = cache.getDataForPV(context, pvName, earlierChunkStart, chunkStart, TimeUtils.convertFromEpochSeconds(earlierChunkStart, 0), TimeUtils.convertFromEpochSeconds(chunkStart, 0))) {
+			assertNull(strm.getDescription());
+			assertFalse(strm.iterator().hasNext());
+		}
+
+		// A new instance picks up the list of cached chunks from disk
+		ChannelArchiverCache reopenedCache = new ChannelArchiverCache(cache.getRootFolder(), configService);
+		assertTrue(reopenedCache.isCached(pvName, chunkStart, chunkEnd));
+		assertTrue(reopenedCache.isCached(pvName, earlierChunkStart, chunkStart));
+		long queryStart = chunkStart + 86400, queryEnd = chunkStart + 3*86400;
+		int eventCount = 0;
+		try(BasicContext context = new BasicContext(); EventStream strm = reopenedCache.getDataForPV(context, pvName, chunkStart, chunkEnd, TimeUtils.convertFromEpochSeconds(queryStart, 0), TimeUtils.convertFromEpochSeconds(queryEnd, 0))) {
+			for(Event e : strm) {
+				assertTrue(e.getEpochSeconds() >= chunkStart && e.getEpochSeconds() < chunkEnd);
+				if(e.getEpochSeconds() >= queryStart && e.getEpochSeconds() < queryEnd) eventCount++;
+			}
+		}
+		assertEquals(2*86400/60, eventCount);
+	}
+
+	/**
+	 * Different servers or archive keys can have different data for the same PV name; these should not share cached chunks.
+	 */
+	@Test
+	public void testCacheIsPerSource() throws Exception {
+		long startOf2012 = TimeUtils.getStartOfYearInSeconds(2012);
+		long chunkStart = startOf2012 + 90*86400L;
+		long chunkEnd = chunkStart + 86400L;
+		ChannelArchiverCache cache = ChannelArchiverCache.getCache(cacheFolderName, serverURL, 1, configService);
+		ChannelArchiverCache otherArchiveKey = ChannelArchiverCache.getCache(cacheFolderName, serverURL, 2, configService);
+		ChannelArchiverCache otherServer = ChannelArchiverCache.getCache(cacheFolderName, "http://otherhost/cgi-bin/ArchiveDataServer.cgi", 1, configService);
+		assertSame(cache, ChannelArchiverCache.getCache(cacheFolderName, serverURL, 1, configService));
+		assertNotSame(cache, otherArchiveKey);
+		assertNotSame(cache, otherServer);
+
+		ArrayListEventStream fromServer = new ArrayListEventStream(0, new RemotableEventStreamDesc(type, pvName, (short)2012));
+		for(long s = chunkStart; s < chunkEnd; s += 60) {
+			fromServer.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(s), type, new ScalarValue<Double>((double) s)));
+		}
+		assertEquals(86400/60, cache.addToCache(pvName, fromServer, chunkStart, chunkEnd));
+		assertTrue(cache.isCached(pvName, chunkStart, chunkEnd));
+		for(ChannelArchiverCache other : new ChannelArchiverCache[] { otherArchiveKey, otherServer }) {
+			assertFalse(other.isCached(pvName, chunkStart, chunkEnd));
+			assertFalse(new ChannelArchiverCache(other.getRootFolder(), configService).isCached(pvName, chunkStart, chunkEnd));
+			try(BasicContext context = new BasicContext(); EventStream strm = other.getDataForPV(context, pvName, chunkStart, chunkEnd, TimeUtils.convertFromEpochSeconds(chunkStart, 0), TimeUtils.convertFromEpochSeconds(chunkEnd, 0))) {
+				assertFalse("Data for " + pvName + " from another source was returned", strm.iterator().hasNext());
+			}
+		}
+	}
+
+	/**
+	 * If we fail to get a page in the middle of a chunk, the chunk should not be marked as cached.
+	 * Fetching the chunk again should fill in the rest of the data without duplicating what we already have.
+	 */
+	@Test
+	public void testPartialFetchIsNotCached() throws Exception {
+		long startOf2012 = TimeUtils.getStartOfYearInSeconds(2012);
+		final long chunkStart = startOf2012 + 30*86400L;
+		final long chunkEnd = chunkStart + 86400L;
+		final int valuesPerPage = 1000;
+		final int totalEvents = 5500;
+		final boolean[] failThirdPage = new boolean[] { true };
+		final int[] pagesRequested = new int[1];
+		ChannelArchiverPagedEventStream.PageFetcher fetcher = new ChannelArchiverPagedEventStream.PageFetcher() {
+			@Override
+			public EventStream fetchPage(Timestamp start, Timestamp end) throws IOException {
+				pagesRequested[0]++;
+				if(failThirdPage[0] && pagesRequested[0] == 2) {
+					throw new IOException("Simulated failure fetching a page");
+				}
+				return makePage(TimeUtils.convertToEpochSeconds(start) + (start.getNanos() > 0 ? 1 : 0), chunkStart + totalEvents, valuesPerPage);
+			}
+		};
+		ChannelArchiverCache cache = ChannelArchiverCache.getCache(cacheFolderName, serverURL, 1, configService);
+		try(ChannelArchiverPagedEventStream strm = new ChannelArchiverPagedEventStream(pvName, makePage(chunkStart, chunkStart + totalEvents, valuesPerPage), valuesPerPage, TimeUtils.convertFromEpochSeconds(chunkEnd, 0), fetcher)) {
+			try {
+				cache.addToCache(pvName, strm, chunkStart, chunkEnd);
+				fail("We should not be able to cache a partially fetched chunk");
+			} catch(IOException ex) {
+				// Expected
+			}
+			assertTrue(strm.getError() != null);
+		}
+		assertFalse(cache.isCached(pvName, chunkStart, chunkEnd));
+
+		failThirdPage[0] = false;
+		pagesRequested[0] = 0;
+		try(ChannelArchiverPagedEventStream strm = new ChannelArchiverPagedEventStream(pvName, makePage(chunkStart, chunkStart + totalEvents, valuesPerPage), valuesPerPage, TimeUtils.convertFromEpochSeconds(chunkEnd, 0), fetcher)) {
+			cache.addToCache(pvName, strm, chunkStart, chunkEnd);
+			assertNull(strm.getError());
+		}
+		assertTrue(cache.isCached(pvName, chunkStart, chunkEnd));
+		int eventCount = 0;
+		long previousEpochSeconds = -1;
+		try(BasicContext context = new BasicContext(); EventStream strm = cache.getDataForPV(context, pvName, chunkStart, chunkEnd, TimeUtils.convertFromEpochSeconds(chunkStart, 0), TimeUtils.convertFromEpochSeconds(chunkEnd, 0))) {
+			for(Event e : strm) {
+				assertTrue("Events are not in order or are duplicated", e.getEpochSeconds() > previousEpochSeconds);
+				previousEpochSeconds = e.getEpochSeconds();
+				eventCount++;
+			}
+		}
+		assertEquals(totalEvents, eventCount);
+	}
+
+	/**
+	 * Make a page with the events starting at the specified time; one event a second.
+	 */
+	private EventStream makePage(long firstEventEpochSeconds, long endEpochSeconds, int valuesPerPage) {
+		short year = TimeUtils.computeYearForEpochSeconds(firstEventEpochSeconds);
+		ArrayListEventStream page = new ArrayListEventStream(valuesPerPage, new RemotableEventStreamDesc(type, pvName, year));
+		for(long s = firstEventEpochSeconds; s < endEpochSeconds && page.size() < valuesPerPage; s++) {
+			page.add(new SimulationEvent(TimeUtils.convertToYearSecondTimestamp(s), type, new ScalarValue<Double>((double) s)));
+		}
+		return page;
+	}
+}
@@ -0,0 +1,107 @@
+package org.epics.archiverappliance.retrieval.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+
+import org.epics.archiverappliance.common.POJOEvent;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.data.ScalarStringSampleValue;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.data.VectorValue;
+import org.epics.archiverappliance.retrieval.mimeresponses.ColumnarBinaryResponse;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.junit.Test;
+
+/**
+ * Write a few PVs using the ColumnarBinaryResponse and read them back using the ColumnarDataRetrieval reader.
+ * @author mshankar
+ *
+ */
+public class ColumnarBinaryResponseTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		short currentYear = TimeUtils.getCurrentYear();
+		Timestamp start = TimeUtils.getStartOfYear(currentYear);
+		Timestamp end = TimeUtils.now();
+		int scalarSamples = ColumnarBinaryResponse.MAX_SAMPLES_PER_BLOCK*2 + 100;
+		int waveformSamples = 100;
+		int waveformElements = 20000;
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ColumnarBinaryResponse response = new ColumnarBinaryResponse();
+		response.setOutputStream(bos);
+
+		response.processingPV("Test:Scalar", start, end, null);
+		for(int i = 0; i < scalarSamples; i++) {
+			Timestamp ts = TimeUtils.convertFromEpochSeconds(TimeUtils.convertToEpochSeconds(start) + i, i);
+			response.consumeEvent(new POJOEvent(ArchDBRTypes.DBR_SCALAR_DOUBLE, ts, new ScalarValue<Double>(i*0.5), i % 7, i % 3));
+		}
+
+		// A PV with no data should not appear in the response.
+		response.processingPV("Test:NoData", start, end, null);
+
+		response.processingPV("Test:Waveform", start, end, null);
+		for(int i = 0; i < waveformSamples; i++) {
+			ArrayList<Double> values = new ArrayList<Double>();
+			for(int j = 0; j < waveformElements - i; j++) {
+				values.add((double) (i + j));
+			}
+			response.consumeEvent(new SimulationEvent(i, currentYear, ArchDBRTypes.DBR_WAVEFORM_DOUBLE, new VectorValue<Double>(values)));
+		}
+
+		response.processingPV("Test:String", start, end, null);
+		response.consumeEvent(new SimulationEvent(0, currentYear, ArchDBRTypes.DBR_SCALAR_STRING, new ScalarStringSampleValue("Some string")));
+		response.close();
+
+		ColumnarDataRetrieval.Reader reader = new ColumnarDataRetrieval.Reader(new ByteArrayInputStream(bos.toByteArray()));
+		int scalarsRead = 0;
+		int waveformsRead = 0;
+		int stringsRead = 0;
+		ColumnarDataBlock block;
+		while((block = reader.nextBlock()) != null) {
+			assertTrue(block.getSampleCount() <= ColumnarBinaryResponse.MAX_SAMPLES_PER_BLOCK);
+			if(block.getPvName().equals("Test:Scalar")) {
+				assertEquals(ArchDBRTypes.DBR_SCALAR_DOUBLE, block.getDBRType());
+				for(int s = 0; s < block.getSampleCount(); s++) {
+					assertEquals(TimeUtils.convertToEpochSeconds(start) + scalarsRead, block.getEpochSeconds()[s]);
+					assertEquals(scalarsRead, block.getNanos()[s]);
+					assertEquals(scalarsRead*0.5, block.getValues()[block.getValueOffset(s)], 0.0);
+					assertEquals(scalarsRead % 3, block.getSeverities()[s]);
+					assertEquals(scalarsRead % 7, block.getStatuses()[s]);
+					scalarsRead++;
+				}
+			} else if(block.getPvName().equals("Test:Waveform")) {
+				assertEquals(ArchDBRTypes.DBR_WAVEFORM_DOUBLE, block.getDBRType());
+				assertTrue(block.getValues().length <= ColumnarBinaryResponse.MAX_VALUES_PER_BLOCK);
+				for(int s = 0; s < block.getSampleCount(); s++) {
+					assertEquals(waveformElements - waveformsRead, block.getElementCount(s));
+					assertEquals(waveformsRead + 10.0, block.getValues()[block.getValueOffset(s) + 10], 0.0);
+					waveformsRead++;
+				}
+			} else if(block.getPvName().equals("Test:String")) {
+				assertEquals("Some string", block.getStringValues()[0]);
+				stringsRead += block.getSampleCount();
+			} else {
+				throw new AssertionError("Unexpected pv " + block.getPvName());
+			}
+		}
+		reader.close();
+		assertEquals(scalarSamples, scalarsRead);
+		assertEquals(waveformSamples, waveformsRead);
+		assertEquals(1, stringsRead);
+		assertNull(reader.nextBlock());
+	}
+
+	@Test(expected=java.io.IOException.class)
+	public void testNotAColumnarResponse() throws Exception {
+		new ColumnarDataRetrieval.Reader(new ByteArrayInputStream("[{\"meta\": {}}]".getBytes("UTF-8")));
+	}
+}
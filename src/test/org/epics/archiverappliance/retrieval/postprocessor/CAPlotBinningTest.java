@@ -0,0 +1,169 @@
+package org.epics.archiverappliance.retrieval.postprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.common.YearSecondTimestamp;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.PVTypeInfo;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.CallableEventStream;
+import org.epics.archiverappliance.retrieval.ChangeInYearsException;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.postprocessors.CAPlotBinning;
+import org.epics.archiverappliance.retrieval.postprocessors.ErrorBars;
+import org.epics.archiverappliance.retrieval.postprocessors.SummaryBinStore;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.junit.Test;
+
+/**
+ * Test the CAPlotBinning post processor and the SummaryBinStore that holds the bins for the summarizing post processors.
+ * @author mshankar
+ *
+ */
+public class CAPlotBinningTest {
+	private static Logger logger = Logger.getLogger(CAPlotBinningTest.class.getName());
+	private String pvName = "Test_CAPlotBinning1";
+
+	/**
+	 * We generate hourly bins with 0, 1, 2 and 10 samples and check that we get back the samples as documented in CAPlotBinning.
+	 * @throws Exception
+	 */
+	@Test
+	public void testCAPlotBinning() throws Exception {
+		short currentYear = TimeUtils.getCurrentYear();
+		YearSecondTimestamp startOfSamples = TimeUtils.convertToYearSecondTimestamp(TimeUtils.convertFromISO8601String(currentYear + "-03-01T00:00:00.000Z"));
+		int[] samplesPerBin = new int[] { 1, 2, 10, 0, 10, 1 };
+		ArrayListEventStream testData = new ArrayListEventStream(0, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		for(int bin = 0; bin < samplesPerBin.length; bin++) {
+			for(int s = 0; s < samplesPerBin[bin]; s++) {
+				// Values go down and then up so that the min and max are not the first or last sample.
+				double value = bin*100 + (s - 5)*(s - 5);
+				testData.add(new SimulationEvent(startOfSamples.getSecondsintoyear() + bin*3600 + 100 + s*60, currentYear, ArchDBRTypes.DBR_SCALAR_DOUBLE, new ScalarValue<Double>(value)));
+			}
+		}
+
+		CAPlotBinning caplotbinning = new CAPlotBinning();
+		caplotbinning.initialize("caplotbinning_3600", pvName);
+		Timestamp start = TimeUtils.convertFromYearSecondTimestamp(startOfSamples);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(TimeUtils.convertToEpochSeconds(start) + samplesPerBin.length*3600 - 1, 0);
+		caplotbinning.estimateMemoryConsumption(pvName, new PVTypeInfo(pvName, ArchDBRTypes.DBR_SCALAR_DOUBLE, true, 1), start, end, null);
+		caplotbinning.wrap(CallableEventStream.makeOneStreamCallable(testData, null, false)).call();
+
+		List<Event> events = readAllEvents(caplotbinning.getConsolidatedEventStream());
+		assertEquals(1 + 2 + 4 + 0 + 4 + 1, events.size());
+		long startEpochSeconds = TimeUtils.convertToEpochSeconds(start);
+		// One sample is placed as is.
+		checkEvent(events.get(0), startEpochSeconds + 100, 25.0);
+		// Two samples are placed as is.
+		checkEvent(events.get(1), startEpochSeconds + 3600 + 100, 125.0);
+		checkEvent(events.get(2), startEpochSeconds + 3600 + 160, 116.0);
+		// More than two samples - initial, minimum, maximum, final
+		checkEvent(events.get(3), startEpochSeconds + 2*3600, 225.0);
+		checkEvent(events.get(4), startEpochSeconds + 2*3600 + 900, 200.0);
+		checkEvent(events.get(5), startEpochSeconds + 2*3600 + 1800, 225.0);
+		checkEvent(events.get(6), startEpochSeconds + 2*3600 + 2700, 216.0);
+		// Empty bin is skipped
+		checkEvent(events.get(7), startEpochSeconds + 4*3600, 425.0);
+		checkEvent(events.get(11), startEpochSeconds + 5*3600 + 100, 525.0);
+	}
+
+	/**
+	 * Bins added out of order are inserted in order and adding an existing bin replaces it.
+	 */
+	@Test
+	public void testBinStore() {
+		SummaryBinStore binStore = new SummaryBinStore(2, 1);
+		for(long bin = 0; bin < 1000; bin += 2) {
+			int index = binStore.addBin(bin, (int) (bin % 3), bin % 10 == 0);
+			binStore.setValue(index, 0, bin);
+			binStore.setValue(index, 1, -bin);
+			binStore.setLong(index, 0, bin*10);
+		}
+		HashMap<String, String> additionalStats = new HashMap<String, String>();
+		additionalStats.put("stdz", "1.0");
+		binStore.setAdditionalColumns(binStore.indexOf(500), additionalStats);
+		int index = binStore.addBin(501, 2, false);
+		binStore.setValue(index, 0, 501);
+		index = binStore.addBin(4, 0, false);
+		binStore.setValue(index, 0, 44);
+
+		assertEquals(501, binStore.size());
+		assertEquals(0, binStore.getFirstBinNumber());
+		assertEquals(998, binStore.getLastBinNumber());
+		for(int i = 1; i < binStore.size(); i++) {
+			assertTrue(binStore.getBinNumber(i) > binStore.getBinNumber(i-1));
+		}
+		assertEquals(-1, binStore.indexOf(3));
+		assertEquals(binStore.indexOf(4), binStore.ceilingIndex(3));
+		assertEquals(44.0, binStore.getValue(binStore.indexOf(4), 0), 0.0);
+		assertTrue(Double.isNaN(binStore.getValue(binStore.indexOf(4), 1)));
+		assertEquals(0, binStore.getLong(binStore.indexOf(4), 0));
+		assertEquals(501.0, binStore.getValue(binStore.indexOf(501), 0), 0.0);
+		assertEquals(502.0, binStore.getValue(binStore.indexOf(502), 0), 0.0);
+		assertEquals(-502.0, binStore.getValue(binStore.indexOf(502), 1), 0.0);
+		assertEquals(5020, binStore.getLong(binStore.indexOf(502), 0));
+		assertEquals(502 % 3, binStore.getSeverity(binStore.indexOf(502)));
+		assertTrue(binStore.isConnectionChanged(binStore.indexOf(510)));
+		assertFalse(binStore.isConnectionChanged(binStore.indexOf(512)));
+		assertFalse(binStore.isConnectionChanged(binStore.indexOf(501)));
+	}
+
+	/**
+	 * The additional columns from the collectors should make it into the events.
+	 * @throws Exception
+	 */
+	@Test
+	public void testAdditionalColumns() throws Exception {
+		short currentYear = TimeUtils.getCurrentYear();
+		YearSecondTimestamp startOfSamples = TimeUtils.convertToYearSecondTimestamp(TimeUtils.convertFromISO8601String(currentYear + "-03-01T00:00:00.000Z"));
+		ArrayListEventStream testData = new ArrayListEventStream(0, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		int hours = 10;
+		for(int s = 0; s < hours*60; s++) {
+			testData.add(new SimulationEvent(startOfSamples.getSecondsintoyear() + s*60, currentYear, ArchDBRTypes.DBR_SCALAR_DOUBLE, new ScalarValue<Double>((double) (s % 2))));
+		}
+		ErrorBars errorBars = new ErrorBars();
+		errorBars.initialize("errorbar_3600", pvName);
+		Timestamp start = TimeUtils.convertFromYearSecondTimestamp(startOfSamples);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(TimeUtils.convertToEpochSeconds(start) + hours*3600 - 1, 0);
+		errorBars.estimateMemoryConsumption(pvName, new PVTypeInfo(pvName, ArchDBRTypes.DBR_SCALAR_DOUBLE, true, 1), start, end, null);
+		errorBars.wrap(CallableEventStream.makeOneStreamCallable(testData, null, false)).call();
+		List<Event> events = readAllEvents(errorBars.getConsolidatedEventStream());
+		assertEquals(hours, events.size());
+		for(Event e : events) {
+			assertEquals(0.5, e.getSampleValue().getValue().doubleValue(), 0.0);
+			assertTrue(Double.parseDouble(((DBRTimeEvent) e).getFieldValue("stdz")) > 0.49);
+		}
+	}
+
+	private static List<Event> readAllEvents(EventStream strm) {
+		List<Event> events = new ArrayList<Event>();
+		Iterator<Event> it = strm.iterator();
+		while(it.hasNext()) {
+			try {
+				events.add(it.next());
+			} catch(ChangeInYearsException ex) {
+				logger.debug("Change in years; we should be able to continue from where we left off");
+			}
+		}
+		return events;
+	}
+
+	private static void checkEvent(Event e, long expectedEpochSeconds, double expectedValue) {
+		assertEquals(expectedEpochSeconds, e.getEpochSeconds());
+		assertEquals(expectedValue, e.getSampleValue().getValue().doubleValue(), 0.0);
+	}
+}
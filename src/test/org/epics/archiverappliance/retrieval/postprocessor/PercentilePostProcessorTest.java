@@ -0,0 +1,192 @@
+package org.epics.archiverappliance.retrieval.postprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.common.QuantileSketch;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.common.YearSecondTimestamp;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.PVTypeInfo;
+import org.epics.archiverappliance.data.ScalarValue;
+import org.epics.archiverappliance.engine.membuf.ArrayListEventStream;
+import org.epics.archiverappliance.retrieval.CallableEventStream;
+import org.epics.archiverappliance.retrieval.RemotableEventStreamDesc;
+import org.epics.archiverappliance.retrieval.postprocessors.Median;
+import org.epics.archiverappliance.retrieval.postprocessors.Percentile;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessors;
+import org.epics.archiverappliance.utils.simulation.SimulationEvent;
+import org.junit.Test;
+
+/**
+ * Test the QuantileSketch and the median/percentile post processors that use it.
+ * @author mshankar
+ *
+ */
+public class PercentilePostProcessorTest {
+	private static Logger logger = Logger.getLogger(PercentilePostProcessorTest.class.getName());
+	private String pvName = "Test_Percentile1";
+
+	/**
+	 * Small bins should give the same answer as DescriptiveStatistics.
+	 */
+	@Test
+	public void testExactForSmallBins() {
+		Random random = new Random(42);
+		for(int count = 1; count < 150; count++) {
+			QuantileSketch sketch = new QuantileSketch();
+			DescriptiveStatistics stats = new DescriptiveStatistics();
+			for(int i = 0; i < count; i++) {
+				double val = random.nextGaussian();
+				sketch.addValue(val);
+				stats.addValue(val);
+			}
+			assertTrue(sketch.isExact());
+			for(double p : new double[] { 1, 25, 50, 95, 99, 100 }) {
+				assertEquals(stats.getPercentile(p), sketch.getPercentile(p), 0.0);
+			}
+		}
+	}
+
+	/**
+	 * Large bins should be within the rank error and use bounded memory.
+	 */
+	@Test
+	public void testRankErrorAndBoundedMemory() {
+		int totalValues = 1000000;
+		Random random = new Random(1234);
+		double[] values = new double[totalValues];
+		QuantileSketch sketch = new QuantileSketch();
+		for(int i = 0; i < totalValues; i++) {
+			values[i] = random.nextDouble()*1000.0;
+			sketch.addValue(values[i]);
+		}
+		Arrays.sort(values);
+		assertEquals(totalValues, sketch.getN());
+		assertTrue("Too many retained items " + sketch.getRetainedItems(), sketch.getRetainedItems() < 4*QuantileSketch.DEFAULT_K);
+		assertTrue(sketch.estimateMemoryConsumption() <= QuantileSketch.estimateMaxMemoryConsumption(QuantileSketch.DEFAULT_K));
+		for(double p : new double[] { 5, 25, 50, 75, 95, 99 }) {
+			checkRankError(values, sketch, p);
+		}
+		logger.info("Retained " + sketch.getRetainedItems() + " items using " + sketch.estimateMemoryConsumption() + " bytes");
+	}
+
+	/**
+	 * Merging sketches for partitions should be similar to a sketch over all the data.
+	 * The merged sketch should also survive serialization.
+	 */
+	@Test
+	public void testMergeAndSerialization() {
+		int partitions = 24;
+		int valuesPerPartition = 20000;
+		Random random = new Random(99);
+		double[] values = new double[partitions*valuesPerPartition];
+		QuantileSketch merged = new QuantileSketch();
+		for(int partition = 0; partition < partitions; partition++) {
+			QuantileSketch partitionSketch = new QuantileSketch();
+			for(int i = 0; i < valuesPerPartition; i++) {
+				double val = partition*10 + random.nextGaussian();
+				values[partition*valuesPerPartition + i] = val;
+				partitionSketch.addValue(val);
+			}
+			merged.merge(QuantileSketch.fromByteArray(partitionSketch.toByteArray()));
+		}
+		Arrays.sort(values);
+		assertEquals(values.length, merged.getN());
+		assertEquals(values[0], merged.getMin(), 0.0);
+		assertEquals(values[values.length-1], merged.getMax(), 0.0);
+		QuantileSketch deserialized = QuantileSketch.fromByteArray(merged.toByteArray());
+		for(double p : new double[] { 5, 50, 95, 99 }) {
+			checkRankError(values, merged, p);
+			assertEquals(merged.getPercentile(p), deserialized.getPercentile(p), 0.0);
+		}
+	}
+
+	/**
+	 * Sketches with different k's cannot be merged without losing the rank error guarantee; so merge should reject these and leave the sketch as is.
+	 */
+	@Test
+	public void testMergeWithDifferentK() {
+		QuantileSketch sketch = new QuantileSketch(100);
+		QuantileSketch other = new QuantileSketch(200);
+		for(int i = 0; i < 1000; i++) {
+			sketch.addValue(i);
+			other.addValue(i);
+		}
+		try {
+			sketch.merge(other);
+			fail("Merging sketches with different k should fail");
+		} catch(IllegalArgumentException ex) {
+			// Expected
+		}
+		assertEquals(1000, sketch.getN());
+		// Even empty sketches with a different k are rejected.
+		try {
+			sketch.merge(new QuantileSketch(200));
+			fail("Merging sketches with different k should fail");
+		} catch(IllegalArgumentException ex) {
+			// Expected
+		}
+		sketch.merge(QuantileSketch.fromByteArray(new QuantileSketch(100).toByteArray()));
+		assertEquals(1000, sketch.getN());
+	}
+
+	@Test
+	public void testPercentilePostProcessor() throws Exception {
+		PostProcessor pp = PostProcessors.findPostProcessor("percentile_95_3600");
+		assertTrue(pp instanceof Percentile);
+		pp.initialize("percentile_95_3600", pvName);
+		assertEquals("percentile_95_3600", pp.getExtension());
+		Median median = (Median) PostProcessors.findPostProcessor("median_3600");
+		median.initialize("median_3600", pvName);
+
+		short currentYear = TimeUtils.getCurrentYear();
+		YearSecondTimestamp startOfSamples = TimeUtils.convertToYearSecondTimestamp(TimeUtils.convertFromISO8601String(currentYear + "-02-01T00:00:00.000Z"));
+		int hours = 24;
+		ArrayListEventStream testData = new ArrayListEventStream(0, new RemotableEventStreamDesc(ArchDBRTypes.DBR_SCALAR_DOUBLE, pvName, currentYear));
+		for(int s = 0; s < hours*3600; s++) {
+			// Within each hour, the values go from 0 to 3599
+			testData.add(new SimulationEvent(startOfSamples.getSecondsintoyear() + s, currentYear, ArchDBRTypes.DBR_SCALAR_DOUBLE, new ScalarValue<Double>((double) (s % 3600))));
+		}
+		Timestamp start = TimeUtils.convertFromYearSecondTimestamp(startOfSamples);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(TimeUtils.convertToEpochSeconds(start) + hours*3600 - 1, 0);
+		PVTypeInfo typeInfo = new PVTypeInfo(pvName, ArchDBRTypes.DBR_SCALAR_DOUBLE, true, 1);
+		assertTrue(pp.estimateMemoryConsumption(pvName, typeInfo, start, end, null) >= QuantileSketch.estimateMaxMemoryConsumption(QuantileSketch.DEFAULT_K));
+		median.estimateMemoryConsumption(pvName, typeInfo, start, end, null);
+		pp.wrap(CallableEventStream.makeOneStreamCallable(testData, null, false)).call();
+		median.wrap(CallableEventStream.makeOneStreamCallable(testData, null, false)).call();
+
+		int eventCount = 0;
+		for(Event e : ((Percentile) pp).getConsolidatedEventStream()) {
+			double val = e.getSampleValue().getValue().doubleValue();
+			assertTrue("Expecting the 95th percentile to be around 3420; got " + val, Math.abs(val - 0.95*3600) < 0.01*3600);
+			eventCount++;
+		}
+		assertEquals(hours, eventCount);
+
+		eventCount = 0;
+		for(Event e : median.getConsolidatedEventStream()) {
+			double val = e.getSampleValue().getValue().doubleValue();
+			assertTrue("Expecting the median to be around 1800; got " + val, Math.abs(val - 0.5*3600) < 0.01*3600);
+			eventCount++;
+		}
+		assertEquals(hours, eventCount);
+	}
+
+	private static void checkRankError(double[] sortedValues, QuantileSketch sketch, double percentile) {
+		double estimate = sketch.getPercentile(percentile);
+		int rank = Arrays.binarySearch(sortedValues, estimate);
+		if(rank < 0) rank = -rank - 1;
+		double rankError = Math.abs(((double) rank)/sortedValues.length - percentile/100.0);
+		assertTrue("Rank error " + rankError + " for percentile " + percentile + " is too large", rankError < 0.015);
+	}
+}
@@ -0,0 +1,50 @@
+package org.epics.archiverappliance.retrieval.postprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.retrieval.postprocessors.DefaultRawPostProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.Mean;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessor;
+import org.epics.archiverappliance.retrieval.postprocessors.PostProcessors;
+import org.epics.archiverappliance.retrieval.postprocessors.RemotedPostProcessor;
+import org.junit.Test;
+
+/**
+ * Test which post processors we run on the appliance that owns the PV.
+ * @author mshankar
+ *
+ */
+public class RemotedPostProcessorTest {
+	@Test
+	public void testCanBeRemoted() throws Exception {
+		PostProcessor mean = PostProcessors.findPostProcessor("mean_600");
+		mean.initialize("mean_600", "RemotedPostProcessorTest");
+		assertTrue(RemotedPostProcessor.canBeRemoted(mean, "mean_600"));
+		assertFalse("Raw data is already what we get", RemotedPostProcessor.canBeRemoted(new DefaultRawPostProcessor(), "raw"));
+		assertFalse("No user argument", RemotedPostProcessor.canBeRemoted(mean, null));
+		assertFalse("The user argument maps to a different post processor", RemotedPostProcessor.canBeRemoted(mean, "max_600"));
+		assertFalse("Already remoted", RemotedPostProcessor.canBeRemoted(new RemotedPostProcessor(mean, "mean_600"), "mean_600"));
+	}
+
+	@Test
+	public void testPassThru() throws Exception {
+		PostProcessor mean = new Mean();
+		mean.initialize("mean_600", "RemotedPostProcessorTest");
+		RemotedPostProcessor remoted = new RemotedPostProcessor(mean, "mean_600");
+		assertEquals("mean_600", remoted.getExtension());
+		assertEquals(mean.getIdentity(), remoted.getIdentity());
+		Callable<EventStream> callable = new Callable<EventStream>() {
+			@Override
+			public EventStream call() throws Exception {
+				return null;
+			}
+		};
+		assertSame(callable, remoted.wrap(callable));
+	}
+}
@@ -0,0 +1,173 @@
+package org.epics.archiverappliance.utils.imprt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.epics.archiverappliance.Event;
+import org.epics.archiverappliance.EventStream;
+import org.epics.archiverappliance.common.BasicContext;
+import org.epics.archiverappliance.common.PartitionGranularity;
+import org.epics.archiverappliance.common.TimeUtils;
+import org.epics.archiverappliance.config.ArchDBRTypes;
+import org.epics.archiverappliance.config.ConfigServiceForTests;
+import org.epics.archiverappliance.config.StoragePluginURLParser;
+import org.epics.archiverappliance.data.DBRTimeEvent;
+import org.epics.archiverappliance.data.SampleValue;
+import org.epics.archiverappliance.retrieval.workers.CurrentThreadWorkerEventStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import au.com.bytecode.opencsv.CSVWriter;
+import edu.stanford.slac.archiverappliance.PB.data.BoundaryConditionsSimulationValueGenerator;
+import edu.stanford.slac.archiverappliance.PB.data.DBR2PBTypeMapping;
+import edu.stanford.slac.archiverappliance.PB.data.PBCommonSetup;
+import edu.stanford.slac.archiverappliance.PlainPB.PlainPBStoragePlugin;
+
+/**
+ * Test the streaming CSV import.
+ * We check that the PB bytes are the same as those from the CSVEvent and that an interrupted import can be resumed without duplicating samples.
+ * @author mshankar
+ *
+ */
+public class StreamingCSVImportTest {
+	private static Logger logger = Logger.getLogger(StreamingCSVImportTest.class.getName());
+	private static final int DAYS = 5;
+	private static final int SAMPLES_PER_DAY = 24*60;
+	PBCommonSetup pbSetup = new PBCommonSetup();
+	PlainPBStoragePlugin pbplugin = new PlainPBStoragePlugin();
+	private String pvName = "StreamingCSVImportTest:pv";
+	private File csvFile;
+	private long startEpochSeconds = TimeUtils.getStartOfCurrentYearInSeconds();
+
+	@Before
+	public void setUp() throws Exception {
+		pbSetup.setUpRootFolder(pbplugin, "StreamingCSVImportTest", PartitionGranularity.PARTITION_DAY);
+		csvFile = new File(pbSetup.getRootFolder(), "import.csv");
+		try(PrintWriter out = new PrintWriter(new FileWriter(csvFile))) {
+			for(int i = 0; i < DAYS*SAMPLES_PER_DAY; i++) {
+				long epicsEpochSeconds = startEpochSeconds + i*60 - TimeUtils.EPICS_EPOCH_2_JAVA_EPOCH_OFFSET;
+				// Mix in some empty lines, CRLF line endings and bad lines.
+				if(i % 1000 == 0) out.print("\r\n");
+				if(i % 1001 == 0) out.print("Not a valid line\n");
+				out.print(epicsEpochSeconds + "," + i + "," + (i*0.5) + ",0," + (i % 3) + (i % 2 == 0 ? "\r\n" : "\n"));
+			}
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pbSetup.deleteTestFolder();
+	}
+
+	@Test
+	public void testEncodingMatchesCSVEvent() throws Exception {
+		for(ArchDBRTypes dbrType : ArchDBRTypes.values()) {
+			BoundaryConditionsSimulationValueGenerator valuegenerator = new BoundaryConditionsSimulationValueGenerator();
+			int sampleCount = valuegenerator.getNumberOfSamples(dbrType);
+			String[][] lines = new String[sampleCount][];
+			StringWriter csv = new StringWriter();
+			try(CSVWriter writer = new CSVWriter(csv)) {
+				for(int secondsintoyear = 0; secondsintoyear < sampleCount; secondsintoyear++) {
+					SampleValue generatedVal = valuegenerator.getSampleValue(dbrType, secondsintoyear);
+					lines[secondsintoyear] = new String[] {
+							Long.toString(startEpochSeconds + secondsintoyear - TimeUtils.EPICS_EPOCH_2_JAVA_EPOCH_OFFSET),
+							Integer.toString(secondsintoyear),
+							CSVEvent.toString(generatedVal, dbrType),
+							Integer.toString(secondsintoyear % 5),
+							Integer.toString(secondsintoyear % 3)
+					};
+					writer.writeNext(lines[secondsintoyear]);
+				}
+			}
+
+			CSVLineTokenizer tokenizer = new CSVLineTokenizer(new ByteArrayInputStream(csv.toString().getBytes("UTF-8")), 0, 1);
+			CSVRowEncoder encoder = new CSVRowEncoder(dbrType);
+			for(int secondsintoyear = 0; secondsintoyear < sampleCount; secondsintoyear++) {
+				assertTrue("Missing line " + secondsintoyear + " for " + dbrType, tokenizer.nextLine());
+				Event actual = encoder.encode(tokenizer);
+				DBRTimeEvent expected = DBR2PBTypeMapping.getPBClassFor(dbrType).getSerializingConstructor().newInstance(new CSVEvent(lines[secondsintoyear], dbrType));
+				assertArrayEquals("Mismatch at " + secondsintoyear + " for " + dbrType, expected.getRawForm().toBytes(), actual.getRawForm().toBytes());
+				assertEquals(expected.getEventTimeStamp(), actual.getEventTimeStamp());
+				assertEquals(expected.getSampleValue(), actual.getSampleValue());
+			}
+			logger.info("Checked " + sampleCount + " samples for " + dbrType);
+		}
+	}
+
+	@Test
+	public void testImportAndResume() throws Exception {
+		StreamingCSVImport imprt = new StreamingCSVImport(pbplugin);
+		long rowsImported = imprt.importFile(new StreamingCSVImport.CSVFile(csvFile.getAbsolutePath(), pvName, ArchDBRTypes.DBR_SCALAR_DOUBLE));
+		assertEquals(DAYS*SAMPLES_PER_DAY, rowsImported);
+		assertEquals((DAYS*SAMPLES_PER_DAY)/1001 + 1, imprt.getRowsSkipped());
+		checkImportedData();
+
+		Path progressPath = Paths.get(csvFile.getAbsolutePath() + StreamingCSVImport.PROGRESS_EXTENSION);
+		Properties progress = loadProgress(progressPath);
+		assertEquals("true", progress.getProperty("completed"));
+		assertEquals(0, imprt.importFile(new StreamingCSVImport.CSVFile(csvFile.getAbsolutePath(), pvName, ArchDBRTypes.DBR_SCALAR_DOUBLE)));
+
+		// Pretend the import was interrupted in the middle of the third day; we should resume from the start of the third day.
+		String thirdDayLine = Long.toString(startEpochSeconds + 2*SAMPLES_PER_DAY*60 - TimeUtils.EPICS_EPOCH_2_JAVA_EPOCH_OFFSET) + ",";
+		String csvText = new String(Files.readAllBytes(csvFile.toPath()), "UTF-8");
+		long thirdDayOffset = csvText.indexOf("\n" + thirdDayLine) + 1;
+		assertTrue(thirdDayOffset > 0);
+		progress.setProperty("offset", Long.toString(thirdDayOffset));
+		progress.setProperty("completed", "false");
+		Files.delete(progressPath);
+		try(OutputStream os = Files.newOutputStream(progressPath)) {
+			progress.store(os, null);
+		}
+
+		// Use a new plugin so that nothing is remembered from the previous import.
+		ConfigServiceForTests configService = new ConfigServiceForTests(new File("./bin"), 1);
+		PlainPBStoragePlugin resumePlugin = (PlainPBStoragePlugin) StoragePluginURLParser.parseStoragePlugin(pbplugin.getURLRepresentation(), configService);
+		StreamingCSVImport resumed = new StreamingCSVImport(resumePlugin);
+		assertEquals((DAYS - 2)*SAMPLES_PER_DAY, resumed.importFile(new StreamingCSVImport.CSVFile(csvFile.getAbsolutePath(), pvName, ArchDBRTypes.DBR_SCALAR_DOUBLE)));
+		assertEquals("true", loadProgress(progressPath).getProperty("completed"));
+		// The samples that were already in the store are skipped by the plugin; so we should not see duplicates.
+		checkImportedData();
+		configService.shutdownNow();
+	}
+
+	private void checkImportedData() throws Exception {
+		Timestamp start = TimeUtils.convertFromEpochSeconds(startEpochSeconds - 1, 0);
+		Timestamp end = TimeUtils.convertFromEpochSeconds(startEpochSeconds + DAYS*SAMPLES_PER_DAY*60, 0);
+		int eventCount = 0;
+		try(BasicContext context = new BasicContext(); EventStream strm = new CurrentThreadWorkerEventStream(pvName, pbplugin.getDataForPV(context, pvName, start, end))) {
+			for(Event e : strm) {
+				DBRTimeEvent ev = (DBRTimeEvent) e;
+				assertEquals(startEpochSeconds + eventCount*60, ev.getEpochSeconds());
+				assertEquals(eventCount, ev.getNanos());
+				assertEquals(eventCount*0.5, ev.getSampleValue().getValue().doubleValue(), 0.0);
+				assertEquals(eventCount % 3, ev.getSeverity());
+				eventCount++;
+			}
+		}
+		assertEquals(DAYS*SAMPLES_PER_DAY, eventCount);
+	}
+
+	private static Properties loadProgress(Path progressPath) throws Exception {
+		Properties props = new Properties();
+		try(InputStream is = Files.newInputStream(progressPath)) {
+			props.load(is);
+		}
+		return props;
+	}
+}